@@ -5,9 +5,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import com.wind.nanodb.expressions.Expression;
 import com.wind.nanodb.indexes.IndexManager;
+import com.wind.nanodb.indexes.IndexUtils;
 import com.wind.nanodb.server.NanoDBServer;
 import com.wind.nanodb.storage.StorageManager;
 import com.wind.nanodb.storage.TableManager;
@@ -15,6 +18,8 @@ import org.apache.log4j.Logger;
 
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.KeyColumnRefs;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.SchemaNameException;
 import com.wind.nanodb.relations.TableConstraintType;
 import com.wind.nanodb.relations.TableInfo;
 
@@ -44,11 +49,37 @@ public class CreateIndexCommand extends Command {
     /**
      * The list of column-names that the index is built against.  The order of
      * these values is important; for ordered indexes, the index records must be
-     * kept in the order specified by the sequence of column names.
+     * kept in the order specified by the sequence of column names.  Keys that
+     * are computed from expressions have a {@code null} name.
      */
     private ArrayList<String> columnNames = new ArrayList<>();
 
 
+    /**
+     * The expression that each key of the index is computed from, in the
+     * same order as {@link #columnNames}, with {@code null} for the keys
+     * that are columns.
+     */
+    private ArrayList<Expression> keyExpressions = new ArrayList<>();
+
+
+    /**
+     * The list of column-names whose values are stored in each index entry
+     * after the key columns, as specified by an <tt>INCLUDE</tt> clause.
+     * These columns aren't part of the key, but queries that only need the
+     * key and included columns can be answered from the index alone.
+     */
+    private ArrayList<String> includedColumnNames = new ArrayList<>();
+
+
+    /**
+     * The predicate from the <tt>WHERE</tt> clause of a partial index, which
+     * only has entries for the rows that satisfy it, or {@code null} if
+     * every row of the table is indexed.
+     */
+    private Expression predicate;
+
+
     /** Any additional properties specified in the command. */
     private CommandProperties properties;
 
@@ -83,10 +114,39 @@ public class CreateIndexCommand extends Command {
 
     public void addColumn(String columnName) {
         this.columnNames.add(columnName);
+        this.keyExpressions.add(null);
     }
 
     public void addColumns(List<String> columnNames) {
-        this.columnNames.addAll(columnNames);
+        for (String columnName : columnNames)
+            addColumn(columnName);
+    }
+
+
+    /**
+     * Adds a key to the index that is computed from an expression over the
+     * columns of the table, rather than being a column itself.
+     *
+     * @param expr the expression that the key is computed from
+     */
+    public void addKeyExpression(Expression expr) {
+        this.columnNames.add(null);
+        this.keyExpressions.add(expr);
+    }
+
+
+    public void addIncludedColumn(String columnName) {
+        this.includedColumnNames.add(columnName);
+    }
+
+
+    public void setPredicate(Expression predicate) {
+        this.predicate = predicate;
+    }
+
+
+    public Expression getPredicate() {
+        return predicate;
     }
 
 
@@ -112,18 +172,58 @@ public class CreateIndexCommand extends Command {
         }
 
         try {
-            int[] cols = tableInfo.getSchema().getColumnIndexes(columnNames);
-
             ColumnRefs colRefs;
-            if (unique) {
-                colRefs = new KeyColumnRefs(indexName, cols,
-                    TableConstraintType.UNIQUE);
+            if (Collections.frequency(keyExpressions, null) ==
+                keyExpressions.size()) {
+                int[] cols =
+                    tableInfo.getSchema().getColumnIndexes(columnNames);
+                if (unique) {
+                    colRefs = new KeyColumnRefs(indexName, cols,
+                        TableConstraintType.UNIQUE);
+                }
+                else {
+                    colRefs = new ColumnRefs(indexName, cols);
+                }
             }
             else {
-                colRefs = new ColumnRefs(indexName, cols);
+                colRefs = makeExpressionIndex(tableInfo);
+            }
+
+            if (!includedColumnNames.isEmpty()) {
+                int[] includedCols =
+                    tableInfo.getSchema().getColumnIndexes(includedColumnNames);
+                try {
+                    colRefs.setIncludedCols(includedCols);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new ExecutionException(String.format(
+                        "Included columns %s of index %s must not repeat " +
+                        "each other or the indexed columns %s",
+                        includedColumnNames, indexName, columnNames), e);
+                }
             }
 
-            indexManager.addIndexToTable(tableInfo, colRefs);
+            if (predicate != null) {
+                // Unique indexes are also candidate keys of the table, which
+                // must hold for every row.
+                if (unique) {
+                    throw new ExecutionException(String.format(
+                        "Unique index %s can't have a WHERE clause",
+                        indexName));
+                }
+
+                try {
+                    colRefs.setPredicate(IndexUtils.makeIndexPredicate(
+                        predicate, tableInfo.getSchema()));
+                }
+                catch (IllegalArgumentException e) {
+                    throw new ExecutionException(String.format(
+                        "Invalid WHERE clause for index %s:  %s", indexName,
+                        e.getMessage()), e);
+                }
+            }
+
+            indexManager.addIndexToTable(tableInfo, colRefs, properties);
         }
         catch (IOException e) {
             throw new ExecutionException(String.format(
@@ -136,4 +236,54 @@ public class CreateIndexCommand extends Command {
 
         out.printf("Created index %s on table %s.%n", indexName, tableName);
     }
+
+
+    /**
+     * Describes an index with keys that are computed from expressions.
+     * Unique indexes can't have such keys, since they are also candidate
+     * keys of the table, which can only be made of columns.
+     */
+    private ColumnRefs makeExpressionIndex(TableInfo tableInfo)
+        throws ExecutionException {
+
+        if (unique) {
+            throw new ExecutionException(String.format(
+                "Unique index %s can only be on columns", indexName));
+        }
+
+        Schema schema = tableInfo.getSchema();
+        int[] cols = new int[columnNames.size()];
+        Expression[] exprs = new Expression[columnNames.size()];
+        for (int i = 0; i < cols.length; i++) {
+            if (keyExpressions.get(i) == null) {
+                cols[i] = schema.getColumnIndex(columnNames.get(i));
+                if (cols[i] < 0) {
+                    throw new ExecutionException(String.format(
+                        "Column %s isn't in table %s", columnNames.get(i),
+                        tableName));
+                }
+                continue;
+            }
+
+            cols[i] = ColumnRefs.EXPRESSION_KEY;
+            try {
+                exprs[i] = IndexUtils.makeKeyExpression(keyExpressions.get(i),
+                    schema);
+            }
+            catch (IllegalArgumentException | SchemaNameException e) {
+                throw new ExecutionException(String.format(
+                    "Invalid key for index %s:  %s", indexName,
+                    e.getMessage()), e);
+            }
+        }
+
+        try {
+            return new ColumnRefs(indexName, cols, exprs, schema);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ExecutionException(String.format(
+                "Index %s can't have the same column as a key more than once",
+                indexName), e);
+        }
+    }
 }
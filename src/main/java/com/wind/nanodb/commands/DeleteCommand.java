@@ -135,6 +135,12 @@ public class DeleteCommand extends QueryCommand {
     }
 
 
+    @Override
+    protected TableInfo getModifiedTable() {
+        return tableInfo;
+    }
+
+
     @Override
     protected TupleProcessor getTupleProcessor(EventDispatcher eventDispatcher) {
         return new TupleRemover(eventDispatcher, tableInfo);
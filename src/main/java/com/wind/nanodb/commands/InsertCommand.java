@@ -241,6 +241,12 @@ public class InsertCommand extends QueryCommand {
     }
 
 
+    @Override
+    protected TableInfo getModifiedTable() {
+        return tableInfo;
+    }
+
+
     @Override
     protected TupleProcessor getTupleProcessor(EventDispatcher eventDispatcher) {
         return new TupleInserter(eventDispatcher, tableInfo);
@@ -1,9 +1,16 @@
 package com.wind.nanodb.commands;
 
 
+import java.io.IOException;
+
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.server.EventDispatcher;
 import com.wind.nanodb.server.NanoDBServer;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TableManager;
 
 
 /**
@@ -58,7 +65,42 @@ public class OptimizeCommand extends Command {
 
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
-        throw new ExecutionException("Not yet implemented!");
+
+        // Make sure that all the tables are valid.
+
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        EventDispatcher eventDispatcher = server.getEventDispatcher();
+
+        ArrayList<TableInfo> tableInfos = new ArrayList<>();
+
+        for (String table : tableNames) {
+            try {
+                TableInfo tableInfo = tableManager.openTable(table);
+                tableInfos.add(tableInfo);
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not open table " + table, ioe);
+            }
+        }
+
+        // Now, optimize each table.  Tuples that are moved to a new
+        // file-pointer are reported to the row-event listeners, so that the
+        // table's indexes are kept up-to-date.
+
+        for (TableInfo tableInfo : tableInfos) {
+            try {
+                out.println("Optimizing table " + tableInfo.getTableName());
+                tableManager.optimizeTable(tableInfo,
+                    (oldRef, newTuple) -> eventDispatcher.fireAfterRowMoved(
+                        tableInfo, oldRef, newTuple));
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not optimize table " +
+                    tableInfo.getTableName(), ioe);
+            }
+        }
+        out.println("Optimization complete.");
     }
 
 
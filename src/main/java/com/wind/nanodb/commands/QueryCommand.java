@@ -3,6 +3,8 @@ package com.wind.nanodb.commands;
 
 import java.io.IOException;
 
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.server.EventDispatchException;
 import com.wind.nanodb.server.EventDispatcher;
 import com.wind.nanodb.server.NanoDBServer;
 import com.wind.nanodb.storage.StorageManager;
@@ -105,10 +107,10 @@ public abstract class QueryCommand extends Command {
 
                 // Execute the query plan, then print out the evaluation stats.
 
-                TupleProcessor processor =
-                    getTupleProcessor(server.getEventDispatcher());
+                EventDispatcher eventDispatcher = server.getEventDispatcher();
+                TupleProcessor processor = getTupleProcessor(eventDispatcher);
 
-                EvalStats stats = QueryEvaluator.executePlan(plan, processor);
+                EvalStats stats = executePlan(eventDispatcher, processor);
 
                 // Print out the evaluation statistics.
 
@@ -166,6 +168,65 @@ public abstract class QueryCommand extends Command {
     }
 
 
+    /**
+     * Executes the query plan, handing its tuples to the tuple-processor.  If
+     * the command changes the rows of a table, the row-event listeners are
+     * told when the command starts and finishes changing them, so that they
+     * can do their work for all of the rows at once.
+     *
+     * @param eventDispatcher used for notifying other components in the
+     *        database when the command starts and finishes changing rows
+     *
+     * @param processor the tuple-processor to receive the plan's tuples
+     *
+     * @return statistics about the plan evaluation
+     *
+     * @throws Exception if an error occurs during query evaluation or during
+     *         tuple-processing
+     */
+    private EvalStats executePlan(EventDispatcher eventDispatcher,
+                                  TupleProcessor processor) throws Exception {
+        TableInfo tableInfo = getModifiedTable();
+        if (tableInfo == null)
+            return QueryEvaluator.executePlan(plan, processor);
+
+        eventDispatcher.fireBeforeStatement(tableInfo);
+
+        EvalStats stats;
+        try {
+            stats = QueryEvaluator.executePlan(plan, processor);
+        }
+        catch (Exception e) {
+            // The rows that were changed before the failure stay changed, so
+            // the listeners must still finish their work for them.  The
+            // original failure is the one to report, though.
+            try {
+                eventDispatcher.fireAfterStatement(tableInfo);
+            }
+            catch (EventDispatchException e2) {
+                logger.error("Couldn't finish changing rows of table " +
+                    tableInfo.getTableName() + " after a failure", e2);
+            }
+            throw e;
+        }
+
+        eventDispatcher.fireAfterStatement(tableInfo);
+        return stats;
+    }
+
+
+    /**
+     * Returns the table whose rows this command changes, or {@code null} if
+     * the command doesn't change any rows.  This is only called after
+     * {@link #prepareQueryPlan}, so that subclasses can open the table there.
+     *
+     * @return the table whose rows this command changes, or {@code null}
+     */
+    protected TableInfo getModifiedTable() {
+        return null;
+    }
+
+
     /**
      * Prepares an execution plan for generating the tuples that this query
      * command will operate on.  Since the specific plan to generate depends
@@ -0,0 +1,57 @@
+package com.wind.nanodb.commands;
+
+
+import java.util.List;
+
+import com.wind.nanodb.indexes.IndexBuildProgress;
+import com.wind.nanodb.server.NanoDBServer;
+
+
+/**
+ * Implements the "SHOW INDEX BUILDS" command, which reports the progress of
+ * the index builds that are running, and of the last few that finished.
+ */
+public class ShowIndexBuildsCommand extends Command {
+
+    public ShowIndexBuildsCommand() {
+        super(Command.Type.UTILITY);
+    }
+
+
+    @Override
+    public void execute(NanoDBServer server) throws ExecutionException {
+        List<IndexBuildProgress> builds = IndexBuildProgress.getBuilds();
+        if (builds.isEmpty()) {
+            out.println("No index builds.");
+            return;
+        }
+
+        String formatStr = "| %-30s | %-8s | %15s | %8s | %23s | %9s |%n";
+        String lineStr = "+--------------------------------+----------+" +
+            "-----------------+----------+-------------------------+" +
+            "-----------+";
+
+        out.println(lineStr);
+        out.printf(formatStr, "INDEX", "PHASE", "PAGES SCANNED", "RUNS",
+            "ENTRIES LOADED", "SECONDS");
+        out.println(lineStr);
+        for (IndexBuildProgress build : builds) {
+            out.printf(formatStr,
+                build.getTableName() + "." + build.getIndexName(),
+                build.getPhase(),
+                build.getPagesScanned() + "/" + build.getTotalPages(),
+                build.getNumRuns(),
+                build.getEntriesLoaded() + "/" + build.getEntriesExtracted(),
+                String.format("%.1f", build.getElapsedTime() / 1000.0));
+        }
+        out.println(lineStr);
+
+        for (IndexBuildProgress build : builds) {
+            if (build.getError() != null) {
+                out.printf("Build of %s.%s failed:  %s%n",
+                    build.getTableName(), build.getIndexName(),
+                    build.getError());
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.wind.nanodb.commands;
 
 import com.wind.nanodb.server.NanoDBServer;
 import com.wind.nanodb.server.performance.PerformanceCounters;
+import com.wind.nanodb.storage.BufferManager;
+import com.wind.nanodb.storage.BufferPool;
 
 
 /**
@@ -13,6 +15,10 @@ public class ShowSystemStatsCommand extends Command {
     public static final String STORAGE_SYSTEM = "storage";
 
 
+    /** Per-pool statistics of the Buffer Manager's page cache. */
+    public static final String BUFFER_POOL_SYSTEM = "bufferpool";
+
+
     /** The subsystem that we are displaying statistics for. */
     private String systemName;
 
@@ -24,7 +30,13 @@ public class ShowSystemStatsCommand extends Command {
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_READ },
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_WRITTEN },
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_CHANGES },
-        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_DISTANCE_TRAVELED }
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_DISTANCE_TRAVELED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_UNCOMPRESSED_BYTES_WRITTEN },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_COMPRESSED_BYTES_WRITTEN },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_DECOMPRESSED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_DECOMPRESS_TIME },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_ASYNC_BATCHES },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_PREFETCHED }
     };
 
 
@@ -37,7 +49,8 @@ public class ShowSystemStatsCommand extends Command {
         this.systemName = systemName.trim().toLowerCase();
 
         // Make sure the actual system-name is recognized!
-        if (!this.systemName.equals(STORAGE_SYSTEM)) {
+        if (!this.systemName.equals(STORAGE_SYSTEM) &&
+            !this.systemName.equals(BUFFER_POOL_SYSTEM)) {
             throw new IllegalArgumentException(
                 "Unrecognized system-stats argument:  " + this.systemName);
         }
@@ -46,6 +59,11 @@ public class ShowSystemStatsCommand extends Command {
 
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
+        if (systemName.equals(BUFFER_POOL_SYSTEM)) {
+            showBufferPoolStats(server);
+            return;
+        }
+
         for (String[] pair : PERF_COUNTERS) {
             if (pair[0].equals(systemName)) {
                 String name = pair[1];
@@ -53,6 +71,33 @@ public class ShowSystemStatsCommand extends Command {
                 out.printf("%s = %d%n", name, value);
             }
         }
+
+        if (systemName.equals(STORAGE_SYSTEM)) {
+            // The compression ratio is derived from two of the counters.
+            long compressed = PerformanceCounters.get(
+                PerformanceCounters.STORAGE_COMPRESSED_BYTES_WRITTEN);
+            if (compressed > 0) {
+                long uncompressed = PerformanceCounters.get(
+                    PerformanceCounters.STORAGE_UNCOMPRESSED_BYTES_WRITTEN);
+                out.printf("storage.compressionRatio = %.2f%n",
+                    (double) uncompressed / (double) compressed);
+            }
+        }
     }
-}
 
+
+    private void showBufferPoolStats(NanoDBServer server) {
+        BufferManager bufferManager =
+            server.getStorageManager().getBufferManager();
+
+        for (BufferPool pool : bufferManager.getBufferPools()) {
+            String prefix = BUFFER_POOL_SYSTEM + "." + pool.getName();
+            out.printf("%s.pagesCached = %d%n", prefix, pool.getPagesCached());
+            out.printf("%s.minPages = %d%n", prefix, pool.getMinPages());
+            out.printf("%s.maxPages = %d%n", prefix, pool.getMaxPages());
+            out.printf("%s.hits = %d%n", prefix, pool.getHits());
+            out.printf("%s.misses = %d%n", prefix, pool.getMisses());
+            out.printf("%s.evictions = %d%n", prefix, pool.getEvictions());
+        }
+    }
+}
@@ -207,6 +207,12 @@ public class UpdateCommand extends QueryCommand {
     }
 
 
+    @Override
+    protected TableInfo getModifiedTable() {
+        return tableInfo;
+    }
+
+
     @Override
     protected TupleProcessor getTupleProcessor(EventDispatcher eventDispatcher) {
         return new TupleUpdater(eventDispatcher, tableInfo, values);
@@ -13,6 +13,8 @@ import com.wind.nanodb.server.NanoDBServer;
 import com.wind.nanodb.storage.StorageManager;
 import com.wind.nanodb.storage.TableManager;
 import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.btreefile.BTreeFileVerifier;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
 import org.apache.log4j.Logger;
 
 import com.wind.nanodb.relations.TableInfo;
@@ -102,9 +104,7 @@ public class VerifyCommand extends Command {
                 out.println("Verifying table " + tableName);
 
                 TupleFile tableTupleFile = tableInfo.getTupleFile();
-                errors = tableTupleFile.verify();
-                for (String error : errors)
-                    out.println(" * " + error);
+                verifyTupleFile(storageManager, tableTupleFile);
 
                 TableSchema schema = tableInfo.getSchema();
                 for (String indexName : schema.getIndexNames()) {
@@ -114,9 +114,12 @@ public class VerifyCommand extends Command {
                         " on table " + tableName);
 
                     TupleFile indexTupleFile = indexInfo.getTupleFile();
-                    errors = IndexUtils.verifyIndex(tableTupleFile, indexTupleFile);
+                    errors = IndexUtils.verifyIndex(tableTupleFile,
+                        indexTupleFile, indexInfo.getTableColumnRefs());
                     for (String error : errors)
                         out.println(" * " + error);
+
+                    verifyTupleFile(storageManager, indexTupleFile);
                 }
             }
             catch (IOException ioe) {
@@ -128,6 +131,40 @@ public class VerifyCommand extends Command {
     }
 
 
+    /**
+     * Verifies the structure of a tuple file, and prints any errors that are
+     * found.  For a B<sup>+</sup> tree file, this also prints how full the
+     * file's leaves are on average, so that the effect of the file's fill
+     * factor can be seen.
+     *
+     * @param storageManager the storage manager
+     *
+     * @param tupleFile the tuple file to verify
+     *
+     * @throws IOException if an IO error occurs while verifying the file
+     */
+    private void verifyTupleFile(StorageManager storageManager,
+                                 TupleFile tupleFile) throws IOException {
+        List<String> errors;
+        if (tupleFile instanceof BTreeTupleFile) {
+            BTreeTupleFile btreeFile = (BTreeTupleFile) tupleFile;
+            BTreeFileVerifier verifier =
+                new BTreeFileVerifier(storageManager, btreeFile);
+            errors = verifier.verify();
+
+            out.printf("%d leaf pages, %.1f%% full on average " +
+                "(fill factor %d%%)%n", verifier.getNumLeafPages(),
+                verifier.getAverageLeafFill(), btreeFile.getFillFactor());
+        }
+        else {
+            errors = tupleFile.verify();
+        }
+
+        for (String error : errors)
+            out.println(" * " + error);
+    }
+
+
     /**
      * Prints a simple representation of the verify command, including the
      * names of the tables to be verified.
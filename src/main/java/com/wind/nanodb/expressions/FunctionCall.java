@@ -173,11 +173,12 @@ public class FunctionCall extends Expression {
      * Creates a copy of expression.
      */
     @Override
-    @SuppressWarnings("unchecked")
     protected Object clone() throws CloneNotSupportedException {
         FunctionCall expr = (FunctionCall) super.clone();
 
-        expr.args = (ArrayList<Expression>) args.clone();
+        expr.args = new ArrayList<>(args.size());
+        for (Expression arg : args)
+            expr.args.add(arg.duplicate());
         expr.function = (ScalarFunction) function.clone();
 
         return expr;
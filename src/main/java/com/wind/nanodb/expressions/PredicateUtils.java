@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.Iterator;
 
 import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.SchemaNameException;
 
 
 /**
@@ -13,6 +14,30 @@ import com.wind.nanodb.relations.Schema;
  * analyzing and manipulating predicates.
  */
 public class PredicateUtils {
+
+    /**
+     * A conjunct that compares a column of a schema with a literal value
+     * that isn't <tt>NULL</tt>, or that tests whether the column is
+     * <tt>NULL</tt>.
+     */
+    private static class ColumnCondition {
+        /** The index of the column in the schema. */
+        int column;
+
+        /**
+         * The comparison between the column and the value, or {@code null}
+         * if the condition is an <tt>IS [NOT] NULL</tt> test.
+         */
+        CompareOperator.Type type;
+
+        /** The value that the column is compared with. */
+        Object value;
+
+        /** For an <tt>IS [NOT] NULL</tt> test, true if it is inverted. */
+        boolean notNull;
+    }
+
+
     /** This class should not be instantiated. */
     private PredicateUtils() {
         throw new RuntimeException("This class should not be instantiated.");
@@ -191,4 +216,251 @@ public class PredicateUtils {
             }
         }
     }
+
+
+    /**
+     * <p>
+     * Returns true if every row that satisfies a collection of conjuncts is
+     * sure to satisfy a condition as well.  This is used to tell whether a
+     * query's predicate only selects rows that are in a partial index.
+     * </p>
+     * <p>
+     * This is only a simple check, which never claims an implication that
+     * doesn't hold, but misses many that do.  Each conjunct of the condition
+     * must either appear among the conjuncts, or be a comparison of a column
+     * with a literal value (or an <tt>IS [NOT] NULL</tt> test of a column)
+     * that is implied by one of the conjuncts on the same column.  For
+     * example, <tt>a = 5</tt> implies <tt>a &gt; 3</tt>, <tt>a &lt; 2</tt>
+     * implies <tt>a &lt;&gt; 2</tt>, and any comparison of <tt>a</tt> implies
+     * <tt>a IS NOT NULL</tt>.  Columns are matched by resolving them against
+     * the specified schema, so that qualified and unqualified names of the
+     * same column match.
+     * </p>
+     *
+     * @param conjuncts the conjuncts that are known to be true of a row
+     *
+     * @param condition the condition to check, or {@code null} if there is
+     *        no condition
+     *
+     * @param schema the schema that the columns of the conjuncts and the
+     *        condition are resolved against
+     *
+     * @return true if the conjuncts imply the condition
+     */
+    public static boolean implies(Collection<Expression> conjuncts,
+                                  Expression condition, Schema schema) {
+        if (condition == null)
+            return true;
+
+        ArrayList<ColumnCondition> known = new ArrayList<>();
+        for (Expression conjunct : conjuncts) {
+            ColumnCondition cond = getColumnCondition(conjunct, schema);
+            if (cond != null)
+                known.add(cond);
+        }
+
+        ArrayList<Expression> required = new ArrayList<>();
+        collectConjuncts(condition, required);
+        for (Expression term : required) {
+            if (conjuncts.contains(term))
+                continue;
+
+            ColumnCondition cond = getColumnCondition(term, schema);
+            if (cond == null)
+                return false;
+
+            boolean implied = false;
+            for (ColumnCondition knownCond : known) {
+                if (knownCond.column == cond.column &&
+                    impliesCondition(knownCond, cond)) {
+                    implied = true;
+                    break;
+                }
+            }
+
+            if (!implied)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * If an expression compares a column of the schema with a literal value
+     * that isn't <tt>NULL</tt>, or tests whether a column is <tt>NULL</tt>,
+     * returns a description of the condition.  Otherwise, returns
+     * {@code null}.
+     *
+     * @param expr the expression to examine
+     *
+     * @param schema the schema to resolve the column against
+     *
+     * @return a description of the condition, or {@code null} if it isn't a
+     *         simple condition on one column
+     */
+    private static ColumnCondition getColumnCondition(Expression expr,
+                                                      Schema schema) {
+        ColumnCondition cond = new ColumnCondition();
+        Expression colExpr;
+
+        if (expr instanceof IsNullOperator) {
+            IsNullOperator isNull = (IsNullOperator) expr;
+            colExpr = isNull.getExpression();
+            cond.notNull = isNull.isInverted();
+        }
+        else if (expr instanceof CompareOperator) {
+            // Put the column on the left side of the comparison.
+            CompareOperator comp = foldConstants((CompareOperator) expr);
+            comp.normalize();
+            if (!(comp.getRightExpression() instanceof LiteralValue))
+                return null;
+
+            colExpr = comp.getLeftExpression();
+            cond.type = comp.getType();
+            cond.value = comp.getRightExpression().evaluate();
+            if (cond.value == null)
+                return null;
+        }
+        else {
+            return null;
+        }
+
+        if (!(colExpr instanceof ColumnValue))
+            return null;
+
+        try {
+            cond.column = schema.getColumnIndex(
+                ((ColumnValue) colExpr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return null;
+        }
+
+        return (cond.column >= 0 ? cond : null);
+    }
+
+
+    /**
+     * Returns a copy of a comparison in which each side that doesn't refer
+     * to any columns, such as <tt>-5</tt>, is replaced with its value.
+     *
+     * @param comp the comparison to copy
+     *
+     * @return a copy of the comparison with its constant sides evaluated
+     */
+    public static CompareOperator foldConstants(CompareOperator comp) {
+        Expression left = comp.getLeftExpression();
+        Expression right = comp.getRightExpression();
+
+        if (!left.hasSymbols())
+            left = new LiteralValue(left.evaluate());
+        else
+            left = left.duplicate();
+
+        if (!right.hasSymbols())
+            right = new LiteralValue(right.evaluate());
+        else
+            right = right.duplicate();
+
+        return new CompareOperator(comp.getType(), left, right);
+    }
+
+
+    /**
+     * Returns true if every value of a column that satisfies one condition
+     * also satisfies another condition on the same column.
+     */
+    private static boolean impliesCondition(ColumnCondition known,
+                                            ColumnCondition required) {
+        if (required.type == null) {
+            if (!required.notNull)
+                return known.type == null && !known.notNull;
+
+            // A comparison is never true for a NULL value.
+            return known.type != null || known.notNull;
+        }
+
+        if (known.type == null)
+            return false;
+
+        int cmp;
+        try {
+            TypeConverter.Pair coerced =
+                TypeConverter.coerceComparison(known.value, required.value);
+            @SuppressWarnings("unchecked")
+            Comparable<Object> knownValue = (Comparable<Object>) coerced.value1;
+            cmp = knownValue.compareTo(coerced.value2);
+        }
+        catch (TypeCastException e) {
+            return false;
+        }
+
+        CompareOperator.Type type = required.type;
+        switch (known.type) {
+        case EQUALS:
+            return compareResultMatches(type, cmp);
+
+        case NOT_EQUALS:
+            return type == CompareOperator.Type.NOT_EQUALS && cmp == 0;
+
+        case LESS_THAN:
+            return cmp <= 0 && (type == CompareOperator.Type.LESS_THAN ||
+                type == CompareOperator.Type.LESS_OR_EQUAL ||
+                type == CompareOperator.Type.NOT_EQUALS);
+
+        case LESS_OR_EQUAL:
+            if (type == CompareOperator.Type.LESS_OR_EQUAL)
+                return cmp <= 0;
+
+            return cmp < 0 && (type == CompareOperator.Type.LESS_THAN ||
+                type == CompareOperator.Type.NOT_EQUALS);
+
+        case GREATER_THAN:
+            return cmp >= 0 && (type == CompareOperator.Type.GREATER_THAN ||
+                type == CompareOperator.Type.GREATER_OR_EQUAL ||
+                type == CompareOperator.Type.NOT_EQUALS);
+
+        case GREATER_OR_EQUAL:
+            if (type == CompareOperator.Type.GREATER_OR_EQUAL)
+                return cmp >= 0;
+
+            return cmp > 0 && (type == CompareOperator.Type.GREATER_THAN ||
+                type == CompareOperator.Type.NOT_EQUALS);
+
+        default:
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns true if the result of comparing two values with
+     * {@link Comparable#compareTo} satisfies a comparison.
+     */
+    private static boolean compareResultMatches(CompareOperator.Type type,
+                                                int cmp) {
+        switch (type) {
+        case EQUALS:
+            return cmp == 0;
+
+        case NOT_EQUALS:
+            return cmp != 0;
+
+        case LESS_THAN:
+            return cmp < 0;
+
+        case LESS_OR_EQUAL:
+            return cmp <= 0;
+
+        case GREATER_THAN:
+            return cmp > 0;
+
+        case GREATER_OR_EQUAL:
+            return cmp >= 0;
+
+        default:
+            return false;
+        }
+    }
 }
@@ -56,6 +56,7 @@ public class FunctionDirectory {
         addFunction("IF", If.class);
         addFunction("IFNULL", IfNull.class);
         addFunction("LEAST", Least.class);
+        addFunction("LOWER", Lower.class);
         addFunction("NULLIF", NullIf.class);
         addFunction("POW", Pow.class);
         addFunction("POWER", Pow.class);
@@ -63,6 +64,7 @@ public class FunctionDirectory {
         addFunction("SIN", Sin.class);
         addFunction("SQRT", Sqrt.class);
         addFunction("TAN", Tan.class);
+        addFunction("UPPER", Upper.class);
 
         addFunction("PERF_COUNTER", ReadPerfCounter.class);
         addFunction("RESET_PERF_COUNTER", ResetPerfCounter.class);
@@ -22,6 +22,13 @@ public class ResetPerfCounter extends SimpleFunction {
     }
 
 
+    /** Performance counters change as queries run. */
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
+
     @Override
     public Object evaluate(Environment env, List<Expression> args) {
         if (args.size() != 1) {
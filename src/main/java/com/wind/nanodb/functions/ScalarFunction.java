@@ -19,4 +19,17 @@ public abstract class ScalarFunction extends Function {
      * @return the column type of the resulting column
      */
     public abstract ColumnType getReturnType(List<Expression> args, Schema schema);
+
+
+    /**
+     * Returns true if the function always returns the same result for the
+     * same arguments.  Only deterministic functions can be used in the keys
+     * of an index, since the keys are computed when rows are stored, and
+     * again when they are looked up.
+     *
+     * @return true if the function is deterministic
+     */
+    public boolean isDeterministic() {
+        return true;
+    }
 }
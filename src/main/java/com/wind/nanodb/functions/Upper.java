@@ -0,0 +1,44 @@
+package com.wind.nanodb.functions;
+
+
+import java.util.List;
+
+import com.wind.nanodb.expressions.Environment;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.ExpressionException;
+import com.wind.nanodb.expressions.TypeConverter;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.Schema;
+
+
+/**
+ * Converts a string to upper case.  If the argument is NULL, returns NULL.
+ */
+public class Upper extends SimpleFunction {
+    @Override
+    public ColumnType getReturnType(List<Expression> args, Schema schema) {
+        if (args.size() != 1) {
+            throw new ExpressionException("Cannot call UPPER on " +
+                args.size() + " arguments");
+        }
+
+        // The result has the same type as the argument.
+        return args.get(0).getColumnInfo(schema).getType();
+    }
+
+
+    @Override
+    public Object evaluate(Environment env, List<Expression> args) {
+        if (args.size() != 1) {
+            throw new ExpressionException("Cannot call UPPER on " +
+                args.size() + " arguments");
+        }
+
+        Object argVal = args.get(0).evaluate(env);
+
+        if (argVal == null)
+            return null;
+
+        return TypeConverter.getStringValue(argVal).toUpperCase();
+    }
+}
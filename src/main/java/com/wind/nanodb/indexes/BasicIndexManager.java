@@ -4,23 +4,26 @@ package com.wind.nanodb.indexes;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
-import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.commands.CommandProperties;
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.KeyColumnRefs;
 import com.wind.nanodb.relations.TableConstraintType;
 import com.wind.nanodb.relations.TableInfo;
 import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.storage.BufferPool;
 import com.wind.nanodb.storage.DBFile;
 import com.wind.nanodb.storage.DBFileType;
 import com.wind.nanodb.storage.FileManager;
-import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.PageCompressor;
 import com.wind.nanodb.storage.TupleFile;
 import com.wind.nanodb.storage.StorageManager;
 import com.wind.nanodb.storage.TupleFileManager;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
 
 
 public class BasicIndexManager implements IndexManager {
@@ -83,6 +86,14 @@ public class BasicIndexManager implements IndexManager {
     @Override
     public IndexInfo addIndexToTable(TableInfo tableInfo,
         ColumnRefs indexColRefs) throws IOException {
+        return addIndexToTable(tableInfo, indexColRefs, null);
+    }
+
+
+    @Override
+    public IndexInfo addIndexToTable(TableInfo tableInfo,
+        ColumnRefs indexColRefs, CommandProperties properties)
+        throws IOException {
 
         if (tableInfo == null)
             throw new IllegalArgumentException("tableInfo cannot be null");
@@ -118,6 +129,7 @@ public class BasicIndexManager implements IndexManager {
             indexName != null ? indexName : "[unnamed]", tableName));
 
         IndexInfo indexInfo = new IndexInfo(tableInfo, indexColRefs);
+        indexInfo.setProperties(properties);
         if (indexName == null) {
             // This is an unnamed index.
             logger.debug("Creating the new unnamed index on disk.");
@@ -149,49 +161,19 @@ public class BasicIndexManager implements IndexManager {
     }
 
 
+    /**
+     * Fills a new index with entries for the rows already in its table.
+     * The entries are sorted in parallel and the index is built from the
+     * bottom up; see {@link IndexBuilder}.
+     */
     private void populateIndex(TableInfo srcTableInfo, IndexInfo newIndexInfo)
         throws IOException {
 
-        String tableName = srcTableInfo.getTableName();
-        String indexName = newIndexInfo.getIndexName();
-
-        ColumnRefs columnRefs = newIndexInfo.getTableColumnRefs();
-        TableConstraintType constraintType = columnRefs.getConstraintType();
-        boolean unique = (constraintType != null && constraintType.isUnique());
-
         logger.debug(String.format("Populating new index %s with existing " +
-            "tuples in table %s.", indexName, tableName));
-
-        TupleFile tableTupleFile = srcTableInfo.getTupleFile();
-        TupleFile indexTupleFile = newIndexInfo.getTupleFile();
-
-        // Traverse the tuples in the table, so we can populate the index.
-        PageTuple curTuple = (PageTuple) tableTupleFile.getFirstTuple();
-        while (curTuple != null) {
-            TupleLiteral idxTup;
-            if (unique) {
-                // Check if the index already has a tuple with this value.
-                // The tuple we generate for this shouldn't include a tuple-
-                // pointer since we just want to see if the value is repeated.
-                idxTup = IndexUtils.makeTableSearchKey(columnRefs, curTuple,
-                    /* findExactTuple */ false);
-
-                if (IndexUtils.findTupleInIndex(idxTup, indexTupleFile) != null) {
-                    // Adding this row would violate the unique index.
-                    throw new IllegalStateException("Unique index " +
-                        "already contains a tuple with this value.");
-                }
-            }
-
-            // Generate the "index-schema" version of the tuple from the
-            // "table-schema" version of the tuple.
-            idxTup = IndexUtils.makeTableSearchKey(columnRefs, curTuple,
-                /* findExactTuple */ true);
-            indexTupleFile.addTuple(idxTup);
+            "tuples in table %s.", newIndexInfo.getIndexName(),
+            srcTableInfo.getTableName()));
 
-            // Move on to the next tuple in the table file.
-            curTuple = (PageTuple) tableTupleFile.getNextTuple(curTuple);
-        }
+        new IndexBuilder(storageManager, srcTableInfo, newIndexInfo).build();
     }
 
 
@@ -219,6 +201,14 @@ public class BasicIndexManager implements IndexManager {
 
         String idxFileName = getIndexFileName(indexInfo.getTableName(), indexName);
 
+        // Generate a schema based on the index information.  We do this
+        // before creating the file so that bad properties don't leave an
+        // empty index file behind.
+        TableSchema indexSchema = IndexUtils.makeIndexSchema(
+            indexInfo.getTableInfo().getSchema(),
+            indexInfo.getTableColumnRefs());
+        applyIndexProperties(indexInfo, indexSchema);
+
         // TODO:  the file type and page size should be specified in the
         //        IndexInfo object
         int pageSize = StorageManager.getCurrentPageSize();
@@ -227,18 +217,17 @@ public class BasicIndexManager implements IndexManager {
 
         // First, create a new DBFile that the tuple file will go into.
         FileManager fileManager = storageManager.getFileManager();
-        DBFile dbFile = fileManager.createDBFile(idxFileName, type, pageSize);
+        boolean compressed = PageCompressor.isCompressionEnabled(
+            indexSchema.getProperty(PageCompressor.PROP_COMPRESSION));
+        DBFile dbFile = fileManager.createDBFile(idxFileName, type, pageSize,
+            compressed);
         logger.debug("Created new DBFile for index " + indexName +
                      " at path " + dbFile.getDataFile());
 
-        // Generate a schema based on the index information.
-        TableSchema indexSchema = IndexUtils.makeIndexSchema(
-            indexInfo.getTableInfo().getSchema(),
-            indexInfo.getTableColumnRefs());
-
         // Now, initialize it to be a tuple file with the specified type and
         // schema.
         TupleFile tupleFile = tupleFileManager.createTupleFile(dbFile, indexSchema);
+        storageManager.assignBufferPool(tupleFile);
         indexInfo.setTupleFile(tupleFile);
 
         // Cache this index since it's now considered "open".
@@ -246,6 +235,50 @@ public class BasicIndexManager implements IndexManager {
     }
 
 
+    /**
+     * Stores the properties specified for a new index into the index's
+     * schema.  An index goes into the same buffer pool as its table, and is
+     * compressed if its table is, unless the <tt>CREATE INDEX</tt> command
+     * specifies otherwise.
+     *
+     * @param indexInfo the details of the index being created
+     * @param indexSchema the schema of the new index
+     *
+     * @throws IllegalArgumentException if an unrecognized property is
+     *         specified, or if the fill factor is invalid
+     */
+    private void applyIndexProperties(IndexInfo indexInfo,
+                                      TableSchema indexSchema) {
+        TableSchema tableSchema = indexInfo.getTableInfo().getSchema();
+        for (String name : new String[] { BufferPool.PROP_BUFFER_POOL,
+            PageCompressor.PROP_COMPRESSION }) {
+            String value = tableSchema.getProperty(name);
+            if (value != null)
+                indexSchema.setProperty(name, value);
+        }
+
+        CommandProperties properties = indexInfo.getProperties();
+        if (properties == null)
+            return;
+
+        HashSet<String> names = new HashSet<>(properties.getNames());
+        for (String name : new String[] { BufferPool.PROP_BUFFER_POOL,
+            BufferPool.PROP_MIN_PAGES, BufferPool.PROP_MAX_PAGES,
+            PageCompressor.PROP_COMPRESSION, BTreeTupleFile.PROP_FILL_FACTOR }) {
+            if (names.remove(name))
+                indexSchema.setProperty(name, properties.get(name).toString());
+        }
+
+        BTreeTupleFile.parseFillFactor(
+            indexSchema.getProperty(BTreeTupleFile.PROP_FILL_FACTOR));
+
+        if (!names.isEmpty()) {
+            throw new IllegalArgumentException("Unrecognized property " +
+                "name(s) specified:  " + names);
+        }
+    }
+
+
     @Override
     public void createUnnamedIndex(IndexInfo indexInfo) throws IOException {
 
@@ -2,8 +2,13 @@ package com.wind.nanodb.indexes;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
@@ -16,6 +21,7 @@ import com.wind.nanodb.expressions.ColumnValue;
 import com.wind.nanodb.expressions.CompareOperator;
 import com.wind.nanodb.expressions.Expression;
 import com.wind.nanodb.expressions.LiteralValue;
+import com.wind.nanodb.expressions.TupleComparator;
 import com.wind.nanodb.expressions.TupleLiteral;
 
 import com.wind.nanodb.relations.ColumnRefs;
@@ -29,9 +35,13 @@ import com.wind.nanodb.relations.TableSchema;
 import com.wind.nanodb.relations.Tuple;
 
 import com.wind.nanodb.server.EventDispatchException;
+import com.wind.nanodb.server.EventDispatcher;
 import com.wind.nanodb.server.NanoDBServer;
 import com.wind.nanodb.server.RowEventListener;
 
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.PageTuple;
 import com.wind.nanodb.storage.TupleFile;
 import com.wind.nanodb.storage.TableManager;
 import com.wind.nanodb.storage.StorageManager;
@@ -51,12 +61,138 @@ import com.wind.nanodb.storage.StorageManager;
  * This also has the benefit of invoking the row-event processing code, which
  * ensures that modified tables also have constraints enforced on them.
  * </p>
+ * <p>
+ * Every constraint is checked by looking up a key in the index that
+ * supports it.  While a statement runs, the results of these lookups are
+ * cached, since bulk loads into a referencing table tend to look up the same
+ * referenced keys over and over.  A table's indexes only change while one of
+ * its rows is being changed, and each row change starts with a "before"
+ * event, so the cached lookups on a table's indexes are forgotten at each of
+ * those events.
+ * </p>
+ * <p>
+ * If the <tt>nanodb.constraints.deferred</tt> property is set, the checks
+ * that the values of a new or updated row appear in the referenced tables
+ * are put off until the end of the statement.  The distinct keys are then
+ * looked up in sorted order, each one once.  This also allows a statement to
+ * add rows that refer to each other in any order.  Since a violation is
+ * only found after the statement has changed its rows, the rows that the
+ * statement added are deleted again, and the rows that it updated are given
+ * back their old values, before the violation is reported.  (Transactions
+ * don't undo the changes of a failed statement, so this can't be left to
+ * them.)  Rows deleted by <tt>ON DELETE</tt> actions are not restored.
+ * </p>
  */
 public class DatabaseConstraintEnforcer implements RowEventListener {
     /** A logging object for reporting anything interesting that happens. */
     private static Logger logger = Logger.getLogger(DatabaseConstraintEnforcer.class);
 
 
+    /**
+     * This property can be set to "true" to check foreign keys at the end of
+     * each statement, instead of as each row is changed.
+     */
+    public static final String PROP_DEFERRED = "nanodb.constraints.deferred";
+
+
+    /** By default, foreign keys are checked as each row is changed. */
+    public static final boolean DEFAULT_DEFERRED = false;
+
+
+    /**
+     * Returns true if foreign-key checks are put off until the end of each
+     * statement, based on the <tt>nanodb.constraints.deferred</tt> system
+     * property.
+     *
+     * @return true if foreign-key checks are deferred
+     */
+    public static boolean isDeferred() {
+        String str = System.getProperty(PROP_DEFERRED);
+        if (str == null)
+            return DEFAULT_DEFERRED;
+
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /**
+     * The foreign-key checks put off until the end of a statement, for one
+     * foreign key.
+     */
+    private static class DeferredChecks {
+        /** The referencing table, which the statement changed. */
+        String tableName;
+
+        /** The foreign key being checked. */
+        ForeignKeyColumnRefs foreignKey;
+
+        /** The index on the referenced table's key. */
+        IndexInfo referencedIndex;
+
+        /** The distinct keys to look up, in sorted order. */
+        TreeSet<TupleLiteral> keys =
+            new TreeSet<>(TupleComparator::compareTuples);
+    }
+
+
+    /**
+     * A row that a statement added or updated while foreign-key checks were
+     * deferred, so that the change can be undone if a check fails.
+     */
+    private static class RowChange {
+        /** The table that the row is in. */
+        TableInfo tableInfo;
+
+        /** The location of the row in the table. */
+        FilePointer ptr;
+
+        /** The row's values before an update, or null for a new row. */
+        TupleLiteral oldValues;
+
+        RowChange(TableInfo tableInfo, FilePointer ptr, TupleLiteral oldValues) {
+            this.tableInfo = tableInfo;
+            this.ptr = ptr;
+            this.oldValues = oldValues;
+        }
+    }
+
+
+    /** The constraint-checking state of the statements on one thread. */
+    private static class StatementState {
+        /**
+         * The number of statements in progress.  <tt>ON DELETE</tt> and
+         * <tt>ON UPDATE</tt> actions run statements inside other statements,
+         * and share the state of the outermost one.
+         */
+        int depth;
+
+        /**
+         * The results of index lookups made by the statement, keyed by table
+         * name, then by index name, then by the key that was looked up.
+         */
+        HashMap<String, HashMap<String, HashMap<TupleLiteral, Boolean>>>
+            lookups = new HashMap<>();
+
+        /** The deferred foreign-key checks, keyed by table and constraint. */
+        LinkedHashMap<String, DeferredChecks> deferredChecks =
+            new LinkedHashMap<>();
+
+        /**
+         * The rows added and updated while checks are deferred, in the order
+         * they were changed.
+         */
+        ArrayList<RowChange> rowChanges = new ArrayList<>();
+    }
+
+
+    /**
+     * The state of the statements in progress.  There is one enforcer for
+     * the whole server, and each session runs its statements on its own
+     * thread, so the state is kept per thread.
+     */
+    private ThreadLocal<StatementState> statementState = new ThreadLocal<>();
+
+
     private NanoDBServer server;
 
 
@@ -76,6 +212,220 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     }
 
 
+    /**
+     * Starts caching index lookups for a statement, unless it is nested
+     * inside another statement that is already doing so.
+     *
+     * @param tableInfo the table that the statement will change.
+     */
+    @Override
+    public void beforeStatement(TableInfo tableInfo) {
+        StatementState state = statementState.get();
+        if (state == null) {
+            state = new StatementState();
+            statementState.set(state);
+        }
+        state.depth++;
+    }
+
+
+    /**
+     * Performs the deferred foreign-key checks and forgets the cached index
+     * lookups at the end of the outermost statement.  If a check fails, the
+     * statement's row changes are undone before the violation is reported.
+     *
+     * @param tableInfo the table that the statement changed.
+     *
+     * @throws IOException if an index can't be read
+     */
+    @Override
+    public void afterStatement(TableInfo tableInfo) throws IOException {
+        StatementState state = statementState.get();
+        if (state == null)
+            return;
+
+        state.depth--;
+        if (state.depth > 0)
+            return;
+
+        statementState.remove();
+        try {
+            for (DeferredChecks checks : state.deferredChecks.values())
+                performDeferredChecks(checks);
+        }
+        catch (ConstraintViolationException e) {
+            undoRowChanges(state.rowChanges);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Undoes the row changes that a statement made while its foreign-key
+     * checks were deferred, newest first.  New rows are deleted, and updated
+     * rows are given back their old values.  The changes are made through
+     * the event dispatcher, so that the tables' indexes and constraints are
+     * maintained as usual; the statement is over by now, so the constraints
+     * are checked row by row.
+     *
+     * @param rowChanges the changes to undo, in the order they were made
+     *
+     * @throws IOException if a row can't be read or changed
+     */
+    private void undoRowChanges(List<RowChange> rowChanges)
+        throws IOException {
+
+        logger.debug(String.format("Undoing %d row changes after a failed " +
+            "deferred foreign-key check", rowChanges.size()));
+
+        EventDispatcher eventDispatcher = server.getEventDispatcher();
+        for (int i = rowChanges.size() - 1; i >= 0; i--) {
+            RowChange change = rowChanges.get(i);
+            TableInfo tableInfo = change.tableInfo;
+            TupleFile tupleFile = tableInfo.getTupleFile();
+
+            Tuple tuple;
+            try {
+                tuple = tupleFile.getTuple(change.ptr);
+            }
+            catch (InvalidFilePointerException e) {
+                throw new IOException("Row changed by the statement no " +
+                    "longer exists in table " + tableInfo.getTableName() +
+                    ":  " + change.ptr, e);
+            }
+
+            TupleLiteral values = new TupleLiteral(tuple);
+            if (change.oldValues == null) {
+                eventDispatcher.fireBeforeRowDeleted(tableInfo, tuple);
+                tupleFile.deleteTuple(tuple);
+                eventDispatcher.fireAfterRowDeleted(tableInfo, values);
+            }
+            else {
+                Schema schema = tableInfo.getSchema();
+                HashMap<String, Object> oldValues = new HashMap<>();
+                for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+                    oldValues.put(schema.getColumnInfo(iCol).getName(),
+                        change.oldValues.getColumnValue(iCol));
+                }
+
+                eventDispatcher.fireBeforeRowUpdated(tableInfo, tuple,
+                    change.oldValues);
+                tupleFile.updateTuple(tuple, oldValues);
+                eventDispatcher.fireAfterRowUpdated(tableInfo, values, tuple);
+            }
+            tuple.unpin();
+        }
+    }
+
+
+    /**
+     * Records a row that a statement added or updated, if its foreign-key
+     * checks are being deferred.
+     *
+     * @param tableInfo the table that the row is in
+     *
+     * @param tuple the row as it is in the table now
+     *
+     * @param oldValues the row's values before an update, or {@code null}
+     *        for a new row
+     */
+    private void recordRowChange(TableInfo tableInfo, Tuple tuple,
+                                 Tuple oldValues) {
+        StatementState state = statementState.get();
+        if (state == null || !isDeferred())
+            return;
+
+        state.rowChanges.add(new RowChange(tableInfo,
+            tuple.getExternalReference(),
+            oldValues != null ? new TupleLiteral(oldValues) : null));
+    }
+
+
+    /**
+     * Looks up each of the keys collected for a foreign key in the
+     * referenced table's index, in sorted order.
+     *
+     * @param checks the keys to look up
+     *
+     * @throws ConstraintViolationException if a key isn't in the index
+     * @throws IOException if the index can't be read
+     */
+    private void performDeferredChecks(DeferredChecks checks)
+        throws IOException {
+
+        logger.debug(String.format("Checking %d distinct keys of %s " +
+            "against index %s", checks.keys.size(), checks.foreignKey,
+            checks.referencedIndex.getIndexName()));
+
+        TupleFile tupleFile = checks.referencedIndex.getTupleFile();
+        for (TupleLiteral key : checks.keys) {
+            PageTuple found = IndexUtils.findTupleInIndex(key, tupleFile);
+            if (found == null) {
+                throw new ConstraintViolationException(String.format(
+                    "Rows with key %s were added to table %s; violates " +
+                    "foreign key constraint %s to referenced table %s", key,
+                    checks.tableName, checks.foreignKey.getConstraintName(),
+                    checks.foreignKey.getRefTable()));
+            }
+            found.unpin();
+        }
+    }
+
+
+    /**
+     * Forgets the cached lookups on a table's indexes, since they may be
+     * about to change.
+     *
+     * @param tableInfo the table whose row is about to change
+     */
+    private void forgetLookups(TableInfo tableInfo) {
+        StatementState state = statementState.get();
+        if (state != null)
+            state.lookups.remove(tableInfo.getTableName());
+    }
+
+
+    /**
+     * Returns true if an index contains an entry with the specified key.
+     * During a statement, the result is cached until a row of the indexed
+     * table changes.
+     *
+     * @param indexInfo the index to look in
+     *
+     * @param key the key values to look for
+     *
+     * @return true if the index has an entry with the key
+     *
+     * @throws IOException if the index can't be read
+     */
+    private boolean indexContainsKey(IndexInfo indexInfo, TupleLiteral key)
+        throws IOException {
+
+        Map<TupleLiteral, Boolean> lookups = null;
+        StatementState state = statementState.get();
+        if (state != null) {
+            lookups = state.lookups
+                .computeIfAbsent(indexInfo.getTableName(), t -> new HashMap<>())
+                .computeIfAbsent(indexInfo.getIndexName(), i -> new HashMap<>());
+
+            Boolean found = lookups.get(key);
+            if (found != null)
+                return found;
+        }
+
+        PageTuple foundTuple =
+            IndexUtils.findTupleInIndex(key, indexInfo.getTupleFile());
+        if (foundTuple != null)
+            foundTuple.unpin();
+
+        boolean found = (foundTuple != null);
+        if (lookups != null)
+            lookups.put(key, found);
+
+        return found;
+    }
+
+
     /**
      * Perform processing before a row is inserted into a table.
      *
@@ -86,6 +436,8 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     public void beforeRowInserted(TableInfo tableInfo, Tuple newTuple)
             throws IOException {
 
+        forgetLookups(tableInfo);
+
         TableSchema schema = tableInfo.getTupleFile().getSchema();
 
         // Check NOT NULL constraints first - they are cheapest.
@@ -134,20 +486,18 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     private boolean containsTuple(IndexInfo indexInfo, Tuple tableTuple)
         throws IOException {
 
-        Tuple searchKey = IndexUtils.makeTableSearchKey(
+        TupleLiteral searchKey = IndexUtils.makeTableSearchKey(
             indexInfo.getTableColumnRefs(), tableTuple, false);
 
-        Tuple foundTuple = IndexUtils.findTupleInIndex(searchKey,
-            indexInfo.getTupleFile());
-
-        return (foundTuple != null);
+        return indexContainsKey(indexInfo, searchKey);
     }
 
 
     /**
      * Perform processing after a row is inserted into a table.  For the
-     * database constraint enforcer, all the work is done in the before-insert
-     * handler.
+     * database constraint enforcer, all the checks are done in the
+     * before-insert handler; the new row is only recorded, in case deferred
+     * checks fail.
      *
      * @param tblFileInfo the table that the tuple was inserted into.
      * @param newTuple    the new tuple that was inserted into the table.
@@ -155,7 +505,7 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     @Override
     public void afterRowInserted(TableInfo tblFileInfo, Tuple newTuple)
             throws EventDispatchException {
-        // Do nothing!
+        recordRowChange(tblFileInfo, newTuple, null);
     }
 
     /**
@@ -169,6 +519,8 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     public void beforeRowUpdated(TableInfo tableInfo, Tuple oldTuple,
                                  Tuple newTuple) throws IOException {
 
+        forgetLookups(tableInfo);
+
         TableSchema schema = tableInfo.getSchema();
 
         // Check NOT NULL constraints first - they are cheapest.
@@ -215,7 +567,7 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     @Override
     public void afterRowUpdated(TableInfo tblFileInfo, Tuple oldValues,
                                 Tuple newTuple) throws EventDispatchException {
-        // Do nothing!
+        recordRowChange(tblFileInfo, newTuple, oldValues);
     }
 
     /**
@@ -228,6 +580,8 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     public void beforeRowDeleted(TableInfo tblFileInfo, Tuple oldTuple)
             throws EventDispatchException {
 
+        forgetLookups(tblFileInfo);
+
         // Check if deleting this tuple affects children tables via a foreign
         // key constraint.  Since the primary key is also a candidate key but
         // is stored separately, we check the PK first, and then iterate thru
@@ -266,6 +620,14 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     }
 
 
+    @Override
+    public void afterRowMoved(TableInfo tblFileInfo, FilePointer oldRef,
+                              Tuple newTuple) throws EventDispatchException {
+        // Moving a row doesn't change its values, so there is nothing to
+        // check.
+    }
+
+
     /**
      * This helper function verifies that a tuple being added to a table
      * satisfies all the NOT NULL constraints on the table.
@@ -312,6 +674,12 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
     private void checkReferencedTableForValue(TableInfo tableInfo,
         ForeignKeyColumnRefs foreignKey, Tuple tuple) throws IOException {
 
+        // A foreign key with a NULL value doesn't refer to anything.
+        for (int i = 0; i < foreignKey.size(); i++) {
+            if (tuple.isNullValue(foreignKey.getCol(i)))
+                return;
+        }
+
         String tableName = tableInfo.getTableName();
         String referencedTableName = foreignKey.getRefTable();
         TableInfo referencedTableInfo;
@@ -337,15 +705,29 @@ public class DatabaseConstraintEnforcer implements RowEventListener {
         IndexInfo referencedIndexInfo = indexManager.openIndex(
             referencedTableInfo, referencedKey.getIndexName());
 
-        TupleFile tupleFile = referencedIndexInfo.getTupleFile();
-
         // Create a tuple to probe the referenced table's index, so we can
         // enforce referential integrity.
         TupleLiteral probeTuple = new TupleLiteral();
         for (int i = 0; i < foreignKey.size(); i++)
             probeTuple.addValue(tuple.getColumnValue(foreignKey.getCol(i)));
 
-        if (IndexUtils.findTupleInIndex(probeTuple, tupleFile) == null) {
+        StatementState state = statementState.get();
+        if (state != null && isDeferred()) {
+            String checkName = tableName + "." + referencedTableName + "." +
+                referencedKey.getIndexName();
+            DeferredChecks checks = state.deferredChecks.get(checkName);
+            if (checks == null) {
+                checks = new DeferredChecks();
+                checks.tableName = tableName;
+                checks.foreignKey = foreignKey;
+                checks.referencedIndex = referencedIndexInfo;
+                state.deferredChecks.put(checkName, checks);
+            }
+            checks.keys.add(probeTuple);
+            return;
+        }
+
+        if (!indexContainsKey(referencedIndexInfo, probeTuple)) {
             throw new ConstraintViolationException(String.format(
                 "Cannot insert tuple %s into table %s; violates foreign key" +
                 " constraint %s to referenced table %s", tuple, tableName,
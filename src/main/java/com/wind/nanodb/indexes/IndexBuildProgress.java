@@ -0,0 +1,248 @@
+package com.wind.nanodb.indexes;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records how far a build of a new index has gotten, so that other sessions
+ * can watch a long-running <tt>CREATE INDEX</tt> with the
+ * <tt>SHOW INDEX BUILDS</tt> command.  Builds that are running are kept in a
+ * shared registry, along with the last few builds that have finished.  The
+ * counters are updated by the {@link IndexBuilder}'s worker threads while
+ * other sessions read them, so they are all atomic or volatile.
+ */
+public class IndexBuildProgress {
+
+    /** The stages that an index build goes through. */
+    public enum Phase {
+        /** The table is being scanned, and the runs of keys sorted. */
+        SCANNING,
+
+        /** The sorted runs are being merged into the index. */
+        LOADING,
+
+        /** The index was built successfully. */
+        DONE,
+
+        /** The build stopped because of an error. */
+        FAILED
+    }
+
+
+    /** The number of finished builds that the registry remembers. */
+    public static final int MAX_FINISHED_BUILDS = 10;
+
+
+    /** The builds that are running, followed by recently finished builds. */
+    private static final LinkedList<IndexBuildProgress> builds =
+        new LinkedList<>();
+
+
+    /** The name of the table the index is on. */
+    private final String tableName;
+
+
+    /** The name of the index being built. */
+    private final String indexName;
+
+
+    /** The number of data pages in the table when the build started. */
+    private final int totalPages;
+
+
+    /** The time the build started, from {@link System#currentTimeMillis}. */
+    private final long startTime;
+
+
+    /** The time the build finished, or 0 if it is still running. */
+    private volatile long endTime;
+
+
+    /** The current stage of the build. */
+    private volatile Phase phase = Phase.SCANNING;
+
+
+    /** The error that stopped the build, if it failed. */
+    private volatile String error;
+
+
+    /** The number of data pages whose keys have been extracted and sorted. */
+    private final AtomicInteger pagesScanned = new AtomicInteger();
+
+
+    /** The number of index entries extracted from the table. */
+    private final AtomicLong entriesExtracted = new AtomicLong();
+
+
+    /** The number of sorted runs that the entries were divided into. */
+    private final AtomicInteger numRuns = new AtomicInteger();
+
+
+    /** The number of entries that have been added to the index. */
+    private final AtomicLong entriesLoaded = new AtomicLong();
+
+
+    private IndexBuildProgress(String tableName, String indexName,
+                               int totalPages) {
+        this.tableName = tableName;
+        this.indexName = indexName;
+        this.totalPages = totalPages;
+        startTime = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Registers a new index build.
+     *
+     * @param tableName the name of the table the index is on
+     * @param indexName the name of the index being built
+     * @param totalPages the number of data pages in the table
+     *
+     * @return the object to record the build's progress in
+     */
+    public static IndexBuildProgress start(String tableName, String indexName,
+                                           int totalPages) {
+        IndexBuildProgress progress =
+            new IndexBuildProgress(tableName, indexName, totalPages);
+
+        synchronized (builds) {
+            builds.add(progress);
+        }
+
+        return progress;
+    }
+
+
+    /**
+     * Returns the builds that are running, and the most recently finished
+     * builds, in the order they were started.
+     *
+     * @return a snapshot of the registered builds
+     */
+    public static List<IndexBuildProgress> getBuilds() {
+        synchronized (builds) {
+            return new ArrayList<>(builds);
+        }
+    }
+
+
+    /**
+     * Records that the build has finished, and forgets the oldest finished
+     * builds if there are too many.
+     *
+     * @param error a description of the error that stopped the build, or
+     *        {@code null} if the build succeeded
+     */
+    void finish(String error) {
+        this.error = error;
+        endTime = System.currentTimeMillis();
+        phase = (error == null ? Phase.DONE : Phase.FAILED);
+
+        synchronized (builds) {
+            int numFinished = 0;
+            for (IndexBuildProgress build : builds) {
+                if (build.endTime != 0)
+                    numFinished++;
+            }
+
+            Iterator<IndexBuildProgress> iter = builds.iterator();
+            while (numFinished > MAX_FINISHED_BUILDS && iter.hasNext()) {
+                if (iter.next().endTime != 0) {
+                    iter.remove();
+                    numFinished--;
+                }
+            }
+        }
+    }
+
+
+    void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+
+    void addScannedPages(int numPages, long numEntries) {
+        pagesScanned.addAndGet(numPages);
+        entriesExtracted.addAndGet(numEntries);
+        numRuns.incrementAndGet();
+    }
+
+
+    void addLoadedEntry() {
+        entriesLoaded.incrementAndGet();
+    }
+
+
+    public String getTableName() {
+        return tableName;
+    }
+
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+
+    public String getError() {
+        return error;
+    }
+
+
+    public int getTotalPages() {
+        return totalPages;
+    }
+
+
+    public int getPagesScanned() {
+        return pagesScanned.get();
+    }
+
+
+    public long getEntriesExtracted() {
+        return entriesExtracted.get();
+    }
+
+
+    public int getNumRuns() {
+        return numRuns.get();
+    }
+
+
+    public long getEntriesLoaded() {
+        return entriesLoaded.get();
+    }
+
+
+    /**
+     * Returns how long the build has been running, or how long it ran if it
+     * has finished.
+     *
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsedTime() {
+        long end = endTime;
+        if (end == 0)
+            end = System.currentTimeMillis();
+
+        return end - startTime;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("IndexBuild[%s.%s, %s, %d/%d pages, %d/%d " +
+            "entries loaded]", tableName, indexName, phase, getPagesScanned(),
+            totalPages, getEntriesLoaded(), getEntriesExtracted());
+    }
+}
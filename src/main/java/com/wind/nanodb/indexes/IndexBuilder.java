@@ -0,0 +1,640 @@
+package com.wind.nanodb.indexes;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.expressions.TupleComparator;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.ColumnRefs;
+import com.wind.nanodb.relations.TableConstraintType;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.SequentialTupleFile;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleCursor;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * <p>
+ * Fills a newly created index from the rows already in its table.  Rather
+ * than adding the rows' entries to the index one at a time, the builder
+ * sorts all of the entries and then builds the index from the bottom up
+ * with {@link SequentialTupleFile#loadSortedTuples}.
+ * </p>
+ * <p>
+ * The entries are sorted with an external merge sort.  A heap file's data
+ * pages are divided into ranges of <tt>nanodb.indexbuild.rangepages</tt>
+ * pages, and a pool of <tt>nanodb.indexbuild.workers</tt> threads extracts
+ * the entries of each range and sorts them into a run.  When there is more
+ * than one run, each run is written to a temporary file, so only one range's
+ * entries per worker are in memory at a time.  The runs are then merged, and
+ * the merged entries are fed to the index.  For a unique index, entries with
+ * the same key are next to each other in the merged order, so duplicates are
+ * found without searching the index.
+ * </p>
+ * <p>
+ * The workers read their pages, extract the entries and sort and write the
+ * runs in parallel.  The Buffer Manager synchronizes the loading and
+ * pinning of pages itself, and reads each page from its file without holding
+ * its monitor, so workers reading different pages don't wait for each
+ * other.  The progress of each build is recorded in an
+ * {@link IndexBuildProgress} object, which the <tt>SHOW INDEX BUILDS</tt>
+ * command displays.
+ * </p>
+ */
+public class IndexBuilder {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(IndexBuilder.class);
+
+
+    /**
+     * The system property that specifies how many worker threads extract
+     * and sort the entries of a new index.
+     */
+    public static final String PROP_WORKERS = "nanodb.indexbuild.workers";
+
+
+    /**
+     * The default number of worker threads.  Fewer are used if the machine
+     * has fewer processors.
+     */
+    public static final int DEFAULT_WORKERS = 4;
+
+
+    /**
+     * The system property that specifies how many data pages of the table
+     * go into each sorted run.
+     */
+    public static final String PROP_RANGE_PAGES =
+        "nanodb.indexbuild.rangepages";
+
+
+    /** The default number of data pages in each sorted run. */
+    public static final int DEFAULT_RANGE_PAGES = 256;
+
+
+    /**
+     * The number of entries written to a run file between resets of the
+     * object stream, which otherwise remembers every object written to it.
+     */
+    private static final int RUN_RESET_INTERVAL = 1024;
+
+
+    /** Numbers the worker threads, so their names are distinct. */
+    private static final AtomicInteger nextWorkerID = new AtomicInteger();
+
+
+    private StorageManager storageManager;
+
+
+    /** The table whose rows are indexed. */
+    private TableInfo tableInfo;
+
+
+    /** The index being filled. */
+    private IndexInfo indexInfo;
+
+
+    /** The columns of the table that the index's entries hold. */
+    private ColumnRefs columnRefs;
+
+
+    /** The progress of the build, once it has started. */
+    private IndexBuildProgress progress;
+
+
+    /**
+     * Creates a builder that fills an index from its table's rows.
+     *
+     * @param storageManager the storage manager that the table and index are
+     *        stored with
+     * @param tableInfo the table whose rows are indexed
+     * @param indexInfo the index to fill, which must be empty
+     */
+    public IndexBuilder(StorageManager storageManager, TableInfo tableInfo,
+                        IndexInfo indexInfo) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (tableInfo == null)
+            throw new IllegalArgumentException("tableInfo cannot be null");
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        this.storageManager = storageManager;
+        this.tableInfo = tableInfo;
+        this.indexInfo = indexInfo;
+        columnRefs = indexInfo.getTableColumnRefs();
+    }
+
+
+    /**
+     * Returns the number of worker threads to use, based on the
+     * <tt>nanodb.indexbuild.workers</tt> system property.
+     *
+     * @return the number of worker threads to use
+     */
+    public static int getNumWorkers() {
+        int numWorkers = Math.min(DEFAULT_WORKERS,
+            Runtime.getRuntime().availableProcessors());
+
+        String str = System.getProperty(PROP_WORKERS);
+        if (str != null) {
+            try {
+                numWorkers = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException nfe) {
+                logger.warn("Current value of " + PROP_WORKERS +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (numWorkers < 1)
+                numWorkers = 1;
+        }
+
+        return numWorkers;
+    }
+
+
+    /**
+     * Returns the number of data pages in each sorted run, based on the
+     * <tt>nanodb.indexbuild.rangepages</tt> system property.
+     *
+     * @return the number of data pages in each sorted run
+     */
+    public static int getRangePages() {
+        int rangePages = DEFAULT_RANGE_PAGES;
+
+        String str = System.getProperty(PROP_RANGE_PAGES);
+        if (str != null) {
+            try {
+                rangePages = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException nfe) {
+                logger.warn("Current value of " + PROP_RANGE_PAGES +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (rangePages < 1)
+                rangePages = DEFAULT_RANGE_PAGES;
+        }
+
+        return rangePages;
+    }
+
+
+    /**
+     * Fills the index with an entry for every row of the table.
+     *
+     * @throws IllegalStateException if the index isn't a sequential file, or
+     *         if it is a unique index and two rows have the same key
+     *
+     * @throws IOException if the table or the index can't be read or written
+     */
+    public void build() throws IOException {
+        TupleFile tableFile = tableInfo.getTupleFile();
+        TupleFile indexFile = indexInfo.getTupleFile();
+        if (!(indexFile instanceof SequentialTupleFile)) {
+            throw new IllegalStateException("Index " +
+                indexInfo.getIndexName() + " isn't a sequential tuple file");
+        }
+
+        // Divide the table's data pages into ranges.  A range of null means
+        // the whole file, for tuple files that can't be divided.
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int numDataPages = 0;
+        if (tableFile instanceof HeapTupleFile) {
+            // Header page is page 0, so first data page is page 1.
+            int numPages = tableFile.getDBFile().getNumPages();
+            int rangePages = getRangePages();
+            for (int start = 1; start < numPages; start += rangePages) {
+                int end = Math.min(start + rangePages, numPages);
+                ranges.add(new int[] { start, end });
+            }
+
+            numDataPages = Math.max(numPages - 1, 0);
+        }
+        else {
+            ranges.add(null);
+        }
+
+        progress = IndexBuildProgress.start(tableInfo.getTableName(),
+            indexInfo.getIndexName(), numDataPages);
+
+        ArrayList<SortedRun> runs = new ArrayList<>();
+        try {
+            sortRuns(tableFile, ranges, runs);
+
+            progress.setPhase(IndexBuildProgress.Phase.LOADING);
+            long numEntries;
+            try {
+                Iterator<TupleLiteral> entries = new RunMerger(runs);
+                if (isUnique())
+                    entries = new UniqueKeyChecker(entries);
+
+                numEntries =
+                    ((SequentialTupleFile) indexFile).loadSortedTuples(entries);
+            }
+            catch (UncheckedIOException e) {
+                // A run file couldn't be read back in.
+                throw e.getCause();
+            }
+
+            progress.finish(null);
+
+            logger.debug(String.format("Built index %s on table %s with %d " +
+                "entries from %d sorted runs", indexInfo.getIndexName(),
+                tableInfo.getTableName(), numEntries, runs.size()));
+        }
+        catch (IOException | RuntimeException e) {
+            progress.finish(e.getMessage() != null ? e.getMessage() :
+                e.getClass().getSimpleName());
+            throw e;
+        }
+        finally {
+            for (SortedRun run : runs)
+                run.delete();
+        }
+    }
+
+
+    /** Returns true if the index being built is a unique index. */
+    private boolean isUnique() {
+        TableConstraintType constraintType = columnRefs.getConstraintType();
+        return constraintType != null && constraintType.isUnique();
+    }
+
+
+    /**
+     * Extracts and sorts the entries of each range of pages.  A single range
+     * is sorted in memory by the session's own thread; otherwise the ranges
+     * are handed to a pool of worker threads, and each range's entries are
+     * written to a run file.
+     *
+     * @param tableFile the table's tuple file
+     * @param ranges the ranges of pages to sort, as start and end page
+     *        numbers; a {@code null} range is the whole file
+     * @param runs the list to add the sorted runs to, in the order of their
+     *        ranges, so that the caller can delete them
+     *
+     * @throws IOException if the table can't be read, or a run file can't
+     *         be written
+     */
+    private void sortRuns(TupleFile tableFile, List<int[]> ranges,
+                          List<SortedRun> runs) throws IOException {
+        if (ranges.isEmpty())
+            return;
+
+        if (ranges.size() == 1) {
+            runs.add(sortRange(tableFile, ranges.get(0), /* spill */ false));
+            return;
+        }
+
+        int numWorkers = Math.min(getNumWorkers(), ranges.size());
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers,
+            r -> {
+                Thread t = new Thread(r,
+                    "IndexBuilder-" + nextWorkerID.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+        logger.debug(String.format("Sorting %d ranges of table %s with %d " +
+            "workers", ranges.size(), tableInfo.getTableName(), numWorkers));
+
+        try {
+            ArrayList<Future<SortedRun>> futures = new ArrayList<>();
+            for (int[] range : ranges) {
+                futures.add(workers.submit(
+                    () -> sortRange(tableFile, range, /* spill */ true)));
+            }
+
+            // Collect every run, even after a failure, so that all of the
+            // run files can be deleted.
+            Throwable failure = null;
+            for (Future<SortedRun> future : futures) {
+                try {
+                    runs.add(future.get());
+                }
+                catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            else if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            else if (failure instanceof Error)
+                throw (Error) failure;
+            else if (failure != null)
+                throw new IOException("Couldn't sort index entries", failure);
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Extracts the index entries of the rows in a range of pages, and sorts
+     * them into a run.
+     *
+     * @param tableFile the table's tuple file
+     * @param range the start and end page numbers of the range, or
+     *        {@code null} for the whole file
+     * @param spill if true, the run is written to a temporary file
+     *
+     * @return the sorted run
+     *
+     * @throws IOException if the table can't be read, or the run file can't
+     *         be written
+     */
+    private SortedRun sortRange(TupleFile tableFile, int[] range,
+                                boolean spill) throws IOException {
+        ArrayList<TupleLiteral> entries = new ArrayList<>();
+        TableSchema tableSchema = tableInfo.getSchema();
+
+        TupleCursor cursor;
+        if (range == null)
+            cursor = tableFile.openCursor(true);
+        else
+            cursor = ((HeapTupleFile) tableFile).openCursor(true,
+                range[0], range[1]);
+
+        try {
+            for (Tuple tup = cursor.next(); tup != null; tup = cursor.next()) {
+                // A partial index only has entries for some rows.
+                if (!IndexUtils.isRowIndexed(columnRefs, tableSchema, tup))
+                    continue;
+
+                entries.add(IndexUtils.makeTableSearchKey(columnRefs,
+                    tup, /* findExactTuple */ true));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        entries.sort(TupleComparator::compareTuples);
+
+        SortedRun run;
+        if (spill)
+            run = SortedRun.write(storageManager.getBaseDir(), entries);
+        else
+            run = new SortedRun(entries);
+
+        progress.addScannedPages(range != null ? range[1] - range[0] :
+            progress.getTotalPages(), entries.size());
+
+        return run;
+    }
+
+
+    /**
+     * A run of sorted index entries, which is either kept in memory or
+     * written to a temporary file.
+     */
+    private static class SortedRun {
+        /** The entries of an in-memory run, or {@code null} for a file. */
+        private ArrayList<TupleLiteral> entries;
+
+
+        /** The file that holds the run's entries, or {@code null}. */
+        private File file;
+
+
+        /** The stream the entries are read back from, once it is opened. */
+        private ObjectInputStream in;
+
+
+        SortedRun(ArrayList<TupleLiteral> entries) {
+            this.entries = entries;
+        }
+
+
+        private SortedRun(File file) {
+            this.file = file;
+        }
+
+
+        /**
+         * Writes sorted entries to a new temporary file.
+         *
+         * @param dir the directory to create the file in
+         * @param entries the sorted entries
+         *
+         * @return a run that reads the entries back from the file
+         *
+         * @throws IOException if the file can't be written
+         */
+        static SortedRun write(File dir, List<TupleLiteral> entries)
+            throws IOException {
+
+            File file = File.createTempFile("indexbuild", ".run", dir);
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+
+                out.writeInt(entries.size());
+                int count = 0;
+                for (TupleLiteral entry : entries) {
+                    out.writeObject(entry);
+                    if (++count % RUN_RESET_INTERVAL == 0)
+                        out.reset();
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                file.delete();
+                throw e;
+            }
+
+            return new SortedRun(file);
+        }
+
+
+        /**
+         * Returns an iterator over the run's entries.  This may only be
+         * called once.
+         */
+        Iterator<TupleLiteral> iterator() throws IOException {
+            if (entries != null)
+                return entries.iterator();
+
+            in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            final int numEntries = in.readInt();
+
+            return new Iterator<TupleLiteral>() {
+                private int numRead = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return numRead < numEntries;
+                }
+
+                @Override
+                public TupleLiteral next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+
+                    try {
+                        numRead++;
+                        return (TupleLiteral) in.readObject();
+                    }
+                    catch (ClassNotFoundException e) {
+                        throw new UncheckedIOException(new IOException(
+                            "Couldn't read index entries from " + file, e));
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+
+
+        /** Closes and deletes the run's file, if it has one. */
+        void delete() {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    logger.warn("Couldn't close index-build run " + file, e);
+                }
+                in = null;
+            }
+
+            if (file != null && !file.delete())
+                logger.warn("Couldn't delete index-build run " + file);
+
+            entries = null;
+        }
+    }
+
+
+    /**
+     * Merges sorted runs into one sequence of entries in sorted order, and
+     * counts the entries in the build's progress as they go by.
+     */
+    private class RunMerger implements Iterator<TupleLiteral> {
+        /** The next entry of a run, and the rest of the run. */
+        private class Head {
+            TupleLiteral entry;
+            Iterator<TupleLiteral> rest;
+        }
+
+
+        /** The runs that aren't used up, ordered by their next entries. */
+        private PriorityQueue<Head> heads = new PriorityQueue<>(
+            (h1, h2) -> TupleComparator.compareTuples(h1.entry, h2.entry));
+
+
+        RunMerger(List<SortedRun> runs) throws IOException {
+            for (SortedRun run : runs) {
+                Head head = new Head();
+                head.rest = run.iterator();
+                if (head.rest.hasNext()) {
+                    head.entry = head.rest.next();
+                    heads.add(head);
+                }
+            }
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+
+        @Override
+        public TupleLiteral next() {
+            Head head = heads.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+
+            TupleLiteral entry = head.entry;
+            if (head.rest.hasNext()) {
+                head.entry = head.rest.next();
+                heads.add(head);
+            }
+
+            progress.addLoadedEntry();
+            return entry;
+        }
+    }
+
+
+    /**
+     * Passes sorted entries through, checking that no two of them have the
+     * same key.
+     */
+    private class UniqueKeyChecker implements Iterator<TupleLiteral> {
+        private Iterator<TupleLiteral> entries;
+
+
+        /** The key columns of the previous entry, or {@code null}. */
+        private TupleLiteral prevKey;
+
+
+        UniqueKeyChecker(Iterator<TupleLiteral> entries) {
+            this.entries = entries;
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+
+        @Override
+        public TupleLiteral next() {
+            TupleLiteral entry = entries.next();
+            if (prevKey != null &&
+                TupleComparator.comparePartialTuples(entry, prevKey) == 0) {
+                throw new IllegalStateException(String.format("Unique " +
+                    "index %s can't be built, since more than one row has " +
+                    "key %s", indexInfo.getIndexName(), prevKey));
+            }
+
+            // The key is the leading columns of the entry.
+            prevKey = new TupleLiteral();
+            for (int iCol = 0; iCol < columnRefs.size(); iCol++)
+                prevKey.addValue(entry.getColumnValue(iCol));
+
+            return entry;
+        }
+    }
+}
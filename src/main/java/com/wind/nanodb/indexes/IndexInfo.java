@@ -1,6 +1,7 @@
 package com.wind.nanodb.indexes;
 
 
+import com.wind.nanodb.commands.CommandProperties;
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.Schema;
 import com.wind.nanodb.relations.TableInfo;
@@ -32,6 +33,14 @@ public class IndexInfo {
     private TupleFile tupleFile;
 
 
+    /**
+     * Any additional properties specified when the index was created, or
+     * {@code null} if there were none.  This is only set while the index is
+     * being created.
+     */
+    private CommandProperties properties;
+
+
     public IndexInfo(TableInfo tableInfo, ColumnRefs indexColRefs,
                      TupleFile tupleFile) {
         // tupleFile may be null!
@@ -140,4 +149,14 @@ public class IndexInfo {
     public ColumnRefs getTableColumnRefs() {
         return indexColRefs;
     }
+
+
+    public CommandProperties getProperties() {
+        return properties;
+    }
+
+
+    public void setProperties(CommandProperties properties) {
+        this.properties = properties;
+    }
 }
@@ -4,6 +4,7 @@ package com.wind.nanodb.indexes;
 import java.io.IOException;
 import java.util.List;
 
+import com.wind.nanodb.commands.CommandProperties;
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.TableConstraintType;
 import com.wind.nanodb.relations.TableInfo;
@@ -35,6 +36,23 @@ public interface IndexManager {
         throws IOException;
 
 
+    /**
+     * Adds an index to the specified table, using the additional properties
+     * specified in the <tt>CREATE INDEX</tt> command.
+     *
+     * @param tableInfo the table to add the index to
+     * @param indexColRefs the columns the index is built on
+     * @param properties any additional properties for the index, or
+     *        {@code null} if there are none
+     *
+     * @return the details of the new index
+     *
+     * @throws IOException if an IO error occurs while creating the index
+     */
+    IndexInfo addIndexToTable(TableInfo tableInfo, ColumnRefs indexColRefs,
+        CommandProperties properties) throws IOException;
+
+
     void createIndex(IndexInfo indexInfo, String indexName) throws IOException;
 
 
@@ -2,26 +2,70 @@ package com.wind.nanodb.indexes;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 
 import org.apache.log4j.Logger;
 
+import com.wind.nanodb.expressions.TupleComparator;
 import com.wind.nanodb.expressions.TupleLiteral;
 import com.wind.nanodb.relations.ColumnRefs;
+import com.wind.nanodb.relations.KeyColumnRefs;
+import com.wind.nanodb.relations.Schema;
 import com.wind.nanodb.relations.TableConstraintType;
 import com.wind.nanodb.relations.TableInfo;
 import com.wind.nanodb.relations.TableSchema;
 import com.wind.nanodb.relations.Tuple;
 import com.wind.nanodb.server.EventDispatchException;
 import com.wind.nanodb.server.RowEventListener;
-import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
 import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.SequentialTupleFile;
+import com.wind.nanodb.storage.TupleFile;
 import com.wind.nanodb.storage.StorageManager;
 
 
 /**
+ * <p>
  * This class implements the {@link RowEventListener} interface to make sure
  * that all indexes on an updated table are kept up-to-date.  This handler is
  * installed by the {@link StorageManager#initialize} setup method.
+ * </p>
+ * <p>
+ * When a statement changes many rows of a table, updating each index as each
+ * row changes means a search from the root of the index for every row, at a
+ * random place in the index.  Instead, the entries to remove from and add to
+ * each index are collected for the whole statement, between the
+ * {@link #beforeStatement} and {@link #afterStatement} events.  At the end
+ * of the statement they are sorted and applied in key order, so that runs of
+ * neighboring entries are changed on the same leaf page.  All removals are
+ * applied before any additions.
+ * </p>
+ * <p>
+ * The keys added to unique indexes are checked at the end of the statement
+ * too, before any of the changes are applied.  The sorted additions are
+ * compared with each other, and then looked up in the index in the same
+ * order, walking forward from one key to the next instead of searching
+ * from the root each time.  Keys that the statement removes don't count,
+ * so a row can take a key that another row of the statement gives up, in
+ * either order.  If a key would be duplicated, none of the index changes
+ * are applied, and the rows that the statement added or updated are put
+ * back the way they were before the violation is reported.  Since the
+ * indexes never saw the changes, this is done directly in the table file.
+ * (Transactions don't undo the changes of a failed statement, so this
+ * can't be left to them.)
+ * </p>
+ * <p>
+ * Tables that take part in foreign keys are always updated row by row, since
+ * the constraint checks for each row search their indexes, and must see the
+ * changes made for the earlier rows.  Statement batching can also be turned
+ * off with the <tt>nanodb.indexbatch</tt> property.
+ * </p>
  */
 public class IndexUpdater implements RowEventListener {
 
@@ -29,6 +73,126 @@ public class IndexUpdater implements RowEventListener {
     private static Logger logger = Logger.getLogger(IndexUpdater.class);
 
 
+    /**
+     * This property can be set to "false" to update indexes as each row
+     * changes, instead of at the end of each statement.
+     */
+    public static final String PROP_INDEX_BATCH = "nanodb.indexbatch";
+
+
+    /** By default, index changes are batched for each statement. */
+    public static final boolean DEFAULT_INDEX_BATCH = true;
+
+
+    /**
+     * Returns true if index changes are batched for each statement, based on
+     * the <tt>nanodb.indexbatch</tt> system property.
+     *
+     * @return true if index changes are batched for each statement
+     */
+    public static boolean isBatchingEnabled() {
+        String str = System.getProperty(PROP_INDEX_BATCH);
+        if (str == null)
+            return DEFAULT_INDEX_BATCH;
+
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /**
+     * The number of index entries that the unique-key check walks past to
+     * reach the next key, before it searches for the key from the root of
+     * the index instead.
+     */
+    private static final int MAX_UNIQUE_CHECK_STEPS = 32;
+
+
+    /**
+     * A row that a statement added or updated in a table whose index changes
+     * are batched, so that the change can be undone if a unique key would be
+     * duplicated.
+     */
+    private static class RowChange {
+        /** The location of the row in the table. */
+        FilePointer ptr;
+
+        /** The row's values before an update, or null for a new row. */
+        TupleLiteral oldValues;
+
+        RowChange(FilePointer ptr, TupleLiteral oldValues) {
+            this.ptr = ptr;
+            this.oldValues = oldValues;
+        }
+    }
+
+
+    /**
+     * The index changes collected for the rows that one statement changes in
+     * a table.  The entries of each index are kept in the order that the
+     * rows were changed, until the statement ends.
+     */
+    private static class IndexBatch {
+        /** The table whose indexes are being changed. */
+        TableInfo tableInfo;
+
+        /** The entries to remove from each index, by index name. */
+        HashMap<String, ArrayList<TupleLiteral>> removals = new HashMap<>();
+
+        /** The entries to add to each index, by index name. */
+        HashMap<String, ArrayList<TupleLiteral>> additions = new HashMap<>();
+
+        /** The keys removed from each unique index, by index name. */
+        HashMap<String, HashSet<TupleLiteral>> removedKeys = new HashMap<>();
+
+        /**
+         * The rows added and updated by the statement, in the order they
+         * were changed, or {@code null} if the table has no unique indexes.
+         */
+        ArrayList<RowChange> rowChanges;
+
+        IndexBatch(TableInfo tableInfo) {
+            this.tableInfo = tableInfo;
+
+            for (ColumnRefs indexDef :
+                 tableInfo.getSchema().getIndexes().values()) {
+                if (isUnique(indexDef))
+                    rowChanges = new ArrayList<>();
+            }
+        }
+
+        /** Records an entry to remove from or add to an index. */
+        void addEntry(HashMap<String, ArrayList<TupleLiteral>> entries,
+                      String indexName, TupleLiteral entry) {
+            ArrayList<TupleLiteral> list = entries.get(indexName);
+            if (list == null) {
+                list = new ArrayList<>();
+                entries.put(indexName, list);
+            }
+            list.add(entry);
+        }
+
+        /** Records a key removed from a unique index. */
+        void addRemovedKey(String indexName, TupleLiteral key) {
+            removedKeys.computeIfAbsent(indexName, n -> new HashSet<>())
+                .add(key);
+        }
+
+        /** Returns true if a key was removed from a unique index. */
+        boolean isKeyRemoved(String indexName, TupleLiteral key) {
+            HashSet<TupleLiteral> indexKeys = removedKeys.get(indexName);
+            return indexKeys != null && indexKeys.contains(key);
+        }
+
+        /** Records a row that was added or updated, if it must be. */
+        void addRowChange(Tuple tuple, Tuple oldValues) {
+            if (rowChanges != null) {
+                rowChanges.add(new RowChange(tuple.getExternalReference(),
+                    oldValues != null ? new TupleLiteral(oldValues) : null));
+            }
+        }
+    }
+
+
     /**
      * A cached reference to the index manager since we use it a lot in this
      * class.
@@ -36,6 +200,16 @@ public class IndexUpdater implements RowEventListener {
     private IndexManager indexManager;
 
 
+    /**
+     * The batches of index changes for the statements in progress, by table
+     * name.  There is one updater for the whole server, and each session
+     * runs its statements on its own thread, so the batches are kept per
+     * thread.
+     */
+    private ThreadLocal<HashMap<String, IndexBatch>> batches =
+        ThreadLocal.withInitial(HashMap::new);
+
+
     public IndexUpdater(StorageManager storageManager) {
         if (storageManager == null)
             throw new IllegalArgumentException("storageManager cannot be null");
@@ -44,6 +218,31 @@ public class IndexUpdater implements RowEventListener {
     }
 
 
+    @Override
+    public void beforeStatement(TableInfo tblFileInfo) {
+        TableSchema schema = tblFileInfo.getSchema();
+        if (!isBatchingEnabled() || schema.getIndexes().isEmpty())
+            return;
+
+        if (hasForeignKeys(schema)) {
+            logger.debug("Table " + tblFileInfo.getTableName() + " takes " +
+                "part in foreign keys; updating its indexes row by row");
+            return;
+        }
+
+        batches.get().put(tblFileInfo.getTableName(),
+            new IndexBatch(tblFileInfo));
+    }
+
+
+    @Override
+    public void afterStatement(TableInfo tblFileInfo) {
+        IndexBatch batch = batches.get().remove(tblFileInfo.getTableName());
+        if (batch != null)
+            applyBatch(batch);
+    }
+
+
     @Override
     public void beforeRowInserted(TableInfo tblFileInfo, Tuple newValues) {
         // Ignore.
@@ -53,50 +252,53 @@ public class IndexUpdater implements RowEventListener {
     @Override
     public void afterRowInserted(TableInfo tblFileInfo, Tuple newTuple) {
 
-        if (!(newTuple instanceof PageTuple)) {
-            throw new IllegalArgumentException(
-                "newTuple must be castable to PageTuple");
-        }
+        checkTableTuple(newTuple, "newTuple");
+
+        IndexBatch batch = getBatch(tblFileInfo);
+        if (batch != null)
+            batch.addRowChange(newTuple, null);
 
         // Add the new row to any indexes on the table.
-        addRowToIndexes(tblFileInfo, (PageTuple) newTuple);
+        addRowToIndexes(tblFileInfo, newTuple,
+            tblFileInfo.getSchema().getIndexes().values());
     }
 
     @Override
     public void beforeRowUpdated(TableInfo tblFileInfo, Tuple oldTuple,
                                  Tuple newValues) {
 
-        if (!(oldTuple instanceof PageTuple)) {
-            throw new IllegalArgumentException(
-                "oldTuple must be castable to PageTuple");
-        }
+        checkTableTuple(oldTuple, "oldTuple");
 
-        // Remove the old row from any indexes on the table.
-        removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
+        // Remove the old row from the indexes whose columns are changing.
+        // Updates don't change a row's file-pointer, even if the row moves
+        // to another page, so the other indexes are still correct.
+        List<ColumnRefs> changed =
+            getChangedIndexes(tblFileInfo, oldTuple, newValues);
+        removeRowFromIndexes(tblFileInfo, oldTuple, changed);
     }
 
     @Override
     public void afterRowUpdated(TableInfo tblFileInfo, Tuple oldValues,
                                 Tuple newTuple) {
 
-        if (!(newTuple instanceof PageTuple)) {
-            throw new IllegalArgumentException(
-                "newTuple must be castable to PageTuple");
-        }
+        checkTableTuple(newTuple, "newTuple");
 
-        // Add the new row to any indexes on the table.
-        addRowToIndexes(tblFileInfo, (PageTuple) newTuple);
+        IndexBatch batch = getBatch(tblFileInfo);
+        if (batch != null)
+            batch.addRowChange(newTuple, oldValues);
+
+        // Add the new row to the indexes whose columns changed.
+        addRowToIndexes(tblFileInfo, newTuple,
+            getChangedIndexes(tblFileInfo, oldValues, newTuple));
     }
 
     @Override
     public void beforeRowDeleted(TableInfo tblFileInfo, Tuple oldTuple) {
-        if (!(oldTuple instanceof PageTuple)) {
-            throw new IllegalArgumentException(
-                "oldTuple must be castable to PageTuple");
-        }
+        checkTableTuple(oldTuple, "oldTuple");
 
         // Remove the old row from any indexes on the table.
-        removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
+        removeRowFromIndexes(tblFileInfo, oldTuple,
+            tblFileInfo.getSchema().getIndexes().values());
     }
 
     @Override
@@ -104,35 +306,541 @@ public class IndexUpdater implements RowEventListener {
         // Ignore.
     }
 
+    @Override
+    public void afterRowMoved(TableInfo tblFileInfo, FilePointer oldRef,
+                              Tuple newTuple) {
+        checkTableTuple(newTuple, "newTuple");
+
+        // Every index entry for the row refers to its old file-pointer.
+        moveRowInIndexes(tblFileInfo, oldRef, newTuple);
+    }
+
+
+    /**
+     * Checks that a tuple came from a table file, so that it has a
+     * file-pointer that index entries can refer to.  Any kind of tuple file
+     * will do; they don't all produce {@code PageTuple}s.
+     *
+     * @param tup the tuple to check
+     * @param name the name of the tuple, for the error message
+     *
+     * @throws IllegalArgumentException if the tuple has no file-pointer
+     */
+    private static void checkTableTuple(Tuple tup, String name) {
+        try {
+            tup.getExternalReference();
+        }
+        catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException(
+                name + " must be a tuple from a table file");
+        }
+    }
+
+
+    /**
+     * Returns the indexes on the table that have at least one column whose
+     * value differs between the old and new versions of an updated row.
+     * Only these indexes need to be maintained for the update.  Keys that are
+     * computed from expressions are compared by their values.  Columns that
+     * an index includes in its entries without using them as key columns
+     * count as well, and so do partial indexes that the update moves the row
+     * into or out of.
+     *
+     * @param tblFileInfo details of the table being updated
+     *
+     * @param oldValues the row's values before the update
+     *
+     * @param newValues the row's values after the update
+     *
+     * @return the indexes whose entries for the row must change
+     */
+    private List<ColumnRefs> getChangedIndexes(TableInfo tblFileInfo,
+                                               Tuple oldValues,
+                                               Tuple newValues) {
+        ArrayList<ColumnRefs> changed = new ArrayList<>();
+
+        TableSchema schema = tblFileInfo.getSchema();
+        for (ColumnRefs indexDef : schema.getIndexes().values()) {
+            if (keysDiffer(indexDef, oldValues, newValues) ||
+                valuesDiffer(indexDef.getIncludedCols(), oldValues, newValues) ||
+                IndexUtils.isRowIndexed(indexDef, schema, oldValues) !=
+                IndexUtils.isRowIndexed(indexDef, schema, newValues)) {
+                changed.add(indexDef);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            logger.debug("Update doesn't change any indexed columns of " +
+                "table " + tblFileInfo.getTableName());
+        }
+
+        return changed;
+    }
+
+
+    /**
+     * Returns true if any of an index's keys has a different value in the
+     * old and new versions of an updated row.
+     */
+    private static boolean keysDiffer(ColumnRefs indexDef, Tuple oldValues,
+                                      Tuple newValues) {
+        if (!indexDef.hasKeyExpressions())
+            return valuesDiffer(indexDef.getCols(), oldValues, newValues);
+
+        for (int i = 0; i < indexDef.size(); i++) {
+            if (!Objects.equals(IndexUtils.getKeyValue(indexDef, i, oldValues),
+                                IndexUtils.getKeyValue(indexDef, i, newValues))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if any of the specified columns has a different value in
+     * the old and new versions of an updated row.
+     */
+    private static boolean valuesDiffer(int[] cols, Tuple oldValues,
+                                        Tuple newValues) {
+        for (int col : cols) {
+            if (!Objects.equals(oldValues.getColumnValue(col),
+                                newValues.getColumnValue(col))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns the indexes that should have an entry for a row.  These are
+     * all of the specified indexes, except for partial indexes whose
+     * predicates the row doesn't satisfy.
+     */
+    private static List<ColumnRefs> getIndexesForRow(TableInfo tblFileInfo,
+        Tuple tup, Collection<ColumnRefs> indexDefs) {
+        ArrayList<ColumnRefs> result = new ArrayList<>();
+
+        TableSchema schema = tblFileInfo.getSchema();
+        for (ColumnRefs indexDef : indexDefs) {
+            if (IndexUtils.isRowIndexed(indexDef, schema, tup))
+                result.add(indexDef);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Returns true if a table has foreign keys, or is referenced by the
+     * foreign keys of other tables.
+     */
+    private static boolean hasForeignKeys(TableSchema schema) {
+        if (schema.numForeignKeys() > 0)
+            return true;
+
+        KeyColumnRefs primaryKey = schema.getPrimaryKey();
+        if (primaryKey != null &&
+            !primaryKey.getReferencingIndexes().isEmpty()) {
+            return true;
+        }
+
+        for (KeyColumnRefs candidateKey : schema.getCandidateKeys()) {
+            if (!candidateKey.getReferencingIndexes().isEmpty())
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Applies the index changes collected for a statement.  The entries for
+     * each index are sorted, and the keys added to unique indexes are
+     * checked.  If they are all right, the removals for all indexes are
+     * applied before any of the additions.  Otherwise the statement's row
+     * changes are undone, and nothing is applied.
+     *
+     * @param batch the index changes collected for a statement
+     *
+     * @throws IllegalStateException if the statement would duplicate a key
+     *         of a unique index
+     */
+    private void applyBatch(IndexBatch batch) {
+        TableInfo tblFileInfo = batch.tableInfo;
+        Collection<ColumnRefs> indexDefs =
+            tblFileInfo.getSchema().getIndexes().values();
+
+        for (ArrayList<TupleLiteral> entries : batch.additions.values())
+            entries.sort(TupleComparator::compareTuples);
+
+        for (ColumnRefs indexDef : indexDefs) {
+            if (!isUnique(indexDef))
+                continue;
+
+            String uniqueError = checkUniqueKeys(batch, indexDef);
+            if (uniqueError != null) {
+                undoRowChanges(batch);
+                throw new IllegalStateException(uniqueError);
+            }
+        }
+
+        // The first problem found, which is reported once everything that
+        // can be applied has been.
+        String error = null;
+
+        for (ColumnRefs indexDef : indexDefs) {
+            ArrayList<TupleLiteral> entries =
+                batch.removals.get(indexDef.getIndexName());
+            if (entries == null)
+                continue;
+
+            try {
+                SequentialTupleFile indexFile =
+                    openSequentialIndex(tblFileInfo, indexDef);
+
+                entries.sort(TupleComparator::compareTuples);
+                int numDeleted = indexFile.deleteSortedTuples(entries);
+                if (numDeleted < entries.size() && error == null) {
+                    error = String.format("Index %s has no entries for %d " +
+                        "of the removed rows", indexDef.getIndexName(),
+                        entries.size() - numDeleted);
+                }
+            }
+            catch (IOException e) {
+                throw new EventDispatchException("Couldn't update index " +
+                    indexDef.getIndexName() + " for table " +
+                    tblFileInfo.getTableName(), e);
+            }
+        }
+
+        for (ColumnRefs indexDef : indexDefs) {
+            ArrayList<TupleLiteral> entries =
+                batch.additions.get(indexDef.getIndexName());
+            if (entries == null)
+                continue;
+
+            try {
+                SequentialTupleFile indexFile =
+                    openSequentialIndex(tblFileInfo, indexDef);
+                indexFile.addSortedTuples(entries);
+            }
+            catch (IOException e) {
+                throw new EventDispatchException("Couldn't update index " +
+                    indexDef.getIndexName() + " for table " +
+                    tblFileInfo.getTableName(), e);
+            }
+        }
+
+        logger.debug(String.format("Applied index changes for %d indexes " +
+            "of table %s", indexDefs.size(), tblFileInfo.getTableName()));
+
+        if (error != null)
+            throw new IllegalStateException(error);
+    }
+
+
+    /**
+     * Opens an index that supports sorted batches of changes.
+     *
+     * @throws IllegalStateException if the index isn't a sequential file
+     */
+    private SequentialTupleFile openSequentialIndex(TableInfo tblFileInfo,
+        ColumnRefs indexDef) throws IOException {
+
+        IndexInfo indexInfo =
+            indexManager.openIndex(tblFileInfo, indexDef.getIndexName());
+
+        TupleFile indexFile = indexInfo.getTupleFile();
+        if (!(indexFile instanceof SequentialTupleFile)) {
+            throw new IllegalStateException("Index " +
+                indexDef.getIndexName() + " isn't a sequential tuple file");
+        }
+
+        return (SequentialTupleFile) indexFile;
+    }
+
+
+    /**
+     * Returns true if an index enforces a unique or primary key.
+     */
+    private static boolean isUnique(ColumnRefs indexDef) {
+        return indexDef.getConstraintType() != null &&
+            indexDef.getConstraintType().isUnique();
+    }
+
+
+    /**
+     * Checks that the sorted entries that a statement adds to a unique index
+     * won't duplicate a key.  Entries with the same key are next to each
+     * other in the batch.  The keys are then looked up in the index in
+     * order:  the index is searched for the first key, and for each key
+     * after that, the check walks forward from the entry it found for the
+     * previous key, only searching from the root again if the next key is
+     * far away.  Keys that the statement removes from the index don't count.
+     *
+     * @param batch the index changes collected for the statement, whose
+     *        additions have been sorted
+     *
+     * @param indexDef the unique index to check
+     *
+     * @return a description of the first duplicate key, or {@code null} if
+     *         there are none
+     */
+    private String checkUniqueKeys(IndexBatch batch, ColumnRefs indexDef) {
+        TableInfo tblFileInfo = batch.tableInfo;
+        String indexName = indexDef.getIndexName();
+
+        ArrayList<TupleLiteral> entries = batch.additions.get(indexName);
+        if (entries == null)
+            return null;
+
+        Tuple current = null;
+        try {
+            SequentialTupleFile indexFile =
+                openSequentialIndex(tblFileInfo, indexDef);
+
+            boolean positioned = false;
+            int i = 0;
+            while (i < entries.size()) {
+                // The key is the leading columns of the entry.
+                TupleLiteral key = new TupleLiteral();
+                for (int iCol = 0; iCol < indexDef.size(); iCol++)
+                    key.addValue(entries.get(i).getColumnValue(iCol));
+
+                int end = i + 1;
+                while (end < entries.size() &&
+                       TupleComparator.comparePartialTuples(
+                           entries.get(end), key) == 0) {
+                    end++;
+                }
+
+                if (end - i > 1) {
+                    return String.format("Unique index %s would contain " +
+                        "%d rows with key %s", indexName, end - i, key);
+                }
+                i = end;
+
+                // Move to the first index entry that isn't less than the
+                // key.  Once the end of the index is reached, the rest of
+                // the keys can't be in it.
+                int steps = 0;
+                while (current != null && steps < MAX_UNIQUE_CHECK_STEPS &&
+                       TupleComparator.comparePartialTuples(current, key) < 0) {
+                    Tuple next = indexFile.getNextTuple(current);
+                    current.unpin();
+                    current = next;
+                    steps++;
+                }
+
+                if (!positioned || (current != null &&
+                    TupleComparator.comparePartialTuples(current, key) < 0)) {
+                    if (current != null)
+                        current.unpin();
+
+                    current = indexFile.findFirstTupleGreaterOrEqual(key);
+                    positioned = true;
+                }
+
+                if (current != null &&
+                    TupleComparator.comparePartialTuples(current, key) == 0 &&
+                    !batch.isKeyRemoved(indexName, key)) {
+                    return String.format("Unique index %s already contains " +
+                        "a row with key %s", indexName, key);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new EventDispatchException("Couldn't read index " +
+                indexName + " for table " + tblFileInfo.getTableName(), e);
+        }
+        finally {
+            if (current != null)
+                current.unpin();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Undoes the rows that a statement added or updated, newest first, after
+     * a unique key check failed.  New rows are deleted, and updated rows are
+     * given back their old values.  None of the statement's index changes
+     * have been applied, so the changes are made directly in the table file,
+     * without firing any row events.
+     *
+     * @param batch the index changes collected for the statement
+     */
+    private void undoRowChanges(IndexBatch batch) {
+        TableInfo tableInfo = batch.tableInfo;
+        TupleFile tupleFile = tableInfo.getTupleFile();
+        Schema schema = tableInfo.getSchema();
+
+        logger.debug(String.format("Undoing %d row changes to table %s " +
+            "after a failed unique key check", batch.rowChanges.size(),
+            tableInfo.getTableName()));
+
+        try {
+            for (int i = batch.rowChanges.size() - 1; i >= 0; i--) {
+                RowChange change = batch.rowChanges.get(i);
+
+                Tuple tuple;
+                try {
+                    tuple = tupleFile.getTuple(change.ptr);
+                }
+                catch (InvalidFilePointerException e) {
+                    throw new IOException("Row changed by the statement no " +
+                        "longer exists in table " + tableInfo.getTableName() +
+                        ":  " + change.ptr, e);
+                }
+
+                if (change.oldValues == null) {
+                    tupleFile.deleteTuple(tuple);
+                }
+                else {
+                    HashMap<String, Object> oldValues = new HashMap<>();
+                    for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+                        oldValues.put(schema.getColumnInfo(iCol).getName(),
+                            change.oldValues.getColumnValue(iCol));
+                    }
+                    tupleFile.updateTuple(tuple, oldValues);
+                }
+                tuple.unpin();
+            }
+        }
+        catch (IOException e) {
+            throw new EventDispatchException("Couldn't undo the changes to " +
+                "table " + tableInfo.getTableName(), e);
+        }
+    }
+
+
+    /**
+     * Returns the batch of index changes being collected for a table, or
+     * {@code null} if the table's indexes are being updated row by row.
+     */
+    private IndexBatch getBatch(TableInfo tblFileInfo) {
+        return batches.get().get(tblFileInfo.getTableName());
+    }
+
 
     /**
      * This helper method handles the case when a tuple is being added to the
-     * table, after the row has already been added to the table.  All indexes
-     * on the table are updated to include the new row.
+     * table, after the row has already been added to the table.  The
+     * specified indexes on the table are updated to include the new row.
      *
      * @param tblFileInfo details of the table being updated
      *
      * @param ptup the new tuple that was inserted into the table
+     *
+     * @param indexDefs the indexes to update
      */
-    private void addRowToIndexes(TableInfo tblFileInfo, PageTuple ptup) {
+    private void addRowToIndexes(TableInfo tblFileInfo, Tuple ptup,
+                                 Collection<ColumnRefs> indexDefs) {
         logger.debug("Adding tuple " + ptup + " to indexes for table " +
             tblFileInfo.getTableName());
 
+        indexDefs = getIndexesForRow(tblFileInfo, ptup, indexDefs);
+
+        IndexBatch batch = getBatch(tblFileInfo);
+        if (batch != null) {
+            for (ColumnRefs indexDef : indexDefs) {
+                batch.addEntry(batch.additions, indexDef.getIndexName(),
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, true));
+            }
+            return;
+        }
+
         // Iterate over the indexes in the table.
-        TableSchema schema = tblFileInfo.getSchema();
-        for (ColumnRefs indexDef : schema.getIndexes().values()) {
+        for (ColumnRefs indexDef : indexDefs) {
             try {
                 IndexInfo indexInfo = indexManager.openIndex(tblFileInfo,
                     indexDef.getIndexName());
+                TupleFile indexFile = indexInfo.getTupleFile();
 
-                // TODO:  Implement!
-                //
                 // If the index is a unique index, then verify that there
                 // isn't already a tuple in the index with the same values
                 // (excluding the tuple-pointer column, of course).
-                //
-                // Finally, add a new tuple to the index, including the
-                // tuple-pointer to the tuple in the table.
+                if (isUnique(indexDef)) {
+                    TupleLiteral searchKey =
+                        IndexUtils.makeTableSearchKey(indexDef, ptup, false);
+                    PageTuple existing =
+                        IndexUtils.findTupleInIndex(searchKey, indexFile);
+                    if (existing != null) {
+                        existing.unpin();
+                        throw new IllegalStateException(String.format(
+                            "Unique index %s already contains a row with " +
+                            "key %s", indexDef.getIndexName(), searchKey));
+                    }
+                }
+
+                // Add a new tuple to the index, including the tuple-pointer
+                // to the tuple in the table.
+                indexFile.addTuple(
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, true));
+            }
+            catch (IOException e) {
+                throw new EventDispatchException("Couldn't update index " +
+                    indexDef.getIndexName() + " for table " +
+                    tblFileInfo.getTableName(), e);
+            }
+        }
+    }
+
+
+    /**
+     * This helper method handles the case when a tuple has been moved to a
+     * new file-pointer without its values changing.  The tuple's entry in
+     * each index on the table is changed to refer to the new location.
+     *
+     * @param tblFileInfo details of the table being updated
+     *
+     * @param oldRef the file-pointer that the tuple used to have
+     *
+     * @param ptup the tuple at its new location
+     */
+    private void moveRowInIndexes(TableInfo tblFileInfo, FilePointer oldRef,
+                                  Tuple ptup) {
+        logger.debug("Moving tuple " + ptup + " from " + oldRef +
+            " in indexes for table " + tblFileInfo.getTableName());
+
+        // Iterate over the indexes in the table that have an entry for the
+        // tuple.
+        List<ColumnRefs> indexDefs = getIndexesForRow(tblFileInfo, ptup,
+            tblFileInfo.getSchema().getIndexes().values());
+        for (ColumnRefs indexDef : indexDefs) {
+            try {
+                IndexInfo indexInfo = indexManager.openIndex(tblFileInfo,
+                    indexDef.getIndexName());
+
+                TupleFile indexFile = indexInfo.getTupleFile();
+
+                // Find the entry in this index with the tuple's values and
+                // the old tuple-pointer.  The tuple-pointer is part of the
+                // index key, so the entry is replaced with one that refers
+                // to the tuple's new external reference.  The rest of the
+                // key doesn't change, so uniqueness doesn't need to be
+                // checked again.
+                TupleLiteral oldKey =
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, false);
+                IndexUtils.addIncludedValues(indexDef, ptup, oldKey);
+                oldKey.addValue(oldRef);
+
+                PageTuple oldEntry =
+                    IndexUtils.findTupleInIndex(oldKey, indexFile);
+                if (oldEntry == null) {
+                    throw new IllegalStateException(String.format(
+                        "Index %s has no entry %s for the moved row",
+                        indexDef.getIndexName(), oldKey));
+                }
+                indexFile.deleteTuple(oldEntry);
+
+                indexFile.addTuple(
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, true));
             }
             catch (IOException e) {
                 throw new EventDispatchException("Couldn't update index " +
@@ -146,31 +854,55 @@ public class IndexUpdater implements RowEventListener {
     /**
      * This helper method handles the case when a tuple is being removed from
      * the table, before the row has actually been removed from the table.
-     * All indexes on the table are updated to remove the row.
+     * The specified indexes on the table are updated to remove the row.
      *
      * @param tblFileInfo details of the table being updated
      *
      * @param ptup the tuple about to be removed from the table
+     *
+     * @param indexDefs the indexes to update
      */
-    private void removeRowFromIndexes(TableInfo tblFileInfo, PageTuple ptup) {
+    private void removeRowFromIndexes(TableInfo tblFileInfo, Tuple ptup,
+                                      Collection<ColumnRefs> indexDefs) {
 
         logger.debug("Removing tuple " + ptup + " from indexes for table " +
             tblFileInfo.getTableName());
 
+        indexDefs = getIndexesForRow(tblFileInfo, ptup, indexDefs);
+
+        IndexBatch batch = getBatch(tblFileInfo);
+        if (batch != null) {
+            for (ColumnRefs indexDef : indexDefs) {
+                batch.addEntry(batch.removals, indexDef.getIndexName(),
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, true));
+                if (isUnique(indexDef)) {
+                    batch.addRemovedKey(indexDef.getIndexName(),
+                        IndexUtils.makeTableSearchKey(indexDef, ptup, false));
+                }
+            }
+            return;
+        }
+
         // Iterate over the indexes in the table.
-        TableSchema schema = tblFileInfo.getSchema();
-        for (ColumnRefs indexDef : schema.getIndexes().values()) {
+        for (ColumnRefs indexDef : indexDefs) {
             try {
                 IndexInfo indexInfo = indexManager.openIndex(tblFileInfo,
                     indexDef.getIndexName());
 
-                // TODO:  Implement!
-                //
+                TupleFile indexFile = indexInfo.getTupleFile();
+
                 // Find and remove the entry in this index, corresponding to
                 // the passed-in tuple.
-                //
-                // If the tuple doesn't appear in this index, throw an
-                // IllegalStateException to indicate that the index is bad.
+                TupleLiteral key =
+                    IndexUtils.makeTableSearchKey(indexDef, ptup, true);
+
+                PageTuple entry = IndexUtils.findTupleInIndex(key, indexFile);
+                if (entry == null) {
+                    throw new IllegalStateException(String.format(
+                        "Index %s has no entry %s for the removed row",
+                        indexDef.getIndexName(), key));
+                }
+                indexFile.deleteTuple(entry);
             }
             catch (IOException e) {
                 throw new EventDispatchException("Couldn't update index " +
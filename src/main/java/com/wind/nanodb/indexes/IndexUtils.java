@@ -7,7 +7,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.wind.nanodb.expressions.ColumnName;
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.Environment;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.ExpressionProcessor;
+import com.wind.nanodb.expressions.FunctionCall;
+import com.wind.nanodb.expressions.IsNullOperator;
+import com.wind.nanodb.expressions.LiteralValue;
+import com.wind.nanodb.expressions.PredicateUtils;
+import com.wind.nanodb.expressions.SubqueryOperator;
 import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.functions.AggregateFunction;
+import com.wind.nanodb.functions.ScalarFunction;
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.ColumnInfo;
 import com.wind.nanodb.relations.ColumnType;
@@ -35,8 +48,10 @@ public class IndexUtils {
      * This method takes the schema of a table, and a description of an index,
      * and it builds the schema that the index should have.  This includes all
      * of the columns referenced by the index in the order that the index
-     * references them, and it also includes a <tt>#TUPLE_PTR</tt> column so
-     * the index can reference columns in the table.
+     * references them, with a column for each key that is computed from an
+     * expression, followed by any included columns, and it also
+     * includes a <tt>#TUPLE_PTR</tt> column so the index can reference
+     * columns in the table.
      *
      * @param tableSchema the schema of the table that the index is for
      * @param indexDesc a specification of the index
@@ -61,9 +76,24 @@ public class IndexUtils {
 
         String tableName = tableNames.iterator().next();
 
-        // Add all the referenced columns from the table schema.
+        // Add all the referenced columns from the table schema.  Keys that
+        // are computed from expressions are named after their position,
+        // since column names can't hold expressions.
         TableSchema indexSchema = new TableSchema();
-        for (int iCol : indexDesc.getCols())
+        for (int i = 0; i < indexDesc.size(); i++) {
+            Expression keyExpr = indexDesc.getKeyExpression(i);
+            if (keyExpr != null) {
+                ColumnType type = keyExpr.getColumnInfo(tableSchema).getType();
+                indexSchema.addColumnInfo(
+                    new ColumnInfo("#KEY_" + i, tableName, type));
+            }
+            else {
+                indexSchema.addColumnInfo(
+                    tableSchema.getColumnInfo(indexDesc.getCol(i)));
+            }
+        }
+
+        for (int iCol : indexDesc.getIncludedCols())
             indexSchema.addColumnInfo(tableSchema.getColumnInfo(iCol));
 
         // Add a tuple-pointer field for the index as well.
@@ -250,8 +280,8 @@ public class IndexUtils {
      *        created from.
      *
      * @param findExactTuple if {@code true}, this method will include the
-     *        {@code tuple}'s file-pointer so that the exact tuple can be
-     *        found in the index.
+     *        index's included columns and the {@code tuple}'s file-pointer,
+     *        so that the exact tuple can be found in the index.
      *
      * @return a tuple-literal that can be used for storing, looking up, or
      *         deleting the specific tuple {@code ptup}.
@@ -262,9 +292,11 @@ public class IndexUtils {
         // Build up a new tuple-literal containing the search key.
         TupleLiteral searchKeyVal = new TupleLiteral();
         for (int i = 0; i < columnRefs.size(); i++)
-            searchKeyVal.addValue(tuple.getColumnValue(columnRefs.getCol(i)));
+            searchKeyVal.addValue(getKeyValue(columnRefs, i, tuple));
 
         if (findExactTuple) {
+            addIncludedValues(columnRefs, tuple, searchKeyVal);
+
             // Include the file-pointer as the last value in the tuple, so
             // that all key-values are unique in the index.
             searchKeyVal.addValue(tuple.getExternalReference());
@@ -274,6 +306,315 @@ public class IndexUtils {
     }
 
 
+    /**
+     * Returns the value of one of an index's keys for a row of the index's
+     * table.  This is the value of the key's column, or the value of the
+     * key's expression evaluated against the row.
+     *
+     * @param columnRefs the index whose key value is computed
+     *
+     * @param i the position of the key in the index
+     *
+     * @param tuple a row of the table that the index is on
+     *
+     * @return the value of the key for the row
+     */
+    public static Object getKeyValue(ColumnRefs columnRefs, int i,
+                                     Tuple tuple) {
+        Expression keyExpr = columnRefs.getKeyExpression(i);
+        if (keyExpr == null)
+            return tuple.getColumnValue(columnRefs.getCol(i));
+
+        Environment env = new Environment();
+        env.addTuple(columnRefs.getTableSchema(), tuple);
+        return keyExpr.evaluate(env);
+    }
+
+
+    /**
+     * Rewrites an expression so that its column names aren't qualified with
+     * a table name, and checks that it can be computed from a single row of
+     * a table, the same way every time.  The expression passed in isn't
+     * changed.
+     */
+    private static class KeyExpressionRewriter implements ExpressionProcessor {
+        /** The schema of the table that the expression refers to. */
+        private Schema tableSchema;
+
+
+        /** A description of the first problem found, if any. */
+        private String error;
+
+
+        KeyExpressionRewriter(Schema tableSchema) {
+            this.tableSchema = tableSchema;
+        }
+
+
+        Expression rewrite(Expression expr) {
+            Expression result = expr.duplicate().traverse(this);
+            return (error == null ? result : null);
+        }
+
+
+        @Override
+        public void enter(Expression node) {
+            if (error != null)
+                return;
+
+            if (node instanceof SubqueryOperator) {
+                error = "subqueries aren't allowed";
+            }
+            else if (node instanceof FunctionCall) {
+                ScalarFunction function = ((FunctionCall) node).getFunction();
+                if (function instanceof AggregateFunction)
+                    error = "aggregate functions aren't allowed";
+                else if (!function.isDeterministic())
+                    error = node + " doesn't always return the same value";
+            }
+        }
+
+
+        @Override
+        public Expression leave(Expression node) {
+            if (error != null || !(node instanceof ColumnValue))
+                return node;
+
+            ColumnName colName = ((ColumnValue) node).getColumnName();
+            int iCol;
+            try {
+                iCol = tableSchema.getColumnIndex(colName);
+            }
+            catch (SchemaNameException e) {
+                iCol = -1;
+            }
+
+            if (iCol < 0) {
+                error = "column " + colName + " isn't in the table";
+                return node;
+            }
+
+            return new ColumnValue(new ColumnName(
+                tableSchema.getColumnInfo(iCol).getName()));
+        }
+    }
+
+
+    /**
+     * Checks an expression that an index key is computed from, and rewrites
+     * it into the form that is stored in the table's schema, with column
+     * names that aren't qualified with the table name.  The expression may
+     * only refer to the table's columns, and may only call functions that
+     * always return the same result for the same arguments, since the key
+     * is computed again whenever the row's index entry must be found.
+     *
+     * @param expr the key expression from the <tt>CREATE INDEX</tt> command
+     *
+     * @param tableSchema the schema of the table that the index is on
+     *
+     * @return the expression to store with the index
+     *
+     * @throws IllegalArgumentException if the expression can't be used as
+     *         an index key
+     */
+    public static Expression makeKeyExpression(Expression expr,
+                                               Schema tableSchema) {
+        if (expr == null)
+            throw new IllegalArgumentException("expr cannot be null");
+
+        if (!expr.hasSymbols()) {
+            throw new IllegalArgumentException("Index key " + expr +
+                " doesn't refer to any columns");
+        }
+
+        KeyExpressionRewriter rewriter = new KeyExpressionRewriter(tableSchema);
+        Expression result = rewriter.rewrite(expr);
+        if (result == null) {
+            throw new IllegalArgumentException("Index key " + expr +
+                " can't be used:  " + rewriter.error);
+        }
+
+        // Make sure the key's type can be worked out.
+        result.getColumnInfo(tableSchema);
+
+        return result;
+    }
+
+
+    /**
+     * Returns true if an expression from a query computes one of an index's
+     * keys, so that conditions on the expression can be answered from the
+     * index.  A key that is a column matches a reference to that column, and
+     * a key computed from an expression matches the same expression,
+     * whether or not its columns are qualified with the table name.
+     *
+     * @param columnRefs the index to check
+     *
+     * @param i the position of the key in the index
+     *
+     * @param expr the expression from the query
+     *
+     * @param tableSchema the schema of the table that the index is on
+     *
+     * @return true if the expression computes the index key
+     */
+    public static boolean matchesKey(ColumnRefs columnRefs, int i,
+                                     Expression expr, Schema tableSchema) {
+        Expression keyExpr = columnRefs.getKeyExpression(i);
+        if (keyExpr == null) {
+            if (!(expr instanceof ColumnValue))
+                return false;
+
+            try {
+                return tableSchema.getColumnIndex(
+                    ((ColumnValue) expr).getColumnName()) ==
+                    columnRefs.getCol(i);
+            }
+            catch (SchemaNameException e) {
+                return false;
+            }
+        }
+
+        if (expr instanceof ColumnValue || expr instanceof LiteralValue)
+            return false;
+
+        return keyExpr.equals(
+            new KeyExpressionRewriter(tableSchema).rewrite(expr));
+    }
+
+
+    /**
+     * Appends the values of an index's included columns to a search key.
+     * Index entries store these values between the key columns and the
+     * tuple-pointer.
+     *
+     * @param columnRefs the index whose included columns are added
+     *
+     * @param tuple the tuple from the original table to take values from
+     *
+     * @param searchKey the search key to append the values to
+     */
+    public static void addIncludedValues(ColumnRefs columnRefs, Tuple tuple,
+                                         TupleLiteral searchKey) {
+        for (int iCol : columnRefs.getIncludedCols())
+            searchKey.addValue(tuple.getColumnValue(iCol));
+    }
+
+
+    /**
+     * Checks the predicate of a partial index, and rewrites it into the form
+     * that is stored in the table's schema.  The predicate must be one or
+     * more conditions combined with <tt>AND</tt>, where each condition
+     * compares a column of the table with a literal value that isn't
+     * <tt>NULL</tt>, or tests whether a column is <tt>NULL</tt>.  This keeps
+     * the predicate simple enough for the planner to tell which queries
+     * imply it.  In the rewritten predicate the column is on the left of
+     * each comparison, and column names aren't qualified with the table
+     * name.
+     *
+     * @param predicate the predicate from the <tt>CREATE INDEX</tt> command
+     *
+     * @param tableSchema the schema of the table that the index is on
+     *
+     * @return the predicate to store with the index
+     *
+     * @throws IllegalArgumentException if the predicate isn't of the
+     *         supported form, or refers to a column that isn't in the table
+     */
+    public static Expression makeIndexPredicate(Expression predicate,
+                                                Schema tableSchema) {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        ArrayList<Expression> result = new ArrayList<>();
+        for (Expression conjunct : conjuncts) {
+            Expression colExpr;
+            if (conjunct instanceof IsNullOperator) {
+                colExpr = ((IsNullOperator) conjunct).getExpression();
+            }
+            else if (conjunct instanceof CompareOperator) {
+                CompareOperator comp =
+                    PredicateUtils.foldConstants((CompareOperator) conjunct);
+                comp.normalize();
+                conjunct = comp;
+                if (!(comp.getRightExpression() instanceof LiteralValue) ||
+                    comp.getRightExpression().evaluate() == null) {
+                    throw new IllegalArgumentException("Index predicates " +
+                        "can only compare columns with values that aren't " +
+                        "NULL; got " + conjunct);
+                }
+                colExpr = comp.getLeftExpression();
+            }
+            else {
+                throw new IllegalArgumentException("Index predicates can " +
+                    "only combine comparisons and IS NULL tests with AND; " +
+                    "got " + conjunct);
+            }
+
+            if (!(colExpr instanceof ColumnValue)) {
+                throw new IllegalArgumentException("Index predicates can " +
+                    "only compare columns of the table; got " + conjunct);
+            }
+
+            ColumnName colName = ((ColumnValue) colExpr).getColumnName();
+            int iCol;
+            try {
+                iCol = tableSchema.getColumnIndex(colName);
+            }
+            catch (SchemaNameException e) {
+                iCol = -1;
+            }
+
+            if (iCol < 0) {
+                throw new IllegalArgumentException("Index predicate refers " +
+                    "to column " + colName + ", which isn't in the table");
+            }
+
+            ColumnValue unqualified = new ColumnValue(new ColumnName(
+                tableSchema.getColumnInfo(iCol).getName()));
+            if (conjunct instanceof IsNullOperator) {
+                result.add(new IsNullOperator(unqualified,
+                    ((IsNullOperator) conjunct).isInverted()));
+            }
+            else {
+                CompareOperator comp = (CompareOperator) conjunct;
+                result.add(new CompareOperator(comp.getType(), unqualified,
+                    comp.getRightExpression()));
+            }
+        }
+
+        return PredicateUtils.makePredicate(result);
+    }
+
+
+    /**
+     * Returns true if a row of a table belongs in an index.  This is always
+     * true unless the index is a partial index, whose predicate the row
+     * doesn't satisfy.
+     *
+     * @param columnRefs the index to check
+     *
+     * @param tableSchema the schema of the table that the index is on
+     *
+     * @param tuple a row of the table
+     *
+     * @return true if the index should have an entry for the row
+     */
+    public static boolean isRowIndexed(ColumnRefs columnRefs,
+                                       Schema tableSchema, Tuple tuple) {
+        Expression predicate = columnRefs.getPredicate();
+        if (predicate == null)
+            return true;
+
+        Environment env = new Environment();
+        env.addTuple(tableSchema, tuple);
+        return predicate.evaluatePredicate(env);
+    }
+
+
     /**
      * Given an index tuple-file and a search key, this method attempts to
      * find the first tuple in the index that matches the search key.
@@ -340,6 +681,28 @@ public class IndexUtils {
      */
     public static List<String> verifyIndex(TupleFile tableTupleFile,
         TupleFile indexTupleFile) throws IOException {
+        return verifyIndex(tableTupleFile, indexTupleFile, null);
+    }
+
+
+    /**
+     * Verifies an index as {@link #verifyIndex(TupleFile, TupleFile)} does,
+     * except that if the index is a partial index, only the tuples that
+     * satisfy its predicate must be referenced by the index, and no others.
+     *
+     * @param tableTupleFile the tuple file holding the table data
+     * @param indexTupleFile the tuple file holding the index data
+     * @param columnRefs the definition of the index, or {@code null} if
+     *        every tuple of the table must be in the index
+     *
+     * @return A list of string error messages identified during the
+     *         verification scan.  This list will be empty if there are no
+     *         errors.
+     *
+     * @throws IOException
+     */
+    public static List<String> verifyIndex(TupleFile tableTupleFile,
+        TupleFile indexTupleFile, ColumnRefs columnRefs) throws IOException {
 
         ArrayList<String> errors = new ArrayList<>();
         HashSet<FilePointer> tableTuples = new HashSet<>();
@@ -349,8 +712,15 @@ public class IndexUtils {
 
         // Scan through all tuples in the table file, and record the file
         // pointer to each one.
+        Schema tableSchema = tableTupleFile.getSchema();
         tup = tableTupleFile.getFirstTuple();
         while (tup != null) {
+            if (columnRefs != null &&
+                !isRowIndexed(columnRefs, tableSchema, tup)) {
+                tup = tableTupleFile.getNextTuple(tup);
+                continue;
+            }
+
             if (!tableTuples.add(tup.getExternalReference())) {
                 // This should never happen.
                 throw new IllegalStateException("The impossible has " +
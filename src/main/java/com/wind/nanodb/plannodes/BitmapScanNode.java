@@ -0,0 +1,377 @@
+package com.wind.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.queryeval.ColumnStats;
+import com.wind.nanodb.queryeval.PlanCost;
+import com.wind.nanodb.queryeval.SelectivityEstimator;
+import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.TupleBitmap;
+import com.wind.nanodb.storage.TupleFile;
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * A select plan-node that finds the rows of a table through one or more
+ * index scans, but fetches them from the table in physical order.  Each
+ * index scan collects the tuple-pointers in its key range into a
+ * {@link TupleBitmap}.  The scans are arranged as a conjunction of
+ * disjunctions:  the bitmaps of the scans in each group are combined with
+ * <tt>OR</tt>, and the bitmaps of the groups are intersected with
+ * <tt>AND</tt>.  For example, the predicate
+ * <tt>(a = 1 OR a = 7) AND b &gt; 10</tt> could use two scans of an index on
+ * <tt>a</tt> in one group, and a scan of an index on <tt>b</tt> in another.
+ * </p>
+ * <p>
+ * The rows in the resulting bitmap are then fetched by page and by offset
+ * within the page, so that each page of the table is read once, instead of
+ * jumping between pages in the order of the index keys.  The whole
+ * predicate is still checked against each row, since the key ranges usually
+ * don't capture all of it.
+ * </p>
+ * <p>
+ * Like {@link IndexScanNode}, this node collects all of the tuple-pointers
+ * before producing any rows, so <tt>UPDATE</tt> and <tt>DELETE</tt>
+ * statements can use it while they change the indexes.
+ * </p>
+ */
+public class BitmapScanNode extends SelectNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(BitmapScanNode.class);
+
+
+    /** The table-info for the table whose rows are being selected. */
+    private TableInfo tableInfo;
+
+
+    /** The table's tuple file, which the rows are fetched from. */
+    private TupleFile tableFile;
+
+
+    /**
+     * The index scans whose tuple-pointers are combined.  The scans in each
+     * inner list are combined with <tt>OR</tt>, and the results of the
+     * lists are combined with <tt>AND</tt>.
+     */
+    private List<List<IndexScanNode>> scanGroups;
+
+
+    /**
+     * The locations of the rows to fetch, or {@code null} if the index scans
+     * haven't been read yet.
+     */
+    private TupleBitmap bitmap;
+
+
+    /** Iterates over {@link #bitmap} in physical order. */
+    private Iterator<FilePointer> bitmapIter;
+
+
+    /**
+     * Construct a bitmap scan node that combines index scans to find the rows
+     * of a table.
+     *
+     * @param tableInfo the information about the table being scanned
+     * @param scanGroups the index scans to combine; the scans in each inner
+     *        list are combined with <tt>OR</tt>, and the lists are combined
+     *        with <tt>AND</tt>
+     * @param predicate the predicate that every row must satisfy
+     */
+    public BitmapScanNode(TableInfo tableInfo,
+                          List<List<IndexScanNode>> scanGroups,
+                          Expression predicate) {
+        super(predicate);
+
+        if (tableInfo == null)
+            throw new IllegalArgumentException("tableInfo cannot be null");
+
+        if (scanGroups == null || scanGroups.isEmpty())
+            throw new IllegalArgumentException("scanGroups cannot be empty");
+
+        for (List<IndexScanNode> group : scanGroups) {
+            if (group.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "each group of index scans must have at least one scan");
+            }
+        }
+
+        this.tableInfo = tableInfo;
+        this.scanGroups = scanGroups;
+        tableFile = tableInfo.getTupleFile();
+    }
+
+
+    /**
+     * Returns true if the passed-in object is a <tt>BitmapScanNode</tt> with
+     * the same predicate and index scans.
+     *
+     * @param obj the object to check for equality
+     *
+     * @return true if the passed-in object is equal to this object; false
+     *         otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof BitmapScanNode) {
+            BitmapScanNode other = (BitmapScanNode) obj;
+            return tableFile.equals(other.tableFile) &&
+                scanGroups.equals(other.scanGroups) &&
+                (predicate == null ? other.predicate == null :
+                                     predicate.equals(other.predicate));
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + tableFile.hashCode();
+        hash = 31 * hash + scanGroups.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this bitmap scan node.  This method is used by
+     * {@link PlanNode#duplicate} to copy a plan tree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        BitmapScanNode node = (BitmapScanNode) super.clone();
+
+        // The index scans are only used to read their key ranges, which
+        // never change after they are constructed, so they can be shared.
+        node.scanGroups = scanGroups;
+
+        // The copy reads the index scans for itself.
+        node.bitmap = null;
+        node.bitmapIter = null;
+
+        return node;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("BitmapScan[table:  ").append(tableInfo.getTableName());
+        buf.append(", indexes:  ");
+
+        boolean firstGroup = true;
+        for (List<IndexScanNode> group : scanGroups) {
+            if (!firstGroup)
+                buf.append(" AND ");
+            firstGroup = false;
+
+            if (scanGroups.size() > 1 && group.size() > 1)
+                buf.append('(');
+
+            boolean firstScan = true;
+            for (IndexScanNode scan : group) {
+                if (!firstScan)
+                    buf.append(" OR ");
+                firstScan = false;
+
+                buf.append(scan.getIndexInfo().getIndexName());
+                buf.append(' ').append(scan.getKeyRangeString());
+            }
+
+            if (scanGroups.size() > 1 && group.size() > 1)
+                buf.append(')');
+        }
+
+        if (predicate != null)
+            buf.append(", pred:  ").append(predicate.toString());
+
+        buf.append("]");
+
+        return buf.toString();
+    }
+
+
+    /**
+     * The rows come out in physical order, which doesn't correspond to any
+     * column values, so the results are unsorted.
+     */
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * Computes the cost of the bitmap scan.  Each index scan reads its part
+     * of its index.  The number of rows in the combined bitmap is estimated
+     * from the selectivities of the scans' key ranges, assuming that they
+     * are independent.  Those rows are spread over the table's pages, and
+     * the number of distinct pages they fall on is estimated with
+     * Cardenas' formula, <i>P</i>(1 - (1 - 1/<i>P</i>)<sup><i>k</i></sup>)
+     * for <i>k</i> rows over <i>P</i> pages.
+     */
+    public void prepare() {
+        schema = tableFile.getSchema();
+
+        TableStats tableStats = tableFile.getStats();
+        ArrayList<ColumnStats> fileStats = tableStats.getAllColumnStats();
+        stats = fileStats;
+
+        long numIndexBlockIOs = 0;
+        float numIndexEntries = 0;
+        float bitmapSelectivity = 1.0f;
+        for (List<IndexScanNode> group : scanGroups) {
+            // The probability that a row is in none of the group's scans.
+            float notSelected = 1.0f;
+            for (IndexScanNode scan : group) {
+                scan.prepare();
+                numIndexBlockIOs += scan.getNumIndexBlockIOs();
+
+                float selectivity = scan.getKeyRangeSelectivity();
+                numIndexEntries += tableStats.numTuples * selectivity;
+                notSelected *= 1.0f - selectivity;
+            }
+
+            bitmapSelectivity *= 1.0f - notSelected;
+        }
+
+        float numRows = tableStats.numTuples * bitmapSelectivity;
+        int numPages = tableStats.numDataPages;
+        double numHeapPages = 0;
+        if (numPages > 0) {
+            numHeapPages =
+                numPages * (1.0 - Math.pow(1.0 - 1.0 / numPages, numRows));
+        }
+
+        cost = new PlanCost(numRows, tableStats.avgTupleSize,
+            numIndexEntries + numRows,
+            numIndexBlockIOs + (long) Math.ceil(numHeapPages));
+
+        if (predicate != null) {
+            float selectivity = SelectivityEstimator.estimateSelectivity(
+                predicate, schema, tableStats);
+            cost.numTuples = tableStats.numTuples * selectivity;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        // Read the index scans again, in case the indexes have changed.
+        bitmap = null;
+        bitmapIter = null;
+    }
+
+
+    public void cleanUp() {
+        bitmap = null;
+        bitmapIter = null;
+    }
+
+
+    /**
+     * Advances the current tuple to the next row in the bitmap, building the
+     * bitmap from the index scans first if necessary.
+     *
+     * @throws IOException if an index or the table can't be read
+     */
+    protected void advanceCurrentTuple() throws IOException {
+        if (bitmap == null) {
+            bitmap = readBitmap();
+            bitmapIter = bitmap.iterator();
+        }
+
+        if (!bitmapIter.hasNext()) {
+            currentTuple = null;
+            return;
+        }
+
+        FilePointer fptr = bitmapIter.next();
+        try {
+            currentTuple = tableFile.getTuple(fptr);
+        }
+        catch (InvalidFilePointerException e) {
+            throw new IOException("An index on table " +
+                tableInfo.getTableName() +
+                " refers to a row that doesn't exist:  " + fptr, e);
+        }
+    }
+
+
+    /**
+     * Reads the key ranges of all the index scans, and combines their
+     * tuple-pointers into one bitmap.
+     *
+     * @return the locations of the rows that all of the groups of scans
+     *         selected
+     *
+     * @throws IOException if an index can't be read
+     */
+    private TupleBitmap readBitmap() throws IOException {
+        TupleBitmap result = null;
+        for (List<IndexScanNode> group : scanGroups) {
+            TupleBitmap groupBitmap = new TupleBitmap();
+            for (IndexScanNode scan : group) {
+                for (FilePointer fptr : scan.readKeyRange())
+                    groupBitmap.add(fptr);
+            }
+
+            if (result == null)
+                result = groupBitmap;
+            else
+                result.and(groupBitmap);
+
+            // Nothing can be added back by intersecting more groups.
+            if (result.size() == 0)
+                break;
+        }
+
+        logger.debug(String.format("Bitmap scan of table %s found %s",
+            tableInfo.getTableName(), result));
+
+        return result;
+    }
+
+
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Bitmap scans don't support marking");
+    }
+
+
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Bitmap scans don't support marking");
+    }
+}
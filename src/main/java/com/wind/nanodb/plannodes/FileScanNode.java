@@ -11,6 +11,8 @@ import com.wind.nanodb.queryeval.PlanCost;
 import com.wind.nanodb.queryeval.SelectivityEstimator;
 import com.wind.nanodb.storage.FilePointer;
 import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.TupleCursor;
 import com.wind.nanodb.storage.TupleFile;
 import org.apache.log4j.Logger;
 
@@ -18,8 +20,13 @@ import com.wind.nanodb.queryeval.ColumnStats;
 import com.wind.nanodb.queryeval.TableStats;
 import com.wind.nanodb.relations.TableInfo;
 
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
 import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.IsNullOperator;
+import com.wind.nanodb.expressions.LiteralValue;
 import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.expressions.PredicateUtils;
 
 
 /**
@@ -35,6 +42,11 @@ import com.wind.nanodb.expressions.OrderByExpression;
  * ability to look up tuples based on various values, the {@link IndexScanNode}
  * should be used instead.
  * </p>
+ * <p>
+ * The simple conditions in the predicate, such as <tt>a &gt; 5</tt>, are
+ * passed to the tuple file as {@link ScanBounds}, so that a file that keeps
+ * summaries of its pages' values can skip pages without reading them.
+ * </p>
  */
 public class FileScanNode extends SelectNode {
 
@@ -60,6 +72,20 @@ public class FileScanNode extends SelectNode {
     private TupleFile tupleFile;
 
 
+    /**
+     * The cursor used to scan the tuple file, or {@code null} if the scan
+     * hasn't started yet.
+     */
+    private TupleCursor cursor;
+
+
+    /**
+     * The simple conditions from the predicate that the tuple file may use
+     * to skip pages, or {@code null} if the node hasn't been prepared.
+     */
+    private ScanBounds scanBounds;
+
+
     /**
      * This field allows the file-scan node to mark a particular tuple in the
      * tuple-stream and then rewind to that point in the tuple-stream.
@@ -158,6 +184,9 @@ public class FileScanNode extends SelectNode {
         // The tuple file doesn't need to be copied since it's immutable.
         node.tupleFile = tupleFile;
 
+        // The copy starts its own scan.
+        node.cursor = null;
+
         return node;
     }
 
@@ -236,6 +265,94 @@ public class FileScanNode extends SelectNode {
             float selectivity = SelectivityEstimator.estimateSelectivity(predicate, schema, tableStats);
             cost.numTuples *= selectivity;
         }
+
+        scanBounds = makeScanBounds();
+    }
+
+
+    /**
+     * Collects the conjuncts of the predicate that compare a column of the
+     * tuple file to a literal value, or that test a column for
+     * <tt>NULL</tt>, into scan bounds for the tuple file.
+     *
+     * @return the scan bounds, which may be empty
+     */
+    private ScanBounds makeScanBounds() {
+        ScanBounds bounds = new ScanBounds();
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        for (Expression conjunct : conjuncts) {
+            if (conjunct instanceof CompareOperator) {
+                CompareOperator comp = (CompareOperator) conjunct;
+                Expression left = comp.getLeftExpression();
+                Expression right = comp.getRightExpression();
+                CompareOperator.Type type = comp.getType();
+
+                // Put the column on the left, flipping the comparison.
+                if (left instanceof LiteralValue && right instanceof ColumnValue) {
+                    Expression tmp = left;
+                    left = right;
+                    right = tmp;
+                    type = flipCompareType(type);
+                }
+
+                int colIndex = getColumnIndex(left);
+                if (colIndex < 0 || !(right instanceof LiteralValue))
+                    continue;
+
+                Object value = right.evaluate();
+                if (value != null)
+                    bounds.addComparison(colIndex, type, value);
+            }
+            else if (conjunct instanceof IsNullOperator) {
+                IsNullOperator isNull = (IsNullOperator) conjunct;
+                int colIndex = getColumnIndex(isNull.getExpression());
+                if (colIndex >= 0)
+                    bounds.addNullTest(colIndex, !isNull.isInverted());
+            }
+        }
+
+        if (!bounds.isEmpty())
+            logger.debug("Scan of " + tupleFile + " has bounds " + bounds);
+
+        return bounds;
+    }
+
+
+    /**
+     * Returns the index of the column that an expression refers to in the
+     * tuple file's schema, or -1 if the expression isn't a column of the
+     * file.
+     */
+    private int getColumnIndex(Expression expr) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        return schema.getColumnIndex(((ColumnValue) expr).getColumnName());
+    }
+
+
+    /** Returns the comparison that results from swapping its two sides. */
+    private static CompareOperator.Type flipCompareType(
+        CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
     }
 
 
@@ -245,17 +362,29 @@ public class FileScanNode extends SelectNode {
         // Reset our marking state.
         markedTuple = null;
         jumpToMarkedTuple = false;
+
+        // Start the scan over from the beginning.
+        closeCursor();
     }
 
 
     public void cleanUp() {
-        // Nothing to do!
+        closeCursor();
+    }
+
+
+    private void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
     }
 
 
     /**
-     * Advances the current tuple forward for a file scan. Grabs the first tuple
-     * if current is null. Otherwise gets the next tuple.
+     * Advances the current tuple forward for a file scan, using a cursor over
+     * the tuple file.  Tuples are handed up the plan, so the cursor must not
+     * reuse its tuple object.
      *
      * @throws java.io.IOException if the TableManager failed to open the table.
      */
@@ -272,13 +401,18 @@ public class FileScanNode extends SelectNode {
             }
             jumpToMarkedTuple = false;
 
+            // Continue the scan from the marked tuple.
+            if (cursor == null)
+                cursor = tupleFile.openCursor(/* reuseTuple */ false, scanBounds);
+
+            cursor.positionAfter(currentTuple);
             return;
         }
 
-        if (currentTuple == null)   // Get the first tuple.
-            currentTuple = tupleFile.getFirstTuple();
-        else                        // Get the next tuple.
-            currentTuple = tupleFile.getNextTuple(currentTuple);
+        if (cursor == null)
+            cursor = tupleFile.openCursor(/* reuseTuple */ false, scanBounds);
+
+        currentTuple = cursor.next();
     }
 
 
@@ -0,0 +1,650 @@
+package com.wind.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.expressions.PredicateUtils;
+import com.wind.nanodb.expressions.TupleComparator;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.IndexInfo;
+import com.wind.nanodb.queryeval.ColumnStats;
+import com.wind.nanodb.queryeval.PlanCost;
+import com.wind.nanodb.queryeval.SelectivityEstimator;
+import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.ColumnRefs;
+import com.wind.nanodb.relations.JoinType;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.SchemaNameException;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.SequentialTupleFile;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
+
+
+/**
+ * <p>
+ * This plan node implements an index nested-loop join.  Rather than scanning
+ * the whole inner relation for every outer tuple, it looks up the matching
+ * inner rows in an ordered index on the inner table.  The join predicate
+ * must include equalities between the leading columns of the index and
+ * columns of the outer relation, such as <tt>o.cust_id = c.id</tt> with an
+ * index on <tt>c.id</tt>; the whole predicate is still checked against each
+ * pair of rows.
+ * </p>
+ * <p>
+ * The left child produces the outer tuples.  The right child is the plan
+ * that reads the inner table, such as a {@link FileScanNode} possibly under
+ * a {@link RenameNode}.  It provides the schema and statistics of the inner
+ * relation, but is never executed, since the inner rows are fetched from
+ * the table through the index entries' tuple-pointers.
+ * </p>
+ * <p>
+ * When the outer relation repeats a key, such as many orders for the same
+ * customer, the same probe would be repeated.  The node keeps the results
+ * of the most recent probes in a small cache, so that repeated keys don't
+ * go back to the index.
+ * </p>
+ */
+public class IndexNestedLoopJoinNode extends ThetaJoinNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger =
+        Logger.getLogger(IndexNestedLoopJoinNode.class);
+
+
+    /** The number of probe results kept in the probe cache. */
+    public static final int PROBE_CACHE_SIZE = 64;
+
+
+    /** The inner table, which the matching rows are fetched from. */
+    private TableInfo innerTableInfo;
+
+
+    /** The index on the inner table that is probed for each outer tuple. */
+    private IndexInfo indexInfo;
+
+
+    /** The inner table's tuple file. */
+    private TupleFile innerTableFile;
+
+
+    /** The index's tuple file, which must be an ordered file. */
+    private SequentialTupleFile indexFile;
+
+
+    /**
+     * For each leading index column used in the probe key, the index of the
+     * outer relation's column that it must equal.  This is set up by
+     * {@link #prepare}.
+     */
+    private int[] outerKeyColumns;
+
+
+    /**
+     * The most recent probe results, mapping a probe key to the
+     * tuple-pointers of the inner rows with that key.  The map is kept in
+     * access order, so the least recently used result is dropped first.
+     */
+    private LinkedHashMap<TupleLiteral, List<FilePointer>> probeCache;
+
+
+    /** The number of times the index was probed since initialization. */
+    private int numProbes;
+
+
+    /** The number of probes answered from the probe cache. */
+    private int numCacheHits;
+
+
+    /** The current outer tuple, or {@code null} if one must be fetched. */
+    private Tuple outerTuple;
+
+
+    /** The tuple-pointers of the inner rows matching the outer tuple's key. */
+    private List<FilePointer> innerPointers;
+
+
+    /** The position in {@link #innerPointers} of the next inner row. */
+    private int nextInner;
+
+
+    /** True if the current outer tuple has been joined with an inner row. */
+    private boolean matched;
+
+
+    /** Set to true when we have exhausted all tuples from the outer plan. */
+    private boolean done;
+
+
+    /**
+     * Constructs an index nested-loop join node.
+     *
+     * @param leftChild the plan producing the outer relation
+     *
+     * @param rightChild the plan reading the inner table, which provides
+     *        the inner relation's schema and statistics
+     *
+     * @param joinType the type of join; only inner joins and left outer
+     *        joins are supported, since the inner relation is on the right
+     *
+     * @param predicate the join condition
+     *
+     * @param innerTableInfo the inner table
+     *
+     * @param indexInfo an ordered index on the inner table
+     */
+    public IndexNestedLoopJoinNode(PlanNode leftChild, PlanNode rightChild,
+        JoinType joinType, Expression predicate, TableInfo innerTableInfo,
+        IndexInfo indexInfo) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        if (joinType != JoinType.INNER && joinType != JoinType.LEFT_OUTER) {
+            throw new IllegalArgumentException(
+                "Index nested-loop joins don't support joins of type " +
+                joinType);
+        }
+
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        if (innerTableInfo == null)
+            throw new IllegalArgumentException("innerTableInfo cannot be null");
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile)) {
+            throw new IllegalArgumentException("Index " +
+                indexInfo.getIndexName() + " is not an ordered index");
+        }
+
+        this.innerTableInfo = innerTableInfo;
+        this.indexInfo = indexInfo;
+        innerTableFile = innerTableInfo.getTupleFile();
+        indexFile = (SequentialTupleFile) indexInfo.getTupleFile();
+    }
+
+
+    /**
+     * Returns true if the join predicate equates the leading column of the
+     * index with a column of the outer relation, so that the index can be
+     * probed.  This is only valid after {@link #prepare} has been called.
+     *
+     * @return true if the index can be probed for each outer tuple
+     */
+    public boolean hasProbeKey() {
+        return outerKeyColumns != null && outerKeyColumns.length > 0;
+    }
+
+
+    /**
+     * Returns the number of times the index was probed since the node was
+     * initialized, not counting probes answered from the probe cache.
+     *
+     * @return the number of index probes
+     */
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+
+    /**
+     * Returns the number of probes since the node was initialized that were
+     * answered from the probe cache.
+     *
+     * @return the number of probe-cache hits
+     */
+    public int getNumCacheHits() {
+        return numCacheHits;
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but not
+     * necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof IndexNestedLoopJoinNode) {
+            IndexNestedLoopJoinNode other = (IndexNestedLoopJoinNode) obj;
+
+            return indexFile.equals(other.indexFile) &&
+                joinType == other.joinType &&
+                predicate.equals(other.predicate) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the index nested-loop plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + predicate.hashCode();
+        hash = 31 * hash + indexFile.hashCode();
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexNestedLoop[index:  ").append(indexInfo.getTableName());
+        buf.append('.').append(indexInfo.getIndexName());
+        buf.append(", pred:  ").append(predicate);
+
+        if (joinType != JoinType.INNER)
+            buf.append(", ").append(joinType);
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        IndexNestedLoopJoinNode node = (IndexNestedLoopJoinNode) super.clone();
+
+        // Clone the predicate.
+        node.predicate = predicate.duplicate();
+
+        // The copy keeps its own probe cache.
+        node.probeCache = null;
+
+        return node;
+    }
+
+
+    /**
+     * The results come out in the order of the outer relation, but we will
+     * keep it simple and just report that the results are not ordered.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require its children to support marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require its children to support marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * Works out the probe key from the join predicate, and computes the cost
+     * of the join.  Each outer tuple costs one probe:  a descent from the
+     * root of the index to a leaf, plus one page read for each matching
+     * inner row (up to the number of pages in the inner table).
+     */
+    @Override
+    public void prepare() {
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findProbeKey();
+
+        PlanCost leftCost = leftChild.getCost();
+        if (leftCost == null || !hasProbeKey()) {
+            logger.info(
+                "Child's cost not available; not computing this node's cost.");
+            cost = null;
+            return;
+        }
+
+        // Estimate how many inner rows each probe finds, from the number of
+        // distinct values in the key columns.
+        TableStats innerStats = innerTableFile.getStats();
+        float probeSelectivity = 1.0f;
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        for (int i = 0; i < outerKeyColumns.length; i++) {
+            ColumnStats colStats =
+                innerStats.getColumnStats(indexCols.getCol(i));
+            int numUnique = colStats.getNumUniqueValues();
+            if (numUnique > 0)
+                probeSelectivity /= numUnique;
+            else
+                probeSelectivity *= SelectivityEstimator.DEFAULT_SELECTIVITY;
+        }
+        float rowsPerProbe = innerStats.numTuples * probeSelectivity;
+
+        int height = 1;
+        try {
+            if (indexFile instanceof BTreeTupleFile)
+                height = Math.max(1, ((BTreeTupleFile) indexFile).getHeight());
+        }
+        catch (IOException e) {
+            // The estimate is only used to choose between plans, so just
+            // go with the default.
+            logger.warn("Couldn't read the structure of index " +
+                indexInfo.getIndexName(), e);
+        }
+
+        float probeIOs = height +
+            Math.min(rowsPerProbe, innerStats.numDataPages);
+
+        float numTuples = leftCost.numTuples * rowsPerProbe;
+        if (joinType == JoinType.LEFT_OUTER)
+            numTuples = Math.max(numTuples, leftCost.numTuples);
+
+        cost = new PlanCost(numTuples,
+            leftCost.tupleSize + innerStats.avgTupleSize,
+            leftCost.cpuCost + leftCost.numTuples * (height + rowsPerProbe),
+            leftCost.numBlockIOs +
+                (long) Math.ceil(leftCost.numTuples * probeIOs));
+    }
+
+
+    /**
+     * Finds the conjuncts of the join predicate that equate the leading
+     * columns of the index with columns of the outer relation, and records
+     * the outer columns in {@link #outerKeyColumns}.
+     */
+    private void findProbeKey() {
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        ArrayList<Integer> outerCols = new ArrayList<>();
+        for (int i = 0; i < indexCols.size(); i++) {
+            // Only keys that are columns of the inner table can be probed
+            // with the values of outer columns.
+            if (indexCols.getCol(i) == ColumnRefs.EXPRESSION_KEY)
+                break;
+
+            int outerCol = -1;
+            for (Expression conjunct : conjuncts) {
+                outerCol = getOuterKeyColumn(conjunct, indexCols.getCol(i));
+                if (outerCol >= 0)
+                    break;
+            }
+
+            if (outerCol < 0)
+                break;
+
+            outerCols.add(outerCol);
+        }
+
+        outerKeyColumns = new int[outerCols.size()];
+        for (int i = 0; i < outerKeyColumns.length; i++)
+            outerKeyColumns[i] = outerCols.get(i);
+    }
+
+
+    /**
+     * If a conjunct is an equality between the specified column of the inner
+     * relation and a column of the outer relation, returns the index of the
+     * outer column.  Otherwise, returns -1.
+     */
+    private int getOuterKeyColumn(Expression conjunct, int innerCol) {
+        if (!(conjunct instanceof CompareOperator))
+            return -1;
+
+        CompareOperator comp = (CompareOperator) conjunct;
+        if (comp.getType() != CompareOperator.Type.EQUALS)
+            return -1;
+
+        Expression left = comp.getLeftExpression();
+        Expression right = comp.getRightExpression();
+        if (!(left instanceof ColumnValue) || !(right instanceof ColumnValue))
+            return -1;
+
+        ColumnValue leftCol = (ColumnValue) left;
+        ColumnValue rightCol = (ColumnValue) right;
+
+        if (findColumn(rightSchema, rightCol) == innerCol &&
+            findColumn(leftSchema, rightCol) < 0) {
+            return findOuterColumn(leftCol);
+        }
+
+        if (findColumn(rightSchema, leftCol) == innerCol &&
+            findColumn(leftSchema, leftCol) < 0) {
+            return findOuterColumn(rightCol);
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Returns the index of a column in the outer relation, or -1 if the
+     * column is not only in the outer relation.
+     */
+    private int findOuterColumn(ColumnValue colValue) {
+        if (findColumn(rightSchema, colValue) >= 0)
+            return -1;
+
+        return findColumn(leftSchema, colValue);
+    }
+
+
+    /**
+     * Returns the index of a column in a schema, or -1 if the column isn't
+     * in the schema or its name is ambiguous.
+     */
+    private static int findColumn(Schema schema, ColumnValue colValue) {
+        try {
+            return schema.getColumnIndex(colValue.getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        probeCache = new LinkedHashMap<TupleLiteral, List<FilePointer>>(
+            PROBE_CACHE_SIZE, 0.75f, /* accessOrder */ true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<TupleLiteral, List<FilePointer>> eldest) {
+                return size() > PROBE_CACHE_SIZE;
+            }
+        };
+
+        numProbes = 0;
+        numCacheHits = 0;
+
+        outerTuple = null;
+        innerPointers = null;
+        nextInner = 0;
+        matched = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        while (true) {
+            if (outerTuple == null) {
+                outerTuple = leftChild.getNextTuple();
+                if (outerTuple == null) {
+                    done = true;
+                    logger.debug(String.format("Join probed index %s %d " +
+                        "times; %d more probes were cached", indexInfo.getIndexName(),
+                        numProbes, numCacheHits));
+                    return null;
+                }
+
+                innerPointers = probeIndex(outerTuple);
+                nextInner = 0;
+                matched = false;
+            }
+
+            while (nextInner < innerPointers.size()) {
+                Tuple innerTuple = fetchInnerTuple(innerPointers.get(nextInner));
+                nextInner++;
+
+                Tuple joined = null;
+                if (canJoinTuples(outerTuple, innerTuple))
+                    joined = joinTuples(outerTuple, innerTuple);
+
+                // The joined tuple is a copy, so the row can be released.
+                if (innerTuple.isPinned())
+                    innerTuple.unpin();
+
+                if (joined != null) {
+                    matched = true;
+                    return joined;
+                }
+            }
+
+            Tuple lastOuter = outerTuple;
+            outerTuple = null;
+
+            if (joinType == JoinType.LEFT_OUTER && !matched)
+                return joinTuplesPadNull(lastOuter, rightSchema.numColumns());
+        }
+    }
+
+
+    /**
+     * Returns the tuple-pointers of the inner rows whose key matches an
+     * outer tuple, from the probe cache if possible.
+     *
+     * @param outer the outer tuple
+     *
+     * @return the tuple-pointers of the inner rows with the outer tuple's key
+     *
+     * @throws IOException if the index can't be read
+     */
+    private List<FilePointer> probeIndex(Tuple outer) throws IOException {
+        TupleLiteral key = new TupleLiteral();
+        for (int col : outerKeyColumns) {
+            Object value = outer.getColumnValue(col);
+
+            // NULL never equals anything, so there's nothing to find.
+            if (value == null)
+                return new ArrayList<>();
+
+            key.addValue(value);
+        }
+
+        List<FilePointer> pointers = probeCache.get(key);
+        if (pointers != null) {
+            numCacheHits++;
+            return pointers;
+        }
+
+        numProbes++;
+        pointers = new ArrayList<>();
+
+        // The tuple-pointer is the last column of every index entry.
+        int ptrIndex = indexFile.getSchema().numColumns() - 1;
+
+        Tuple entry = indexFile.findFirstTupleEquals(key);
+        while (entry != null) {
+            if (TupleComparator.comparePartialTuples(entry, key) != 0) {
+                entry.unpin();
+                break;
+            }
+
+            pointers.add((FilePointer) entry.getColumnValue(ptrIndex));
+
+            Tuple next = indexFile.getNextTuple(entry);
+            entry.unpin();
+            entry = next;
+        }
+
+        probeCache.put(key, pointers);
+        return pointers;
+    }
+
+
+    /** Fetches an inner row from the inner table. */
+    private Tuple fetchInnerTuple(FilePointer fptr) throws IOException {
+        try {
+            return innerTableFile.getTuple(fptr);
+        }
+        catch (InvalidFilePointerException e) {
+            throw new IOException("Index " + indexInfo.getIndexName() +
+                " refers to a row that doesn't exist:  " + fptr, e);
+        }
+    }
+
+
+    private boolean canJoinTuples(Tuple outer, Tuple inner) {
+        environment.clear();
+        environment.addTuple(leftSchema, outer);
+        environment.addTuple(rightSchema, inner);
+
+        return predicate.evaluatePredicate(environment);
+    }
+
+
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join doesn't support marking");
+    }
+
+
+    public void resetToLastMark() throws IllegalStateException {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        leftChild.cleanUp();
+        probeCache = null;
+    }
+}
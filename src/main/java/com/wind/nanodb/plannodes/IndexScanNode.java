@@ -0,0 +1,876 @@
+package com.wind.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.LiteralValue;
+import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.expressions.PredicateUtils;
+import com.wind.nanodb.expressions.TupleComparator;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.IndexInfo;
+import com.wind.nanodb.indexes.IndexUtils;
+import com.wind.nanodb.queryeval.ColumnStats;
+import com.wind.nanodb.queryeval.PlanCost;
+import com.wind.nanodb.queryeval.SelectivityEstimator;
+import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.ColumnRefs;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.SequentialTupleFile;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * A select plan-node that uses an ordered index on a table to find the rows
+ * that satisfy a predicate, instead of scanning the whole table.  The
+ * conjuncts of the predicate that compare the index's columns to literal
+ * values become a range of index keys:  an equality prefix on the leading
+ * columns of the index, followed by an optional range on the next column.
+ * For example, with an index on <tt>(a, b)</tt>, the predicate
+ * <tt>a = 5 AND b &gt; 10 AND c &lt; 3</tt> covers the keys from
+ * <tt>(5, 10)</tt> (exclusive) to <tt>(5)</tt>.
+ * </p>
+ * <p>
+ * The node seeks the index to the lower end of the range, walks the leaf
+ * entries up to the upper end, and fetches each row from the table through
+ * the entry's tuple-pointer.  The whole predicate is still checked against
+ * each row, since the key range usually doesn't capture all of it.
+ * </p>
+ * <p>
+ * The tuple-pointers in the range are collected before any rows are
+ * produced.  <tt>UPDATE</tt> and <tt>DELETE</tt> statements change the
+ * table's indexes as they go, and reading the range first means that the
+ * scan can't lose its place in the index, or see rows that the statement
+ * has already moved to a later key.
+ * </p>
+ * <p>
+ * If the index stores every column that the query needs, either as a key
+ * column or as an included column, the scan can be made <em>index-only</em>
+ * with {@link #setIndexOnly}.  The rows are then built from the index
+ * entries, and the table itself is never read.  The rows still have the
+ * table's schema, but the columns that the index doesn't store are
+ * <tt>NULL</tt>.  Since such rows have no file-pointer, index-only scans
+ * are only suitable for queries, not for <tt>UPDATE</tt> or
+ * <tt>DELETE</tt>.
+ * </p>
+ */
+public class IndexScanNode extends SelectNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(IndexScanNode.class);
+
+
+    /** The table-info for the table whose rows are being selected. */
+    private TableInfo tableInfo;
+
+
+    /** The index-info for the index used to find the rows. */
+    private IndexInfo indexInfo;
+
+
+    /** The table's tuple file, which the rows are fetched from. */
+    private TupleFile tableFile;
+
+
+    /** The index's tuple file, which must be an ordered file. */
+    private SequentialTupleFile indexFile;
+
+
+    /**
+     * The values that the leading columns of the index must equal.  This
+     * may be empty if the range is only on the first column.
+     */
+    private ArrayList<Object> equalityValues = new ArrayList<>();
+
+
+    /**
+     * The comparison that bounds the range from below on the column after
+     * the equality prefix, or {@code null} if there isn't one.
+     */
+    private CompareOperator.Type lowerType;
+
+
+    /** The value of the lower-bound comparison. */
+    private Object lowerValue;
+
+
+    /**
+     * The comparison that bounds the range from above on the column after
+     * the equality prefix, or {@code null} if there isn't one.
+     */
+    private CompareOperator.Type upperType;
+
+
+    /** The value of the upper-bound comparison. */
+    private Object upperValue;
+
+
+    /**
+     * The conjuncts of the predicate that the equality prefix was made from,
+     * which are used to estimate how many index entries the scan reads.
+     */
+    private ArrayList<Expression> equalityConjuncts = new ArrayList<>();
+
+
+    /**
+     * The conjunct of the predicate that the lower bound was made from, or
+     * {@code null} if there is no lower bound.
+     */
+    private CompareOperator lowerConjunct;
+
+
+    /**
+     * The conjunct of the predicate that the upper bound was made from, or
+     * {@code null} if there is no upper bound.
+     */
+    private CompareOperator upperConjunct;
+
+
+    /**
+     * True if the rows are built from the index entries, rather than being
+     * fetched from the table.
+     */
+    private boolean indexOnly;
+
+
+    /**
+     * The tuple-pointers of the rows in the key range, in index order, or
+     * {@code null} if the range hasn't been read yet.
+     */
+    private ArrayList<FilePointer> tuplePointers;
+
+
+    /**
+     * For an index-only scan, the rows built from the index entries in the
+     * key range, in index order, or {@code null} if the range hasn't been
+     * read yet.
+     */
+    private ArrayList<Tuple> coveredRows;
+
+
+    /** The position in {@link #tuplePointers} of the next row to fetch. */
+    private int nextPointer;
+
+
+    /**
+     * The position in {@link #tuplePointers} of the marked row, or -1 if no
+     * row is marked.
+     */
+    private int markedPointer;
+
+
+    /**
+     * The estimated number of index pages that reading the key range takes,
+     * not counting the table pages that the rows are fetched from.  This is
+     * computed by {@link #prepare}.
+     */
+    private long numIndexBlockIOs;
+
+
+    /**
+     * The estimated fraction of the table's rows whose index entries are in
+     * the key range.  This is computed by {@link #prepare}.
+     */
+    private float keyRangeSelectivity;
+
+
+    /**
+     * Construct an index scan node that uses an index to find the rows of
+     * a table.
+     *
+     * @param tableInfo the information about the table being scanned
+     * @param indexInfo the information about the index to use; the index
+     *        must be stored in an ordered tuple file
+     * @param predicate an optional predicate for selection, or {@code null}
+     *        if all rows in the table should be included in the output
+     */
+    public IndexScanNode(TableInfo tableInfo, IndexInfo indexInfo,
+                         Expression predicate) {
+        super(predicate);
+
+        if (tableInfo == null)
+            throw new IllegalArgumentException("tableInfo cannot be null");
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile)) {
+            throw new IllegalArgumentException("Index " +
+                indexInfo.getIndexName() + " is not an ordered index");
+        }
+
+        this.tableInfo = tableInfo;
+        this.indexInfo = indexInfo;
+        tableFile = tableInfo.getTupleFile();
+        indexFile = (SequentialTupleFile) indexInfo.getTupleFile();
+
+        findKeyRange();
+    }
+
+
+    /**
+     * Returns true if the predicate limits the scan to a range of the
+     * index's keys.  If not, the scan would read the entire index, and
+     * scanning the table itself is always cheaper.
+     *
+     * @return true if the scan has a lower or upper bound on the index keys
+     */
+    public boolean hasKeyRange() {
+        return !equalityValues.isEmpty() || lowerType != null ||
+            upperType != null;
+    }
+
+
+    /**
+     * Sets whether the scan builds its rows from the index entries alone,
+     * without reading the table.  This must only be turned on if the index
+     * stores every column of the table that the query uses.
+     *
+     * @param indexOnly true if the scan should not read the table
+     */
+    public void setIndexOnly(boolean indexOnly) {
+        this.indexOnly = indexOnly;
+    }
+
+
+    /**
+     * Returns true if the scan builds its rows from the index entries alone,
+     * without reading the table.
+     *
+     * @return true if this is an index-only scan
+     */
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+
+    /**
+     * Returns the number of leading index columns that the predicate
+     * compares to a single value.
+     *
+     * @return the number of index columns with equality conditions
+     */
+    public int getNumEqualityColumns() {
+        return equalityValues.size();
+    }
+
+
+    /**
+     * Returns the estimated number of index pages that reading the key range
+     * takes, not counting the table pages that the rows are fetched from.
+     * This is only valid after {@link #prepare} has been called.
+     *
+     * @return the estimated number of index pages read
+     */
+    public long getNumIndexBlockIOs() {
+        return numIndexBlockIOs;
+    }
+
+
+    /**
+     * Returns the estimated fraction of the table's rows whose index entries
+     * are in the key range.  This is only valid after {@link #prepare} has
+     * been called.
+     *
+     * @return the estimated selectivity of the key range
+     */
+    public float getKeyRangeSelectivity() {
+        return keyRangeSelectivity;
+    }
+
+
+    /**
+     * Works out the range of index keys that the scan must read from the
+     * conjuncts of the predicate.  Each leading column of the index that is
+     * compared to a value with <tt>=</tt> extends the equality prefix; the
+     * first column that isn't may be bounded by inequalities.
+     */
+    private void findKeyRange() {
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        Schema tableSchema = tableFile.getSchema();
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        for (int i = 0; i < indexCols.size(); i++) {
+            // The comparisons on this key, and the conjuncts they came
+            // from.
+            CompareOperator equality = null;
+            CompareOperator lower = null;
+            CompareOperator upper = null;
+            Expression equalityConjunct = null;
+            for (Expression conjunct : conjuncts) {
+                if (!(conjunct instanceof CompareOperator))
+                    continue;
+
+                CompareOperator comp = normalizeComparison(
+                    (CompareOperator) conjunct, tableSchema, indexCols, i);
+                if (comp == null)
+                    continue;
+
+                switch (comp.getType()) {
+                case EQUALS:
+                    if (equality == null) {
+                        equality = comp;
+                        equalityConjunct = conjunct;
+                    }
+                    break;
+
+                case GREATER_THAN:
+                case GREATER_OR_EQUAL:
+                    if (lower == null) {
+                        lower = comp;
+                        lowerConjunct = (CompareOperator) conjunct;
+                    }
+                    break;
+
+                case LESS_THAN:
+                case LESS_OR_EQUAL:
+                    if (upper == null) {
+                        upper = comp;
+                        upperConjunct = (CompareOperator) conjunct;
+                    }
+                    break;
+
+                default:
+                    // Not-equals doesn't narrow the range.
+                }
+            }
+
+            if (equality != null) {
+                // Any inequalities on the same column are checked against
+                // the rows, but don't narrow the range any further.
+                equalityValues.add(equality.getRightExpression().evaluate());
+                equalityConjuncts.add(equalityConjunct);
+                lowerConjunct = null;
+                upperConjunct = null;
+                continue;
+            }
+
+            if (lower != null) {
+                lowerType = lower.getType();
+                lowerValue = lower.getRightExpression().evaluate();
+            }
+            if (upper != null) {
+                upperType = upper.getType();
+                upperValue = upper.getRightExpression().evaluate();
+            }
+            break;
+        }
+    }
+
+
+    /**
+     * If a comparison is between the specified key of the index and a
+     * non-<tt>NULL</tt> constant value, returns an equivalent comparison with
+     * the key on the left and the value as a literal on the right.  The key
+     * is a column of the table, or an expression that the key is computed
+     * from.  Otherwise, returns {@code null}.
+     */
+    private static CompareOperator normalizeComparison(CompareOperator comp,
+        Schema tableSchema, ColumnRefs indexCols, int iKey) {
+
+        Expression left = comp.getLeftExpression();
+        Expression right = comp.getRightExpression();
+
+        // Only one side may refer to columns; the other is a constant,
+        // perhaps something like -5 that must be computed first.
+        if (left.hasSymbols() == right.hasSymbols())
+            return null;
+
+        comp = PredicateUtils.foldConstants(comp);
+        left = comp.getLeftExpression();
+        right = comp.getRightExpression();
+        CompareOperator.Type type = comp.getType();
+
+        // Put the key on the left, flipping the comparison.
+        if (left instanceof LiteralValue) {
+            Expression tmp = left;
+            left = right;
+            right = tmp;
+            type = flipCompareType(type);
+        }
+
+        if (right.evaluate() == null ||
+            !IndexUtils.matchesKey(indexCols, iKey, left, tableSchema)) {
+            return null;
+        }
+
+        return new CompareOperator(type, left, right);
+    }
+
+
+    /** Returns the comparison that results from swapping its two sides. */
+    private static CompareOperator.Type flipCompareType(
+        CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
+    }
+
+
+    /**
+     * Returns true if the passed-in object is an <tt>IndexScanNode</tt>
+     * with the same predicate, table and index.
+     *
+     * @param obj the object to check for equality
+     *
+     * @return true if the passed-in object is equal to this object; false
+     *         otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof IndexScanNode) {
+            IndexScanNode other = (IndexScanNode) obj;
+            // The index's tuple file identifies both the index and the
+            // table it is on.
+            return indexFile.equals(other.indexFile) &&
+                indexOnly == other.indexOnly &&
+                (predicate == null ? other.predicate == null :
+                                     predicate.equals(other.predicate));
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + indexFile.hashCode();
+        hash = 31 * hash + (indexOnly ? 1 : 0);
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this index scan node.  This method is used by
+     * {@link PlanNode#duplicate} to copy a plan tree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        IndexScanNode node = (IndexScanNode) super.clone();
+
+        // The tuple files and key range don't need to be copied since they
+        // are never changed after the node is constructed.
+        node.tableInfo = tableInfo;
+        node.indexInfo = indexInfo;
+        node.tableFile = tableFile;
+        node.indexFile = indexFile;
+
+        // The copy reads the key range for itself.
+        node.tuplePointers = null;
+        node.coveredRows = null;
+
+        return node;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexScan[");
+        buf.append("index:  ").append(indexInfo.getTableName());
+        buf.append('.').append(indexInfo.getIndexName());
+
+        buf.append(", keys:  ").append(getKeyRangeString());
+
+        if (indexOnly)
+            buf.append(", index only");
+
+        if (predicate != null)
+            buf.append(", pred:  ").append(predicate.toString());
+
+        buf.append("]");
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Returns a description of the range of index keys that the scan reads,
+     * such as <tt>= [5] (10, +inf)</tt>.
+     *
+     * @return a description of the key range
+     */
+    String getKeyRangeString() {
+        StringBuilder buf = new StringBuilder();
+
+        if (!equalityValues.isEmpty())
+            buf.append("= ").append(equalityValues);
+
+        if (lowerType != null || upperType != null) {
+            if (!equalityValues.isEmpty())
+                buf.append(' ');
+
+            buf.append(lowerType == CompareOperator.Type.GREATER_OR_EQUAL ?
+                '[' : '(');
+            buf.append(lowerType != null ? lowerValue : "-inf");
+            buf.append(", ");
+            buf.append(upperType != null ? upperValue : "+inf");
+            buf.append(upperType == CompareOperator.Type.LESS_OR_EQUAL ?
+                ']' : ')');
+        }
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Returns the index that the scan reads.
+     *
+     * @return the index that the scan reads
+     */
+    public IndexInfo getIndexInfo() {
+        return indexInfo;
+    }
+
+
+    /**
+     * The rows come out in the order of the index's keys, but the keys may
+     * be computed from expressions that the other plan nodes can't refer
+     * to, so we say that the results are unsorted.  The planner uses
+     * {@link #isOrderedBy} instead.
+     */
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /**
+     * Returns true if the rows that the scan produces are already sorted as
+     * an <tt>ORDER BY</tt> clause requires, so that they don't need to be
+     * sorted again.  This is the case if each expression is ascending, and
+     * the expressions are the index's keys in order, after the keys that the
+     * predicate compares to a single value.  Those keys have the same value
+     * in every row, so the expressions may also name them anywhere.
+     *
+     * @param orderByExprs the expressions of the <tt>ORDER BY</tt> clause
+     *
+     * @return true if the rows are already in the requested order
+     */
+    public boolean isOrderedBy(List<OrderByExpression> orderByExprs) {
+        Schema tableSchema = tableFile.getSchema();
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+
+        int iKey = equalityValues.size();
+        for (OrderByExpression orderByExpr : orderByExprs) {
+            if (!orderByExpr.isAscending())
+                return false;
+
+            Expression expr = orderByExpr.getExpression();
+            if (iKey < indexCols.size() &&
+                IndexUtils.matchesKey(indexCols, iKey, expr, tableSchema)) {
+                iKey++;
+                continue;
+            }
+
+            boolean isConstant = false;
+            for (int i = 0; i < equalityValues.size(); i++) {
+                if (IndexUtils.matchesKey(indexCols, i, expr, tableSchema))
+                    isConstant = true;
+            }
+
+            if (!isConstant)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /** This node supports marking. */
+    public boolean supportsMarking() {
+        return true;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * Computes the cost of the index scan.  Reaching the first entry in the
+     * range costs one page per level of the index; walking the range reads
+     * the fraction of the index's leaves that the key conditions select; and
+     * unless the scan is index-only, each entry in the range costs one more
+     * page read to fetch its row, since the rows aren't stored in key order,
+     * up to the number of pages in the table.
+     */
+    public void prepare() {
+        schema = tableFile.getSchema();
+
+        TableStats tableStats = tableFile.getStats();
+        ArrayList<ColumnStats> fileStats = tableStats.getAllColumnStats();
+        stats = fileStats;
+
+        float rangeSelectivity = 1.0f;
+        for (Expression conjunct : equalityConjuncts) {
+            rangeSelectivity *= SelectivityEstimator.estimateSelectivity(
+                conjunct, schema, tableStats);
+        }
+        rangeSelectivity *= SelectivityEstimator.estimateRangeSelectivity(
+            lowerConjunct, upperConjunct, schema, tableStats);
+        keyRangeSelectivity = rangeSelectivity;
+        float numEntries = tableStats.numTuples * rangeSelectivity;
+
+        int height = 1;
+        int numIndexPages = 1;
+        try {
+            if (indexFile instanceof BTreeTupleFile)
+                height = Math.max(1, ((BTreeTupleFile) indexFile).getHeight());
+
+            // Apart from the header page, nearly all of an index's pages
+            // are leaves.
+            numIndexPages =
+                Math.max(1, indexFile.getDBFile().getNumPages() - 1);
+        }
+        catch (IOException e) {
+            // The estimate is only used to choose between plans, so just
+            // go with the defaults.
+            logger.warn("Couldn't read the structure of index " +
+                indexInfo.getIndexName(), e);
+        }
+
+        numIndexBlockIOs = height +
+            (long) Math.ceil(numIndexPages * rangeSelectivity);
+        long numBlockIOs = numIndexBlockIOs;
+
+        // Each entry's row is on some page of the table, but no page needs
+        // to be read more than once.
+        if (!indexOnly) {
+            numBlockIOs +=
+                (long) Math.ceil(Math.min(numEntries, tableStats.numDataPages));
+        }
+
+        cost = new PlanCost(numEntries, tableStats.avgTupleSize, numEntries,
+            numBlockIOs);
+
+        if (predicate != null) {
+            float selectivity = SelectivityEstimator.estimateSelectivity(
+                predicate, schema, tableStats);
+            cost.numTuples = tableStats.numTuples * selectivity;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        // Read the key range again, in case the index has changed.
+        tuplePointers = null;
+        coveredRows = null;
+        markedPointer = -1;
+    }
+
+
+    public void cleanUp() {
+        tuplePointers = null;
+        coveredRows = null;
+    }
+
+
+    /**
+     * Advances the current tuple to the next row in the key range, reading
+     * the range from the index first if necessary.
+     *
+     * @throws IOException if the index or the table can't be read
+     */
+    protected void advanceCurrentTuple() throws IOException {
+        if (tuplePointers == null) {
+            tuplePointers = readKeyRange();
+            nextPointer = 0;
+        }
+
+        if (nextPointer >= tuplePointers.size()) {
+            currentTuple = null;
+            return;
+        }
+
+        if (indexOnly) {
+            currentTuple = coveredRows.get(nextPointer);
+            nextPointer++;
+            return;
+        }
+
+        FilePointer fptr = tuplePointers.get(nextPointer);
+        nextPointer++;
+
+        try {
+            currentTuple = tableFile.getTuple(fptr);
+        }
+        catch (InvalidFilePointerException e) {
+            throw new IOException("Index " + indexInfo.getIndexName() +
+                " refers to a row that doesn't exist:  " + fptr, e);
+        }
+    }
+
+
+    /**
+     * Seeks the index to the start of the key range, and collects the
+     * tuple-pointers of the entries up to the end of the range.  For an
+     * index-only scan, the rows are built from the entries at the same
+     * time, into {@link #coveredRows}.
+     *
+     * @return the tuple-pointers of the rows in the key range, in index
+     *         order
+     *
+     * @throws IOException if the index can't be read
+     */
+    ArrayList<FilePointer> readKeyRange() throws IOException {
+        ArrayList<FilePointer> pointers = new ArrayList<>();
+
+        // The tuple-pointer is the last column of every index entry.
+        int ptrIndex = indexFile.getSchema().numColumns() - 1;
+
+        if (indexOnly)
+            coveredRows = new ArrayList<>();
+
+        TupleLiteral prefix = new TupleLiteral();
+        for (Object value : equalityValues)
+            prefix.addValue(value);
+
+        // The upper end of the range, or null if the range runs to the end
+        // of the index.
+        TupleLiteral upperKey = null;
+        boolean upperInclusive = true;
+        if (upperType != null) {
+            upperKey = new TupleLiteral(prefix);
+            upperKey.addValue(upperValue);
+            upperInclusive = (upperType == CompareOperator.Type.LESS_OR_EQUAL);
+        }
+        else if (!equalityValues.isEmpty()) {
+            upperKey = prefix;
+        }
+
+        Tuple tup;
+        if (lowerType != null) {
+            TupleLiteral lowerKey = new TupleLiteral(prefix);
+            lowerKey.addValue(lowerValue);
+
+            // Entries equal to an inclusive bound come before the first
+            // greater entry, so look for them first.
+            tup = null;
+            if (lowerType == CompareOperator.Type.GREATER_OR_EQUAL)
+                tup = indexFile.findFirstTupleEquals(lowerKey);
+
+            if (tup == null)
+                tup = indexFile.findFirstTupleGreaterThan(lowerKey);
+        }
+        else if (upperType != null) {
+            // Skip the entries where the range's column is NULL, since no
+            // comparison is true for them.  NULL sorts before every value.
+            TupleLiteral nullKey = new TupleLiteral(prefix);
+            nullKey.addValue(null);
+            tup = indexFile.findFirstTupleGreaterThan(nullKey);
+        }
+        else {
+            tup = indexFile.findFirstTupleEquals(prefix);
+        }
+
+        while (tup != null) {
+            if (upperKey != null) {
+                int cmp = TupleComparator.comparePartialTuples(tup, upperKey);
+                if (cmp > 0 || (cmp == 0 && !upperInclusive)) {
+                    tup.unpin();
+                    break;
+                }
+            }
+
+            pointers.add((FilePointer) tup.getColumnValue(ptrIndex));
+            if (indexOnly)
+                coveredRows.add(makeCoveredRow(tup));
+
+            Tuple next = indexFile.getNextTuple(tup);
+            tup.unpin();
+            tup = next;
+        }
+
+        logger.debug(String.format("Index %s has %d entries in the key " +
+            "range of %s", indexInfo.getIndexName(), pointers.size(), this));
+
+        return pointers;
+    }
+
+
+    /**
+     * Builds a row with the table's schema from an index entry.  The index
+     * entry holds the key columns followed by the included columns; the
+     * table's other columns are left <tt>NULL</tt>, and so are the keys
+     * computed from expressions, which aren't columns of the table.
+     *
+     * @param entry an entry of the index
+     *
+     * @return a row of the table, with the values stored in the entry
+     */
+    private Tuple makeCoveredRow(Tuple entry) {
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        Object[] values = new Object[schema.numColumns()];
+
+        int entryCol = 0;
+        for (int col : indexCols.getCols()) {
+            if (col != ColumnRefs.EXPRESSION_KEY)
+                values[col] = entry.getColumnValue(entryCol);
+
+            entryCol++;
+        }
+
+        for (int col : indexCols.getIncludedCols())
+            values[col] = entry.getColumnValue(entryCol++);
+
+        return new TupleLiteral(values);
+    }
+
+
+    public void markCurrentPosition() {
+        if (currentTuple == null)
+            throw new IllegalStateException("There is no current tuple!");
+
+        logger.debug("Marking current position in tuple-stream.");
+        markedPointer = nextPointer - 1;
+    }
+
+
+    public void resetToLastMark() {
+        if (markedPointer < 0)
+            throw new IllegalStateException("There is no last-marked tuple!");
+
+        logger.debug("Resetting to previously marked position in tuple-stream.");
+        nextPointer = markedPointer;
+    }
+}
@@ -9,6 +9,9 @@ import org.apache.log4j.Logger;
 
 import com.wind.nanodb.expressions.Expression;
 import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.queryeval.PlanCost;
+import com.wind.nanodb.queryeval.SelectivityEstimator;
+import com.wind.nanodb.queryeval.TableStats;
 import com.wind.nanodb.relations.JoinType;
 import com.wind.nanodb.relations.Tuple;
 
@@ -154,8 +157,33 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         // Use the parent class' helper-function to prepare the schema.
         prepareSchemaStats();
 
-        // TODO:  Implement the rest
-        cost = null;
+        // The inner relation is scanned once for every outer tuple.
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+        if (leftCost != null && rightCost != null) {
+            float selectivity = 1.0f;
+            if (predicate != null) {
+                selectivity = SelectivityEstimator.estimateSelectivity(
+                    predicate, schema, new TableStats(0, 0, 0, stats));
+            }
+
+            float numPairs = leftCost.numTuples * rightCost.numTuples;
+            float numTuples = numPairs * selectivity;
+            if (isOuterJoin())
+                numTuples = Math.max(numTuples, leftCost.numTuples);
+
+            cost = new PlanCost(numTuples,
+                leftCost.tupleSize + rightCost.tupleSize,
+                leftCost.cpuCost + leftCost.numTuples * rightCost.cpuCost +
+                    numPairs,
+                leftCost.numBlockIOs +
+                    (long) (leftCost.numTuples * rightCost.numBlockIOs));
+        }
+        else {
+            logger.info(
+                "Child's cost not available; not computing this node's cost.");
+            cost = null;
+        }
     }
 
 
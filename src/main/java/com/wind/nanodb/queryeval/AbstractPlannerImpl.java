@@ -1,6 +1,36 @@
 package com.wind.nanodb.queryeval;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.wind.nanodb.expressions.BooleanOperator;
+import com.wind.nanodb.expressions.ColumnName;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.OrderByExpression;
+import com.wind.nanodb.expressions.PredicateUtils;
+import com.wind.nanodb.indexes.IndexInfo;
+import com.wind.nanodb.indexes.IndexManager;
+import com.wind.nanodb.plannodes.BitmapScanNode;
+import com.wind.nanodb.plannodes.FileScanNode;
+import com.wind.nanodb.plannodes.IndexNestedLoopJoinNode;
+import com.wind.nanodb.plannodes.IndexScanNode;
+import com.wind.nanodb.plannodes.NestedLoopJoinNode;
+import com.wind.nanodb.plannodes.PlanNode;
+import com.wind.nanodb.plannodes.SelectNode;
+import com.wind.nanodb.queryast.FromClause;
+import com.wind.nanodb.queryast.SelectClause;
+import com.wind.nanodb.queryast.SelectValue;
+import com.wind.nanodb.relations.JoinType;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.SchemaNameException;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.storage.SequentialTupleFile;
 import com.wind.nanodb.storage.StorageManager;
 import org.apache.log4j.Logger;
 
@@ -25,4 +55,468 @@ public abstract class AbstractPlannerImpl implements Planner {
     public void setStorageManager(StorageManager storageManager) {
         this.storageManager = storageManager;
     }
+
+
+    /**
+     * <p>
+     * Makes a prepared select node that reads the rows of a table that
+     * satisfy a predicate.  This is a {@link FileScanNode}, unless one of
+     * the table's ordered indexes can narrow the scan to a range of keys,
+     * and an {@link IndexScanNode} over that range is estimated to read
+     * fewer pages.  A partial index is only considered if the predicate
+     * implies the index's own predicate, since it has no entries for the
+     * other rows.
+     * </p>
+     * <p>
+     * If the table has never been analyzed, there are no statistics to
+     * compare the costs with.  In that case an index is used only if the
+     * predicate looks up its leading columns with <tt>=</tt>, since that
+     * usually finds a few rows; the index with the most such columns wins.
+     * </p>
+     *
+     * @param tableInfo the table to read rows from
+     *
+     * @param predicate an optional predicate for selecting rows, or
+     *        {@code null} if all rows should be read
+     *
+     * @return a prepared plan-node that produces the selected rows of the
+     *         table
+     *
+     * @throws IOException if the table's indexes can't be opened
+     */
+    protected SelectNode makeTableScan(TableInfo tableInfo,
+                                       Expression predicate)
+        throws IOException {
+        return makeTableScan(tableInfo, predicate, null);
+    }
+
+
+    /**
+     * Makes a prepared select node that reads the rows of a table that
+     * satisfy a predicate, as {@link #makeTableScan(TableInfo, Expression)}
+     * does.  If the query only uses some of the table's columns, and an
+     * index stores all of them, the index scan is made index-only so that
+     * it doesn't read the table at all.  Index-only scans are preferred
+     * over other index scans with as many equality columns.
+     *
+     * @param tableInfo the table to read rows from
+     *
+     * @param predicate an optional predicate for selecting rows, or
+     *        {@code null} if all rows should be read
+     *
+     * @param usedColumns the indexes of the table's columns that the query
+     *        uses, or {@code null} if the query may use all of them
+     *
+     * @return a prepared plan-node that produces the selected rows of the
+     *         table
+     *
+     * @throws IOException if the table's indexes can't be opened
+     */
+    protected SelectNode makeTableScan(TableInfo tableInfo,
+                                       Expression predicate,
+                                       Set<Integer> usedColumns)
+        throws IOException {
+
+        SelectNode bestNode = new FileScanNode(tableInfo, predicate);
+        bestNode.prepare();
+
+        if (predicate == null || tableInfo.getSchema().getIndexes().isEmpty())
+            return bestNode;
+
+        TableStats tableStats = tableInfo.getTupleFile().getStats();
+        boolean haveStats =
+            (tableStats.numTuples > 0 || tableStats.numDataPages > 0);
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        ArrayList<IndexInfo> orderedIndexes = new ArrayList<>();
+        IndexManager indexManager = storageManager.getIndexManager();
+        for (String indexName : tableInfo.getSchema().getIndexNames()) {
+            IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+            if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile) ||
+                !canUseIndex(tableInfo, indexInfo, conjuncts)) {
+                continue;
+            }
+
+            orderedIndexes.add(indexInfo);
+
+            IndexScanNode indexScan =
+                new IndexScanNode(tableInfo, indexInfo, predicate);
+            if (!indexScan.hasKeyRange())
+                continue;
+
+            if (usedColumns != null &&
+                indexInfo.getTableColumnRefs().coversColumns(usedColumns)) {
+                indexScan.setIndexOnly(true);
+            }
+
+            indexScan.prepare();
+
+            boolean better;
+            if (haveStats) {
+                better = indexScan.getCost().numBlockIOs <
+                         bestNode.getCost().numBlockIOs;
+            }
+            else {
+                int bestEqualityColumns = 0;
+                boolean bestIndexOnly = false;
+                if (bestNode instanceof IndexScanNode) {
+                    IndexScanNode bestScan = (IndexScanNode) bestNode;
+                    bestEqualityColumns = bestScan.getNumEqualityColumns();
+                    bestIndexOnly = bestScan.isIndexOnly();
+                }
+
+                int numEqualityColumns = indexScan.getNumEqualityColumns();
+                better = numEqualityColumns > bestEqualityColumns ||
+                    (numEqualityColumns > 0 &&
+                     numEqualityColumns == bestEqualityColumns &&
+                     indexScan.isIndexOnly() && !bestIndexOnly);
+            }
+
+            if (better)
+                bestNode = indexScan;
+        }
+
+        // A bitmap scan can combine several indexes, or several key ranges
+        // of one index, and it fetches the rows in physical order.
+        List<List<IndexScanNode>> scanGroups =
+            findBitmapScanGroups(tableInfo, predicate, orderedIndexes);
+        if (!scanGroups.isEmpty()) {
+            BitmapScanNode bitmapScan =
+                new BitmapScanNode(tableInfo, scanGroups, predicate);
+            bitmapScan.prepare();
+
+            boolean better;
+            if (haveStats) {
+                better = bitmapScan.getCost().numBlockIOs <
+                         bestNode.getCost().numBlockIOs;
+            }
+            else {
+                // Without statistics, only combine equality lookups, and
+                // only if that uses more of them than the best index scan.
+                boolean allEquality = true;
+                for (List<IndexScanNode> group : scanGroups) {
+                    for (IndexScanNode scan : group) {
+                        if (scan.getNumEqualityColumns() == 0)
+                            allEquality = false;
+                    }
+                }
+
+                int bestEqualityColumns = 0;
+                if (bestNode instanceof IndexScanNode) {
+                    bestEqualityColumns =
+                        ((IndexScanNode) bestNode).getNumEqualityColumns();
+                }
+
+                better = allEquality &&
+                    scanGroups.size() > bestEqualityColumns;
+            }
+
+            if (better)
+                bestNode = bitmapScan;
+        }
+
+        logger.debug("Chose " + bestNode + " to read rows from table " +
+            tableInfo.getTableName());
+
+        return bestNode;
+    }
+
+
+    /**
+     * Returns true if an index can be used to find the rows of a table that
+     * satisfy a predicate.  This is always true unless the index is a
+     * partial index, which can only be used if the predicate implies the
+     * index's predicate; otherwise some of the rows that the query needs
+     * wouldn't be in the index.
+     *
+     * @param tableInfo the table that the index is on
+     *
+     * @param indexInfo the index to check
+     *
+     * @param conjuncts the conjuncts of the query's predicate
+     *
+     * @return true if the index has entries for every row that satisfies
+     *         the predicate
+     */
+    private static boolean canUseIndex(TableInfo tableInfo,
+        IndexInfo indexInfo, List<Expression> conjuncts) {
+        Expression indexPredicate =
+            indexInfo.getTableColumnRefs().getPredicate();
+        if (indexPredicate == null)
+            return true;
+
+        boolean implied = PredicateUtils.implies(conjuncts, indexPredicate,
+            tableInfo.getSchema());
+        if (!implied) {
+            logger.debug("Can't use partial index " +
+                indexInfo.getIndexName() + ", since the predicate doesn't " +
+                "imply " + indexPredicate);
+        }
+
+        return implied;
+    }
+
+
+    /**
+     * Finds index scans that a {@link BitmapScanNode} could combine for a
+     * predicate.  Each conjunct of the predicate that an index can narrow to
+     * a key range is assigned to the index with the most equality columns
+     * for it, and the conjuncts assigned to the same index become one scan
+     * of that index, in a group of its own.  A conjunct that is an
+     * <tt>OR</tt> becomes a group with one scan per term, but only if every
+     * term can use an index; otherwise the <tt>OR</tt> could be true for
+     * rows that none of the scans find.
+     *
+     * @param tableInfo the table to read rows from
+     *
+     * @param predicate the predicate for selecting rows
+     *
+     * @param orderedIndexes the ordered indexes on the table
+     *
+     * @return the groups of index scans, which are combined with
+     *         <tt>OR</tt> within a group and with <tt>AND</tt> between
+     *         groups; this is empty if no conjunct can use an index
+     */
+    private static List<List<IndexScanNode>> findBitmapScanGroups(
+        TableInfo tableInfo, Expression predicate,
+        List<IndexInfo> orderedIndexes) {
+
+        ArrayList<List<IndexScanNode>> scanGroups = new ArrayList<>();
+        if (orderedIndexes.isEmpty())
+            return scanGroups;
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        // The conjuncts that each index can narrow, in the order the
+        // indexes were first chosen.
+        LinkedHashMap<IndexInfo, List<Expression>> indexConjuncts =
+            new LinkedHashMap<>();
+
+        for (Expression conjunct : conjuncts) {
+            if (conjunct instanceof BooleanOperator &&
+                ((BooleanOperator) conjunct).getType() ==
+                    BooleanOperator.Type.OR_EXPR) {
+                BooleanOperator orExpr = (BooleanOperator) conjunct;
+                ArrayList<IndexScanNode> group = new ArrayList<>();
+                for (int i = 0; i < orExpr.getNumTerms(); i++) {
+                    IndexScanNode scan = findBestIndexScan(tableInfo,
+                        orExpr.getTerm(i), orderedIndexes);
+                    if (scan == null) {
+                        group = null;
+                        break;
+                    }
+
+                    group.add(scan);
+                }
+
+                if (group != null)
+                    scanGroups.add(group);
+            }
+            else {
+                IndexScanNode scan =
+                    findBestIndexScan(tableInfo, conjunct, orderedIndexes);
+                if (scan == null)
+                    continue;
+
+                IndexInfo indexInfo = scan.getIndexInfo();
+                if (!indexConjuncts.containsKey(indexInfo))
+                    indexConjuncts.put(indexInfo, new ArrayList<Expression>());
+
+                indexConjuncts.get(indexInfo).add(conjunct);
+            }
+        }
+
+        for (Map.Entry<IndexInfo, List<Expression>> entry :
+             indexConjuncts.entrySet()) {
+            Expression scanPredicate =
+                PredicateUtils.makePredicate(entry.getValue());
+            ArrayList<IndexScanNode> group = new ArrayList<>();
+            group.add(new IndexScanNode(tableInfo, entry.getKey(),
+                scanPredicate));
+            scanGroups.add(group);
+        }
+
+        return scanGroups;
+    }
+
+
+    /**
+     * Returns a scan of the index that narrows a condition to a key range
+     * with the most equality columns, or {@code null} if none of the indexes
+     * can narrow it.
+     */
+    private static IndexScanNode findBestIndexScan(TableInfo tableInfo,
+        Expression condition, List<IndexInfo> orderedIndexes) {
+
+        IndexScanNode bestScan = null;
+        for (IndexInfo indexInfo : orderedIndexes) {
+            IndexScanNode scan =
+                new IndexScanNode(tableInfo, indexInfo, condition);
+            if (scan.hasKeyRange() && (bestScan == null ||
+                scan.getNumEqualityColumns() >
+                bestScan.getNumEqualityColumns())) {
+                bestScan = scan;
+            }
+        }
+
+        return bestScan;
+    }
+
+
+    /**
+     * Works out which columns of a table a query over just that table uses,
+     * so that the planner can tell whether an index stores all of them.
+     * This must be called before aggregates are pulled out of the query's
+     * expressions, since the aggregates' arguments are uses of the table's
+     * columns too.
+     *
+     * @param selectClause a query whose <tt>FROM</tt> clause is the table
+     *
+     * @param tableSchema the schema of the table
+     *
+     * @return the indexes of the columns that the query uses, or
+     *         {@code null} if the query uses every column (for example with
+     *         <tt>SELECT *</tt>), or if some use can't be resolved against
+     *         the table
+     */
+    protected static Set<Integer> getUsedColumns(SelectClause selectClause,
+                                                 Schema tableSchema) {
+        ArrayList<Expression> exprs = new ArrayList<>();
+        for (SelectValue sv : selectClause.getSelectValues()) {
+            if (!sv.isExpression())
+                return null;
+
+            exprs.add(sv.getExpression());
+        }
+
+        if (selectClause.getWhereExpr() != null)
+            exprs.add(selectClause.getWhereExpr());
+
+        exprs.addAll(selectClause.getGroupByExprs());
+
+        if (selectClause.getHavingExpr() != null)
+            exprs.add(selectClause.getHavingExpr());
+
+        for (OrderByExpression orderBy : selectClause.getOrderByExprs())
+            exprs.add(orderBy.getExpression());
+
+        HashSet<ColumnName> symbols = new HashSet<>();
+        for (Expression expr : exprs)
+            expr.getAllSymbols(symbols);
+
+        HashSet<Integer> usedColumns = new HashSet<>();
+        for (ColumnName colName : symbols) {
+            if (colName.isColumnWildcard())
+                return null;
+
+            int colIndex;
+            try {
+                colIndex = tableSchema.getColumnIndex(colName);
+            }
+            catch (SchemaNameException e) {
+                return null;
+            }
+
+            // This may be a name given to a select value, which isn't
+            // anything that the index could store.
+            if (colIndex < 0)
+                return null;
+
+            usedColumns.add(colIndex);
+        }
+
+        return usedColumns;
+    }
+
+
+    /**
+     * <p>
+     * Makes a prepared plan-node that joins two subplans.  This is a
+     * {@link NestedLoopJoinNode}, unless the right side of the join is a
+     * base table with an ordered index whose leading columns the join
+     * condition equates with columns of the left side.  In that case an
+     * {@link IndexNestedLoopJoinNode} can look up the matching rows for
+     * each left row, instead of scanning the right table again.
+     * </p>
+     * <p>
+     * As in {@link #makeTableScan}, the plans' costs are compared if the
+     * right table has been analyzed.  If not, an index join is always used
+     * when it is possible, since it avoids rescanning the table.
+     * </p>
+     *
+     * @param leftPlan the plan for the left side of the join
+     *
+     * @param rightPlan the plan for the right side of the join
+     *
+     * @param rightClause the from-clause that the right plan was made from
+     *
+     * @param joinType the type of the join
+     *
+     * @param predicate the join condition, or {@code null} if there is none
+     *
+     * @return a prepared plan-node that joins the two subplans
+     *
+     * @throws IOException if the right table's indexes can't be opened
+     */
+    protected PlanNode makeJoin(PlanNode leftPlan, PlanNode rightPlan,
+                                FromClause rightClause, JoinType joinType,
+                                Expression predicate) throws IOException {
+
+        PlanNode bestNode =
+            new NestedLoopJoinNode(leftPlan, rightPlan, joinType, predicate);
+        bestNode.prepare();
+
+        if (predicate == null || !rightClause.isBaseTable() ||
+            (joinType != JoinType.INNER && joinType != JoinType.LEFT_OUTER)) {
+            return bestNode;
+        }
+
+        TableInfo tableInfo = storageManager.getTableManager().openTable(
+            rightClause.getTableName());
+        if (tableInfo.getSchema().getIndexes().isEmpty())
+            return bestNode;
+
+        TableStats tableStats = tableInfo.getTupleFile().getStats();
+        boolean haveStats =
+            (tableStats.numTuples > 0 || tableStats.numDataPages > 0);
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        IndexManager indexManager = storageManager.getIndexManager();
+        for (String indexName : tableInfo.getSchema().getIndexNames()) {
+            IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+            if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile) ||
+                !canUseIndex(tableInfo, indexInfo, conjuncts)) {
+                continue;
+            }
+
+            IndexNestedLoopJoinNode indexJoin = new IndexNestedLoopJoinNode(
+                leftPlan, rightPlan, joinType, predicate, tableInfo, indexInfo);
+            indexJoin.prepare();
+            if (!indexJoin.hasProbeKey())
+                continue;
+
+            boolean better;
+            if (haveStats && bestNode.getCost() != null &&
+                indexJoin.getCost() != null) {
+                better = indexJoin.getCost().numBlockIOs <
+                         bestNode.getCost().numBlockIOs;
+            }
+            else {
+                better = !(bestNode instanceof IndexNestedLoopJoinNode);
+            }
+
+            if (better)
+                bestNode = indexJoin;
+        }
+
+        logger.debug("Chose " + bestNode + " to join with table " +
+            tableInfo.getTableName());
+
+        return bestNode;
+    }
 }
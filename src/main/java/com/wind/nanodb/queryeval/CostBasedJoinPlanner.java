@@ -11,7 +11,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import com.wind.nanodb.plannodes.FileScanNode;
 import com.wind.nanodb.plannodes.PlanNode;
 import com.wind.nanodb.plannodes.SelectNode;
 import com.wind.nanodb.queryast.FromClause;
@@ -420,9 +419,7 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         TableInfo tableInfo = storageManager.getTableManager().openTable(tableName);
 
         // Make a SelectNode to read rows from the table, with the specified
-        // predicate.
-        SelectNode selectNode = new FileScanNode(tableInfo, predicate);
-        selectNode.prepare();
-        return selectNode;
+        // predicate, using an index if that is cheaper.
+        return makeTableScan(tableInfo, predicate);
     }
 }
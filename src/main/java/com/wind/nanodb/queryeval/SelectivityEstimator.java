@@ -227,6 +227,71 @@ public class SelectivityEstimator {
     }
 
 
+    /**
+     * This function computes a selectivity estimate for a range of values of
+     * one column, such as <tt>a &gt;= 5 AND a &lt; 10</tt>.  The two
+     * comparisons aren't independent, so multiplying their selectivities
+     * would badly overestimate a narrow range.  If the column's minimum and
+     * maximum values are known, the fraction of values in the range is
+     * estimated instead; otherwise this falls back on multiplying the
+     * estimates.
+     *
+     * @param lower the comparison that bounds the column from below, or
+     *        {@code null} if there is no lower bound
+     *
+     * @param upper the comparison that bounds the column from above, or
+     *        {@code null} if there is no upper bound
+     *
+     * @param exprSchema a schema specifying the environment that the
+     *        comparisons will be evaluated within
+     *
+     * @param tableStats this table's stats to use in making selectivity estimates
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     */
+    public static float estimateRangeSelectivity(CompareOperator lower,
+        CompareOperator upper, Schema exprSchema, TableStats tableStats) {
+
+        if (lower == null && upper == null)
+            return 1.0f;
+
+        if (lower == null)
+            return estimateCompareSelectivity(upper, exprSchema, tableStats);
+
+        float lowerSelectivity =
+            estimateCompareSelectivity(lower, exprSchema, tableStats);
+
+        if (upper == null)
+            return lowerSelectivity;
+
+        float upperSelectivity =
+            estimateCompareSelectivity(upper, exprSchema, tableStats);
+
+        // After normalizing, the column is on the left of the comparison.
+        float selectivity = lowerSelectivity * upperSelectivity;
+        if (lower.getLeftExpression() instanceof ColumnValue) {
+            ColumnValue colValue = (ColumnValue) lower.getLeftExpression();
+            int colIndex = exprSchema.getColumnIndex(colValue.getColumnName());
+            SQLDataType sqlType =
+                exprSchema.getColumnInfo(colIndex).getType().getBaseType();
+            ColumnStats colStats = tableStats.getColumnStats(colIndex);
+
+            if (typeSupportsCompareEstimates(sqlType) &&
+                colStats.hasDifferentMinMaxValues()) {
+                // The values below the upper bound, less the values that
+                // aren't above the lower bound.
+                selectivity = Math.max(0.0f,
+                    lowerSelectivity + upperSelectivity - 1.0f);
+            }
+        }
+
+        logger.debug(String.format("Estimated selectivity of range \"%s " +
+            "AND %s\" as %f", lower, upper, selectivity));
+
+        return selectivity;
+    }
+
+
     /**
      * This helper function computes a selectivity estimate for a comparison
      * between a column and a literal value.  Note that the comparison is always
@@ -256,11 +321,18 @@ public class SelectivityEstimator {
         // Pull out the critical values for making the estimates.
 
         int colIndex = exprSchema.getColumnIndex(columnValue.getColumnName());
+        if (colIndex < 0)
+            return selectivity;
+
         ColumnInfo colInfo = exprSchema.getColumnInfo(colIndex);
         SQLDataType sqlType = colInfo.getType().getBaseType();
         ColumnStats colStats = tableStats.getColumnStats(colIndex);
 
-        if (!typeSupportsCompareEstimates(sqlType)) {
+        // Equality only needs the number of distinct values in the column,
+        // but the other comparisons need its minimum and maximum values.
+        if (compType != CompareOperator.Type.EQUALS &&
+            compType != CompareOperator.Type.NOT_EQUALS &&
+            !typeSupportsCompareEstimates(sqlType)) {
             return selectivity;
         }
 
@@ -271,7 +343,7 @@ public class SelectivityEstimator {
             // T(S) = T(R)/V(R,A)
             // Selectivity = T(S)/T(R)
             int vra = colStats.getNumUniqueValues();
-            if (vra != -1) {
+            if (vra > 0) {
                 selectivity = 1.0f / vra;
             }
             break;
@@ -280,11 +352,26 @@ public class SelectivityEstimator {
             selectivity = 1.0f;
             break;
         case GREATER_OR_EQUAL:
+        case GREATER_THAN:
+            // Assume the values are spread evenly between the column's
+            // minimum and maximum.  Without those, assume one-third.
+            if (colStats.hasDifferentMinMaxValues() && value != null) {
+                selectivity = computeRatio(value, colStats.getMaxValue(),
+                    colStats.getMinValue(), colStats.getMaxValue());
+            }
+            else {
+                selectivity = 0.3f;
+            }
+            break;
         case LESS_THAN:
         case LESS_OR_EQUAL:
-        case GREATER_THAN:
-            // Assume returns one-third of the tuples
-            selectivity = 0.3f;
+            if (colStats.hasDifferentMinMaxValues() && value != null) {
+                selectivity = computeRatio(colStats.getMinValue(), value,
+                    colStats.getMinValue(), colStats.getMaxValue());
+            }
+            else {
+                selectivity = 0.3f;
+            }
             break;
         default:
             // Shouldn't be any other comparison types...
@@ -324,14 +411,33 @@ public class SelectivityEstimator {
 
         int colOneIndex = exprSchema.getColumnIndex(columnOne.getColumnName());
         int colTwoIndex = exprSchema.getColumnIndex(columnTwo.getColumnName());
+        if (colOneIndex < 0 || colTwoIndex < 0)
+            return selectivity;
 
         ColumnStats colOneStats = tableStats.getColumnStats(colOneIndex);
         ColumnStats colTwoStats = tableStats.getColumnStats(colTwoIndex);
 
-        // TODO:  Compute the selectivity.  Note that the ColumnStats type
-        //        will return special values to indicate "unknown" stats;
-        //        your code should detect when this is the case, and fall
-        //        back on the default selectivity.
+        // An equi-join matches each value of the column with fewer distinct
+        // values to one of the other column's values:
+        // T(R join S) = T(R) * T(S) / max(V(R,A), V(S,B)).
+        int numUnique = Math.max(colOneStats.getNumUniqueValues(),
+                                 colTwoStats.getNumUniqueValues());
+
+        switch (compType) {
+        case EQUALS:
+            if (numUnique > 0)
+                selectivity = 1.0f / numUnique;
+            break;
+
+        case NOT_EQUALS:
+            if (numUnique > 0)
+                selectivity = 1.0f - 1.0f / numUnique;
+            break;
+
+        default:
+            // Unknown stats, or an inequality, which we can't say much
+            // about without knowing how the values are distributed.
+        }
 
         return selectivity;
     }
@@ -360,11 +466,15 @@ public class SelectivityEstimator {
     private static float computeRatio(Object low1, Object high1,
                                       Object low2, Object high2) {
 
+        // Do the arithmetic on doubles, so that integer columns don't get
+        // integer division.
         Object diff1 = ArithmeticOperator.evalObjects(
-            ArithmeticOperator.Type.SUBTRACT, high1, low1);
+            ArithmeticOperator.Type.SUBTRACT, TypeConverter.getDoubleValue(high1),
+            TypeConverter.getDoubleValue(low1));
 
         Object diff2 = ArithmeticOperator.evalObjects(
-            ArithmeticOperator.Type.SUBTRACT, high2, low2);
+            ArithmeticOperator.Type.SUBTRACT, TypeConverter.getDoubleValue(high2),
+            TypeConverter.getDoubleValue(low2));
 
         Object ratio = ArithmeticOperator.evalObjects(
             ArithmeticOperator.Type.DIVIDE, diff1, diff2);
@@ -14,6 +14,7 @@ import org.apache.log4j.Logger;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -50,6 +51,24 @@ public class SimplePlanner extends AbstractPlannerImpl {
 
         PlanNode planNode = null;
 
+        // From and where
+        FromClause fromClause = selectClause.getFromClause();
+        Expression whereExpr = selectClause.getWhereExpr();
+
+        // A scan of a single table may be able to read just an index, if
+        // the index stores all of the columns that the query uses.  This
+        // must be worked out before the aggregates are pulled out of the
+        // select values.
+        TableInfo scanTableInfo = null;
+        Set<Integer> usedColumns = null;
+        if (fromClause.isBaseTable() && !fromClause.isRenamed() &&
+            whereExpr != null) {
+            scanTableInfo = storageManager.getTableManager().openTable(
+                fromClause.getTableName());
+            usedColumns =
+                getUsedColumns(selectClause, scanTableInfo.getSchema());
+        }
+
         AggregateProcessor aggregateProcessor = new AggregateProcessor();
         for (SelectValue sv: selectClause.getSelectValues()) {
             // Skip select-values that aren't expressions
@@ -60,13 +79,16 @@ public class SimplePlanner extends AbstractPlannerImpl {
             sv.setExpression(exp);
         }
 
-        // From
-        FromClause fromClause = selectClause.getFromClause();
-        planNode = generateFromClausePlan(fromClause);
+        if (scanTableInfo != null) {
+            // The scan of a single table applies the where-clause itself, so
+            // it may be able to use one of the table's indexes.
+            planNode = makeTableScan(scanTableInfo, whereExpr, usedColumns);
+        }
+        else {
+            planNode = generateFromClausePlan(fromClause);
 
-        // Where
-        if (selectClause.getWhereExpr() != null) {
-            planNode = PlanUtils.addPredicateToPlan(planNode, selectClause.getWhereExpr());
+            if (whereExpr != null)
+                planNode = PlanUtils.addPredicateToPlan(planNode, whereExpr);
         }
 
         // Group by and aggregation
@@ -74,9 +96,11 @@ public class SimplePlanner extends AbstractPlannerImpl {
             planNode = handleGroupingAndAggregation(planNode, selectClause, aggregateProcessor);
         }
 
-        // Order by
-        if (selectClause.getOrderByExprs().size() != 0) {
-            planNode = new SortNode(planNode, selectClause.getOrderByExprs());
+        // Order by.  An index scan may already produce the rows in order.
+        List<OrderByExpression> orderByExprs = selectClause.getOrderByExprs();
+        if (orderByExprs.size() != 0 && !(planNode instanceof IndexScanNode &&
+            ((IndexScanNode) planNode).isOrderedBy(orderByExprs))) {
+            planNode = new SortNode(planNode, orderByExprs);
         }
 
         // Project
@@ -106,9 +130,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
             TableInfo tableInfo = storageManager.getTableManager().openTable(fromClause.getTableName());
             planNode = new FileScanNode(tableInfo, null);
         } else if (fromClause.getClauseType() == FromClause.ClauseType.JOIN_EXPR) {
-            planNode = new NestedLoopJoinNode(generateFromClausePlan(fromClause.getLeftChild()),
+            planNode = makeJoin(generateFromClausePlan(fromClause.getLeftChild()),
                     generateFromClausePlan(fromClause.getRightChild()),
-                    fromClause.getJoinType(), fromClause.getOnExpression());
+                    fromClause.getRightChild(), fromClause.getJoinType(),
+                    fromClause.getOnExpression());
         } else if (fromClause.getClauseType() == FromClause.ClauseType.SELECT_SUBQUERY) {
             planNode = makePlan(fromClause.getSelectClause(), null);
         } else {
@@ -162,9 +187,7 @@ public class SimplePlanner extends AbstractPlannerImpl {
 
         // Make a SelectNode to read rows from the table, with the specified
         // predicate.
-        SelectNode selectNode = new FileScanNode(tableInfo, predicate);
-        selectNode.prepare();
-        return selectNode;
+        return makeTableScan(tableInfo, predicate);
     }
 }
 
@@ -4,6 +4,8 @@ package com.wind.nanodb.relations;
 import java.util.Arrays;
 import java.util.HashSet;
 
+import com.wind.nanodb.expressions.Expression;
+
 
 /**
  * This class represents a set of columns in a schema by specifying the
@@ -18,10 +20,32 @@ public class ColumnRefs {
     private String indexName;
 
 
+    /**
+     * The value in {@link #colIndexes} for an index key that is computed
+     * from an expression, rather than taken from a column.
+     */
+    public static final int EXPRESSION_KEY = -1;
+
+
     /** This array holds the indexes of the columns in the set. */
     private int[] colIndexes;
 
 
+    /**
+     * For an index whose keys may be computed from expressions, the
+     * expression of each key, with {@code null} for the keys that are
+     * columns.  This is {@code null} if all of the keys are columns.
+     */
+    private Expression[] keyExpressions;
+
+
+    /**
+     * The schema of the table that the key expressions are evaluated
+     * against, or {@code null} if all of the keys are columns.
+     */
+    private Schema tableSchema;
+
+
     /**
      * If this index was created to enforce a particular table constraint,
      * this field specifies the kind of constraint it is used to enforce.
@@ -29,8 +53,31 @@ public class ColumnRefs {
     private TableConstraintType constraintType;
 
 
+    /**
+     * For an index, the indexes of extra columns whose values are stored in
+     * each index entry after the key columns, without being part of the key.
+     * This is empty if the index doesn't include any extra columns.
+     */
+    private int[] includedCols = new int[0];
+
+
+    /**
+     * For a partial index, the predicate that a row of the table must
+     * satisfy to have an entry in the index.  This is {@code null} if every
+     * row of the table is indexed.
+     */
+    private Expression predicate;
+
+
     protected ColumnRefs(String indexName, int[] colIndexes,
                       TableConstraintType constraintType) {
+        this(indexName, colIndexes, null, null, constraintType);
+    }
+
+
+    private ColumnRefs(String indexName, int[] colIndexes,
+                       Expression[] keyExpressions, Schema tableSchema,
+                       TableConstraintType constraintType) {
         if (colIndexes == null)
             throw new IllegalArgumentException("colIndexes must be specified");
 
@@ -39,20 +86,36 @@ public class ColumnRefs {
                 "colIndexes must have at least one element");
         }
 
+        if (keyExpressions != null) {
+            if (keyExpressions.length != colIndexes.length) {
+                throw new IllegalArgumentException("keyExpressions must " +
+                    "have an element for each of the colIndexes");
+            }
+
+            if (tableSchema == null) {
+                throw new IllegalArgumentException(
+                    "tableSchema must be specified with keyExpressions");
+            }
+        }
+
         this.indexName = indexName;
 
         // Make sure that no column-index values are duplicated, and that none
-        // are negative values.
-        int[] tmp = colIndexes.clone();
-        Arrays.sort(tmp);
-        for (int i = 0; i < tmp.length; i++) {
-            if (tmp[i] < 0) {
+        // are negative values, except for the keys computed from expressions.
+        HashSet<Integer> seen = new HashSet<>();
+        for (int i = 0; i < colIndexes.length; i++) {
+            boolean isExpression =
+                (keyExpressions != null && keyExpressions[i] != null);
+
+            if (isExpression != (colIndexes[i] == EXPRESSION_KEY) ||
+                (!isExpression && colIndexes[i] < 0)) {
                 throw new IllegalArgumentException(
-                    "colIndexes cannot contain negative values; got " +
+                    "colIndexes cannot contain negative values, except for " +
+                    "keys computed from expressions; got " +
                     Arrays.toString(colIndexes));
             }
 
-            if (i > 0 && tmp[i] == tmp[i - 1]) {
+            if (!isExpression && !seen.add(colIndexes[i])) {
                 throw new IllegalArgumentException(
                     "colIndexes cannot contain duplicate values; got " +
                     Arrays.toString(colIndexes));
@@ -60,6 +123,8 @@ public class ColumnRefs {
         }
 
         this.colIndexes = colIndexes;
+        this.keyExpressions = keyExpressions;
+        this.tableSchema = tableSchema;
 
         this.constraintType = constraintType;
     }
@@ -75,6 +140,28 @@ public class ColumnRefs {
     }
 
 
+    /**
+     * Describes an index whose keys may be computed from expressions over
+     * the columns of a row, rather than just being columns.  The column
+     * index of each such key is {@link #EXPRESSION_KEY}.
+     *
+     * @param indexName the name of the index
+     *
+     * @param colIndexes the indexes of the key columns, with
+     *        {@link #EXPRESSION_KEY} for the keys computed from expressions
+     *
+     * @param keyExpressions the expression that each key is computed from,
+     *        or {@code null} for the keys that are columns
+     *
+     * @param tableSchema the schema of the table, which the expressions are
+     *        evaluated against
+     */
+    public ColumnRefs(String indexName, int[] colIndexes,
+                      Expression[] keyExpressions, Schema tableSchema) {
+        this(indexName, colIndexes, keyExpressions, tableSchema, null);
+    }
+
+
     public int size() {
         return colIndexes.length;
     }
@@ -84,11 +171,140 @@ public class ColumnRefs {
         return colIndexes[i];
     }
 
+
+    /**
+     * Returns the expression that an index key is computed from.
+     *
+     * @param i the position of the key in the index
+     *
+     * @return the key's expression, or {@code null} if the key is a column
+     */
+    public Expression getKeyExpression(int i) {
+        return (keyExpressions != null ? keyExpressions[i] : null);
+    }
+
+
+    /**
+     * Returns true if any of the index's keys are computed from expressions.
+     *
+     * @return true if any key is computed from an expression
+     */
+    public boolean hasKeyExpressions() {
+        return keyExpressions != null;
+    }
+
+
+    /**
+     * Returns the schema of the table that the key expressions are
+     * evaluated against.
+     *
+     * @return the table's schema, or {@code null} if all of the keys are
+     *         columns
+     */
+    public Schema getTableSchema() {
+        return tableSchema;
+    }
+
     public int[] getCols() {
         return colIndexes;
     }
 
 
+    /**
+     * Returns the indexes of the columns that an index stores in each entry
+     * in addition to its key columns.
+     *
+     * @return the included columns; this is empty if there are none
+     */
+    public int[] getIncludedCols() {
+        return includedCols;
+    }
+
+
+    /**
+     * Sets the columns that an index stores in each entry in addition to its
+     * key columns.  The included columns must not repeat each other, or any
+     * of the key columns.
+     *
+     * @param includedCols the indexes of the included columns
+     *
+     * @throws IllegalArgumentException if a column is negative, repeated, or
+     *         also a key column
+     */
+    public void setIncludedCols(int[] includedCols) {
+        if (includedCols == null)
+            throw new IllegalArgumentException("includedCols cannot be null");
+
+        HashSet<Integer> seen = new HashSet<>();
+        for (int i : colIndexes)
+            seen.add(i);
+
+        for (int i : includedCols) {
+            if (i < 0) {
+                throw new IllegalArgumentException(
+                    "includedCols cannot contain negative values; got " +
+                    Arrays.toString(includedCols));
+            }
+
+            if (!seen.add(i)) {
+                throw new IllegalArgumentException("includedCols cannot " +
+                    "repeat a column of the index; got " +
+                    Arrays.toString(includedCols));
+            }
+        }
+
+        this.includedCols = includedCols;
+    }
+
+
+    /**
+     * Returns the predicate that a row must satisfy to be in a partial index.
+     *
+     * @return the index's predicate, or {@code null} if every row of the
+     *         table is indexed
+     */
+    public Expression getPredicate() {
+        return predicate;
+    }
+
+
+    /**
+     * Makes an index a partial index, which only has entries for the rows of
+     * the table that satisfy a predicate.
+     *
+     * @param predicate the predicate that rows must satisfy to be indexed,
+     *        or {@code null} to index every row
+     */
+    public void setPredicate(Expression predicate) {
+        this.predicate = predicate;
+    }
+
+
+    /**
+     * Returns true if every one of the specified columns is a key column or
+     * an included column of this index, so that their values can be read
+     * from the index entries alone.
+     *
+     * @param cols the indexes of the columns to check
+     *
+     * @return true if the index stores all of the specified columns
+     */
+    public boolean coversColumns(Iterable<Integer> cols) {
+        HashSet<Integer> stored = new HashSet<>();
+        for (int i : colIndexes)
+            stored.add(i);
+        for (int i : includedCols)
+            stored.add(i);
+
+        for (int i : cols) {
+            if (!stored.contains(i))
+                return false;
+        }
+
+        return true;
+    }
+
+
     /**
      * Returns true if the specified <tt>ColumnIndexes</tt> object has the
      * same columns as this object, in the exact same order.
@@ -153,17 +369,23 @@ public class ColumnRefs {
         StringBuilder buf = new StringBuilder();
 
         buf.append('(');
-        boolean first = true;
-        for (int i : colIndexes) {
-            if (first)
-                first = false;
-            else
+        for (int i = 0; i < colIndexes.length; i++) {
+            if (i > 0)
                 buf.append(", ");
 
-            buf.append(i);
+            if (colIndexes[i] == EXPRESSION_KEY)
+                buf.append(keyExpressions[i]);
+            else
+                buf.append(colIndexes[i]);
         }
         buf.append(')');
 
+        if (includedCols.length > 0)
+            buf.append(" INCLUDE ").append(Arrays.toString(includedCols));
+
+        if (predicate != null)
+            buf.append(" WHERE ").append(predicate);
+
         return buf.toString();
     }
 }
@@ -54,6 +54,14 @@ public class TableSchema extends Schema {
         new HashMap<String, ColumnRefs>();
 
 
+    /**
+     * Storage-related properties of this table, such as the buffer pool the
+     * table's pages go into.  These are specified when the table is created,
+     * and are stored along with the rest of the schema.
+     */
+    private HashMap<String, String> properties = new HashMap<String, String>();
+
+
     /**
      * Adds a column with given index to list of NOT NULL constrained columns.
      *
@@ -306,4 +314,40 @@ public class TableSchema extends Schema {
     public Set<String> getIndexNames() {
         return new HashSet<String>(indexes.keySet());
     }
+
+
+    /**
+     * Sets a storage property of this table.  Specifying a {@code null} value
+     * removes the property.
+     *
+     * @param name the name of the property
+     * @param value the value of the property, or {@code null}
+     */
+    public void setProperty(String name, String value) {
+        if (name == null)
+            throw new IllegalArgumentException("name cannot be null");
+
+        if (value == null)
+            properties.remove(name);
+        else
+            properties.put(name, value);
+    }
+
+
+    /**
+     * Returns the value of a storage property of this table, or {@code null}
+     * if the property isn't set.
+     *
+     * @param name the name of the property
+     *
+     * @return the value of the property, or {@code null}
+     */
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
 }
@@ -4,6 +4,7 @@ package com.wind.nanodb.server;
 import com.wind.nanodb.commands.Command;
 import com.wind.nanodb.relations.TableInfo;
 import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.FilePointer;
 
 import org.apache.log4j.Logger;
 
@@ -80,6 +81,64 @@ public class EventDispatcher {
     }
 
 
+    public void fireBeforeStatement(TableInfo tblFileInfo) {
+        logger.debug("Firing beforeStatement");
+        for (RowEventListener rel : rowEventListeners) {
+            try {
+                rel.beforeStatement(tblFileInfo);
+            }
+            catch (EventDispatchException e) {
+                // Throw EventDispatchExceptions as-is.
+                throw e;
+            }
+            catch (Exception e) {
+                // Everything else, we wrap with an EventDispatchException.
+                throw new EventDispatchException(e);
+            }
+        }
+    }
+
+
+    /**
+     * Tells every row-event listener that a statement has finished changing
+     * the rows of a table.  Unlike the other events, a failing listener
+     * doesn't keep the rest from being told, since each of them may have
+     * work left over from the statement that must be finished or cleaned
+     * up.  The first failure is thrown once all listeners have been called.
+     *
+     * @param tblFileInfo the table whose rows the statement changed
+     */
+    public void fireAfterStatement(TableInfo tblFileInfo) {
+        logger.debug("Firing afterStatement");
+        EventDispatchException failure = null;
+        for (RowEventListener rel : rowEventListeners) {
+            try {
+                rel.afterStatement(tblFileInfo);
+            }
+            catch (Exception e) {
+                // Keep EventDispatchExceptions as-is, and wrap everything
+                // else with an EventDispatchException.
+                EventDispatchException ede;
+                if (e instanceof EventDispatchException)
+                    ede = (EventDispatchException) e;
+                else
+                    ede = new EventDispatchException(e);
+
+                if (failure == null) {
+                    failure = ede;
+                }
+                else {
+                    logger.error("Another afterStatement listener failed " +
+                        "after the first failure", ede);
+                }
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+
     public void fireBeforeRowInserted(TableInfo tblFileInfo,
                                       Tuple newValues) {
         logger.debug("Firing beforeRowInserted");
@@ -192,4 +251,23 @@ public class EventDispatcher {
             }
         }
     }
+
+
+    public void fireAfterRowMoved(TableInfo tblFileInfo, FilePointer oldRef,
+                                  Tuple newTuple) {
+        logger.debug("Firing afterRowMoved");
+        for (RowEventListener rel : rowEventListeners) {
+            try {
+                rel.afterRowMoved(tblFileInfo, oldRef, newTuple);
+            }
+            catch (EventDispatchException e) {
+                // Throw EventDispatchExceptions as-is.
+                throw e;
+            }
+            catch (Exception e) {
+                // Everything else, we wrap with an EventDispatchException.
+                throw new EventDispatchException(e);
+            }
+        }
+    }
 }
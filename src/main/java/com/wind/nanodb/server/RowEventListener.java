@@ -3,6 +3,7 @@ package com.wind.nanodb.server;
 
 import com.wind.nanodb.relations.TableInfo;
 import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.FilePointer;
 
 /**
  * <p>
@@ -34,6 +35,27 @@ import com.wind.nanodb.relations.Tuple;
  *         performed.
  */
 public interface RowEventListener {
+    /**
+     * Perform processing before a statement starts changing the rows of a
+     * table.  The row events for each row that the statement changes follow,
+     * and then {@link #afterStatement} is called.  Listeners can use this to
+     * collect the work for all of the statement's rows and do it at once.
+     *
+     * @param tblFileInfo the table that the statement will change.
+     */
+    void beforeStatement(TableInfo tblFileInfo) throws Exception;
+
+
+    /**
+     * Perform processing after a statement has finished changing the rows of
+     * a table.  This is also called if the statement fails part of the way
+     * through, since the rows it already changed stay changed.
+     *
+     * @param tblFileInfo the table that the statement changed.
+     */
+    void afterStatement(TableInfo tblFileInfo) throws Exception;
+
+
     /**
      * Perform processing before a row is inserted into a table.
      *
@@ -104,4 +126,19 @@ public interface RowEventListener {
      */
     void afterRowDeleted(TableInfo tblFileInfo, Tuple oldValues)
         throws Exception;
+
+
+    /**
+     * Perform processing after a row has been moved to a new file-pointer
+     * within a table, without its values changing.  This happens when a
+     * table is compacted by the <tt>OPTIMIZE</tt> command.
+     *
+     * @param tblFileInfo the table that the tuple was moved within.
+     *
+     * @param oldRef the file-pointer that the tuple had before it was moved.
+     *
+     * @param newTuple the tuple at its new location in the table.
+     */
+    void afterRowMoved(TableInfo tblFileInfo, FilePointer oldRef,
+                       Tuple newTuple) throws Exception;
 }
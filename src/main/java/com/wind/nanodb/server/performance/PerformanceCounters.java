@@ -47,6 +47,34 @@ public class PerformanceCounters {
     public static final String STORAGE_BYTES_WRITTEN = "storage.bytesWritten";
 
 
+    /** The logical size of all pages written to compressed files. */
+    public static final String STORAGE_UNCOMPRESSED_BYTES_WRITTEN =
+        "storage.uncompressedBytesWritten";
+
+
+    /** The physical size of all pages written to compressed files. */
+    public static final String STORAGE_COMPRESSED_BYTES_WRITTEN =
+        "storage.compressedBytesWritten";
+
+
+    public static final String STORAGE_PAGES_DECOMPRESSED =
+        "storage.pagesDecompressed";
+
+
+    /** The total time spent decompressing pages, in nanoseconds. */
+    public static final String STORAGE_DECOMPRESS_TIME =
+        "storage.decompressTimeNanos";
+
+
+    /** The number of page batches issued through asynchronous IO. */
+    public static final String STORAGE_ASYNC_BATCHES = "storage.asyncBatches";
+
+
+    /** The number of pages read into the page cache ahead of being needed. */
+    public static final String STORAGE_PAGES_PREFETCHED =
+        "storage.pagesPrefetched";
+
+
     private static ConcurrentHashMap<String, AtomicLong> counters =
         new ConcurrentHashMap<>();
 
@@ -226,6 +226,8 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
                             c = show_tables_stmt();
                         } else if ((LA(1) == SHOW) && (LA(2) == VARIABLES)) {
                             c = show_vars_stmt();
+                        } else if ((LA(1) == SHOW) && (LA(2) == INDEX)) {
+                            c = show_index_builds_stmt();
                         } else {
                             throw new NoViableAltException(LT(1), getFilename());
                         }
@@ -912,6 +914,27 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
         return c;
     }
 
+    public final ShowIndexBuildsCommand show_index_builds_stmt() throws RecognitionException, TokenStreamException {
+        ShowIndexBuildsCommand c;
+
+        Token b = null;
+        c = null;
+
+        try {      // for error handling
+            match(SHOW);
+            match(INDEX);
+            b = LT(1);
+            match(IDENT);
+            if (!b.getText().equalsIgnoreCase("builds"))
+                throw new NoViableAltException(b, getFilename());
+            c = new ShowIndexBuildsCommand();
+        } catch (RecognitionException ex) {
+            reportError(ex);
+            recover(ex, _tokenSet_1);
+        }
+        return c;
+    }
+
     public final ShowVariablesCommand show_vars_stmt() throws RecognitionException, TokenStreamException {
         ShowVariablesCommand c;
 
@@ -1194,6 +1217,7 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
         String tblName = null;
         String colName = null;
         CommandProperties p = null;
+        Expression e = null;
 
 
         try {      // for error handling
@@ -1233,15 +1257,13 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
             tblName = dbobj_ident();
             c = new CreateIndexCommand(idxName, tblName, unique);
             match(LPAREN);
-            colName = dbobj_ident();
-            c.addColumn(colName);
+            create_index_key(c);
             {
                 _loop57:
                 do {
                     if ((LA(1) == COMMA)) {
                         match(COMMA);
-                        colName = dbobj_ident();
-                        c.addColumn(colName);
+                        create_index_key(c);
                     } else {
                         break _loop57;
                     }
@@ -1249,6 +1271,31 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
                 } while (true);
             }
             match(RPAREN);
+            {
+                // INCLUDE isn't a reserved word, so that existing schemas
+                // can keep using it as a name.
+                if (LA(1) == IDENT &&
+                    "INCLUDE".equalsIgnoreCase(LT(1).getText())) {
+                    match(IDENT);
+                    match(LPAREN);
+                    colName = dbobj_ident();
+                    c.addIncludedColumn(colName);
+                    {
+                        _loop58:
+                        do {
+                            if ((LA(1) == COMMA)) {
+                                match(COMMA);
+                                colName = dbobj_ident();
+                                c.addIncludedColumn(colName);
+                            } else {
+                                break _loop58;
+                            }
+
+                        } while (true);
+                    }
+                    match(RPAREN);
+                }
+            }
             {
                 switch (LA(1)) {
                     case PROPERTIES: {
@@ -1257,7 +1304,8 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
                         break;
                     }
                     case EOF:
-                    case SEMICOLON: {
+                    case SEMICOLON:
+                    case WHERE: {
                         break;
                     }
                     default: {
@@ -1265,6 +1313,14 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
                     }
                 }
             }
+            {
+                // A WHERE clause makes this a partial index.
+                if (LA(1) == WHERE) {
+                    match(WHERE);
+                    e = expression();
+                    c.setPredicate(e);
+                }
+            }
         } catch (RecognitionException ex) {
             reportError(ex);
             recover(ex, _tokenSet_1);
@@ -1272,6 +1328,34 @@ public class NanoSqlParser extends antlr.LLkParser implements NanoSqlParserToken
         return c;
     }
 
+
+    /**
+     * Parses one key of a <tt>CREATE INDEX</tt> command, which is either a
+     * column name or an expression that the key is computed from.
+     */
+    private void create_index_key(CreateIndexCommand c)
+        throws RecognitionException, TokenStreamException {
+
+        String colName;
+        Expression e;
+
+        if ((LA(1) == IDENT || LA(1) == QUOTED_IDENT) &&
+            (LA(2) == COMMA || LA(2) == RPAREN)) {
+            colName = dbobj_ident();
+            c.addColumn(colName);
+        }
+        else {
+            e = expression();
+            if (e instanceof ColumnValue &&
+                !((ColumnValue) e).getColumnName().isTableSpecified()) {
+                c.addColumn(((ColumnValue) e).getColumnName().getColumnName());
+            }
+            else {
+                c.addKeyExpression(e);
+            }
+        }
+    }
+
     /**
      * Parse a comma-delimited list of column-declarations, and add them to the
      * passed-in CreateTableCommand object.  Semantic checks are done along the way
@@ -0,0 +1,284 @@
+package com.wind.nanodb.storage;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * This class performs batches of page reads or writes against a single data
+ * file using an {@link AsynchronousFileChannel}, so that several requests
+ * can be outstanding at once.  This lets the operating system and the disk
+ * reorder and overlap the requests, instead of waiting for each page before
+ * issuing the next one.  The number of requests in flight is bounded by the
+ * <tt>nanodb.asyncio.queuedepth</tt> property.
+ * </p>
+ * <p>
+ * Each batch call returns only when every request in the batch has
+ * completed, so callers see the same semantics as a sequence of synchronous
+ * reads or writes; only the waiting is overlapped.  The engine is used by
+ * the {@link FileManagerImpl} for batched flushes and page prefetches.
+ * </p>
+ *
+ * @design The asynchronous channel is opened separately from the file's
+ *         {@link java.io.RandomAccessFile}, for the duration of one batch.
+ *         Both refer to the same file, so data written through one is seen
+ *         by the other, and syncing the file through its
+ *         {@code RandomAccessFile} also syncs the data written here.
+ */
+class AsyncIOEngine {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(AsyncIOEngine.class);
+
+
+    /**
+     * This property can be used to turn asynchronous IO on or off.  When it
+     * is off, batches are performed with ordinary synchronous IO.
+     */
+    public static final String PROP_ASYNC_IO = "nanodb.asyncio";
+
+
+    /** By default, asynchronous IO is turned on. */
+    public static final boolean DEFAULT_ASYNC_IO = true;
+
+
+    /**
+     * This property specifies the maximum number of page requests that may be
+     * outstanding at once.
+     */
+    public static final String PROP_ASYNC_IO_QUEUE_DEPTH =
+        "nanodb.asyncio.queuedepth";
+
+
+    /** The default maximum number of outstanding page requests. */
+    public static final int DEFAULT_ASYNC_IO_QUEUE_DEPTH = 16;
+
+
+    /**
+     * This class tracks the completion of all requests in a single batch, and
+     * records the first error that occurs.
+     */
+    private static class Batch {
+        /** Limits the number of requests that may be outstanding at once. */
+        Semaphore slots;
+
+        /** Counted down as each request finishes, successfully or not. */
+        CountDownLatch remaining;
+
+        /** The first error reported by any request in the batch. */
+        volatile Throwable error;
+
+        Batch(int queueDepth, int numRequests) {
+            slots = new Semaphore(queueDepth);
+            remaining = new CountDownLatch(numRequests);
+        }
+
+        void finish(Throwable t) {
+            if (t != null && error == null)
+                error = t;
+
+            slots.release();
+            remaining.countDown();
+        }
+    }
+
+
+    /**
+     * A single page read or write.  Asynchronous channels may transfer fewer
+     * bytes than requested, so the request reissues itself until the whole
+     * page has been transferred.
+     */
+    private static class PageRequest
+        implements CompletionHandler<Integer, Void> {
+
+        private AsynchronousFileChannel channel;
+
+        private Batch batch;
+
+        private boolean write;
+
+        private ByteBuffer buffer;
+
+        private long position;
+
+        PageRequest(AsynchronousFileChannel channel, Batch batch,
+                    boolean write, byte[] data, long position) {
+            this.channel = channel;
+            this.batch = batch;
+            this.write = write;
+            this.buffer = ByteBuffer.wrap(data);
+            this.position = position;
+        }
+
+        void start() {
+            try {
+                if (write)
+                    channel.write(buffer, position, null, this);
+                else
+                    channel.read(buffer, position, null, this);
+            }
+            catch (RuntimeException e) {
+                batch.finish(e);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (count < 0) {
+                batch.finish(new EOFException(
+                    "Read past the end of the file at position " + position));
+                return;
+            }
+
+            position += count;
+            if (buffer.hasRemaining())
+                start();
+            else
+                batch.finish(null);
+        }
+
+        @Override
+        public void failed(Throwable t, Void attachment) {
+            batch.finish(t);
+        }
+    }
+
+
+    /**
+     * Returns true if asynchronous IO should be used, based on the
+     * <tt>nanodb.asyncio</tt> property.
+     *
+     * @return true if asynchronous IO is enabled
+     */
+    public static boolean isEnabled() {
+        String str = System.getProperty(PROP_ASYNC_IO);
+        if (str == null)
+            return DEFAULT_ASYNC_IO;
+
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /** The maximum number of page requests outstanding at once. */
+    private int queueDepth;
+
+
+    public AsyncIOEngine() {
+        queueDepth = DEFAULT_ASYNC_IO_QUEUE_DEPTH;
+
+        String str = System.getProperty(PROP_ASYNC_IO_QUEUE_DEPTH);
+        if (str != null) {
+            try {
+                queueDepth = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.warn("Current value of " + PROP_ASYNC_IO_QUEUE_DEPTH +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (queueDepth < 1)
+                queueDepth = 1;
+        }
+    }
+
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+
+    /**
+     * Reads a batch of pages from the specified file.
+     *
+     * @param file the file to read from
+     * @param positions the file offset to read each page from
+     * @param buffers the buffer to read each page into; each buffer is filled
+     *        completely
+     *
+     * @throws EOFException if any page is past the end of the file
+     * @throws IOException if any read fails
+     */
+    public void readPages(File file, long[] positions, byte[][] buffers)
+        throws IOException {
+        runBatch(file, /* write */ false, positions, buffers);
+    }
+
+
+    /**
+     * Writes a batch of pages to the specified file.  The data is not synced
+     * to the disk.
+     *
+     * @param file the file to write to
+     * @param positions the file offset to write each page to
+     * @param buffers the data of each page
+     *
+     * @throws IOException if any write fails
+     */
+    public void writePages(File file, long[] positions, byte[][] buffers)
+        throws IOException {
+        runBatch(file, /* write */ true, positions, buffers);
+    }
+
+
+    private void runBatch(File file, boolean write, long[] positions,
+                          byte[][] buffers) throws IOException {
+
+        if (positions.length != buffers.length) {
+            throw new IllegalArgumentException(
+                "positions and buffers must be the same length");
+        }
+
+        logger.debug(String.format("%s %d pages of file %s asynchronously.",
+            write ? "Writing" : "Reading", positions.length, file.getName()));
+
+        Batch batch = new Batch(queueDepth, positions.length);
+
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(
+            file.toPath(), write ? StandardOpenOption.WRITE :
+                                   StandardOpenOption.READ)) {
+
+            try {
+                for (int i = 0; i < positions.length; i++) {
+                    batch.slots.acquire();
+                    if (batch.error != null) {
+                        // Don't start any more requests; just account for the
+                        // ones that will never be issued.
+                        batch.slots.release();
+                        for (int j = i; j < positions.length; j++)
+                            batch.remaining.countDown();
+
+                        break;
+                    }
+
+                    new PageRequest(channel, batch, write, buffers[i],
+                        positions[i]).start();
+                }
+
+                batch.remaining.await();
+            }
+            catch (InterruptedException e) {
+                InterruptedIOException ioe = new InterruptedIOException(
+                    "Interrupted while waiting for asynchronous IO on " + file);
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+
+        Throwable error = batch.error;
+        if (error instanceof IOException)
+            throw (IOException) error;
+        else if (error != null)
+            throw new IOException("Asynchronous IO on " + file + " failed", error);
+    }
+}
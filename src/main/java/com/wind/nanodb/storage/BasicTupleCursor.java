@@ -0,0 +1,125 @@
+package com.wind.nanodb.storage;
+
+
+import java.io.IOException;
+
+import com.wind.nanodb.relations.Tuple;
+
+
+/**
+ * A tuple cursor that is implemented in terms of
+ * {@link TupleFile#getFirstTuple} and {@link TupleFile#getNextTuple}, for
+ * tuple files that don't have a more efficient way of scanning their
+ * contents.  This cursor never reuses tuple objects, but when it is asked
+ * to reuse its tuple, it unpins each tuple as it moves past it, since the
+ * caller has agreed not to hold onto it.
+ */
+public class BasicTupleCursor implements TupleCursor {
+
+    /** The tuple file being scanned. */
+    private TupleFile tupleFile;
+
+
+    /** If true, the caller won't hold onto tuples returned by {@link #next}. */
+    private boolean reuseTuple;
+
+
+    /** The tuple most recently returned by the cursor. */
+    private Tuple current;
+
+
+    /**
+     * The tuple most recently returned by {@link #next} when the cursor
+     * reuses its tuple, so that the cursor can unpin it when the caller is
+     * done with it.
+     */
+    private Tuple lent;
+
+
+    /** True if the cursor has reached the end of the file, or been closed. */
+    private boolean done;
+
+
+    public BasicTupleCursor(TupleFile tupleFile, boolean reuseTuple) {
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        this.tupleFile = tupleFile;
+        this.reuseTuple = reuseTuple;
+    }
+
+
+    private void releaseLent() {
+        if (lent != null && lent.isPinned())
+            lent.unpin();
+
+        lent = null;
+    }
+
+
+    private Tuple advance() throws IOException {
+        if (done)
+            return null;
+
+        Tuple next;
+        if (current == null)
+            next = tupleFile.getFirstTuple();
+        else
+            next = tupleFile.getNextTuple(current);
+
+        if (next == null)
+            done = true;
+        else
+            current = next;
+
+        return next;
+    }
+
+
+    @Override
+    public Tuple next() throws IOException {
+        releaseLent();
+
+        Tuple next = advance();
+        if (reuseTuple)
+            lent = next;
+
+        return next;
+    }
+
+
+    @Override
+    public int fill(Tuple[] batch) throws IOException {
+        releaseLent();
+
+        int count = 0;
+        while (count < batch.length) {
+            Tuple tup = advance();
+            if (tup == null)
+                break;
+
+            batch[count++] = tup;
+        }
+
+        return count;
+    }
+
+
+    @Override
+    public void positionAfter(Tuple tuple) throws IOException {
+        if (tuple == null)
+            throw new IllegalArgumentException("tuple cannot be null");
+
+        releaseLent();
+        current = tuple;
+        done = false;
+    }
+
+
+    @Override
+    public void close() {
+        releaseLent();
+        current = null;
+        done = true;
+    }
+}
@@ -3,8 +3,10 @@ package com.wind.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,6 +30,15 @@ import com.wind.nanodb.server.properties.UnrecognizedPropertyException;
  * The buffer manager reduces the number of disk IO operations by managing an
  * in-memory cache of data pages.  It also imposes a limit on the maximum
  * amount of space that can be used for data pages in the database.
+ * <p>
+ * Several threads may load and pin pages at once.  Every method that uses the
+ * cached files, pages or pin-counts synchronizes on the buffer manager.  A
+ * page is read from its file without holding the buffer manager's monitor,
+ * though:  a thread that is going to read a page first claims it with
+ * {@link #getPageOrStartLoading} or {@link #startLoading}, and any other
+ * thread that wants the page waits until {@link #finishLoading} is called.
+ * This way two threads never read the same page, and threads that want
+ * other pages don't wait for the read.
  *
  * @todo Eventually add integrity checks, e.g. to make sure every cached
  *       page's file appears in the collection of cached files.
@@ -205,6 +216,21 @@ public class BufferManager {
     private LinkedHashMap<CachedPageInfo, DBPage> cachedPages;
 
 
+    /**
+     * This collection holds the buffer pools that partition the page cache,
+     * keyed by pool name.  The default pool is always present.
+     */
+    private LinkedHashMap<String, BufferPool> bufferPools;
+
+
+    /**
+     * This collection maps the filenames of database files to the buffer pool
+     * that their pages go into.  Files that don't appear here use the default
+     * pool.
+     */
+    private HashMap<String, BufferPool> filePools;
+
+
     /**
      * This collection maps session IDs to the files and pages that each
      * session has pinned, so that we can forcibly unpin pages used by a
@@ -213,6 +239,13 @@ public class BufferManager {
     private HashMap<Integer, HashMap<DBPageID, SessionPinCount>> sessionPinCounts;
 
 
+    /**
+     * This collection holds the pages that threads are currently reading
+     * from their files, and that aren't in the page cache yet.
+     */
+    private HashSet<CachedPageInfo> loadingPages;
+
+
     /**
      * This set holds the identity hash-code of every buffer allocated by the
      * Buffer Manager, so that it can verify that buffers being freed are
@@ -250,10 +283,16 @@ public class BufferManager {
         replacementPolicy = configureReplacementPolicy();
         cachedPages = new LinkedHashMap<>(16, 0.75f, "lru".equals(replacementPolicy));
 
+        bufferPools = new LinkedHashMap<>();
+        bufferPools.put(BufferPool.DEFAULT_POOL_NAME,
+            new BufferPool(BufferPool.DEFAULT_POOL_NAME));
+        filePools = new HashMap<>();
+
         totalBytesCached = 0;
         allocatedBuffers = new HashSet<>();
 
         sessionPinCounts = new HashMap<>();
+        loadingPages = new HashSet<>();
 
         if (server != null) {
             // Register properties that the Buffer Manager exposes.
@@ -336,6 +375,148 @@ public class BufferManager {
     }
 
 
+    /**
+     * Returns the maximum number of bytes the page cache may hold.
+     *
+     * @return the maximum size of the page cache, in bytes
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+
+    /**
+     * Returns true if a buffer of the specified size could be allocated
+     * without evicting any pages from the cache.
+     *
+     * @param size the size of the buffer to check for
+     *
+     * @return true if the cache has at least <tt>size</tt> bytes free
+     */
+    public synchronized boolean hasFreeSpace(int size) {
+        return totalBytesCached + size <= maxCacheSize;
+    }
+
+
+    /**
+     * Returns the identities of all data pages currently in the cache, in the
+     * cache's replacement order; that is, the pages most likely to be evicted
+     * appear first.  Pages of write-ahead log files and the transaction-state
+     * file are not reported, since they are never worth preloading.
+     *
+     * @return a list of the pages currently in the cache
+     */
+    synchronized List<PageCacheWarmer.PageEntry> getCachedPageEntries() {
+        ArrayList<PageCacheWarmer.PageEntry> entries = new ArrayList<>();
+        for (CachedPageInfo info : cachedPages.keySet()) {
+            DBFileType type = info.dbFile.getType();
+            if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                type == DBFileType.TXNSTATE_FILE) {
+                continue;
+            }
+
+            entries.add(new PageCacheWarmer.PageEntry(
+                info.dbFile.getDataFile().getName(), info.pageNo));
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Returns the buffer pool with the specified name, or {@code null} if there
+     * is no such pool.
+     *
+     * @param poolName the name of the pool to retrieve
+     *
+     * @return the buffer pool with the specified name, or {@code null}
+     */
+    public synchronized BufferPool getBufferPool(String poolName) {
+        return bufferPools.get(poolName);
+    }
+
+
+    /**
+     * Returns all buffer pools currently defined in the Buffer Manager,
+     * starting with the default pool.  The list is a copy, so it can be used
+     * while other threads add pools.
+     *
+     * @return a list of all buffer pools
+     */
+    public synchronized List<BufferPool> getBufferPools() {
+        return new ArrayList<>(bufferPools.values());
+    }
+
+
+    /**
+     * Assigns a database file to the specified buffer pool, creating the pool
+     * if it doesn't already exist.  If page limits are specified then they
+     * replace the pool's current limits; pages already cached are not
+     * evicted until more pages are added to the pool.
+     *
+     * @param dbFile the file whose pages should go into the pool
+     * @param poolName the name of the pool, or {@code null} for the default
+     *        pool
+     * @param minPages the minimum number of pages for the pool, or
+     *        {@link BufferPool#NO_LIMIT} to leave the pool's limits alone
+     * @param maxPages the maximum number of pages for the pool, or
+     *        {@link BufferPool#NO_LIMIT} to leave the pool's limits alone
+     */
+    public synchronized void assignFileToPool(DBFile dbFile, String poolName,
+                                              int minPages, int maxPages) {
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (poolName == null)
+            poolName = BufferPool.DEFAULT_POOL_NAME;
+
+        BufferPool pool = bufferPools.get(poolName);
+        if (pool == null) {
+            pool = new BufferPool(poolName);
+            bufferPools.put(poolName, pool);
+        }
+
+        if (minPages != BufferPool.NO_LIMIT || maxPages != BufferPool.NO_LIMIT)
+            pool.setLimits(minPages, maxPages);
+
+        String filename = dbFile.getDataFile().getName();
+        BufferPool oldPool = getPoolForFile(dbFile);
+        if (oldPool != pool) {
+            // Move the accounting for any pages already cached.
+            for (CachedPageInfo info : cachedPages.keySet()) {
+                if (dbFile.equals(info.dbFile)) {
+                    oldPool.recordPageRemoved(/* evicted */ false);
+                    pool.recordPageAdded();
+                }
+            }
+        }
+
+        logger.debug(String.format("Assigning file %s to buffer pool %s.",
+            filename, pool));
+
+        if (pool.getName().equals(BufferPool.DEFAULT_POOL_NAME))
+            filePools.remove(filename);
+        else
+            filePools.put(filename, pool);
+    }
+
+
+    /**
+     * Returns the buffer pool that pages of the specified file go into.
+     *
+     * @param dbFile the file to find the pool for
+     *
+     * @return the file's buffer pool
+     */
+    private BufferPool getPoolForFile(DBFile dbFile) {
+        BufferPool pool = filePools.get(dbFile.getDataFile().getName());
+        if (pool == null)
+            pool = bufferPools.get(BufferPool.DEFAULT_POOL_NAME);
+
+        return pool;
+    }
+
+
     /**
      * This method attempts to allocate a buffer of the specified size,
      * possibly evicting some existing buffers in order to make space.
@@ -348,7 +529,7 @@ public class BufferManager {
      *         manager, and an IO error occurred while writing the page to
      *         persistent storage.
      */
-    public byte[] allocBuffer(int size) throws IOException {
+    public synchronized byte[] allocBuffer(int size) throws IOException {
         if (size <= 0)
             throw new IllegalArgumentException("size must be > 0, got " + size);
 
@@ -375,7 +556,7 @@ public class BufferManager {
     }
 
 
-    public void releaseBuffer(byte[] buffer) {
+    public synchronized void releaseBuffer(byte[] buffer) {
         // Verify that this was a buffer we allocated?
         // TODO:  System.identityHashCode() is not guaranteed to return a
         //        distinct value for every object, so we can have collisions
@@ -404,7 +585,7 @@ public class BufferManager {
      *         already been opened, or <tt>null</tt> if the file isn't currently
      *         open.
      */
-    public DBFile getFile(String filename) {
+    public synchronized DBFile getFile(String filename) {
         DBFile dbFile = cachedFiles.get(filename);
 
         logger.debug(String.format(
@@ -415,7 +596,7 @@ public class BufferManager {
     }
 
 
-    public void addFile(DBFile dbFile) {
+    public synchronized void addFile(DBFile dbFile) {
         if (dbFile == null)
             throw new IllegalArgumentException("dbFile cannot be null");
 
@@ -441,7 +622,7 @@ public class BufferManager {
      *
      * @param dbPage the page that was pinned by the session
      */
-    public void recordPagePinned(DBPage dbPage) {
+    public synchronized void recordPagePinned(DBPage dbPage) {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
@@ -471,7 +652,7 @@ public class BufferManager {
      *
      * @param dbPage the page that was unpinned
      */
-    public void recordPageUnpinned(DBPage dbPage) {
+    public synchronized void recordPageUnpinned(DBPage dbPage) {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
@@ -514,7 +695,7 @@ public class BufferManager {
      * generally done at the end of each transaction so that pages aren't
      * pinned forever, and can actually be evicted from the buffer manager.
      */
-    public void unpinAllSessionPages() {
+    public synchronized void unpinAllSessionPages() {
         // Unpin all pages pinned by this session.
         int sessionID = SessionState.get().getSessionID();
 
@@ -549,7 +730,7 @@ public class BufferManager {
     }
 
 
-    public void recordPageInvalidated(DBPage dbPage) {
+    public synchronized void recordPageInvalidated(DBPage dbPage) {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
@@ -574,6 +755,20 @@ public class BufferManager {
     }
 
 
+    /**
+     * Returns true if the specified page is currently buffered.  Unlike
+     * {@link #getPage}, this method doesn't pin the page or count as a cache
+     * hit or miss.
+     *
+     * @param dbFile the file containing the page
+     * @param pageNo the page number in the {@code DBFile}
+     * @return true if the page is in the page cache
+     */
+    public synchronized boolean containsPage(DBFile dbFile, int pageNo) {
+        return cachedPages.containsKey(new CachedPageInfo(dbFile, pageNo));
+    }
+
+
     /**
      * Retrieves the specified {@code DBPage} from the Buffer Manager if it's
      * currently buffered, or {@code null} if the page is not currently
@@ -583,23 +778,102 @@ public class BufferManager {
      * @param pageNo the page number in the {@code DBFile} to retrieve
      * @return the requested {@code DBPage}, or {@code null} if not found
      */
-    public DBPage getPage(DBFile dbFile, int pageNo) {
+    public synchronized DBPage getPage(DBFile dbFile, int pageNo) {
         DBPage dbPage = cachedPages.get(new CachedPageInfo(dbFile, pageNo));
 
         logger.debug(String.format(
             "Requested page [%s,%d] is%s in page-cache.",
             dbFile, pageNo, (dbPage != null ? "" : " NOT")));
 
+        BufferPool pool = getPoolForFile(dbFile);
         if (dbPage != null) {
+            pool.recordHit();
+
             // Make sure this page is pinned by the session so that we don't
             // flush it until the session is done with it.
             dbPage.pin();
         }
+        else {
+            pool.recordMiss();
+        }
+
+        return dbPage;
+    }
+
+
+    /**
+     * Retrieves the specified {@code DBPage} like {@link #getPage}, or claims
+     * the page for the current thread to load if it isn't buffered.  If
+     * another thread is loading the page, this method waits for it to finish
+     * first.  A thread that claims a page must call {@link #finishLoading}
+     * once it has added the page or given up, whether or not the page could
+     * be read.
+     *
+     * @param dbFile the file containing the page to retrieve
+     * @param pageNo the page number in the {@code DBFile} to retrieve
+     * @return the requested {@code DBPage}, pinned, or {@code null} if the
+     *         caller must now load the page
+     *
+     * @throws InterruptedIOException if the thread is interrupted while
+     *         waiting for another thread to load the page
+     */
+    public synchronized DBPage getPageOrStartLoading(DBFile dbFile, int pageNo)
+        throws InterruptedIOException {
+
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        while (loadingPages.contains(cpi)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException(String.format(
+                    "Interrupted while waiting for page [%s,%d] to load",
+                    dbFile, pageNo));
+            }
+        }
+
+        DBPage dbPage = getPage(dbFile, pageNo);
+        if (dbPage == null)
+            loadingPages.add(cpi);
 
         return dbPage;
     }
 
 
+    /**
+     * Claims a page for the current thread to load, unless the page is
+     * already buffered or another thread is loading it.  This never waits;
+     * it is meant for reading pages before they are needed.
+     *
+     * @param dbFile the file containing the page
+     * @param pageNo the page number in the {@code DBFile}
+     * @return true if the caller must now load the page and then call
+     *         {@link #finishLoading}, or false if it should skip the page
+     */
+    public synchronized boolean startLoading(DBFile dbFile, int pageNo) {
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        if (cachedPages.containsKey(cpi))
+            return false;
+
+        return loadingPages.add(cpi);
+    }
+
+
+    /**
+     * Releases a page claimed by {@link #getPageOrStartLoading} or
+     * {@link #startLoading}, and wakes any threads waiting for the page.
+     * The page should already have been added with {@link #addPage} if it
+     * was read successfully.
+     *
+     * @param dbFile the file containing the page
+     * @param pageNo the page number in the {@code DBFile}
+     */
+    public synchronized void finishLoading(DBFile dbFile, int pageNo) {
+        loadingPages.remove(new CachedPageInfo(dbFile, pageNo));
+        notifyAll();
+    }
+
+
     /**
      * <p>
      * Adds a new, previously unbuffered {@code DBPage} to the Buffer Manager.
@@ -615,7 +889,7 @@ public class BufferManager {
      * @throws IllegalStateException if the page already appears in the Buffer
      *         Manager.
      */
-    public void addPage(DBPage dbPage) throws IOException {
+    public synchronized void addPage(DBPage dbPage) throws IOException {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
@@ -631,12 +905,65 @@ public class BufferManager {
         logger.debug(String.format("Adding page [%s,%d] to page-cache.",
             dbFile, pageNo));
 
+        // If the page's buffer pool is at its maximum size, the pool has to
+        // give up one of its own pages first.
+        BufferPool pool = getPoolForFile(dbFile);
+        if (pool.isFull())
+            evictFromPool(pool);
+
         // Make sure this page is pinned by the session so that we don't flush
         // it until the session is done with it.  We do that before adding it
         // to the cached-pages collection, so that another thread can't
         // reclaim the page out from under us.
         dbPage.pin();
         cachedPages.put(cpi, dbPage);
+        pool.recordPageAdded();
+    }
+
+
+    /**
+     * This helper function evicts unpinned pages from the specified buffer
+     * pool until the pool is below its maximum size.  Pages are evicted in
+     * the cache's replacement order.
+     *
+     * @param pool the buffer pool to evict pages from
+     *
+     * @throws IOException if an IO error occurs when flushing dirty pages out
+     *         to disk
+     */
+    private void evictFromPool(BufferPool pool) throws IOException {
+        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+
+        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+            cachedPages.entrySet().iterator();
+
+        while (entries.hasNext() && pool.isFull()) {
+            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+
+            DBPage oldPage = entry.getValue();
+            if (oldPage.isPinned() || getPoolForFile(oldPage.getDBFile()) != pool)
+                continue;
+
+            logger.debug(String.format(
+                "    Evicting page [%s,%d] from buffer pool %s.",
+                oldPage.getDBFile(), oldPage.getPageNo(), pool.getName()));
+
+            entries.remove();
+            totalBytesCached -= oldPage.getPageSize();
+            pool.recordPageRemoved(/* evicted */ true);
+
+            if (oldPage.isDirty())
+                dirtyPages.add(oldPage);
+            else
+                oldPage.invalidate();
+        }
+
+        writeDirtyPages(dirtyPages, /* invalidate */ true);
+
+        if (pool.isFull()) {
+            logger.warn(String.format("Buffer pool %s is over its maximum " +
+                "size, but all of its pages are pinned.", pool.getName()));
+        }
     }
 
 
@@ -663,7 +990,11 @@ public class BufferManager {
 
         ArrayList<DBPage> dirtyPages = new ArrayList<>();
 
-        if (!cachedPages.isEmpty()) {
+        // The first pass leaves alone the pages of any buffer pool that is
+        // at its minimum size.  If that doesn't free up enough space then the
+        // minimums are ignored, since running out of space is worse.
+        for (int pass = 0; pass < 2 && !cachedPages.isEmpty() &&
+             bytesRequired + totalBytesCached > maxCacheSize; pass++) {
             // The cache will be too large after adding this page.
 
             Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
@@ -678,12 +1009,17 @@ public class BufferManager {
                 if (oldPage.isPinned())  // Can't flush pages that are in use.
                     continue;
 
+                BufferPool pool = getPoolForFile(oldPage.getDBFile());
+                if (pass == 0 && !pool.canGiveUpPages())
+                    continue;
+
                 logger.debug(String.format(
                     "    Evicting page [%s,%d] from page-cache to make room.",
                     oldPage.getDBFile(), oldPage.getPageNo()));
 
                 entries.remove();
                 totalBytesCached -= oldPage.getPageSize();
+                pool.recordPageRemoved(/* evicted */ true);
 
                 // If the page is dirty, we need to write its data to disk before
                 // invalidating it.  Otherwise, just invalidate it.
@@ -728,11 +1064,33 @@ public class BufferManager {
             for (BufferManagerObserver obs : observers)
                 obs.beforeWriteDirtyPages(readOnlyPages);
 
-            // Finally, we can write out each dirty page.
+            // Finally, we can write out the dirty pages.  The pages of each
+            // file are handed to the file manager as one batch, in page
+            // order, so that it can have several writes outstanding at once.
+            LinkedHashMap<DBFile, ArrayList<DBPage>> pagesByFile =
+                new LinkedHashMap<>();
             for (DBPage dbPage : dirtyPages) {
-                fileManager.savePage(dbPage.getDBFile(), dbPage.getPageNo(),
-                                     dbPage.getPageData());
+                pagesByFile.computeIfAbsent(dbPage.getDBFile(),
+                    f -> new ArrayList<>()).add(dbPage);
+            }
+
+            for (Map.Entry<DBFile, ArrayList<DBPage>> entry :
+                 pagesByFile.entrySet()) {
+
+                ArrayList<DBPage> filePages = entry.getValue();
+                filePages.sort(Comparator.comparingInt(DBPage::getPageNo));
+
+                int[] pageNos = new int[filePages.size()];
+                byte[][] buffers = new byte[filePages.size()][];
+                for (int i = 0; i < pageNos.length; i++) {
+                    pageNos[i] = filePages.get(i).getPageNo();
+                    buffers[i] = filePages.get(i).getPageData();
+                }
 
+                fileManager.savePages(entry.getKey(), pageNos, buffers);
+            }
+
+            for (DBPage dbPage : dirtyPages) {
                 dbPage.setDirty(false);
 
                 if (invalidate)
@@ -764,8 +1122,9 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeDBFile(DBFile dbFile, int minPageNo, int maxPageNo,
-                            boolean sync) throws IOException {
+    public synchronized void writeDBFile(DBFile dbFile, int minPageNo,
+                                         int maxPageNo, boolean sync)
+        throws IOException {
 
         logger.info(String.format("Writing all dirty pages for file %s to disk%s.",
             dbFile, (sync ? " (with sync)" : "")));
@@ -820,7 +1179,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeDBFile(DBFile dbFile, boolean sync) throws IOException {
+    public synchronized void writeDBFile(DBFile dbFile, boolean sync) throws IOException {
         writeDBFile(dbFile, 0, Integer.MAX_VALUE, sync);
     }
 
@@ -838,7 +1197,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeAll(boolean sync) throws IOException {
+    public synchronized void writeAll(boolean sync) throws IOException {
         logger.info("Writing ALL dirty pages in the Buffer Manager to disk.");
 
         Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
@@ -890,7 +1249,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or the file's contents
      */
-    public void flushDBFile(DBFile dbFile) throws IOException {
+    public synchronized void flushDBFile(DBFile dbFile) throws IOException {
         logger.info("Flushing all pages for file " + dbFile +
             " from the Buffer Manager.");
 
@@ -913,6 +1272,7 @@ public class BufferManager {
                 // Remove the page from the cache.
                 entries.remove();
                 totalBytesCached -= oldPage.getPageSize();
+                getPoolForFile(dbFile).recordPageRemoved(/* evicted */ false);
 
                 // If the page is dirty, we need to write its data to disk before
                 // invalidating it.  Otherwise, just invalidate it.
@@ -930,6 +1290,48 @@ public class BufferManager {
     }
 
 
+    /**
+     * This method removes the cached pages of a file from the specified page
+     * onward, <em>without</em> writing them to disk.  This is used when the
+     * end of a file is about to be truncated, so that the pages' data isn't
+     * written back afterward, extending the file again.
+     *
+     * @param dbFile the file whose pages should be discarded
+     *
+     * @param minPageNo pages with a page-number less than this value are
+     *        kept in the cache
+     *
+     * @throws IllegalStateException if any of the pages to be discarded is
+     *         still pinned
+     */
+    public synchronized void discardPages(DBFile dbFile, int minPageNo) {
+        logger.info(String.format("Discarding pages %d and beyond of file %s " +
+            "from the Buffer Manager.", minPageNo, dbFile));
+
+        ArrayList<CachedPageInfo> discarded = new ArrayList<>();
+        for (Map.Entry<CachedPageInfo, DBPage> entry : cachedPages.entrySet()) {
+            CachedPageInfo info = entry.getKey();
+            if (dbFile.equals(info.dbFile) && info.pageNo >= minPageNo) {
+                DBPage oldPage = entry.getValue();
+                if (oldPage.isPinned()) {
+                    throw new IllegalStateException(String.format(
+                        "Page [%s,%d] can't be discarded; it is still pinned",
+                        dbFile, info.pageNo));
+                }
+
+                discarded.add(info);
+            }
+        }
+
+        for (CachedPageInfo info : discarded) {
+            DBPage oldPage = cachedPages.remove(info);
+            totalBytesCached -= oldPage.getPageSize();
+            getPoolForFile(dbFile).recordPageRemoved(/* evicted */ false);
+            oldPage.invalidate();
+        }
+    }
+
+
     /**
      * This method removes all cached pages from the buffer manager, writing
      * out any dirty pages in the process.  This method is not generally
@@ -943,7 +1345,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or the file's contents
      */
-    public void flushAll() throws IOException {
+    public synchronized void flushAll() throws IOException {
         logger.info("Flushing ALL database pages from the Buffer Manager.");
 
         Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
@@ -963,6 +1365,8 @@ public class BufferManager {
             // Remove the page from the cache.
             entries.remove();
             totalBytesCached -= oldPage.getPageSize();
+            getPoolForFile(oldPage.getDBFile()).recordPageRemoved(
+                /* evicted */ false);
 
             // If the page is dirty, we need to write its data to disk before
             // invalidating it.  Otherwise, just invalidate it.
@@ -988,7 +1392,7 @@ public class BufferManager {
      *
      * @throws IOException if an IO error occurs while writing out dirty pages
      */
-    public void removeDBFile(DBFile dbFile) throws IOException {
+    public synchronized void removeDBFile(DBFile dbFile) throws IOException {
         logger.info("Removing DBFile " + dbFile + " from buffer manager");
         flushDBFile(dbFile);
         cachedFiles.remove(dbFile.getDataFile().getName());
@@ -1006,7 +1410,7 @@ public class BufferManager {
      *
      * @throws IOException if an IO error occurs while writing out dirty pages
      */
-    public List<DBFile> removeAll() throws IOException {
+    public synchronized List<DBFile> removeAll() throws IOException {
         logger.info("Removing ALL DBFiles from buffer manager");
 
         // Flush all pages, ensuring that dirty pages will be written too.
@@ -0,0 +1,211 @@
+package com.wind.nanodb.storage;
+
+
+/**
+ * <p>
+ * This class describes a named partition of the Buffer Manager's page cache.
+ * Every cached page belongs to exactly one buffer pool, based on the file the
+ * page comes from.  Files that haven't been assigned to a pool belong to the
+ * {@link #DEFAULT_POOL_NAME default pool}.
+ * </p>
+ * <p>
+ * A pool may specify a minimum and a maximum number of pages.  When the page
+ * cache is full, pages are not evicted from a pool that is at or below its
+ * minimum, so that a large scan of some other table can't push the pool's
+ * pages out of the cache.  When a pool reaches its maximum, adding another
+ * page to the pool evicts one of the pool's own pages, so that a table in
+ * that pool can't take over the whole cache.  All pools still share the
+ * overall cache-size limit.
+ * </p>
+ * <p>
+ * Tables and indexes are assigned to pools through the
+ * {@link #PROP_BUFFER_POOL}, {@link #PROP_MIN_PAGES} and
+ * {@link #PROP_MAX_PAGES} properties, which are stored in the schema of the
+ * table or index.
+ * </p>
+ */
+public class BufferPool {
+
+    /** The name of the pool that files go into if none is specified. */
+    public static final String DEFAULT_POOL_NAME = "default";
+
+
+    /**
+     * The name of the table property that specifies which buffer pool the
+     * table's pages should go into.
+     */
+    public static final String PROP_BUFFER_POOL = "bufferpool";
+
+
+    /**
+     * The name of the table property that specifies the minimum number of
+     * pages the table's buffer pool should keep cached.
+     */
+    public static final String PROP_MIN_PAGES = "minpages";
+
+
+    /**
+     * The name of the table property that specifies the maximum number of
+     * pages the table's buffer pool may have cached.
+     */
+    public static final String PROP_MAX_PAGES = "maxpages";
+
+
+    /** A value indicating that a pool has no minimum or maximum page count. */
+    public static final int NO_LIMIT = -1;
+
+
+    /** The name of the buffer pool. */
+    private String name;
+
+
+    /**
+     * The minimum number of pages the pool keeps when other pools need space,
+     * or {@link #NO_LIMIT}.
+     */
+    private int minPages = NO_LIMIT;
+
+
+    /** The maximum number of pages the pool may hold, or {@link #NO_LIMIT}. */
+    private int maxPages = NO_LIMIT;
+
+
+    /** The number of pages currently cached in this pool. */
+    private int pagesCached;
+
+
+    /** The number of page requests satisfied from this pool. */
+    private long hits;
+
+
+    /** The number of page requests that had to be read into this pool. */
+    private long misses;
+
+
+    /** The number of pages evicted from this pool. */
+    private long evictions;
+
+
+    public BufferPool(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("name cannot be null");
+
+        this.name = name;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public int getMinPages() {
+        return minPages;
+    }
+
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+
+    /**
+     * Sets the minimum and maximum number of pages for this pool.
+     *
+     * @param minPages the minimum number of pages, or {@link #NO_LIMIT}
+     * @param maxPages the maximum number of pages, or {@link #NO_LIMIT}
+     *
+     * @throws IllegalArgumentException if the maximum is less than the
+     *         minimum, or if the maximum is not positive
+     */
+    public void setLimits(int minPages, int maxPages) {
+        if (minPages < 0)
+            minPages = NO_LIMIT;
+
+        if (maxPages < 0)
+            maxPages = NO_LIMIT;
+
+        if (maxPages == 0)
+            throw new IllegalArgumentException("maxPages must be positive");
+
+        if (minPages != NO_LIMIT && maxPages != NO_LIMIT && maxPages < minPages) {
+            throw new IllegalArgumentException(String.format(
+                "maxPages (%d) cannot be less than minPages (%d)",
+                maxPages, minPages));
+        }
+
+        this.minPages = minPages;
+        this.maxPages = maxPages;
+    }
+
+
+    public int getPagesCached() {
+        return pagesCached;
+    }
+
+
+    public long getHits() {
+        return hits;
+    }
+
+
+    public long getMisses() {
+        return misses;
+    }
+
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+
+    /**
+     * Returns true if pages may be evicted from this pool to make room for
+     * pages from other pools; that is, if the pool is above its minimum.
+     *
+     * @return true if this pool's pages may be evicted for other pools
+     */
+    boolean canGiveUpPages() {
+        return minPages == NO_LIMIT || pagesCached > minPages;
+    }
+
+
+    /**
+     * Returns true if this pool must evict one of its own pages before another
+     * page can be added to it.
+     *
+     * @return true if the pool is at or over its maximum size
+     */
+    boolean isFull() {
+        return maxPages != NO_LIMIT && pagesCached >= maxPages;
+    }
+
+
+    void recordHit() {
+        hits++;
+    }
+
+
+    void recordMiss() {
+        misses++;
+    }
+
+
+    void recordPageAdded() {
+        pagesCached++;
+    }
+
+
+    void recordPageRemoved(boolean evicted) {
+        pagesCached--;
+        if (evicted)
+            evictions++;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[%s, min=%d, max=%d, cached=%d]",
+            name, minPages, maxPages, pagesCached);
+    }
+}
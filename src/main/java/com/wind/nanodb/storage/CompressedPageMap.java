@@ -0,0 +1,541 @@
+package com.wind.nanodb.storage;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * This class records where each logical page of a compressed {@link DBFile}
+ * is stored in the physical file.  Compressed pages have different sizes,
+ * so each page is stored in an <em>extent</em>:  a run of bytes in the
+ * physical file, whose capacity is a multiple of {@link #EXTENT_ALIGNMENT}.
+ * A page that is rewritten stays in its extent if it still fits; otherwise
+ * it moves to a free extent (or the end of the file), and its old extent
+ * becomes free.
+ * </p>
+ * <p>
+ * The physical file starts with a {@link #HEADER_SIZE}-byte header holding
+ * the file type and encoded page size, just like an uncompressed file; the
+ * high bit of the page-size byte is set to mark the file as compressed.
+ * Each extent starts with the length of the stored page data (a 4-byte
+ * integer, with 0 meaning the page is all zeros), followed by the data.  If
+ * the stored length is the page size then the page is stored uncompressed.
+ * </p>
+ * <p>
+ * The page-offset map itself is kept in memory, and is saved to a separate
+ * file (the data file's name with {@link #MAP_FILE_SUFFIX} appended) when
+ * the data file is synced, truncated or closed.  In between, each change to
+ * the map (a page moving to a new extent, or the file growing or shrinking)
+ * is appended to a log file (the map file's name with
+ * {@link #LOG_FILE_SUFFIX} appended), so that a page that moved can still
+ * be found if the file isn't closed cleanly.  Loading the map replays the
+ * log, and saving the map empties it.  Free extents are not saved; they are
+ * simply the gaps between the extents in use.
+ * </p>
+ *
+ * @design Since each extent records the length of its own data, the map only
+ *         has to be correct about where each page's extent is.  A page that
+ *         is rewritten in place is therefore readable even if the map was
+ *         not saved afterward.
+ */
+class CompressedPageMap {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(CompressedPageMap.class);
+
+
+    /** The suffix appended to the data file's name to get the map file. */
+    public static final String MAP_FILE_SUFFIX = ".pgmap";
+
+
+    /** The suffix appended to the map file's name to get the log file. */
+    public static final String LOG_FILE_SUFFIX = ".log";
+
+
+    /** The flag set in the page-size byte of a compressed file's header. */
+    public static final int COMPRESSED_FLAG = 0x80;
+
+
+    /** The size of the physical header at the start of a compressed file. */
+    public static final int HEADER_SIZE = 16;
+
+
+    /** Extent capacities are always a multiple of this value. */
+    public static final int EXTENT_ALIGNMENT = 64;
+
+
+    /** The size of the length value stored at the start of each extent. */
+    public static final int EXTENT_HEADER_SIZE = 4;
+
+
+    /** A value stored at the start of the map file to identify it. */
+    private static final int MAP_FILE_MAGIC = 0x4e44504d;
+
+
+    /**
+     * The size of each record in the log file:  a page number, the offset
+     * of the page's extent and the extent's capacity.  A record with a page
+     * number of -1 records that the file was truncated to the number of
+     * pages in the offset field.
+     */
+    private static final int LOG_RECORD_SIZE = 16;
+
+
+    /** The file that the map is saved to. */
+    private File mapFile;
+
+
+    /** The file that changes to the map are logged to. */
+    private File logFile;
+
+
+    /** The open log file, or {@code null} if it hasn't been opened yet. */
+    private RandomAccessFile log;
+
+
+    /** The number of logical pages in the data file. */
+    private int numPages;
+
+
+    /**
+     * The physical offset of each page's extent, or 0 if the page has no
+     * extent yet (in which case it is all zeros).
+     */
+    private long[] offsets;
+
+
+    /** The capacity of each page's extent, in bytes. */
+    private int[] capacities;
+
+
+    /** The free extents in the physical file, keyed by offset. */
+    private TreeMap<Long, Integer> freeExtents = new TreeMap<>();
+
+
+    /** The offset just past the last extent in the physical file. */
+    private long endOffset = HEADER_SIZE;
+
+
+    /** True if the map has changed since it was last saved. */
+    private boolean dirty;
+
+
+    /**
+     * Returns the map file that goes with the specified data file.
+     *
+     * @param dataFile the compressed data file
+     *
+     * @return the file that holds the data file's page-offset map
+     */
+    public static File getMapFile(File dataFile) {
+        return new File(dataFile.getPath() + MAP_FILE_SUFFIX);
+    }
+
+
+    /**
+     * Returns the log file that goes with the specified data file.
+     *
+     * @param dataFile the compressed data file
+     *
+     * @return the file that changes to the data file's map are logged to
+     */
+    public static File getLogFile(File dataFile) {
+        return new File(getMapFile(dataFile).getPath() + LOG_FILE_SUFFIX);
+    }
+
+
+    /**
+     * Creates an empty page map for a new compressed data file.
+     *
+     * @param dataFile the compressed data file
+     */
+    public CompressedPageMap(File dataFile) {
+        mapFile = getMapFile(dataFile);
+        logFile = getLogFile(dataFile);
+        offsets = new long[16];
+        capacities = new int[16];
+        dirty = true;
+    }
+
+
+    /**
+     * Loads the page map of an existing compressed data file, and replays
+     * the changes logged since it was last saved.
+     *
+     * @param dataFile the compressed data file
+     *
+     * @return the data file's page map
+     *
+     * @throws IOException if the map file can't be read
+     */
+    public static CompressedPageMap load(File dataFile) throws IOException {
+        CompressedPageMap map = new CompressedPageMap(dataFile);
+
+        // A new file's map isn't saved until the file is first synced, but
+        // its changes are logged.
+        if (!map.mapFile.exists() && map.logFile.exists()) {
+            map.replayLog();
+            map.computeFreeExtents();
+            return map;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(map.mapFile)))) {
+
+            if (in.readInt() != MAP_FILE_MAGIC)
+                throw new IOException(map.mapFile + " is not a page-map file");
+
+            int numPages = in.readInt();
+            map.ensureCapacity(numPages);
+            map.numPages = numPages;
+            for (int i = 0; i < numPages; i++) {
+                map.offsets[i] = in.readLong();
+                map.capacities[i] = in.readInt();
+            }
+        }
+
+        map.dirty = map.replayLog();
+        map.computeFreeExtents();
+
+        return map;
+    }
+
+
+    /**
+     * Applies the records in the log file to the map.  A record that was
+     * only partly written when the log was last appended to is ignored.
+     *
+     * @return true if the log had any records
+     *
+     * @throws IOException if the log file can't be read
+     */
+    private boolean replayLog() throws IOException {
+        if (!logFile.exists())
+            return false;
+
+        int numRecords = (int) (logFile.length() / LOG_RECORD_SIZE);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(logFile)))) {
+
+            for (int i = 0; i < numRecords; i++) {
+                int pageNo = in.readInt();
+                long offset = in.readLong();
+                int capacity = in.readInt();
+
+                if (pageNo == -1) {
+                    for (int iPage = (int) offset; iPage < numPages; iPage++) {
+                        offsets[iPage] = 0;
+                        capacities[iPage] = 0;
+                    }
+                    numPages = Math.min(numPages, (int) offset);
+                }
+                else {
+                    ensureCapacity(pageNo + 1);
+                    numPages = Math.max(numPages, pageNo + 1);
+                    offsets[pageNo] = offset;
+                    capacities[pageNo] = capacity;
+                }
+            }
+        }
+
+        logger.debug(String.format("Replayed %d page-map changes from %s",
+            numRecords, logFile));
+
+        return numRecords > 0;
+    }
+
+
+    /**
+     * Appends a record to the log file, opening it if necessary.
+     *
+     * @throws IOException if the log file can't be written
+     */
+    private void appendLog(int pageNo, long offset, int capacity)
+        throws IOException {
+
+        if (log == null) {
+            log = new RandomAccessFile(logFile, "rw");
+            log.seek(log.length() - log.length() % LOG_RECORD_SIZE);
+        }
+
+        byte[] record = new byte[LOG_RECORD_SIZE];
+        ByteBuffer.wrap(record).putInt(pageNo).putLong(offset).putInt(capacity);
+        log.write(record);
+    }
+
+
+    /**
+     * Closes the log file, if it is open.  The log is opened again the next
+     * time the map changes.
+     *
+     * @throws IOException if the log file can't be closed
+     */
+    public synchronized void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+
+    /**
+     * Saves the page map to its map file, if it has changed, and empties the
+     * log.  The map is written to a temporary file and synced to the disk
+     * first, and then renamed into place.
+     *
+     * @throws IOException if the map file can't be written
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+
+        File tmpFile = new File(mapFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fileOut));
+
+            out.writeInt(MAP_FILE_MAGIC);
+            out.writeInt(numPages);
+            for (int i = 0; i < numPages; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(capacities[i]);
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        if (mapFile.exists() && !mapFile.delete())
+            throw new IOException("Couldn't replace page-map file " + mapFile);
+
+        if (!tmpFile.renameTo(mapFile))
+            throw new IOException("Couldn't rename " + tmpFile + " to " + mapFile);
+
+        syncDirectory(mapFile.getAbsoluteFile().getParentFile());
+
+        // The map now has every logged change.
+        if (log != null)
+            log.setLength(0);
+        else if (logFile.exists() && !logFile.delete())
+            throw new IOException("Couldn't empty page-map log " + logFile);
+
+        dirty = false;
+    }
+
+
+    /**
+     * Syncs a directory to the disk, so that a file renamed into it is still
+     * there after a crash.  Not every platform allows a directory to be
+     * opened, so a failure is only logged.
+     *
+     * @param dir the directory to sync
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel =
+                 FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            logger.debug("Couldn't sync directory " + dir, e);
+        }
+    }
+
+
+    /**
+     * Updates the map's notion of where it is saved, after the data file has
+     * been renamed.  The map file itself should already have been renamed,
+     * after the map was saved and its log closed.
+     *
+     * @param dataFile the new data file
+     */
+    public synchronized void setDataFile(File dataFile) {
+        mapFile = getMapFile(dataFile);
+        logFile = getLogFile(dataFile);
+    }
+
+
+    public synchronized int getNumPages() {
+        return numPages;
+    }
+
+
+    /**
+     * Records that the file now has at least <tt>pageNo + 1</tt> pages.  Any
+     * new pages have no extent, so they read as all zeros until they are
+     * written.
+     *
+     * @param pageNo the page number that must exist
+     *
+     * @throws IOException if the change can't be logged
+     */
+    public synchronized void extendTo(int pageNo) throws IOException {
+        if (pageNo >= numPages) {
+            ensureCapacity(pageNo + 1);
+            numPages = pageNo + 1;
+            dirty = true;
+            appendLog(pageNo, 0, 0);
+        }
+    }
+
+
+    /**
+     * Removes all pages from <tt>numPages</tt> onward from the map, freeing
+     * their extents.
+     *
+     * @param numPages the number of pages to keep
+     *
+     * @throws IOException if the change can't be logged
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        if (numPages >= this.numPages)
+            return;
+
+        for (int i = numPages; i < this.numPages; i++) {
+            offsets[i] = 0;
+            capacities[i] = 0;
+        }
+
+        this.numPages = numPages;
+        computeFreeExtents();
+        dirty = true;
+        appendLog(-1, numPages, 0);
+    }
+
+
+    /** Returns the offset just past the last extent in the physical file. */
+    public synchronized long getEndOffset() {
+        return endOffset;
+    }
+
+
+    /**
+     * Returns the physical offset of the page's extent, or 0 if the page has
+     * no extent.
+     */
+    public synchronized long getOffset(int pageNo) {
+        return offsets[pageNo];
+    }
+
+
+    /**
+     * Returns the physical offset of the extent the page should be written
+     * to, given the size of the page's data.  If the page's current extent
+     * is big enough then it is reused; otherwise a new extent is allocated.
+     *
+     * @param pageNo the page being written
+     * @param dataSize the number of bytes of page data to store
+     *
+     * @return the offset of the extent to write the page to
+     *
+     * @throws IOException if the change can't be logged
+     */
+    public synchronized long allocate(int pageNo, int dataSize)
+        throws IOException {
+        // The record logged for the page's new extent also records that the
+        // file grew, so the growth isn't logged separately.
+        if (pageNo >= numPages) {
+            ensureCapacity(pageNo + 1);
+            numPages = pageNo + 1;
+            dirty = true;
+        }
+
+        int required = roundUp(EXTENT_HEADER_SIZE + dataSize);
+        if (offsets[pageNo] != 0 && capacities[pageNo] >= required)
+            return offsets[pageNo];
+
+        // The page needs a new extent; its old one is now free.
+        if (offsets[pageNo] != 0)
+            freeExtents.put(offsets[pageNo], capacities[pageNo]);
+
+        long offset = -1;
+        Iterator<Map.Entry<Long, Integer>> iter =
+            freeExtents.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Integer> free = iter.next();
+            if (free.getValue() >= required) {
+                offset = free.getKey();
+                iter.remove();
+
+                // Return whatever is left over to the free list.
+                int leftover = free.getValue() - required;
+                if (leftover > 0)
+                    freeExtents.put(offset + required, leftover);
+
+                break;
+            }
+        }
+
+        if (offset < 0) {
+            offset = endOffset;
+            endOffset += required;
+        }
+
+        offsets[pageNo] = offset;
+        capacities[pageNo] = required;
+        dirty = true;
+        appendLog(pageNo, offset, required);
+
+        logger.debug(String.format("Page %d moved to extent at %d (%d bytes).",
+            pageNo, offset, required));
+
+        return offset;
+    }
+
+
+    private static int roundUp(int size) {
+        return (size + EXTENT_ALIGNMENT - 1) / EXTENT_ALIGNMENT * EXTENT_ALIGNMENT;
+    }
+
+
+    private void ensureCapacity(int size) {
+        if (size > offsets.length) {
+            int newSize = Math.max(size, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, newSize);
+            capacities = Arrays.copyOf(capacities, newSize);
+        }
+    }
+
+
+    /**
+     * Reconstructs the free-extent list and the end offset from the extents
+     * that are in use.
+     */
+    private void computeFreeExtents() {
+        ArrayList<long[]> extents = new ArrayList<>();
+        for (int i = 0; i < numPages; i++) {
+            if (offsets[i] != 0)
+                extents.add(new long[] { offsets[i], capacities[i] });
+        }
+
+        extents.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        freeExtents.clear();
+        long pos = HEADER_SIZE;
+        for (long[] extent : extents) {
+            if (extent[0] > pos)
+                freeExtents.put(pos, (int) (extent[0] - pos));
+
+            pos = Math.max(pos, extent[0] + extent[1]);
+        }
+
+        endOffset = pos;
+    }
+}
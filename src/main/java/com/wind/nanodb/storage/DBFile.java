@@ -72,6 +72,13 @@ public class DBFile {
     private RandomAccessFile fileContents;
 
 
+    /**
+     * If the file's pages are compressed, this records where each page is
+     * stored in the file; otherwise it is {@code null}.
+     */
+    private CompressedPageMap pageMap;
+
+
     /**
      * This static helper method returns true if the specified page size is
      * valid; i.e. it must be within the minimum and maximum page sizes, and
@@ -187,6 +194,29 @@ public class DBFile {
     public DBFile(File dataFile, DBFileType type, int pageSize,
         RandomAccessFile fileContents) throws IOException {
 
+        this(dataFile, type, pageSize, fileContents, null);
+    }
+
+
+    /**
+     * Constructs a new object from the specified information and the previously
+     * opened data-file, whose pages may be compressed.
+     *
+     * @param dataFile the actual file containing the data
+     * @param type the type of the data file
+     * @param pageSize the page-size of the data file
+     * @param fileContents an already opened {@link RandomAccessFile} to use for
+     *        accessing the data file's contents
+     * @param pageMap the map of where each compressed page is stored, or
+     *        {@code null} if the file's pages aren't compressed
+     *
+     * @throws IllegalArgumentException if the page size is not valid.
+     * @throws IOException if some other IO error occurs
+     */
+    DBFile(File dataFile, DBFileType type, int pageSize,
+        RandomAccessFile fileContents, CompressedPageMap pageMap)
+        throws IOException {
+
         if (dataFile == null || type == null || fileContents == null)
             throw new NullPointerException();
 
@@ -196,10 +226,12 @@ public class DBFile {
         this.type = type;
         this.pageSize = pageSize;
         this.fileContents = fileContents;
+        this.pageMap = pageMap;
 
         // Check to make sure the file contains a whole number of pages.
+        // (Compressed files are packed, so this doesn't apply to them.)
         long fileSize = fileContents.length();
-        if (fileSize % (long) pageSize != 0) {
+        if (pageMap == null && fileSize % (long) pageSize != 0) {
             // Maybe handle this someday by extending the file to have a whole
             // page at the end, but this is definitely the more conservative
             // approach.
@@ -259,6 +291,8 @@ public class DBFile {
      */
     public void setDataFile(File file) {
         dataFile = file;
+        if (pageMap != null)
+            pageMap.setDataFile(file);
     }
 
 
@@ -293,11 +327,33 @@ public class DBFile {
      * @throws IOException if an IO error occurs while reading the file's length
      */
     public int getNumPages() throws IOException {
+        if (pageMap != null)
+            return pageMap.getNumPages();
+
         long numPages = fileContents.length() / (long) pageSize;
         return (int) numPages;
     }
 
 
+    /**
+     * Returns true if this file's pages are stored compressed.
+     *
+     * @return true if this file's pages are stored compressed
+     */
+    public boolean isCompressed() {
+        return pageMap != null;
+    }
+
+
+    /**
+     * Returns the map of where each compressed page is stored in the file, or
+     * {@code null} if the file isn't compressed.
+     */
+    CompressedPageMap getPageMap() {
+        return pageMap;
+    }
+
+
     /**
      * Returns the {@link RandomAccessFile} for accessing the data file's
      * contents.
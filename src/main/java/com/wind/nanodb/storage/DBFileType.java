@@ -24,6 +24,13 @@ public enum DBFileType {
     BTREE_TUPLE_FILE(2),
 
 
+    /**
+     * Represents a PAX tuple file, which stores the values on each page
+     * column by column, for tables that are mostly scanned and aggregated.
+     */
+    PAX_TUPLE_FILE(3),
+
+
     /**
      * Represents a transaction-state file used for write-ahead logging and
      * recovery.
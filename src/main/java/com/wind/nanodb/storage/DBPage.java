@@ -2,7 +2,8 @@ package com.wind.nanodb.storage;
 
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import org.apache.log4j.Logger;
@@ -25,7 +26,9 @@ import com.wind.nanodb.storage.writeahead.LogSequenceNumber;
  * Multibyte values are stored in big-endian format, with the most significant
  * byte (MSB) stored at the lowest index, and the least significant byte (LSB)
  * stored at the highest index.  (This is also the network byte order specified
- * by the Internet Protocol.)
+ * by the Internet Protocol.)  The typed accessors go through a big-endian
+ * {@link ByteBuffer} view of the page data, which the JIT compiles into
+ * single loads and stores instead of assembling each value byte by byte.
  *
  * @see PageReader
  * @see PageWriter
@@ -86,6 +89,14 @@ public class DBPage implements Pinnable, AutoCloseable {
     private byte[] pageData;
 
 
+    /**
+     * A big-endian view of {@link #pageData}, used to read and write
+     * multibyte values.  Only absolute (position-specified) operations are
+     * used on this buffer, so its own position and limit never change.
+     */
+    private ByteBuffer pageBuffer;
+
+
     /**
      * When the page is marked dirty, this gets set to the original version of
      * the page, so that we can properly record changes to the write-ahead log.
@@ -145,6 +156,8 @@ public class DBPage implements Pinnable, AutoCloseable {
             throw new RuntimeException(e);
         }
 
+        pageBuffer = ByteBuffer.wrap(pageData);
+
         oldPageData = null;
     }
 
@@ -194,24 +207,30 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     @Override
     public void pin() {
-        pinCount++;
+        // Pages can be pinned by several threads at once, so the pin-count
+        // is guarded by the same monitor as the buffer manager's state.
+        synchronized (bufferManager) {
+            pinCount++;
 
-        // To facilitate debugging of pinned-page leaks!
-        bufferManager.recordPagePinned(this);
+            // To facilitate debugging of pinned-page leaks!
+            bufferManager.recordPagePinned(this);
+        }
     }
 
 
     @Override
     public void unpin() {
-        if (pinCount <= 0) {
-            throw new IllegalStateException(
-                "pinCount is not positive (value is " + pinCount + ")");
-        }
+        synchronized (bufferManager) {
+            if (pinCount <= 0) {
+                throw new IllegalStateException(
+                    "pinCount is not positive (value is " + pinCount + ")");
+            }
 
-        // To facilitate debugging of pinned-page leaks!
-        bufferManager.recordPageUnpinned(this);
+            // To facilitate debugging of pinned-page leaks!
+            bufferManager.recordPageUnpinned(this);
 
-        pinCount--;
+            pinCount--;
+        }
 
         // Don't do anything else to the data page, because at this point,
         // it may still contain dirty data that needs to be flushed to disk
@@ -346,6 +365,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         if (pageData != null) {
             bufferManager.releaseBuffer(pageData);
             pageData = null;
+            pageBuffer = null;
         }
 
         if (oldPageData != null) {
@@ -531,10 +551,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned short value, as an integer
      */
     public int readUnsignedShort(int position) {
-        int value = ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageBuffer.getShort(position) & 0xFFFF;
     }
 
     /**
@@ -546,13 +563,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed short value
      */
     public short readShort(int position) {
-        // Don't chop off high-order bits.  When byte is cast to int, the sign
-        // will be extended, so if original byte is negative, the resulting
-        // int will be too.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (short) value;
+        return pageBuffer.getShort(position);
     }
 
     /**
@@ -567,9 +578,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public void writeShort(int position, int value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageBuffer.putShort(position, (short) value);
     }
 
 
@@ -580,17 +589,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      *
      * @return the char value
      */
-    public char readChar(int position)
-    {
-        // NOTE:  Exactly like readShort(), but result is cast to a different
-        // type.
-
-        // Don't chop off high-order bits.  When byte is cast to int, the sign will
-        // be extended, so if original byte is negative, so will resulting int.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (char) value;
+    public char readChar(int position) {
+        return pageBuffer.getChar(position);
     }
 
     /**
@@ -618,12 +618,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned integer value, as a long
      */
     public long readUnsignedInt(int position) {
-        long value = ((pageData[position++] & 0xFF) << 24)
-                   | ((pageData[position++] & 0xFF) << 16)
-                   | ((pageData[position++] & 0xFF) <<  8)
-                   | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageBuffer.getInt(position) & 0xFFFFFFFFL;
     }
 
 
@@ -635,12 +630,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed int value
      */
     public int readInt(int position) {
-        int value = ((pageData[position++] & 0xFF) << 24)
-                  | ((pageData[position++] & 0xFF) << 16)
-                  | ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageBuffer.getInt(position);
     }
 
     /**
@@ -652,11 +642,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public void writeInt(int position, int value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageBuffer.putInt(position, value);
     }
 
 
@@ -669,16 +655,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed long value
      */
     public long readLong(int position) {
-        long value = ((long) (pageData[position++] & 0xFF) << 56)
-                   | ((long) (pageData[position++] & 0xFF) << 48)
-                   | ((long) (pageData[position++] & 0xFF) << 40)
-                   | ((long) (pageData[position++] & 0xFF) << 32)
-                   | ((long) (pageData[position++] & 0xFF) << 24)
-                   | ((long) (pageData[position++] & 0xFF) << 16)
-                   | ((long) (pageData[position++] & 0xFF) <<  8)
-                   | ((long) (pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageBuffer.getLong(position);
     }
 
     /**
@@ -690,15 +667,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public void writeLong(int position, long value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 56));
-        pageData[position++] = (byte) (0xFF & (value >> 48));
-        pageData[position++] = (byte) (0xFF & (value >> 40));
-        pageData[position++] = (byte) (0xFF & (value >> 32));
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageBuffer.putLong(position, value);
     }
 
 
@@ -722,6 +691,116 @@ public class DBPage implements Pinnable, AutoCloseable {
     }
 
 
+    /*============================*/
+    /* BULK DATA ACCESS FUNCTIONS */
+    /*============================*/
+
+
+    /**
+     * Reads a run of consecutive unsigned shorts into the provided array.
+     * This is useful for reading arrays of offsets, such as a data page's
+     * slot directory, in one call.
+     *
+     * @param position the location in the page to start reading values from
+     * @param values the array to store the values into
+     * @param off the index in <tt>values</tt> to store the first value at
+     * @param count the number of values to read
+     */
+    public void readUnsignedShorts(int position, int[] values, int off,
+                                   int count) {
+        checkBulkRange(position, 2, 2, values.length, off, count);
+        for (int i = 0; i < count; i++, position += 2)
+            values[off + i] = pageBuffer.getShort(position) & 0xFFFF;
+    }
+
+
+    /**
+     * Reads a run of values from the same 4-byte integer column of a series
+     * of records.  The first value is at <tt>position</tt>, and each following
+     * value is <tt>stride</tt> bytes after the previous one; a stride of 4
+     * reads a packed array of integers.
+     *
+     * @param position the location in the page of the first value
+     * @param stride the distance in bytes between consecutive values
+     * @param values the array to store the values into
+     * @param off the index in <tt>values</tt> to store the first value at
+     * @param count the number of values to read
+     */
+    public void readInts(int position, int stride, int[] values, int off,
+                         int count) {
+        checkBulkRange(position, stride, 4, values.length, off, count);
+        for (int i = 0; i < count; i++, position += stride)
+            values[off + i] = pageBuffer.getInt(position);
+    }
+
+
+    /**
+     * Reads a run of values from the same 8-byte integer column of a series
+     * of records.  The first value is at <tt>position</tt>, and each following
+     * value is <tt>stride</tt> bytes after the previous one; a stride of 8
+     * reads a packed array of longs.
+     *
+     * @param position the location in the page of the first value
+     * @param stride the distance in bytes between consecutive values
+     * @param values the array to store the values into
+     * @param off the index in <tt>values</tt> to store the first value at
+     * @param count the number of values to read
+     */
+    public void readLongs(int position, int stride, long[] values, int off,
+                          int count) {
+        checkBulkRange(position, stride, 8, values.length, off, count);
+        for (int i = 0; i < count; i++, position += stride)
+            values[off + i] = pageBuffer.getLong(position);
+    }
+
+
+    /**
+     * Reads a run of values from the same <tt>DOUBLE</tt> column of a series
+     * of records.  The values are laid out as for {@link #readLongs}.
+     *
+     * @param position the location in the page of the first value
+     * @param stride the distance in bytes between consecutive values
+     * @param values the array to store the values into
+     * @param off the index in <tt>values</tt> to store the first value at
+     * @param count the number of values to read
+     */
+    public void readDoubles(int position, int stride, double[] values,
+                            int off, int count) {
+        checkBulkRange(position, stride, 8, values.length, off, count);
+        for (int i = 0; i < count; i++, position += stride) {
+            values[off + i] =
+                Double.longBitsToDouble(pageBuffer.getLong(position));
+        }
+    }
+
+
+    /**
+     * Checks the arguments of the bulk read operations up front, so that a
+     * bad range fails before any values are stored.  The last value must fit
+     * entirely within the page, so its <tt>width</tt> is checked as well as
+     * where it starts.
+     */
+    private void checkBulkRange(int position, int stride, int width,
+                                int arrayLength, int off, int count) {
+        if (count < 0 || off < 0 || off + count > arrayLength) {
+            throw new IndexOutOfBoundsException(String.format(
+                "Can't store %d values at index %d of an array of length %d",
+                count, off, arrayLength));
+        }
+
+        if (stride <= 0)
+            throw new IllegalArgumentException("stride must be positive");
+
+        if (position < 0 ||
+            (count > 0 &&
+             position + (long) stride * (count - 1) + width > pageData.length)) {
+            throw new IndexOutOfBoundsException(String.format(
+                "%d values with stride %d at position %d run past the end " +
+                "of the page", count, stride, position));
+        }
+    }
+
+
     /**
      * This method reads and returns a variable-length string whose maximum
      * length is 255 bytes.  The string is expected to be in US-ASCII
@@ -738,20 +817,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public String readVarString255(int position) {
         int len = readUnsignedByte(position++);
-
-        String str = null;
-
-        try {
-            str = new String(pageData, position, len, "US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // to happen.
-            logger.error("The unthinkable has happened:  " + e);
-        }
-
-        return str;
+        return new String(pageData, position, len, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -773,18 +839,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      *         255 characters
      */
     public void writeVarString255(int position, String value) {
-        byte[] bytes;
-
-        try {
-            bytes = value.getBytes("US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // to happen.
-            logger.error("The unthinkable has happened!", e);
-            throw new RuntimeException("The unthinkable has happened!", e);
-        }
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
 
         if (bytes.length > 255)
             throw new IllegalArgumentException("value must be 255 bytes or less");
@@ -813,19 +868,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         int len = readUnsignedShort(position);
         position += 2;
 
-        String str = null;
-
-        try {
-            str = new String(pageData, position, len, "US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // to happen.
-            logger.error("The unthinkable has happened:  " + e);
-        }
-
-        return str;
+        return new String(pageData, position, len, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -847,18 +890,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      *         65535 characters
      */
     public void writeVarString65535(int position, String value) {
-        byte[] bytes;
-
-        try {
-            bytes = value.getBytes("US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // to happen.
-            logger.error("The unthinkable has happened!", e);
-            throw new RuntimeException("The unthinkable has happened!", e);
-        }
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
 
         if (bytes.length > 65535)
             throw new IllegalArgumentException("value must be 65535 bytes or less");
@@ -893,24 +925,12 @@ public class DBPage implements Pinnable, AutoCloseable {
      *         <tt>len</tt> characters in length
      */
     public String readFixedSizeString(int position, int len) {
-        String str = null;
-
         // Fixed-size strings are padded with 0-bytes, so trim these off the
         // end of the string value.
         while (len > 0 && pageData[position + len - 1] == 0)
             len--;
 
-        try {
-            str = new String(pageData, position, len, "US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // to happen.
-            logger.error("The unthinkable has happened:  " + e);
-        }
-
-        return str;
+        return new String(pageData, position, len, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -937,18 +957,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      *         <tt>len</tt> characters
      */
     public void writeFixedSizeString(int position, String value, int len) {
-        byte[] bytes;
-
-        try {
-            bytes = value.getBytes("US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            // According to the Java docs, the US-ASCII character-encoding is
-            // required to be supported by all JVMs.  So, this is not supposed
-            // happen.
-            logger.error("The unthinkable has happened!", e);
-            throw new RuntimeException("The unthinkable has happened!", e);
-        }
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
 
         if (bytes.length > len) {
             throw new IllegalArgumentException("value must be " + len +
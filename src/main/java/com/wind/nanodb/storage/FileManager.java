@@ -41,6 +41,25 @@ public interface FileManager {
     DBFile createDBFile(String filename, DBFileType type, int pageSize)
         throws IOException;
 
+    /**
+     * Creates a new database file, optionally storing its pages compressed.
+     * Compressed files have the same logical pages as uncompressed files, so
+     * the rest of the database doesn't need to know whether a file is
+     * compressed or not.
+     *
+     * @param filename the name of the file to open to create the database file
+     * @param type the type of database file being created
+     * @param pageSize the page size to use when reading and writing the file
+     * @param compressed true if the file's pages should be stored compressed
+     *
+     * @return a new database file object for the newly created file
+     *
+     * @throws IOException if the specified file already exists.
+     * @throws IllegalArgumentException if the page size is not valid
+     */
+    DBFile createDBFile(String filename, DBFileType type, int pageSize,
+                        boolean compressed) throws IOException;
+
     /**
      * Attempts to rename the specified {@link DBFile} to a new filename.
      * If successful, the {@code DBFile} object itself is updated with a new
@@ -137,6 +156,44 @@ public interface FileManager {
     void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException;
 
+    /**
+     * Loads a batch of pages from the specified data file.  The file manager
+     * may have several of the reads outstanding at once, but all of them have
+     * completed when this method returns.  Unlike {@link #loadPage}, pages
+     * past the end of the file are never created.
+     *
+     * @param dbFile the database file to load the pages from
+     * @param pageNos the numbers of the pages to load
+     * @param buffers the buffer to load each page into
+     *
+     * @throws IllegalArgumentException if a page number is negative, or if a
+     *         buffer is not the same length as the file's page-size.
+     *
+     * @throws java.io.EOFException if a requested page is not in the data file
+     *
+     * @throws IOException if an error occurs while reading the pages
+     */
+    void loadPages(DBFile dbFile, int[] pageNos, byte[][] buffers)
+        throws IOException;
+
+    /**
+     * Saves a batch of pages to the specified data file.  The file manager
+     * may have several of the writes outstanding at once, but all of them
+     * have completed when this method returns.  As with {@link #savePage},
+     * the data might not actually be on disk until the file is synced.
+     *
+     * @param dbFile the data file to write to
+     * @param pageNos the page number to write each buffer to
+     * @param buffers the data to write to each page
+     *
+     * @throws IllegalArgumentException if a page number is negative, or if a
+     *         buffer is not the same length as the file's page-size.
+     *
+     * @throws IOException if an error occurs while writing the pages
+     */
+    void savePages(DBFile dbFile, int[] pageNos, byte[][] buffers)
+        throws IOException;
+
     /**
      * This method ensures that all file-writes on the specified DB-file have
      * actually been synchronized to the disk.  Note that even after a call to
@@ -154,6 +211,19 @@ public interface FileManager {
      */
     void syncDBFile(DBFile dbFile) throws IOException;
 
+    /**
+     * Truncates the database file so that it only holds its first
+     * <tt>numPages</tt> pages.  The caller must make sure that none of the
+     * removed pages are still cached by the buffer manager.
+     *
+     * @param dbFile the database file to truncate
+     *
+     * @param numPages the number of pages to keep
+     *
+     * @throws IOException if the file cannot be truncated for some reason.
+     */
+    void truncateDBFile(DBFile dbFile, int numPages) throws IOException;
+
     /**
      * Closes the underlying data file.  Obviously, subsequent read or write
      * attempts will fail after this method is called.
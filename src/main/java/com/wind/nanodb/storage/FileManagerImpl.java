@@ -8,6 +8,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import com.wind.nanodb.server.performance.PerformanceCounters;
 
@@ -24,10 +28,15 @@ import com.wind.nanodb.server.performance.PerformanceCounters;
  *         provide higher-level operations on the Storage Manager so that we
  *         can provide global buffering capabilities in one place.
  *
- * @design This class includes no multithreading support.  It maintains no
- *         internal state, so there isn't anything that needs to be guarded,
- *         but still, other classes using this class need to be careful to
- *         maintain proper multithreading.
+ * @design This class maintains almost no internal state, so there isn't much
+ *         that needs to be guarded.  Pages of ordinary files are read and
+ *         written at explicit positions through the file's channel, which
+ *         several threads may do at once, so the Buffer Manager can read
+ *         pages without holding its monitor.  Compressed files are accessed
+ *         through the file's seek position and page map, so those accesses
+ *         synchronize on the {@link DBFile}.  Other classes using this class
+ *         still need to make sure that the same page isn't read and written
+ *         at the same time.
  */
 public class FileManagerImpl implements FileManager {
 
@@ -65,6 +74,22 @@ public class FileManagerImpl implements FileManager {
     private int lastPageNoAccessed;
 
 
+    /**
+     * The page maps of the compressed files that have been created or opened,
+     * keyed by the data file's absolute path.  Every {@link DBFile} object
+     * for a given compressed file shares the same map, so that one object
+     * can't overwrite extents that another object has allocated.
+     */
+    private HashMap<String, CompressedPageMap> pageMaps = new HashMap<>();
+
+
+    /**
+     * The engine used to perform batches of page reads and writes, or
+     * {@code null} if asynchronous IO is turned off.
+     */
+    private AsyncIOEngine asyncIO;
+
+
     /**
      * Create a file-manager instance that uses the specified base directory.
      *
@@ -80,6 +105,9 @@ public class FileManagerImpl implements FileManager {
         }
 
         this.baseDir = baseDir;
+
+        if (AsyncIOEngine.isEnabled())
+            asyncIO = new AsyncIOEngine();
     }
 
     @Override
@@ -151,13 +179,42 @@ public class FileManagerImpl implements FileManager {
     @Override
     public DBFile createDBFile(String filename, DBFileType type, int pageSize)
         throws IOException {
+        return createDBFile(filename, type, pageSize, false);
+    }
+
+
+    @Override
+    public DBFile createDBFile(String filename, DBFileType type, int pageSize,
+                               boolean compressed) throws IOException {
 
         File f = new File(baseDir, filename);
-        logger.debug("Creating new database file " + f + ".");
+        logger.debug("Creating new " + (compressed ? "compressed " : "") +
+            "database file " + f + ".");
         if (!f.createNewFile())
             throw new IOException("File " + f + " already exists!");
 
-        DBFile dbFile = new DBFile(f, type, pageSize);
+        DBFile dbFile;
+        if (compressed) {
+            // Compressed files start with a small uncompressed header that
+            // identifies the file type and page size, so that openDBFile()
+            // can tell how to read the rest of the file.
+            RandomAccessFile fileContents = new RandomAccessFile(f, "rw");
+            byte[] header = new byte[CompressedPageMap.HEADER_SIZE];
+            header[0] = (byte) type.getID();
+            header[1] = (byte) (DBFile.encodePageSize(pageSize) |
+                CompressedPageMap.COMPRESSED_FLAG);
+            fileContents.write(header);
+
+            CompressedPageMap pageMap = new CompressedPageMap(f);
+            synchronized (pageMaps) {
+                pageMaps.put(f.getAbsolutePath(), pageMap);
+            }
+
+            dbFile = new DBFile(f, type, pageSize, fileContents, pageMap);
+        }
+        else {
+            dbFile = new DBFile(f, type, pageSize);
+        }
 
         byte[] buffer = new byte[pageSize];
         buffer[0] = (byte) type.getID();
@@ -173,14 +230,54 @@ public class FileManagerImpl implements FileManager {
     public boolean renameDBFile(DBFile dbFile, String newFilename) {
         File dataFile = dbFile.getDataFile();
         File newDataFile = new File(baseDir, newFilename);
-        if (dataFile.renameTo(newDataFile)) {
-            // Rename succeeded!
-            dbFile.setDataFile(newDataFile);
-            return true;
+
+        CompressedPageMap pageMap = dbFile.getPageMap();
+        if (pageMap != null) {
+            // Save the page map, so that only the map file has to follow
+            // the data file, and not its log.
+            try {
+                synchronized (dbFile) {
+                    pageMap.save();
+                    pageMap.closeLog();
+                }
+            }
+            catch (IOException e) {
+                logger.error("Couldn't save the page map of " + dbFile, e);
+                return false;
+            }
+
+            File logFile = CompressedPageMap.getLogFile(dataFile);
+            if (logFile.exists() && !logFile.delete())
+                return false;
+        }
+
+        if (!dataFile.renameTo(newDataFile)) {
+            // Rename failed.
+            return false;
+        }
+
+        if (pageMap != null) {
+            // The page map has to follow the data file.  If it can't, the
+            // data file is put back, so that it isn't left without its map.
+            File mapFile = CompressedPageMap.getMapFile(dataFile);
+            if (!mapFile.renameTo(CompressedPageMap.getMapFile(newDataFile))) {
+                if (!newDataFile.renameTo(dataFile)) {
+                    logger.error(String.format("Couldn't rename %s back " +
+                        "to %s after its page map couldn't be renamed",
+                        newDataFile, dataFile));
+                }
+                return false;
+            }
+
+            synchronized (pageMaps) {
+                pageMaps.remove(dataFile.getAbsolutePath());
+                pageMaps.put(newDataFile.getAbsolutePath(), pageMap);
+            }
         }
 
-        // Rename failed.
-        return false;
+        // Rename succeeded!
+        dbFile.setDataFile(newDataFile);
+        return true;
     }
 
 
@@ -194,15 +291,30 @@ public class FileManagerImpl implements FileManager {
         RandomAccessFile fileContents = new RandomAccessFile(f, "rw");
 
         int typeID = fileContents.readUnsignedByte();
-        int pageSize = DBFile.decodePageSize(fileContents.readUnsignedByte());
+        int encodedPageSize = fileContents.readUnsignedByte();
+        boolean compressed =
+            (encodedPageSize & CompressedPageMap.COMPRESSED_FLAG) != 0;
+        int pageSize = DBFile.decodePageSize(
+            encodedPageSize & ~CompressedPageMap.COMPRESSED_FLAG);
 
         DBFileType type = DBFileType.valueOf(typeID);
         if (type == null)
             throw new IOException("Unrecognized file type ID " + typeID);
 
+        CompressedPageMap pageMap = null;
+        if (compressed) {
+            synchronized (pageMaps) {
+                pageMap = pageMaps.get(f.getAbsolutePath());
+                if (pageMap == null) {
+                    pageMap = CompressedPageMap.load(f);
+                    pageMaps.put(f.getAbsolutePath(), pageMap);
+                }
+            }
+        }
+
         DBFile dbFile;
         try {
-            dbFile = new DBFile(f, type, pageSize, fileContents);
+            dbFile = new DBFile(f, type, pageSize, fileContents, pageMap);
         }
         catch (IllegalArgumentException iae) {
             throw new IOException("Invalid page size " + pageSize +
@@ -230,15 +342,21 @@ public class FileManagerImpl implements FileManager {
                 " from the specified DBFile page-size");
         }
 
+        if (dbFile.isCompressed()) {
+            synchronized (dbFile) {
+                loadCompressedPage(dbFile, pageNo, buffer, create);
+            }
+            return;
+        }
+
         // Update our file-IO performance counters
         updateFileIOPerfStats(dbFile, pageNo, /* read */ true, buffer.length);
 
         long pageStart = getPageStart(dbFile, pageNo);
 
         RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
         try {
-            fileContents.readFully(buffer);
+            readFully(fileContents.getChannel(), buffer, pageStart);
         }
         catch (EOFException e) {
             if (create) {
@@ -254,21 +372,21 @@ public class FileManagerImpl implements FileManager {
                 // stored back to the file...
                 long newLength = (1L + (long) pageNo) * (long) dbFile.getPageSize();
 
-                // This check is just for safety.  It would be highly irregular
-                // to get an EOF exception and then have the file actually be
-                // longer than we expect.  But, if it happens, we'll scream.
-                long oldLength = fileContents.length();
-                if (oldLength < newLength) {
-                    fileContents.setLength(newLength);
-                    logger.debug("Set file " + dbFile + " length to " + newLength);
-                }
-                else {
-                    String msg = "Expected DB file to be less than " +
-                        newLength + " bytes long, but it's " + oldLength +
-                        " bytes long!";
-
-                    logger.error(msg);
-                    throw new IOException(msg);
+                // Pages are read without any lock on the file, so another
+                // thread may have extended the file since the read failed.
+                // In that case the page is now in the file, and is read
+                // again.
+                synchronized (dbFile) {
+                    long oldLength = fileContents.length();
+                    if (oldLength < newLength) {
+                        fileContents.setLength(newLength);
+                        logger.debug("Set file " + dbFile + " length to " +
+                            newLength);
+                    }
+                    else {
+                        readFully(fileContents.getChannel(), buffer,
+                            pageStart);
+                    }
                 }
             }
             else {
@@ -300,24 +418,307 @@ public class FileManagerImpl implements FileManager {
                 " from the specified DBFile page-size");
         }
 
+        if (dbFile.isCompressed()) {
+            synchronized (dbFile) {
+                saveCompressedPage(dbFile, pageNo, buffer);
+            }
+            return;
+        }
+
         // Update our file-IO performance counters
         updateFileIOPerfStats(dbFile, pageNo, /* read */ false, buffer.length);
 
         long pageStart = getPageStart(dbFile, pageNo);
 
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (buf.hasRemaining())
+            channel.write(buf, pageStart + buf.position());
+    }
+
+
+    /**
+     * Reads a whole buffer from a file channel, starting at the specified
+     * position.  This doesn't use or change the file's seek position, so
+     * several threads can read from the same file at once.
+     *
+     * @throws EOFException if the file ends before the buffer is filled
+     */
+    private static void readFully(FileChannel channel, byte[] buffer,
+                                  long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException(String.format("Read %d of %d bytes " +
+                    "at position %d before the end of the file",
+                    buf.position(), buffer.length, position));
+            }
+        }
+    }
+
+
+    @Override
+    public void loadPages(DBFile dbFile, int[] pageNos, byte[][] buffers)
+        throws IOException {
+
+        checkBatch(dbFile, pageNos, buffers);
+
+        if (!useAsyncIO(dbFile, pageNos)) {
+            for (int i = 0; i < pageNos.length; i++)
+                loadPage(dbFile, pageNos[i], buffers[i]);
+
+            return;
+        }
+
+        int numPages = dbFile.getNumPages();
+        long[] positions = new long[pageNos.length];
+        for (int i = 0; i < pageNos.length; i++) {
+            if (pageNos[i] >= numPages) {
+                throw new EOFException(String.format(
+                    "Page %d is past the end of file %s", pageNos[i],
+                    dbFile.getDataFile().getName()));
+            }
+
+            updateFileIOPerfStats(dbFile, pageNos[i], /* read */ true,
+                buffers[i].length);
+            positions[i] = getPageStart(dbFile, pageNos[i]);
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_ASYNC_BATCHES);
+        asyncIO.readPages(dbFile.getDataFile(), positions, buffers);
+    }
+
+
+    @Override
+    public void savePages(DBFile dbFile, int[] pageNos, byte[][] buffers)
+        throws IOException {
+
+        checkBatch(dbFile, pageNos, buffers);
+
+        if (!useAsyncIO(dbFile, pageNos)) {
+            for (int i = 0; i < pageNos.length; i++)
+                savePage(dbFile, pageNos[i], buffers[i]);
+
+            return;
+        }
+
+        long[] positions = new long[pageNos.length];
+        for (int i = 0; i < pageNos.length; i++) {
+            updateFileIOPerfStats(dbFile, pageNos[i], /* read */ false,
+                buffers[i].length);
+            positions[i] = getPageStart(dbFile, pageNos[i]);
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_ASYNC_BATCHES);
+        asyncIO.writePages(dbFile.getDataFile(), positions, buffers);
+    }
+
+
+    private void checkBatch(DBFile dbFile, int[] pageNos, byte[][] buffers) {
+        if (pageNos.length != buffers.length) {
+            throw new IllegalArgumentException(
+                "pageNos and buffers must be the same length");
+        }
+
+        for (int i = 0; i < pageNos.length; i++) {
+            if (pageNos[i] < 0) {
+                throw new IllegalArgumentException("pageNo must be >= 0, got " +
+                    pageNos[i]);
+            }
+
+            if (buffers[i].length != dbFile.getPageSize()) {
+                throw new IllegalArgumentException("Buffer has a different " +
+                    "size from the specified DBFile page-size");
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if a batch of pages should be handed to the asynchronous
+     * IO engine.  Single pages aren't worth the overhead, and compressed
+     * files have to be accessed one page at a time since the location of
+     * each page depends on the size of the pages written before it.
+     */
+    private boolean useAsyncIO(DBFile dbFile, int[] pageNos) {
+        return asyncIO != null && pageNos.length > 1 && !dbFile.isCompressed();
+    }
+
+
+    /**
+     * Loads a page from a compressed database file, decompressing it into the
+     * specified buffer.  The <tt>create</tt> flag works the same as for
+     * uncompressed files.
+     */
+    private void loadCompressedPage(DBFile dbFile, int pageNo, byte[] buffer,
+                                    boolean create) throws IOException {
+
+        CompressedPageMap pageMap = dbFile.getPageMap();
+        if (pageNo >= pageMap.getNumPages()) {
+            if (!create) {
+                throw new EOFException(String.format(
+                    "Page %d is past the end of compressed file %s", pageNo,
+                    dbFile.getDataFile().getName()));
+            }
+
+            logger.debug(String.format(
+                "Requested page %d doesn't yet exist in file %s; creating.",
+                pageNo, dbFile.getDataFile().getName()));
+
+            pageMap.extendTo(pageNo);
+        }
+
+        long offset = pageMap.getOffset(pageNo);
+        if (offset == 0) {
+            // The page has never been written, so it's all zeros.
+            Arrays.fill(buffer, (byte) 0);
+            updateFileIOPerfStats(dbFile, pageNo, /* read */ true, 0);
+            return;
+        }
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        fileContents.seek(offset);
+        int length = fileContents.readInt();
+
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true,
+            CompressedPageMap.EXTENT_HEADER_SIZE + length);
+
+        if (length == 0) {
+            Arrays.fill(buffer, (byte) 0);
+        }
+        else if (length == buffer.length) {
+            // The page didn't compress, so it was stored as-is.
+            fileContents.readFully(buffer);
+        }
+        else if (length > 0 && length < buffer.length) {
+            byte[] compressed = new byte[length];
+            fileContents.readFully(compressed);
+
+            long start = System.nanoTime();
+            int size;
+            try {
+                size = PageCompressor.decompress(compressed, length, buffer);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException(String.format("Page %d of file %s " +
+                    "is corrupt", pageNo, dbFile.getDataFile().getName()), e);
+            }
+
+            PerformanceCounters.add(PerformanceCounters.STORAGE_DECOMPRESS_TIME,
+                System.nanoTime() - start);
+            PerformanceCounters.inc(
+                PerformanceCounters.STORAGE_PAGES_DECOMPRESSED);
+
+            if (size != buffer.length) {
+                throw new IOException(String.format("Page %d of file %s " +
+                    "decompressed to %d bytes; expected %d bytes.", pageNo,
+                    dbFile.getDataFile().getName(), size, buffer.length));
+            }
+        }
+        else {
+            throw new IOException(String.format("Page %d of file %s has an " +
+                "invalid stored length of %d bytes.", pageNo,
+                dbFile.getDataFile().getName(), length));
+        }
+    }
+
+
+    /**
+     * Compresses the specified buffer and saves it as a page of a compressed
+     * database file.  If the page doesn't compress then it is stored as-is.
+     */
+    private void saveCompressedPage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+
+        // Pages that are all zeros don't need to be stored at all, other than
+        // their length.
+        boolean allZeros = true;
+        for (byte b : buffer) {
+            if (b != 0) {
+                allZeros = false;
+                break;
+            }
+        }
+
+        byte[] data = buffer;
+        int length = 0;
+        if (!allZeros) {
+            byte[] compressed = new byte[buffer.length - 1];
+            length = PageCompressor.compress(buffer, buffer.length, compressed);
+            if (length < 0) {
+                length = buffer.length;
+            }
+            else {
+                data = compressed;
+            }
+        }
+
+        CompressedPageMap pageMap = dbFile.getPageMap();
+        long offset = pageMap.allocate(pageNo, length);
+
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false,
+            CompressedPageMap.EXTENT_HEADER_SIZE + length);
+
+        PerformanceCounters.add(
+            PerformanceCounters.STORAGE_UNCOMPRESSED_BYTES_WRITTEN,
+            buffer.length);
+        PerformanceCounters.add(
+            PerformanceCounters.STORAGE_COMPRESSED_BYTES_WRITTEN,
+            CompressedPageMap.EXTENT_HEADER_SIZE + length);
+
         RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
-        fileContents.write(buffer);
+        fileContents.seek(offset);
+        fileContents.writeInt(length);
+        fileContents.write(data, 0, length);
+
+        // If the page moved to a new extent, or the file grew, the page map
+        // logged the change; the whole map is only saved when the file is
+        // synced.
     }
 
 
     @Override
     public void syncDBFile(DBFile dbFile) throws IOException {
         logger.info("Synchronizing database file to disk:  " + dbFile);
+        if (dbFile.isCompressed()) {
+            synchronized (dbFile) {
+                dbFile.getPageMap().save();
+            }
+        }
+
         dbFile.getFileContents().getFD().sync();
     }
 
 
+    @Override
+    public void truncateDBFile(DBFile dbFile, int numPages) throws IOException {
+        if (numPages < 0) {
+            throw new IllegalArgumentException(
+                "numPages must be nonnegative; got " + numPages);
+        }
+
+        logger.info(String.format("Truncating database file %s to %d pages.",
+            dbFile, numPages));
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        if (dbFile.isCompressed()) {
+            // Compressed pages aren't stored in page order, so only the
+            // extents past the last one still in use can be cut off.
+            synchronized (dbFile) {
+                CompressedPageMap pageMap = dbFile.getPageMap();
+                pageMap.truncate(numPages);
+                pageMap.save();
+
+                if (fileContents.length() > pageMap.getEndOffset())
+                    fileContents.setLength(pageMap.getEndOffset());
+            }
+        }
+        else {
+            fileContents.setLength((long) numPages * dbFile.getPageSize());
+        }
+    }
+
+
     @Override
     public void closeDBFile(DBFile dbFile) throws IOException {
         // Sync the file before closing, so that we can have some confidence
@@ -326,6 +727,8 @@ public class FileManagerImpl implements FileManager {
 
         logger.info("Closing database file:  " + dbFile);
         dbFile.getFileContents().close();
+        if (dbFile.isCompressed())
+            dbFile.getPageMap().closeLog();
     }
 
 
@@ -341,6 +744,22 @@ public class FileManagerImpl implements FileManager {
     public void deleteDBFile(File f) throws IOException {
         if (!f.delete())
             throw new IOException("Couldn't delete file \"" + f.getName() + "\".");
+
+        // If the file was compressed, its page map and log have to go too.
+        CompressedPageMap pageMap;
+        synchronized (pageMaps) {
+            pageMap = pageMaps.remove(f.getAbsolutePath());
+        }
+        if (pageMap != null)
+            pageMap.closeLog();
+
+        for (File mapFile : new File[] { CompressedPageMap.getMapFile(f),
+                                         CompressedPageMap.getLogFile(f) }) {
+            if (mapFile.exists() && !mapFile.delete()) {
+                throw new IOException("Couldn't delete file \"" +
+                    mapFile.getName() + "\".");
+            }
+        }
     }
 
 
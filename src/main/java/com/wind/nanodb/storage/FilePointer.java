@@ -1,6 +1,9 @@
 package com.wind.nanodb.storage;
 
 
+import java.io.Serializable;
+
+
 /**
  * This class represents a pointer to a location within a database file.
  * Because database files are broken into pages, the pointer contains the
@@ -15,7 +18,8 @@ package com.wind.nanodb.storage;
  *       files are limited to a maximum page-size of 64 Kbytes.)</li>
  * </ul>
  */
-public class FilePointer implements Comparable<FilePointer>, Cloneable {
+public class FilePointer
+    implements Comparable<FilePointer>, Cloneable, Serializable {
 
     public static final FilePointer ZERO_FILE_POINTER = new FilePointer(0, 0);
 
@@ -16,6 +16,9 @@ import com.wind.nanodb.relations.ForeignKeyColumnRefs;
 import com.wind.nanodb.relations.KeyColumnRefs;
 import com.wind.nanodb.relations.TableInfo;
 import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
+import com.wind.nanodb.storage.heapfile.ZoneMap;
+import com.wind.nanodb.storage.paxfile.PaxTupleFile;
 
 
 /**
@@ -55,6 +58,11 @@ public class IndexedTableManager implements TableManager {
         ArrayList<String> tableNames = new ArrayList<String>();
         FileManager fileManager = storageManager.getFileManager();
         for(File dbFile : fileManager.getDBFiles()) {
+            // The base directory also holds index files and other bookkeeping
+            // files, so only report the table files.
+            if (!dbFile.getName().endsWith(".tbl"))
+                continue;
+
             // Note that in getTableFileName all we do is add a .tbl at the end,
             // so that's all we have to account for.
             tableNames.add(dbFile.getName().replaceAll("\\.tbl$", ""));
@@ -89,10 +97,37 @@ public class IndexedTableManager implements TableManager {
             HashSet<String> names = new HashSet<String>(properties.getNames());
             names.remove("pagesize");
             names.remove("storage");
+
+            // Buffer-pool settings are stored in the table's schema, so that
+            // they are applied every time the table is opened.
+            for (String name : new String[] { BufferPool.PROP_BUFFER_POOL,
+                BufferPool.PROP_MIN_PAGES, BufferPool.PROP_MAX_PAGES,
+                PageCompressor.PROP_COMPRESSION, ZoneMap.PROP_ZONE_MAP,
+                PaxTupleFile.PROP_DICTIONARY, BTreeTupleFile.PROP_FILL_FACTOR }) {
+                if (names.remove(name))
+                    schema.setProperty(name, properties.get(name).toString());
+            }
+
             if (!names.isEmpty()) {
                 throw new IllegalArgumentException("Unrecognized property " +
                     "name(s) specified:  " + names);
             }
+
+            if (schema.getProperty(PaxTupleFile.PROP_DICTIONARY) != null &&
+                !"pax".equals(storageType)) {
+                throw new IllegalArgumentException("Dictionary encoding " +
+                    "is only supported with storage = 'pax'");
+            }
+
+            String fillFactor =
+                schema.getProperty(BTreeTupleFile.PROP_FILL_FACTOR);
+            if (fillFactor != null) {
+                if (!"btree".equals(storageType)) {
+                    throw new IllegalArgumentException("A fill factor " +
+                        "is only supported with storage = 'btree'");
+                }
+                BTreeTupleFile.parseFillFactor(fillFactor);
+            }
         }
 
         String tblFileName = getTableFileName(tableName);
@@ -104,6 +139,9 @@ public class IndexedTableManager implements TableManager {
         else if ("btree".equals(storageType)) {
             type = DBFileType.BTREE_TUPLE_FILE;
         }
+        else if ("pax".equals(storageType)) {
+            type = DBFileType.PAX_TUPLE_FILE;
+        }
         else {
             throw new IllegalArgumentException("Unrecognized table file " +
                 "type:  " + storageType);
@@ -112,13 +150,17 @@ public class IndexedTableManager implements TableManager {
 
         // First, create a new DBFile that the tuple file will go into.
         FileManager fileManager = storageManager.getFileManager();
-        DBFile dbFile = fileManager.createDBFile(tblFileName, type, pageSize);
+        boolean compressed = PageCompressor.isCompressionEnabled(
+            schema.getProperty(PageCompressor.PROP_COMPRESSION));
+        DBFile dbFile = fileManager.createDBFile(tblFileName, type, pageSize,
+            compressed);
         logger.debug("Created new DBFile for table " + tableName +
                      " at path " + dbFile.getDataFile());
 
         // Now, initialize it to be a tuple file with the specified type and
         // schema.
         TupleFile tupleFile = tupleFileManager.createTupleFile(dbFile, schema);
+        storageManager.assignBufferPool(tupleFile);
 
         // Cache this table since it's now considered "open".
         TableInfo tableInfo = new TableInfo(tableName, tupleFile);
@@ -171,6 +213,17 @@ public class IndexedTableManager implements TableManager {
     }
 
 
+    // Inherit interface docs.
+    @Override
+    public void optimizeTable(TableInfo tableInfo, TupleMoveListener listener)
+        throws IOException {
+        // Optimize the table's tuple-file.  The index entries of the tuples
+        // that are moved are changed to refer to their new locations by the
+        // listener, through the IndexUpdater's afterRowMoved() handler.
+        tableInfo.getTupleFile().optimize(listener);
+    }
+
+
     // Inherit interface docs.
     @Override
     public void closeTable(TableInfo tableInfo) throws IOException {
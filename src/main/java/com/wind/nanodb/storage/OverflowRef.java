@@ -0,0 +1,158 @@
+package com.wind.nanodb.storage;
+
+
+/**
+ * <p>
+ * A reference to a <tt>VARCHAR</tt> value that is stored out-of-line, in a
+ * chain of overflow pages, rather than in its tuple.  Storing large values
+ * this way keeps tuples small, so that rows with large values still fit in a
+ * page, and so that scans that don't read those columns don't have to read
+ * the values either.
+ * </p>
+ * <p>
+ * In a tuple, the reference takes the place of the value.  A <tt>VARCHAR</tt>
+ * value normally starts with its two-byte length; for a reference, the
+ * {@link #EXTERNAL_FLAG} bit of that length is set, and it is followed by:
+ * </p>
+ * <ul>
+ *   <li>The length of the value in bytes (signed int).</li>
+ *   <li>The number of bytes the value takes in the overflow pages, which is
+ *       smaller if the value is compressed (signed int).</li>
+ *   <li>The number of the first overflow page (signed int).</li>
+ * </ul>
+ * <p>
+ * Values that are stored inline are never long enough for their length to
+ * have the {@link #EXTERNAL_FLAG} bit set.
+ * </p>
+ */
+public class OverflowRef {
+
+    /** Set in the length of a <tt>VARCHAR</tt> value that is out-of-line. */
+    public static final int EXTERNAL_FLAG = 0x8000;
+
+
+    /** Set in the length if the out-of-line value is compressed. */
+    public static final int COMPRESSED_FLAG = 0x4000;
+
+
+    /** The number of bytes a reference takes in a tuple. */
+    public static final int STORAGE_SIZE = 14;
+
+
+    /** The length of the value in bytes. */
+    private int length;
+
+
+    /** The number of bytes the value takes in its overflow pages. */
+    private int storedLength;
+
+
+    /** The number of the first page in the value's chain. */
+    private int firstPageNo;
+
+
+    /** True if the value is compressed in its overflow pages. */
+    private boolean compressed;
+
+
+    public OverflowRef(int length, int storedLength, int firstPageNo,
+                       boolean compressed) {
+        if (length < 0 || storedLength < 0) {
+            throw new IllegalArgumentException(String.format(
+                "lengths must be nonnegative; got %d and %d", length,
+                storedLength));
+        }
+
+        if (firstPageNo <= 0) {
+            throw new IllegalArgumentException(
+                "firstPageNo must be positive; got " + firstPageNo);
+        }
+
+        this.length = length;
+        this.storedLength = storedLength;
+        this.firstPageNo = firstPageNo;
+        this.compressed = compressed;
+    }
+
+
+    /**
+     * Returns true if the <tt>VARCHAR</tt> value at the specified offset is a
+     * reference to an out-of-line value.
+     *
+     * @param dbPage the page holding the value
+     * @param offset the offset of the value in the page
+     *
+     * @return true if the value is stored out-of-line
+     */
+    public static boolean isOverflowRef(DBPage dbPage, int offset) {
+        return (dbPage.readUnsignedShort(offset) & EXTERNAL_FLAG) != 0;
+    }
+
+
+    /**
+     * Reads the reference stored at the specified offset.
+     *
+     * @param dbPage the page holding the reference
+     * @param offset the offset of the reference in the page
+     *
+     * @return the reference
+     */
+    public static OverflowRef read(DBPage dbPage, int offset) {
+        int flags = dbPage.readUnsignedShort(offset);
+        if ((flags & EXTERNAL_FLAG) == 0) {
+            throw new IllegalArgumentException(
+                "Value at offset " + offset + " is not an overflow reference");
+        }
+
+        return new OverflowRef(dbPage.readInt(offset + 2),
+            dbPage.readInt(offset + 6), dbPage.readInt(offset + 10),
+            (flags & COMPRESSED_FLAG) != 0);
+    }
+
+
+    /**
+     * Writes this reference at the specified offset.
+     *
+     * @param dbPage the page to write the reference into
+     * @param offset the offset to write the reference at
+     *
+     * @return the number of bytes written
+     */
+    public int write(DBPage dbPage, int offset) {
+        dbPage.writeShort(offset,
+            EXTERNAL_FLAG | (compressed ? COMPRESSED_FLAG : 0));
+        dbPage.writeInt(offset + 2, length);
+        dbPage.writeInt(offset + 6, storedLength);
+        dbPage.writeInt(offset + 10, firstPageNo);
+
+        return STORAGE_SIZE;
+    }
+
+
+    public int getLength() {
+        return length;
+    }
+
+
+    public int getStoredLength() {
+        return storedLength;
+    }
+
+
+    public int getFirstPageNo() {
+        return firstPageNo;
+    }
+
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("OverflowRef[length=%d, stored=%d%s, page=%d]",
+            length, storedLength, (compressed ? " compressed" : ""),
+            firstPageNo);
+    }
+}
@@ -0,0 +1,443 @@
+package com.wind.nanodb.storage;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * This class allows the contents of the Buffer Manager's page cache to
+ * survive a server restart.  Periodically, and when the server is shut down,
+ * the identities of all cached pages (the filename and page number of each
+ * page, but not the page data) are written to a small file in the base
+ * directory.  When the server starts up again, a background thread reads
+ * this list and loads the pages back into the cache, so that the first
+ * queries after a restart don't have to pay for all of the disk IOs.
+ * </p>
+ * <p>
+ * Only the hottest pages that fit into the cache are loaded, and they are
+ * loaded in file/page order so that the disk sees mostly sequential reads.
+ * The warm-up thread never evicts pages to make room; it simply stops when
+ * the cache is full, since any pages loaded by actual queries in the
+ * meantime are more valuable than the ones it is reloading.
+ * </p>
+ * <p>
+ * Warm-up is off by default, and is turned on with the
+ * <tt>nanodb.pagecache.warmup</tt> property.
+ * </p>
+ *
+ * @design The Buffer Manager synchronizes the loading of pages and the
+ *         copying of its page list itself, so the loader and the periodic
+ *         save can run alongside client threads.  The loader only holds the
+ *         Buffer Manager's monitor while it opens each file, since opening
+ *         a file that isn't open yet and registering it must happen
+ *         together.
+ */
+public class PageCacheWarmer {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PageCacheWarmer.class);
+
+
+    /**
+     * The system property that can be used to enable or disable saving and
+     * reloading the page cache's contents.
+     */
+    public static final String PROP_PAGECACHE_WARMUP = "nanodb.pagecache.warmup";
+
+
+    /**
+     * By default, the page cache is not saved or warmed up, since the loader
+     * thread runs alongside client threads.
+     */
+    public static final boolean DEFAULT_PAGECACHE_WARMUP = false;
+
+
+    /**
+     * The system property that can be used to specify how often, in seconds,
+     * the list of cached pages is saved while the server is running.  A value
+     * of 0 means the list is only saved at shutdown.
+     */
+    public static final String PROP_PAGECACHE_WARMUP_INTERVAL =
+        "nanodb.pagecache.warmup.interval";
+
+
+    /** By default, the list of cached pages is saved every 5 minutes. */
+    public static final int DEFAULT_PAGECACHE_WARMUP_INTERVAL = 300;
+
+
+    /** The name of the file in the base directory that holds the page list. */
+    public static final String WARMUP_FILENAME = "pagecache.warmup";
+
+
+    /** A value stored at the start of the page-list file to identify it. */
+    private static final int WARMUP_FILE_MAGIC = 0x4e445057;
+
+
+    /** The largest number of consecutive pages loaded as one batch. */
+    private static final int MAX_WARMUP_RUN_LENGTH = 32;
+
+
+    /**
+     * This helper class records the identity of a single cached page.  The
+     * filename is relative to the database's base directory.
+     */
+    static class PageEntry implements Comparable<PageEntry> {
+        public String filename;
+
+        public int pageNo;
+
+        public PageEntry(String filename, int pageNo) {
+            if (filename == null)
+                throw new IllegalArgumentException("filename cannot be null");
+
+            this.filename = filename;
+            this.pageNo = pageNo;
+        }
+
+        /** Page entries are ordered by filename, then by page number. */
+        @Override
+        public int compareTo(PageEntry other) {
+            int result = filename.compareTo(other.filename);
+            if (result == 0)
+                result = Integer.compare(pageNo, other.pageNo);
+
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s,%d]", filename, pageNo);
+        }
+    }
+
+
+    /**
+     * Returns true if the page cache should be saved and reloaded across
+     * restarts, based on the <tt>nanodb.pagecache.warmup</tt> property.
+     *
+     * @return true if page-cache warm-up is enabled
+     */
+    public static boolean isEnabled() {
+        String str = System.getProperty(PROP_PAGECACHE_WARMUP);
+        if (str == null)
+            return DEFAULT_PAGECACHE_WARMUP;
+
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /**
+     * Returns the interval in seconds at which the page list should be saved
+     * while the server is running, based on the
+     * <tt>nanodb.pagecache.warmup.interval</tt> property.
+     *
+     * @return the save interval in seconds, or 0 if the page list should only
+     *         be saved at shutdown
+     */
+    private static int getSaveInterval() {
+        int interval = DEFAULT_PAGECACHE_WARMUP_INTERVAL;
+
+        String str = System.getProperty(PROP_PAGECACHE_WARMUP_INTERVAL);
+        if (str != null) {
+            try {
+                interval = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.warn("Current value of " + PROP_PAGECACHE_WARMUP_INTERVAL +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (interval < 0)
+                interval = 0;
+        }
+
+        return interval;
+    }
+
+
+    /** The storage manager used to open files and load pages. */
+    private StorageManager storageManager;
+
+
+    /** The buffer manager whose contents are saved and reloaded. */
+    private BufferManager bufferManager;
+
+
+    /** The file that the page list is saved to. */
+    private File warmupFile;
+
+
+    /** The timer used to periodically save the page list, if any. */
+    private Timer saveTimer;
+
+
+    /** The background thread that reloads the saved pages, if any. */
+    private Thread loaderThread;
+
+
+    /** Set to true when the loader thread should stop what it's doing. */
+    private volatile boolean stopLoading;
+
+
+    public PageCacheWarmer(StorageManager storageManager) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+        this.bufferManager = storageManager.getBufferManager();
+        this.warmupFile = new File(storageManager.getBaseDir(), WARMUP_FILENAME);
+    }
+
+
+    /**
+     * Starts the background thread that reloads any previously saved pages,
+     * and the timer that periodically saves the list of cached pages.
+     */
+    public void start() {
+        List<PageEntry> entries = null;
+        if (warmupFile.exists()) {
+            try {
+                entries = readPageList();
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't read saved page-cache contents from " +
+                    warmupFile + "; skipping warm-up.", e);
+            }
+        }
+
+        if (entries != null && !entries.isEmpty()) {
+            final List<PageEntry> toLoad = entries;
+            loaderThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loadPages(toLoad);
+                }
+            }, "PageCacheWarmer");
+
+            loaderThread.setDaemon(true);
+            loaderThread.start();
+        }
+
+        int interval = getSaveInterval();
+        if (interval > 0) {
+            saveTimer = new Timer("PageCacheWarmer-save", /* isDaemon */ true);
+            saveTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    savePageList();
+                }
+            }, interval * 1000L, interval * 1000L);
+        }
+    }
+
+
+    /**
+     * Stops the loader thread and the periodic save, then saves the current
+     * contents of the page cache one last time.  This must be called before
+     * the Buffer Manager is emptied during shutdown.
+     */
+    public void shutdown() {
+        if (saveTimer != null) {
+            saveTimer.cancel();
+            saveTimer = null;
+        }
+
+        if (loaderThread != null) {
+            stopLoading = true;
+            try {
+                loaderThread.join();
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for page-cache " +
+                    "warm-up thread to stop.");
+            }
+            loaderThread = null;
+        }
+
+        savePageList();
+    }
+
+
+    /**
+     * Writes the identities of all pages currently in the page cache to the
+     * page-list file.  The list is written to a temporary file first and then
+     * renamed into place, so that a crash in the middle of saving won't leave
+     * a partial list behind.
+     */
+    public void savePageList() {
+        List<PageEntry> entries = bufferManager.getCachedPageEntries();
+
+        File tmpFile = new File(warmupFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            out.writeInt(WARMUP_FILE_MAGIC);
+            out.writeInt(entries.size());
+            for (PageEntry entry : entries) {
+                out.writeUTF(entry.filename);
+                out.writeInt(entry.pageNo);
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Couldn't save page-cache contents to " + tmpFile, e);
+            return;
+        }
+
+        if (warmupFile.exists() && !warmupFile.delete()) {
+            logger.warn("Couldn't replace old page-cache contents file " +
+                warmupFile);
+            return;
+        }
+
+        if (!tmpFile.renameTo(warmupFile)) {
+            logger.warn("Couldn't rename " + tmpFile + " to " + warmupFile);
+            return;
+        }
+
+        logger.debug(String.format("Saved %d page-cache entries to %s.",
+            entries.size(), warmupFile));
+    }
+
+
+    /**
+     * Reads the list of pages from the page-list file, in the order they
+     * were written.
+     *
+     * @return the list of saved pages
+     *
+     * @throws IOException if the file cannot be read, or if it isn't a
+     *         page-list file
+     */
+    private List<PageEntry> readPageList() throws IOException {
+        ArrayList<PageEntry> entries = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(warmupFile)))) {
+
+            if (in.readInt() != WARMUP_FILE_MAGIC)
+                throw new IOException(warmupFile + " is not a page-list file");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String filename = in.readUTF();
+                int pageNo = in.readInt();
+                entries.add(new PageEntry(filename, pageNo));
+            }
+        }
+        catch (EOFException e) {
+            // A truncated list is still useful; use whatever we got.
+            logger.warn("Page-list file " + warmupFile + " is truncated.");
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Loads the specified pages into the page cache.  The list is in cache
+     * replacement order, so the hottest pages are at the end of the list.
+     * Since only some of the pages may fit into the cache, we keep the
+     * hottest pages that fit, and then load those in file/page order.
+     *
+     * @param entries the pages to load, in cache replacement order
+     */
+    private void loadPages(List<PageEntry> entries) {
+        // This is just an estimate, since files may have different page
+        // sizes; the loader stops anyway once the cache is full.
+        long maxPages = bufferManager.getMaxCacheSize() /
+            StorageManager.getCurrentPageSize();
+
+        List<PageEntry> toLoad = entries;
+        if (toLoad.size() > maxPages) {
+            toLoad = toLoad.subList((int) (toLoad.size() - maxPages),
+                toLoad.size());
+        }
+
+        toLoad = new ArrayList<>(toLoad);
+        Collections.sort(toLoad);
+
+        logger.info(String.format("Warming up page cache with %d pages.",
+            toLoad.size()));
+
+        int loaded = 0;
+        String currentFilename = null;
+        DBFile dbFile = null;
+        int numPages = 0;
+
+        int i = 0;
+        while (i < toLoad.size() && !stopLoading) {
+            PageEntry entry = toLoad.get(i);
+
+            // Pages are loaded in runs of consecutive pages from the same
+            // file, so that each run can be read as one batch.
+            int runLength = 1;
+            while (i + runLength < toLoad.size() &&
+                   runLength < MAX_WARMUP_RUN_LENGTH) {
+                PageEntry next = toLoad.get(i + runLength);
+                if (!next.filename.equals(entry.filename) ||
+                    next.pageNo != entry.pageNo + runLength) {
+                    break;
+                }
+                runLength++;
+            }
+            i += runLength;
+
+            try {
+                if (!entry.filename.equals(currentFilename)) {
+                    currentFilename = entry.filename;
+                    synchronized (bufferManager) {
+                        dbFile = storageManager.openDBFile(currentFilename);
+                    }
+                    numPages = dbFile.getNumPages();
+                }
+
+                if (dbFile == null || entry.pageNo >= numPages)
+                    continue;
+
+                runLength = Math.min(runLength, numPages - entry.pageNo);
+
+                if (!bufferManager.hasFreeSpace(
+                    runLength * dbFile.getPageSize())) {
+                    logger.debug("Page cache is full; stopping warm-up.");
+                    break;
+                }
+
+                storageManager.prefetchDBPages(dbFile, entry.pageNo,
+                    runLength);
+
+                loaded += runLength;
+            }
+            catch (FileNotFoundException e) {
+                // The file was probably dropped since the list was saved.
+                logger.debug("Skipping warm-up of missing file " +
+                    entry.filename);
+                dbFile = null;
+            }
+            catch (IOException | RuntimeException e) {
+                logger.warn("Couldn't load pages starting at " + entry +
+                    " during warm-up.", e);
+                dbFile = null;
+            }
+        }
+
+        logger.info(String.format("Page-cache warm-up loaded %d pages.",
+            loaded));
+    }
+}
@@ -0,0 +1,291 @@
+package com.wind.nanodb.storage;
+
+
+import java.util.Arrays;
+
+
+/**
+ * <p>
+ * This class implements the fast, byte-oriented LZ77 compressor used for
+ * compressed database files.  The encoded format is the same as the LZ4
+ * block format:  a sequence of tokens, each specifying a run of literal
+ * bytes followed by a back-reference of at least {@link #MIN_MATCH} bytes
+ * into the data already decoded.  The last token only has literals.  This
+ * format doesn't compress as well as DEFLATE, but it decompresses several
+ * times faster, which matters more when the compressed pages are read on
+ * every buffer-cache miss.
+ * </p>
+ * <p>
+ * Each token is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>Token byte:  high 4 bits are the literal length, low 4 bits are the
+ *       match length minus {@link #MIN_MATCH}.  A value of 15 in either
+ *       field means additional length bytes follow.</li>
+ *   <li>Additional literal-length bytes, each added to the length; a byte
+ *       value of 255 means another byte follows.</li>
+ *   <li>The literal bytes themselves.</li>
+ *   <li>Match offset (unsigned short, little-endian as in LZ4).  Omitted
+ *       in the last token.</li>
+ *   <li>Additional match-length bytes, encoded like the literal length.</li>
+ * </ul>
+ */
+public class PageCompressor {
+
+    /**
+     * The name of the table property that specifies whether the table's data
+     * file (and the files of its indexes) should be compressed.
+     */
+    public static final String PROP_COMPRESSION = "compression";
+
+
+    /** The property value specifying that a file isn't compressed. */
+    public static final String COMPRESSION_NONE = "none";
+
+
+    /** The property value specifying that a file uses LZ compression. */
+    public static final String COMPRESSION_LZ = "lz";
+
+
+    /** The shortest back-reference the compressor will encode. */
+    private static final int MIN_MATCH = 4;
+
+
+    /**
+     * The compressor doesn't look for matches in this many bytes at the end
+     * of the input, so that reading four bytes ahead never runs off the end.
+     */
+    private static final int LAST_LITERALS = 5;
+
+
+    /** The largest back-reference offset that can be encoded. */
+    private static final int MAX_OFFSET = 65535;
+
+
+    /** The base-2 logarithm of the number of hash-table entries. */
+    private static final int HASH_LOG = 12;
+
+
+    /**
+     * Returns true if the specified value of the {@link #PROP_COMPRESSION}
+     * property turns compression on.
+     *
+     * @param value the property value, or {@code null} if it isn't set
+     *
+     * @return true if files should be compressed
+     *
+     * @throws IllegalArgumentException if the value isn't recognized
+     */
+    public static boolean isCompressionEnabled(String value) {
+        if (value == null || COMPRESSION_NONE.equalsIgnoreCase(value))
+            return false;
+
+        if (COMPRESSION_LZ.equalsIgnoreCase(value))
+            return true;
+
+        throw new IllegalArgumentException(
+            "Unrecognized compression type:  " + value);
+    }
+
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8) |
+               ((buf[pos + 2] & 0xFF) << 16) | ((buf[pos + 3] & 0xFF) << 24);
+    }
+
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+
+    /**
+     * Writes an extended length value, after the 15 already stored in the
+     * token.
+     *
+     * @return the new output position, or -1 if the output buffer is full
+     */
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            if (op >= dst.length)
+                return -1;
+
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+
+        if (op >= dst.length)
+            return -1;
+
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+
+    /**
+     * Writes one token, its literals, and its match (if any).
+     *
+     * @return the new output position, or -1 if the output buffer is full
+     */
+    private static int writeSequence(byte[] src, int litStart, int litLength,
+        int offset, int matchLength, byte[] dst, int op) {
+
+        if (op >= dst.length)
+            return -1;
+
+        int tokenPos = op++;
+        int token = Math.min(litLength, 15) << 4;
+
+        if (litLength >= 15) {
+            op = writeLength(litLength - 15, dst, op);
+            if (op < 0)
+                return -1;
+        }
+
+        if (op + litLength > dst.length)
+            return -1;
+
+        System.arraycopy(src, litStart, dst, op, litLength);
+        op += litLength;
+
+        if (matchLength > 0) {
+            if (op + 2 > dst.length)
+                return -1;
+
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+
+            int len = matchLength - MIN_MATCH;
+            token |= Math.min(len, 15);
+            if (len >= 15) {
+                op = writeLength(len - 15, dst, op);
+                if (op < 0)
+                    return -1;
+            }
+        }
+
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+
+    /**
+     * Compresses the first <tt>srcLength</tt> bytes of <tt>src</tt> into
+     * <tt>dst</tt>.
+     *
+     * @param src the data to compress
+     * @param srcLength the number of bytes of data to compress
+     * @param dst the buffer to store the compressed data into
+     *
+     * @return the size of the compressed data, or -1 if it wouldn't fit into
+     *         <tt>dst</tt>
+     */
+    public static int compress(byte[] src, int srcLength, byte[] dst) {
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+        int matchLimit = srcLength - LAST_LITERALS - MIN_MATCH;
+
+        while (ip <= matchLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            // Found a match; see how far it goes.
+            int matchLength = MIN_MATCH;
+            int maxLength = srcLength - LAST_LITERALS - ip;
+            while (matchLength < maxLength &&
+                   src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength,
+                dst, op);
+            if (op < 0)
+                return -1;
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        // The last token only has the remaining literals.
+        return writeSequence(src, anchor, srcLength - anchor, 0, 0, dst, op);
+    }
+
+
+    /**
+     * Decompresses data produced by {@link #compress}.
+     *
+     * @param src the compressed data
+     * @param srcLength the number of bytes of compressed data
+     * @param dst the buffer to store the decompressed data into
+     *
+     * @return the number of bytes of decompressed data
+     *
+     * @throws IllegalArgumentException if the compressed data is corrupt, or
+     *         if it doesn't fit into <tt>dst</tt>
+     */
+    public static int decompress(byte[] src, int srcLength, byte[] dst) {
+        int ip = 0;
+        int op = 0;
+
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+
+                int litLength = token >>> 4;
+                if (litLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        litLength += b;
+                    }
+                    while (b == 255);
+                }
+
+                System.arraycopy(src, ip, dst, op, litLength);
+                ip += litLength;
+                op += litLength;
+
+                if (ip >= srcLength)
+                    break;
+
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (offset == 0 || offset > op)
+                    throw new IllegalArgumentException("Invalid match offset " + offset);
+
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    }
+                    while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                // The match may overlap the bytes it produces, so copy one
+                // byte at a time.
+                int ref = op - offset;
+                for (int i = 0; i < matchLength; i++)
+                    dst[op++] = dst[ref++];
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Compressed data is corrupt", e);
+        }
+
+        return op;
+    }
+}
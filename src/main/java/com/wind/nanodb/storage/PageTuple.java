@@ -1,6 +1,11 @@
 package com.wind.nanodb.storage;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import com.wind.nanodb.expressions.TypeConverter;
 
 import com.wind.nanodb.relations.ColumnInfo;
@@ -49,6 +54,15 @@ public abstract class PageTuple implements Tuple {
     public static final int NULL_OFFSET = 0;
 
 
+    /**
+     * The cached result of {@link #getFixedPrefixOffsets} for each schema
+     * that it has been called on.  Schemas are compared by identity, and an
+     * entry goes away when nothing else refers to its schema.
+     */
+    private static final Map<Schema, int[]> fixedPrefixOffsets =
+        Collections.synchronizedMap(new WeakHashMap<Schema, int[]>());
+
+
     /**
      * The pin-count of this tuple.  Note that this tuple's pin-count will
      * likely be different from the backing {@code DBPage}'s pin-count,
@@ -69,25 +83,43 @@ public abstract class PageTuple implements Tuple {
     private Schema schema;
 
 
+    /**
+     * The offsets of the columns in the schema's fixed-size prefix, or
+     * {@code null} if they haven't been needed yet.
+     *
+     * @see #getFixedPrefixOffsets
+     */
+    private int[] prefixOffsets;
+
+
     /**
      * This array contains the cached offsets of each value in this tuple.
-     * The array is populated when a tuple is constructed.  For columns with
-     * a value of <tt>NULL</tt>, the offset will be 0.
+     * For columns with a value of <tt>NULL</tt>, the offset will be 0.  The
+     * offsets are resolved lazily, from the first column up to the highest
+     * column that has been asked for; only the first {@link #numResolved}
+     * entries are valid.  The array itself isn't allocated until a column
+     * past the schema's fixed-size prefix is needed.
      *
      * @see #NULL_OFFSET
+     * @see #getFixedPrefixOffsets
      */
     private int[] valueOffsets;
 
 
+    /** The number of leading entries of {@link #valueOffsets} that are valid. */
+    private int numResolved;
+
+
     /**
-     * The offset in the page where the tuple's data ends.  Note that this value
-     * is <u>one byte past</u> the end of the tuple's data; as with most Java
-     * sequences, the starting offset is inclusive and the ending offset is
-     * exclusive.  Also, as a consequence, this value could be past the end of
-     * the byte-array that the tuple resides in, if the tuple is at the end of
-     * the byte-array.
+     * The offset in the page just past the last resolved column's value.
+     * Once every column has been resolved, this is where the tuple's data
+     * ends.  Note that this value is <u>one byte past</u> the end of the
+     * data; as with most Java sequences, the starting offset is inclusive and
+     * the ending offset is exclusive.  Also, as a consequence, this value
+     * could be past the end of the byte-array that the tuple resides in, if
+     * the tuple is at the end of the byte-array.
      */
-    private int endOffset;
+    private int resolvedEndOffset;
 
 
     /**
@@ -115,9 +147,9 @@ public abstract class PageTuple implements Tuple {
         // Pin ourselves immediately so that we don't lose the DBPage.
         pin();
 
-        valueOffsets = new int[schema.numColumns()];
-
-        computeValueOffsets();
+        // Column offsets are found on demand, so that a scan that only
+        // looks at a few columns doesn't pay for decoding the rest.
+        resetValueOffsets();
     }
 
 
@@ -192,8 +224,40 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Repositions this tuple object onto another tuple, so that scans can
+     * reuse one tuple object instead of allocating one per row.  If the new
+     * tuple is on a different page, this tuple's pins move from the old page
+     * to the new one; either way, the tuple ends up pinned at least once.
+     *
+     * @param dbPage     the database page that holds the new tuple
+     * @param pageOffset the offset of the new tuple's data in the page
+     */
+    protected void moveTo(DBPage dbPage, int pageOffset) {
+        if (dbPage == null)
+            throw new NullPointerException("dbPage must be specified");
+
+        if (dbPage != this.dbPage) {
+            while (pinCount > 0)
+                unpin();
+
+            this.dbPage = dbPage;
+        }
+
+        if (pinCount == 0)
+            pin();
+
+        this.pageOffset = pageOffset;
+        resetValueOffsets();
+    }
+
+
     public int getEndOffset() {
-        return endOffset;
+        int numCols = schema.numColumns();
+        if (numResolved < numCols)
+            resolveValueOffsets(numCols - 1);
+
+        return resolvedEndOffset;
     }
 
 
@@ -203,7 +267,7 @@ public abstract class PageTuple implements Tuple {
      * @return the storage-size of the tuple in bytes.
      */
     public int getSize() {
-        return endOffset - pageOffset;
+        return getEndOffset() - pageOffset;
     }
 
 
@@ -240,10 +304,9 @@ public abstract class PageTuple implements Tuple {
 
     /**
      * This is a helper function to find out the current value of a column's
-     * <tt>NULL</tt> flag.  It is not intended to be used to determine if a
-     * column's value is <tt>NULL</tt> since the method does a lot of work;
-     * instead, use the {@link #isNullValue} method which relies on cached
-     * column information.
+     * <tt>NULL</tt> flag.  Generally the {@link #isNullValue} method should be
+     * used instead, since it uses cached column information when it is
+     * available.
      *
      * @param colIndex the index of the column to retrieve the null-flag for
      *
@@ -309,17 +372,88 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Discards any cached column offsets, so that they are recomputed the
+     * next time they are needed.  This must be called whenever the tuple's
+     * layout changes.
+     */
+    private void resetValueOffsets() {
+        numResolved = 0;
+        resolvedEndOffset = getDataStartOffset();
+    }
+
+
+    /**
+     * Returns true if any of the columns before the specified column are
+     * <tt>NULL</tt>.  This is done a byte of the <tt>NULL</tt>-bitmap at a
+     * time, rather than a column at a time.
+     *
+     * @param colIndex the column to check the preceding columns of
+     *
+     * @return true if any column with a lower index is <tt>NULL</tt>
+     */
+    private boolean hasNullBefore(int colIndex) {
+        int fullBytes = colIndex / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (dbPage.readByte(pageOffset + i) != 0)
+                return true;
+        }
+
+        int remainingBits = colIndex % 8;
+        if (remainingBits != 0) {
+            int mask = (1 << remainingBits) - 1;
+            if ((dbPage.readUnsignedByte(pageOffset + fullBytes) & mask) != 0)
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns the offset in the page of the specified column's value, or
+     * {@link #NULL_OFFSET} if the column is <tt>NULL</tt>.  Columns in the
+     * schema's fixed-size prefix are located directly when none of the
+     * columns before them are <tt>NULL</tt>; otherwise the offsets of the
+     * columns up to this one are computed and cached.
+     *
+     * @param colIndex the index of the column to find
+     *
+     * @return the offset of the column's value
+     */
+    private int getValueOffset(int colIndex) {
+        if (colIndex < numResolved)
+            return valueOffsets[colIndex];
+
+        if (getNullFlag(colIndex))
+            return NULL_OFFSET;
+
+        if (prefixOffsets == null)
+            prefixOffsets = getFixedPrefixOffsets(schema);
+
+        if (colIndex < prefixOffsets.length && !hasNullBefore(colIndex))
+            return getDataStartOffset() + prefixOffsets[colIndex];
+
+        resolveValueOffsets(colIndex);
+        return valueOffsets[colIndex];
+    }
+
+
     /**
      * This helper function computes and caches the offset of each column
-     * value in the tuple.  If a column has a <tt>NULL</tt> value then
-     * {@link #NULL_OFFSET} is used for the offset.
+     * value in the tuple, up to and including the specified column.  If a
+     * column has a <tt>NULL</tt> value then {@link #NULL_OFFSET} is used for
+     * the offset.
+     *
+     * @param lastCol the last column whose offset is needed
      */
-    private void computeValueOffsets() {
-        int numCols = schema.numColumns();
+    private void resolveValueOffsets(int lastCol) {
+        if (valueOffsets == null)
+            valueOffsets = new int[schema.numColumns()];
 
-        int valOffset = getDataStartOffset();
+        int valOffset = resolvedEndOffset;
 
-        for (int iCol = 0; iCol < numCols; iCol++) {
+        for (int iCol = numResolved; iCol <= lastCol; iCol++) {
             if (getNullFlag(iCol)) {
                 // This column is marked as being NULL.
                 valueOffsets[iCol] = NULL_OFFSET;
@@ -334,7 +468,8 @@ public abstract class PageTuple implements Tuple {
             }
         }
 
-        endOffset = valOffset;
+        numResolved = Math.max(numResolved, lastCol + 1);
+        resolvedEndOffset = valOffset;
     }
 
 
@@ -355,13 +490,82 @@ public abstract class PageTuple implements Tuple {
         // VARCHAR is special - the storage size depends on the size of the
         // data value being stored.  In this case, read out the data length.
         int dataLength = 0;
-        if (colType.getBaseType() == SQLDataType.VARCHAR)
+        if (colType.getBaseType() == SQLDataType.VARCHAR) {
+            if (OverflowRef.isOverflowRef(dbPage, valueOffset))
+                return OverflowRef.STORAGE_SIZE;
+
             dataLength = dbPage.readUnsignedShort(valueOffset);
+        }
 
         return getStorageSize(colType, dataLength);
     }
 
 
+    /**
+     * Returns the number of bytes that the specified column's value takes in
+     * the tuple, or 0 if the column is <tt>NULL</tt>.  For a value stored
+     * out-of-line, this is the size of its {@link OverflowRef}.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the number of bytes the column's value takes in the tuple
+     */
+    public int getColumnStorageSize(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        int offset = getValueOffset(colIndex);
+        if (offset == NULL_OFFSET)
+            return 0;
+
+        ColumnType colType = schema.getColumnInfo(colIndex).getType();
+        return getColumnValueSize(colType, offset);
+    }
+
+
+    /**
+     * Returns the reference to the specified column's value if the value is
+     * stored out-of-line, or {@code null} if the value is stored in the
+     * tuple (or is <tt>NULL</tt>).  Unlike {@link #getColumnValue}, this
+     * doesn't read the value itself.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the column's overflow reference, or {@code null}
+     */
+    public OverflowRef getOverflowRef(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        ColumnType colType = schema.getColumnInfo(colIndex).getType();
+        if (colType.getBaseType() != SQLDataType.VARCHAR)
+            return null;
+
+        int offset = getValueOffset(colIndex);
+        if (offset == NULL_OFFSET || !OverflowRef.isOverflowRef(dbPage, offset))
+            return null;
+
+        return OverflowRef.read(dbPage, offset);
+    }
+
+
+    /**
+     * Reads a value that is stored out-of-line.  This is only called when
+     * the column's value is actually asked for, so that the overflow pages
+     * aren't read by operations that don't need the value.  Tuple formats
+     * that store values out-of-line must override this method.
+     *
+     * @param ref the reference to the value
+     *
+     * @return the value
+     *
+     * @throws UnsupportedOperationException if the tuple format doesn't
+     *         store values out-of-line
+     */
+    protected Object readOverflowValue(OverflowRef ref) {
+        throw new UnsupportedOperationException(
+            "This tuple format doesn't store values out-of-line");
+    }
+
+
     /**
      * Returns true if the specified column is currently set to the SQL
      * <tt>NULL</tt> value.
@@ -371,7 +575,11 @@ public abstract class PageTuple implements Tuple {
      */
     public boolean isNullValue(int colIndex) {
         checkColumnIndex(colIndex);
-        return (valueOffsets[colIndex] == NULL_OFFSET);
+
+        if (colIndex < numResolved)
+            return (valueOffsets[colIndex] == NULL_OFFSET);
+
+        return getNullFlag(colIndex);
     }
 
 
@@ -395,9 +603,8 @@ public abstract class PageTuple implements Tuple {
         checkColumnIndex(colIndex);
 
         Object value = null;
-        if (!isNullValue(colIndex)) {
-            int offset = valueOffsets[colIndex];
-
+        int offset = getValueOffset(colIndex);
+        if (offset != NULL_OFFSET) {
             ColumnType colType = schema.getColumnInfo(colIndex).getType();
             switch (colType.getBaseType()) {
 
@@ -430,7 +637,10 @@ public abstract class PageTuple implements Tuple {
                 break;
 
             case VARCHAR:
-                value = dbPage.readVarString65535(offset);
+                if (OverflowRef.isOverflowRef(dbPage, offset))
+                    value = readOverflowValue(OverflowRef.read(dbPage, offset));
+                else
+                    value = dbPage.readVarString65535(offset);
                 break;
 
             case FILE_POINTER:
@@ -501,19 +711,22 @@ public abstract class PageTuple implements Tuple {
          * the special NULL_OFFSET constant as their offset in the tuple.)
          */
 
-        if (isNullValue(iCol)) {
+        int offset = getValueOffset(iCol);
+        if (offset == NULL_OFFSET) {
             return;
         }
 
-        setNullFlag(iCol, true);
-
+        // Find the value's size before the NULL flag is set, since the
+        // column's offset can't be computed once the flag is set.
         ColumnType colType = schema.getColumnInfo(iCol).getType();
-        int len = getColumnValueSize(colType, valueOffsets[iCol]);
+        int len = getColumnValueSize(colType, offset);
+
+        setNullFlag(iCol, true);
 
-        deleteTupleDataRange(valueOffsets[iCol], len);
+        deleteTupleDataRange(offset, len);
         pageOffset += len;
 
-        computeValueOffsets();
+        resetValueOffsets();
     }
 
 
@@ -560,6 +773,10 @@ public abstract class PageTuple implements Tuple {
 
         ColumnType colType = schema.getColumnInfo(iCol).getType();
 
+        // Resolve all of the column offsets first, since they can't be
+        // computed correctly once the NULL flag is changed below.
+        getEndOffset();
+
         int oldSize = 0;
         if (isNullValue(iCol)) {
             setNullFlag(iCol, false);
@@ -567,12 +784,7 @@ public abstract class PageTuple implements Tuple {
             oldSize = getColumnValueSize(colType, valueOffsets[iCol]);
         }
 
-        int newSize;
-        if (colType.getBaseType() == SQLDataType.VARCHAR) {
-            newSize = getStorageSize(colType, ((String)value).length());
-        } else {
-            newSize = getStorageSize(colType, 0);
-        }
+        int newSize = getValueStorageSize(colType, value);
 
         if (newSize != oldSize) {
             if (!isNullValue(iCol)) {
@@ -583,7 +795,7 @@ public abstract class PageTuple implements Tuple {
 
                 // It is required to keep the each column's value in order, since
                 // the valueOffsets is calculated that way.
-                for (int i = iCol + 1; i < valueOffsets.length; i++) {
+                for (int i = iCol + 1; i < schema.numColumns(); i++) {
                     if (!isNullValue(i)) {
                         off = valueOffsets[i];
                         break;
@@ -592,10 +804,10 @@ public abstract class PageTuple implements Tuple {
                 insertTupleDataRange(off, newSize);
             }
             pageOffset += oldSize - newSize;
-            computeValueOffsets();
+            resetValueOffsets();
         }
 
-        writeNonNullValue(dbPage, valueOffsets[iCol], colType, value);
+        writeNonNullValue(dbPage, getValueOffset(iCol), colType, value);
     }
 
 
@@ -624,6 +836,52 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * <p>
+     * Returns the offset of each column's value from the start of a stored
+     * tuple's data (that is, past the <tt>NULL</tt>-bitmap), for the columns
+     * whose offset doesn't depend on the data:  the columns that only have
+     * fixed-size columns before them.  The array therefore covers every
+     * column up to and including the first variable-size column.
+     * </p>
+     * <p>
+     * The offsets assume that none of the preceding columns are
+     * <tt>NULL</tt>, since <tt>NULL</tt> values take no space.  They are
+     * computed once per schema; columns are only ever appended to a schema,
+     * so offsets computed before a column was added are still correct.
+     * </p>
+     *
+     * @param schema the schema of the stored tuples
+     *
+     * @return the fixed offset of each column in the schema's fixed-size
+     *         prefix; the caller must not modify the array
+     */
+    public static int[] getFixedPrefixOffsets(Schema schema) {
+        int[] result = fixedPrefixOffsets.get(schema);
+        if (result == null) {
+            ArrayList<Integer> offsets = new ArrayList<>();
+            int offset = 0;
+            for (ColumnInfo colInfo : schema) {
+                offsets.add(offset);
+
+                ColumnType colType = colInfo.getType();
+                if (colType.getBaseType() == SQLDataType.VARCHAR)
+                    break;
+
+                offset += getStorageSize(colType, 0);
+            }
+
+            result = new int[offsets.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = offsets.get(i);
+
+            fixedPrefixOffsets.put(schema, result);
+        }
+
+        return result;
+    }
+
+
     /**
      * Returns the storage size of a particular column's (non-<tt>NULL</tt>)
      * value, in bytes.  The length of the value is required in cases where
@@ -688,6 +946,33 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the number of bytes that a value would take when stored in a
+     * tuple, or 0 if the value is <tt>NULL</tt>.  The value may be an
+     * {@link OverflowRef} if the column is a <tt>VARCHAR</tt>.
+     *
+     * @param colType the column's data type
+     * @param value the value, or {@code null} for <tt>NULL</tt>
+     *
+     * @return the storage size of the value in bytes
+     */
+    public static int getValueStorageSize(ColumnType colType, Object value) {
+        if (value == null)
+            return 0;
+
+        if (value instanceof OverflowRef)
+            return OverflowRef.STORAGE_SIZE;
+
+        // VARCHAR is special - the storage size depends on the size of the
+        // data value being stored.
+        int dataLength = 0;
+        if (colType.getBaseType() == SQLDataType.VARCHAR)
+            dataLength = TypeConverter.getStringValue(value).length();
+
+        return getStorageSize(colType, dataLength);
+    }
+
+
     /**
      * This helper function takes a tuple (from an arbitrary source) and
      * computes how much space it would require to be stored in a heap table
@@ -717,23 +1002,10 @@ public abstract class PageTuple implements Tuple {
         int iCol = 0;
         for (ColumnInfo colInfo : schema.getColumnInfos()) {
 
-            ColumnType colType = colInfo.getType();
-            Object value = tuple.getColumnValue(iCol);
-
             // If the value is NULL (represented by Java's null here...) then
-            // it takes no space.  Otherwise, compute the space taken by this
-            // value.
-            if (value != null) {
-                // VARCHAR is special - the storage size depends on the size
-                // of the data value being stored.
-                int dataLength = 0;
-                if (colType.getBaseType() == SQLDataType.VARCHAR) {
-                    String strValue = TypeConverter.getStringValue(value);
-                    dataLength = strValue.length();
-                }
-
-                storageSize += getStorageSize(colType, dataLength);
-            }
+            // it takes no space.
+            storageSize += getValueStorageSize(colInfo.getType(),
+                tuple.getColumnValue(iCol));
 
             iCol++;
         }
@@ -822,7 +1094,8 @@ public abstract class PageTuple implements Tuple {
      * @param offset the actual byte-offset in the page where the value is
      *        written to
      * @param colType the type of the column that the value is being written for
-     * @param value the non-<tt>null</tt> value to store
+     * @param value the non-<tt>null</tt> value to store, or an
+     *        {@link OverflowRef} for a value stored out-of-line
      *
      * @return The number of bytes written for the specified value.
      *
@@ -831,6 +1104,9 @@ public abstract class PageTuple implements Tuple {
      */
     public static int writeNonNullValue(DBPage dbPage, int offset,
         ColumnType colType, Object value) {
+        if (value instanceof OverflowRef)
+            return ((OverflowRef) value).write(dbPage, offset);
+
         return dbPage.writeObject(offset, colType, value);
     }
 
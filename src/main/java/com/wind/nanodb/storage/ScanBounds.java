@@ -0,0 +1,236 @@
+package com.wind.nanodb.storage;
+
+
+import java.util.ArrayList;
+
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.TypeCastException;
+import com.wind.nanodb.expressions.TypeConverter;
+
+
+/**
+ * <p>
+ * A set of simple conditions on column values that every tuple a scan is
+ * looking for must satisfy, such as <tt>a &gt;= 5</tt> or
+ * <tt>b IS NULL</tt>.  A tuple file that keeps summaries of the values on
+ * each of its pages (for example, the zone maps of a heap file) can use
+ * these conditions to skip pages that can't hold any tuples the scan wants;
+ * see {@link TupleFile#openCursor(boolean, ScanBounds)}.
+ * </p>
+ * <p>
+ * The bounds are only a hint.  Tuple files may return tuples that don't
+ * satisfy them, so the scan must still check its full predicate against
+ * every tuple.
+ * </p>
+ */
+public class ScanBounds {
+
+    /** A single condition on one column's values. */
+    private static class Condition {
+        /** The index of the column in the tuple file's schema. */
+        int colIndex;
+
+        /**
+         * The comparison between the column and {@link #value}, or
+         * {@code null} if this is a test for <tt>NULL</tt>.
+         */
+        CompareOperator.Type compareType;
+
+        /** The value that the column is compared to. */
+        Object value;
+
+        /** For a <tt>NULL</tt> test, true if the column must be NULL. */
+        boolean isNull;
+    }
+
+
+    /** The conditions, in the order they were added. */
+    private ArrayList<Condition> conditions = new ArrayList<>();
+
+
+    /**
+     * Adds the condition that a column's value must compare to the specified
+     * value in the specified way.  Since the comparison can only be true if
+     * the column's value isn't <tt>NULL</tt>, this also requires a
+     * non-<tt>NULL</tt> value.
+     *
+     * @param colIndex the index of the column in the tuple file's schema
+     * @param compareType how the column's value compares to <tt>value</tt>
+     * @param value the value to compare against; it must not be
+     *        {@code null}
+     */
+    public void addComparison(int colIndex, CompareOperator.Type compareType,
+                              Object value) {
+        if (compareType == null)
+            throw new IllegalArgumentException("compareType cannot be null");
+
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null");
+
+        Condition cond = new Condition();
+        cond.colIndex = colIndex;
+        cond.compareType = compareType;
+        cond.value = value;
+        conditions.add(cond);
+    }
+
+
+    /**
+     * Adds the condition that a column's value must, or must not, be
+     * <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column in the tuple file's schema
+     * @param isNull true if the value must be <tt>NULL</tt>, or false if it
+     *        must not be
+     */
+    public void addNullTest(int colIndex, boolean isNull) {
+        Condition cond = new Condition();
+        cond.colIndex = colIndex;
+        cond.isNull = isNull;
+        conditions.add(cond);
+    }
+
+
+    /** Returns true if there are no conditions. */
+    public boolean isEmpty() {
+        return conditions.isEmpty();
+    }
+
+
+    /**
+     * Returns the value that a column must be equal to, if there is a
+     * condition that requires this.
+     *
+     * @param colIndex the index of the column in the tuple file's schema
+     *
+     * @return the value from the first equality condition on the column, or
+     *         {@code null} if there is no such condition
+     */
+    public Object getEqualsValue(int colIndex) {
+        for (Condition cond : conditions) {
+            if (cond.colIndex == colIndex &&
+                cond.compareType == CompareOperator.Type.EQUALS) {
+                return cond.value;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns true if a group of tuples might include one that satisfies the
+     * conditions on a column, given a summary of the column's values in
+     * those tuples.
+     *
+     * @param colIndex the index of the column in the tuple file's schema
+     * @param min the smallest non-<tt>NULL</tt> value of the column, or
+     *        {@code null} if there are no such values
+     * @param max the largest non-<tt>NULL</tt> value of the column, or
+     *        {@code null} if there are no such values
+     * @param nullCount the number of tuples where the column is
+     *        <tt>NULL</tt>
+     *
+     * @return false if no tuple in the group can satisfy the conditions on
+     *         the column, or true if one might
+     */
+    public boolean mayMatch(int colIndex, Object min, Object max,
+                            int nullCount) {
+        for (Condition cond : conditions) {
+            if (cond.colIndex != colIndex)
+                continue;
+
+            if (cond.compareType == null && cond.isNull) {
+                if (nullCount == 0)
+                    return false;
+
+                continue;
+            }
+
+            // Everything else needs a non-NULL value.
+            if (min == null || max == null)
+                return false;
+
+            if (cond.compareType != null &&
+                !mayMatch(cond.compareType, cond.value, min, max)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns true if some value between <tt>min</tt> and <tt>max</tt>
+     * might compare to <tt>value</tt> in the specified way.
+     */
+    private static boolean mayMatch(CompareOperator.Type compareType,
+                                    Object value, Object min, Object max) {
+        int minCmp;
+        int maxCmp;
+        try {
+            minCmp = compare(min, value);
+            maxCmp = compare(max, value);
+        }
+        catch (TypeCastException e) {
+            // The values can't be compared here, so the group can't be
+            // ruled out.
+            return true;
+        }
+
+        switch (compareType) {
+        case EQUALS:
+            return minCmp <= 0 && maxCmp >= 0;
+
+        case NOT_EQUALS:
+            return !(minCmp == 0 && maxCmp == 0);
+
+        case LESS_THAN:
+            return minCmp < 0;
+
+        case LESS_OR_EQUAL:
+            return minCmp <= 0;
+
+        case GREATER_THAN:
+            return maxCmp > 0;
+
+        case GREATER_OR_EQUAL:
+            return maxCmp >= 0;
+
+        default:
+            return true;
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object obj1, Object obj2) {
+        TypeConverter.Pair coerced = TypeConverter.coerceComparison(obj1, obj2);
+        return ((Comparable) coerced.value1).compareTo(coerced.value2);
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("ScanBounds[");
+        boolean first = true;
+        for (Condition cond : conditions) {
+            if (!first)
+                buf.append(", ");
+
+            buf.append('#').append(cond.colIndex);
+            if (cond.compareType != null) {
+                buf.append(' ').append(cond.compareType.stringRep());
+                buf.append(' ').append(cond.value);
+            }
+            else {
+                buf.append(cond.isNull ? " IS NULL" : " IS NOT NULL");
+            }
+
+            first = false;
+        }
+        buf.append(']');
+        return buf.toString();
+    }
+}
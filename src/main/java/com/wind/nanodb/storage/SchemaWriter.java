@@ -2,6 +2,7 @@ package com.wind.nanodb.storage;
 
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -9,7 +10,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
 import org.apache.log4j.Logger;
+import com.wind.nanodb.expressions.Expression;
 
 import com.wind.nanodb.relations.ColumnRefs;
 import com.wind.nanodb.relations.ColumnInfo;
@@ -20,6 +24,8 @@ import com.wind.nanodb.relations.KeyColumnRefs;
 import com.wind.nanodb.relations.SQLDataType;
 import com.wind.nanodb.relations.TableConstraintType;
 import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.sqlparse.NanoSqlLexer;
+import com.wind.nanodb.sqlparse.NanoSqlParser;
 
 
 /**
@@ -154,6 +160,28 @@ import com.wind.nanodb.relations.TableSchema;
  *           </li>
  *           <li>Name of Index (a string up to 255 characters,
  *               stored as {@link PageReader#readVarString255})</li>
+ *           <li>Number of Included Columns (unsigned byte)</li>
+ *           <li>For each included column:
+ *             <ul>
+ *               <li>Index of Included Column (unsigned byte)</li>
+ *             </ul>
+ *           </li>
+ *         </ul>
+ *       </li>
+ *     </ul>
+ *   </dd>
+ *
+ *   <dt>Table Properties:</dt>
+ *
+ *   <dd>
+ *     <ul>
+ *       <li>Number of Properties (unsigned byte)</li>
+ *       <li>For each property:
+ *         <ul>
+ *           <li>Name of Property (a string up to 255 characters,
+ *               stored as {@link PageReader#readVarString255})</li>
+ *           <li>Value of Property (a string up to 255 characters,
+ *               stored as {@link PageReader#readVarString255})</li>
  *         </ul>
  *       </li>
  *     </ul>
@@ -191,6 +219,9 @@ public class SchemaWriter {
         // Write all details of indexes on this table:
         writeIndexes(schema, pgWriter);
 
+        // Write all storage properties of this table:
+        writeProperties(schema, pgWriter);
+
         // Report how much space was used by schema info.
         if (logger.isDebugEnabled()) {
             int size = pgWriter.getPosition() - startPosition;
@@ -450,12 +481,46 @@ public class SchemaWriter {
         logger.debug(String.format(" * Index %s, enforced with index %s",
                                       idx, idx.getIndexName()));
 
+        // Keys that are computed from expressions are written as column 255.
         hpWriter.writeByte(idx.size());
         for (int i = 0; i < idx.size(); i++)
             hpWriter.writeByte(idx.getCol(i));
 
         // This should always be specified.
         hpWriter.writeVarString255(idx.getIndexName());
+
+        // Columns stored in the index entries, but not part of the key.
+        int[] includedCols = idx.getIncludedCols();
+        hpWriter.writeByte(includedCols.length);
+        for (int col : includedCols)
+            hpWriter.writeByte(col);
+
+        // The predicate of a partial index is stored as SQL text, or as an
+        // empty string if every row is indexed.
+        Expression predicate = idx.getPredicate();
+        hpWriter.writeVarString65535(predicate != null ?
+            predicate.toString() : "");
+
+        // Likewise, the expression of each key, or an empty string for the
+        // keys that are columns.
+        for (int i = 0; i < idx.size(); i++) {
+            Expression keyExpr = idx.getKeyExpression(i);
+            hpWriter.writeVarString65535(keyExpr != null ?
+                keyExpr.toString() : "");
+        }
+    }
+
+
+    protected void writeProperties(TableSchema schema, PageWriter pgWriter) {
+        Map<String, String> properties = schema.getProperties();
+
+        logger.debug("Writing " + properties.size() + " table properties");
+        pgWriter.writeByte(properties.size());
+
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            pgWriter.writeVarString255(entry.getKey());
+            pgWriter.writeVarString255(entry.getValue());
+        }
     }
 
 
@@ -487,6 +552,8 @@ public class SchemaWriter {
 
         readIndexes(pgReader, schema);
 
+        readProperties(pgReader, schema);
+
         logger.info("Completed schema:  " + schema);
         return schema;
     }
@@ -727,11 +794,24 @@ public class SchemaWriter {
     }
 
 
-    protected void readIndexes(PageReader pgReader, TableSchema schema) {
+    protected void readIndexes(PageReader pgReader, TableSchema schema)
+        throws IOException {
         int numIndexes = pgReader.readUnsignedByte();
         logger.debug("Reading " + numIndexes + " indexes");
         for (int i = 0; i < numIndexes; i++)
-            schema.addIndex(readIndex(pgReader));
+            schema.addIndex(readIndex(pgReader, schema));
+    }
+
+
+    protected void readProperties(PageReader pgReader, TableSchema schema) {
+        int numProperties = pgReader.readUnsignedByte();
+        logger.debug("Reading " + numProperties + " table properties");
+        for (int i = 0; i < numProperties; i++) {
+            // First string value is the name, second one is the value.
+            String name = pgReader.readVarString255();
+            String value = pgReader.readVarString255();
+            schema.setProperty(name, value);
+        }
     }
 
 
@@ -742,13 +822,20 @@ public class SchemaWriter {
      * @param pgReader the reader being used to read the table's schema to its
      *        header page
      *
+     * @param schema the table's schema, which the index's key expressions
+     *        are evaluated against
+     *
      * @return a specification of the index, including its name, what columns
      *         appear in the index
      *
      * @throws IllegalArgumentException if the <tt>type</tt> argument is
      *         <tt>null</tt>, or is not one of the accepted values
+     *
+     * @throws IOException if the predicate of a partial index, or a key
+     *         expression, can't be parsed
      */
-    protected ColumnRefs readIndex(PageReader pgReader) {
+    protected ColumnRefs readIndex(PageReader pgReader, TableSchema schema)
+        throws IOException {
 
         logger.debug(" * Reading index");
 
@@ -760,6 +847,61 @@ public class SchemaWriter {
         // This should always be specified.
         String indexName = pgReader.readVarString255();
 
-        return new ColumnRefs(indexName, idxCols);
+        int numIncluded = pgReader.readUnsignedByte();
+        int[] includedCols = new int[numIncluded];
+        for (int i = 0; i < numIncluded; i++)
+            includedCols[i] = pgReader.readUnsignedByte();
+
+        String predicateText = pgReader.readVarString65535();
+
+        Expression[] keyExprs = null;
+        for (int i = 0; i < idxSize; i++) {
+            String keyText = pgReader.readVarString65535();
+            if (!keyText.isEmpty()) {
+                if (keyExprs == null)
+                    keyExprs = new Expression[idxSize];
+
+                keyExprs[i] = parseExpression(keyText);
+                idxCols[i] = ColumnRefs.EXPRESSION_KEY;
+            }
+        }
+
+        ColumnRefs idx;
+        if (keyExprs != null)
+            idx = new ColumnRefs(indexName, idxCols, keyExprs, schema);
+        else
+            idx = new ColumnRefs(indexName, idxCols);
+
+        idx.setIncludedCols(includedCols);
+        if (!predicateText.isEmpty())
+            idx.setPredicate(parseExpression(predicateText));
+
+        return idx;
+    }
+
+
+    /**
+     * Parses the predicate of a partial index, or the expression of an index
+     * key, as it was written by {@link #writeIndex}.
+     *
+     * @param text the SQL text of the expression
+     *
+     * @return the expression
+     *
+     * @throws IOException if the text can't be parsed
+     */
+    private Expression parseExpression(String text) throws IOException {
+        try {
+            NanoSqlLexer lexer = new NanoSqlLexer(new StringReader(text));
+            NanoSqlParser parser = new NanoSqlParser(lexer);
+            Expression expr = parser.expression();
+            if (expr == null)
+                throw new IOException("Couldn't parse index expression " + text);
+
+            return expr;
+        }
+        catch (RecognitionException | TokenStreamException e) {
+            throw new IOException("Couldn't parse index expression " + text, e);
+        }
     }
 }
@@ -2,6 +2,7 @@ package com.wind.nanodb.storage;
 
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 import com.wind.nanodb.expressions.OrderByExpression;
@@ -62,4 +63,67 @@ public interface SequentialTupleFile extends TupleFile {
      * @throws IOException
      */
     Tuple findFirstTupleGreaterThan(Tuple searchKey) throws IOException;
+
+
+    /**
+     * Returns the first tuple in the file that has a search-key value that
+     * is greater than or equal to the specified search-key value, or
+     * {@code null} if there are no such tuples.  As with
+     * {@link #findFirstTupleGreaterThan}, the search key may contain fewer
+     * columns than the sequential file does.  This allows a caller to find
+     * where a key is, or would be, and to go on from there with
+     * {@link #getNextTuple}.
+     *
+     * @param searchKey the tuple to search for
+     *
+     * @return the first tuple that is not less than the search key, or
+     *         {@code null} if there is none
+     *
+     * @throws IOException if an IO error occurs during the operation
+     */
+    Tuple findFirstTupleGreaterOrEqual(Tuple searchKey) throws IOException;
+
+
+    /**
+     * Adds a batch of tuples to the file.  The tuples must already be sorted
+     * in the file's order, which allows the file to add runs of neighboring
+     * tuples to the same page without searching for it again.
+     *
+     * @param tuples the tuples to add, sorted in the file's order
+     *
+     * @throws IOException if an IO error occurs during the operation
+     */
+    void addSortedTuples(List<? extends Tuple> tuples) throws IOException;
+
+
+    /**
+     * Deletes a batch of tuples from the file.  Each tuple must have the
+     * values of all of the file's columns, and the tuples must be sorted in
+     * the file's order.  Tuples that aren't in the file are skipped.
+     *
+     * @param tuples the values of the tuples to delete, sorted in the file's
+     *        order
+     *
+     * @return the number of tuples that were found and deleted
+     *
+     * @throws IOException if an IO error occurs during the operation
+     */
+    int deleteSortedTuples(List<? extends Tuple> tuples) throws IOException;
+
+
+    /**
+     * Fills an empty file with tuples that are already sorted in the file's
+     * order.  Since every tuple goes after the previous one, the file can
+     * write out each page as it is filled, and build any structure above
+     * the pages afterward, instead of adding the tuples one at a time.
+     *
+     * @param tuples the tuples to load, sorted in the file's order
+     *
+     * @return the number of tuples loaded
+     *
+     * @throws IllegalStateException if the file isn't empty
+     *
+     * @throws IOException if an IO error occurs during the operation
+     */
+    long loadSortedTuples(Iterator<? extends Tuple> tuples) throws IOException;
 }
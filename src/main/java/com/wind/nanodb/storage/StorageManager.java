@@ -3,6 +3,7 @@ package com.wind.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -10,8 +11,10 @@ import com.wind.nanodb.indexes.BasicIndexManager;
 import com.wind.nanodb.indexes.DatabaseConstraintEnforcer;
 import com.wind.nanodb.indexes.IndexManager;
 import com.wind.nanodb.indexes.IndexUpdater;
+import com.wind.nanodb.relations.TableSchema;
 import com.wind.nanodb.server.EventDispatcher;
 import com.wind.nanodb.server.NanoDBServer;
+import com.wind.nanodb.server.performance.PerformanceCounters;
 import com.wind.nanodb.storage.btreefile.BTreeTupleFileManager;
 import org.apache.log4j.Logger;
 
@@ -22,6 +25,7 @@ import com.wind.nanodb.server.properties.ReadOnlyPropertyException;
 import com.wind.nanodb.server.properties.UnrecognizedPropertyException;
 
 import com.wind.nanodb.storage.heapfile.HeapTupleFileManager;
+import com.wind.nanodb.storage.paxfile.PaxTupleFileManager;
 import com.wind.nanodb.transactions.TransactionManager;
 
 
@@ -61,6 +65,18 @@ public class StorageManager {
     public static final String PROP_PAGESIZE = "nanodb.pagesize";
 
 
+    /**
+     * The system property that can be used to specify how many pages
+     * sequential scans read ahead of the page they are on.  A value of 0 or
+     * 1 turns read-ahead off.
+     */
+    public static final String PROP_READAHEAD = "nanodb.readahead";
+
+
+    /** The default number of pages read ahead by sequential scans. */
+    public static final int DEFAULT_READAHEAD = 8;
+
+
     /**
      * The default base-directory path used by the storage manager.  This
      * value is set to "<tt>./datafiles</tt>" (or "<tt>.\datafiles</tt>"
@@ -104,6 +120,33 @@ public class StorageManager {
     }
 
 
+    /**
+     * Returns the number of pages that sequential scans should read ahead,
+     * based on the <tt>nanodb.readahead</tt> system property.
+     *
+     * @return the number of pages to read ahead, or 0 if read-ahead is off
+     */
+    private static int configureReadAhead() {
+        int readAhead = DEFAULT_READAHEAD;
+
+        String str = System.getProperty(PROP_READAHEAD);
+        if (str != null) {
+            try {
+                readAhead = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException nfe) {
+                logger.warn("Current value of " + PROP_READAHEAD +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (readAhead < 0)
+                readAhead = 0;
+        }
+
+        return readAhead;
+    }
+
+
     private class StoragePropertyHandler implements PropertyHandler {
 
         @Override
@@ -185,6 +228,18 @@ public class StorageManager {
     private TransactionManager transactionManager;
 
 
+    /**
+     * If page-cache warm-up is enabled, this object saves the contents of the
+     * page cache and reloads them after a restart; otherwise it is
+     * {@code null}.
+     */
+    private PageCacheWarmer pageCacheWarmer;
+
+
+    /** The number of pages that sequential scans read ahead. */
+    private int readAheadPages;
+
+
     private TableManager tableManager;
 
 
@@ -248,6 +303,7 @@ public class StorageManager {
 
         fileManager = new FileManagerImpl(baseDir);
         bufferManager = new BufferManager(server, fileManager);
+        readAheadPages = configureReadAhead();
 
         tupleFileManagers.put(DBFileType.HEAP_TUPLE_FILE,
             new HeapTupleFileManager(this));
@@ -256,6 +312,9 @@ public class StorageManager {
         tupleFileManagers.put(DBFileType.BTREE_TUPLE_FILE,
                 new BTreeTupleFileManager(this));
 
+        tupleFileManagers.put(DBFileType.PAX_TUPLE_FILE,
+            new PaxTupleFileManager(this));
+
         if (TransactionManager.isEnabled()) {
             logger.info("Initializing transaction manager.");
             transactionManager = new TransactionManager(server);
@@ -281,6 +340,11 @@ public class StorageManager {
             eventDispatcher.addRowEventListener(new IndexUpdater(this));
         }
 
+        if (PageCacheWarmer.isEnabled()) {
+            pageCacheWarmer = new PageCacheWarmer(this);
+            pageCacheWarmer.start();
+        }
+
         initialized = true;
     }
 
@@ -303,6 +367,12 @@ public class StorageManager {
         if (transactionManager != null)
             transactionManager.forceWAL();
 
+        // Record what is in the page cache before we empty it out.
+        if (pageCacheWarmer != null) {
+            pageCacheWarmer.shutdown();
+            pageCacheWarmer = null;
+        }
+
         List<DBFile> dbFiles = bufferManager.removeAll();
         for (DBFile dbFile : dbFiles)
             fileManager.closeDBFile(dbFile);
@@ -368,6 +438,22 @@ public class StorageManager {
     }
 
 
+    /**
+     * Truncates a database file so that it only holds its first
+     * <tt>numPages</tt> pages.  Any cached copies of the removed pages are
+     * discarded without being written, so none of them may still be pinned.
+     *
+     * @param dbFile the database file to truncate
+     * @param numPages the number of pages to keep
+     *
+     * @throws IOException if an IO error occurs while truncating the file
+     */
+    public void truncateDBFile(DBFile dbFile, int numPages) throws IOException {
+        bufferManager.discardPages(dbFile, numPages);
+        fileManager.truncateDBFile(dbFile, numPages);
+    }
+
+
     public TupleFile openTupleFile(String filename) throws IOException {
         DBFile dbFile = fileManager.openDBFile(filename);
         DBFileType type = dbFile.getType();
@@ -378,7 +464,51 @@ public class StorageManager {
         logger.debug(String.format("Type is %s, page size is %d bytes.",
             type, dbFile.getPageSize()));
 
-        return tfManager.openTupleFile(dbFile);
+        TupleFile tupleFile = tfManager.openTupleFile(dbFile);
+        assignBufferPool(tupleFile);
+
+        return tupleFile;
+    }
+
+
+    /**
+     * Assigns the tuple file's pages to a buffer pool in the Buffer Manager,
+     * based on the {@link BufferPool#PROP_BUFFER_POOL},
+     * {@link BufferPool#PROP_MIN_PAGES} and {@link BufferPool#PROP_MAX_PAGES}
+     * properties stored in the tuple file's schema.  If only page limits are
+     * specified, the file gets a pool of its own, named after the file.
+     *
+     * @param tupleFile the tuple file to assign to a buffer pool
+     *
+     * @throws IOException if the properties stored in the schema are invalid
+     */
+    public void assignBufferPool(TupleFile tupleFile) throws IOException {
+        TableSchema schema = tupleFile.getSchema();
+        DBFile dbFile = tupleFile.getDBFile();
+
+        String poolName = schema.getProperty(BufferPool.PROP_BUFFER_POOL);
+        String minStr = schema.getProperty(BufferPool.PROP_MIN_PAGES);
+        String maxStr = schema.getProperty(BufferPool.PROP_MAX_PAGES);
+
+        if (poolName == null && minStr == null && maxStr == null)
+            return;
+
+        if (poolName == null)
+            poolName = dbFile.getDataFile().getName();
+
+        try {
+            int minPages = (minStr != null ?
+                Integer.parseInt(minStr) : BufferPool.NO_LIMIT);
+            int maxPages = (maxStr != null ?
+                Integer.parseInt(maxStr) : BufferPool.NO_LIMIT);
+
+            bufferManager.assignFileToPool(dbFile, poolName, minPages, maxPages);
+        }
+        catch (IllegalArgumentException e) {
+            // NumberFormatException is also an IllegalArgumentException.
+            throw new IOException("Invalid buffer-pool properties for " +
+                dbFile + ":  " + e.getMessage(), e);
+        }
     }
 
 
@@ -450,14 +580,21 @@ public class StorageManager {
     public DBPage loadDBPage(DBFile dbFile, int pageNo, boolean create)
         throws IOException {
 
-        // Try to retrieve from the buffer manager.
-        DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
-        if (dbPage == null) {
-            // Buffer manager didn't have it.  Read the page directly from
-            // the file, then add it to the buffer manager.
+        // Try to retrieve from the buffer manager.  If it doesn't have the
+        // page, the page is claimed for this thread, so that other threads
+        // wait for this one instead of reading the page too.
+        DBPage dbPage = bufferManager.getPageOrStartLoading(dbFile, pageNo);
+        if (dbPage != null)
+            return dbPage;
+
+        // Buffer manager didn't have it.  Read the page directly from the
+        // file, without holding the buffer manager's monitor, then add it to
+        // the buffer manager.
+        try {
             dbPage = new DBPage(bufferManager, dbFile, pageNo);
             try {
-                fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), create);
+                fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(),
+                    create);
                 bufferManager.addPage(dbPage);
             }
             catch (IOException e) {
@@ -467,11 +604,101 @@ public class StorageManager {
                 throw e;
             }
         }
+        finally {
+            bufferManager.finishLoading(dbFile, pageNo);
+        }
 
         return dbPage;
     }
 
 
+    /**
+     * Reads a range of pages into the buffer manager, without pinning them,
+     * so that they are already cached when they are needed.  Pages that are
+     * already cached are skipped, and the range is cut off at the end of the
+     * file.  The pages are read as one batch, so the file manager can have
+     * several reads outstanding at once.
+     *
+     * @param dbFile the database file to read the pages from
+     * @param firstPageNo the number of the first page to read
+     * @param numPages the number of pages in the range
+     *
+     * @throws IOException if an IO error occurs while reading the pages
+     */
+    public void prefetchDBPages(DBFile dbFile, int firstPageNo, int numPages)
+        throws IOException {
+
+        int endPageNo = (int) Math.min((long) firstPageNo + numPages,
+            dbFile.getNumPages());
+
+        // As in loadDBPage(), the pages are claimed so that no other thread
+        // reads them at the same time.  Pages that are already cached, or
+        // that another thread is reading, are skipped.
+        ArrayList<Integer> claimedPageNos = new ArrayList<>();
+        for (int pageNo = firstPageNo; pageNo < endPageNo; pageNo++) {
+            if (bufferManager.startLoading(dbFile, pageNo))
+                claimedPageNos.add(pageNo);
+        }
+
+        if (claimedPageNos.isEmpty())
+            return;
+
+        try {
+            ArrayList<DBPage> dbPages = new ArrayList<>();
+            for (int pageNo : claimedPageNos)
+                dbPages.add(new DBPage(bufferManager, dbFile, pageNo));
+
+            int[] pageNos = new int[dbPages.size()];
+            byte[][] buffers = new byte[dbPages.size()][];
+            for (int i = 0; i < pageNos.length; i++) {
+                pageNos[i] = dbPages.get(i).getPageNo();
+                buffers[i] = dbPages.get(i).getPageData();
+            }
+
+            try {
+                fileManager.loadPages(dbFile, pageNos, buffers);
+            }
+            catch (IOException e) {
+                // Release the pages' buffers, or else we will have a
+                // resource leak...
+                for (DBPage dbPage : dbPages)
+                    dbPage.invalidate();
+
+                throw e;
+            }
+
+            for (DBPage dbPage : dbPages) {
+                bufferManager.addPage(dbPage);
+                dbPage.unpin();
+            }
+
+            PerformanceCounters.add(
+                PerformanceCounters.STORAGE_PAGES_PREFETCHED, dbPages.size());
+        }
+        finally {
+            for (int pageNo : claimedPageNos)
+                bufferManager.finishLoading(dbFile, pageNo);
+        }
+    }
+
+
+    /**
+     * Called by sequential scans before they move on to the specified page.
+     * If the page isn't cached then it is read along with the pages after
+     * it, as specified by the <tt>nanodb.readahead</tt> property, so that
+     * the scan doesn't have to wait for each of those pages separately.
+     *
+     * @param dbFile the database file being scanned
+     * @param pageNo the number of the page the scan is moving to
+     *
+     * @throws IOException if an IO error occurs while reading the pages
+     */
+    public void readAhead(DBFile dbFile, int pageNo) throws IOException {
+        if (readAheadPages > 1 && !bufferManager.containsPage(dbFile, pageNo))
+            prefetchDBPages(dbFile, pageNo, readAheadPages);
+    }
+
+
     /**
      * This method returns a database page to use, retrieving it from the buffer
      * manager if it is already loaded, or reading it from the specified data
@@ -97,6 +97,23 @@ public interface TableManager {
     void analyzeTable(TableInfo tableInfo) throws IOException;
 
 
+    /**
+     * This function optimizes the storage of the specified table, for
+     * example by compacting its tuple file.
+     *
+     * @param tableInfo the opened table to optimize.
+     *
+     * @param listener if not {@code null}, this listener is told about every
+     *        tuple that is moved to a new file-pointer, so that the table's
+     *        indexes can be updated.
+     *
+     * @throws IOException if an IO error occurs while trying to optimize the
+     *         table.
+     */
+    void optimizeTable(TableInfo tableInfo, TupleMoveListener listener)
+        throws IOException;
+
+
     /**
      * This method closes a table file that is currently open, flushing any
      * dirty pages to the table's storage in the process.
@@ -0,0 +1,198 @@
+package com.wind.nanodb.storage;
+
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+
+/**
+ * <p>
+ * A set of tuple locations in a tuple file, stored as one bitmap per data
+ * page.  Each page that holds at least one of the tuples has a bitmap with
+ * a bit set for the offset of each tuple's {@link FilePointer} in the page;
+ * pages without any of the tuples take no space at all.  Since a page only
+ * holds a limited number of tuples, the bitmaps stay small however many
+ * tuples the set holds.
+ * </p>
+ * <p>
+ * Bitmaps collected from several index scans can be intersected with
+ * {@link #and} or combined with {@link #or}, and iterating over the set
+ * produces the tuple locations in physical order:  by page, then by offset
+ * within the page.  Fetching tuples in this order reads each page once.
+ * </p>
+ */
+public class TupleBitmap implements Iterable<FilePointer> {
+
+    /** The bitmap of tuple offsets for each page, ordered by page number. */
+    private TreeMap<Integer, BitSet> pages = new TreeMap<>();
+
+
+    /** The number of tuple locations in the set. */
+    private int size;
+
+
+    /**
+     * Adds a tuple location to the set.
+     *
+     * @param fptr the location of the tuple
+     *
+     * @return true if the location wasn't already in the set
+     */
+    public boolean add(FilePointer fptr) {
+        if (fptr == null)
+            throw new IllegalArgumentException("fptr cannot be null");
+
+        BitSet offsets = pages.get(fptr.getPageNo());
+        if (offsets == null) {
+            offsets = new BitSet();
+            pages.put(fptr.getPageNo(), offsets);
+        }
+
+        if (offsets.get(fptr.getOffset()))
+            return false;
+
+        offsets.set(fptr.getOffset());
+        size++;
+        return true;
+    }
+
+
+    /**
+     * Returns true if a tuple location is in the set.
+     *
+     * @param fptr the location of the tuple
+     *
+     * @return true if the location is in the set
+     */
+    public boolean contains(FilePointer fptr) {
+        BitSet offsets = pages.get(fptr.getPageNo());
+        return offsets != null && offsets.get(fptr.getOffset());
+    }
+
+
+    /**
+     * Removes every tuple location that isn't also in another set, so that
+     * this set becomes the intersection of the two.
+     *
+     * @param other the set to intersect with
+     */
+    public void and(TupleBitmap other) {
+        Iterator<Map.Entry<Integer, BitSet>> iter = pages.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, BitSet> entry = iter.next();
+            BitSet otherOffsets = other.pages.get(entry.getKey());
+
+            BitSet offsets = entry.getValue();
+            size -= offsets.cardinality();
+            if (otherOffsets == null) {
+                iter.remove();
+                continue;
+            }
+
+            offsets.and(otherOffsets);
+            if (offsets.isEmpty())
+                iter.remove();
+            else
+                size += offsets.cardinality();
+        }
+    }
+
+
+    /**
+     * Adds every tuple location in another set to this set, so that this set
+     * becomes the union of the two.
+     *
+     * @param other the set to combine with
+     */
+    public void or(TupleBitmap other) {
+        for (Map.Entry<Integer, BitSet> entry : other.pages.entrySet()) {
+            BitSet offsets = pages.get(entry.getKey());
+            if (offsets == null) {
+                offsets = new BitSet();
+                pages.put(entry.getKey(), offsets);
+            }
+
+            size -= offsets.cardinality();
+            offsets.or(entry.getValue());
+            size += offsets.cardinality();
+        }
+    }
+
+
+    /**
+     * Returns the number of tuple locations in the set.
+     *
+     * @return the number of tuple locations in the set
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the number of distinct pages that the tuple locations are on,
+     * which is the number of pages that must be read to fetch the tuples.
+     *
+     * @return the number of pages with at least one tuple in the set
+     */
+    public int getNumPages() {
+        return pages.size();
+    }
+
+
+    /**
+     * Returns an iterator over the tuple locations in physical order:  by
+     * page number, then by offset within the page.
+     *
+     * @return an iterator over the tuple locations in the set
+     */
+    @Override
+    public Iterator<FilePointer> iterator() {
+        return new Iterator<FilePointer>() {
+            private Iterator<Map.Entry<Integer, BitSet>> pageIter =
+                pages.entrySet().iterator();
+
+            private int pageNo;
+
+            private BitSet offsets;
+
+            /** The next offset on the current page, or -1 if there is none. */
+            private int nextOffset = -1;
+
+            @Override
+            public boolean hasNext() {
+                while (nextOffset < 0) {
+                    if (!pageIter.hasNext())
+                        return false;
+
+                    Map.Entry<Integer, BitSet> entry = pageIter.next();
+                    pageNo = entry.getKey();
+                    offsets = entry.getValue();
+                    nextOffset = offsets.nextSetBit(0);
+                }
+
+                return true;
+            }
+
+            @Override
+            public FilePointer next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                FilePointer fptr = new FilePointer(pageNo, nextOffset);
+                nextOffset = offsets.nextSetBit(nextOffset + 1);
+                return fptr;
+            }
+        };
+    }
+
+
+    @Override
+    public String toString() {
+        return "TupleBitmap[" + size + " tuples on " + pages.size() +
+            " pages]";
+    }
+}
@@ -0,0 +1,83 @@
+package com.wind.nanodb.storage;
+
+
+import java.io.IOException;
+
+import com.wind.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * A cursor for scanning all the tuples in a {@link TupleFile}, obtained from
+ * {@link TupleFile#openCursor}.  Unlike repeated calls to
+ * {@link TupleFile#getNextTuple}, a cursor keeps its position between calls,
+ * so a tuple file can keep the current page pinned and simply step through
+ * its slots, instead of finding and pinning the page again for every tuple.
+ * </p>
+ * <p>
+ * A cursor may be opened to <em>reuse its tuple</em>.  In that case,
+ * {@link #next} repositions and returns the same tuple object every time, so
+ * the tuple is only valid until the next call to any of the cursor's
+ * methods, and the caller must not unpin it.  This avoids allocating
+ * an object per tuple, and suits callers that look at each tuple once and
+ * then move on, such as {@link TupleFile#analyze}.  Otherwise, each tuple
+ * returned by the cursor is a separate object, pinned on behalf of the
+ * caller, exactly as if it came from {@link TupleFile#getNextTuple}, and the
+ * caller must unpin each one when it is done with it.
+ * </p>
+ * <p>
+ * Cursors hold pins on the pages they are scanning, so they should be
+ * closed when they are no longer needed.
+ * </p>
+ */
+public interface TupleCursor extends AutoCloseable {
+
+    /**
+     * Returns the next tuple in the scan, or {@code null} if there are no
+     * more tuples.
+     *
+     * @return the next tuple, or {@code null} at the end of the file
+     *
+     * @throws IOException if an IO error occurs while reading the tuple file
+     */
+    Tuple next() throws IOException;
+
+
+    /**
+     * Stores the next tuples in the scan into the specified array, starting
+     * at index 0, until the array is full or there are no more tuples.  The
+     * tuples stored in the array are always separate objects, pinned on
+     * behalf of the caller, even if the cursor reuses its tuple for
+     * {@link #next}.  The caller must unpin each of them when it is done
+     * with it; closing the cursor doesn't release these pins.
+     *
+     * @param batch the array to store tuples into
+     *
+     * @return the number of tuples stored into the array; 0 means there are
+     *         no more tuples
+     *
+     * @throws IOException if an IO error occurs while reading the tuple file
+     */
+    int fill(Tuple[] batch) throws IOException;
+
+
+    /**
+     * Moves the cursor so that the next tuple it returns is the one that
+     * follows the specified tuple.  This allows a scan to resume from a
+     * previously marked position.
+     *
+     * @param tuple a tuple from this cursor's file; it may be pinned or
+     *        unpinned
+     *
+     * @throws IOException if an IO error occurs while reading the tuple file
+     */
+    void positionAfter(Tuple tuple) throws IOException;
+
+
+    /**
+     * Releases any pages that the cursor has pinned.  After this is called,
+     * the cursor reports that there are no more tuples.
+     */
+    @Override
+    void close();
+}
@@ -86,6 +86,45 @@ public interface TupleFile {
     Tuple getNextTuple(Tuple tuple) throws IOException;
 
 
+    /**
+     * Opens a cursor that scans all the tuples in this file, in the same
+     * order as {@link #getFirstTuple} and {@link #getNextTuple}.  Scans that
+     * visit every tuple should prefer a cursor, since the tuple file can
+     * keep its place in the file between tuples.
+     *
+     * @param reuseTuple if true, the cursor may return the same tuple object
+     *        from every call to {@link TupleCursor#next}, so each tuple is
+     *        only valid until the cursor is used again.  If false, every
+     *        tuple is a separate object, pinned on behalf of the caller.
+     *
+     * @return a cursor positioned before the first tuple in the file
+     *
+     * @throws IOException if an IO error occurs while opening the cursor
+     */
+    TupleCursor openCursor(boolean reuseTuple) throws IOException;
+
+
+    /**
+     * Opens a cursor that scans the tuples in this file, but that may skip
+     * tuples that don't satisfy the specified bounds.  Tuple files that keep
+     * summaries of their pages' values use the bounds to avoid reading pages
+     * that can't hold matching tuples; other tuple files simply scan all of
+     * their tuples.  Either way, the caller must still check each tuple
+     * against its full predicate.
+     *
+     * @param reuseTuple as for {@link #openCursor(boolean)}
+     *
+     * @param bounds conditions that the tuples the caller wants must
+     *        satisfy, or {@code null} to scan every tuple
+     *
+     * @return a cursor positioned before the first tuple in the file
+     *
+     * @throws IOException if an IO error occurs while opening the cursor
+     */
+    TupleCursor openCursor(boolean reuseTuple, ScanBounds bounds)
+        throws IOException;
+
+
     /**
      * Returns the tuple corresponding to the specified file pointer.  This
      * method is used by other features in the database, such as indexes.
@@ -175,7 +214,10 @@ public interface TupleFile {
      * provide any optimization capabilities can simply return when this is
      * called.
      *
+     * @param listener if not {@code null}, this listener is told about every
+     *        tuple that the optimization moves to a new file-pointer
+     *
      * @throws IOException if an IO error occurs during optimization.
      */
-    void optimize() throws IOException;
+    void optimize(TupleMoveListener listener) throws IOException;
 }
@@ -0,0 +1,26 @@
+package com.wind.nanodb.storage;
+
+
+import com.wind.nanodb.relations.Tuple;
+
+
+/**
+ * This interface is implemented by components that need to know when a tuple
+ * file moves a tuple to a new file-pointer, for example while the file is
+ * being compacted by {@link TupleFile#optimize}.  Anything that refers to
+ * tuples by their file-pointers, such as an index, must be updated when this
+ * happens.
+ */
+public interface TupleMoveListener {
+    /**
+     * Called after a tuple has been moved to a new location.  The tuple's
+     * old location is no longer valid by the time this method is invoked.
+     *
+     * @param oldRef the file-pointer that the tuple used to have
+     *
+     * @param newTuple the tuple at its new location; its values are the same
+     *        as before it was moved.  The tuple is only pinned until this
+     *        method returns.
+     */
+    void tupleMoved(FilePointer oldRef, Tuple newTuple);
+}
@@ -22,6 +22,12 @@ import com.wind.nanodb.storage.PageTuple;
  * track of whether the previous tuple was deleted or not; if it was deleted,
  * we don't advance in the page.
  * </p>
+ * <p>
+ * Tuples from leaf pages may also have a key prefix, which is the common
+ * prefix of the leading column of all keys in the page.  The page only stores
+ * the rest of each key's leading value, and the prefix is added back on when
+ * the value is read.  (See {@link LeafPage} for details.)
+ * </p>
  */
 public class BTreeFilePageTuple extends PageTuple {
 
@@ -48,9 +54,27 @@ public class BTreeFilePageTuple extends PageTuple {
      */
     private int nextTupleIndex;
 
+    /**
+     * The prefix that was factored out of this tuple's leading column when
+     * it was stored, or {@code null} if the value is stored in full.
+     */
+    private String keyPrefix;
+
+    /**
+     * A copy of the tuple's column values, made by {@link #copyValues}, or
+     * {@code null} if the values are read from the page.
+     */
+    private Object[] copiedValues;
+
 
     public BTreeFilePageTuple(Schema schema, DBPage dbPage, int pageOffset,
                               int tupleIndex) {
+        this(schema, dbPage, pageOffset, tupleIndex, null);
+    }
+
+
+    public BTreeFilePageTuple(Schema schema, DBPage dbPage, int pageOffset,
+                              int tupleIndex, String keyPrefix) {
         super(dbPage, pageOffset, schema);
 
         if (tupleIndex < 0) {
@@ -59,6 +83,9 @@ public class BTreeFilePageTuple extends PageTuple {
         }
 
         this.tupleIndex = tupleIndex;
+
+        if (keyPrefix != null && !keyPrefix.isEmpty())
+            this.keyPrefix = keyPrefix;
     }
 
 
@@ -102,6 +129,48 @@ public class BTreeFilePageTuple extends PageTuple {
     }
 
 
+    /**
+     * Copies the tuple's column values out of its leaf page, so that they
+     * can still be read after the leaf's latch is released.  Once the latch
+     * is gone, other threads can add or remove entries in the leaf, which
+     * moves this tuple's bytes around the page.  The tuple's position
+     * (its page, offset and index) is not updated, and only says where the
+     * tuple was when it was copied.
+     */
+    public void copyValues() {
+        if (copiedValues != null)
+            return;
+
+        Object[] values = new Object[getColumnCount()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = getColumnValue(i);
+
+        copiedValues = values;
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        if (copiedValues != null)
+            return copiedValues[colIndex] == null;
+
+        return super.isNullValue(colIndex);
+    }
+
+
+    @Override
+    public Object getColumnValue(int colIndex) {
+        if (copiedValues != null)
+            return copiedValues[colIndex];
+
+        Object value = super.getColumnValue(colIndex);
+        if (colIndex == 0 && keyPrefix != null && value != null)
+            value = keyPrefix + value;
+
+        return value;
+    }
+
+
     @Override
     protected void insertTupleDataRange(int off, int len) {
         throw new UnsupportedOperationException(
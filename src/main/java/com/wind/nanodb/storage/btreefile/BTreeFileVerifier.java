@@ -20,7 +20,8 @@ import static com.wind.nanodb.storage.btreefile.BTreePageTypes.*;
 
 /**
  * This class provides some simple verification operations for B<sup>+</sup>
- * tree tuple files.
+ * tree tuple files.  While it scans the leaves of the file, it also measures
+ * how full they are, which is reported by {@link #getAverageLeafFill}.
  */
 public class BTreeFileVerifier {
     /** A logging object for reporting anything interesting that happens. */
@@ -107,6 +108,14 @@ public class BTreeFileVerifier {
     private ArrayList<String> errors;
 
 
+    /** The number of leaves found in the leaf page list. */
+    private int numLeafPages;
+
+
+    /** The total number of bytes used in the leaves in the leaf page list. */
+    private long leafBytesUsed;
+
+
     /**
      * Initialize a verifier object to verify a specific B<sup>+</sup> tree
      * tuple file.
@@ -134,6 +143,8 @@ public class BTreeFileVerifier {
      */
     public List<String> verify() throws IOException {
         errors = new ArrayList<String>();
+        numLeafPages = 0;
+        leafBytesUsed = 0;
 
         try {
             pass1ScanThruAllPages();
@@ -159,6 +170,34 @@ public class BTreeFileVerifier {
     }
 
 
+    /**
+     * Returns the number of leaves that the last call to {@link #verify}
+     * found in the file's leaf page list.
+     *
+     * @return the number of leaf pages
+     */
+    public int getNumLeafPages() {
+        return numLeafPages;
+    }
+
+
+    /**
+     * Returns how full the leaves that the last call to {@link #verify}
+     * found in the file's leaf page list are, on average.  Each leaf's header
+     * and key prefix count as used space.
+     *
+     * @return the average percentage of each leaf that is used, or 0 if
+     *         there are no leaves
+     */
+    public double getAverageLeafFill() {
+        if (numLeafPages == 0)
+            return 0;
+
+        double totalSpace = (double) numLeafPages * dbFile.getPageSize();
+        return 100.0 * leafBytesUsed / totalSpace;
+    }
+
+
     /**
      * This method implements pass 1 of the verification process:  scanning
      * through all pages in the tuple file, collecting basic details about
@@ -222,7 +261,7 @@ public class BTreeFileVerifier {
         case BTREE_INNER_PAGE:
         {
             logger.trace("It's an inner page.");
-            InnerPage inner = new InnerPage(dbPage, tupleFile.getSchema());
+            InnerPage inner = new InnerPage(dbPage, tupleFile.getStorageSchema());
 
             ArrayList<Integer> refPages = new ArrayList<Integer>();
             int refInner = 0;
@@ -265,7 +304,7 @@ public class BTreeFileVerifier {
 
             int numKeys = inner.getNumKeys();
             ArrayList<TupleLiteral> keys = new ArrayList<TupleLiteral>(numKeys);
-            if (numKeys > 1) {
+            if (numKeys >= 1) {
                 Tuple prevKey = inner.getKey(0);
                 keys.add(new TupleLiteral(prevKey));
 
@@ -330,11 +369,42 @@ public class BTreeFileVerifier {
         case BTREE_LEAF_PAGE:
         {
             logger.trace("It's a leaf page.");
-            LeafPage leaf = new LeafPage(dbPage, tupleFile.getSchema());
+            LeafPage leaf = new LeafPage(dbPage, tupleFile.getStorageSchema());
 
-            // Make sure the keys are in the proper order in the page.
+            if (leaf.getUsedSpace() > leaf.getTotalSpace()) {
+                errors.add(String.format("Pass 2:  Leaf page %d's data " +
+                    "runs past the end of the page.", pageNo));
+            }
+
+            // Make sure the key prefix is the common prefix of the leading
+            // values of the first and last keys.  (The keys in between must
+            // share it, since they are checked to be in order below.)
 
             int numKeys = leaf.getNumTuples();
+            String keyPrefix = leaf.getKeyPrefix();
+            if (numKeys == 0) {
+                if (!keyPrefix.isEmpty()) {
+                    errors.add(String.format("Pass 2:  Leaf page %d is " +
+                        "empty but has a key prefix.", pageNo));
+                }
+            }
+            else {
+                int prefixLength = 0;
+                if (KeyCompression.hasPrefixColumn(leaf.getSchema())) {
+                    prefixLength = KeyCompression.getPrefixLength(
+                        leaf.getTuple(0), leaf.getTuple(numKeys - 1));
+                }
+
+                if (keyPrefix.length() != prefixLength) {
+                    errors.add(String.format("Pass 2:  Leaf page %d's key " +
+                        "prefix is %d characters, but its keys have a " +
+                        "common prefix of %d characters.", pageNo,
+                        keyPrefix.length(), prefixLength));
+                }
+            }
+
+            // Make sure the keys are in the proper order in the page.
+
             if (numKeys >= 1) {
                 Tuple prevKey = leaf.getTuple(0);
 
@@ -403,7 +473,7 @@ public class BTreeFileVerifier {
                     "page, but its type is %d instead", pageNo, pageType));
             }
 
-            InnerPage innerPage = new InnerPage(dbPage, tupleFile.getSchema());
+            InnerPage innerPage = new InnerPage(dbPage, tupleFile.getStorageSchema());
             pageNo = innerPage.getPointer(0);
             dbPage = storageManager.loadDBPage(dbFile, pageNo);
             pageType = dbPage.readUnsignedByte(0);
@@ -423,7 +493,9 @@ public class BTreeFileVerifier {
                 throw new ScanAbortedException();
             }
 
-            LeafPage leafPage = new LeafPage(dbPage, tupleFile.getSchema());
+            LeafPage leafPage = new LeafPage(dbPage, tupleFile.getStorageSchema());
+            numLeafPages++;
+            leafBytesUsed += leafPage.getUsedSpace();
 
             for (int k = 0; k < leafPage.getNumTuples(); k++) {
                 Tuple key = leafPage.getTuple(k);
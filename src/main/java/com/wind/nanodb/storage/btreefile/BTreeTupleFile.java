@@ -4,6 +4,7 @@ package com.wind.nanodb.storage.btreefile;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -13,16 +14,21 @@ import com.wind.nanodb.expressions.OrderByExpression;
 import com.wind.nanodb.expressions.TupleComparator;
 import com.wind.nanodb.expressions.TupleLiteral;
 import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.Schema;
 import com.wind.nanodb.relations.TableSchema;
 import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.BasicTupleCursor;
 import com.wind.nanodb.storage.DBFile;
 import com.wind.nanodb.storage.DBPage;
 import com.wind.nanodb.storage.FilePointer;
 import com.wind.nanodb.storage.InvalidFilePointerException;
 import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.ScanBounds;
 import com.wind.nanodb.storage.SequentialTupleFile;
 import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleCursor;
 import com.wind.nanodb.storage.TupleFileManager;
+import com.wind.nanodb.storage.TupleMoveListener;
 
 import static com.wind.nanodb.storage.btreefile.BTreePageTypes.*;
 
@@ -54,6 +60,37 @@ import static com.wind.nanodb.storage.btreefile.BTreePageTypes.*;
  *     an unsigned short stored at index 1 (after the page-type value in index
  *     0).  The final empty page stores 0 as its next-page pointer value.</li>
  * </ul>
+ * <p>
+ * Leaves are normally split in half.  When a full leaf at either end of the
+ * file is split because a tuple is being added past its end, as happens when
+ * keys are added in increasing or decreasing order, the leaf is instead
+ * split so that the page the tuple isn't added to is left as full as the
+ * file's <em>fill factor</em> specifies.  The fill factor is set with the
+ * {@link #PROP_FILL_FACTOR} property, and is stored in the header page.
+ * The fill factor also sets how full the pages are when an empty file is
+ * built from sorted tuples with {@link #loadSortedTuples}.
+ * </p>
+ * <p>
+ * Several threads can use the file at once.  Each page has a latch (see
+ * {@link PageLatches}), and operations couple latches on their way down
+ * from the root:  the latch on a child page is taken before the latch on
+ * its parent is released, so no thread ever sees a page whose parent is
+ * being changed under it.  Lookups and scans take shared latches.  Adding
+ * or deleting a tuple first takes shared latches on the inner pages and an
+ * exclusive latch on the leaf, and if the change can be made in the leaf
+ * alone, no other page is ever latched exclusively.  If the leaf must be
+ * split, or must take tuples from a sibling or be merged with one, the
+ * operation starts again from the root and latches the header page and
+ * every page on the path exclusively, along with the siblings it touches,
+ * until the change is finished.
+ * </p>
+ * <p>
+ * Latches are released before tuples are returned, so the tuples' column
+ * values are copied out of the leaf while it is still latched (see
+ * {@link BTreeFilePageTuple#copyValues}).  Other threads can then change the
+ * leaf without changing the values the caller reads.  Keeping rows from
+ * changing between statements is up to the caller's locking.
+ * </p>
  */
 public class BTreeTupleFile implements SequentialTupleFile {
     /** A logging object for reporting anything interesting that happens. */
@@ -69,6 +106,21 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public static final boolean CLEAR_OLD_DATA = true;
 
 
+    /**
+     * The table or index property that specifies the fill factor of the
+     * file's leaves, as a percentage from {@link #MIN_FILL_FACTOR} to 100.
+     */
+    public static final String PROP_FILL_FACTOR = "fillfactor";
+
+
+    /** The fill factor used when none is specified. */
+    public static final int DEFAULT_FILL_FACTOR = 90;
+
+
+    /** The smallest fill factor that may be specified. */
+    public static final int MIN_FILL_FACTOR = 10;
+
+
     /**
      * The storage manager to use for reading and writing file pages, pinning
      * and unpinning pages, write-ahead logging, and so forth.
@@ -88,10 +140,25 @@ public class BTreeTupleFile implements SequentialTupleFile {
     private TableSchema schema;
 
 
+    /**
+     * The schema that tuples are stored with in the file's pages, which
+     * stores <tt>CHAR</tt> columns without padding.  (See
+     * {@link KeyCompression#getStorageSchema}.)
+     */
+    private Schema storageSchema;
+
+
     /** Statistics for this tuple file. */
     private TableStats stats;
 
 
+    /**
+     * The percentage of a leaf that is filled when a leaf at either end of
+     * the file is split.
+     */
+    private int fillFactor;
+
+
     /** The file that stores the tuples. */
     private DBFile dbFile;
 
@@ -116,12 +183,44 @@ public class BTreeTupleFile implements SequentialTupleFile {
     private InnerPageOperations innerPageOps;
 
 
+    /** The latches on the file's pages. */
+    private PageLatches latches = new PageLatches();
+
+
+    /**
+     * How {@link #navigateToLeafPage} latches the pages it passes on its way
+     * down the tree.
+     */
+    private enum LatchMode {
+        /**
+         * Every page is latched in shared mode, and the latch on each page
+         * is released once its child is latched.  Only the leaf's latch is
+         * held when the navigation finishes.
+         */
+        READ,
+
+        /**
+         * Like {@link #READ}, except that the leaf is latched exclusively,
+         * so that tuples can be added to it or deleted from it.
+         */
+        WRITE_LEAF,
+
+        /**
+         * The header page and every page on the path are latched
+         * exclusively, and all of the latches are held, so that pages can
+         * be split or merged and the changes carried up the tree.
+         */
+        WRITE_PATH
+    }
+
+
     // private IndexInfo idxFileInfo;
 
 
     public BTreeTupleFile(StorageManager storageManager,
                           BTreeTupleFileManager btreeFileManager, DBFile dbFile,
-                          TableSchema schema, TableStats stats) {
+                          TableSchema schema, TableStats stats,
+                          int fillFactor) {
         if (storageManager == null)
             throw new IllegalArgumentException("storageManager cannot be null");
 
@@ -137,19 +236,99 @@ public class BTreeTupleFile implements SequentialTupleFile {
         if (stats == null)
             throw new IllegalArgumentException("stats cannot be null");
 
+        if (fillFactor < MIN_FILL_FACTOR || fillFactor > 100) {
+            throw new IllegalArgumentException(String.format(
+                "fillFactor must be in the range [%d, 100]; got %d",
+                MIN_FILL_FACTOR, fillFactor));
+        }
+
         this.storageManager = storageManager;
         this.btreeFileManager = btreeFileManager;
         this.dbFile = dbFile;
         this.schema = schema;
         this.stats = stats;
+        this.fillFactor = fillFactor;
+
+        storageSchema = KeyCompression.getStorageSchema(schema);
 
-        fileOps = new FileOperations(storageManager, dbFile);
+        fileOps = new FileOperations(storageManager, dbFile, latches);
         innerPageOps = new InnerPageOperations(storageManager, this, fileOps);
         leafPageOps = new LeafPageOperations(storageManager, this, fileOps,
                                              innerPageOps);
     }
 
 
+    /**
+     * Parses the value of the {@link #PROP_FILL_FACTOR} property.
+     *
+     * @param value the value of the property, or {@code null} if it isn't
+     *        set
+     *
+     * @return the fill factor, or {@link #DEFAULT_FILL_FACTOR} if the
+     *         property isn't set
+     *
+     * @throws IllegalArgumentException if the value isn't an integer in the
+     *         range [{@link #MIN_FILL_FACTOR}, 100]
+     */
+    public static int parseFillFactor(String value) {
+        if (value == null)
+            return DEFAULT_FILL_FACTOR;
+
+        int fillFactor;
+        try {
+            fillFactor = Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            fillFactor = -1;
+        }
+
+        if (fillFactor < MIN_FILL_FACTOR || fillFactor > 100) {
+            throw new IllegalArgumentException(String.format(
+                "%s must be an integer in the range [%d, 100]; got %s",
+                PROP_FILL_FACTOR, MIN_FILL_FACTOR, value));
+        }
+
+        return fillFactor;
+    }
+
+
+    /**
+     * Returns the fill factor of the file's leaves:  the percentage of a leaf
+     * that is filled when a leaf at either end of the file is split.
+     *
+     * @return the fill factor, as a percentage
+     */
+    public int getFillFactor() {
+        return fillFactor;
+    }
+
+
+    /**
+     * Returns the height of the tree:  the number of pages that are read to
+     * get from the root page to a leaf page.  Query planners use this to
+     * estimate the cost of looking up keys in the file.
+     *
+     * @return the height of the tree, or 0 if the file has no data pages
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public int getHeight() throws IOException {
+        ArrayList<Integer> pagePath = new ArrayList<>();
+        try {
+            LeafPage leaf = navigateToLeafPage(new TupleLiteral(), false,
+                pagePath, LatchMode.READ);
+            if (leaf == null)
+                return 0;
+
+            leaf.getDBPage().unpin();
+            return pagePath.size();
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
     @Override
     public TupleFileManager getManager() {
         return btreeFileManager;
@@ -161,6 +340,18 @@ public class BTreeTupleFile implements SequentialTupleFile {
         return schema;
     }
 
+    /**
+     * Returns the schema that tuples are stored with in the file's pages.
+     * Values read from the pages are the same as if they were stored with
+     * {@link #getSchema}.
+     *
+     * @return the storage schema of the file's tuples
+     */
+    Schema getStorageSchema() {
+        return storageSchema;
+    }
+
+
     @Override
     public TableStats getStats() {
         return stats;
@@ -172,6 +363,17 @@ public class BTreeTupleFile implements SequentialTupleFile {
     }
 
 
+    /**
+     * Returns the latches on the file's pages, so that the helpers that
+     * change the tree's structure can latch the pages they load.
+     *
+     * @return the latches on the file's pages
+     */
+    PageLatches getLatches() {
+        return latches;
+    }
+
+
     @Override
     public List<OrderByExpression> getOrderSpec() {
         throw new UnsupportedOperationException("NYI");
@@ -186,18 +388,70 @@ public class BTreeTupleFile implements SequentialTupleFile {
         // navigateToLeafPage() method to choose the leftmost leaf page.
 
         TupleLiteral noTup = new TupleLiteral();
-        LeafPage leaf = navigateToLeafPage(noTup, false, null);
+        try {
+            LeafPage leaf = navigateToLeafPage(noTup, false, null,
+                LatchMode.READ);
 
-        if (leaf != null && leaf.getNumTuples() > 0)
-            tup = leaf.getTuple(0);
+            if (leaf != null && leaf.getNumTuples() > 0) {
+                tup = leaf.getTuple(0);
+                tup.copyValues();
+            }
+        }
+        finally {
+            latches.unlockAll();
+        }
 
         return tup;
     }
 
 
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple) {
+        return new BasicTupleCursor(this, reuseTuple);
+    }
+
+
+    /** B<sup>+</sup> tree files have no page summaries to use the bounds. */
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple, ScanBounds bounds) {
+        return openCursor(reuseTuple);
+    }
+
+
     @Override
     public Tuple getNextTuple(Tuple tup) throws IOException {
-        BTreeFilePageTuple tuple = (BTreeFilePageTuple) tup;
+        try {
+            return copyValues(getNextTupleLatched((BTreeFilePageTuple) tup));
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * Copies a tuple's column values out of its leaf, which the caller must
+     * still have latched, so that the tuple can be returned once the latch
+     * is released.
+     *
+     * @param tup the tuple to copy the values of, or {@code null}
+     *
+     * @return the tuple that was passed in
+     */
+    private static <T extends Tuple> T copyValues(T tup) {
+        if (tup != null)
+            ((BTreeFilePageTuple) tup).copyValues();
+
+        return tup;
+    }
+
+
+    /**
+     * This helper implements {@link #getNextTuple}, latching each page it
+     * reads in shared mode.  The caller releases the latches.
+     */
+    private Tuple getNextTupleLatched(BTreeFilePageTuple tuple)
+        throws IOException {
 
         DBPage dbPage;
         int nextIndex;
@@ -210,10 +464,11 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
             int nextPageNo = tuple.getNextTuplePageNo();
             if (nextPageNo != 0) {
+                latches.lockShared(nextPageNo);
                 dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
                 nextIndex = tuple.getNextTupleIndex();
 
-                leaf = new LeafPage(dbPage, schema);
+                leaf = new LeafPage(dbPage, storageSchema);
                 if (nextIndex >= leaf.getNumTuples()) {
                     throw new IllegalStateException(String.format(
                         "The \"next tuple\" field of deleted tuple is too " +
@@ -228,7 +483,8 @@ public class BTreeTupleFile implements SequentialTupleFile {
             // Get the page that holds the current entry, and see where it
             // falls within the page.
             dbPage = tuple.getDBPage();
-            leaf = new LeafPage(dbPage, schema);
+            latches.lockShared(dbPage.getPageNo());
+            leaf = new LeafPage(dbPage, storageSchema);
 
             // Use the offset of the passed-in entry to find the next entry.
 
@@ -245,9 +501,18 @@ public class BTreeTupleFile implements SequentialTupleFile {
                 // No more entries in this leaf.  Must go to the next leaf.
                 int nextPageNo = leaf.getNextPageNo();
                 if (nextPageNo != 0) {
+                    if (!latches.tryLockShared(nextPageNo)) {
+                        // Another thread is changing the next leaf, and may
+                        // be waiting for this one (see loadNextLeaf).  Let
+                        // it finish, then search for the tuple's successor.
+                        TupleLiteral key = new TupleLiteral(tuple);
+                        latches.unlockAll();
+                        return findFirstTupleGreaterThan(key);
+                    }
+
                     dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
 
-                    leaf = new LeafPage(dbPage, schema);
+                    leaf = new LeafPage(dbPage, storageSchema);
                     if (leaf.getNumTuples() > 0) {
                         nextTuple = leaf.getTuple(0);
                     }
@@ -270,28 +535,39 @@ public class BTreeTupleFile implements SequentialTupleFile {
         throws InvalidFilePointerException, IOException {
 
         DBPage dbPage;
+        latches.lockShared(fptr.getPageNo());
         try {
-            // This could throw EOFException if page doesn't actually exist.
-            dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
-        }
-        catch (EOFException eofe) {
-            throw new InvalidFilePointerException("Specified page " +
-                fptr.getPageNo() + " doesn't exist in file " + dbFile, eofe);
-        }
+            try {
+                // This could throw EOFException if page doesn't actually
+                // exist.
+                dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
+            }
+            catch (EOFException eofe) {
+                throw new InvalidFilePointerException("Specified page " +
+                    fptr.getPageNo() + " doesn't exist in file " + dbFile,
+                    eofe);
+            }
 
-        // In the B+ tree file format, the file-pointer points to the actual
-        // tuple itself.
+            // In the B+ tree file format, the file-pointer points to the
+            // actual tuple itself.
 
-        int fpOffset = fptr.getOffset();
-        LeafPage leaf = new LeafPage(dbPage, schema);
-        for (int i = 0; i < leaf.getNumTuples(); i++) {
-            BTreeFilePageTuple tup = leaf.getTuple(i);
-            if (tup.getOffset() == fpOffset)
-                return tup;
+            int fpOffset = fptr.getOffset();
+            LeafPage leaf = new LeafPage(dbPage, storageSchema);
+            for (int i = 0; i < leaf.getNumTuples(); i++) {
+                BTreeFilePageTuple tup = leaf.getTuple(i);
+                if (tup.getOffset() == fpOffset) {
+                    tup.copyValues();
+                    return tup;
+                }
 
-            // Tuple offsets within a page will be monotonically increasing.
-            if (tup.getOffset() > fpOffset)
-                break;
+                // Tuple offsets within a page will be monotonically
+                // increasing.
+                if (tup.getOffset() > fpOffset)
+                    break;
+            }
+        }
+        finally {
+            latches.unlockAll();
         }
 
         throw new InvalidFilePointerException("No tuple at offset " + fptr);
@@ -303,16 +579,33 @@ public class BTreeTupleFile implements SequentialTupleFile {
         logger.debug("Finding first tuple that equals " + searchKey +
             " in BTree file " + dbFile);
 
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
+        try {
+            return copyValues(findFirstTupleEqualsLatched(searchKey));
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * This helper implements {@link #findFirstTupleEquals}, latching the
+     * pages it reads in shared mode.  The caller releases the latches.
+     */
+    private Tuple findFirstTupleEqualsLatched(Tuple searchKey)
+        throws IOException {
+
+        LeafPage leaf = navigateToLeafPage(searchKey, false, null,
+            LatchMode.READ);
         if (leaf == null) {
             logger.debug("BTree file is empty!");
             return null;
         }
 
         logger.debug("Navigated to leaf page " + leaf.getPageNo());
-        if (leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
+        while (leaf != null) {
+            // Scan through the leaf to find the first tuple that equals what
+            // we are looking for.
             for (int i = 0; i < leaf.getNumTuples(); i++) {
                 BTreeFilePageTuple tup = leaf.getTuple(i);
                 int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
@@ -330,9 +623,12 @@ public class BTreeTupleFile implements SequentialTupleFile {
                     return null;
                 }
             }
+
+            // Separator keys are truncated, so the first match can be at the
+            // start of the next leaf.
+            leaf = loadNextLeaf(leaf, searchKey);
         }
 
-        leaf.getDBPage().unpin();
         return null;
     }
 
@@ -340,23 +636,111 @@ public class BTreeTupleFile implements SequentialTupleFile {
     @Override
     public PageTuple findFirstTupleGreaterThan(Tuple searchKey)
         throws IOException {
+        return findFirstTupleAfter(searchKey, false);
+    }
 
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
 
-        if (leaf != null && leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
-                BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                if (cmp > 0)
-                    return tup;  // Found it!
+    @Override
+    public PageTuple findFirstTupleGreaterOrEqual(Tuple searchKey)
+        throws IOException {
+        return findFirstTupleAfter(searchKey, true);
+    }
+
+
+    /**
+     * This helper implements {@link #findFirstTupleGreaterThan} and
+     * {@link #findFirstTupleGreaterOrEqual}.
+     *
+     * @param searchKey the tuple to search for
+     *
+     * @param orEqual true if a tuple equal to the search key is wanted, or
+     *        false if only a greater tuple is
+     *
+     * @return the first tuple found, or {@code null} if there is none
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    private PageTuple findFirstTupleAfter(Tuple searchKey, boolean orEqual)
+        throws IOException {
+
+        try {
+            LeafPage leaf = navigateToLeafPage(searchKey, false, null,
+                LatchMode.READ);
+
+            while (leaf != null) {
+                // Scan through the leaf to find the first tuple that is
+                // greater than what we are looking for.
+                for (int i = 0; i < leaf.getNumTuples(); i++) {
+                    BTreeFilePageTuple tup = leaf.getTuple(i);
+                    int cmp =
+                        TupleComparator.comparePartialTuples(tup, searchKey);
+                    if (cmp > 0 || (cmp == 0 && orEqual)) {
+                        // Found it!
+                        tup.copyValues();
+                        return tup;
+                    }
+                }
+
+                // If every tuple in this leaf comes before the tuple that
+                // is wanted, the answer is at the start of the next leaf.
+                leaf = loadNextLeaf(leaf, searchKey);
             }
 
-            leaf.getDBPage().unpin();
+            return null;
+        }
+        finally {
+            latches.unlockAll();
         }
+    }
 
-        return null;
+
+    /**
+     * <p>
+     * This helper unpins a leaf page and loads the next leaf in the file,
+     * moving the current thread's shared latch from one to the other.
+     * </p>
+     * <p>
+     * Threads that merge leaves or move tuples between them latch the left
+     * leaf before the right one, so waiting for the next leaf's latch while
+     * holding this one could deadlock.  The next leaf is only latched if
+     * that can be done without waiting.  Otherwise the latch on this leaf
+     * is released, and the tree is searched again from the root for the
+     * leaf where the resume key would appear, once the other thread is done.
+     * </p>
+     *
+     * @param leaf the current leaf page, which the current thread has
+     *        latched
+     *
+     * @param resumeKey the key to search for if the next leaf can't be
+     *        latched right away, which must not be greater than any key the
+     *        caller hasn't looked at yet
+     *
+     * @return the next leaf page, or {@code null} if this is the last leaf
+     *
+     * @throws IOException if an IO error occurs while loading the next leaf
+     */
+    private LeafPage loadNextLeaf(LeafPage leaf, Tuple resumeKey)
+        throws IOException {
+
+        int nextPageNo = leaf.getNextPageNo();
+        boolean nextLatched =
+            (nextPageNo == 0 || latches.tryLockShared(nextPageNo));
+
+        leaf.getDBPage().unpin();
+        latches.unlock(leaf.getPageNo());
+
+        if (nextPageNo == 0)
+            return null;
+
+        if (!nextLatched) {
+            logger.debug(String.format("Leaf %d of BTree file %s is " +
+                "latched by another thread; searching again from the root",
+                nextPageNo, dbFile));
+            return navigateToLeafPage(resumeKey, false, null, LatchMode.READ);
+        }
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+        return new LeafPage(dbPage, storageSchema);
     }
 
 
@@ -364,20 +748,399 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple addTuple(Tuple tup) throws IOException {
         logger.debug("Adding tuple " + tup + " to BTree file " + dbFile);
 
-        // Navigate to the leaf-page, creating one if the BTree file is
-        // currently empty.
-        ArrayList<Integer> pagePath = new ArrayList<>();
-        LeafPage leaf = navigateToLeafPage(tup, true, pagePath);
-
         // TODO:  This is definitely not ideal, but should get us going.
         TupleLiteral tupLit;
         if (tup instanceof TupleLiteral)
             tupLit = (TupleLiteral) tup;
         else
             tupLit = new TupleLiteral(tup);
-        tupLit.setStorageSize(PageTuple.getTupleStorageSize(schema, tupLit));
+        tupLit.setStorageSize(
+            PageTuple.getTupleStorageSize(storageSchema, tupLit));
 
-        return leafPageOps.addTuple(leaf, tupLit, pagePath);
+        ArrayList<Integer> pagePath = new ArrayList<>();
+        try {
+            // Usually the tuple fits in its leaf, and the leaf is the only
+            // page that has to be latched exclusively.
+            LeafPage leaf = navigateToLeafPage(tupLit, false, pagePath,
+                LatchMode.WRITE_LEAF);
+            if (leaf != null) {
+                if (leaf.canAddTuple(tupLit))
+                    return copyValues(leaf.addTuple(tupLit));
+
+                leaf.getDBPage().unpin();
+            }
+            latches.unlockAll();
+            pagePath.clear();
+
+            // The leaf must be split or have tuples moved to a sibling, or
+            // the file is empty.  Navigate to the leaf again, latching the
+            // whole path, creating a leaf if the file has none.
+            leaf = navigateToLeafPage(tupLit, true, pagePath,
+                LatchMode.WRITE_PATH);
+            return copyValues(leafPageOps.addTuple(leaf, tupLit, pagePath));
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * Adds a batch of tuples that are already sorted in the file's order.
+     * Instead of navigating from the root for every tuple, this keeps the
+     * leaf that the previous tuple went into, along with the separator that
+     * bounds the leaf on the right, and adds the next tuple to the same leaf
+     * as long as it falls before that separator and fits in the leaf.  The
+     * tree is only navigated again when a tuple belongs in a later leaf, or
+     * after a leaf had to be split.  The current leaf stays latched
+     * exclusively while tuples are added to it, so that its separator can't
+     * change.
+     */
+    @Override
+    public void addSortedTuples(List<? extends Tuple> tuples)
+        throws IOException {
+
+        try {
+            addSortedTuplesLatched(tuples);
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * This helper implements {@link #addSortedTuples}.  The caller releases
+     * the latches that are still held when it returns.
+     */
+    private void addSortedTuplesLatched(List<? extends Tuple> tuples)
+        throws IOException {
+
+        LeafPage leaf = null;
+        ArrayList<Integer> pagePath = new ArrayList<>();
+        TupleLiteral upperBound = null;
+        int numNavigations = 0;
+
+        for (Tuple tup : tuples) {
+            TupleLiteral tupLit;
+            if (tup instanceof TupleLiteral)
+                tupLit = (TupleLiteral) tup;
+            else
+                tupLit = new TupleLiteral(tup);
+            tupLit.setStorageSize(
+                PageTuple.getTupleStorageSize(storageSchema, tupLit));
+
+            if (leaf != null && upperBound != null &&
+                TupleComparator.comparePartialTuples(tupLit, upperBound) >= 0) {
+                // The tuple belongs in a later leaf.
+                leaf.getDBPage().unpin();
+                latches.unlockAll();
+                leaf = null;
+            }
+
+            if (leaf == null) {
+                ArrayList<TupleLiteral> upperBounds = new ArrayList<>();
+                pagePath.clear();
+                leaf = navigateToLeafPage(tupLit, false, pagePath,
+                    upperBounds, LatchMode.WRITE_LEAF);
+                upperBound = upperBounds.isEmpty() ? null :
+                    upperBounds.get(upperBounds.size() - 1);
+                numNavigations++;
+            }
+
+            if (leaf != null && leaf.canAddTuple(tupLit)) {
+                leaf.addTuple(tupLit);
+            }
+            else {
+                // The leaf must be split, or its tuples relocated, or the
+                // file is empty.  Navigate again, latching the whole path.
+                // Afterward the leaf and its separators are no longer known.
+                if (leaf != null)
+                    leaf.getDBPage().unpin();
+                latches.unlockAll();
+
+                pagePath.clear();
+                leaf = navigateToLeafPage(tupLit, true, pagePath,
+                    LatchMode.WRITE_PATH);
+                leafPageOps.addTuple(leaf, tupLit, pagePath);
+                latches.unlockAll();
+                leaf = null;
+                numNavigations++;
+            }
+        }
+
+        if (leaf != null)
+            leaf.getDBPage().unpin();
+
+        logger.debug(String.format("Added %d sorted tuples to BTree file " +
+            "%s with %d navigations from the root", tuples.size(), dbFile,
+            numNavigations));
+    }
+
+
+    /**
+     * Deletes a batch of tuples that are already sorted in the file's order.
+     * Like {@link #addSortedTuples}, this stays on the current leaf for as
+     * long as the next tuple falls before the leaf's right separator, and
+     * only navigates from the root again when it moves on to a later leaf,
+     * or after a deletion caused the leaf to be coalesced with a sibling or
+     * to take tuples from one.
+     */
+    @Override
+    public int deleteSortedTuples(List<? extends Tuple> tuples)
+        throws IOException {
+
+        try {
+            return deleteSortedTuplesLatched(tuples);
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * This helper implements {@link #deleteSortedTuples}.  The caller
+     * releases the latches that are still held when it returns.
+     */
+    private int deleteSortedTuplesLatched(List<? extends Tuple> tuples)
+        throws IOException {
+
+        LeafPage leaf = null;
+        ArrayList<Integer> pagePath = new ArrayList<>();
+        TupleLiteral upperBound = null;
+        int numDeleted = 0;
+
+        for (Tuple tup : tuples) {
+            if (leaf != null && upperBound != null &&
+                TupleComparator.comparePartialTuples(tup, upperBound) >= 0) {
+                leaf.getDBPage().unpin();
+                latches.unlockAll();
+                leaf = null;
+            }
+
+            if (leaf == null) {
+                ArrayList<TupleLiteral> upperBounds = new ArrayList<>();
+                pagePath.clear();
+                leaf = navigateToLeafPage(tup, false, pagePath, upperBounds,
+                    LatchMode.WRITE_LEAF);
+                if (leaf == null) {
+                    // The file is empty, so none of the remaining tuples
+                    // can be found.
+                    break;
+                }
+
+                upperBound = upperBounds.isEmpty() ? null :
+                    upperBounds.get(upperBounds.size() - 1);
+            }
+
+            int index = leaf.getTupleIndex(tup);
+            if (index == -1)
+                continue;
+
+            numDeleted++;
+            if (canDeleteFromLeaf(leaf, index, pagePath)) {
+                leaf.deleteTuple(tup);
+                continue;
+            }
+
+            // The leaf will have to take tuples from a sibling or be merged
+            // with one.  Navigate again, latching the whole path.
+            leaf.getDBPage().unpin();
+            latches.unlockAll();
+
+            pagePath.clear();
+            leaf = navigateToLeafPage(tup, false, pagePath,
+                LatchMode.WRITE_PATH);
+            if (leafPageOps.deleteTuple(leaf, tup, pagePath))
+                leaf.getDBPage().unpin();
+
+            latches.unlockAll();
+            leaf = null;
+        }
+
+        if (leaf != null)
+            leaf.getDBPage().unpin();
+
+        return numDeleted;
+    }
+
+
+    /**
+     * Builds the tree from the bottom up.  The leaves are filled from left
+     * to right, each one as full as the file's fill factor specifies, and
+     * the separator between each pair of neighboring leaves is recorded.
+     * Then each level of inner pages is built over the level below it in the
+     * same way, until a level has a single page, which becomes the root.
+     * No page is ever split, and the tree is never navigated from the root.
+     */
+    @Override
+    public long loadSortedTuples(Iterator<? extends Tuple> tuples)
+        throws IOException {
+
+        // The file is empty, so no other thread can be using its pages.
+        // Latching the header page keeps other threads out until the root
+        // is set.
+        latches.lockExclusive(0);
+        try {
+            return loadSortedTuplesLatched(tuples);
+        }
+        finally {
+            latches.unlockAll();
+        }
+    }
+
+
+    /**
+     * This helper implements {@link #loadSortedTuples}, once the header page
+     * has been latched.
+     */
+    private long loadSortedTuplesLatched(Iterator<? extends Tuple> tuples)
+        throws IOException {
+
+        DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+        if (HeaderPage.getRootPageNo(dbpHeader) != 0) {
+            dbpHeader.unpin();
+            throw new IllegalStateException("Can't load sorted tuples into " +
+                "BTree file " + dbFile + ", since it isn't empty");
+        }
+
+        int targetSize = dbFile.getPageSize() * fillFactor / 100;
+
+        // The page numbers of the pages on the level being built, and the
+        // separators between them.
+        ArrayList<Integer> pageNos = new ArrayList<>();
+        ArrayList<TupleLiteral> separators = new ArrayList<>();
+
+        LeafPage leaf = null;
+        TupleLiteral prevTuple = null;
+        long numTuples = 0;
+        while (tuples.hasNext()) {
+            Tuple tup = tuples.next();
+            TupleLiteral tupLit;
+            if (tup instanceof TupleLiteral)
+                tupLit = (TupleLiteral) tup;
+            else
+                tupLit = new TupleLiteral(tup);
+            tupLit.setStorageSize(
+                PageTuple.getTupleStorageSize(storageSchema, tupLit));
+
+            if (prevTuple != null &&
+                TupleComparator.compareTuples(prevTuple, tupLit) >= 0) {
+                throw new IllegalArgumentException("Tuples must be sorted " +
+                    "in increasing order:  " + tupLit + " follows " +
+                    prevTuple);
+            }
+
+            if (leaf != null && !fitsInLeaf(leaf, tupLit, targetSize)) {
+                LeafPage nextLeaf =
+                    LeafPage.init(fileOps.getNewDataPage(), storageSchema);
+                leaf.setNextPageNo(nextLeaf.getPageNo());
+                leaf.getDBPage().unpin();
+
+                separators.add(KeyCompression.getSeparator(prevTuple, tupLit));
+                pageNos.add(nextLeaf.getPageNo());
+                leaf = nextLeaf;
+            }
+
+            if (leaf == null) {
+                leaf = LeafPage.init(fileOps.getNewDataPage(), storageSchema);
+                pageNos.add(leaf.getPageNo());
+            }
+
+            leaf.addTuple(tupLit);
+            prevTuple = tupLit;
+            numTuples++;
+        }
+
+        if (leaf == null) {
+            // There were no tuples, so the file stays empty.
+            dbpHeader.unpin();
+            return 0;
+        }
+
+        leaf.getDBPage().unpin();
+        HeaderPage.setFirstLeafPageNo(dbpHeader, pageNos.get(0));
+        int numLeaves = pageNos.size();
+
+        while (pageNos.size() > 1) {
+            ArrayList<Integer> parentPageNos = new ArrayList<>();
+            ArrayList<TupleLiteral> parentSeparators = new ArrayList<>();
+
+            int numPages = pageNos.size();
+            int start = 0;
+            while (start < numPages) {
+                // Choose the pointers for the next inner page.  Every inner
+                // page needs at least two pointers, including the last one.
+                int end = start + 1;
+                int size = InnerPage.OFFSET_FIRST_POINTER + 2;
+                while (end < numPages) {
+                    int entrySize = 2 + PageTuple.getTupleStorageSize(
+                        storageSchema, separators.get(end - 1));
+                    if (end - start >= 2 && size + entrySize > targetSize)
+                        break;
+
+                    size += entrySize;
+                    end++;
+                }
+
+                if (numPages - end == 1) {
+                    if (end - start > 2)
+                        end--;
+                    else
+                        end++;
+                }
+
+                InnerPage inner = InnerPage.init(fileOps.getNewDataPage(),
+                    storageSchema, pageNos.get(start), separators.get(start),
+                    pageNos.get(start + 1));
+                for (int i = start + 2; i < end; i++) {
+                    inner.addEntry(pageNos.get(i - 1), separators.get(i - 1),
+                        pageNos.get(i));
+                }
+                inner.getDBPage().unpin();
+
+                // The separator between this page's pointers and the next
+                // page's pointers moves up to the parent level.
+                parentPageNos.add(inner.getPageNo());
+                if (end < numPages)
+                    parentSeparators.add(separators.get(end - 1));
+
+                start = end;
+            }
+
+            pageNos = parentPageNos;
+            separators = parentSeparators;
+        }
+
+        HeaderPage.setRootPageNo(dbpHeader, pageNos.get(0));
+        dbpHeader.unpin();
+
+        logger.debug(String.format("Loaded %d sorted tuples into %d leaves " +
+            "of BTree file %s", numTuples, numLeaves, dbFile));
+
+        return numTuples;
+    }
+
+
+    /**
+     * Returns true if a tuple can be added to the end of a leaf that is
+     * being filled by {@link #loadSortedTuples}, without filling the leaf
+     * past the target size.  An empty leaf always takes the tuple.
+     */
+    private boolean fitsInLeaf(LeafPage leaf, TupleLiteral tup,
+                               int targetSize) {
+        int numTuples = leaf.getNumTuples();
+        if (numTuples == 0)
+            return true;
+
+        if (!leaf.canAddTuple(tup))
+            return false;
+
+        int fullSize = leaf.getFullSizeOfTuples() +
+            PageTuple.getTupleStorageSize(storageSchema, tup);
+        return leaf.getStorageSize(leaf.getTuple(0), tup, numTuples + 1,
+            fullSize) <= targetSize;
     }
 
 
@@ -393,16 +1156,81 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public void deleteTuple(Tuple tup) throws IOException {
         BTreeFilePageTuple tuple = (BTreeFilePageTuple) tup;
 
-        ArrayList<Integer> pagePath = new ArrayList<>();
-        LeafPage leaf = navigateToLeafPage(tup, false, pagePath);
-
         logger.debug("Deleting tuple " + tuple + " from file " + dbFile);
 
-        leafPageOps.deleteTuple(leaf, tuple, pagePath);
+        // The tuple is read again after its leaf is unlatched, so search
+        // with a copy of it.
+        TupleLiteral searchKey = new TupleLiteral(tuple);
+
+        ArrayList<Integer> pagePath = new ArrayList<>();
+        try {
+            // Usually the leaf stays at least half full, and the leaf is the
+            // only page that has to be latched exclusively.
+            LeafPage leaf = navigateToLeafPage(searchKey, false, pagePath,
+                LatchMode.WRITE_LEAF);
+            int index = leaf.getTupleIndex(tuple);
+            if (index != -1 && canDeleteFromLeaf(leaf, index, pagePath)) {
+                leaf.deleteTuple(tuple);
+            }
+            else {
+                // The leaf will have to take tuples from a sibling or be
+                // merged with one.  Navigate again, latching the whole path.
+                leaf.getDBPage().unpin();
+                latches.unlockAll();
+
+                pagePath.clear();
+                leaf = navigateToLeafPage(searchKey, false, pagePath,
+                    LatchMode.WRITE_PATH);
+                leafPageOps.deleteTuple(leaf, tuple, pagePath);
+            }
+        }
+        finally {
+            latches.unlockAll();
+        }
+
         tuple.setDeleted();
     }
 
 
+    /**
+     * Returns true if a tuple can be deleted from a leaf without the leaf
+     * having to take tuples from a sibling or be merged with one, so that
+     * no other page changes.  This makes the same checks as
+     * {@link LeafPageOperations#deleteTuple}:  the leaf must still be at
+     * least half full afterward, unless it is the root, which must just not
+     * become empty.
+     *
+     * @param leaf the leaf to delete the tuple from
+     *
+     * @param index the index of the tuple in the leaf
+     *
+     * @param pagePath the path of pages taken from the root page to the leaf
+     *
+     * @return true if the tuple can be deleted from the leaf alone
+     */
+    private boolean canDeleteFromLeaf(LeafPage leaf, int index,
+                                      List<Integer> pagePath) {
+        if (pagePath.size() == 1)
+            return leaf.getNumTuples() > 1;
+
+        return leaf.getUsedSpaceAfterDelete(index) >= leaf.getTotalSpace() / 2;
+    }
+
+
+    /**
+     * Navigates from the root of the B<sup>+</sup> tree down to the leaf
+     * where the search-key would appear, without recording the separators
+     * that bound the leaf.  See {@link #navigateToLeafPage(Tuple, boolean,
+     * List, List, LatchMode)} for details.
+     */
+    private LeafPage navigateToLeafPage(Tuple searchKey,
+        boolean createIfNeeded, List<Integer> pagePath, LatchMode latchMode)
+        throws IOException {
+        return navigateToLeafPage(searchKey, createIfNeeded, pagePath, null,
+            latchMode);
+    }
+
+
     /**
      * This helper method performs the common task of navigating from the root
      * of the B<sup>+</sup> tree down to the appropriate leaf node, based on
@@ -424,6 +1252,19 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *        from root to leaf.  If {@code null} is passed then nothing is
      *        stored as the method traverses the B<sup>+</sup> tree structure.
      *
+     * @param upperBounds If this optional argument is specified, then the
+     *        method stores a copy of the separator key to the right of each
+     *        pointer it follows, skipping inner pages where it follows the
+     *        last pointer.  The last key stored is the tightest bound on the
+     *        keys in the leaf; if nothing is stored, the leaf is the last one
+     *        in the file.
+     *
+     * @param latchMode how the pages on the path are latched.  The latches
+     *        that are still held when this method returns are released by
+     *        the caller, with {@link PageLatches#unlockAll}.  Only
+     *        {@link LatchMode#WRITE_PATH} may be used with
+     *        {@code createIfNeeded}.
+     *
      * @return the leaf-page where the search-key would appear, or
      *         {@code null} if the B<sup>+</sup> tree file is currently empty
      *         and {@code createIfNeeded} is {@code false}.
@@ -432,9 +1273,22 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *         B<sup>+</sup> tree file's structure
      */
     private LeafPage navigateToLeafPage(Tuple searchKey,
-        boolean createIfNeeded, List<Integer> pagePath) throws IOException {
+        boolean createIfNeeded, List<Integer> pagePath,
+        List<TupleLiteral> upperBounds, LatchMode latchMode)
+        throws IOException {
 
-        // The header page tells us where the root page starts.
+        assert !createIfNeeded || latchMode == LatchMode.WRITE_PATH;
+
+        // The header page tells us where the root page starts.  Its latch
+        // guards the root page number, so it is held until the root page is
+        // latched.
+        if (latchMode == LatchMode.WRITE_PATH) {
+            latches.beginStructureChange();
+            latches.lockExclusive(0);
+        }
+        else {
+            latches.lockShared(0);
+        }
         DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
 
         // Get the root page of the BTree file.
@@ -444,8 +1298,10 @@ public class BTreeTupleFile implements SequentialTupleFile {
             // The file doesn't have any data-pages at all yet.  Create one if
             // the caller wants it.
 
-            if (!createIfNeeded)
+            if (!createIfNeeded) {
+                dbpHeader.unpin();
                 return null;
+            }
 
             // We need to create a brand new leaf page and make it the root.
 
@@ -457,15 +1313,17 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
             HeaderPage.setRootPageNo(dbpHeader, rootPageNo);
             HeaderPage.setFirstLeafPageNo(dbpHeader, rootPageNo);
+            dbpHeader.unpin();
 
             dbpRoot.writeByte(0, BTREE_LEAF_PAGE);
-            LeafPage.init(dbpRoot, schema);
+            LeafPage.init(dbpRoot, storageSchema);
 
             logger.debug("New root pageNo is " + rootPageNo);
         }
         else {
             // The BTree file has a root page; load it.
-            dbpRoot = storageManager.loadDBPage(dbFile, rootPageNo);
+            dbpHeader.unpin();
+            dbpRoot = loadChildPage(rootPageNo, 0, latchMode);
 
             logger.debug("BTree file root pageNo is " + rootPageNo);
         }
@@ -481,20 +1339,84 @@ public class BTreeTupleFile implements SequentialTupleFile {
         if (pagePath != null)
             pagePath.add(rootPageNo);
 
-        /* TODO:  IMPLEMENT THE REST OF THIS METHOD.
-         *
-         * Don't forget to update the page-path as you navigate the index
-         * structure, if it is provided by the caller.
-         *
-         * Use the TupleComparator.comparePartialTuples() method for comparing
-         * the index's keys with the passed-in search key.
-         *
-         * It's always a good idea to code defensively:  if you see an invalid
-         * page-type, flag it with an IOException, as done earlier.
-         */
-        logger.error("NOT YET IMPLEMENTED:  navigateToLeafPage()");
+        // A search key with fewer columns than the file's tuples matches a
+        // range of tuples, which can start just to the left of a separator
+        // that equals the search key on those columns.
+        boolean partialKey = searchKey.getColumnCount() < schema.numColumns();
+
+        while (pageType == BTREE_INNER_PAGE) {
+            InnerPage inner = new InnerPage(dbPage, storageSchema);
+
+            // Follow the pointer to the left of the first key that is
+            // greater than the search key.  Keys in the subtree to the right
+            // of a separator are greater than or equal to it.
+            int numKeys = inner.getNumKeys();
+            int i = 0;
+            while (i < numKeys) {
+                int cmp = TupleComparator.comparePartialTuples(searchKey,
+                    inner.getKey(i));
+                if (cmp < 0 || (cmp == 0 && partialKey))
+                    break;
+
+                i++;
+            }
 
-        return null;
+            if (upperBounds != null && i < numKeys)
+                upperBounds.add(new TupleLiteral(inner.getKey(i)));
+
+            int childPageNo = inner.getPointer(i);
+            dbPage.unpin();
+            dbPage = loadChildPage(childPageNo, inner.getPageNo(), latchMode);
+
+            pageType = dbPage.readByte(0);
+            if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
+                throw new IOException("Invalid page type encountered:  " + pageType);
+
+            if (pagePath != null)
+                pagePath.add(childPageNo);
+        }
+
+        return new LeafPage(dbPage, storageSchema);
+    }
+
+
+    /**
+     * This helper latches and loads a page on the way down the tree, while
+     * the current thread still holds the latch on the page's parent (or on
+     * the header page, for the root page).  Unless the whole path is being
+     * latched, the parent's latch is then released.
+     *
+     * @param pageNo the number of the page to load
+     *
+     * @param parentPageNo the number of the page's parent, or 0 for the
+     *        root page
+     *
+     * @param latchMode how the page is latched
+     *
+     * @return the loaded page
+     *
+     * @throws IOException if an IO error occurs while loading the page
+     */
+    private DBPage loadChildPage(int pageNo, int parentPageNo,
+                                 LatchMode latchMode) throws IOException {
+        if (latchMode == LatchMode.WRITE_PATH) {
+            latches.lockExclusive(pageNo);
+            return storageManager.loadDBPage(dbFile, pageNo);
+        }
+
+        latches.lockShared(pageNo);
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        if (latchMode == LatchMode.WRITE_LEAF &&
+            dbPage.readByte(0) == BTREE_LEAF_PAGE) {
+            // Nothing can split or merge the leaf while its parent is
+            // latched, so the leaf is still the right one once the latch
+            // has been traded for an exclusive one.
+            latches.unlock(pageNo);
+            latches.lockExclusive(pageNo);
+        }
+
+        latches.unlock(parentPageNo);
+        return dbPage;
     }
 
 
@@ -514,7 +1436,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
 
     @Override
-    public void optimize() throws IOException {
+    public void optimize(TupleMoveListener listener) throws IOException {
         throw new UnsupportedOperationException("NYI");
     }
 }
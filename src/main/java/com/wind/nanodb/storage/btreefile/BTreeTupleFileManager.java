@@ -46,9 +46,16 @@ public class BTreeTupleFileManager implements TupleFileManager {
             "Initializing new btree tuple file %s with %d columns",
             dbFile, schema.numColumns()));
 
+        // The fill factor is stored in the header page rather than with the
+        // schema's other properties.
+        int fillFactor = BTreeTupleFile.parseFillFactor(
+            schema.getProperty(BTreeTupleFile.PROP_FILL_FACTOR));
+        schema.setProperty(BTreeTupleFile.PROP_FILL_FACTOR, null);
+
         // Table schema is stored into the header page, so get it and prepare
         // to write out the schema information.
         DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        HeaderPage.setFillFactor(headerPage, fillFactor);
         PageWriter hpWriter = new PageWriter(headerPage);
         // Skip past the page-size value.
         hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
@@ -70,7 +77,8 @@ public class BTreeTupleFileManager implements TupleFileManager {
         int statsSize = hpWriter.getPosition() - schemaEndPos;
         HeaderPage.setStatsSize(headerPage, statsSize);
 
-        return new BTreeTupleFile(storageManager, this, dbFile,  schema, stats);
+        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats,
+                                  fillFactor);
     }
 
 
@@ -94,7 +102,10 @@ public class BTreeTupleFileManager implements TupleFileManager {
         StatsWriter statsWriter = new StatsWriter();
         TableStats stats = statsWriter.readTableStats(hpReader, schema);
 
-        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats);
+        int fillFactor = HeaderPage.getFillFactor(headerPage);
+
+        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats,
+                                  fillFactor);
     }
 
 
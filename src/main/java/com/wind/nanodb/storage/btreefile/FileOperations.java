@@ -21,9 +21,15 @@ class FileOperations {
     private DBFile dbFile;
 
 
-    public FileOperations(StorageManager storageManager, DBFile dbFile) {
+    /** The latches on the file's pages. */
+    private PageLatches latches;
+
+
+    public FileOperations(StorageManager storageManager, DBFile dbFile,
+                          PageLatches latches) {
         this.storageManager = storageManager;
         this.dbFile = dbFile;
+        this.latches = latches;
     }
 
 
@@ -50,6 +56,7 @@ class FileOperations {
                              " by one page.");
 
             int numPages = dbFile.getNumPages();
+            latches.lockForStructureChange(numPages);
             newPage = storageManager.loadDBPage(dbFile, numPages, true);
         }
         else {
@@ -57,6 +64,9 @@ class FileOperations {
 
             logger.debug("First empty page number is " + pageNo);
 
+            // A thread that followed a stale page number may still be
+            // reading the page, so wait for it before reusing the page.
+            latches.lockForStructureChange(pageNo);
             newPage = storageManager.loadDBPage(dbFile, pageNo);
             int nextEmptyPage = newPage.readUnsignedShort(1);
             HeaderPage.setFirstEmptyPageNo(dbpHeader, nextEmptyPage);
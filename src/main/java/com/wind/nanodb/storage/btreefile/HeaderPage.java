@@ -15,8 +15,16 @@ import org.apache.log4j.Logger;
  *   <li><u>Byte 1:</u>  page size  <i>p</i> (unsigned byte) - file's page
  *       size is <i>P</i> = 2<sup>p</sup></li>
  *
- *   <li>Byte 2-M:  Specification of index key-columns and column ordering.</li>
- *   <li>Byte P-2 to P-1:  the page of the file that is the root of the index</li>
+ *   <li><u>Bytes 2-3:</u>  the page of the file that is the root of the
+ *       index (unsigned short)</li>
+ *   <li><u>Bytes 4-5:</u>  the first leaf page (unsigned short)</li>
+ *   <li><u>Bytes 6-7:</u>  the first empty page (unsigned short)</li>
+ *   <li><u>Bytes 8-11:</u>  the sizes of the schema and statistics
+ *       (unsigned shorts)</li>
+ *   <li><u>Byte 12:</u>  the fill factor of the file's leaves, as a
+ *       percentage (unsigned byte)</li>
+ *   <li>Byte 13-M:  Specification of index key-columns and column ordering,
+ *       followed by the statistics.</li>
  * </ul>
  */
 public class HeaderPage {
@@ -61,11 +69,18 @@ public class HeaderPage {
     public static final int OFFSET_STATS_SIZE = 10;
 
 
+    /**
+     * The offset in the header page where the fill factor of the file's
+     * leaves is stored.  This value is an unsigned byte, and is a percentage.
+     */
+    public static final int OFFSET_FILL_FACTOR = 12;
+
+
     /**
      * The offset in the header page where the table schema starts.  This
      * value is an unsigned short.
      */
-    public static final int OFFSET_SCHEMA_START = 12;
+    public static final int OFFSET_SCHEMA_START = 13;
 
 
     /**
@@ -190,6 +205,37 @@ public class HeaderPage {
     }
 
 
+    /**
+     * Returns the fill factor of the file's leaves:  the percentage of a leaf
+     * that is filled when a leaf at either end of the file is split.
+     *
+     * @param dbPage the header page of the index file
+     * @return the fill factor, as a percentage
+     */
+    public static int getFillFactor(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedByte(OFFSET_FILL_FACTOR);
+    }
+
+
+    /**
+     * Sets the fill factor of the file's leaves.
+     *
+     * @param dbPage the header page of the index file
+     * @param fillFactor the fill factor, as a percentage
+     */
+    public static void setFillFactor(DBPage dbPage, int fillFactor) {
+        verifyIsHeaderPage(dbPage);
+
+        if (fillFactor < 1 || fillFactor > 100) {
+            throw new IllegalArgumentException(
+                "fillFactor must be in the range [1, 100]; got " + fillFactor);
+        }
+
+        dbPage.writeByte(OFFSET_FILL_FACTOR, fillFactor);
+    }
+
+
     /**
      * Returns the number of bytes that the table's schema occupies for storage
      * in the header page.
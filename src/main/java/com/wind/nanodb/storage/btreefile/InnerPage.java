@@ -693,13 +693,9 @@ public class InnerPage implements DataPage {
      *        tree is being increased) then this value will be {@code null}.
      *
      * @return the key that should go into the parent node, between the
-     *         page-pointers for this node and its sibling
-     *
-     * @todo (Donnie) When support for deletion is added to the index
-     *       implementation, we will need to support the case when the incoming
-     *       {@code parentKey} is non-{@code null}, but the returned key is
-     *       {@code null} because one of the two siblings' pointers will be
-     *       removed.
+     *         page-pointers for this node and its sibling, or {@code null} if
+     *         all of this node's pointers were moved (i.e. the nodes are
+     *         being coalesced, and the parent key is going away)
      */
     public TupleLiteral movePointersLeft(InnerPage leftSibling, int count,
                                          Tuple parentKey) {
@@ -722,23 +718,61 @@ public class InnerPage implements DataPage {
             }
         }
 
-        /* TODO:  IMPLEMENT THE REST OF THIS METHOD.
-         *
-         * You can use PageTuple.storeTuple() to write a key into a DBPage.
-         *
-         * The DBPage.write() method is useful for copying a large chunk of
-         * data from one DBPage to another.
-         *
-         * Your implementation also needs to properly handle the incoming
-         * parent-key, and produce a new parent-key as well.
-         */
-        logger.error("NOT YET IMPLEMENTED:  movePointersLeft()");
+        // The pointers [0, count) and the keys between them move to the
+        // sibling.  Unless every pointer is moving, the key after the last
+        // moved pointer becomes the new parent key.
+        int moveEndOffset;
+        int removeEndOffset;
+        TupleLiteral newParentKey = null;
+        if (count < numPointers) {
+            BTreeFilePageTuple key = keys[count - 1];
+            moveEndOffset = key.getOffset();
+            removeEndOffset = key.getEndOffset();
+            newParentKey = new TupleLiteral(key);
+        }
+        else {
+            moveEndOffset = endOffset;
+            removeEndOffset = endOffset;
+        }
+        int len = moveEndOffset - OFFSET_FIRST_POINTER;
+
+        // The parent key only goes between the sibling's existing pointers
+        // and the moved pointers; an empty sibling doesn't need it.
+        if (leftSibling.getNumPointers() == 0)
+            parentKeyLen = 0;
+
+        if (leftSibling.endOffset + parentKeyLen + len > dbPage.getPageSize()) {
+            throw new IllegalArgumentException(String.format(
+                "Left sibling %d doesn't have room for %d bytes of entries",
+                leftSibling.getPageNo(), parentKeyLen + len));
+        }
+
+        // Append the parent key and the moved entries to the sibling.
+        int offset = leftSibling.endOffset;
+        if (parentKeyLen > 0)
+            offset = PageTuple.storeTuple(leftSibling.dbPage, offset, schema, parentKey);
+
+        leftSibling.dbPage.write(offset, dbPage.getPageData(),
+            OFFSET_FIRST_POINTER, len);
+        leftSibling.dbPage.writeShort(OFFSET_NUM_POINTERS,
+            leftSibling.numPointers + count);
+
+        // Remove the moved entries, and the new parent key, from this page.
+        int removeLen = removeEndOffset - OFFSET_FIRST_POINTER;
+        dbPage.moveDataRange(removeEndOffset, OFFSET_FIRST_POINTER,
+            endOffset - removeEndOffset);
+        dbPage.writeShort(OFFSET_NUM_POINTERS, numPointers - count);
+
+        // Only erase the old data in the page if we are trying to make sure
+        // everything works properly.
+        if (BTreeTupleFile.CLEAR_OLD_DATA)
+            dbPage.setDataRange(endOffset - removeLen, removeLen, (byte) 0);
 
         // Update the cached info for both non-leaf pages.
         loadPageContents();
         leftSibling.loadPageContents();
 
-        return null;
+        return newParentKey;
     }
 
 
@@ -895,13 +929,9 @@ public class InnerPage implements DataPage {
      *        tree is being increased) then this value will be {@code null}.
      *
      * @return the key that should go into the parent node, between the
-     *         page-pointers for this node and its sibling
-     *
-     * @todo (Donnie) When support for deletion is added to the index
-     *       implementation, we will need to support the case when the incoming
-     *       {@code parentKey} is non-{@code null}, but the returned key is
-     *       {@code null} because one of the two siblings' pointers will be
-     *       removed.
+     *         page-pointers for this node and its sibling, or {@code null} if
+     *         all of this node's pointers were moved (i.e. the nodes are
+     *         being coalesced, and the parent key is going away)
      */
     public TupleLiteral movePointersRight(InnerPage rightSibling, int count,
                                           Tuple parentKey) {
@@ -937,17 +967,54 @@ public class InnerPage implements DataPage {
             }
         }
 
-        /* TODO:  IMPLEMENT THE REST OF THIS METHOD.
-         *
-         * You can use PageTuple.storeTuple() to write a key into a DBPage.
-         *
-         * The DBPage.write() method is useful for copying a large chunk of
-         * data from one DBPage to another.
-         *
-         * Your implementation also needs to properly handle the incoming
-         * parent-key, and produce a new parent-key as well.
-         */
-        logger.error("NOT YET IMPLEMENTED:  movePointersRight()");
+        // Unless every pointer is moving, the key before the first moved
+        // pointer becomes the new parent key.
+        int removeStartOffset = startOffset;
+        TupleLiteral newParentKey = null;
+        if (startPointerIndex > 0) {
+            BTreeFilePageTuple key = keys[startPointerIndex - 1];
+            removeStartOffset = key.getOffset();
+            newParentKey = new TupleLiteral(key);
+        }
+
+        // The parent key only goes between the moved pointers and the
+        // sibling's existing pointers; an empty sibling doesn't need it.
+        if (rightSibling.getNumPointers() == 0)
+            parentKeyLen = 0;
+
+        if (rightSibling.endOffset + parentKeyLen + len > dbPage.getPageSize()) {
+            throw new IllegalArgumentException(String.format(
+                "Right sibling %d doesn't have room for %d bytes of entries",
+                rightSibling.getPageNo(), parentKeyLen + len));
+        }
+
+        // Make room for the moved entries and the parent key at the start of
+        // the sibling, then copy them in.
+        DBPage rightPage = rightSibling.dbPage;
+        rightPage.moveDataRange(OFFSET_FIRST_POINTER,
+            OFFSET_FIRST_POINTER + len + parentKeyLen,
+            rightSibling.endOffset - OFFSET_FIRST_POINTER);
+
+        rightPage.write(OFFSET_FIRST_POINTER, dbPage.getPageData(),
+            startOffset, len);
+
+        if (parentKeyLen > 0) {
+            PageTuple.storeTuple(rightPage, OFFSET_FIRST_POINTER + len,
+                schema, parentKey);
+        }
+
+        rightPage.writeShort(OFFSET_NUM_POINTERS,
+            rightSibling.numPointers + count);
+
+        // Remove the moved entries, and the new parent key, from this page.
+        dbPage.writeShort(OFFSET_NUM_POINTERS, numPointers - count);
+
+        // Only erase the old data in the page if we are trying to make sure
+        // everything works properly.
+        if (BTreeTupleFile.CLEAR_OLD_DATA) {
+            dbPage.setDataRange(removeStartOffset,
+                endOffset - removeStartOffset, (byte) 0);
+        }
 
         // Update the cached info for both non-leaf pages.
         loadPageContents();
@@ -962,7 +1029,7 @@ public class InnerPage implements DataPage {
                 rightSibling.toFormattedString());
         }
 
-        return null;
+        return newParentKey;
     }
 
 
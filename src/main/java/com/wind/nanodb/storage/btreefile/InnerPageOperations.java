@@ -2,6 +2,7 @@ package com.wind.nanodb.storage.btreefile;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -65,9 +66,12 @@ public class InnerPageOperations {
 
 
     public InnerPage loadPage(int pageNo) throws IOException {
+        // Siblings of the pages being changed must be latched too.
+        tupleFile.getLatches().lockForStructureChange(pageNo);
+
         DBFile dbFile = tupleFile.getDBFile();
         DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
-        return new InnerPage(dbPage, tupleFile.getSchema());
+        return new InnerPage(dbPage, tupleFile.getStorageSchema());
     }
 
 
@@ -103,7 +107,7 @@ public class InnerPageOperations {
                 int oldKeySize = oldKey.getSize();
 
                 int newKeySize =
-                    PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1);
+                    PageTuple.getTupleStorageSize(tupleFile.getStorageSchema(), key1);
 
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format("Inner page %d:  replacing " +
@@ -287,7 +291,7 @@ public class InnerPageOperations {
 
         // The new entry will be the key, plus 2 bytes for the page-pointer.
         int newEntrySize =
-            PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1) + 2;
+            PageTuple.getTupleStorageSize(tupleFile.getStorageSchema(), key1) + 2;
 
         logger.debug(String.format("Adding new %d-byte entry to inner page %d",
             newEntrySize, page.getPageNo()));
@@ -399,11 +403,13 @@ public class InnerPageOperations {
         // When we do the check, we must not forget that each node contains a
         // header, and we need to account for that space as well.  This header
         // space is included in the getUsedSpace() method, but is excluded by
-        // the getSpaceUsedByTuples() method.
+        // the getSpaceUsedByTuples() method.  The parent key between the two
+        // nodes also moves down into the sibling.
 
         // TODO:  SEE IF WE CAN SIMPLIFY THIS AT ALL...
         if (leftSibling != null &&
-            leftSibling.getUsedSpace() + page.getSpaceUsedByEntries() <
+            leftSibling.getUsedSpace() + page.getSpaceUsedByEntries() +
+            parentPage.getKey(indexInParentPage - 1).getSize() <
             leftSibling.getTotalSpace()) {
 
             // Coalesce the current node into the left sibling.
@@ -436,7 +442,8 @@ public class InnerPageOperations {
                 /* delete right key */ false);
         }
         else if (rightSibling != null &&
-                rightSibling.getUsedSpace() + page.getSpaceUsedByEntries() <
+                rightSibling.getUsedSpace() + page.getSpaceUsedByEntries() +
+                parentPage.getKey(indexInParentPage).getSize() <
                         rightSibling.getTotalSpace()) {
 
             // Coalesce the current node into the right sibling.
@@ -542,13 +549,21 @@ public class InnerPageOperations {
                     "%d from %s sibling page %d", entriesToMove, pageNo,
                     (adjPage == leftSibling ? "left" : "right"), adjPage.getPageNo()));
 
+            // The key that rotates up into the parent is the one that was
+            // between the moved pointers and the ones left behind.
+            List<Integer> parentPagePath =
+                new ArrayList<>(pagePath.subList(0, pagePath.size() - 1));
             if (adjPage == leftSibling) {
-                adjPage.movePointersRight(page, entriesToMove, parentKey);
-                parentPage.replaceTuple(indexInParentPage - 1, page.getKey(0));
+                TupleLiteral newParentKey =
+                    adjPage.movePointersRight(page, entriesToMove, parentKey);
+                replaceTuple(parentPage, parentPagePath, adjPage.getPageNo(),
+                    newParentKey, pageNo);
             }
             else { // adjPage == right sibling
-                adjPage.movePointersLeft(page, entriesToMove, parentKey);
-                parentPage.replaceTuple(indexInParentPage, adjPage.getKey(0));
+                TupleLiteral newParentKey =
+                    adjPage.movePointersLeft(page, entriesToMove, parentKey);
+                replaceTuple(parentPage, parentPagePath, pageNo,
+                    newParentKey, adjPage.getPageNo());
             }
         }
     }
@@ -700,9 +715,12 @@ public class InnerPageOperations {
      * or right sibling of the page.
      * </p>
      * <p>
-     * When the inner node is split, half of the pointers are put into the new
-     * sibling, regardless of the size of the keys involved.  In other words,
-     * this method doesn't try to keep the pages half-full based on bytes used.
+     * When the inner node is split, about half of the pointers are put into
+     * the new sibling, regardless of the size of the keys involved.  In other
+     * words, this method doesn't try to keep the pages half-full based on
+     * bytes used.  The key that moves up into the parent is the shortest key
+     * near the middle of the page, since it has to be stored again in the
+     * parent (see {@link #chooseSplitCount}).
      * </p>
      *
      * @param page the inner node to split and then add the key/pointer to
@@ -742,7 +760,7 @@ public class InnerPageOperations {
         // inner-page we were handed.
 
         DBPage newDBPage = fileOps.getNewDataPage();
-        InnerPage newPage = InnerPage.init(newDBPage, tupleFile.getSchema());
+        InnerPage newPage = InnerPage.init(newDBPage, tupleFile.getStorageSchema());
 
         // Figure out how many values we want to move from the old page to the
         // new page.
@@ -769,8 +787,8 @@ public class InnerPageOperations {
             if (parentPtrIndex < parentPage.getNumPointers() - 1)
                 parentKey = parentPage.getKey(parentPtrIndex);
         }
-        Tuple newParentKey =
-            page.movePointersRight(newPage, numPointers / 2, parentKey);
+        Tuple newParentKey = page.movePointersRight(newPage,
+            chooseSplitCount(page), parentKey);
 
         if (logger.isDebugEnabled()) {
             logger.debug("    New parent key:  " + newParentKey);
@@ -798,7 +816,7 @@ public class InnerPageOperations {
             // Create a new root node and set both leaves to have it as their
             // parent.
             DBPage dbpParent = fileOps.getNewDataPage();
-            parentPage = InnerPage.init(dbpParent, tupleFile.getSchema(),
+            parentPage = InnerPage.init(dbpParent, tupleFile.getStorageSchema(),
                 page.getPageNo(), newParentKey, newPage.getPageNo());
 
             parentPageNo = parentPage.getPageNo();
@@ -832,6 +850,41 @@ public class InnerPageOperations {
     }
 
 
+    /**
+     * This helper chooses how many pointers to move into the new sibling when
+     * an inner page is split.  Rather than always splitting at the middle key,
+     * the shortest key within an eighth of the keys on either side of the
+     * middle is chosen to move up into the parent, which keeps the upper
+     * levels of the tree small when separator keys vary in length.
+     *
+     * @param page the inner page being split
+     *
+     * @return the number of pointers to move to the new right sibling
+     */
+    private int chooseSplitCount(InnerPage page) {
+        int numPointers = page.getNumPointers();
+        int numKeys = page.getNumKeys();
+
+        // Moving count pointers right sends key (numPointers - count - 1) up.
+        int middle = numPointers - numPointers / 2 - 1;
+        int window = numKeys / 8;
+
+        int best = middle;
+        int bestSize = page.getKey(middle).getSize();
+        for (int i = Math.max(0, middle - window);
+             i <= Math.min(numKeys - 1, middle + window); i++) {
+            int size = page.getKey(i).getSize();
+            if (size < bestSize ||
+                (size == bestSize && Math.abs(i - middle) < Math.abs(best - middle))) {
+                best = i;
+                bestSize = size;
+            }
+        }
+
+        return numPointers - best - 1;
+    }
+
+
     /**
      * This helper method takes a pair of inner nodes that are siblings to each
      * other, and adds the specified key to whichever node the key should go
@@ -876,7 +929,7 @@ public class InnerPageOperations {
         }
 
         int entrySize = 2 +
-            PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1);
+            PageTuple.getTupleStorageSize(tupleFile.getStorageSchema(), key1);
 
         if (page.getFreeSpace() >= entrySize) {
             page.addEntry(pageNo1, key1, pageNo2);
@@ -0,0 +1,187 @@
+package com.wind.nanodb.storage.btreefile;
+
+
+import com.wind.nanodb.expressions.TupleComparator;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.ColumnInfo;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.SQLDataType;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * This class provides the static helpers that B<sup>+</sup> tree pages use
+ * to store keys compactly.  There are three techniques:
+ * </p>
+ * <ul>
+ * <li>Keys are stored with a <em>storage schema</em>, where <tt>CHAR</tt>
+ *     columns are stored as <tt>VARCHAR</tt>s, so that short values in wide
+ *     columns aren't padded out to the full width of the column.</li>
+ * <li>Each leaf page stores the common prefix of the leading column of its
+ *     keys once, and each key only stores the rest of its value.  (See
+ *     {@link LeafPage}.)</li>
+ * <li>When a leaf is split, the separator key stored in the parent is the
+ *     shortest key that falls between the two leaves, rather than a copy of
+ *     the first key in the right leaf.</li>
+ * </ul>
+ */
+class KeyCompression {
+
+    /**
+     * Returns the schema that keys with the specified schema are stored with
+     * in B<sup>+</sup> tree pages.  This is the same as the specified schema,
+     * except that <tt>CHAR</tt> columns become <tt>VARCHAR</tt> columns of
+     * the same length.  The values read back are the same either way, since
+     * the padding of a <tt>CHAR</tt> value is discarded when it is read.
+     *
+     * @param schema the schema of the keys
+     *
+     * @return the schema to store the keys with
+     */
+    static Schema getStorageSchema(Schema schema) {
+        Schema storageSchema = new Schema();
+        for (ColumnInfo colInfo : schema) {
+            ColumnType colType = colInfo.getType();
+            if (colType.getBaseType() == SQLDataType.CHAR) {
+                ColumnType varType = new ColumnType(SQLDataType.VARCHAR);
+                varType.setLength(colType.getLength());
+                colInfo = new ColumnInfo(colInfo.getName(),
+                    colInfo.getTableName(), varType);
+            }
+            storageSchema.addColumnInfo(colInfo);
+        }
+        return storageSchema;
+    }
+
+
+    /**
+     * Returns true if the leading column of keys with the specified schema
+     * can be prefix-compressed.
+     *
+     * @param storageSchema the storage schema of the keys
+     *
+     * @return true if the leading column is stored as a <tt>VARCHAR</tt>
+     */
+    static boolean hasPrefixColumn(Schema storageSchema) {
+        return storageSchema.numColumns() > 0 &&
+            storageSchema.getColumnInfo(0).getType().getBaseType() ==
+            SQLDataType.VARCHAR;
+    }
+
+
+    /**
+     * Returns the length of the prefix that a leaf page can factor out of the
+     * leading column of its keys, given the first and last keys in the page.
+     * Since the keys are in order, the common prefix of the first and last
+     * keys is also the common prefix of all keys between them.  If either
+     * key's leading value isn't a string (for example, if it is
+     * <tt>NULL</tt>), the length is 0.
+     *
+     * @param first the first key in the page
+     *
+     * @param last the last key in the page
+     *
+     * @return the number of characters that every key's leading value starts
+     *         with
+     */
+    static int getPrefixLength(Tuple first, Tuple last) {
+        if (first.getColumnCount() == 0)
+            return 0;
+
+        Object firstValue = first.getColumnValue(0);
+        Object lastValue = last.getColumnValue(0);
+        if (!(firstValue instanceof String) || !(lastValue instanceof String))
+            return 0;
+
+        return getCommonPrefixLength((String) firstValue, (String) lastValue);
+    }
+
+
+    /** Returns the number of leading characters two strings share. */
+    private static int getCommonPrefixLength(String s1, String s2) {
+        int len = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < len && s1.charAt(i) == s2.charAt(i))
+            i++;
+
+        return i;
+    }
+
+
+    /**
+     * <p>
+     * Returns the shortest separator key that can be stored in an inner page
+     * between two adjacent children, given the last key of the left child and
+     * the first key of the right child.  The separator is strictly greater
+     * than {@code left}, and no greater than {@code right}.
+     * </p>
+     * <p>
+     * The separator has the values of {@code right} up to the first column
+     * where the keys differ.  In that column it has the shortest prefix of
+     * {@code right}'s value that is still greater than {@code left}'s value
+     * (or {@code right}'s value itself if it isn't a string), and all later
+     * columns are <tt>NULL</tt>, which sorts before every other value.
+     * </p>
+     *
+     * @param left the last key in the left child
+     *
+     * @param right the first key in the right child
+     *
+     * @return the separator key
+     */
+    static TupleLiteral getSeparator(Tuple left, Tuple right) {
+        int numCols = right.getColumnCount();
+        TupleLiteral separator = new TupleLiteral();
+
+        int iCol = 0;
+        while (iCol < numCols) {
+            Object rightValue = right.getColumnValue(iCol);
+            if (compareValues(left, right, iCol) != 0)
+                break;
+
+            separator.addValue(rightValue);
+            iCol++;
+        }
+
+        if (iCol == numCols) {
+            // The keys are equal, which shouldn't happen; there's nothing to
+            // truncate.
+            return new TupleLiteral(right);
+        }
+
+        Object leftValue = left.getColumnValue(iCol);
+        Object rightValue = right.getColumnValue(iCol);
+        if (rightValue instanceof String) {
+            String rightStr = (String) rightValue;
+            int len = 0;
+            if (leftValue instanceof String) {
+                len = getCommonPrefixLength((String) leftValue, rightStr);
+                len = Math.min(len + 1, rightStr.length());
+            }
+            rightValue = rightStr.substring(0, len);
+        }
+        separator.addValue(rightValue);
+
+        for (iCol++; iCol < numCols; iCol++)
+            separator.addValue(null);
+
+        // Be defensive:  only use the truncated key if it really does fall
+        // between the two keys.
+        if (TupleComparator.compareTuples(left, separator) >= 0 ||
+            TupleComparator.compareTuples(separator, right) > 0) {
+            return new TupleLiteral(right);
+        }
+
+        return separator;
+    }
+
+
+    /** Compares the values of one column of two keys. */
+    private static int compareValues(Tuple t1, Tuple t2, int iCol) {
+        TupleLiteral v1 = new TupleLiteral(t1.getColumnValue(iCol));
+        TupleLiteral v2 = new TupleLiteral(t2.getColumnValue(iCol));
+        return TupleComparator.compareTuples(v1, v2);
+    }
+}
@@ -31,6 +31,16 @@ import static com.wind.nanodb.storage.btreefile.BTreePageTypes.*;
  * are provided by the {@link LeafPageOperations} and
  * {@link InnerPageOperations} classes.
  * </p>
+ * <p>
+ * Leaf pages are prefix-compressed:  when the leading column of the keys is a
+ * string, the page stores the common prefix of the leading values once (as an
+ * unsigned-short length followed by the characters), and each tuple only
+ * stores the rest of its leading value.  Since the tuples are in key order,
+ * the common prefix of the first and last keys is the common prefix of all
+ * keys in the page.  The prefix is recomputed whenever the first or last key
+ * of the page changes.  Tuples are stored with the storage schema from
+ * {@link KeyCompression#getStorageSchema}.
+ * </p>
  */
 public class LeafPage implements DataPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -51,8 +61,11 @@ public class LeafPage implements DataPage {
     public static final int OFFSET_NUM_TUPLES = 3;
 
 
-    /** The offset of the first tuple in the leaf page. */
-    public static final int OFFSET_FIRST_TUPLE = 5;
+    /**
+     * The offset where the common prefix of the keys' leading values is
+     * stored in the page.  The tuples follow the prefix.
+     */
+    public static final int OFFSET_KEY_PREFIX = 5;
 
 
     /** The actual data page that holds the B<sup>+</sup> tree leaf node. */
@@ -67,6 +80,17 @@ public class LeafPage implements DataPage {
     private int numTuples;
 
 
+    /**
+     * The prefix that has been factored out of the leading value of every
+     * tuple in the page, or an empty string if there isn't one.
+     */
+    private String keyPrefix;
+
+
+    /** The offset of the first tuple in the page, just past the prefix. */
+    private int firstTupleOffset;
+
+
     /** A list of the tuples stored in this leaf page. */
     private ArrayList<BTreeFilePageTuple> tuples;
 
@@ -116,6 +140,7 @@ public class LeafPage implements DataPage {
         dbPage.writeByte(OFFSET_PAGE_TYPE, BTREE_LEAF_PAGE);
         dbPage.writeShort(OFFSET_NUM_TUPLES, 0);
         dbPage.writeShort(OFFSET_NEXT_PAGE_NO, 0);
+        dbPage.writeVarString65535(OFFSET_KEY_PREFIX, "");
 
         return new LeafPage(dbPage, schema);
     }
@@ -130,18 +155,22 @@ public class LeafPage implements DataPage {
         numTuples = dbPage.readUnsignedShort(OFFSET_NUM_TUPLES);
         tuples = new ArrayList<BTreeFilePageTuple>(numTuples);
 
+        keyPrefix = dbPage.readVarString65535(OFFSET_KEY_PREFIX);
+        firstTupleOffset = OFFSET_KEY_PREFIX + 2 + keyPrefix.length();
+
         if (numTuples > 0) {
             // Handle first tuple separately since we know its offset.
 
-            BTreeFilePageTuple tuple =
-                new BTreeFilePageTuple(schema, dbPage, OFFSET_FIRST_TUPLE, 0);
+            BTreeFilePageTuple tuple = new BTreeFilePageTuple(schema, dbPage,
+                firstTupleOffset, 0, keyPrefix);
 
             tuples.add(tuple);
 
             // Handle remaining tuples.
             for (int i = 1; i < numTuples; i++) {
                 int tupleEndOffset = tuple.getEndOffset();
-                tuple = new BTreeFilePageTuple(schema, dbPage, tupleEndOffset, i);
+                tuple = new BTreeFilePageTuple(schema, dbPage, tupleEndOffset,
+                    i, keyPrefix);
                 tuples.add(tuple);
             }
 
@@ -149,7 +178,7 @@ public class LeafPage implements DataPage {
         }
         else {
             // There are no tuples in the leaf page.
-            endOffset = OFFSET_FIRST_TUPLE;
+            endOffset = firstTupleOffset;
         }
     }
 
@@ -242,7 +271,19 @@ public class LeafPage implements DataPage {
      * @return the amount of space used by tuples in this page, in bytes.
      */
     public int getSpaceUsedByTuples() {
-        return endOffset - OFFSET_FIRST_TUPLE;
+        return endOffset - firstTupleOffset;
+    }
+
+
+    /**
+     * Returns the prefix that has been factored out of the leading value of
+     * every tuple in this page.
+     *
+     * @return the common prefix of the keys' leading values, or an empty
+     *         string if the page doesn't have one
+     */
+    public String getKeyPrefix() {
+        return keyPrefix;
     }
 
     /**
@@ -290,6 +331,123 @@ public class LeafPage implements DataPage {
     }
 
 
+    /**
+     * Returns the size that the tuple at the specified index would take if
+     * it were stored without the page's key prefix factored out.
+     *
+     * @param index the index of the tuple to get the size of
+     *
+     * @return the uncompressed size of the specified tuple, in bytes
+     */
+    public int getFullTupleSize(int index) {
+        return getTupleSize(index) + keyPrefix.length();
+    }
+
+
+    /**
+     * Returns the total size that this page's tuples would take if they were
+     * stored without the page's key prefix factored out.
+     *
+     * @return the uncompressed size of all tuples in the page, in bytes
+     */
+    public int getFullSizeOfTuples() {
+        return getSpaceUsedByTuples() + numTuples * keyPrefix.length();
+    }
+
+
+    /**
+     * Computes how much space a leaf page would use to hold a run of tuples
+     * in key order, including the page's header and key prefix.  Only the
+     * first and last tuples of the run need to be specified, since they
+     * determine the key prefix.
+     *
+     * @param first the first tuple in the run
+     *
+     * @param last the last tuple in the run
+     *
+     * @param numTuples the number of tuples in the run
+     *
+     * @param fullSize the total uncompressed size of the tuples in the run
+     *        (see {@link #getFullTupleSize})
+     *
+     * @return the number of bytes a page holding the run would use
+     */
+    public int getStorageSize(Tuple first, Tuple last, int numTuples,
+                              int fullSize) {
+        int prefixLength = 0;
+        if (numTuples > 0)
+            prefixLength = getPrefixLength(first, last);
+
+        return OFFSET_KEY_PREFIX + 2 + prefixLength + fullSize -
+            numTuples * prefixLength;
+    }
+
+
+    /**
+     * Returns how much space this page would use if the tuple at the
+     * specified index were deleted.  Deleting the first or last tuple can
+     * lengthen the key prefix, so this works out the size from the tuples
+     * that would be left, rather than just subtracting the tuple's size.
+     *
+     * @param index the index of the tuple that would be deleted
+     *
+     * @return the number of bytes the page would use after the deletion
+     */
+    public int getUsedSpaceAfterDelete(int index) {
+        int fullSize = getFullSizeOfTuples() - getFullTupleSize(index);
+        if (numTuples == 1)
+            return getStorageSize(null, null, 0, fullSize);
+
+        Tuple first = tuples.get(index == 0 ? 1 : 0);
+        Tuple last = tuples.get(index == numTuples - 1 ?
+            numTuples - 2 : numTuples - 1);
+
+        return getStorageSize(first, last, numTuples - 1, fullSize);
+    }
+
+
+    /**
+     * Returns the length of the key prefix that a page with the specified
+     * first and last tuples would have.
+     */
+    private int getPrefixLength(Tuple first, Tuple last) {
+        if (!KeyCompression.hasPrefixColumn(schema))
+            return 0;
+
+        return KeyCompression.getPrefixLength(first, last);
+    }
+
+
+    /**
+     * Returns true if the specified tuple can be added to this page.  Adding
+     * a tuple at either end of the page can shorten the key prefix, which
+     * makes every other tuple in the page larger, so this is more involved
+     * than comparing the tuple's size to the free space.
+     *
+     * @param newTuple the tuple that would be added
+     *
+     * @return true if the page has room for the tuple
+     */
+    public boolean canAddTuple(Tuple newTuple) {
+        Tuple first = newTuple;
+        Tuple last = newTuple;
+        if (numTuples > 0) {
+            first = tuples.get(0);
+            last = tuples.get(numTuples - 1);
+            if (TupleComparator.compareTuples(newTuple, first) < 0)
+                first = newTuple;
+            else if (TupleComparator.compareTuples(newTuple, last) > 0)
+                last = newTuple;
+        }
+
+        int fullSize = getFullSizeOfTuples() +
+            PageTuple.getTupleStorageSize(schema, newTuple);
+
+        return getStorageSize(first, last, numTuples + 1, fullSize) <=
+            getTotalSpace();
+    }
+
+
     /**
      * Given a leaf page in the B<sup>+</sup> tree file, returns the page
      * number of the left sibling, or -1 if there is no left sibling to this
@@ -417,21 +575,34 @@ public class LeafPage implements DataPage {
                 " does not appear in leaf page " + getPageNo());
         }
 
-        int tupleOffset = getTuple(index).getOffset();
-        int len = getTupleSize(index);
+        if (index == 0 || index == numTuples - 1) {
+            // Removing the first or last tuple can lengthen the key prefix,
+            // so rewrite the page's tuples.
+            ArrayList<TupleLiteral> newTuples = getTupleLiterals();
+            newTuples.remove(index);
+            storeTuples(newTuples);
+        }
+        else {
+            int tupleOffset = getTuple(index).getOffset();
+            int len = getTupleSize(index);
 
-        logger.debug("Moving leaf-page data in range [" + (tupleOffset+len) +
-             ", " + endOffset + ") over by " + len + " bytes");
-        dbPage.moveDataRange(tupleOffset + len, tupleOffset,
-                             endOffset - tupleOffset - len);
+            logger.debug("Moving leaf-page data in range [" +
+                (tupleOffset + len) + ", " + endOffset + ") over by " + len +
+                " bytes");
+            dbPage.moveDataRange(tupleOffset + len, tupleOffset,
+                                 endOffset - tupleOffset - len);
 
-        // Decrement the total number of entries.
-        dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - 1);
+            if (BTreeTupleFile.CLEAR_OLD_DATA)
+                dbPage.setDataRange(endOffset - len, len, (byte) 0);
 
-        logger.debug("Loading altered page - had " + numTuples +
-            " tuples before delete.");
-        // Load new page.
-        loadPageContents();
+            // Decrement the total number of entries.
+            dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - 1);
+
+            logger.debug("Loading altered page - had " + numTuples +
+                " tuples before delete.");
+            // Load new page.
+            loadPageContents();
+        }
 
         logger.debug("After loading, have " + numTuples + " tuples");
 
@@ -458,16 +629,12 @@ public class LeafPage implements DataPage {
      *         the leaf page.
      */
     public BTreeFilePageTuple addTuple(TupleLiteral newTuple) {
-        if (newTuple.getStorageSize() == -1) {
-            throw new IllegalArgumentException("New tuple's storage size " +
-                "must be computed before this method is called.");
-        }
-
-        if (getFreeSpace() < newTuple.getStorageSize()) {
+        if (!canAddTuple(newTuple)) {
             throw new IllegalArgumentException(String.format(
                 "Not enough space in this node to store the new tuple " +
-                "(%d bytes free; %d bytes required)", getFreeSpace(),
-                newTuple.getStorageSize()));
+                "(%d bytes free; %d bytes required before compression)",
+                getFreeSpace(),
+                PageTuple.getTupleStorageSize(schema, newTuple)));
         }
 
         BTreeFilePageTuple result = null;
@@ -520,6 +687,9 @@ public class LeafPage implements DataPage {
      * This private helper takes care of inserting a tuple at a specific index
      * in the leaf page.  This method should be called with care, so as to
      * ensure that tuples always remain in monotonically increasing order.
+     * If the new tuple changes the page's key prefix, all of the page's
+     * tuples are rewritten; otherwise the tuples after the index are slid
+     * over to make room.
      *
      * @param newTuple the new tuple to insert into the leaf page
      * @param index the index to insert the tuple at.  Any existing tuples at
@@ -532,13 +702,24 @@ public class LeafPage implements DataPage {
         logger.debug("Leaf-page is starting with data ending at index " +
             endOffset + ", and has " + numTuples + " tuples.");
 
-        // Get the storage size of the new tuple.
-        int len = newTuple.getStorageSize();
-        if (len == -1) {
-            throw new IllegalArgumentException("New tuple's storage size " +
-                "must be computed before this method is called.");
+        Tuple first = (index == 0 ? newTuple : tuples.get(0));
+        Tuple last = (index == numTuples ? newTuple : tuples.get(numTuples - 1));
+        if (numTuples == 0 ||
+            getPrefixLength(first, last) != keyPrefix.length()) {
+            // The key prefix changes, so rewrite the page.
+            ArrayList<TupleLiteral> newTuples = getTupleLiterals();
+            newTuples.add(index, newTuple);
+            storeTuples(newTuples);
+            return getTuple(index);
         }
 
+        // The prefix stays the same, so only the new tuple's suffix needs
+        // to be written.
+        TupleLiteral storedTuple = stripKeyPrefix(newTuple, keyPrefix);
+
+        // Get the storage size of the new tuple.
+        int len = PageTuple.getTupleStorageSize(schema, storedTuple);
+
         logger.debug("New tuple's storage size is " + len + " bytes");
 
         int tupleOffset;
@@ -567,7 +748,7 @@ public class LeafPage implements DataPage {
         }
 
         // Write the tuple value into the page.
-        PageTuple.storeTuple(dbPage, tupleOffset, schema, newTuple);
+        PageTuple.storeTuple(dbPage, tupleOffset, schema, storedTuple);
 
         // Increment the total number of tuples.
         dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples + 1);
@@ -589,9 +770,9 @@ public class LeafPage implements DataPage {
 
     /**
      * This helper function moves the specified number of tuples to the left
-     * sibling of this leaf node.  The data is copied in one shot so that the
-     * transfer will be fast, and the various associated bookkeeping values in
-     * both leaves are updated.
+     * sibling of this leaf node.  Moving tuples can change the key prefix of
+     * both leaves, so both leaves are rewritten, and the various associated
+     * bookkeeping values in both leaves are updated.
      *
      * @param leftSibling the left sibling of this leaf-node in the
      *        B<sup>+</sup> tree file
@@ -618,38 +799,25 @@ public class LeafPage implements DataPage {
                 numTuples + "), got " + count);
         }
 
-        int moveEndOffset = getTuple(count - 1).getEndOffset(); //getTuple(count).getOffset()
-        int len = moveEndOffset - OFFSET_FIRST_TUPLE;
-
-        // Copy the range of tuple-data to the destination page.  Then update
-        // the count of tuples in the destination page.
-        // Don't need to move any data in the left sibling; we are appending!
-        leftSibling.dbPage.write(leftSibling.endOffset, dbPage.getPageData(),
-            OFFSET_FIRST_TUPLE, len);          // Copy the tuple-data across
-        leftSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
-            leftSibling.numTuples + count);    // Update the tuple-count
+        ArrayList<TupleLiteral> leftTuples = leftSibling.getTupleLiterals();
+        ArrayList<TupleLiteral> remaining = getTupleLiterals();
 
-        // Remove that range of tuple-data from this page.
-        dbPage.moveDataRange(moveEndOffset, OFFSET_FIRST_TUPLE,
-            endOffset - moveEndOffset);
-        dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - count);
-
-        // Only erase the old data in the leaf page if we are trying to make
-        // sure everything works properly.
-        if (BTreeTupleFile.CLEAR_OLD_DATA)
-            dbPage.setDataRange(endOffset - len, len, (byte) 0);
+        List<TupleLiteral> moved = remaining.subList(0, count);
+        leftTuples.addAll(moved);
+        moved.clear();
 
-        // Update the cached info for both leaves.
-        loadPageContents();
-        leftSibling.loadPageContents();
+        // The left sibling is rewritten first, since it is the one that
+        // might not have room; this page is only changed if it does.
+        leftSibling.storeTuples(leftTuples);
+        storeTuples(remaining);
     }
 
 
     /**
      * This helper function moves the specified number of tuples to the right
-     * sibling of this leaf node.  The data is copied in one shot so that the
-     * transfer will be fast, and the various associated bookkeeping values in
-     * both leaves are updated.
+     * sibling of this leaf node.  Moving tuples can change the key prefix of
+     * both leaves, so both leaves are rewritten, and the various associated
+     * bookkeeping values in both leaves are updated.
      *
      * @param rightSibling the right sibling of this leaf-node in the index
      *        file
@@ -671,35 +839,96 @@ public class LeafPage implements DataPage {
                 numTuples + "), got " + count);
         }
 
-        int startOffset = getTuple(numTuples - count).getOffset();
-        int len = endOffset - startOffset;
+        ArrayList<TupleLiteral> remaining = getTupleLiterals();
+        List<TupleLiteral> moved =
+            remaining.subList(numTuples - count, numTuples);
+
+        ArrayList<TupleLiteral> rightTuples = new ArrayList<>(moved);
+        rightTuples.addAll(rightSibling.getTupleLiterals());
+        moved.clear();
+
+        // Only change this page if the right sibling has room.
+        rightSibling.storeTuples(rightTuples);
+        storeTuples(remaining);
+    }
 
-        // Copy the range of tuple-data to the destination page.  Then update
-        // the count of tuples in the destination page.
 
-        // Make room for the data
-        rightSibling.dbPage.moveDataRange(OFFSET_FIRST_TUPLE,
-            OFFSET_FIRST_TUPLE + len,
-            rightSibling.endOffset - OFFSET_FIRST_TUPLE);
+    /**
+     * Returns a copy of this page's tuples, with their full key values.
+     *
+     * @return a list of the tuples in the page
+     */
+    private ArrayList<TupleLiteral> getTupleLiterals() {
+        ArrayList<TupleLiteral> result = new ArrayList<>(numTuples);
+        for (BTreeFilePageTuple tuple : tuples)
+            result.add(new TupleLiteral(tuple));
+
+        return result;
+    }
 
-        // Copy the tuple-data across
-        rightSibling.dbPage.write(OFFSET_FIRST_TUPLE, dbPage.getPageData(),
-            startOffset, len);
 
-        // Update the tuple-count
-        rightSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
-            rightSibling.numTuples + count);
+    /**
+     * Returns a copy of a tuple with the specified prefix removed from its
+     * leading value, which must start with the prefix.
+     */
+    private static TupleLiteral stripKeyPrefix(Tuple tuple, String prefix) {
+        TupleLiteral result = new TupleLiteral(tuple);
+        if (!prefix.isEmpty()) {
+            String value = (String) tuple.getColumnValue(0);
+            result.setColumnValue(0, value.substring(prefix.length()));
+        }
+        return result;
+    }
+
+
+    /**
+     * This private helper replaces all of the page's tuples with the
+     * specified tuples, recomputing the key prefix.  The page is left
+     * unchanged if the tuples won't fit.
+     *
+     * @param newTuples the tuples to store in the page, in key order
+     *
+     * @throws IllegalArgumentException if the tuples won't fit in the page
+     */
+    private void storeTuples(List<TupleLiteral> newTuples) {
+        int count = newTuples.size();
+
+        String prefix = "";
+        int fullSize = 0;
+        if (count > 0) {
+            Tuple first = newTuples.get(0);
+            int prefixLength = getPrefixLength(first, newTuples.get(count - 1));
+            if (prefixLength > 0)
+                prefix = ((String) first.getColumnValue(0)).substring(0, prefixLength);
+
+            for (TupleLiteral tuple : newTuples)
+                fullSize += PageTuple.getTupleStorageSize(schema, tuple);
+        }
+
+        int newEndOffset = OFFSET_KEY_PREFIX + 2 + prefix.length() +
+            fullSize - count * prefix.length();
+        if (newEndOffset > getTotalSpace()) {
+            throw new IllegalArgumentException(String.format(
+                "Not enough space in leaf page %d to store %d tuples " +
+                "(%d bytes required)", getPageNo(), count, newEndOffset));
+        }
+
+        dbPage.writeVarString65535(OFFSET_KEY_PREFIX, prefix);
+        int offset = OFFSET_KEY_PREFIX + 2 + prefix.length();
+        for (TupleLiteral tuple : newTuples) {
+            offset = PageTuple.storeTuple(dbPage, offset, schema,
+                stripKeyPrefix(tuple, prefix));
+        }
+        assert offset == newEndOffset;
 
-        // Remove that range of tuple-data from this page.
-        dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - count);
+        dbPage.writeShort(OFFSET_NUM_TUPLES, count);
 
         // Only erase the old data in the leaf page if we are trying to make
         // sure everything works properly.
-        if (BTreeTupleFile.CLEAR_OLD_DATA)
-            dbPage.setDataRange(startOffset, len, (byte) 0);
+        if (BTreeTupleFile.CLEAR_OLD_DATA && offset < endOffset)
+            dbPage.setDataRange(offset, endOffset - offset, (byte) 0);
 
-        // Update the cached info for both leaves.
+        // Update the cached info for the leaf.
         loadPageContents();
-        rightSibling.loadPageContents();
     }
 }
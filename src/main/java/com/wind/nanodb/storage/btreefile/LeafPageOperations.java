@@ -2,6 +2,7 @@ package com.wind.nanodb.storage.btreefile;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -11,6 +12,7 @@ import com.wind.nanodb.expressions.TupleLiteral;
 import com.wind.nanodb.relations.Tuple;
 import com.wind.nanodb.storage.DBFile;
 import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.PageTuple;
 import com.wind.nanodb.storage.StorageManager;
 
 
@@ -24,6 +26,26 @@ public class LeafPageOperations {
     /** A logging object for reporting anything interesting that happens. */
     private static Logger logger = Logger.getLogger(LeafPageOperations.class);
 
+
+    /**
+     * The ways that a full leaf can be split.  Leaves are normally split
+     * evenly, but when a tuple is added past the end of a leaf at either end
+     * of the file, the leaf is split according to the file's fill factor, so
+     * that keys added in increasing or decreasing order leave full leaves
+     * behind them.
+     */
+    private enum SplitType {
+        /** The two leaves use about the same number of bytes. */
+        EVEN,
+
+        /** The left leaf is left as full as the fill factor specifies. */
+        RIGHT_EDGE,
+
+        /** The right leaf is left as full as the fill factor specifies. */
+        LEFT_EDGE
+    }
+
+
     private StorageManager storageManager;
 
 
@@ -67,9 +89,12 @@ public class LeafPageOperations {
         if (pageNo == 0)
             return null;
 
+        // Siblings of the leaf being changed must be latched too.
+        tupleFile.getLatches().lockForStructureChange(pageNo);
+
         DBFile dbFile = tupleFile.getDBFile();
         DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
-        return new LeafPage(dbPage, tupleFile.getSchema());
+        return new LeafPage(dbPage, tupleFile.getStorageSchema());
     }
 
 
@@ -83,10 +108,14 @@ public class LeafPageOperations {
      * @param pagePath the path of pages taken from the root page to the leaf
      *        page, represented as a list of page numbers
      *
+     * @return true if the leaf page is still in the tree with the same
+     *         neighbors and separators, or false if it was removed, or if
+     *         tuples were moved between it and a sibling
+     *
      * @throws IOException if an IO error occurs while updating the index
      */
-    public void deleteTuple(LeafPage leaf, Tuple tuple,
-                            List<Integer> pagePath) throws IOException {
+    public boolean deleteTuple(LeafPage leaf, Tuple tuple,
+                               List<Integer> pagePath) throws IOException {
 
         logger.debug(String.format("Deleting tuple %s from leaf page %d at " +
             "page-path %s", tuple, leaf.getPageNo(), pagePath));
@@ -96,7 +125,7 @@ public class LeafPageOperations {
         if (leaf.getUsedSpace() >= leaf.getTotalSpace() / 2) {
             // The page is at least half-full.  Don't need to redistribute or
             // coalesce.
-            return;
+            return true;
         }
         else if (pagePath.size() == 1) {
             // The page is the root.  Don't need to redistribute or coalesce,
@@ -123,9 +152,11 @@ public class LeafPageOperations {
                     assert btpt.getNextTuplePageNo() == 0;
                     assert btpt.getNextTupleIndex() == 0;
                 }
+
+                return false;
             }
 
-            return;
+            return true;
         }
 
         // If we got to this part, we have to redistribute/coalesce stuff :(
@@ -168,15 +199,9 @@ public class LeafPageOperations {
         assert leftSibling != null || rightSibling != null;
 
         // See if we can coalesce the node into its left or right sibling.
-        // When we do the check, we must not forget that each node contains a
-        // header, and we need to account for that space as well.  This header
-        // space is included in the getUsedSpace() method, but is excluded by
-        // the getSpaceUsedByTuples() method.
-
-        // TODO:  SEE IF WE CAN SIMPLIFY THIS AT ALL...
-        if (leftSibling != null &&
-            leftSibling.getUsedSpace() + leaf.getSpaceUsedByTuples() <
-            leftSibling.getTotalSpace()) {
+        // The two leaves' key prefixes will be replaced by the prefix of the
+        // combined leaf, so the check has to work out that prefix.
+        if (leftSibling != null && canCoalesce(leftSibling, leaf)) {
 
             // Coalesce the current node into the left sibling.
             logger.debug("Delete from leaf " + leaf.getPageNo() +
@@ -217,9 +242,7 @@ public class LeafPageOperations {
             innerPageOps.deletePointer(parent, parentPagePath, leafPageNo,
                 /* remove right tuple */ false);
         }
-        else if (rightSibling != null &&
-                 rightSibling.getUsedSpace() + leaf.getSpaceUsedByTuples() <
-                 rightSibling.getTotalSpace()) {
+        else if (rightSibling != null && canCoalesce(leaf, rightSibling)) {
 
             // Coalesce the current node into the right sibling.
             logger.debug("Delete from leaf " + leaf.getPageNo() +
@@ -325,7 +348,7 @@ public class LeafPageOperations {
 
                 logger.warn(buf);
 
-                return;
+                return true;
             }
 
             logger.debug(String.format("Relocating %d tuples into leaf page " +
@@ -387,19 +410,24 @@ public class LeafPageOperations {
 
             InnerPage parent =
                 innerPageOps.loadPage(pagePath.get(pagePath.size() - 2));
-            int index;
+            List<Integer> parentPagePath =
+                new ArrayList<>(pagePath.subList(0, pagePath.size() - 1));
 
             if (adjPage == leftSibling) {
                 adjPage.moveTuplesRight(leaf, tuplesToMove);
-                index = parent.getIndexOfPointer(adjPage.getPageNo());
-                parent.replaceTuple(index, leaf.getTuple(0));
+                innerPageOps.replaceTuple(parent, parentPagePath,
+                    adjPage.getPageNo(), getSeparator(adjPage, leaf),
+                    leafPageNo);
             }
             else { // adjPage == right sibling
                 adjPage.moveTuplesLeft(leaf, tuplesToMove);
-                index = parent.getIndexOfPointer(leaf.getPageNo());
-                parent.replaceTuple(index, adjPage.getTuple(0));
+                innerPageOps.replaceTuple(parent, parentPagePath,
+                    leafPageNo, getSeparator(leaf, adjPage),
+                    adjPage.getPageNo());
             }
         }
+
+        return false;
     }
 
 
@@ -425,13 +453,24 @@ public class LeafPageOperations {
 
         // Figure out where the new tuple-value goes in the leaf page.
 
-        int newTupleSize = newTuple.getStorageSize();
-        if (leaf.getFreeSpace() < newTupleSize) {
-            // Try to relocate tuples from this leaf to either sibling,
-            // or if that can't happen, split the leaf page into two.
-            result = relocateTuplesAndAddTuple(leaf, pagePath, newTuple);
-            if (result == null)
-                result = splitLeafAndAddTuple(leaf, pagePath, newTuple);
+        if (!leaf.canAddTuple(newTuple)) {
+            SplitType splitType = getSplitType(leaf, pagePath, newTuple);
+            if (splitType == SplitType.EVEN) {
+                // Try to relocate tuples from this leaf to either sibling,
+                // or if that can't happen, split the leaf page into two.
+                result = relocateTuplesAndAddTuple(leaf, pagePath, newTuple);
+                if (result == null) {
+                    result = splitLeafAndAddTuple(leaf, pagePath, newTuple,
+                                                  splitType);
+                }
+            }
+            else {
+                // Keys are being added in order.  The sibling was left as
+                // full as the fill factor allows, so don't fill it up any
+                // further; just split the leaf.
+                result = splitLeafAndAddTuple(leaf, pagePath, newTuple,
+                                              splitType);
+            }
         }
         else {
             // There is room in the leaf for the new tuple.  Add it there.
@@ -442,6 +481,69 @@ public class LeafPageOperations {
     }
 
 
+    /**
+     * This helper determines how a full leaf should be split to make room for
+     * a new tuple.  If the tuple goes past the end of the last leaf in the
+     * file, or before the start of the first leaf, keys are probably being
+     * added in increasing or decreasing order, and the leaf is split
+     * according to the file's fill factor.  Otherwise the leaf is split
+     * evenly.
+     *
+     * @param leaf the full leaf that the tuple belongs in
+     *
+     * @param pagePath the path of pages taken from the root page to the leaf
+     *
+     * @param tuple the new tuple being added
+     *
+     * @return how the leaf should be split
+     *
+     * @throws IOException if an IO error occurs while loading the pages on
+     *         the path to the leaf
+     */
+    private SplitType getSplitType(LeafPage leaf, List<Integer> pagePath,
+        TupleLiteral tuple) throws IOException {
+
+        int numTuples = leaf.getNumTuples();
+        if (numTuples == 0)
+            return SplitType.EVEN;
+
+        if (leaf.getNextPageNo() == 0 && TupleComparator.compareTuples(
+            tuple, leaf.getTuple(numTuples - 1)) > 0) {
+            return SplitType.RIGHT_EDGE;
+        }
+
+        if (TupleComparator.compareTuples(tuple, leaf.getTuple(0)) < 0 &&
+            isLeftmostLeaf(pagePath)) {
+            return SplitType.LEFT_EDGE;
+        }
+
+        return SplitType.EVEN;
+    }
+
+
+    /**
+     * Returns true if the path from the root reaches the first leaf in the
+     * file, which is the case if it follows the first pointer of every inner
+     * page along the way.
+     *
+     * @param pagePath the path of pages taken from the root page to a leaf
+     *
+     * @return true if the path leads to the first leaf in the file
+     *
+     * @throws IOException if an IO error occurs while loading the inner pages
+     *         on the path
+     */
+    private boolean isLeftmostLeaf(List<Integer> pagePath) throws IOException {
+        for (int i = 0; i < pagePath.size() - 1; i++) {
+            InnerPage inner = innerPageOps.loadPage(pagePath.get(i));
+            if (inner.getPointer(0) != pagePath.get(i + 1))
+                return false;
+        }
+
+        return true;
+    }
+
+
     /**
      * This method attempts to relocate tuples to the left or right sibling
      * of the specified node, and then insert the specified tuple into the
@@ -468,8 +570,6 @@ public class LeafPageOperations {
         // See if we are able to relocate records either direction to free up
         // space for the new tuple.
 
-        int bytesRequired = tuple.getStorageSize();
-
         int pathSize = pagePath.size();
         if (pathSize == 1)  // This node is also the root - no parent.
             return null;    // There aren't any siblings to relocate to.
@@ -501,7 +601,7 @@ public class LeafPageOperations {
                 // previous leaf, to free up space.
 
                 int count = tryLeafRelocateForSpace(page, prevPage, false,
-                    bytesRequired);
+                    tuple);
 
                 if (count > 0) {
                     // Yes, we can do it!
@@ -529,12 +629,12 @@ public class LeafPageOperations {
                     }
 
                     // Since we relocated tuples between two nodes, update
-                    // the parent page to reflect the tuple that is now at
-                    // the start of the right page.
-                    BTreeFilePageTuple firstRightTuple = page.getTuple(0);
+                    // the parent page with a separator for the tuple that is
+                    // now at the start of the right page.
                     pagePath.remove(pathSize - 1);
                     innerPageOps.replaceTuple(parentPage, pagePath,
-                        prevPage.getPageNo(), firstRightTuple, page.getPageNo());
+                        prevPage.getPageNo(), getSeparator(prevPage, page),
+                        page.getPageNo());
 
                     return result;
                 }
@@ -551,7 +651,7 @@ public class LeafPageOperations {
                 // leaf, to free up space.
 
                 int count = tryLeafRelocateForSpace(page, nextPage, true,
-                    bytesRequired);
+                    tuple);
 
                 if (count > 0) {
                     // Yes, we can do it!
@@ -580,12 +680,12 @@ public class LeafPageOperations {
                     }
 
                     // Since we relocated tuples between two nodes, update
-                    // the parent page to reflect the tuple that is now at
-                    // the start of the right page.
-                    BTreeFilePageTuple firstRightTuple = nextPage.getTuple(0);
+                    // the parent page with a separator for the tuple that is
+                    // now at the start of the right page.
                     pagePath.remove(pathSize - 1);
                     innerPageOps.replaceTuple(parentPage, pagePath,
-                        page.getPageNo(), firstRightTuple, nextPage.getPageNo());
+                        page.getPageNo(), getSeparator(page, nextPage),
+                        nextPage.getPageNo());
 
                     return result;
                 }
@@ -618,13 +718,13 @@ public class LeafPageOperations {
         LeafPage nextLeaf, TupleLiteral tuple) {
 
         BTreeFilePageTuple result = null;
-        BTreeFilePageTuple firstRightTuple = nextLeaf.getTuple(0);
-        if (TupleComparator.compareTuples(tuple, firstRightTuple) < 0) {
+        if (nextLeaf.getNumTuples() > 0 && TupleComparator.compareTuples(
+            tuple, nextLeaf.getTuple(0)) < 0) {
             // The new tuple goes in the left page.  Hopefully there is room
             // for it...
             logger.debug("Adding tuple to left leaf " + prevLeaf.getPageNo() +
                 " in pair");
-            if (prevLeaf.getFreeSpace() >= tuple.getStorageSize())
+            if (prevLeaf.canAddTuple(tuple))
                 result = prevLeaf.addTuple(tuple);
         }
         else {
@@ -632,7 +732,7 @@ public class LeafPageOperations {
             // is room for it...
             logger.debug("Adding tuple to right leaf " + nextLeaf.getPageNo() +
                 " in pair");
-            if (nextLeaf.getFreeSpace() >= tuple.getStorageSize())
+            if (nextLeaf.canAddTuple(tuple))
                 result = nextLeaf.addTuple(tuple);
         }
 
@@ -642,9 +742,12 @@ public class LeafPageOperations {
 
     /**
      * This helper function determines how many tuples must be relocated from
-     * one leaf-page to another, in order to free up the specified number of
-     * bytes.  If it is possible, the number of tuples that must be relocated
-     * is returned.  If it is not possible, the method returns 0.
+     * one leaf-page to another, in order to make room for a new tuple.  If it
+     * is possible, the number of tuples that must be relocated is returned.
+     * If it is not possible, the method returns 0.  Since moving tuples can
+     * change the key prefix of both leaves, the sizes of both leaves are
+     * worked out in full for each number of tuples, with the new tuple in
+     * whichever leaf it would go into.
      *
      * @param leaf the leaf node to relocate tuples from
      *
@@ -656,28 +759,26 @@ public class LeafPageOperations {
      *        {@code false} if the sibling is to the left of {@code page} (and
      *        therefore we are moving tuples left).
      *
-     * @param bytesRequired the number of bytes that must be freed up in
-     *        {@code leaf} by the operation
+     * @param tuple the new tuple that must fit into one of the two leaves
+     *        after the operation
      *
      * @return the number of tuples that must be relocated to free up the
      *         required space, or 0 if it is not possible.
      */
     private int tryLeafRelocateForSpace(LeafPage leaf, LeafPage adjLeaf,
-        boolean movingRight, int bytesRequired) {
+        boolean movingRight, TupleLiteral tuple) {
 
         int numTuples = leaf.getNumTuples();
-        int leafBytesFree = leaf.getFreeSpace();
-        int adjBytesFree = adjLeaf.getFreeSpace();
+        int adjTuples = adjLeaf.getNumTuples();
+        int totalSpace = leaf.getTotalSpace();
 
-        logger.debug("Leaf bytes free:  " + leafBytesFree +
-            "\t\tAdjacent leaf bytes free:  " + adjBytesFree);
+        int leafFullSize = leaf.getFullSizeOfTuples();
+        int adjFullSize = adjLeaf.getFullSizeOfTuples();
 
-        // Subtract the bytes-required from the adjacent-bytes-free value so
-        // that we ensure we always have room to put the tuple in either node.
-        adjBytesFree -= bytesRequired;
+        logger.debug("Leaf bytes free:  " + leaf.getFreeSpace() +
+            "\t\tAdjacent leaf bytes free:  " + adjLeaf.getFreeSpace());
 
-        int numRelocated = 0;
-        while (true) {
+        for (int count = 1; count < numTuples; count++) {
             // Figure out the index of the tuple we need the size of, based on
             // the direction we are moving values.  If we are moving values
             // right, we need to look at the tuples starting at the rightmost
@@ -685,36 +786,57 @@ public class LeafPageOperations {
             // leftmost tuple.
             int index;
             if (movingRight)
-                index = numTuples - numRelocated - 1;
+                index = numTuples - count;
             else
-                index = numRelocated;
+                index = count - 1;
+
+            int tupleSize = leaf.getFullTupleSize(index);
+            leafFullSize -= tupleSize;
+            adjFullSize += tupleSize;
+
+            // Work out the first and last tuples each leaf would have, and
+            // which leaf the new tuple would go into.
+            Tuple leafFirst, leafLast, adjFirst, adjLast;
+            boolean tupleInLeaf;
+            if (movingRight) {
+                leafFirst = leaf.getTuple(0);
+                leafLast = leaf.getTuple(numTuples - count - 1);
+                adjFirst = leaf.getTuple(numTuples - count);
+                adjLast = (adjTuples > 0 ? adjLeaf.getTuple(adjTuples - 1) :
+                                           leaf.getTuple(numTuples - 1));
+                tupleInLeaf = TupleComparator.compareTuples(tuple, adjFirst) < 0;
+            }
+            else {
+                adjFirst = (adjTuples > 0 ? adjLeaf.getTuple(0) :
+                                            leaf.getTuple(0));
+                adjLast = leaf.getTuple(count - 1);
+                leafFirst = leaf.getTuple(count);
+                leafLast = leaf.getTuple(numTuples - 1);
+                tupleInLeaf = TupleComparator.compareTuples(tuple, leafFirst) >= 0;
+            }
 
-            int tupleSize = leaf.getTupleSize(index);
+            int leafSize = getLeafSize(leaf, leafFirst, leafLast,
+                numTuples - count, leafFullSize, tupleInLeaf ? tuple : null);
+            int adjSize = getLeafSize(leaf, adjFirst, adjLast,
+                adjTuples + count, adjFullSize, tupleInLeaf ? null : tuple);
 
-            logger.debug("Tuple " + index + " is " + tupleSize + " bytes");
+            logger.debug(String.format("Relocating %d tuples would leave " +
+                "%d bytes in the leaf and %d bytes in the adjacent leaf",
+                count, leafSize, adjSize));
 
             // Did we run out of space to move tuples before we hit our goal?
-            if (adjBytesFree < tupleSize) {
-                numRelocated = 0;
+            if (adjSize > totalSpace)
                 break;
-            }
-
-            numRelocated++;
 
-            leafBytesFree += tupleSize;
-            adjBytesFree -= tupleSize;
-
-            // Since we don't yet know which leaf the new tuple will go into,
-            // stop when we can put the tuple in either leaf.
-            if (leafBytesFree >= bytesRequired &&
-                adjBytesFree >= bytesRequired) {
-                break;
+            if (leafSize <= totalSpace) {
+                logger.debug("Can relocate " + count +
+                    " tuples to free up space.");
+                return count;
             }
         }
 
-        logger.debug("Can relocate " + numRelocated + " tuples to free up space.");
-
-        return numRelocated;
+        logger.debug("Can't relocate tuples to free up space.");
+        return 0;
     }
 
 
@@ -724,12 +846,10 @@ public class LeafPageOperations {
      * specified tuple into the appropriate leaf.  This method is used to add
      * a tuple to a leaf that doesn't have enough space, when it isn't
      * possible to relocate values to the left or right sibling of the leaf.
-     *
-     * @todo (donnie) When the leaf node is split, half of the tuples are
-     *       put into the new leaf, regardless of the size of individual
-     *       tuples.  In other words, this method doesn't try to keep the
-     *       leaves half-full based on bytes used.  It would almost
-     *       certainly be better if it did.
+     * The tuples are divided as the split type specifies (see
+     * {@link #chooseSplitCount}), and the key stored in the parent is the
+     * shortest separator between the two leaves (see
+     * {@link KeyCompression#getSeparator}).
      *
      * @param leaf the leaf node to split and then add the tuple to
      * @param pagePath the sequence of page-numbers traversed to reach this
@@ -737,10 +857,13 @@ public class LeafPageOperations {
      *
      * @param tuple the new tuple to insert into the leaf node
      *
+     * @param splitType how the tuples should be divided between the leaves
+     *
      * @throws IOException if an IO error occurs during the operation.
      */
     private BTreeFilePageTuple splitLeafAndAddTuple(LeafPage leaf,
-        List<Integer> pagePath, TupleLiteral tuple) throws IOException {
+        List<Integer> pagePath, TupleLiteral tuple, SplitType splitType)
+        throws IOException {
 
         int pathSize = pagePath.size();
         if (pagePath.get(pathSize - 1) != leaf.getPageNo()) {
@@ -750,35 +873,188 @@ public class LeafPageOperations {
 
         if (logger.isDebugEnabled()) {
             logger.debug("Splitting leaf-page " + leaf.getPageNo() +
-                " into two leaves.");
+                " into two leaves (" + splitType + " split).");
             logger.debug("    Old next-page:  " + leaf.getNextPageNo());
         }
 
+        int count = chooseSplitCount(leaf, tuple, splitType);
+
         // Get a new blank page in the index, with the same parent as the
         // leaf-page we were handed.
 
         DBPage newDBPage = fileOps.getNewDataPage();
-        LeafPage newLeaf = LeafPage.init(newDBPage, tupleFile.getSchema());
-
-        /* TODO:  IMPLEMENT THE REST OF THIS METHOD.
-         *
-         * The LeafPage class provides some helpful operations for moving leaf-
-         * entries to a left or right sibling.
-         *
-         * The parent page must also be updated.  If the leaf node doesn't have
-         * a parent, the tree's depth will increase by one level.
-         */
-        logger.error("NOT YET IMPLEMENTED:  splitLeafAndAddKey()");
-        return null;
+        LeafPage newLeaf = LeafPage.init(newDBPage, tupleFile.getStorageSchema());
+
+        newLeaf.setNextPageNo(leaf.getNextPageNo());
+        leaf.setNextPageNo(newLeaf.getPageNo());
+
+        if (count > 0)
+            leaf.moveTuplesRight(newLeaf, count);
+
+        BTreeFilePageTuple result = addTupleToLeafPair(leaf, newLeaf, tuple);
+        if (result == null) {
+            // This is unexpected, but we had better report it if it happens.
+            throw new IllegalStateException("UNEXPECTED:  Couldn't add " +
+                "tuple to either leaf after splitting leaf " + leaf.getPageNo());
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("    Left leaf %d has %d tuples " +
+                "(%d bytes); right leaf %d has %d tuples (%d bytes)",
+                leaf.getPageNo(), leaf.getNumTuples(), leaf.getUsedSpace(),
+                newLeaf.getPageNo(), newLeaf.getNumTuples(),
+                newLeaf.getUsedSpace()));
+        }
+
+        TupleLiteral separator = getSeparator(leaf, newLeaf);
+
+        if (pathSize == 1) {
+            // The leaf was the root, so the tree gets a new root, with the
+            // two leaves as its children.
+            DBPage dbpParent = fileOps.getNewDataPage();
+            InnerPage parentPage = InnerPage.init(dbpParent,
+                tupleFile.getStorageSchema(), leaf.getPageNo(), separator,
+                newLeaf.getPageNo());
+
+            DBPage dbpHeader =
+                storageManager.loadDBPage(tupleFile.getDBFile(), 0);
+            HeaderPage.setRootPageNo(dbpHeader, parentPage.getPageNo());
+
+            logger.debug("Set index root-page to inner-page " +
+                parentPage.getPageNo());
+        }
+        else {
+            // Add the new leaf into the parent page.  (This may cause the
+            // parent page's contents to be moved or split, if the parent is
+            // full.)
+            InnerPage parentPage =
+                innerPageOps.loadPage(pagePath.get(pathSize - 2));
+
+            pagePath.remove(pathSize - 1);
+            innerPageOps.addTuple(parentPage, pagePath, leaf.getPageNo(),
+                separator, newLeaf.getPageNo());
+        }
+
+        return result;
+    }
+
+
+    /**
+     * This helper chooses how many tuples to move from a full leaf into a new
+     * right sibling.  For an even split, the two leaves use as close to the
+     * same number of bytes as possible after the new tuple is added.  For a
+     * right-edge split, the left leaf is filled as close to the file's fill
+     * factor as it can be without going over, and for a left-edge split the
+     * same is done for the right leaf.  If an edge split isn't possible, the
+     * leaf is split evenly.
+     *
+     * @param leaf the leaf being split
+     *
+     * @param tuple the new tuple being added
+     *
+     * @param splitType how the tuples should be divided between the leaves
+     *
+     * @return the number of tuples to move to the new sibling, which is 0 if
+     *         only the new tuple goes into the sibling
+     *
+     * @throws IllegalStateException if there is no way to split the leaf so
+     *         that both halves fit in a page
+     */
+    private int chooseSplitCount(LeafPage leaf, TupleLiteral tuple,
+                                 SplitType splitType) {
+        int numTuples = leaf.getNumTuples();
+        int totalSpace = leaf.getTotalSpace();
+        int targetSize = totalSpace * tupleFile.getFillFactor() / 100;
+
+        int leftFullSize = leaf.getFullSizeOfTuples();
+        int rightFullSize = 0;
+
+        int evenCount = -1;
+        int evenSize = Integer.MAX_VALUE;
+        int edgeCount = -1;
+        int edgeSize = -1;
+        for (int count = 0; count <= numTuples; count++) {
+            if (count > 0) {
+                int tupleSize = leaf.getFullTupleSize(numTuples - count);
+                leftFullSize -= tupleSize;
+                rightFullSize += tupleSize;
+            }
+
+            boolean tupleInLeft;
+            if (count == 0) {
+                tupleInLeft = TupleComparator.compareTuples(tuple,
+                    leaf.getTuple(numTuples - 1)) < 0;
+            }
+            else {
+                tupleInLeft = TupleComparator.compareTuples(tuple,
+                    leaf.getTuple(numTuples - count)) < 0;
+            }
+
+            // Neither leaf may be left empty.
+            if ((count == 0 && tupleInLeft) ||
+                (count == numTuples && !tupleInLeft)) {
+                continue;
+            }
+
+            int leftSize;
+            if (count < numTuples) {
+                leftSize = getLeafSize(leaf, leaf.getTuple(0),
+                    leaf.getTuple(numTuples - count - 1), numTuples - count,
+                    leftFullSize, tupleInLeft ? tuple : null);
+            }
+            else {
+                leftSize = getLeafSize(leaf, tuple, tuple, 0, 0, tuple);
+            }
+
+            int rightSize;
+            if (count > 0) {
+                rightSize = getLeafSize(leaf, leaf.getTuple(numTuples - count),
+                    leaf.getTuple(numTuples - 1), count, rightFullSize,
+                    tupleInLeft ? null : tuple);
+            }
+            else {
+                rightSize = getLeafSize(leaf, tuple, tuple, 0, 0, tuple);
+            }
+
+            if (leftSize > totalSpace || rightSize > totalSpace)
+                continue;
+
+            int size = Math.max(leftSize, rightSize);
+            if (size < evenSize) {
+                evenCount = count;
+                evenSize = size;
+            }
+
+            int filledSize;
+            if (splitType == SplitType.RIGHT_EDGE)
+                filledSize = leftSize;
+            else if (splitType == SplitType.LEFT_EDGE)
+                filledSize = rightSize;
+            else
+                continue;
+
+            if (filledSize <= targetSize && filledSize > edgeSize) {
+                edgeCount = count;
+                edgeSize = filledSize;
+            }
+        }
+
+        if (evenCount == -1) {
+            throw new IllegalStateException(String.format("Couldn't find " +
+                "a way to split leaf %d so that both halves fit",
+                leaf.getPageNo()));
+        }
+
+        return (edgeCount != -1) ? edgeCount : evenCount;
     }
 
 
     /**
      * This helper function determines how many tuples must be relocated from
      * one leaf-page to another, in order to satisfy the "minimum space"
-     * requirement of the B tree.free up the specified number of
-     * bytes.  If it is possible, the number of tuples that must be relocated
-     * is returned.  If it is not possible, the method returns 0.
+     * requirement of the B tree.  If it is possible, the number of tuples
+     * that must be relocated is returned.  If it is not possible, the method
+     * returns 0.
      *
      * @param leaf the leaf node to relocate tuples from
      *
@@ -796,18 +1072,21 @@ public class LeafPageOperations {
     private int tryLeafRelocateToFill(LeafPage leaf, LeafPage adjLeaf,
                                       boolean movingRight) {
 
+        int numTuples = leaf.getNumTuples();
         int adjTuples = adjLeaf.getNumTuples();    // Tuples available to move
-        int leafBytesFree = leaf.getFreeSpace();
-        int adjBytesFree = adjLeaf.getFreeSpace();
+        int totalSpace = leaf.getTotalSpace();
 
         // Should be the same for both leaf and adjLeaf.
-        int halfFull = leaf.getTotalSpace() / 2;
+        int halfFull = totalSpace / 2;
 
-        logger.debug("Leaf bytes free:  " + leafBytesFree +
-            "\t\tAdjacent leaf bytes free:  " + adjBytesFree);
+        int leafFullSize = leaf.getFullSizeOfTuples();
+        int adjFullSize = adjLeaf.getFullSizeOfTuples();
+
+        logger.debug("Leaf bytes free:  " + leaf.getFreeSpace() +
+            "\t\tAdjacent leaf bytes free:  " + adjLeaf.getFreeSpace());
 
         int numRelocated = 0;
-        while (true) {
+        for (int count = 1; count < adjTuples; count++) {
             // Figure out the index of the tuple we need the size of, based on
             // the direction we are moving values.  If we are moving values
             // right, we need to look at the tuples starting at the rightmost
@@ -815,30 +1094,48 @@ public class LeafPageOperations {
             // leftmost tuple.
             int index;
             if (movingRight)
-                index = adjTuples - numRelocated - 1;
+                index = adjTuples - count;
             else
-                index = numRelocated;
-
-            int tupleSize = adjLeaf.getTupleSize(index);
+                index = count - 1;
+
+            int tupleSize = adjLeaf.getFullTupleSize(index);
+            leafFullSize += tupleSize;
+            adjFullSize -= tupleSize;
+
+            Tuple leafFirst, leafLast, adjFirst, adjLast;
+            if (movingRight) {
+                leafFirst = adjLeaf.getTuple(adjTuples - count);
+                leafLast = (numTuples > 0 ? leaf.getTuple(numTuples - 1) :
+                                            adjLeaf.getTuple(adjTuples - 1));
+                adjFirst = adjLeaf.getTuple(0);
+                adjLast = adjLeaf.getTuple(adjTuples - count - 1);
+            }
+            else {
+                leafFirst = (numTuples > 0 ? leaf.getTuple(0) :
+                                             adjLeaf.getTuple(0));
+                leafLast = adjLeaf.getTuple(count - 1);
+                adjFirst = adjLeaf.getTuple(count);
+                adjLast = adjLeaf.getTuple(adjTuples - 1);
+            }
 
-            logger.debug("Tuple " + index + " is " + tupleSize + " bytes");
+            int leafSize = getLeafSize(leaf, leafFirst, leafLast,
+                numTuples + count, leafFullSize, null);
+            int adjSize = getLeafSize(leaf, adjFirst, adjLast,
+                adjTuples - count, adjFullSize, null);
 
             // If we don't have room to move the adjacent node's tuple into
             // this node (unlikely), just stop there.
-            if (leafBytesFree < tupleSize)
+            if (leafSize > totalSpace)
                 break;
 
             // If the adjacent leaf would become too empty, stop relocating.
-            if (adjBytesFree > halfFull)
+            if (adjSize < halfFull)
                 break;
 
-            numRelocated++;
-
-            leafBytesFree -= tupleSize;
-            adjBytesFree += tupleSize;
+            numRelocated = count;
 
             // Stop if the leaf now has at least the minimal number of bytes.
-            if (leafBytesFree <= halfFull)
+            if (leafSize >= halfFull)
                 break;
         }
 
@@ -847,4 +1144,85 @@ public class LeafPageOperations {
 
         return numRelocated;
     }
+
+
+    /**
+     * Returns true if two adjacent leaves' tuples would fit into one leaf.
+     *
+     * @param left the left leaf
+     *
+     * @param right the right leaf
+     *
+     * @return true if the leaves can be coalesced
+     */
+    private boolean canCoalesce(LeafPage left, LeafPage right) {
+        int numTuples = left.getNumTuples() + right.getNumTuples();
+        if (numTuples == 0)
+            return true;
+
+        Tuple first = (left.getNumTuples() > 0 ? left : right).getTuple(0);
+        Tuple last = (right.getNumTuples() > 0 ?
+            right.getTuple(right.getNumTuples() - 1) :
+            left.getTuple(left.getNumTuples() - 1));
+
+        int size = left.getStorageSize(first, last, numTuples,
+            left.getFullSizeOfTuples() + right.getFullSizeOfTuples());
+
+        return size <= left.getTotalSpace();
+    }
+
+
+    /**
+     * This helper computes how much space a leaf would use to hold a run of
+     * tuples in key order, along with an optional extra tuple.
+     *
+     * @param leaf any leaf in the file, to compute the size with
+     *
+     * @param first the first tuple in the run
+     *
+     * @param last the last tuple in the run
+     *
+     * @param numTuples the number of tuples in the run
+     *
+     * @param fullSize the uncompressed size of the tuples in the run
+     *
+     * @param extra an extra tuple to include in the run, or {@code null}
+     *
+     * @return the number of bytes a leaf holding the tuples would use
+     */
+    private int getLeafSize(LeafPage leaf, Tuple first, Tuple last,
+                            int numTuples, int fullSize, TupleLiteral extra) {
+        if (extra != null) {
+            if (numTuples == 0 ||
+                TupleComparator.compareTuples(extra, first) < 0) {
+                first = extra;
+            }
+            if (numTuples == 0 ||
+                TupleComparator.compareTuples(extra, last) > 0) {
+                last = extra;
+            }
+
+            numTuples++;
+            fullSize += PageTuple.getTupleStorageSize(leaf.getSchema(), extra);
+        }
+
+        return leaf.getStorageSize(first, last, numTuples, fullSize);
+    }
+
+
+    /**
+     * Returns the key to store in the parent between two adjacent leaves,
+     * which is the shortest key that separates the last tuple of the left
+     * leaf from the first tuple of the right leaf.
+     *
+     * @param left the left leaf, which must not be empty
+     *
+     * @param right the right leaf, which must not be empty
+     *
+     * @return the separator key
+     */
+    private TupleLiteral getSeparator(LeafPage left, LeafPage right) {
+        return KeyCompression.getSeparator(
+            left.getTuple(left.getNumTuples() - 1), right.getTuple(0));
+    }
 }
@@ -0,0 +1,204 @@
+package com.wind.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * <p>
+ * This class holds the latches on the pages of a B<sup>+</sup> tree file,
+ * which keep threads that are using the file at the same time from seeing
+ * each other's pages half-changed.  Each page has a read/write latch, which
+ * a thread holds in shared mode to read the page, or in exclusive mode to
+ * change it.  Latches are only held for the duration of one operation on
+ * the file; they are not transaction locks.
+ * </p>
+ * <p>
+ * The latch on the header page (page 0) also guards the root page number
+ * and the list of empty pages.  Every operation starts by latching the
+ * header page, so an operation that holds the header page exclusively is
+ * the only one that can change the shape of the tree.
+ * </p>
+ * <p>
+ * The class also records which latches the current thread holds, so that
+ * all of them can be released when an operation finishes or fails, and so
+ * that a page that is already latched isn't latched a second time.  A
+ * thread can also be marked as changing the tree's structure, in which case
+ * every page that the {@link LeafPageOperations} and
+ * {@link InnerPageOperations} helpers load is latched exclusively.
+ * </p>
+ */
+class PageLatches {
+
+    /** The state of the latches that one thread holds on the file. */
+    private static class HeldLatches {
+        /**
+         * The page numbers of the pages whose latches are held, mapped to
+         * true for exclusive latches and false for shared latches.
+         */
+        HashMap<Integer, Boolean> pages = new HashMap<>();
+
+
+        /**
+         * True if the thread is changing the tree's structure, so that the
+         * pages it loads must be latched exclusively.
+         */
+        boolean structureChange;
+    }
+
+
+    /** The latch on each page of the file, created the first time it's used. */
+    private ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches =
+        new ConcurrentHashMap<>();
+
+
+    /** The latches held by each thread. */
+    private ThreadLocal<HeldLatches> heldLatches =
+        ThreadLocal.withInitial(HeldLatches::new);
+
+
+    private ReentrantReadWriteLock getLatch(int pageNo) {
+        return latches.computeIfAbsent(pageNo,
+            n -> new ReentrantReadWriteLock());
+    }
+
+
+    /**
+     * Latches a page in shared mode, waiting for any thread that holds it
+     * exclusively.  Nothing is done if the current thread already holds the
+     * page's latch in either mode.
+     *
+     * @param pageNo the number of the page to latch
+     */
+    public void lockShared(int pageNo) {
+        HeldLatches held = heldLatches.get();
+        if (held.pages.containsKey(pageNo))
+            return;
+
+        getLatch(pageNo).readLock().lock();
+        held.pages.put(pageNo, false);
+    }
+
+
+    /**
+     * Latches a page in shared mode if that can be done without waiting.
+     *
+     * @param pageNo the number of the page to latch
+     *
+     * @return true if the current thread now holds the page's latch, or
+     *         false if another thread holds it exclusively
+     */
+    public boolean tryLockShared(int pageNo) {
+        HeldLatches held = heldLatches.get();
+        if (held.pages.containsKey(pageNo))
+            return true;
+
+        if (!getLatch(pageNo).readLock().tryLock())
+            return false;
+
+        held.pages.put(pageNo, false);
+        return true;
+    }
+
+
+    /**
+     * Latches a page in exclusive mode, waiting for all other threads that
+     * hold it.  Nothing is done if the current thread already holds the
+     * page's latch exclusively.
+     *
+     * @param pageNo the number of the page to latch
+     *
+     * @throws IllegalStateException if the current thread holds the page's
+     *         latch in shared mode, since it would wait for itself
+     */
+    public void lockExclusive(int pageNo) {
+        HeldLatches held = heldLatches.get();
+        Boolean exclusive = held.pages.get(pageNo);
+        if (exclusive != null) {
+            if (!exclusive) {
+                throw new IllegalStateException("Can't latch page " + pageNo +
+                    " exclusively while holding a shared latch on it");
+            }
+            return;
+        }
+
+        getLatch(pageNo).writeLock().lock();
+        held.pages.put(pageNo, true);
+    }
+
+
+    /**
+     * Returns true if the current thread holds the latch on a page
+     * exclusively.
+     *
+     * @param pageNo the number of the page
+     *
+     * @return true if the page is latched exclusively by this thread
+     */
+    public boolean holdsExclusive(int pageNo) {
+        return Boolean.TRUE.equals(heldLatches.get().pages.get(pageNo));
+    }
+
+
+    /**
+     * Releases the current thread's latch on a page.
+     *
+     * @param pageNo the number of the page to release
+     *
+     * @throws IllegalStateException if the current thread doesn't hold the
+     *         page's latch
+     */
+    public void unlock(int pageNo) {
+        Boolean exclusive = heldLatches.get().pages.remove(pageNo);
+        if (exclusive == null) {
+            throw new IllegalStateException("Page " + pageNo +
+                " isn't latched by this thread");
+        }
+
+        ReentrantReadWriteLock latch = getLatch(pageNo);
+        if (exclusive)
+            latch.writeLock().unlock();
+        else
+            latch.readLock().unlock();
+    }
+
+
+    /**
+     * Releases all latches that the current thread holds on the file, and
+     * ends any structure change that the thread started.
+     */
+    public void unlockAll() {
+        HeldLatches held = heldLatches.get();
+        held.structureChange = false;
+
+        for (int pageNo : new ArrayList<>(held.pages.keySet()))
+            unlock(pageNo);
+    }
+
+
+    /**
+     * Records that the current thread is about to change the structure of
+     * the tree.  Until {@link #unlockAll} is called, pages passed to
+     * {@link #lockForStructureChange} are latched exclusively.
+     */
+    public void beginStructureChange() {
+        heldLatches.get().structureChange = true;
+    }
+
+
+    /**
+     * Latches a page exclusively if the current thread is changing the
+     * structure of the tree, or does nothing otherwise.  The helpers that
+     * split, merge and relocate pages call this for every page they load,
+     * which covers the siblings of the pages on the path from the root.
+     *
+     * @param pageNo the number of the page that is being loaded
+     */
+    public void lockForStructureChange(int pageNo) {
+        if (heldLatches.get().structureChange)
+            lockExclusive(pageNo);
+    }
+}
@@ -41,6 +41,43 @@ public class DataPage {
     public static final int EMPTY_SLOT = 0;
 
 
+    /**
+     * The record-type stored in the first byte of a record that holds an
+     * ordinary tuple, stored in its home slot.
+     */
+    public static final int RECORD_NORMAL = 0;
+
+
+    /**
+     * The record-type of a forwarding stub.  A tuple that grew too large for
+     * its page is moved to another page, and its home slot is left holding a
+     * stub with the page number (an int) and slot (an unsigned short) that
+     * the tuple moved to.  This keeps the tuple's file-pointer stable.
+     */
+    public static final int RECORD_FORWARD = 1;
+
+
+    /**
+     * The record-type of a tuple that has been moved away from its home slot.
+     * The record header also holds the page number (an int) and slot (an
+     * unsigned short) of the tuple's home, so that the tuple can still be
+     * referred to by its original file-pointer.
+     */
+    public static final int RECORD_MOVED = 2;
+
+
+    /** The size of the header of an ordinary tuple's record. */
+    public static final int NORMAL_HEADER_SIZE = 1;
+
+
+    /** The size of the header of a moved tuple's record. */
+    public static final int MOVED_HEADER_SIZE = 7;
+
+
+    /** The size of a forwarding stub. */
+    public static final int FORWARD_RECORD_SIZE = 7;
+
+
     /**
      * Initialize a newly allocated data page.  Currently this involves setting
      * the number of slots to 0.  There is no other internal structure in data
@@ -63,16 +100,37 @@ public class DataPage {
      * to be the current "capacity" of the page, since any number of the slots
      * could be set to {@link #EMPTY_SLOT} to indicate that they are empty. Note
      * that an empty slot can also contribute to the total number of slots when
-     * the empty slot is followed by non-empty slots.
+     * the empty slot is followed by non-empty slots.  Pages that are
+     * not {@linkplain #isDataPage data pages} are reported as having no
+     * slots.
      *
      * @param dbPage the data page to retrieve the number of slots for
      * @return the current number of slots in the page
      */
     public static int getNumSlots(DBPage dbPage) {
+        // Overflow and zone-map pages look like data pages with no slots, so
+        // that scans pass over them.
+        if (!isDataPage(dbPage))
+            return 0;
+
         return dbPage.readUnsignedShort(OFFSET_NUM_SLOTS);
     }
 
 
+    /**
+     * Returns true if the specified page of a heap file is a data page, as
+     * opposed to an {@linkplain OverflowPage overflow page} or a
+     * {@linkplain ZoneMapPage zone-map page}.
+     *
+     * @param dbPage the page to examine
+     * @return true if the page is a data page
+     */
+    public static boolean isDataPage(DBPage dbPage) {
+        return !OverflowPage.isOverflowPage(dbPage) &&
+               !ZoneMapPage.isZoneMapPage(dbPage);
+    }
+
+
     /**
      * Sets the number of slots in this data page.  Note that if the number of
      * slots is increased, the new slots <em>must</em> be initialized to
@@ -274,6 +332,128 @@ public class DataPage {
     }
 
 
+    /**
+     * Returns the type of the record stored in the specified slot; one of
+     * {@link #RECORD_NORMAL}, {@link #RECORD_FORWARD} or {@link #RECORD_MOVED}.
+     *
+     * @param dbPage the data page being examined
+     * @param slot the slot of the record; it must not be empty
+     *
+     * @return the type of the record
+     */
+    public static int getRecordType(DBPage dbPage, int slot) {
+        return dbPage.readUnsignedByte(getSlotValue(dbPage, slot));
+    }
+
+
+    /**
+     * Returns the size of the header at the start of a tuple's record, given
+     * the record type.
+     *
+     * @param recordType the type of the record
+     *
+     * @return the number of bytes before the tuple's data starts
+     *
+     * @throws IllegalArgumentException if the record type doesn't hold a
+     *         tuple
+     */
+    public static int getRecordHeaderSize(int recordType) {
+        switch (recordType) {
+            case RECORD_NORMAL:
+                return NORMAL_HEADER_SIZE;
+
+            case RECORD_MOVED:
+                return MOVED_HEADER_SIZE;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Record type " + recordType + " doesn't hold a tuple");
+        }
+    }
+
+
+    /**
+     * Returns the page number stored in a forwarding stub or a moved tuple's
+     * header.  For a stub this is where the tuple moved to; for a moved tuple
+     * this is the tuple's home.
+     *
+     * @param dbPage the data page being examined
+     * @param slot the slot of the stub or moved tuple
+     *
+     * @return the page number that the record links to
+     */
+    public static int getLinkPageNo(DBPage dbPage, int slot) {
+        return dbPage.readInt(getSlotValue(dbPage, slot) + 1);
+    }
+
+
+    /**
+     * Returns the slot stored in a forwarding stub or a moved tuple's header.
+     *
+     * @see #getLinkPageNo
+     *
+     * @param dbPage the data page being examined
+     * @param slot the slot of the stub or moved tuple
+     *
+     * @return the slot that the record links to
+     */
+    public static int getLinkSlot(DBPage dbPage, int slot) {
+        return dbPage.readUnsignedShort(getSlotValue(dbPage, slot) + 5);
+    }
+
+
+    /**
+     * Writes the header of the record in the specified slot.  The page
+     * number and slot are only written for forwarding stubs and moved tuples.
+     *
+     * @param dbPage the data page holding the record
+     * @param slot the slot of the record
+     * @param recordType the type of the record
+     * @param linkPageNo for a stub, where the tuple is; for a moved tuple,
+     *        where its home is
+     * @param linkSlot the slot that goes with <tt>linkPageNo</tt>
+     */
+    public static void writeRecordHeader(DBPage dbPage, int slot,
+        int recordType, int linkPageNo, int linkSlot) {
+
+        int offset = getSlotValue(dbPage, slot);
+        dbPage.writeByte(offset, recordType);
+        if (recordType != RECORD_NORMAL) {
+            dbPage.writeInt(offset + 1, linkPageNo);
+            dbPage.writeShort(offset + 5, linkSlot);
+        }
+    }
+
+
+    /**
+     * Changes the length of the record in the specified slot, keeping the
+     * record's leading bytes.  If the record grows, the new bytes at its end
+     * are zeroed.  Other records in the page move to make room (or to fill
+     * the gap), and their slots are updated.
+     *
+     * @param dbPage the data page holding the record
+     * @param slot the slot of the record to resize
+     * @param newLength the new length of the record
+     *
+     * @throws IllegalArgumentException if the page doesn't have enough free
+     *         space for the record to grow
+     */
+    public static void resizeTuple(DBPage dbPage, int slot, int newLength) {
+        int offset = getSlotValue(dbPage, slot);
+        int length = getTupleLength(dbPage, slot);
+
+        if (newLength < length) {
+            // This moves the start of the record, and updates its slot.
+            deleteTupleDataRange(dbPage, offset + newLength, length - newLength);
+        }
+        else if (newLength > length) {
+            // The record's own slot is only updated when its offset is less
+            // than the insertion point, so insert at the record's end.
+            insertTupleDataRange(dbPage, offset + length, newLength - length);
+        }
+    }
+
+
     /**
      * This static helper function returns the amount of free space in
      * a tuple data page.  It simply uses other methods in this class to
@@ -283,6 +463,10 @@ public class DataPage {
      * @return the amount of free space in the data page, in bytes
      */
     public static int getFreeSpaceInPage(DBPage dbPage) {
+        // Tuples can only be added to data pages.
+        if (!isDataPage(dbPage))
+            return 0;
+
         return getTupleDataStart(dbPage) - getSlotsEndIndex(dbPage);
     }
 
@@ -391,9 +575,11 @@ public class DataPage {
         // offset.  The update is easy; slot values just move down by len bytes.
 
         int numSlots = getNumSlots(dbPage);
+        int[] slotValues = new int[numSlots];
+        dbPage.readUnsignedShorts(getSlotOffset(0), slotValues, 0, numSlots);
         for (int iSlot = 0; iSlot < numSlots; iSlot++) {
 
-            int slotValue = getSlotValue(dbPage, iSlot);
+            int slotValue = slotValues[iSlot];
             if (slotValue != EMPTY_SLOT && slotValue < off) {
                 // Update this slot's offset.
                 slotValue -= len;
@@ -451,9 +637,11 @@ public class DataPage {
         // values just move up by len bytes.
 
         int numSlots = getNumSlots(dbPage);
+        int[] slotValues = new int[numSlots];
+        dbPage.readUnsignedShorts(getSlotOffset(0), slotValues, 0, numSlots);
         for (int iSlot = 0; iSlot < numSlots; iSlot++) {
 
-            int slotValue = getSlotValue(dbPage, iSlot);
+            int slotValue = slotValues[iSlot];
             if (slotValue != EMPTY_SLOT && slotValue <= off) {
                 // Update this slot's offset.
                 slotValue += len;
@@ -602,11 +790,11 @@ public class DataPage {
 
         setSlotValue(dbPage, slot, EMPTY_SLOT);
 
-        for (int s = numSlots - 1; s >= 0; s--) {
-            int currSlotValue = getSlotValue(dbPage, s);
-            if (currSlotValue == EMPTY_SLOT) {
-                numSlots--;
-            }
-        }
+        // Reclaim the empty slots at the end of the slot table.  Empty slots
+        // in the middle have to stay, so that later slots keep their indexes.
+        while (numSlots > 0 && getSlotValue(dbPage, numSlots - 1) == EMPTY_SLOT)
+            numSlots--;
+
+        setNumSlots(dbPage, numSlots);
     }
 }
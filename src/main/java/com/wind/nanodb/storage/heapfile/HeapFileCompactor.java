@@ -0,0 +1,395 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleMoveListener;
+
+
+/**
+ * <p>
+ * Compacts a heap file by moving the tuples on the last pages of the file
+ * into free space on earlier pages, and then truncating the empty pages off
+ * the end of the file.  This gives back the space left behind by large
+ * deletes, which otherwise stays in the file and has to be read by every
+ * scan.
+ * </p>
+ * <p>
+ * A tuple that is moved this way gets a new file-pointer, so each move is
+ * reported to a {@link TupleMoveListener} (so that indexes can be updated).
+ * Tuples that were already moved away from their home slots by an update
+ * keep their file-pointers; only the forwarding stub in the home slot is
+ * changed.
+ * </p>
+ * <p>
+ * Overflow pages are never moved, since tuples refer to them by page number,
+ * so compaction stops at the last overflow page in the file.
+ * </p>
+ * <p>
+ * The work is done in batches of at most
+ * <tt>nanodb.optimize.batchsize</tt> tuples.  No pages are held pinned
+ * between batches, and each batch's changes are written out before the next
+ * batch starts, so that compacting a large table doesn't fill the buffer
+ * pool with dirty pages.
+ * </p>
+ */
+class HeapFileCompactor {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HeapFileCompactor.class);
+
+
+    /**
+     * The system property that can be used to specify how many tuples are
+     * moved in each batch when a heap file is compacted.
+     */
+    public static final String PROP_BATCH_SIZE = "nanodb.optimize.batchsize";
+
+
+    /** The default number of tuples moved in each batch. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+
+    /**
+     * Returns the number of tuples to move in each batch, based on the
+     * <tt>nanodb.optimize.batchsize</tt> system property.
+     *
+     * @return the number of tuples to move in each batch
+     */
+    private static int getBatchSize() {
+        int batchSize = DEFAULT_BATCH_SIZE;
+
+        String str = System.getProperty(PROP_BATCH_SIZE);
+        if (str != null) {
+            try {
+                batchSize = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException nfe) {
+                logger.warn("Current value of " + PROP_BATCH_SIZE +
+                    " property is not an integer:  \"" + str + "\"");
+            }
+
+            if (batchSize < 1)
+                batchSize = DEFAULT_BATCH_SIZE;
+        }
+
+        return batchSize;
+    }
+
+
+    private HeapTupleFile tupleFile;
+
+
+    private StorageManager storageManager;
+
+
+    private DBFile dbFile;
+
+
+    /** If not {@code null}, this is told about tuples that are moved. */
+    private TupleMoveListener listener;
+
+
+    /** The maximum number of tuples to move in one batch. */
+    private int batchSize;
+
+
+    /**
+     * The first page that may have room for more tuples.  Tuples in a table
+     * tend to be of similar sizes, so once a page has been found to be too
+     * full for a tuple, it isn't looked at again.
+     */
+    private int fillPageNo;
+
+
+    /** The page that tuples are currently being moved off of. */
+    private int lastPageNo;
+
+
+    /** The total number of tuples that have been moved. */
+    private int numMoved;
+
+
+    HeapFileCompactor(HeapTupleFile tupleFile, StorageManager storageManager,
+                      TupleMoveListener listener) {
+        this.tupleFile = tupleFile;
+        this.storageManager = storageManager;
+        this.listener = listener;
+
+        dbFile = tupleFile.getDBFile();
+        batchSize = getBatchSize();
+    }
+
+
+    /**
+     * Compacts the heap file.
+     *
+     * @throws IOException if an IO error occurs while moving tuples, or
+     *         while truncating the file
+     */
+    void compact() throws IOException {
+        int numPages = dbFile.getNumPages();
+
+        // Header page is page 0, so first data page is page 1.
+        fillPageNo = 1;
+        lastPageNo = numPages - 1;
+
+        int numBatches = 0;
+        boolean done = false;
+        while (!done) {
+            done = compactBatch();
+            numBatches++;
+
+            storageManager.getBufferManager().writeDBFile(dbFile, false);
+            logger.debug(String.format("Compacted batch %d of %s; %d tuples " +
+                "moved so far.", numBatches, dbFile, numMoved));
+        }
+
+        // Every page after the last one with tuples can be dropped.
+        while (lastPageNo >= 1 && !hasTuples(lastPageNo))
+            lastPageNo--;
+
+        int newNumPages = lastPageNo + 1;
+        if (newNumPages < numPages)
+            storageManager.truncateDBFile(dbFile, newNumPages);
+
+        logger.info(String.format("Compacted %s:  moved %d tuples in %d " +
+            "batches, and shrank the file from %d to %d pages.", dbFile,
+            numMoved, numBatches, numPages, newNumPages));
+    }
+
+
+    /**
+     * Moves up to one batch of tuples off the end of the file.
+     *
+     * @return true if compaction is finished, either because there is no
+     *         room left to move tuples into, or because the tuples on the
+     *         last page are the only ones left to move
+     *
+     * @throws IOException if an IO error occurs while moving tuples
+     */
+    private boolean compactBatch() throws IOException {
+        int batchMoved = 0;
+        while (lastPageNo > fillPageNo) {
+            DBPage lastPage = storageManager.loadDBPage(dbFile, lastPageNo);
+            try {
+                // Overflow pages are referred to by their tuples, so they
+                // can't be moved, and nothing before them can be truncated.
+                if (OverflowPage.isOverflowPage(lastPage))
+                    return true;
+
+                // Deleting a tuple can shrink the slot table, so its size is
+                // read each time around.
+                for (int slot = 0; slot < DataPage.getNumSlots(lastPage);
+                     slot++) {
+                    if (DataPage.getSlotValue(lastPage, slot) ==
+                        DataPage.EMPTY_SLOT)
+                        continue;
+
+                    if (batchMoved == batchSize)
+                        return false;
+
+                    if (!moveRecord(lastPage, slot))
+                        return true;
+
+                    batchMoved++;
+                }
+            }
+            finally {
+                lastPage.unpin();
+            }
+
+            // All of the tuples on the last page have been moved.
+            lastPageNo--;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Moves a record off the last page of the file.
+     *
+     * @param lastPage the last page in the file
+     * @param slot the slot holding the record; it must not be empty
+     *
+     * @return true if the record was moved, or false if there is no room for
+     *         it on an earlier page
+     *
+     * @throws IOException if an IO error occurs while moving the record
+     */
+    private boolean moveRecord(DBPage lastPage, int slot) throws IOException {
+        int recordType = DataPage.getRecordType(lastPage, slot);
+        if (recordType == DataPage.RECORD_FORWARD) {
+            // The tuple itself is on an earlier page; it just has to be made
+            // into a normal tuple there.
+            rehomeForwardedTuple(lastPage, slot);
+            return true;
+        }
+
+        // A moved tuple's home page has already been found to be too full
+        // to take the tuple back.
+        int homePageNo = -1;
+        if (recordType == DataPage.RECORD_MOVED)
+            homePageNo = DataPage.getLinkPageNo(lastPage, slot);
+
+        int recordSize = DataPage.getTupleLength(lastPage, slot);
+        DBPage fillPage = findFillPage(recordSize, homePageNo);
+        if (fillPage == null)
+            return false;
+
+        byte[] record = new byte[recordSize];
+        lastPage.read(DataPage.getSlotValue(lastPage, slot), record);
+
+        int newSlot = DataPage.allocNewTuple(fillPage, recordSize);
+        fillPage.write(DataPage.getSlotValue(fillPage, newSlot), record);
+
+        DataPage.deleteTuple(lastPage, slot);
+        DataPage.sanityCheck(lastPage);
+        DataPage.sanityCheck(fillPage);
+
+        if (recordType == DataPage.RECORD_MOVED) {
+            // Point the forwarding stub at the tuple's new location; the
+            // tuple's file-pointer doesn't change.
+            DBPage homePage = storageManager.loadDBPage(dbFile, homePageNo);
+            DataPage.writeRecordHeader(homePage,
+                DataPage.getLinkSlot(fillPage, newSlot),
+                DataPage.RECORD_FORWARD, fillPage.getPageNo(), newSlot);
+            homePage.unpin();
+        }
+        else {
+            reportMove(lastPage.getPageNo(), slot, fillPage, newSlot);
+        }
+
+        fillPage.unpin();
+        numMoved++;
+
+        return true;
+    }
+
+
+    /**
+     * Turns a tuple that was moved away from a home slot on the last page
+     * into a normal tuple at the place it was moved to, and removes the
+     * forwarding stub from the last page.
+     *
+     * @param lastPage the last page in the file
+     * @param slot the slot holding the forwarding stub
+     *
+     * @throws IOException if the page holding the tuple can't be read
+     */
+    private void rehomeForwardedTuple(DBPage lastPage, int slot)
+        throws IOException {
+
+        DBPage movedPage = storageManager.loadDBPage(dbFile,
+            DataPage.getLinkPageNo(lastPage, slot));
+        int movedSlot = DataPage.getLinkSlot(lastPage, slot);
+
+        int tupleLength = DataPage.getTupleLength(movedPage, movedSlot) -
+                          DataPage.MOVED_HEADER_SIZE;
+        byte[] tupleData = new byte[tupleLength];
+        movedPage.read(DataPage.getSlotValue(movedPage, movedSlot) +
+                       DataPage.MOVED_HEADER_SIZE, tupleData);
+
+        // The normal header is smaller, so this always fits.
+        DataPage.resizeTuple(movedPage, movedSlot,
+                             DataPage.NORMAL_HEADER_SIZE + tupleLength);
+        DataPage.writeRecordHeader(movedPage, movedSlot,
+                                   DataPage.RECORD_NORMAL, 0, 0);
+        movedPage.write(DataPage.getSlotValue(movedPage, movedSlot) +
+                        DataPage.NORMAL_HEADER_SIZE, tupleData);
+
+        DataPage.deleteTuple(lastPage, slot);
+        DataPage.sanityCheck(lastPage);
+        DataPage.sanityCheck(movedPage);
+
+        reportMove(lastPage.getPageNo(), slot, movedPage, movedSlot);
+
+        movedPage.unpin();
+        numMoved++;
+    }
+
+
+    /**
+     * Finds a page before the last page with room for a record of the
+     * specified size.
+     *
+     * @param recordSize the size of the record to store
+     * @param excludePageNo a page to skip, or -1
+     *
+     * @return a pinned page with room for the record, or {@code null} if
+     *         there is no such page
+     *
+     * @throws IOException if an IO error occurs while reading pages
+     */
+    private DBPage findFillPage(int recordSize, int excludePageNo)
+        throws IOException {
+
+        for (int pageNo = fillPageNo; pageNo < lastPageNo; pageNo++) {
+            if (pageNo == excludePageNo)
+                continue;
+
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+
+            // The "+ 2" is for the new slot entry we may also need.
+            if (DataPage.getFreeSpaceInPage(dbPage) >= recordSize + 2)
+                return dbPage;
+
+            dbPage.unpin();
+            if (pageNo == fillPageNo)
+                fillPageNo++;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns true if the specified page holds any records, or is an
+     * overflow page.
+     */
+    private boolean hasTuples(int pageNo) throws IOException {
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        try {
+            if (OverflowPage.isOverflowPage(dbPage))
+                return true;
+
+            int numSlots = DataPage.getNumSlots(dbPage);
+            for (int slot = 0; slot < numSlots; slot++) {
+                if (DataPage.getSlotValue(dbPage, slot) != DataPage.EMPTY_SLOT)
+                    return true;
+            }
+
+            return false;
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Tells the listener, if there is one, that the tuple whose home was the
+     * specified slot now has its home at a new slot.
+     */
+    private void reportMove(int oldPageNo, int oldSlot, DBPage newPage,
+                            int newSlot) {
+        if (listener == null)
+            return;
+
+        FilePointer oldRef =
+            new FilePointer(oldPageNo, DataPage.getSlotOffset(oldSlot));
+
+        HeapFilePageTuple newTuple = new HeapFilePageTuple(tupleFile, newPage,
+            newSlot, DataPage.getSlotValue(newPage, newSlot));
+
+        listener.tupleMoved(oldRef, newTuple);
+        newTuple.unpin();
+    }
+}
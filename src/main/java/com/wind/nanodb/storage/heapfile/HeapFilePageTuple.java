@@ -1,15 +1,35 @@
 package com.wind.nanodb.storage.heapfile;
 
 
+import java.io.IOException;
+
 import com.wind.nanodb.relations.Schema;
 import com.wind.nanodb.relations.Tuple;
 import com.wind.nanodb.storage.DBPage;
 import com.wind.nanodb.storage.FilePointer;
 import com.wind.nanodb.storage.IndexedTableManager;
+import com.wind.nanodb.storage.OverflowRef;
 import com.wind.nanodb.storage.PageTuple;
 
 
 /**
+ * <p>
+ * A tuple stored in a heap file.  Each tuple's data is preceded by a small
+ * record header in the data page, which says whether the tuple is stored in
+ * its <em>home</em> slot (the slot it was added to), or whether it has been
+ * moved to another page because it grew too large to stay where it was.
+ * See {@link DataPage#RECORD_NORMAL} and {@link DataPage#RECORD_MOVED}.
+ * </p>
+ * <p>
+ * A moved tuple is still identified by its home slot:  its external
+ * reference points to the home slot, which holds a forwarding stub, so that
+ * file-pointers stored elsewhere (e.g. in indexes) stay valid.
+ * </p>
+ * <p>
+ * Large <tt>VARCHAR</tt> values may be stored out-of-line, in overflow pages
+ * of the same heap file; they are read from the file the first time they
+ * are asked for.  See {@link OverflowManager}.
+ * </p>
  */
 public class HeapFilePageTuple extends PageTuple {
     /**
@@ -20,46 +40,95 @@ public class HeapFilePageTuple extends PageTuple {
     private int slot;
 
 
+    /** The tuple file that the tuple is stored in. */
+    private HeapTupleFile tupleFile;
+
+
+    /** The size of the record header before the tuple's data. */
+    private int headerSize;
+
+
+    /** The page number of the tuple's home slot. */
+    private int homePageNo;
+
+
+    /** The tuple's home slot. */
+    private int homeSlot;
+
+
     /**
      * Construct a new tuple object that is backed by the data in the database
      * page.  This tuple is able to be read from or written to.
      *
-     * @param schema the schema of the tuple file the page is a part of
+     * @param tupleFile the tuple file the page is a part of
      *
      * @param dbPage the specific database page that holds the tuple
      *
      * @param slot the slot number of the tuple
      *
-     * @param pageOffset the offset of the tuple's actual data in the page
+     * @param recordOffset the offset of the tuple's record in the page
      */
-    public HeapFilePageTuple(Schema schema, DBPage dbPage, int slot,
-                             int pageOffset) {
-        super(dbPage, pageOffset, schema);
+    public HeapFilePageTuple(HeapTupleFile tupleFile, DBPage dbPage, int slot,
+                             int recordOffset) {
+        super(dbPage, recordOffset + getHeaderSize(dbPage, recordOffset),
+              tupleFile.getSchema());
 
         if (slot < 0) {
             throw new IllegalArgumentException(
                 "slot must be nonnegative; got " + slot);
         }
 
-        if (DataPage.getSlotValue(dbPage, slot) != pageOffset) {
+        if (DataPage.getSlotValue(dbPage, slot) != recordOffset) {
             throw new IllegalArgumentException(String.format(
-                "Offset %d in slot %d doesn't match pageOffset value %d",
-                DataPage.getSlotValue(dbPage, slot), slot, pageOffset));
+                "Offset %d in slot %d doesn't match recordOffset value %d",
+                DataPage.getSlotValue(dbPage, slot), slot, recordOffset));
         }
 
+        this.tupleFile = tupleFile;
+        setLocation(dbPage, slot, recordOffset);
+    }
+
+
+    private static int getHeaderSize(DBPage dbPage, int recordOffset) {
+        return DataPage.getRecordHeaderSize(
+            dbPage.readUnsignedByte(recordOffset));
+    }
+
+
+    private void setLocation(DBPage dbPage, int slot, int recordOffset) {
         this.slot = slot;
+        headerSize = getHeaderSize(dbPage, recordOffset);
+
+        if (headerSize == DataPage.MOVED_HEADER_SIZE) {
+            homePageNo = DataPage.getLinkPageNo(dbPage, slot);
+            homeSlot = DataPage.getLinkSlot(dbPage, slot);
+        }
+        else {
+            homePageNo = dbPage.getPageNo();
+            homeSlot = slot;
+        }
     }
 
 
     /**
      * This method returns an external reference to the tuple, which references
-     * the page number and slot-offset of the tuple.
+     * the page number and slot-offset of the tuple's home slot.
      *
      * @return a file-pointer that can be used to look up this tuple
      */
     public FilePointer getExternalReference() {
-        return new FilePointer(getDBPage().getPageNo(),
-                               DataPage.getSlotOffset(slot));
+        return new FilePointer(homePageNo, DataPage.getSlotOffset(homeSlot));
+    }
+
+
+    @Override
+    protected Object readOverflowValue(OverflowRef ref) {
+        try {
+            return tupleFile.getOverflowManager().readValue(ref);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
 
@@ -73,16 +142,69 @@ public class HeapFilePageTuple extends PageTuple {
     }
 
 
+    /** Returns the slot that currently holds the tuple's record. */
     public int getSlot() {
         return slot;
     }
 
 
-    public static HeapFilePageTuple storeNewTuple(Schema schema,
-        DBPage dbPage, int slot, int pageOffset, Tuple tuple) {
+    /** Returns the offset of the tuple's record, including its header. */
+    public int getRecordOffset() {
+        return getOffset() - headerSize;
+    }
+
+
+    /** Returns true if the tuple has been moved away from its home slot. */
+    public boolean isMoved() {
+        return headerSize == DataPage.MOVED_HEADER_SIZE;
+    }
+
+
+    /** Returns the page number of the tuple's home slot. */
+    public int getHomePageNo() {
+        return homePageNo;
+    }
+
+
+    /** Returns the tuple's home slot. */
+    public int getHomeSlot() {
+        return homeSlot;
+    }
+
 
-        PageTuple.storeTuple(dbPage, pageOffset, schema, tuple);
+    /**
+     * Repositions this tuple onto another record.  This is used by
+     * {@link HeapTupleCursor} to reuse one tuple object for a whole scan, and
+     * when an update moves a tuple to another page; the caller must already
+     * have checked that the slot holds the offset.
+     */
+    void moveTo(DBPage dbPage, int slot, int recordOffset) {
+        moveTo(dbPage, recordOffset + getHeaderSize(dbPage, recordOffset));
+        setLocation(dbPage, slot, recordOffset);
+    }
+
+
+    public static HeapFilePageTuple storeNewTuple(HeapTupleFile tupleFile,
+        DBPage dbPage, int slot, int recordOffset, Tuple tuple) {
+
+        DataPage.writeRecordHeader(dbPage, slot, DataPage.RECORD_NORMAL, 0, 0);
+        PageTuple.storeTuple(dbPage, recordOffset + DataPage.NORMAL_HEADER_SIZE,
+            tupleFile.getSchema(), tuple);
+
+        return new HeapFilePageTuple(tupleFile, dbPage, slot, recordOffset);
+    }
+
+
+    /**
+     * Stores a tuple that has been moved away from its home slot, recording
+     * the home slot in the record's header.
+     */
+    static void storeMovedTuple(Schema schema, DBPage dbPage, int slot,
+        int recordOffset, Tuple tuple, int homePageNo, int homeSlot) {
 
-        return new HeapFilePageTuple(schema, dbPage, slot, pageOffset);
+        DataPage.writeRecordHeader(dbPage, slot, DataPage.RECORD_MOVED,
+            homePageNo, homeSlot);
+        PageTuple.storeTuple(dbPage, recordOffset + DataPage.MOVED_HEADER_SIZE,
+            schema, tuple);
     }
 }
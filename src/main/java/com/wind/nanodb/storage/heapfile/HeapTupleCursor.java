@@ -0,0 +1,266 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleCursor;
+
+
+/**
+ * <p>
+ * A cursor over the tuples in a heap file.  The cursor pins one data page at
+ * a time and walks through its slot table, only moving on to the next page
+ * (and issuing a read-ahead for it) when the current page has no more
+ * tuples.  This avoids the per-tuple work of
+ * {@link HeapTupleFile#getNextTuple}, which has to look up and pin the
+ * previous tuple's page again before it can find the next slot.
+ * </p>
+ * <p>
+ * When the cursor is asked to reuse its tuple, a single
+ * {@link HeapFilePageTuple} is repositioned onto each slot in turn.  That
+ * tuple only holds a pin on one page at a time, so a whole scan costs one
+ * pin per page rather than one per tuple.
+ * </p>
+ * <p>
+ * If the cursor is given {@link ScanBounds} and the file has zone maps, the
+ * cursor checks each data page's summary before reading the page, and skips
+ * the pages that can't hold any tuples within the bounds.
+ * </p>
+ * <p>
+ * A cursor may also be limited to a range of data pages, so that several
+ * cursors can divide a scan of the file between them.  Each tuple is
+ * returned by the cursor whose range holds the tuple's home slot.
+ * </p>
+ */
+class HeapTupleCursor implements TupleCursor {
+
+    private HeapTupleFile tupleFile;
+
+
+    private StorageManager storageManager;
+
+
+    private DBFile dbFile;
+
+
+    /** The file's zone maps, or {@code null} if it has none. */
+    private ZoneMap zoneMap;
+
+
+    /**
+     * The conditions that the scan's tuples must satisfy, or {@code null} if
+     * no pages are skipped.
+     */
+    private ScanBounds bounds;
+
+
+    /** If true, {@link #next} repositions and returns {@link #reusedTuple}. */
+    private boolean reuseTuple;
+
+
+    /** The tuple returned by {@link #next} when the cursor reuses its tuple. */
+    private HeapFilePageTuple reusedTuple;
+
+
+    /**
+     * The data page currently being scanned, pinned by the cursor, or
+     * {@code null} if the cursor must load {@link #pageNo} next.
+     */
+    private DBPage dbPage;
+
+
+    /** The number of the page currently being scanned. */
+    private int pageNo;
+
+
+    /**
+     * The number of the page after the last page to scan, or
+     * {@link Integer#MAX_VALUE} to scan to the end of the file.
+     */
+    private int endPageNo;
+
+
+    /** The next slot on the current page to look at. */
+    private int nextSlot;
+
+
+    /** The slot of the tuple found by {@link #findNextTuple}. */
+    private int foundSlot;
+
+
+    /** The offset of the tuple found by {@link #findNextTuple}. */
+    private int foundOffset;
+
+
+    /** True if the cursor has reached the end of the file, or been closed. */
+    private boolean done;
+
+
+    HeapTupleCursor(HeapTupleFile tupleFile, StorageManager storageManager,
+                    boolean reuseTuple, ScanBounds bounds) {
+        // Header page is page 0, so first data page is page 1.
+        this(tupleFile, storageManager, reuseTuple, bounds, 1,
+            Integer.MAX_VALUE);
+    }
+
+
+    HeapTupleCursor(HeapTupleFile tupleFile, StorageManager storageManager,
+                    boolean reuseTuple, ScanBounds bounds, int startPageNo,
+                    int endPageNo) {
+        this.tupleFile = tupleFile;
+        this.storageManager = storageManager;
+        this.reuseTuple = reuseTuple;
+
+        dbFile = tupleFile.getDBFile();
+
+        zoneMap = tupleFile.getZoneMap();
+        if (zoneMap != null)
+            this.bounds = bounds;
+
+        pageNo = startPageNo;
+        this.endPageNo = endPageNo;
+    }
+
+
+    /**
+     * Advances to the next non-empty slot, leaving its location in
+     * {@link #dbPage}, {@link #foundSlot} and {@link #foundOffset}.
+     *
+     * @return true if a tuple was found, or false at the end of the file
+     */
+    private boolean findNextTuple() throws IOException {
+        if (done)
+            return false;
+
+        while (true) {
+            if (dbPage == null) {
+                if (bounds != null) {
+                    // Skip pages without reading them if their summaries
+                    // rule them out.
+                    int numPages = dbFile.getNumPages();
+                    while (pageNo < numPages && pageNo < endPageNo &&
+                           !zoneMap.mayMatch(pageNo, bounds)) {
+                        pageNo++;
+                        nextSlot = 0;
+                    }
+                }
+
+                if (pageNo >= endPageNo) {
+                    // Reached the end of the cursor's range of pages.
+                    done = true;
+                    return false;
+                }
+
+                try {
+                    storageManager.readAhead(dbFile, pageNo);
+                    dbPage = storageManager.loadDBPage(dbFile, pageNo);
+                }
+                catch (EOFException e) {
+                    // Hit the end of the file with no more tuples.
+                    done = true;
+                    return false;
+                }
+            }
+
+            // The number of slots is read each time around, since deleting
+            // the tuple the cursor is on can shrink the slot table.
+            while (nextSlot < DataPage.getNumSlots(dbPage)) {
+                int offset = DataPage.getSlotValue(dbPage, nextSlot);
+                nextSlot++;
+
+                if (offset != DataPage.EMPTY_SLOT) {
+                    foundSlot = nextSlot - 1;
+                    foundOffset = offset;
+                    return true;
+                }
+            }
+
+            // No more tuples on this page; go on to the next one.
+            releasePage();
+            pageNo++;
+            nextSlot = 0;
+        }
+    }
+
+
+    private void releasePage() {
+        if (dbPage != null) {
+            dbPage.unpin();
+            dbPage = null;
+        }
+    }
+
+
+    @Override
+    public Tuple next() throws IOException {
+        while (findNextTuple()) {
+            // Moved tuples are skipped here, and returned when the scan
+            // reaches their home slots.
+            HeapFilePageTuple tup = tupleFile.getTupleAtHome(dbPage,
+                foundSlot, foundOffset, reuseTuple ? reusedTuple : null);
+
+            if (tup != null) {
+                if (reuseTuple)
+                    reusedTuple = tup;
+
+                return tup;
+            }
+        }
+
+        return null;
+    }
+
+
+    @Override
+    public int fill(Tuple[] batch) throws IOException {
+        int count = 0;
+        while (count < batch.length && findNextTuple()) {
+            HeapFilePageTuple tup =
+                tupleFile.getTupleAtHome(dbPage, foundSlot, foundOffset, null);
+
+            if (tup != null)
+                batch[count++] = tup;
+        }
+
+        return count;
+    }
+
+
+    @Override
+    public void positionAfter(Tuple tuple) throws IOException {
+        if (!(tuple instanceof HeapFilePageTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type HeapFilePageTuple; got " +
+                (tuple == null ? null : tuple.getClass()));
+        }
+        HeapFilePageTuple ptup = (HeapFilePageTuple) tuple;
+
+        // The tuple may already be unpinned, so only use its location.  The
+        // scan goes through tuples' home slots, so continue from there.
+        releasePage();
+        pageNo = ptup.getHomePageNo();
+        nextSlot = ptup.getHomeSlot() + 1;
+        done = false;
+    }
+
+
+    @Override
+    public void close() {
+        releasePage();
+
+        if (reusedTuple != null) {
+            while (reusedTuple.isPinned())
+                reusedTuple.unpin();
+
+            reusedTuple = null;
+        }
+
+        done = true;
+    }
+}
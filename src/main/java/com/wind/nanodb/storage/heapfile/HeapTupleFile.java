@@ -6,13 +6,16 @@ import java.io.IOException;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
+import com.wind.nanodb.expressions.TupleLiteral;
 import com.wind.nanodb.queryeval.ColumnStats;
 import com.wind.nanodb.queryeval.ColumnStatsCollector;
 import com.wind.nanodb.queryeval.TableStats;
-import com.wind.nanodb.relations.ColumnInfo;
+import com.wind.nanodb.relations.ColumnType;
 import com.wind.nanodb.relations.TableSchema;
 import com.wind.nanodb.relations.Tuple;
 import org.apache.log4j.Logger;
@@ -20,11 +23,15 @@ import org.apache.log4j.Logger;
 import com.wind.nanodb.storage.DBFile;
 import com.wind.nanodb.storage.DBPage;
 import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.TupleCursor;
 import com.wind.nanodb.storage.TupleFile;
 import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.OverflowRef;
 import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.ScanBounds;
 import com.wind.nanodb.storage.StorageManager;
 import com.wind.nanodb.storage.TupleFileManager;
+import com.wind.nanodb.storage.TupleMoveListener;
 
 
 /**
@@ -63,6 +70,14 @@ public class HeapTupleFile implements TupleFile {
     private DBFile dbFile;
 
 
+    /** Stores the file's large values out-of-line. */
+    private OverflowManager overflowManager;
+
+
+    /** The file's zone maps, or {@code null} if it doesn't have any. */
+    private ZoneMap zoneMap;
+
+
     public HeapTupleFile(StorageManager storageManager,
                          HeapTupleFileManager heapFileManager, DBFile dbFile,
                          TableSchema schema, TableStats stats) {
@@ -86,6 +101,9 @@ public class HeapTupleFile implements TupleFile {
         this.dbFile = dbFile;
         this.schema = schema;
         this.stats = stats;
+
+        overflowManager = new OverflowManager(this, storageManager);
+        zoneMap = ZoneMap.open(this, storageManager);
     }
 
 
@@ -111,6 +129,44 @@ public class HeapTupleFile implements TupleFile {
     }
 
 
+    OverflowManager getOverflowManager() {
+        return overflowManager;
+    }
+
+
+    /** Returns the file's zone maps, or {@code null} if it has none. */
+    ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+
+    /**
+     * Adds a new page to the end of the file.  If the file has zone maps and
+     * a zone-map page belongs at the end of the file, the zone-map page is
+     * added first, and the page after it is returned.
+     *
+     * @param pageNo the number of pages in the file
+     *
+     * @return the new page, pinned but not initialized
+     *
+     * @throws IOException if an IO error occurs while adding pages
+     */
+    DBPage appendPage(int pageNo) throws IOException {
+        if (zoneMap != null && zoneMap.isZoneMapPage(pageNo)) {
+            DBPage zmPage = storageManager.loadDBPage(dbFile, pageNo, true);
+            ZoneMapPage.initNewPage(zmPage);
+            zmPage.unpin();
+            pageNo++;
+        }
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+        if (zoneMap != null)
+            zoneMap.clearEntry(pageNo);
+
+        return dbPage;
+    }
+
+
     /**
      * Returns the first tuple in this table file, or <tt>null</tt> if
      * there are no tuples in the file.
@@ -136,10 +192,12 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
                     if (offset == DataPage.EMPTY_SLOT)
                         continue;
 
-                    // This is the first tuple in the file.  Build up the
-                    // HeapFilePageTuple object and return it.
-                    first = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
-                    break page_scan;
+                    // This is the first tuple in the file, unless the slot
+                    // holds a moved tuple; those are found through their
+                    // home slots instead.
+                    first = getTupleAtHome(dbPage, iSlot, offset, null);
+                    if (first != null)
+                        break page_scan;
                 }
             }
         }
@@ -153,6 +211,109 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
     }
 
 
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple) {
+        return new HeapTupleCursor(this, storageManager, reuseTuple, null);
+    }
+
+
+    /**
+     * Opens a cursor that skips the data pages whose zone maps show that
+     * they have no tuples within the bounds.  If the file has no zone maps
+     * then every page is scanned.
+     */
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple, ScanBounds bounds) {
+        if (bounds != null && bounds.isEmpty())
+            bounds = null;
+
+        return new HeapTupleCursor(this, storageManager, reuseTuple, bounds);
+    }
+
+
+    /**
+     * Opens a cursor over the tuples whose home slots are on a range of the
+     * file's data pages.  Cursors over ranges that together cover the data
+     * pages return every tuple in the file exactly once, so a scan can be
+     * divided between several cursors.
+     *
+     * @param reuseTuple as for {@link #openCursor(boolean)}
+     *
+     * @param startPageNo the number of the first page to scan; the first
+     *        data page is page 1
+     *
+     * @param endPageNo the number of the page after the last page to scan
+     *
+     * @return a cursor over the tuples in the range of pages
+     *
+     * @throws IllegalArgumentException if the range doesn't start at a data
+     *         page, or is empty
+     */
+    public TupleCursor openCursor(boolean reuseTuple, int startPageNo,
+                                  int endPageNo) {
+        if (startPageNo < 1)
+            throw new IllegalArgumentException("startPageNo must be >= 1");
+
+        if (endPageNo <= startPageNo) {
+            throw new IllegalArgumentException(
+                "endPageNo must be greater than startPageNo");
+        }
+
+        return new HeapTupleCursor(this, storageManager, reuseTuple, null,
+            startPageNo, endPageNo);
+    }
+
+
+    /**
+     * Returns the tuple whose home is the specified slot, following the
+     * slot's forwarding stub if the tuple has been moved to another page.
+     * Scans visit each tuple through its home slot, so that a tuple moved by
+     * an update during a scan is neither missed nor visited twice.
+     *
+     * @param dbPage the data page holding the slot
+     * @param slot the slot to look at; it must not be empty
+     * @param offset the value of the slot
+     * @param reuse if not {@code null}, this tuple object is repositioned and
+     *        returned, instead of allocating a new one
+     *
+     * @return the tuple whose home is the slot, or {@code null} if the slot
+     *         holds a tuple that was moved there from its home slot
+     *
+     * @throws IOException if the page the tuple moved to can't be read
+     */
+    HeapFilePageTuple getTupleAtHome(DBPage dbPage, int slot, int offset,
+        HeapFilePageTuple reuse) throws IOException {
+
+        int recordType = dbPage.readUnsignedByte(offset);
+        if (recordType == DataPage.RECORD_MOVED)
+            return null;
+
+        if (recordType != DataPage.RECORD_FORWARD)
+            return makeTuple(dbPage, slot, offset, reuse);
+
+        DBPage movedPage = storageManager.loadDBPage(dbFile,
+            DataPage.getLinkPageNo(dbPage, slot));
+        int movedSlot = DataPage.getLinkSlot(dbPage, slot);
+
+        HeapFilePageTuple tup = makeTuple(movedPage, movedSlot,
+            DataPage.getSlotValue(movedPage, movedSlot), reuse);
+
+        // The tuple holds its own pin on the page it moved to.
+        movedPage.unpin();
+        return tup;
+    }
+
+
+    private HeapFilePageTuple makeTuple(DBPage dbPage, int slot, int offset,
+                                        HeapFilePageTuple reuse) {
+        if (reuse == null)
+            return new HeapFilePageTuple(this, dbPage, slot, offset);
+
+        reuse.moveTo(dbPage, slot, offset);
+        return reuse;
+    }
+
+
     /**
      * Returns the tuple corresponding to the specified file pointer.  This
      * method is used by many other operations in the database, such as
@@ -196,7 +357,15 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
                 " on page " + fptr.getPageNo() + " is empty.");
         }
 
-        return new HeapFilePageTuple(schema, dbPage, slot, offset);
+        // Tuples are only referred to by their home slots; a moved tuple's
+        // current location is not a valid file-pointer.
+        HeapFilePageTuple tup = getTupleAtHome(dbPage, slot, offset, null);
+        if (tup == null) {
+            throw new InvalidFilePointerException("Slot " + slot +
+                " on page " + fptr.getPageNo() + " holds a moved tuple.");
+        }
+
+        return tup;
     }
 
 
@@ -228,11 +397,10 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
 
         // Retrieve the location info from the previous tuple.  Since the
         // tuple (and/or its backing page) may already have a pin-count of 0,
-        // we can't necessarily use the page itself.
-        DBPage prevDBPage = ptup.getDBPage();
-        DBFile dbFile = prevDBPage.getDBFile();
-        int prevPageNo = prevDBPage.getPageNo();
-        int prevSlot = ptup.getSlot();
+        // we can't necessarily use the page itself.  Scans go through the
+        // tuples' home slots, so that is where we continue from.
+        int prevPageNo = ptup.getHomePageNo();
+        int prevSlot = ptup.getHomeSlot();
 
         // Retrieve the page itself so that we can access the internal data.
         // The page will come back pinned on behalf of the caller.  (If the
@@ -253,9 +421,10 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 int nextOffset = DataPage.getSlotValue(dbPage, nextSlot);
                 if (nextOffset != DataPage.EMPTY_SLOT) {
                     // Creating this tuple will pin the page a second time.
-                    nextTup = new HeapFilePageTuple(schema, dbPage, nextSlot,
-                                                    nextOffset);
-                    break page_scan;
+                    nextTup = getTupleAtHome(dbPage, nextSlot, nextOffset,
+                                             null);
+                    if (nextTup != null)
+                        break page_scan;
                 }
 
                 nextSlot++;
@@ -266,7 +435,9 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
             // tuple in that page.
 
             try {
-                dbPage = storageManager.loadDBPage(dbFile, dbPage.getPageNo() + 1);
+                int nextPageNo = dbPage.getPageNo() + 1;
+                storageManager.readAhead(dbFile, nextPageNo);
+                dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
                 nextSlot = 0;
             }
             catch (EOFException e) {
@@ -307,22 +478,76 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
          * Generate the data necessary for storing the tuple into the file.
          */
 
+        // Large values are stored out-of-line, so that the tuple is small.
+        tup = overflowManager.moveLargeValues(schema, tup);
+
         int tupSize = PageTuple.getTupleStorageSize(schema, tup);
         logger.debug("Adding new tuple of size " + tupSize + " bytes.");
 
-        // Sanity check:  Make sure that the tuple would actually fit in a page
-        // in the first place!
+        int recordSize = DataPage.NORMAL_HEADER_SIZE + tupSize;
+        checkRecordSize(recordSize);
+
+        DBPage dbPage = findPageWithSpace(recordSize, -1, -1);
+
+        int slot = DataPage.allocNewTuple(dbPage, recordSize);
+        int tupOffset = DataPage.getSlotValue(dbPage, slot);
+
+        logger.debug(String.format(
+            "New tuple will reside on page %d, slot %d.", dbPage.getPageNo(),
+            slot));
+
+        HeapFilePageTuple pageTup =
+            HeapFilePageTuple.storeNewTuple(this, dbPage, slot, tupOffset, tup);
+
+        DataPage.sanityCheck(dbPage);
+
+        if (zoneMap != null)
+            zoneMap.addTuple(dbPage.getPageNo(), pageTup);
+
+        return pageTup;
+    }
+
+
+    /**
+     * Sanity check:  Make sure that a record would actually fit in a page
+     * in the first place!
+     */
+    private void checkRecordSize(int recordSize) throws IOException {
         // The "+ 2" is for the case where we need a new slot entry as well.
-        if (tupSize + 2 > dbFile.getPageSize()) {
-            throw new IOException("Tuple size " + tupSize +
+        if (recordSize + 2 > dbFile.getPageSize()) {
+            throw new IOException("Tuple size " + recordSize +
                 " is larger than page size " + dbFile.getPageSize() + ".");
         }
+    }
+
 
+    /**
+     * Finds a data page with enough free space for a new record of the
+     * specified size, creating a new page at the end of the file if no
+     * existing page has room.  Up to two pages may be excluded from the
+     * search, for when the caller already knows they don't have room.
+     *
+     * @param recordSize the size of the record to store
+     * @param excludePageNo1 a page to skip, or -1
+     * @param excludePageNo2 another page to skip, or -1
+     *
+     * @return a pinned data page with room for the record
+     *
+     * @throws IOException if an IO error occurs while reading or creating
+     *         data pages
+     */
+    private DBPage findPageWithSpace(int recordSize, int excludePageNo1,
+                                     int excludePageNo2) throws IOException {
         // Search for a page to put the tuple in.  If we hit the end of the
         // data file, create a new page.
         int pageNo = 1;
         DBPage dbPage = null;
         while (true) {
+            if (pageNo == excludePageNo1 || pageNo == excludePageNo2) {
+                pageNo++;
+                continue;
+            }
+
             // Try to load the page without creating a new one.
             try {
                 dbPage = storageManager.loadDBPage(dbFile, pageNo);
@@ -343,13 +568,14 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
             // If this page has enough free space to add a new tuple, break
             // out of the loop.  (The "+ 2" is for the new slot entry we will
             // also need.)
-            if (freeSpace >= tupSize + 2) {
+            if (freeSpace >= recordSize + 2) {
                 logger.debug("Found space for new tuple in page " + pageNo + ".");
                 break;
             }
 
             // If we reached this point then the page doesn't have enough
             // space, so go on to the next data page.
+            dbPage.unpin();
             dbPage = null;  // So the next section will work properly.
             pageNo++;
         }
@@ -359,32 +585,23 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
             // circumstance, pageNo is *just past* the last page in the data
             // file.
             logger.debug("Creating new page " + pageNo + " to store new tuple.");
-            dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+            dbPage = appendPage(pageNo);
             DataPage.initNewPage(dbPage);
         }
 
-        int slot = DataPage.allocNewTuple(dbPage, tupSize);
-        int tupOffset = DataPage.getSlotValue(dbPage, slot);
-
-        logger.debug(String.format(
-            "New tuple will reside on page %d, slot %d.", pageNo, slot));
-
-        HeapFilePageTuple pageTup =
-            HeapFilePageTuple.storeNewTuple(schema, dbPage, slot, tupOffset, tup);
-
-        DataPage.sanityCheck(dbPage);
-
-        return pageTup;
+        return dbPage;
     }
 
 
-    // Inherit interface-method documentation.
     /**
-     * @review (donnie) This method will fail if a tuple is modified in a way
-     *         that requires more space than is currently available in the data
-     *         page.  One solution would be to move the tuple to a different
-     *         page and then perform the update, but that would cause all kinds
-     *         of additional issues.  So, if the page runs out of data, oh well.
+     * Updates a tuple.  If the new values fit in the tuple's current page
+     * then the tuple is updated in place.  Otherwise, the tuple is moved to
+     * a page with enough room, and its home slot is left holding a
+     * forwarding stub, so the tuple's external reference doesn't change.
+     * The passed-in tuple object is repositioned onto the tuple's new
+     * location.  If the tuple would become large, its largest new
+     * <tt>VARCHAR</tt> values are stored out-of-line, and the out-of-line
+     * values that are replaced are freed.
      */
     @Override
     public void updateTuple(Tuple tup, Map<String, Object> newValues)
@@ -396,16 +613,147 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
 
+        // Work out how much each column's storage will change.  Columns that
+        // shrink are updated first, so that the tuple never needs more space
+        // along the way than it does at the end.
+        int numChanges = newValues.size();
+        int[] colIndexes = new int[numChanges];
+        int[] growth = new int[numChanges];
+        Object[] values = new Object[numChanges];
+        ColumnType[] colTypes = new ColumnType[numChanges];
+        ArrayList<OverflowRef> oldRefs = new ArrayList<>();
+        int totalGrowth = 0;
+
+        int i = 0;
         for (Map.Entry<String, Object> entry : newValues.entrySet()) {
-            String colName = entry.getKey();
-            Object value = entry.getValue();
+            int colIndex = schema.getColumnIndex(entry.getKey());
 
-            int colIndex = schema.getColumnIndex(colName);
-            ptup.setColumnValue(colIndex, value);
+            colIndexes[i] = colIndex;
+            values[i] = entry.getValue();
+            colTypes[i] = schema.getColumnInfo(colIndex).getType();
+            totalGrowth += PageTuple.getValueStorageSize(colTypes[i], values[i])
+                - ptup.getColumnStorageSize(colIndex);
+
+            OverflowRef oldRef = ptup.getOverflowRef(colIndex);
+            if (oldRef != null)
+                oldRefs.add(oldRef);
+
+            i++;
         }
 
-        DBPage dbPage = ptup.getDBPage();
-        DataPage.sanityCheck(dbPage);
+        int newSize = ptup.getSize() + totalGrowth;
+        totalGrowth +=
+            overflowManager.moveLargeValues(newSize, colTypes, values) - newSize;
+
+        for (i = 0; i < numChanges; i++) {
+            growth[i] = PageTuple.getValueStorageSize(colTypes[i], values[i]) -
+                ptup.getColumnStorageSize(colIndexes[i]);
+        }
+
+        // The tuple is summarized again once it has its new values.
+        int homePageNo = ptup.getHomePageNo();
+        if (zoneMap != null)
+            zoneMap.removeTuple(homePageNo, ptup);
+
+        try {
+            DBPage dbPage = ptup.getDBPage();
+            if (totalGrowth > DataPage.getFreeSpaceInPage(dbPage)) {
+                relocateTuple(ptup, colIndexes, values);
+            }
+            else {
+                Integer[] order = new Integer[numChanges];
+                for (i = 0; i < numChanges; i++)
+                    order[i] = i;
+                Arrays.sort(order,
+                    (a, b) -> Integer.compare(growth[a], growth[b]));
+
+                for (int j : order)
+                    ptup.setColumnValue(colIndexes[j], values[j]);
+
+                DataPage.sanityCheck(dbPage);
+            }
+        }
+        finally {
+            if (zoneMap != null)
+                zoneMap.addTuple(homePageNo, ptup);
+        }
+
+        // The replaced values' pages are only freed once the update is done.
+        for (OverflowRef oldRef : oldRefs)
+            overflowManager.freeValue(oldRef);
+    }
+
+
+    /**
+     * Moves a tuple that has grown too large for its page to another page,
+     * storing the new values along the way.  The tuple's home slot is left
+     * holding (or is updated to hold) a forwarding stub to the new location,
+     * so a tuple is never more than one hop from its home.
+     */
+    private void relocateTuple(HeapFilePageTuple ptup, int[] colIndexes,
+                               Object[] values) throws IOException {
+
+        // Values that are stored out-of-line are copied as references, so
+        // that they stay where they are.
+        TupleLiteral newTuple = new TupleLiteral();
+        for (int i = 0; i < ptup.getColumnCount(); i++) {
+            OverflowRef ref = ptup.getOverflowRef(i);
+            newTuple.addValue(ref != null ? ref : ptup.getColumnValue(i));
+        }
+        for (int i = 0; i < colIndexes.length; i++)
+            newTuple.setColumnValue(colIndexes[i], values[i]);
+
+        int recordSize = DataPage.MOVED_HEADER_SIZE +
+            PageTuple.getTupleStorageSize(schema, newTuple);
+        checkRecordSize(recordSize);
+
+        int homePageNo = ptup.getHomePageNo();
+        int homeSlot = ptup.getHomeSlot();
+        DBPage oldPage = ptup.getDBPage();
+
+        DBPage homePage = storageManager.loadDBPage(dbFile, homePageNo);
+        if (!ptup.isMoved()) {
+            // The home record is about to become a forwarding stub; make sure
+            // that it can, before anything is changed.
+            int stubGrowth = DataPage.FORWARD_RECORD_SIZE -
+                DataPage.getTupleLength(homePage, homeSlot);
+            if (stubGrowth > DataPage.getFreeSpaceInPage(homePage)) {
+                homePage.unpin();
+                throw new IOException(String.format("Page %d has no room " +
+                    "to forward tuple in slot %d", homePageNo, homeSlot));
+            }
+        }
+
+        DBPage newPage = findPageWithSpace(recordSize, oldPage.getPageNo(),
+                                           homePageNo);
+        int newSlot = DataPage.allocNewTuple(newPage, recordSize);
+        int newOffset = DataPage.getSlotValue(newPage, newSlot);
+        HeapFilePageTuple.storeMovedTuple(schema, newPage, newSlot, newOffset,
+            newTuple, homePageNo, homeSlot);
+
+        if (ptup.isMoved()) {
+            // The tuple had already moved once; drop the old copy.
+            DataPage.deleteTuple(oldPage, ptup.getSlot());
+            DataPage.sanityCheck(oldPage);
+        }
+        else {
+            DataPage.resizeTuple(homePage, homeSlot,
+                                 DataPage.FORWARD_RECORD_SIZE);
+        }
+        DataPage.writeRecordHeader(homePage, homeSlot, DataPage.RECORD_FORWARD,
+            newPage.getPageNo(), newSlot);
+        DataPage.sanityCheck(homePage);
+        DataPage.sanityCheck(newPage);
+
+        logger.debug(String.format("Moved tuple from home slot %d on page %d " +
+            "to slot %d on page %d.", homeSlot, homePageNo, newSlot,
+            newPage.getPageNo()));
+
+        ptup.moveTo(newPage, newSlot, newOffset);
+
+        // The tuple now holds its own pin on the new page.
+        homePage.unpin();
+        newPage.unpin();
     }
 
 
@@ -419,10 +767,24 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
 
+        overflowManager.freeValues(ptup);
+
+        if (zoneMap != null)
+            zoneMap.removeTuple(ptup.getHomePageNo(), ptup);
+
         DBPage dbPage = ptup.getDBPage();
         DataPage.deleteTuple(dbPage, ptup.getSlot());
         DataPage.sanityCheck(dbPage);
 
+        if (ptup.isMoved()) {
+            // Also remove the forwarding stub in the tuple's home slot.
+            DBPage homePage =
+                storageManager.loadDBPage(dbFile, ptup.getHomePageNo());
+            DataPage.deleteTuple(homePage, ptup.getHomeSlot());
+            DataPage.sanityCheck(homePage);
+            homePage.unpin();
+        }
+
         // Note that we don't invalidate the page-tuple when it is deleted,
         // so that the tuple can still be unpinned, etc.
     }
@@ -438,32 +800,42 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                     schema.getColumnInfo(columnIndex).getType().getBaseType());
         }
 
+        // The header page is page 0.  The other pages are data pages, apart
+        // from overflow pages and zone-map pages, which aren't counted.
         int dataPageCount = 0;
+        for (int pageNo = 1; pageNo < dbFile.getNumPages(); pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            if (DataPage.isDataPage(dbPage))
+                dataPageCount++;
+
+            dbPage.unpin();
+        }
+
         int tupleCount = 0;
         int fileSize = 0;
-        for (int iPage = 1; /* nothing */ ; ++iPage) {
-            DBPage dbPage;
-            try {
-                dbPage = storageManager.loadDBPage(dbFile, iPage);
-            } catch (IOException e) {
-                break;
-            }
-            ++dataPageCount;
-
-            int numSlots = DataPage.getNumSlots(dbPage);
-            for (int iSlot = 0; iSlot < numSlots; iSlot++) {
-                int offset = DataPage.getSlotValue(dbPage, iSlot);
-                if (offset == DataPage.EMPTY_SLOT)
-                    continue;
 
-                Tuple tuple = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
+        // Each page's tuple data is added to the total when the scan first
+        // reaches a tuple on that page.  Pages with no tuples have no tuple
+        // data, so nothing is lost by skipping them.  (Moved tuples are
+        // visited out of page order, so a page may be reached more than
+        // once.)
+        BitSet pagesCounted = new BitSet();
+        try (TupleCursor cursor = openCursor(/* reuseTuple */ true)) {
+            HeapFilePageTuple tuple;
+            while ((tuple = (HeapFilePageTuple) cursor.next()) != null) {
                 for (int columnIndex = 0; columnIndex < columnCount; columnIndex++) {
                     columnStatsCollectors[columnIndex].addValue(tuple.getColumnValue(columnIndex));
                 }
 
                 ++tupleCount;
+
+                DBPage dbPage = tuple.getDBPage();
+                if (!pagesCounted.get(dbPage.getPageNo())) {
+                    fileSize += DataPage.getTupleDataEnd(dbPage) -
+                                DataPage.getTupleDataStart(dbPage);
+                    pagesCounted.set(dbPage.getPageNo());
+                }
             }
-            fileSize += DataPage.getTupleDataEnd(dbPage) - DataPage.getTupleDataStart(dbPage);
         }
 
         if (tupleCount == 0) {
@@ -495,8 +867,103 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
     }
 
 
+    /**
+     * Optimizes the heap file.  First, forwarding stubs are collapsed:  each
+     * tuple that was moved away from its home slot is moved back home, if
+     * its home page now has room for it.  Then the file is compacted by
+     * moving tuples off the end of the file into free space on earlier
+     * pages, and truncating the pages left empty; see
+     * {@link HeapFileCompactor}.  Finally, if the file has zone maps, they
+     * are recomputed to fit the tuples that are left.
+     */
     @Override
-    public void optimize() throws IOException {
-        throw new UnsupportedOperationException("Not yet implemented!");
+    public void optimize(TupleMoveListener listener) throws IOException {
+        collapseForwards();
+
+        HeapFileCompactor compactor =
+            new HeapFileCompactor(this, storageManager, listener);
+        compactor.compact();
+
+        if (zoneMap != null)
+            zoneMap.rebuild();
+    }
+
+
+    /**
+     * Moves each tuple that was moved away from its home slot back home, if
+     * its home page now has room for it.
+     */
+    private void collapseForwards() throws IOException {
+        int numForwarded = 0;
+        int numCollapsed = 0;
+
+        for (int pageNo = 1; pageNo < dbFile.getNumPages(); pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+
+            int numSlots = DataPage.getNumSlots(dbPage);
+            for (int slot = 0; slot < numSlots; slot++) {
+                if (DataPage.getSlotValue(dbPage, slot) == DataPage.EMPTY_SLOT ||
+                    DataPage.getRecordType(dbPage, slot) != DataPage.RECORD_FORWARD)
+                    continue;
+
+                numForwarded++;
+                if (collapseForward(dbPage, slot))
+                    numCollapsed++;
+            }
+
+            dbPage.unpin();
+        }
+
+        logger.info(String.format("Moved %d of %d forwarded tuples in %s " +
+            "back to their home slots.", numCollapsed, numForwarded, dbFile));
+    }
+
+
+    /**
+     * Moves a tuple back into its home slot, replacing the forwarding stub
+     * there, if the home page has room for it.
+     *
+     * @param homePage the page holding the forwarding stub
+     * @param homeSlot the slot holding the forwarding stub
+     *
+     * @return true if the tuple was moved home, or false if there wasn't
+     *         room
+     *
+     * @throws IOException if the page holding the tuple can't be read
+     */
+    private boolean collapseForward(DBPage homePage, int homeSlot)
+        throws IOException {
+
+        DBPage movedPage = storageManager.loadDBPage(dbFile,
+            DataPage.getLinkPageNo(homePage, homeSlot));
+        int movedSlot = DataPage.getLinkSlot(homePage, homeSlot);
+
+        int tupleLength = DataPage.getTupleLength(movedPage, movedSlot) -
+                          DataPage.MOVED_HEADER_SIZE;
+        int recordSize = DataPage.NORMAL_HEADER_SIZE + tupleLength;
+
+        if (recordSize - DataPage.FORWARD_RECORD_SIZE >
+            DataPage.getFreeSpaceInPage(homePage)) {
+            movedPage.unpin();
+            return false;
+        }
+
+        byte[] tupleData = new byte[tupleLength];
+        movedPage.read(DataPage.getSlotValue(movedPage, movedSlot) +
+                       DataPage.MOVED_HEADER_SIZE, tupleData);
+
+        DataPage.resizeTuple(homePage, homeSlot, recordSize);
+        DataPage.writeRecordHeader(homePage, homeSlot, DataPage.RECORD_NORMAL,
+                                   0, 0);
+        homePage.write(DataPage.getSlotValue(homePage, homeSlot) +
+                       DataPage.NORMAL_HEADER_SIZE, tupleData);
+
+        DataPage.deleteTuple(movedPage, movedSlot);
+
+        DataPage.sanityCheck(homePage);
+        DataPage.sanityCheck(movedPage);
+        movedPage.unpin();
+
+        return true;
     }
 }
@@ -0,0 +1,350 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.expressions.TypeConverter;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.SQLDataType;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.OverflowRef;
+import com.wind.nanodb.storage.PageCompressor;
+import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * Stores large <tt>VARCHAR</tt> values of a heap file out-of-line, in chains
+ * of {@linkplain OverflowPage overflow pages}, and reads them back.  When a
+ * tuple would be larger than a quarter of a page, its largest
+ * <tt>VARCHAR</tt> values are moved out-of-line, one at a time, until the
+ * tuple is small enough.  The tuple keeps an {@link OverflowRef} in place of
+ * each such value, and the value is only read when its column is asked for.
+ * </p>
+ * <p>
+ * Each value is compressed with {@link PageCompressor} before it is stored,
+ * but only if that makes it smaller.  A value's overflow pages belong to that
+ * value alone; when the value is deleted or replaced, its pages become empty
+ * data pages again, so that they can be reused.
+ * </p>
+ */
+class OverflowManager {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(OverflowManager.class);
+
+
+    /**
+     * Values shorter than this are never moved out-of-line, since the
+     * reference that replaces them would save almost no space.
+     */
+    public static final int MIN_OUT_OF_LINE_LENGTH = 32;
+
+
+    private HeapTupleFile tupleFile;
+
+
+    private StorageManager storageManager;
+
+
+    private DBFile dbFile;
+
+
+    /** Tuples larger than this many bytes have values moved out-of-line. */
+    private int maxInlineTupleSize;
+
+
+    OverflowManager(HeapTupleFile tupleFile, StorageManager storageManager) {
+        this.tupleFile = tupleFile;
+        this.storageManager = storageManager;
+
+        dbFile = tupleFile.getDBFile();
+
+        maxInlineTupleSize = dbFile.getPageSize() / 4;
+    }
+
+
+    /**
+     * Returns a tuple with the same values as the specified tuple, but with
+     * large values moved out-of-line if the tuple would otherwise be too
+     * large.
+     *
+     * @param schema the schema of the tuple file
+     * @param tup the tuple that is about to be stored
+     *
+     * @return the tuple itself if it is small enough to store as it is, or
+     *         a tuple-literal holding {@link OverflowRef}s for the values
+     *         that were moved out-of-line
+     *
+     * @throws IOException if an IO error occurs while storing values
+     */
+    Tuple moveLargeValues(Schema schema, Tuple tup) throws IOException {
+        int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+        if (tupSize <= maxInlineTupleSize)
+            return tup;
+
+        int numCols = schema.numColumns();
+        Object[] values = new Object[numCols];
+        ColumnType[] colTypes = new ColumnType[numCols];
+        for (int i = 0; i < numCols; i++) {
+            values[i] = tup.getColumnValue(i);
+            colTypes[i] = schema.getColumnInfo(i).getType();
+        }
+
+        if (moveLargeValues(tupSize, colTypes, values) == tupSize)
+            return tup;
+
+        return new TupleLiteral(values);
+    }
+
+
+    /**
+     * Moves the largest <tt>VARCHAR</tt> values in the array out-of-line,
+     * replacing each with its {@link OverflowRef}, until the tuple that the
+     * values will be stored into is small enough.
+     *
+     * @param tupSize the size of the tuple, if the values were all stored
+     *        inline
+     * @param colTypes the types of the values' columns
+     * @param values the values; some may be replaced
+     *
+     * @return the size of the tuple after values have been moved
+     *
+     * @throws IOException if an IO error occurs while storing values
+     */
+    int moveLargeValues(int tupSize, ColumnType[] colTypes, Object[] values)
+        throws IOException {
+
+        while (tupSize > maxInlineTupleSize) {
+            int largest = -1;
+            int largestLength = MIN_OUT_OF_LINE_LENGTH - 1;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null || values[i] instanceof OverflowRef ||
+                    colTypes[i].getBaseType() != SQLDataType.VARCHAR)
+                    continue;
+
+                int length = TypeConverter.getStringValue(values[i]).length();
+                if (length > largestLength) {
+                    largest = i;
+                    largestLength = length;
+                }
+            }
+
+            if (largest == -1)
+                break;  // Nothing left that is worth moving.
+
+            OverflowRef ref =
+                storeValue(TypeConverter.getStringValue(values[largest]));
+            tupSize += OverflowRef.STORAGE_SIZE -
+                PageTuple.getValueStorageSize(colTypes[largest], values[largest]);
+            values[largest] = ref;
+        }
+
+        return tupSize;
+    }
+
+
+    /**
+     * Stores a value in a new chain of overflow pages.
+     *
+     * @param value the value to store
+     *
+     * @return a reference to the stored value
+     *
+     * @throws IOException if an IO error occurs while storing the value
+     */
+    OverflowRef storeValue(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+
+        // Only keep the compressed form if it actually saves space.
+        byte[] data = bytes;
+        byte[] compressed = new byte[bytes.length];
+        int storedLength = PageCompressor.compress(bytes, bytes.length,
+                                                   compressed);
+        boolean isCompressed = storedLength > 0 && storedLength < bytes.length;
+        if (isCompressed)
+            data = compressed;
+        else
+            storedLength = bytes.length;
+
+        int capacity = OverflowPage.getCapacity(dbFile.getPageSize());
+        int numPages = Math.max(1, (storedLength + capacity - 1) / capacity);
+        int[] pageNos = allocPages(numPages);
+
+        for (int i = 0; i < numPages; i++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNos[i]);
+            OverflowPage.initNewPage(dbPage);
+
+            int start = i * capacity;
+            int length = Math.min(capacity, storedLength - start);
+            dbPage.write(OverflowPage.OFFSET_DATA, data, start, length);
+            OverflowPage.setDataLength(dbPage, length);
+
+            if (i + 1 < numPages)
+                OverflowPage.setNextPageNo(dbPage, pageNos[i + 1]);
+
+            dbPage.unpin();
+        }
+
+        logger.debug(String.format("Stored %d-byte value out-of-line in %d " +
+            "pages starting at page %d (%d bytes%s).", bytes.length, numPages,
+            pageNos[0], storedLength, (isCompressed ? ", compressed" : "")));
+
+        return new OverflowRef(bytes.length, storedLength, pageNos[0],
+                               isCompressed);
+    }
+
+
+    /**
+     * Reads a value that is stored out-of-line.
+     *
+     * @param ref the reference to the value
+     *
+     * @return the value
+     *
+     * @throws IOException if an IO error occurs while reading the value, or
+     *         if the value's pages are not overflow pages
+     */
+    String readValue(OverflowRef ref) throws IOException {
+        byte[] data = new byte[ref.getStoredLength()];
+
+        int pos = 0;
+        int pageNo = ref.getFirstPageNo();
+        while (pos < data.length) {
+            if (pageNo == 0) {
+                throw new IOException(String.format(
+                    "Overflow chain of %s ends after %d bytes", ref, pos));
+            }
+
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            try {
+                if (!OverflowPage.isOverflowPage(dbPage)) {
+                    throw new IOException(String.format(
+                        "Page %d in overflow chain of %s is not an " +
+                        "overflow page", pageNo, ref));
+                }
+
+                int length = OverflowPage.getDataLength(dbPage);
+                dbPage.read(OverflowPage.OFFSET_DATA, data, pos, length);
+                pos += length;
+                pageNo = OverflowPage.getNextPageNo(dbPage);
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        if (ref.isCompressed()) {
+            byte[] bytes = new byte[ref.getLength()];
+            PageCompressor.decompress(data, data.length, bytes);
+            data = bytes;
+        }
+
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Frees the overflow pages holding a value, turning them back into empty
+     * data pages.
+     *
+     * @param ref the reference to the value
+     *
+     * @throws IOException if an IO error occurs while freeing the pages
+     */
+    void freeValue(OverflowRef ref) throws IOException {
+        int pageNo = ref.getFirstPageNo();
+        while (pageNo != 0) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            if (!OverflowPage.isOverflowPage(dbPage)) {
+                dbPage.unpin();
+                throw new IOException(String.format("Page %d in overflow " +
+                    "chain of %s is not an overflow page", pageNo, ref));
+            }
+
+            pageNo = OverflowPage.getNextPageNo(dbPage);
+            DataPage.initNewPage(dbPage);
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Frees all of the out-of-line values of a tuple.
+     *
+     * @param ptup the tuple whose values are freed
+     *
+     * @throws IOException if an IO error occurs while freeing the pages
+     */
+    void freeValues(PageTuple ptup) throws IOException {
+        for (int i = 0; i < ptup.getColumnCount(); i++) {
+            OverflowRef ref = ptup.getOverflowRef(i);
+            if (ref != null)
+                freeValue(ref);
+        }
+    }
+
+
+    /**
+     * Finds pages for a new overflow chain.  Empty data pages are reused
+     * first, and any other pages are added to the end of the file.
+     *
+     * @param numPages the number of pages needed
+     *
+     * @return the page numbers, in the order they should be chained
+     *
+     * @throws IOException if an IO error occurs while reading or creating
+     *         pages
+     */
+    private int[] allocPages(int numPages) throws IOException {
+        ArrayList<Integer> found = new ArrayList<>();
+
+        // Header page is page 0, so first data page is page 1.
+        int pageNo = 1;
+        while (found.size() < numPages) {
+            DBPage dbPage;
+            try {
+                dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            }
+            catch (EOFException e) {
+                break;
+            }
+
+            if (DataPage.isDataPage(dbPage) &&
+                DataPage.getNumSlots(dbPage) == 0) {
+                found.add(pageNo);
+            }
+
+            dbPage.unpin();
+            pageNo++;
+        }
+
+        int[] pageNos = new int[numPages];
+        for (int i = 0; i < numPages; i++) {
+            if (i < found.size()) {
+                pageNos[i] = found.get(i);
+            }
+            else {
+                // pageNo is just past the last page in the file.
+                DBPage dbPage = tupleFile.appendPage(pageNo);
+                OverflowPage.initNewPage(dbPage);
+                dbPage.unpin();
+
+                pageNos[i] = dbPage.getPageNo();
+                pageNo = pageNos[i] + 1;
+            }
+        }
+
+        return pageNos;
+    }
+}
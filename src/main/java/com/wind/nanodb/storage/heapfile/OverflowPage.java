@@ -0,0 +1,108 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.OverflowRef;
+
+
+/**
+ * <p>
+ * This class provides the constants and operations for manipulating overflow
+ * pages in a heap file.  Overflow pages hold <tt>VARCHAR</tt> values that are
+ * too large to keep in their tuples (see {@link OverflowRef}).  A value that
+ * doesn't fit into one overflow page is split across a chain of them.
+ * </p>
+ * <p>
+ * Overflow pages are kept in the same file as the data pages, so that they
+ * are allocated, cached and truncated along with the rest of the table.  An
+ * overflow page is marked by storing {@link #OVERFLOW_PAGE_MARKER} where a
+ * data page stores its slot count; {@link DataPage} reports such pages as
+ * having no slots and no free space, so that scans and inserts pass over
+ * them.  The page is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The marker (unsigned short).</li>
+ *   <li>The number of the next page in the chain, or 0 if this is the last
+ *       page (signed int).</li>
+ *   <li>The number of bytes of the value stored in this page (unsigned
+ *       short).</li>
+ *   <li>The bytes of the value.</li>
+ * </ul>
+ */
+public class OverflowPage {
+    /**
+     * The value stored in the slot-count position of an overflow page.  A
+     * data page can never have this many slots, since its slot table would
+     * be larger than any page.
+     */
+    public static final int OVERFLOW_PAGE_MARKER = 0xFFFF;
+
+
+    /** The offset of the next page's page number. */
+    public static final int OFFSET_NEXT_PAGE = 2;
+
+
+    /** The offset of the number of bytes stored in this page. */
+    public static final int OFFSET_DATA_LENGTH = 6;
+
+
+    /** The offset where the value's bytes start. */
+    public static final int OFFSET_DATA = 8;
+
+
+    /**
+     * Initialize a newly allocated overflow page, as the last page of its
+     * chain and with no data.
+     *
+     * @param dbPage the page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        dbPage.writeShort(DataPage.OFFSET_NUM_SLOTS, OVERFLOW_PAGE_MARKER);
+        setNextPageNo(dbPage, 0);
+        setDataLength(dbPage, 0);
+    }
+
+
+    /**
+     * Returns true if the specified page of a heap file is an overflow page.
+     *
+     * @param dbPage the page to examine
+     * @return true if the page is an overflow page
+     */
+    public static boolean isOverflowPage(DBPage dbPage) {
+        return dbPage.readUnsignedShort(DataPage.OFFSET_NUM_SLOTS) ==
+               OVERFLOW_PAGE_MARKER;
+    }
+
+
+    /**
+     * Returns the number of bytes of a value that one overflow page can
+     * hold.
+     *
+     * @param pageSize the page size of the heap file
+     * @return the capacity of an overflow page
+     */
+    public static int getCapacity(int pageSize) {
+        return pageSize - OFFSET_DATA;
+    }
+
+
+    public static int getNextPageNo(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_NEXT_PAGE);
+    }
+
+
+    public static void setNextPageNo(DBPage dbPage, int pageNo) {
+        dbPage.writeInt(OFFSET_NEXT_PAGE, pageNo);
+    }
+
+
+    public static int getDataLength(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_DATA_LENGTH);
+    }
+
+
+    public static void setDataLength(DBPage dbPage, int length) {
+        dbPage.writeShort(OFFSET_DATA_LENGTH, length);
+    }
+}
@@ -0,0 +1,377 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.PageTuple;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleCursor;
+
+
+/**
+ * <p>
+ * The zone maps of a heap file:  for each data page, a summary of the
+ * values that the page's tuples have in a few chosen columns, so that scans
+ * with conditions on those columns can skip pages that can't hold any
+ * matching tuples (see {@link ScanBounds}).  This is most useful for tables
+ * whose rows are added roughly in order of some column, such as a timestamp
+ * or an increasing ID, since each page then covers a narrow range of values.
+ * </p>
+ * <p>
+ * The columns are chosen with the {@link #PROP_ZONE_MAP} table property,
+ * which holds a comma-separated list of column names, e.g.
+ * <tt>PROPERTIES (zonemap = 'ts, id')</tt>.  Only columns with fixed-size
+ * types can be chosen.  Each page's summary holds, for each column:
+ * </p>
+ * <ul>
+ *   <li>A flags byte; {@link #FLAG_HAS_VALUES} is set if the minimum and
+ *       maximum are valid.</li>
+ *   <li>The number of tuples where the column is <tt>NULL</tt> (signed
+ *       int).</li>
+ *   <li>The smallest and the largest non-<tt>NULL</tt> value of the
+ *       column.</li>
+ * </ul>
+ * <p>
+ * The summaries are kept in {@linkplain ZoneMapPage zone-map pages} in the
+ * heap file itself.  Page 1 is a zone-map page holding the summaries of the
+ * next {@link #getPagesPerZoneMapPage} pages, after which comes another
+ * zone-map page, and so on; this way the summary of any page can be found
+ * without a directory.  Tuples are summarized on their home pages, even if
+ * they have been moved elsewhere, since that is where scans visit them.
+ * </p>
+ * <p>
+ * A summary only has to cover the values on its page, not match them
+ * exactly:  adding a tuple widens the range to include its values, but
+ * deleting a tuple doesn't narrow it.  (The <tt>NULL</tt> counts are kept
+ * exact.)  Optimizing the table recomputes all of the summaries.
+ * </p>
+ */
+public class ZoneMap {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ZoneMap.class);
+
+
+    /**
+     * The name of the table property that lists the columns to keep zone
+     * maps for.
+     */
+    public static final String PROP_ZONE_MAP = "zonemap";
+
+
+    /** Set in a column's flags if its minimum and maximum are valid. */
+    public static final int FLAG_HAS_VALUES = 0x01;
+
+
+    /** The size of a column's flags and <tt>NULL</tt> count. */
+    private static final int COLUMN_HEADER_SIZE = 5;
+
+
+    private HeapTupleFile tupleFile;
+
+
+    private StorageManager storageManager;
+
+
+    private DBFile dbFile;
+
+
+    /** The indexes of the summarized columns in the table's schema. */
+    private int[] columns;
+
+
+    /** The types of the summarized columns. */
+    private ColumnType[] colTypes;
+
+
+    /** The offset of each column's part of a page's summary. */
+    private int[] colOffsets;
+
+
+    /** The size of each page's summary. */
+    private int entrySize;
+
+
+    /** The number of pages summarized by each zone-map page. */
+    private int pagesPerZoneMapPage;
+
+
+    /**
+     * Returns the zone maps of a heap file, or {@code null} if the table
+     * doesn't have the {@link #PROP_ZONE_MAP} property.
+     *
+     * @param tupleFile the heap file
+     * @param storageManager the storage manager
+     *
+     * @return the file's zone maps, or {@code null}
+     *
+     * @throws IllegalArgumentException if the property names a column that
+     *         doesn't exist, or that doesn't have a fixed-size type, or if
+     *         a page is too small to hold a summary
+     */
+    static ZoneMap open(HeapTupleFile tupleFile,
+                        StorageManager storageManager) {
+        TableSchema schema = tupleFile.getSchema();
+        String value = schema.getProperty(PROP_ZONE_MAP);
+        if (value == null || value.trim().isEmpty())
+            return null;
+
+        String[] names = value.split(",");
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().toUpperCase();
+            columns[i] = schema.getColumnIndex(name);
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException(String.format(
+                    "Zone-map column %s doesn't exist", name));
+            }
+
+            switch (schema.getColumnInfo(columns[i]).getType().getBaseType()) {
+            case INTEGER:
+            case SMALLINT:
+            case BIGINT:
+            case TINYINT:
+            case FLOAT:
+            case DOUBLE:
+            case CHAR:
+                break;
+
+            default:
+                throw new IllegalArgumentException(String.format(
+                    "Zone-map column %s must have a fixed-size type", name));
+            }
+        }
+
+        return new ZoneMap(tupleFile, storageManager, columns);
+    }
+
+
+    private ZoneMap(HeapTupleFile tupleFile, StorageManager storageManager,
+                    int[] columns) {
+        this.tupleFile = tupleFile;
+        this.storageManager = storageManager;
+        this.columns = columns;
+
+        dbFile = tupleFile.getDBFile();
+
+        TableSchema schema = tupleFile.getSchema();
+        colTypes = new ColumnType[columns.length];
+        colOffsets = new int[columns.length];
+        entrySize = 0;
+        for (int i = 0; i < columns.length; i++) {
+            colTypes[i] = schema.getColumnInfo(columns[i]).getType();
+            colOffsets[i] = entrySize;
+            entrySize += COLUMN_HEADER_SIZE +
+                2 * PageTuple.getStorageSize(colTypes[i], 0);
+        }
+
+        pagesPerZoneMapPage =
+            (dbFile.getPageSize() - ZoneMapPage.OFFSET_ENTRIES) / entrySize;
+        if (pagesPerZoneMapPage < 1) {
+            throw new IllegalArgumentException(String.format(
+                "Zone-map columns need %d bytes per page; too large for " +
+                "page size %d", entrySize, dbFile.getPageSize()));
+        }
+    }
+
+
+    /** Returns the number of pages summarized by each zone-map page. */
+    public int getPagesPerZoneMapPage() {
+        return pagesPerZoneMapPage;
+    }
+
+
+    /**
+     * Returns true if the specified page of the file is a zone-map page.
+     *
+     * @param pageNo the page number, which must be at least 1
+     *
+     * @return true if the page is a zone-map page
+     */
+    boolean isZoneMapPage(int pageNo) {
+        return (pageNo - 1) % (pagesPerZoneMapPage + 1) == 0;
+    }
+
+
+    /** Returns the number of the zone-map page summarizing a data page. */
+    private int getZoneMapPageNo(int pageNo) {
+        return pageNo - (pageNo - 1) % (pagesPerZoneMapPage + 1);
+    }
+
+
+    /** Returns the offset of a data page's summary in its zone-map page. */
+    private int getEntryOffset(int pageNo) {
+        int index = (pageNo - 1) % (pagesPerZoneMapPage + 1) - 1;
+        return ZoneMapPage.OFFSET_ENTRIES + index * entrySize;
+    }
+
+
+    /**
+     * Clears the summary of a page, which must not have any tuples.
+     *
+     * @param pageNo the page whose summary is cleared
+     *
+     * @throws IOException if the zone-map page can't be read
+     */
+    void clearEntry(int pageNo) throws IOException {
+        DBPage zmPage = storageManager.loadDBPage(dbFile,
+            getZoneMapPageNo(pageNo));
+        int offset = getEntryOffset(pageNo);
+        for (int i = 0; i < columns.length; i++) {
+            zmPage.writeByte(offset + colOffsets[i], 0);
+            zmPage.writeInt(offset + colOffsets[i] + 1, 0);
+        }
+        zmPage.unpin();
+    }
+
+
+    /**
+     * Records that a tuple has been added to a page, widening the page's
+     * summary to cover the tuple's values.
+     *
+     * @param pageNo the tuple's home page
+     * @param tup the tuple
+     *
+     * @throws IOException if the zone-map page can't be read
+     */
+    void addTuple(int pageNo, Tuple tup) throws IOException {
+        DBPage zmPage = storageManager.loadDBPage(dbFile,
+            getZoneMapPageNo(pageNo));
+        int offset = getEntryOffset(pageNo);
+        for (int i = 0; i < columns.length; i++) {
+            int colOffset = offset + colOffsets[i];
+            Object value = tup.getColumnValue(columns[i]);
+            if (value == null) {
+                zmPage.writeInt(colOffset + 1, zmPage.readInt(colOffset + 1) + 1);
+                continue;
+            }
+
+            int minOffset = colOffset + COLUMN_HEADER_SIZE;
+            int maxOffset = minOffset + PageTuple.getStorageSize(colTypes[i], 0);
+
+            int flags = zmPage.readUnsignedByte(colOffset);
+            if ((flags & FLAG_HAS_VALUES) == 0) {
+                zmPage.writeByte(colOffset, flags | FLAG_HAS_VALUES);
+                zmPage.writeObject(minOffset, colTypes[i], value);
+                zmPage.writeObject(maxOffset, colTypes[i], value);
+                continue;
+            }
+
+            if (compare(value, zmPage.readObject(minOffset, colTypes[i])) < 0)
+                zmPage.writeObject(minOffset, colTypes[i], value);
+
+            if (compare(value, zmPage.readObject(maxOffset, colTypes[i])) > 0)
+                zmPage.writeObject(maxOffset, colTypes[i], value);
+        }
+        zmPage.unpin();
+    }
+
+
+    /**
+     * Records that a tuple is being removed from a page.  Only the
+     * <tt>NULL</tt> counts change; the ranges of values stay as they are.
+     *
+     * @param pageNo the tuple's home page
+     * @param tup the tuple
+     *
+     * @throws IOException if the zone-map page can't be read
+     */
+    void removeTuple(int pageNo, Tuple tup) throws IOException {
+        DBPage zmPage = storageManager.loadDBPage(dbFile,
+            getZoneMapPageNo(pageNo));
+        int offset = getEntryOffset(pageNo);
+        for (int i = 0; i < columns.length; i++) {
+            if (tup.isNullValue(columns[i])) {
+                int countOffset = offset + colOffsets[i] + 1;
+                zmPage.writeInt(countOffset, zmPage.readInt(countOffset) - 1);
+            }
+        }
+        zmPage.unpin();
+    }
+
+
+    /**
+     * Returns true if a data page might hold tuples that satisfy the scan
+     * bounds, according to its summary.  Pages that aren't data pages are
+     * reported as having no matching tuples.
+     *
+     * @param pageNo the page to check
+     * @param bounds the conditions the scan's tuples must satisfy
+     *
+     * @return false if no tuple on the page can satisfy the bounds
+     *
+     * @throws IOException if the zone-map page can't be read
+     */
+    boolean mayMatch(int pageNo, ScanBounds bounds) throws IOException {
+        if (isZoneMapPage(pageNo))
+            return false;
+
+        DBPage zmPage = storageManager.loadDBPage(dbFile,
+            getZoneMapPageNo(pageNo));
+        try {
+            int offset = getEntryOffset(pageNo);
+            for (int i = 0; i < columns.length; i++) {
+                int colOffset = offset + colOffsets[i];
+                int nullCount = zmPage.readInt(colOffset + 1);
+
+                Object min = null;
+                Object max = null;
+                if ((zmPage.readUnsignedByte(colOffset) & FLAG_HAS_VALUES) != 0) {
+                    int minOffset = colOffset + COLUMN_HEADER_SIZE;
+                    min = zmPage.readObject(minOffset, colTypes[i]);
+                    max = zmPage.readObject(minOffset +
+                        PageTuple.getStorageSize(colTypes[i], 0), colTypes[i]);
+                }
+
+                if (!bounds.mayMatch(columns[i], min, max, nullCount))
+                    return false;
+            }
+
+            return true;
+        }
+        finally {
+            zmPage.unpin();
+        }
+    }
+
+
+    /**
+     * Recomputes the summaries of all data pages from the tuples they hold,
+     * so that each range is as narrow as possible.
+     *
+     * @throws IOException if an IO error occurs while scanning the file
+     */
+    void rebuild() throws IOException {
+        int numPages = dbFile.getNumPages();
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            if (!isZoneMapPage(pageNo))
+                clearEntry(pageNo);
+        }
+
+        int numTuples = 0;
+        try (TupleCursor cursor = tupleFile.openCursor(/* reuseTuple */ true)) {
+            HeapFilePageTuple tup;
+            while ((tup = (HeapFilePageTuple) cursor.next()) != null) {
+                addTuple(tup.getHomePageNo(), tup);
+                numTuples++;
+            }
+        }
+
+        logger.info(String.format("Rebuilt zone maps of %s from %d tuples.",
+            dbFile, numTuples));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object value1, Object value2) {
+        return ((Comparable) value1).compareTo(value2);
+    }
+}
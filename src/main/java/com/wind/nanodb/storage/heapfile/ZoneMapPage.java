@@ -0,0 +1,55 @@
+package com.wind.nanodb.storage.heapfile;
+
+
+import com.wind.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class provides the constants and operations for manipulating zone-map
+ * pages in a heap file.  A zone-map page holds a summary of the values on
+ * each of the data pages that follow it; see {@link ZoneMap} for how these
+ * pages are placed in the file, and what each summary holds.
+ * </p>
+ * <p>
+ * Like overflow pages, a zone-map page is marked by storing
+ * {@link #ZONE_MAP_PAGE_MARKER} where a data page stores its slot count, so
+ * that {@link DataPage} reports it as having no slots and no free space.
+ * The marker is followed by the summaries of the data pages, one after the
+ * other, starting at {@link #OFFSET_ENTRIES}.
+ * </p>
+ */
+public class ZoneMapPage {
+    /**
+     * The value stored in the slot-count position of a zone-map page.  A
+     * data page can never have this many slots.
+     */
+    public static final int ZONE_MAP_PAGE_MARKER = 0xFFFE;
+
+
+    /** The offset of the first data page's summary. */
+    public static final int OFFSET_ENTRIES = 2;
+
+
+    /**
+     * Initialize a newly allocated zone-map page.  The summaries are not
+     * touched; each one is cleared when its data page is added to the file.
+     *
+     * @param dbPage the page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        dbPage.writeShort(DataPage.OFFSET_NUM_SLOTS, ZONE_MAP_PAGE_MARKER);
+    }
+
+
+    /**
+     * Returns true if the specified page of a heap file is a zone-map page.
+     *
+     * @param dbPage the page to examine
+     * @return true if the page is a zone-map page
+     */
+    public static boolean isZoneMapPage(DBPage dbPage) {
+        return dbPage.readUnsignedShort(DataPage.OFFSET_NUM_SLOTS) ==
+               ZONE_MAP_PAGE_MARKER;
+    }
+}
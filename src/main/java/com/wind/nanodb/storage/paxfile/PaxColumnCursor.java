@@ -0,0 +1,75 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.io.IOException;
+
+
+/**
+ * A cursor that returns the values of a single column of a PAX tuple file, a
+ * page at a time.  Each call to {@link #nextBatch} decodes one page's
+ * minipage for the column, and returns the values of the tuples on that page
+ * in one array, so that an aggregate can consume a whole page of values
+ * without building a tuple for each row.
+ */
+public class PaxColumnCursor {
+
+    /** The tuple file being read. */
+    private PaxTupleFile tupleFile;
+
+
+    /** The index of the column being read. */
+    private int colIndex;
+
+
+    /** The page that the next batch is read from. */
+    private int nextPageNo = 1;
+
+
+    PaxColumnCursor(PaxTupleFile tupleFile, int colIndex) {
+        this.tupleFile = tupleFile;
+        this.colIndex = colIndex;
+    }
+
+
+    /**
+     * Returns the column's values on the next page of the file that holds
+     * any tuples, or {@code null} if there are no more pages.  Deleted
+     * tuples are left out, and <tt>NULL</tt> values are returned as
+     * {@code null}.
+     *
+     * @return the next batch of values, or {@code null} at the end of the
+     *         file
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Object[] nextBatch() throws IOException {
+        int numPages = tupleFile.getDBFile().getNumPages();
+        while (nextPageNo < numPages) {
+            int pageNo = nextPageNo++;
+
+            PaxPageColumns page = tupleFile.loadPage(pageNo);
+            int numLive = 0;
+            for (int row = 0; row < page.getNumRows(); row++) {
+                if (!page.isDeleted(row))
+                    numLive++;
+            }
+
+            if (numLive == 0)
+                continue;
+
+            Object[] values = tupleFile.readColumn(pageNo, colIndex);
+            if (numLive == values.length)
+                return values;
+
+            Object[] batch = new Object[numLive];
+            int i = 0;
+            for (int row = 0; row < values.length; row++) {
+                if (!page.isDeleted(row))
+                    batch[i++] = values[row];
+            }
+            return batch;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.wind.nanodb.storage.PageReader;
+import com.wind.nanodb.storage.PageWriter;
+
+
+/**
+ * <p>
+ * The dictionary of a dictionary-encoded column in a PAX tuple file.  Each
+ * distinct value of the column is given a small integer code when it is
+ * first stored, and minipages that use {@link PaxPage#ENCODING_DICTIONARY}
+ * store one code per value instead of the value itself.  A column has one
+ * dictionary for the whole file, kept in the header page after the table's
+ * statistics, so codes mean the same thing on every page.
+ * </p>
+ * <p>
+ * Codes are stored in a single unsigned byte, so a dictionary holds at most
+ * {@link #MAX_ENTRIES} values.  Once a dictionary is full, pages holding
+ * values that aren't in it simply store the column without the dictionary.
+ * Decoding a code returns the dictionary's own <tt>String</tt> object, so
+ * reading a dictionary-encoded value never allocates, and comparing or
+ * hashing two values from the same dictionary is cheap.
+ * </p>
+ */
+public class PaxDictionary {
+
+    /** The most values that a dictionary can hold. */
+    public static final int MAX_ENTRIES = 256;
+
+
+    /** The longest value that can be added to a dictionary. */
+    public static final int MAX_VALUE_LENGTH = 255;
+
+
+    /** The values in the dictionary, indexed by code. */
+    private ArrayList<String> values = new ArrayList<>();
+
+
+    /** The code of each value in the dictionary. */
+    private HashMap<String, Integer> codes = new HashMap<>();
+
+
+    /** The number of bytes that the dictionary takes in the header page. */
+    private int storageSize = 2;
+
+
+    /** Returns the number of values in the dictionary. */
+    public int size() {
+        return values.size();
+    }
+
+
+    /** Returns the number of bytes the dictionary takes in the header page. */
+    public int getStorageSize() {
+        return storageSize;
+    }
+
+
+    /**
+     * Returns the code of a value, or -1 if the value isn't in the
+     * dictionary.
+     */
+    public int getCode(String value) {
+        Integer code = codes.get(value);
+        return (code != null ? code : -1);
+    }
+
+
+    /** Returns the value with the specified code. */
+    public String getValue(int code) {
+        return values.get(code);
+    }
+
+
+    /**
+     * Returns the number of bytes that adding a value would add to the
+     * dictionary's storage size.
+     */
+    public static int getEntrySize(String value) {
+        return 1 + value.length();
+    }
+
+
+    /**
+     * Adds a value to the dictionary, if there is room for it.
+     *
+     * @param value the value to add
+     *
+     * @return the value's code, or -1 if the dictionary is full or the value
+     *         is too long
+     */
+    public int addValue(String value) {
+        int code = getCode(value);
+        if (code != -1)
+            return code;
+
+        if (values.size() >= MAX_ENTRIES || value.length() > MAX_VALUE_LENGTH)
+            return -1;
+
+        code = values.size();
+        values.add(value);
+        codes.put(value, code);
+        storageSize += getEntrySize(value);
+        return code;
+    }
+
+
+    /**
+     * Writes the dictionary's values, in code order.
+     *
+     * @param writer the writer to write the values with
+     */
+    public void write(PageWriter writer) {
+        writer.writeShort(values.size());
+        for (String value : values)
+            writer.writeVarString255(value);
+    }
+
+
+    /**
+     * Reads values written by {@link #write} into this dictionary, which
+     * must be empty, so that each value gets back its original code.
+     *
+     * @param reader the reader to read the values with
+     */
+    public void read(PageReader reader) {
+        if (!values.isEmpty())
+            throw new IllegalStateException("Dictionary is not empty");
+
+        int numValues = reader.readUnsignedShort();
+        for (int i = 0; i < numValues; i++)
+            addValue(reader.readVarString255());
+    }
+}
@@ -0,0 +1,562 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import com.wind.nanodb.expressions.TypeConverter;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.PageTuple;
+
+
+/**
+ * <p>
+ * This class provides the constants and operations for manipulating the data
+ * pages of a PAX tuple file.  Rather than storing each row's values together,
+ * a PAX page stores the values of each column together, in a "minipage" for
+ * that column, so that a scan can decode just the columns it needs.  The
+ * rows on a page are numbered from 0, and a row keeps its number for as long
+ * as it exists, so that the row number can be used in file-pointers.
+ * </p>
+ * <p>
+ * A data page is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The number of rows on the page, including deleted rows (unsigned
+ *       short).</li>
+ *   <li>The offset of each column's minipage, in column order (unsigned
+ *       short each).</li>
+ *   <li>A bitmap with a bit set for each row that has been deleted.</li>
+ *   <li>The minipages, in column order.</li>
+ * </ul>
+ * <p>
+ * Each minipage starts with a byte specifying how the column's values are
+ * encoded, followed by a bitmap with a bit set for each row whose value is
+ * <tt>NULL</tt>.  (Deleted rows are always <tt>NULL</tt>.)  Only the
+ * non-<tt>NULL</tt> values are stored after the bitmap, in row order:
+ * </p>
+ * <ul>
+ *   <li>{@link #ENCODING_PLAIN} - each value is stored one after the other,
+ *       in the same format as in a heap-file tuple.</li>
+ *   <li>{@link #ENCODING_RLE} - the number of runs (unsigned short), followed
+ *       by each run of equal values, as the length of the run (unsigned
+ *       short) and the value.</li>
+ *   <li>{@link #ENCODING_DICTIONARY} - the code of each value in the
+ *       column's {@link PaxDictionary} (unsigned byte).  This is only
+ *       possible if every value on the page is in the dictionary.</li>
+ * </ul>
+ * <p>
+ * Pages are always rewritten as a whole, and each column is written with
+ * whichever encoding takes the least space.
+ * </p>
+ */
+public class PaxPage {
+
+    /** The offset of the row count. */
+    public static final int OFFSET_NUM_ROWS = 0;
+
+
+    /** The offset of the first minipage offset. */
+    public static final int OFFSET_DIRECTORY = 2;
+
+
+    /** Values are stored one after the other. */
+    public static final int ENCODING_PLAIN = 0;
+
+
+    /** Runs of equal values are stored once, with the length of the run. */
+    public static final int ENCODING_RLE = 1;
+
+
+    /** Values are stored as codes in the file's dictionary for the column. */
+    public static final int ENCODING_DICTIONARY = 2;
+
+
+    /** The most rows that a page can hold. */
+    public static final int MAX_ROWS = 0xFFFF;
+
+
+    /**
+     * Initialize a newly allocated data page, so that it holds no rows.
+     *
+     * @param dbPage the page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        dbPage.writeShort(OFFSET_NUM_ROWS, 0);
+    }
+
+
+    public static int getNumRows(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_NUM_ROWS);
+    }
+
+
+    /** Returns the number of bytes in a bitmap with one bit per row. */
+    public static int getBitmapSize(int numRows) {
+        return (numRows + 7) / 8;
+    }
+
+
+    private static int getDeletedBitmapOffset(int numCols) {
+        return OFFSET_DIRECTORY + 2 * numCols;
+    }
+
+
+    private static boolean getBit(DBPage dbPage, int bitmapOffset, int row) {
+        int b = dbPage.readUnsignedByte(bitmapOffset + row / 8);
+        return (b & (1 << (row % 8))) != 0;
+    }
+
+
+    private static void setBit(DBPage dbPage, int bitmapOffset, int row) {
+        int b = dbPage.readUnsignedByte(bitmapOffset + row / 8);
+        dbPage.writeByte(bitmapOffset + row / 8, b | (1 << (row % 8)));
+    }
+
+
+    /**
+     * Reads which rows of a page have been deleted.
+     *
+     * @param dbPage the data page to read
+     * @param numCols the number of columns in the file's schema
+     *
+     * @return an array with an entry for each row on the page, which is true
+     *         if the row has been deleted
+     */
+    public static boolean[] readDeleted(DBPage dbPage, int numCols) {
+        int numRows = getNumRows(dbPage);
+        int bitmapOffset = getDeletedBitmapOffset(numCols);
+
+        boolean[] deleted = new boolean[numRows];
+        for (int row = 0; row < numRows; row++)
+            deleted[row] = getBit(dbPage, bitmapOffset, row);
+
+        return deleted;
+    }
+
+
+    /**
+     * Decodes the values of one column on a page.
+     *
+     * @param dbPage the data page to read
+     * @param colType the type of the column
+     * @param numCols the number of columns in the file's schema
+     * @param colIndex the index of the column to decode
+     * @param dict the column's dictionary, or {@code null} if the column
+     *        isn't dictionary-encoded
+     *
+     * @return an array with an entry for each row on the page, which is
+     *         {@code null} if the row's value is <tt>NULL</tt> or the row has
+     *         been deleted
+     */
+    public static Object[] readColumn(DBPage dbPage, ColumnType colType,
+                                      int numCols, int colIndex,
+                                      PaxDictionary dict) {
+        int numRows = getNumRows(dbPage);
+        Object[] values = new Object[numRows];
+        if (numRows == 0)
+            return values;
+
+        int offset = dbPage.readUnsignedShort(OFFSET_DIRECTORY + 2 * colIndex);
+        int encoding = dbPage.readUnsignedByte(offset);
+        int nullsOffset = offset + 1;
+        int pos = nullsOffset + getBitmapSize(numRows);
+
+        switch (encoding) {
+        case ENCODING_PLAIN:
+            if (readPlainFixedSize(dbPage, colType, nullsOffset, pos, values))
+                break;
+
+            for (int row = 0; row < numRows; row++) {
+                if (getBit(dbPage, nullsOffset, row))
+                    continue;
+
+                values[row] = dbPage.readObject(pos, colType);
+                pos += PageTuple.getValueStorageSize(colType, values[row]);
+            }
+            break;
+
+        case ENCODING_RLE:
+            int numRuns = dbPage.readUnsignedShort(pos);
+            pos += 2;
+
+            int row = 0;
+            for (int run = 0; run < numRuns; run++) {
+                int runLength = dbPage.readUnsignedShort(pos);
+                Object value = dbPage.readObject(pos + 2, colType);
+                pos += 2 + PageTuple.getValueStorageSize(colType, value);
+
+                while (runLength > 0) {
+                    if (!getBit(dbPage, nullsOffset, row)) {
+                        values[row] = value;
+                        runLength--;
+                    }
+                    row++;
+                }
+            }
+            break;
+
+        case ENCODING_DICTIONARY:
+            if (dict == null) {
+                throw new IllegalStateException(String.format(
+                    "Column %d on page %d is dictionary-encoded, but the " +
+                    "column has no dictionary", colIndex, dbPage.getPageNo()));
+            }
+
+            for (int r = 0; r < numRows; r++) {
+                if (!getBit(dbPage, nullsOffset, r))
+                    values[r] = dict.getValue(dbPage.readUnsignedByte(pos++));
+            }
+            break;
+
+        default:
+            throw new IllegalStateException(String.format(
+                "Column %d on page %d has unrecognized encoding %d", colIndex,
+                dbPage.getPageNo(), encoding));
+        }
+
+        return values;
+    }
+
+
+    /**
+     * Decodes a plain-encoded minipage of <tt>INTEGER</tt>, <tt>BIGINT</tt>
+     * or <tt>DOUBLE</tt> values with one bulk read, since the non-null values
+     * are packed one after the other.  Other column types are left to the
+     * caller.
+     *
+     * @param dbPage the data page to read
+     * @param colType the type of the column
+     * @param nullsOffset the offset of the minipage's nulls bitmap
+     * @param pos the offset of the first value in the minipage
+     * @param values the array to store the decoded values into, with an
+     *        entry for each row on the page
+     *
+     * @return true if the values were decoded, or false if the column type
+     *         isn't handled here
+     */
+    private static boolean readPlainFixedSize(DBPage dbPage, ColumnType colType,
+                                              int nullsOffset, int pos,
+                                              Object[] values) {
+        int numRows = values.length;
+        int numValues = 0;
+        for (int row = 0; row < numRows; row++) {
+            if (!getBit(dbPage, nullsOffset, row))
+                numValues++;
+        }
+
+        int i = 0;
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            int[] ints = new int[numValues];
+            dbPage.readInts(pos, 4, ints, 0, numValues);
+            for (int row = 0; row < numRows; row++) {
+                if (!getBit(dbPage, nullsOffset, row))
+                    values[row] = ints[i++];
+            }
+            return true;
+
+        case BIGINT:
+            long[] longs = new long[numValues];
+            dbPage.readLongs(pos, 8, longs, 0, numValues);
+            for (int row = 0; row < numRows; row++) {
+                if (!getBit(dbPage, nullsOffset, row))
+                    values[row] = longs[i++];
+            }
+            return true;
+
+        case DOUBLE:
+            double[] doubles = new double[numValues];
+            dbPage.readDoubles(pos, 8, doubles, 0, numValues);
+            for (int row = 0; row < numRows; row++) {
+                if (!getBit(dbPage, nullsOffset, row))
+                    values[row] = doubles[i++];
+            }
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+
+    /**
+     * Reads the dictionary codes of one column on a page, without decoding
+     * any values.
+     *
+     * @param dbPage the data page to read
+     * @param numCols the number of columns in the file's schema
+     * @param colIndex the index of the column to read
+     *
+     * @return an array with an entry for each row on the page, which is the
+     *         row's code, or -1 if the row's value is <tt>NULL</tt> or the
+     *         row has been deleted; or {@code null} if the column isn't
+     *         dictionary-encoded on this page
+     */
+    public static int[] readCodes(DBPage dbPage, int numCols, int colIndex) {
+        int numRows = getNumRows(dbPage);
+        if (numRows == 0)
+            return new int[0];
+
+        int offset = dbPage.readUnsignedShort(OFFSET_DIRECTORY + 2 * colIndex);
+        if (dbPage.readUnsignedByte(offset) != ENCODING_DICTIONARY)
+            return null;
+
+        int nullsOffset = offset + 1;
+        int pos = nullsOffset + getBitmapSize(numRows);
+
+        int[] codes = new int[numRows];
+        for (int row = 0; row < numRows; row++) {
+            if (getBit(dbPage, nullsOffset, row))
+                codes[row] = -1;
+            else
+                codes[row] = dbPage.readUnsignedByte(pos++);
+        }
+
+        return codes;
+    }
+
+
+    /**
+     * Converts a value to the Java type that it will be read back as, so that
+     * values can be compared to find runs of equal values.
+     *
+     * @param colType the type of the value's column
+     * @param value the value, or {@code null} for <tt>NULL</tt>
+     *
+     * @return the converted value
+     */
+    public static Object normalizeValue(ColumnType colType, Object value) {
+        if (value == null)
+            return null;
+
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            return TypeConverter.getIntegerValue(value);
+
+        case SMALLINT:
+            return TypeConverter.getShortValue(value);
+
+        case BIGINT:
+            return TypeConverter.getLongValue(value);
+
+        case TINYINT:
+            return TypeConverter.getByteValue(value);
+
+        case FLOAT:
+            return TypeConverter.getFloatValue(value);
+
+        case DOUBLE:
+            return TypeConverter.getDoubleValue(value);
+
+        case CHAR:
+        case VARCHAR:
+            return TypeConverter.getStringValue(value);
+
+        default:
+            return value;
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes that a page holding the specified rows
+     * would use.
+     *
+     * @param colTypes the types of the file's columns
+     * @param columns the values of each column, indexed by column and then
+     *        by row; the values must be {@linkplain #normalizeValue
+     *        normalized}
+     * @param numRows the number of rows, including deleted rows
+     * @param dicts the dictionary of each column, or {@code null} for
+     *        columns that aren't dictionary-encoded
+     *
+     * @return the size of the encoded page in bytes
+     */
+    public static int getEncodedSize(ColumnType[] colTypes, Object[][] columns,
+                                     int numRows, PaxDictionary[] dicts) {
+        int size = getDeletedBitmapOffset(colTypes.length) +
+                   getBitmapSize(numRows);
+
+        for (int col = 0; col < colTypes.length; col++) {
+            size += getMinipageSize(colTypes[col], columns[col], numRows,
+                                    dicts[col]);
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Writes a whole page of rows, replacing whatever the page held before.
+     *
+     * @param dbPage the data page to write
+     * @param colTypes the types of the file's columns
+     * @param columns the values of each column, indexed by column and then
+     *        by row; the values must be {@linkplain #normalizeValue
+     *        normalized}, and the values of deleted rows must be
+     *        {@code null}
+     * @param deleted which rows have been deleted
+     * @param numRows the number of rows, including deleted rows
+     * @param dicts the dictionary of each column, or {@code null} for
+     *        columns that aren't dictionary-encoded
+     *
+     * @throws IllegalArgumentException if the rows don't fit in the page
+     */
+    public static void writePage(DBPage dbPage, ColumnType[] colTypes,
+                                 Object[][] columns, boolean[] deleted,
+                                 int numRows, PaxDictionary[] dicts) {
+        int size = getEncodedSize(colTypes, columns, numRows, dicts);
+        if (size > dbPage.getPageSize() || numRows > MAX_ROWS) {
+            throw new IllegalArgumentException(String.format(
+                "%d rows need %d bytes, but page %d is only %d bytes",
+                numRows, size, dbPage.getPageNo(), dbPage.getPageSize()));
+        }
+
+        int numCols = colTypes.length;
+        int bitmapSize = getBitmapSize(numRows);
+
+        dbPage.writeShort(OFFSET_NUM_ROWS, numRows);
+
+        int deletedOffset = getDeletedBitmapOffset(numCols);
+        dbPage.setDataRange(deletedOffset, bitmapSize, (byte) 0);
+        for (int row = 0; row < numRows; row++) {
+            if (deleted[row])
+                setBit(dbPage, deletedOffset, row);
+        }
+
+        int offset = deletedOffset + bitmapSize;
+        for (int col = 0; col < numCols; col++) {
+            ColumnType colType = colTypes[col];
+            Object[] values = columns[col];
+
+            dbPage.writeShort(OFFSET_DIRECTORY + 2 * col, offset);
+
+            int plainSize = getPlainSize(colType, values, numRows);
+            int rleSize = getRunLengthSize(colType, values, numRows);
+            int dictSize = getDictionarySize(values, numRows, dicts[col]);
+            int encoding = (rleSize < plainSize ? ENCODING_RLE : ENCODING_PLAIN);
+            if (dictSize <= Math.min(plainSize, rleSize))
+                encoding = ENCODING_DICTIONARY;
+            dbPage.writeByte(offset, encoding);
+
+            int nullsOffset = offset + 1;
+            dbPage.setDataRange(nullsOffset, bitmapSize, (byte) 0);
+            for (int row = 0; row < numRows; row++) {
+                if (values[row] == null)
+                    setBit(dbPage, nullsOffset, row);
+            }
+
+            int pos = nullsOffset + bitmapSize;
+            if (encoding == ENCODING_PLAIN) {
+                for (int row = 0; row < numRows; row++) {
+                    if (values[row] != null)
+                        pos += dbPage.writeObject(pos, colType, values[row]);
+                }
+            }
+            else if (encoding == ENCODING_DICTIONARY) {
+                for (int row = 0; row < numRows; row++) {
+                    if (values[row] != null) {
+                        dbPage.writeByte(pos++,
+                            dicts[col].getCode((String) values[row]));
+                    }
+                }
+            }
+            else {
+                int numRunsPos = pos;
+                int numRuns = 0;
+                pos += 2;
+
+                int row = nextNonNull(values, 0, numRows);
+                while (row < numRows) {
+                    Object value = values[row];
+                    int runLength = 0;
+                    while (row < numRows && value.equals(values[row])) {
+                        runLength++;
+                        row = nextNonNull(values, row + 1, numRows);
+                    }
+
+                    dbPage.writeShort(pos, runLength);
+                    pos += 2;
+                    pos += dbPage.writeObject(pos, colType, value);
+                    numRuns++;
+                }
+
+                dbPage.writeShort(numRunsPos, numRuns);
+            }
+
+            offset = pos;
+        }
+    }
+
+
+    /**
+     * Returns the index of the first non-<tt>NULL</tt> value at or after
+     * <tt>row</tt>, or <tt>numRows</tt> if there isn't one.
+     */
+    private static int nextNonNull(Object[] values, int row, int numRows) {
+        while (row < numRows && values[row] == null)
+            row++;
+
+        return row;
+    }
+
+
+    private static int getMinipageSize(ColumnType colType, Object[] values,
+                                       int numRows, PaxDictionary dict) {
+        int size = Math.min(getPlainSize(colType, values, numRows),
+                            getRunLengthSize(colType, values, numRows));
+        return Math.min(size, getDictionarySize(values, numRows, dict));
+    }
+
+
+    /**
+     * Returns the size of a dictionary-encoded minipage, or
+     * <tt>Integer.MAX_VALUE</tt> if the column has no dictionary, or some
+     * value isn't in it.
+     */
+    private static int getDictionarySize(Object[] values, int numRows,
+                                         PaxDictionary dict) {
+        if (dict == null)
+            return Integer.MAX_VALUE;
+
+        int size = 1 + getBitmapSize(numRows);
+        for (int row = 0; row < numRows; row++) {
+            if (values[row] == null)
+                continue;
+
+            if (dict.getCode((String) values[row]) == -1)
+                return Integer.MAX_VALUE;
+
+            size++;
+        }
+
+        return size;
+    }
+
+
+    private static int getPlainSize(ColumnType colType, Object[] values,
+                                    int numRows) {
+        int size = 1 + getBitmapSize(numRows);
+        for (int row = 0; row < numRows; row++)
+            size += PageTuple.getValueStorageSize(colType, values[row]);
+
+        return size;
+    }
+
+
+    private static int getRunLengthSize(ColumnType colType, Object[] values,
+                                        int numRows) {
+        int size = 1 + getBitmapSize(numRows) + 2;
+
+        Object runValue = null;
+        for (int row = 0; row < numRows; row++) {
+            Object value = values[row];
+            if (value == null || value.equals(runValue))
+                continue;
+
+            size += 2 + PageTuple.getValueStorageSize(colType, value);
+            runValue = value;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,171 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.io.IOException;
+
+
+/**
+ * The decoded contents of one data page of a PAX tuple file.  Columns are
+ * only decoded when one of their values is first asked for, so a scan that
+ * only uses a few columns of a wide table never decodes the rest.  All of
+ * the {@link PaxPageTuple}s from a page share one of these objects.
+ */
+class PaxPageColumns {
+
+    /** The tuple file that the page is from. */
+    private PaxTupleFile tupleFile;
+
+
+    /** The page number of the page. */
+    private int pageNo;
+
+
+    /** The number of rows on the page, including deleted rows. */
+    private int numRows;
+
+
+    /** Which rows on the page have been deleted. */
+    private boolean[] deleted;
+
+
+    /**
+     * The decoded values of each column, indexed by column and then by row.
+     * A column's entry is {@code null} until it has been decoded.
+     */
+    private Object[][] columns;
+
+
+    /**
+     * The dictionary codes of each column, indexed by column and then by
+     * row, for columns that have been asked for them.  A column's entry is
+     * {@code null} if its codes haven't been read, or if it isn't
+     * dictionary-encoded on this page.
+     */
+    private int[][] codes;
+
+
+    /** Which columns' codes have been read. */
+    private boolean[] codesRead;
+
+
+    PaxPageColumns(PaxTupleFile tupleFile, int pageNo, boolean[] deleted) {
+        this.tupleFile = tupleFile;
+        this.pageNo = pageNo;
+        this.deleted = deleted;
+
+        numRows = deleted.length;
+        columns = new Object[tupleFile.getSchema().numColumns()][];
+        codes = new int[columns.length][];
+        codesRead = new boolean[columns.length];
+    }
+
+
+    PaxTupleFile getTupleFile() {
+        return tupleFile;
+    }
+
+
+    int getPageNo() {
+        return pageNo;
+    }
+
+
+    int getNumRows() {
+        return numRows;
+    }
+
+
+    boolean isDeleted(int row) {
+        return deleted[row];
+    }
+
+
+    /**
+     * Returns the index of the first row at or after <tt>row</tt> that
+     * hasn't been deleted, or -1 if there isn't one.
+     */
+    int nextLiveRow(int row) {
+        while (row < numRows) {
+            if (!deleted[row])
+                return row;
+
+            row++;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Returns a value from the page, decoding its column if this is the first
+     * time that the column has been used.
+     *
+     * @param colIndex the index of the column
+     * @param row the row on the page
+     *
+     * @return the value, or {@code null} if it is <tt>NULL</tt>
+     */
+    Object getValue(int colIndex, int row) {
+        if (columns[colIndex] == null) {
+            try {
+                columns[colIndex] = tupleFile.readColumn(pageNo, colIndex);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return columns[colIndex][row];
+    }
+
+
+    /**
+     * Returns the dictionary codes of a column on the page, reading them the
+     * first time they are asked for.  No values are decoded.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the code of each row, or -1 for rows that are <tt>NULL</tt> or
+     *         deleted; or {@code null} if the column isn't dictionary-encoded
+     *         on this page
+     */
+    int[] getCodes(int colIndex) {
+        if (!codesRead[colIndex]) {
+            try {
+                codes[colIndex] = tupleFile.readCodes(pageNo, colIndex);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            codesRead[colIndex] = true;
+        }
+
+        return codes[colIndex];
+    }
+
+
+    /**
+     * Records that a row's values have changed, so that tuples sharing this
+     * object see the new values.  Columns that haven't been decoded yet are
+     * left alone, since they will be read from the page when needed.
+     *
+     * @param row the row that changed
+     * @param values the row's values, in column order
+     */
+    void setRow(int row, Object[] values) {
+        for (int col = 0; col < columns.length; col++) {
+            if (columns[col] != null)
+                columns[col][row] = values[col];
+
+            // The page may no longer be dictionary-encoded the same way.
+            codes[col] = null;
+            codesRead[col] = false;
+        }
+    }
+
+
+    /** Records that a row has been deleted. */
+    void setDeleted(int row) {
+        deleted[row] = true;
+    }
+}
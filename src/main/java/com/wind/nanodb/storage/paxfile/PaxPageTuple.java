@@ -0,0 +1,147 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.FilePointer;
+
+
+/**
+ * A tuple from a PAX tuple file.  The tuple's values are decoded from its
+ * page column by column, as they are asked for; see {@link PaxPageColumns}.
+ * Since the decoded values are held in memory, the tuple doesn't keep its
+ * page pinned, and pinning the tuple does nothing.
+ */
+public class PaxPageTuple implements Tuple {
+
+    /** The decoded contents of the tuple's page. */
+    private PaxPageColumns page;
+
+
+    /** The tuple's row on its page. */
+    private int row;
+
+
+    PaxPageTuple(PaxPageColumns page, int row) {
+        this.page = page;
+        this.row = row;
+    }
+
+
+    PaxPageColumns getPage() {
+        return page;
+    }
+
+
+    public int getPageNo() {
+        return page.getPageNo();
+    }
+
+
+    public int getRow() {
+        return row;
+    }
+
+
+    /**
+     * PAX tuples hold their decoded values in memory, so they don't depend
+     * on their page staying in the Buffer Manager.
+     *
+     * @return {@code false} always.
+     */
+    @Override
+    public boolean isDiskBacked() {
+        return false;
+    }
+
+
+    /** Pinning and unpinning is a no-op, since no page is held. */
+    @Override
+    public void pin() {
+        // No-op.
+    }
+
+
+    /** Pinning and unpinning is a no-op, since no page is held. */
+    @Override
+    public void unpin() {
+        // No-op.
+    }
+
+
+    /** Pinning and unpinning is a no-op, since no page is held. */
+    @Override
+    public int getPinCount() {
+        return 0;
+    }
+
+
+    /** Pinning and unpinning is a no-op, since no page is held. */
+    @Override
+    public boolean isPinned() {
+        return false;
+    }
+
+
+    @Override
+    public int getColumnCount() {
+        return page.getTupleFile().getSchema().numColumns();
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        return getColumnValue(colIndex) == null;
+    }
+
+
+    @Override
+    public Object getColumnValue(int colIndex) {
+        if (colIndex < 0 || colIndex >= getColumnCount()) {
+            throw new IllegalArgumentException(String.format(
+                "Column index must be in range [0,%d], got %d",
+                getColumnCount() - 1, colIndex));
+        }
+
+        return page.getValue(colIndex, row);
+    }
+
+
+    /**
+     * PAX pages are always rewritten as a whole, so tuples can't be changed
+     * in place; use {@link PaxTupleFile#updateTuple} instead.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setColumnValue(int colIndex, Object value) {
+        throw new UnsupportedOperationException(
+            "PAX tuples can only be changed with PaxTupleFile.updateTuple()");
+    }
+
+
+    @Override
+    public FilePointer getExternalReference() {
+        return new FilePointer(page.getPageNo(), row);
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("PAX[");
+
+        for (int i = 0; i < getColumnCount(); i++) {
+            if (i > 0)
+                buf.append(',');
+
+            Object obj = getColumnValue(i);
+            if (obj == null)
+                buf.append("NULL");
+            else
+                buf.append(obj);
+        }
+
+        buf.append(']');
+        return buf.toString();
+    }
+}
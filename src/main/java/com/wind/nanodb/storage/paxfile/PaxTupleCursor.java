@@ -0,0 +1,120 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.io.IOException;
+
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.TupleCursor;
+
+
+/**
+ * A cursor over a PAX tuple file that only returns tuples whose
+ * dictionary-encoded columns have particular codes.  The codes are compared
+ * without decoding any values, so rows that can't satisfy a scan's equality
+ * conditions are passed over cheaply.  On pages where a column isn't
+ * dictionary-encoded, the column isn't filtered, and the scan's predicate
+ * must still be checked against every tuple.  PAX tuples never hold pages
+ * pinned, so the cursor has nothing to release.
+ */
+class PaxTupleCursor implements TupleCursor {
+
+    /** The tuple file being scanned. */
+    private PaxTupleFile tupleFile;
+
+
+    /** The columns that are filtered on their codes. */
+    private int[] filterCols;
+
+
+    /**
+     * The code that each filtered column must have, or -1 if the value isn't
+     * in the column's dictionary, so that no dictionary-encoded row matches.
+     */
+    private int[] filterCodes;
+
+
+    /** The tuple most recently returned by the cursor. */
+    private PaxPageTuple current;
+
+
+    /** True if the cursor has reached the end of the file, or been closed. */
+    private boolean done;
+
+
+    PaxTupleCursor(PaxTupleFile tupleFile, int[] filterCols,
+                   int[] filterCodes) {
+        this.tupleFile = tupleFile;
+        this.filterCols = filterCols;
+        this.filterCodes = filterCodes;
+    }
+
+
+    /** Returns true if a row passes every filter. */
+    boolean matches(PaxPageColumns page, int row) {
+        for (int i = 0; i < filterCols.length; i++) {
+            int[] codes = page.getCodes(filterCols[i]);
+            if (codes == null)
+                continue;
+
+            if (filterCodes[i] == -1 || codes[row] != filterCodes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public Tuple next() throws IOException {
+        if (done)
+            return null;
+
+        PaxPageTuple next;
+        if (current == null)
+            next = tupleFile.findMatchingTuple(null, 0, this);
+        else
+            next = tupleFile.findMatchingTuple(current.getPage(),
+                                               current.getRow() + 1, this);
+
+        if (next == null)
+            done = true;
+        else
+            current = next;
+
+        return next;
+    }
+
+
+    @Override
+    public int fill(Tuple[] batch) throws IOException {
+        int count = 0;
+        while (count < batch.length) {
+            Tuple tup = next();
+            if (tup == null)
+                break;
+
+            batch[count++] = tup;
+        }
+
+        return count;
+    }
+
+
+    @Override
+    public void positionAfter(Tuple tuple) throws IOException {
+        if (!(tuple instanceof PaxPageTuple)) {
+            throw new IllegalArgumentException(
+                "tuple must be a PaxPageTuple from this cursor's file");
+        }
+
+        current = (PaxPageTuple) tuple;
+        done = false;
+    }
+
+
+    @Override
+    public void close() {
+        current = null;
+        done = true;
+    }
+}
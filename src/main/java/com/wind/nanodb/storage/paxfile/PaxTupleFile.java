@@ -0,0 +1,922 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.queryeval.ColumnStats;
+import com.wind.nanodb.queryeval.ColumnStatsCollector;
+import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.SQLDataType;
+import com.wind.nanodb.relations.TableSchema;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.BasicTupleCursor;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.InvalidFilePointerException;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleCursor;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.TupleFileManager;
+import com.wind.nanodb.storage.TupleMoveListener;
+import com.wind.nanodb.storage.heapfile.HeaderPage;
+
+
+/**
+ * <p>
+ * This class implements the TupleFile interface for PAX files, which store
+ * each page's values column by column; see {@link PaxPage} for the page
+ * format.  Scans only decode the columns that are actually used, and
+ * {@link #openColumnCursor} reads a single column a page at a time, which
+ * suits aggregates over a few columns of a wide table.
+ * </p>
+ * <p>
+ * PAX files are meant for tables that are mostly appended to.  New tuples
+ * go into the last page of the file, reusing the row of a deleted tuple if
+ * there is one; space freed on earlier pages is not reused.  Tuples never
+ * move, so an update that would make a tuple's page overflow fails.
+ * </p>
+ * <p>
+ * String columns can be dictionary-encoded (see {@link PaxDictionary}),
+ * either by naming them in the {@link #PROP_DICTIONARY} table property, or
+ * by letting {@link #analyze} pick the columns with few distinct values.
+ * Scans with equality conditions on such columns compare dictionary codes
+ * rather than values.
+ * </p>
+ */
+public class PaxTupleFile implements TupleFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PaxTupleFile.class);
+
+
+    /**
+     * The table property that lists the columns to dictionary-encode,
+     * separated by commas.
+     */
+    public static final String PROP_DICTIONARY = "dictionary";
+
+
+    /**
+     * {@link #analyze} dictionary-encodes a string column if each of its
+     * distinct values appears at least this many times on average.
+     */
+    public static final int MIN_DICTIONARY_REPEATS = 4;
+
+
+    /**
+     * Space left free in the header page when dictionaries grow, so that the
+     * table's statistics can grow too.
+     */
+    private static final int HEADER_RESERVE = 256;
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The manager for PAX tuple files, which saves the file's metadata. */
+    private PaxTupleFileManager paxFileManager;
+
+
+    /** The schema of tuples in this tuple file. */
+    private TableSchema schema;
+
+
+    /** The types of the schema's columns, in column order. */
+    private ColumnType[] colTypes;
+
+
+    /**
+     * The dictionary of each column, or {@code null} for columns that aren't
+     * dictionary-encoded.
+     */
+    private PaxDictionary[] dicts;
+
+
+    /** Statistics for this tuple file. */
+    private TableStats stats;
+
+
+    /** The file that stores the tuples. */
+    private DBFile dbFile;
+
+
+    public PaxTupleFile(StorageManager storageManager,
+                        PaxTupleFileManager paxFileManager, DBFile dbFile,
+                        TableSchema schema, TableStats stats) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (paxFileManager == null)
+            throw new IllegalArgumentException("paxFileManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (stats == null)
+            throw new IllegalArgumentException("stats cannot be null");
+
+        this.storageManager = storageManager;
+        this.paxFileManager = paxFileManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+        this.stats = stats;
+
+        colTypes = new ColumnType[schema.numColumns()];
+        for (int i = 0; i < colTypes.length; i++)
+            colTypes[i] = schema.getColumnInfo(i).getType();
+
+        dicts = new PaxDictionary[colTypes.length];
+        String value = schema.getProperty(PROP_DICTIONARY);
+        if (value != null && !value.trim().isEmpty()) {
+            for (String name : value.split(",")) {
+                name = name.trim().toUpperCase();
+                int colIndex = schema.getColumnIndex(name);
+                if (colIndex < 0) {
+                    throw new IllegalArgumentException(String.format(
+                        "Dictionary column %s doesn't exist", name));
+                }
+
+                if (!isStringType(colTypes[colIndex])) {
+                    throw new IllegalArgumentException(String.format(
+                        "Dictionary column %s must be a CHAR or VARCHAR " +
+                        "column", name));
+                }
+
+                dicts[colIndex] = new PaxDictionary();
+            }
+        }
+    }
+
+
+    private static boolean isStringType(ColumnType colType) {
+        return colType.getBaseType() == SQLDataType.CHAR ||
+               colType.getBaseType() == SQLDataType.VARCHAR;
+    }
+
+
+    @Override
+    public TupleFileManager getManager() {
+        return paxFileManager;
+    }
+
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+
+    @Override
+    public TableStats getStats() {
+        return stats;
+    }
+
+
+    @Override
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    /**
+     * Returns the dictionary of a column, or {@code null} if the column isn't
+     * dictionary-encoded.
+     */
+    PaxDictionary getDictionary(int colIndex) {
+        return dicts[colIndex];
+    }
+
+
+    /** Returns true if the specified column is dictionary-encoded. */
+    public boolean isDictionaryColumn(int colIndex) {
+        return dicts[colIndex] != null;
+    }
+
+
+    /**
+     * Adds the values of a new or updated tuple to the dictionaries of their
+     * columns, as long as the header page has room for them.  Values that
+     * don't fit are simply stored without the dictionary.
+     *
+     * @param rowValues the tuple's values, in column order
+     *
+     * @return true if any dictionary changed, so that the file's metadata
+     *         must be saved
+     *
+     * @throws IOException if an IO error occurs while reading the header
+     */
+    private boolean addToDictionaries(Object[] rowValues) throws IOException {
+        boolean changed = false;
+        int headerSize = -1;
+        for (int i = 0; i < colTypes.length; i++) {
+            if (dicts[i] == null || rowValues[i] == null)
+                continue;
+
+            String value = (String) rowValues[i];
+            if (dicts[i].getCode(value) != -1)
+                continue;
+
+            if (headerSize == -1)
+                headerSize = getHeaderSize();
+
+            int entrySize = PaxDictionary.getEntrySize(value);
+            if (headerSize + entrySize + HEADER_RESERVE > dbFile.getPageSize())
+                continue;
+
+            if (dicts[i].addValue(value) != -1) {
+                headerSize += entrySize;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+
+    /**
+     * Returns the number of bytes of the header page in use, including the
+     * dictionaries as they will be saved.
+     */
+    private int getHeaderSize() throws IOException {
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        try {
+            int size = HeaderPage.getStatsOffset(headerPage) +
+                HeaderPage.getStatsSize(headerPage) + 2;
+
+            for (PaxDictionary dict : dicts) {
+                if (dict != null)
+                    size += 2 + dict.getStorageSize();
+            }
+
+            return size;
+        }
+        finally {
+            headerPage.unpin();
+        }
+    }
+
+
+    /**
+     * Decodes the values of one column on one page of the file.  This is the
+     * file's vectorized access path:  the column's values are read in a
+     * single pass over its minipage, and none of the page's other columns
+     * are touched.
+     *
+     * @param pageNo the data page to read
+     * @param colIndex the index of the column to decode
+     *
+     * @return an array with an entry for each row on the page, which is
+     *         {@code null} if the row's value is <tt>NULL</tt> or the row has
+     *         been deleted
+     *
+     * @throws IOException if an IO error occurs while reading the page
+     */
+    public Object[] readColumn(int pageNo, int colIndex) throws IOException {
+        if (colIndex < 0 || colIndex >= colTypes.length) {
+            throw new IllegalArgumentException(String.format(
+                "Column index must be in range [0,%d], got %d",
+                colTypes.length - 1, colIndex));
+        }
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        try {
+            return PaxPage.readColumn(dbPage, colTypes[colIndex],
+                                      colTypes.length, colIndex,
+                                      dicts[colIndex]);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Reads the dictionary codes of one column on one page of the file.
+     *
+     * @param pageNo the data page to read
+     * @param colIndex the index of the column to read
+     *
+     * @return the code of each row, or -1 for rows that are <tt>NULL</tt> or
+     *         deleted; or {@code null} if the column isn't dictionary-encoded
+     *         on the page
+     *
+     * @throws IOException if an IO error occurs while reading the page
+     */
+    int[] readCodes(int pageNo, int colIndex) throws IOException {
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        try {
+            return PaxPage.readCodes(dbPage, colTypes.length, colIndex);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Opens a cursor that returns the values of one column of the file, a
+     * page at a time.
+     *
+     * @param colIndex the index of the column to read
+     *
+     * @return a cursor over the column's values
+     */
+    public PaxColumnCursor openColumnCursor(int colIndex) {
+        if (colIndex < 0 || colIndex >= colTypes.length) {
+            throw new IllegalArgumentException(String.format(
+                "Column index must be in range [0,%d], got %d",
+                colTypes.length - 1, colIndex));
+        }
+
+        return new PaxColumnCursor(this, colIndex);
+    }
+
+
+    /**
+     * Reads which rows of a page have been deleted, so that the page's
+     * tuples can be returned without decoding any of its columns.
+     */
+    PaxPageColumns loadPage(int pageNo) throws IOException {
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        try {
+            return new PaxPageColumns(this, pageNo,
+                PaxPage.readDeleted(dbPage, colTypes.length));
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Returns the first tuple that hasn't been deleted, starting from the
+     * specified row of the specified page, or {@code null} if there are no
+     * more tuples in the file.
+     *
+     * @param page the page to start from, or {@code null} to start from the
+     *        first data page
+     * @param row the row to start from
+     * @param cursor if not {@code null}, only tuples that pass the cursor's
+     *        filters are returned
+     */
+    PaxPageTuple findMatchingTuple(PaxPageColumns page, int row,
+                                   PaxTupleCursor cursor) throws IOException {
+
+        int numPages = dbFile.getNumPages();
+        if (page == null) {
+            // Header page is page 0, so first data page is page 1.
+            if (numPages <= 1)
+                return null;
+
+            page = loadPage(1);
+            row = 0;
+        }
+
+        while (true) {
+            row = page.nextLiveRow(row);
+            if (row != -1) {
+                if (cursor == null || cursor.matches(page, row))
+                    return new PaxPageTuple(page, row);
+
+                row++;
+                continue;
+            }
+
+            int pageNo = page.getPageNo() + 1;
+            if (pageNo >= numPages)
+                return null;
+
+            page = loadPage(pageNo);
+            row = 0;
+        }
+    }
+
+
+    /**
+     * Returns the first tuple in this table file, or <tt>null</tt> if
+     * there are no tuples in the file.
+     */
+    @Override
+    public Tuple getFirstTuple() throws IOException {
+        return findMatchingTuple(null, 0, null);
+    }
+
+
+    @Override
+    public Tuple getNextTuple(Tuple tup) throws IOException {
+        PaxPageTuple ptup = checkTuple(tup);
+        return findMatchingTuple(ptup.getPage(), ptup.getRow() + 1, null);
+    }
+
+
+    /**
+     * Opens a cursor over the file.  The cursor hands out tuples that only
+     * decode the columns they are asked for, so there is no need for the
+     * cursor to reuse them.
+     */
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple) {
+        return new BasicTupleCursor(this, reuseTuple);
+    }
+
+
+    /**
+     * Opens a cursor over the file.  Equality conditions on
+     * dictionary-encoded columns are applied to the columns' codes, so that
+     * rows with other values are skipped without being decoded; the other
+     * conditions are ignored.
+     */
+    @Override
+    public TupleCursor openCursor(boolean reuseTuple, ScanBounds bounds) {
+        ArrayList<Integer> cols = new ArrayList<>();
+        ArrayList<Integer> codes = new ArrayList<>();
+        for (int i = 0; i < colTypes.length; i++) {
+            if (dicts[i] == null)
+                continue;
+
+            Object value = bounds.getEqualsValue(i);
+            if (!(value instanceof String))
+                continue;
+
+            cols.add(i);
+            codes.add(dicts[i].getCode(
+                (String) PaxPage.normalizeValue(colTypes[i], value)));
+        }
+
+        if (cols.isEmpty())
+            return openCursor(reuseTuple);
+
+        logger.debug(String.format("Scan of %s filters codes of columns %s",
+            dbFile, cols));
+
+        int[] filterCols = new int[cols.size()];
+        int[] filterCodes = new int[cols.size()];
+        for (int i = 0; i < filterCols.length; i++) {
+            filterCols[i] = cols.get(i);
+            filterCodes[i] = codes.get(i);
+        }
+
+        return new PaxTupleCursor(this, filterCols, filterCodes);
+    }
+
+
+    @Override
+    public Tuple getTuple(FilePointer fptr)
+        throws InvalidFilePointerException, IOException {
+
+        int pageNo = fptr.getPageNo();
+        if (pageNo < 1 || pageNo >= dbFile.getNumPages()) {
+            throw new InvalidFilePointerException("Specified page " + pageNo +
+                " doesn't exist in file " + dbFile.getDataFile().getName());
+        }
+
+        PaxPageColumns page = loadPage(pageNo);
+        int row = fptr.getOffset();
+        if (row >= page.getNumRows() || page.isDeleted(row)) {
+            throw new InvalidFilePointerException("Row " + row + " on page " +
+                pageNo + " doesn't hold a tuple.");
+        }
+
+        return new PaxPageTuple(page, row);
+    }
+
+
+    @Override
+    public Tuple addTuple(Tuple tup) throws IOException {
+        if (tup.getColumnCount() != colTypes.length) {
+            throw new IllegalArgumentException(
+                "Tuple has different arity than target schema.");
+        }
+
+        Object[] rowValues = new Object[colTypes.length];
+        for (int i = 0; i < colTypes.length; i++) {
+            rowValues[i] =
+                PaxPage.normalizeValue(colTypes[i], tup.getColumnValue(i));
+        }
+
+        if (addToDictionaries(rowValues))
+            paxFileManager.saveMetadata(this);
+
+        // Try the last page first; most tuples go there.
+        int numPages = dbFile.getNumPages();
+        if (numPages > 1) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, numPages - 1);
+            try {
+                PaxPageTuple added = addTupleToPage(dbPage, rowValues);
+                if (added != null)
+                    return added;
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        // A page holding just this tuple must fit, or the tuple can't be
+        // stored at all.
+        Object[][] columns = new Object[colTypes.length][];
+        for (int i = 0; i < colTypes.length; i++)
+            columns[i] = new Object[] { rowValues[i] };
+
+        int size = PaxPage.getEncodedSize(colTypes, columns, 1, dicts);
+        if (size > dbFile.getPageSize()) {
+            throw new IOException(String.format("Tuple needs %d bytes, but " +
+                "pages in %s are only %d bytes", size, dbFile,
+                dbFile.getPageSize()));
+        }
+
+        logger.debug(String.format("Adding page %d to %s.", numPages, dbFile));
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, numPages, true);
+        try {
+            PaxPage.initNewPage(dbPage);
+            return addTupleToPage(dbPage, rowValues);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Adds a tuple to a page, if it fits.  The tuple takes the row of the
+     * first deleted tuple on the page, or else a new row at the end.
+     *
+     * @return the added tuple, or {@code null} if it doesn't fit
+     */
+    private PaxPageTuple addTupleToPage(DBPage dbPage, Object[] rowValues) {
+        int numRows = PaxPage.getNumRows(dbPage);
+        boolean[] deleted = PaxPage.readDeleted(dbPage, colTypes.length);
+
+        int row = 0;
+        while (row < numRows && !deleted[row])
+            row++;
+
+        int newNumRows = Math.max(numRows, row + 1);
+        if (newNumRows > PaxPage.MAX_ROWS)
+            return null;
+
+        Object[][] columns = readColumns(dbPage, newNumRows);
+        boolean[] newDeleted = new boolean[newNumRows];
+        System.arraycopy(deleted, 0, newDeleted, 0, numRows);
+
+        newDeleted[row] = false;
+        for (int i = 0; i < colTypes.length; i++)
+            columns[i][row] = rowValues[i];
+
+        if (PaxPage.getEncodedSize(colTypes, columns, newNumRows, dicts) >
+            dbPage.getPageSize()) {
+            return null;
+        }
+
+        PaxPage.writePage(dbPage, colTypes, columns, newDeleted, newNumRows,
+                          dicts);
+
+        logger.debug(String.format("Added tuple to %s at page %d, row %d.",
+            dbFile, dbPage.getPageNo(), row));
+
+        return new PaxPageTuple(
+            new PaxPageColumns(this, dbPage.getPageNo(), newDeleted), row);
+    }
+
+
+    /**
+     * Decodes every column on a page.  The arrays may be longer than the
+     * number of rows on the page, so that there is room for new rows.
+     */
+    private Object[][] readColumns(DBPage dbPage, int length) {
+        Object[][] columns = new Object[colTypes.length][];
+        for (int i = 0; i < colTypes.length; i++) {
+            Object[] values = PaxPage.readColumn(dbPage, colTypes[i],
+                colTypes.length, i, dicts[i]);
+            columns[i] = new Object[length];
+            System.arraycopy(values, 0, columns[i], 0,
+                             Math.min(values.length, length));
+        }
+        return columns;
+    }
+
+
+    private PaxPageTuple checkTuple(Tuple tup) {
+        if (!(tup instanceof PaxPageTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type PaxPageTuple; got " + tup.getClass());
+        }
+
+        PaxPageTuple ptup = (PaxPageTuple) tup;
+        if (ptup.getPage().getTupleFile() != this) {
+            throw new IllegalArgumentException(
+                "Tuple is from a different tuple file");
+        }
+
+        return ptup;
+    }
+
+
+    /**
+     * Updates a tuple by rewriting its page.  Tuples in PAX files never
+     * move, so if the new values don't fit on the tuple's page, an
+     * {@code IOException} is thrown and the tuple is left unchanged.
+     */
+    @Override
+    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+        throws IOException {
+
+        PaxPageTuple ptup = checkTuple(tup);
+        int row = ptup.getRow();
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, ptup.getPageNo());
+        try {
+            int numRows = PaxPage.getNumRows(dbPage);
+            boolean[] deleted = PaxPage.readDeleted(dbPage, colTypes.length);
+            if (row >= numRows || deleted[row]) {
+                throw new IllegalArgumentException(String.format(
+                    "Row %d on page %d doesn't hold a tuple", row,
+                    ptup.getPageNo()));
+            }
+
+            Object[][] columns = readColumns(dbPage, numRows);
+            for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+                int colIndex = schema.getColumnIndex(entry.getKey());
+                columns[colIndex][row] =
+                    PaxPage.normalizeValue(colTypes[colIndex], entry.getValue());
+            }
+
+            Object[] rowValues = new Object[colTypes.length];
+            for (int i = 0; i < colTypes.length; i++)
+                rowValues[i] = columns[i][row];
+
+            if (addToDictionaries(rowValues))
+                paxFileManager.saveMetadata(this);
+
+            int size = PaxPage.getEncodedSize(colTypes, columns, numRows,
+                                              dicts);
+            if (size > dbPage.getPageSize()) {
+                throw new IOException(String.format("Updated tuple at page " +
+                    "%d, row %d doesn't fit on its page (%d bytes needed, " +
+                    "%d available)", ptup.getPageNo(), row, size,
+                    dbPage.getPageSize()));
+            }
+
+            PaxPage.writePage(dbPage, colTypes, columns, deleted, numRows,
+                              dicts);
+            ptup.getPage().setRow(row, rowValues);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    @Override
+    public void deleteTuple(Tuple tup) throws IOException {
+        PaxPageTuple ptup = checkTuple(tup);
+        int row = ptup.getRow();
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, ptup.getPageNo());
+        try {
+            int numRows = PaxPage.getNumRows(dbPage);
+            boolean[] deleted = PaxPage.readDeleted(dbPage, colTypes.length);
+            if (row >= numRows || deleted[row]) {
+                throw new IllegalArgumentException(String.format(
+                    "Row %d on page %d doesn't hold a tuple", row,
+                    ptup.getPageNo()));
+            }
+
+            Object[][] columns = readColumns(dbPage, numRows);
+            deleted[row] = true;
+            for (int i = 0; i < colTypes.length; i++)
+                columns[i][row] = null;
+
+            // Deleted rows at the end of the page can be dropped entirely,
+            // since no file-pointer can refer to them any more.
+            while (numRows > 0 && deleted[numRows - 1])
+                numRows--;
+
+            PaxPage.writePage(dbPage, colTypes, columns, deleted, numRows,
+                              dicts);
+        }
+        finally {
+            dbPage.unpin();
+        }
+
+        // Tuples that share the page's decoded contents must not return the
+        // deleted tuple's values any more.
+        ptup.getPage().setDeleted(row);
+    }
+
+
+    /**
+     * Computes the file's statistics.  Each page is processed column by
+     * column, so the statistics for a column are gathered from its decoded
+     * values without building any tuples.
+     */
+    @Override
+    public void analyze() throws IOException {
+        ColumnStatsCollector[] collectors =
+            new ColumnStatsCollector[colTypes.length];
+        for (int i = 0; i < colTypes.length; i++)
+            collectors[i] = new ColumnStatsCollector(colTypes[i].getBaseType());
+
+        // The header page is page 0; every other page is a data page.
+        int numPages = dbFile.getNumPages();
+        int dataPageCount = numPages - 1;
+        int tupleCount = 0;
+        int fileSize = 0;
+
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            try {
+                int numRows = PaxPage.getNumRows(dbPage);
+                boolean[] deleted =
+                    PaxPage.readDeleted(dbPage, colTypes.length);
+                Object[][] columns = readColumns(dbPage, numRows);
+
+                for (int i = 0; i < colTypes.length; i++) {
+                    for (int row = 0; row < numRows; row++) {
+                        if (!deleted[row])
+                            collectors[i].addValue(columns[i][row]);
+                    }
+                }
+
+                for (int row = 0; row < numRows; row++) {
+                    if (!deleted[row])
+                        tupleCount++;
+                }
+
+                fileSize += PaxPage.getEncodedSize(colTypes, columns, numRows,
+                                                   dicts);
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        if (tupleCount == 0)
+            return;
+
+        ArrayList<ColumnStats> columnStats = new ArrayList<>();
+        for (ColumnStatsCollector collector : collectors) {
+            columnStats.add(new ColumnStats(collector.getNumUniqueValues(),
+                collector.getNumNullValues(), collector.getMinValue(),
+                collector.getMaxValue()));
+        }
+
+        chooseDictionaryColumns(collectors, tupleCount);
+
+        stats = new TableStats(dataPageCount, tupleCount,
+            (float) fileSize / tupleCount, columnStats);
+        paxFileManager.saveMetadata(this);
+    }
+
+
+    /**
+     * Starts dictionary-encoding the string columns whose values repeat
+     * often enough, and records the dictionary columns in the schema so the
+     * choice survives reopening the table.  Each new dictionary starts out
+     * empty and is filled as pages are written; existing pages keep their
+     * encoding until they are rewritten, which {@link #optimize} does for
+     * every page.
+     */
+    private void chooseDictionaryColumns(ColumnStatsCollector[] collectors,
+                                         int tupleCount) {
+        boolean changed = false;
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < colTypes.length; i++) {
+            if (dicts[i] == null && isStringType(colTypes[i])) {
+                int numUnique = collectors[i].getNumUniqueValues();
+                if (numUnique > 0 && numUnique <= PaxDictionary.MAX_ENTRIES &&
+                    tupleCount >= numUnique * MIN_DICTIONARY_REPEATS) {
+                    logger.info(String.format("Dictionary-encoding column " +
+                        "%s of %s, which has %d distinct values in %d tuples",
+                        schema.getColumnInfo(i).getName(), dbFile, numUnique,
+                        tupleCount));
+
+                    dicts[i] = new PaxDictionary();
+                    changed = true;
+                }
+            }
+
+            if (dicts[i] != null) {
+                if (names.length() > 0)
+                    names.append(", ");
+
+                names.append(schema.getColumnInfo(i).getName());
+            }
+        }
+
+        if (changed)
+            schema.setProperty(PROP_DICTIONARY, names.toString());
+    }
+
+
+    /**
+     * Checks that every column of every data page can be decoded, and that
+     * each page's contents fit in the page.
+     */
+    @Override
+    public List<String> verify() throws IOException {
+        ArrayList<String> errors = new ArrayList<>();
+
+        int numPages = dbFile.getNumPages();
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            try {
+                int numRows = PaxPage.getNumRows(dbPage);
+                int size = PaxPage.getEncodedSize(colTypes,
+                    readColumns(dbPage, numRows), numRows, dicts);
+                if (size > dbPage.getPageSize()) {
+                    errors.add(String.format("Page %d holds %d rows in %d " +
+                        "bytes, but is only %d bytes", pageNo, numRows, size,
+                        dbPage.getPageSize()));
+                }
+            }
+            catch (RuntimeException e) {
+                errors.add(String.format("Page %d can't be decoded:  %s",
+                    pageNo, e.getMessage()));
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        return errors;
+    }
+
+
+    /**
+     * Optimizes the PAX file.  Every page is rewritten, so that each column
+     * uses the best encoding for the page, including dictionaries chosen
+     * since the page was last written.  Then the pages at the end of the
+     * file that no longer hold any tuples are truncated.  Tuples are never
+     * moved, so the listener is never called.
+     */
+    @Override
+    public void optimize(TupleMoveListener listener) throws IOException {
+        int numPages = dbFile.getNumPages();
+
+        boolean dictsChanged = false;
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            try {
+                int numRows = PaxPage.getNumRows(dbPage);
+                boolean[] deleted =
+                    PaxPage.readDeleted(dbPage, colTypes.length);
+                Object[][] columns = readColumns(dbPage, numRows);
+
+                Object[] rowValues = new Object[colTypes.length];
+                for (int row = 0; row < numRows; row++) {
+                    for (int i = 0; i < colTypes.length; i++)
+                        rowValues[i] = columns[i][row];
+
+                    if (addToDictionaries(rowValues))
+                        dictsChanged = true;
+                }
+
+                PaxPage.writePage(dbPage, colTypes, columns, deleted, numRows,
+                                  dicts);
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        if (dictsChanged)
+            paxFileManager.saveMetadata(this);
+
+        int lastPageNo = numPages - 1;
+        while (lastPageNo >= 1) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, lastPageNo);
+            int numRows = PaxPage.getNumRows(dbPage);
+            dbPage.unpin();
+
+            // Deleted rows at the end of a page are always dropped, so a
+            // page with rows still has at least one tuple.
+            if (numRows > 0)
+                break;
+
+            lastPageNo--;
+        }
+
+        int newNumPages = lastPageNo + 1;
+        if (newNumPages < numPages) {
+            storageManager.truncateDBFile(dbFile, newNumPages);
+            logger.info(String.format("Truncated %s from %d to %d pages.",
+                dbFile, numPages, newNumPages));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.wind.nanodb.storage.paxfile;
+
+
+import java.io.IOException;
+
+import com.wind.nanodb.queryeval.TableStats;
+import com.wind.nanodb.relations.TableSchema;
+import org.apache.log4j.Logger;
+
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FileManager;
+import com.wind.nanodb.storage.PageReader;
+import com.wind.nanodb.storage.PageWriter;
+import com.wind.nanodb.storage.SchemaWriter;
+import com.wind.nanodb.storage.StatsWriter;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.TupleFileManager;
+import com.wind.nanodb.storage.heapfile.HeaderPage;
+
+
+/**
+ * This class provides high-level operations on PAX tuple files.  The header
+ * page of a PAX file has the same format as the header page of a heap file
+ * (see {@link HeaderPage}), so that code is shared.  The statistics are
+ * followed by the file's column dictionaries:  the number of dictionaries
+ * (unsigned short), and then each dictionary's column index (unsigned short)
+ * and values (see {@link PaxDictionary#write}).
+ */
+public class PaxTupleFileManager implements TupleFileManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PaxTupleFileManager.class);
+
+
+    /** A reference to the storage manager. */
+    private StorageManager storageManager;
+
+
+    public PaxTupleFileManager(StorageManager storageManager) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+    }
+
+
+    @Override
+    public TupleFile createTupleFile(DBFile dbFile, TableSchema schema)
+        throws IOException {
+
+        logger.info(String.format(
+            "Initializing new PAX tuple file %s with %d columns",
+            dbFile, schema.numColumns()));
+
+        TableStats stats = new TableStats(schema.numColumns());
+        PaxTupleFile tupleFile = new PaxTupleFile(storageManager, this,
+            dbFile, schema, stats);
+        saveMetadata(tupleFile);
+        return tupleFile;
+    }
+
+
+    @Override
+    public TupleFile openTupleFile(DBFile dbFile) throws IOException {
+
+        logger.info("Opening existing PAX tuple file " + dbFile);
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageReader hpReader = new PageReader(headerPage);
+        hpReader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        SchemaWriter schemaWriter = new SchemaWriter();
+        TableSchema schema = schemaWriter.readTableSchema(hpReader);
+
+        StatsWriter statsWriter = new StatsWriter();
+        TableStats stats = statsWriter.readTableStats(hpReader, schema);
+
+        PaxTupleFile tupleFile =
+            new PaxTupleFile(storageManager, this, dbFile, schema, stats);
+
+        int numDicts = hpReader.readUnsignedShort();
+        for (int i = 0; i < numDicts; i++) {
+            int colIndex = hpReader.readUnsignedShort();
+            PaxDictionary dict = tupleFile.getDictionary(colIndex);
+            if (dict == null) {
+                throw new IOException(String.format("File %s has a " +
+                    "dictionary for column %d, which isn't a dictionary " +
+                    "column", dbFile, colIndex));
+            }
+            dict.read(hpReader);
+        }
+
+        return tupleFile;
+    }
+
+
+    @Override
+    public void saveMetadata(TupleFile tupleFile) throws IOException {
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof PaxTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of PaxTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageWriter hpWriter = new PageWriter(headerPage);
+        hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        SchemaWriter schemaWriter = new SchemaWriter();
+        schemaWriter.writeTableSchema(schema, hpWriter);
+
+        int schemaEndPos = hpWriter.getPosition();
+        int schemaSize = schemaEndPos - HeaderPage.OFFSET_SCHEMA_START;
+        HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+        StatsWriter statsWriter = new StatsWriter();
+        statsWriter.writeTableStats(schema, stats, hpWriter);
+        int statsSize = hpWriter.getPosition() - schemaEndPos;
+        HeaderPage.setStatsSize(headerPage, statsSize);
+
+        PaxTupleFile paxFile = (PaxTupleFile) tupleFile;
+        int numCols = schema.numColumns();
+        int numDicts = 0;
+        for (int i = 0; i < numCols; i++) {
+            if (paxFile.getDictionary(i) != null)
+                numDicts++;
+        }
+
+        hpWriter.writeShort(numDicts);
+        for (int i = 0; i < numCols; i++) {
+            PaxDictionary dict = paxFile.getDictionary(i);
+            if (dict != null) {
+                hpWriter.writeShort(i);
+                dict.write(hpWriter);
+            }
+        }
+    }
+
+
+    /**
+     * Deletes a PAX tuple file.  The file's pages are dropped from the
+     * Buffer Manager and the file is closed before it is deleted.  The
+     * column dictionaries are stored in the header page, so they go with
+     * the file.
+     */
+    @Override
+    public void deleteTupleFile(TupleFile tupleFile) throws IOException {
+        DBFile dbFile = tupleFile.getDBFile();
+        logger.info("Deleting PAX tuple file " + dbFile);
+
+        storageManager.getBufferManager().removeDBFile(dbFile);
+
+        FileManager fileManager = storageManager.getFileManager();
+        fileManager.closeDBFile(dbFile);
+        fileManager.deleteDBFile(dbFile);
+    }
+}
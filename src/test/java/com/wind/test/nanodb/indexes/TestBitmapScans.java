@@ -0,0 +1,203 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.util.ArrayList;
+
+import com.wind.nanodb.expressions.BooleanOperator;
+import com.wind.nanodb.expressions.ColumnName;
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.LiteralValue;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.plannodes.BitmapScanNode;
+import com.wind.nanodb.plannodes.FileScanNode;
+import com.wind.nanodb.plannodes.SelectNode;
+import com.wind.nanodb.queryeval.CostBasedJoinPlanner;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.TupleBitmap;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises bitmap scans, which combine the tuple-pointers
+ * from several index scans and fetch the rows in physical order.
+ */
+public class TestBitmapScans extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 800;
+
+
+    /** Returns the expression <tt>col = value</tt>. */
+    private static Expression equals(String col, Object value) {
+        return new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName(col)), new LiteralValue(value));
+    }
+
+
+    /** Returns the combination of the specified expressions. */
+    private static Expression bool(BooleanOperator.Type type,
+                                   Expression... terms) {
+        BooleanOperator bool = new BooleanOperator(type);
+        for (Expression term : terms)
+            bool.addTerm(term);
+
+        return bool;
+    }
+
+
+    /** Returns the (id) tuples of the rows with the specified ids. */
+    private static TupleLiteral[] makeIds(ArrayList<Integer> ids) {
+        TupleLiteral[] rows = new TupleLiteral[ids.size()];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = new TupleLiteral((Object) ids.get(i));
+
+        return rows;
+    }
+
+
+    /** Checks that bitmaps are combined and iterated correctly. */
+    @Test
+    public void testTupleBitmap() {
+        TupleBitmap left = new TupleBitmap();
+        TupleBitmap right = new TupleBitmap();
+
+        assert left.add(new FilePointer(7, 40));
+        assert left.add(new FilePointer(2, 12));
+        assert left.add(new FilePointer(2, 4));
+        assert !left.add(new FilePointer(2, 4));
+
+        right.add(new FilePointer(2, 12));
+        right.add(new FilePointer(9, 4));
+
+        TupleBitmap union = new TupleBitmap();
+        union.or(left);
+        union.or(right);
+        assert union.size() == 4;
+        assert union.getNumPages() == 3;
+
+        ArrayList<FilePointer> order = new ArrayList<>();
+        for (FilePointer fptr : union)
+            order.add(fptr);
+
+        assert order.get(0).equals(new FilePointer(2, 4));
+        assert order.get(1).equals(new FilePointer(2, 12));
+        assert order.get(2).equals(new FilePointer(7, 40));
+        assert order.get(3).equals(new FilePointer(9, 4));
+
+        left.and(right);
+        assert left.size() == 1;
+        assert left.getNumPages() == 1;
+        assert left.contains(new FilePointer(2, 12));
+        assert !left.contains(new FilePointer(2, 4));
+    }
+
+
+    /**
+     * Queries a table with <tt>AND</tt> and <tt>OR</tt> predicates over
+     * several indexed columns.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testBitmapScans() throws Exception {
+        tryDoCommand("CREATE TABLE bm_scan (id INTEGER, a INTEGER, " +
+            "b INTEGER, name VARCHAR(30)) PROPERTIES (pagesize = 1024);",
+            false);
+        tryDoCommand("CREATE INDEX bm_scan_a ON bm_scan (a);", false);
+        tryDoCommand("CREATE INDEX bm_scan_b ON bm_scan (b);", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO bm_scan VALUES " +
+                "(%d, %d, %d, 'row number %d');", i, i % 10, i % 13, i), false);
+        }
+
+        CostBasedJoinPlanner planner = new CostBasedJoinPlanner();
+        planner.setStorageManager(server.getStorageManager());
+
+        // Two lookups in the same index are combined with OR.
+        SelectNode plan = planner.makeSimpleSelect("BM_SCAN", bool(
+            BooleanOperator.Type.OR_EXPR, equals("A", 3), equals("A", 7)),
+            null);
+        assert plan instanceof BitmapScanNode;
+
+        // The rows come out in physical order.
+        plan.initialize();
+        FilePointer last = null;
+        int count = 0;
+        for (Tuple tup = plan.getNextTuple(); tup != null;
+             tup = plan.getNextTuple()) {
+            FilePointer fptr = tup.getExternalReference();
+            assert last == null || last.compareTo(fptr) < 0;
+            last = fptr;
+            count++;
+            tup.unpin();
+        }
+        plan.cleanUp();
+        assert count == NUM_ROWS / 5;
+
+        // Lookups in two indexes are intersected.
+        plan = planner.makeSimpleSelect("BM_SCAN", bool(
+            BooleanOperator.Type.AND_EXPR, equals("A", 3), equals("B", 5)),
+            null);
+        assert plan instanceof BitmapScanNode;
+
+        // If one term of an OR can't use an index, neither can the OR.
+        plan = planner.makeSimpleSelect("BM_SCAN", bool(
+            BooleanOperator.Type.OR_EXPR, equals("A", 3),
+            equals("NAME", "row number 5")), null);
+        assert plan instanceof FileScanNode;
+
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if (i % 10 == 3 && i % 13 == 5)
+                ids.add(i);
+        }
+        CommandResult result = tryDoCommand(
+            "SELECT id FROM bm_scan WHERE a = 3 AND b = 5;", true);
+        assert checkUnorderedResults(makeIds(ids), result);
+
+        ids.clear();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if ((i % 10 == 1 || i % 13 == 12) && i < 400)
+                ids.add(i);
+        }
+        result = tryDoCommand("SELECT id FROM bm_scan " +
+            "WHERE (a = 1 OR b = 12) AND id < 400;", true);
+        assert checkUnorderedResults(makeIds(ids), result);
+
+        // Deletes through a bitmap scan must keep the indexes up to date.
+        tryDoCommand("DELETE FROM bm_scan WHERE a = 1 OR b = 12;", false);
+
+        ids.clear();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if (i % 10 == 2 && i % 13 != 12)
+                ids.add(i);
+        }
+        result = tryDoCommand(
+            "SELECT id FROM bm_scan WHERE a = 2 OR a = 1;", true);
+        assert checkUnorderedResults(makeIds(ids), result);
+
+        result = server.doCommand("VERIFY bm_scan;", false);
+        assert !result.failed();
+
+        // With statistics, the planner compares the pages that the bitmap
+        // scan reads with a scan of the whole table.  Rows matching either
+        // condition are on nearly every page, but rows matching both are
+        // on just a few.
+        tryDoCommand("ANALYZE bm_scan;", false);
+        plan = planner.makeSimpleSelect("BM_SCAN", bool(
+            BooleanOperator.Type.OR_EXPR, equals("A", 3), equals("B", 5)),
+            null);
+        assert plan instanceof FileScanNode;
+
+        plan = planner.makeSimpleSelect("BM_SCAN", bool(
+            BooleanOperator.Type.AND_EXPR, equals("A", 3), equals("B", 5)),
+            null);
+        assert plan instanceof BitmapScanNode;
+    }
+}
@@ -0,0 +1,115 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import com.wind.nanodb.client.SessionState;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises indexes with included columns:  queries that
+ * only use an index's key and included columns should be answered from the
+ * index alone, and the included values must follow changes to the table.
+ */
+public class TestCoveringIndexes extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 600;
+
+
+    /** Returns the plan that <tt>EXPLAIN</tt> prints for a query. */
+    private String explain(String query) throws Exception {
+        SessionState state = SessionState.get();
+        PrintStream oldOut = state.getOutputStream();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.setOutputStream(new PrintStream(bytes, true));
+        try {
+            tryDoCommand("EXPLAIN " + query, false);
+        }
+        finally {
+            state.setOutputStream(oldOut);
+        }
+
+        return bytes.toString();
+    }
+
+
+    /**
+     * Queries a table through an index with an included column, before and
+     * after the included column is updated.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testCoveringIndexes() throws Exception {
+        tryDoCommand("CREATE TABLE cov_idx (id INTEGER, grp INTEGER, " +
+            "name VARCHAR(30)) PROPERTIES (pagesize = 1024);", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO cov_idx VALUES " +
+                "(%d, %d, 'row number %d');", i, i % 7, i), false);
+        }
+
+        tryDoCommand("CREATE INDEX cov_idx_id ON cov_idx (id) INCLUDE (grp);",
+            false);
+        tryDoCommand("ANALYZE cov_idx;", false);
+
+        // Only the key and included columns are used.
+        String query = "SELECT id, grp FROM cov_idx " +
+            "WHERE id >= 300 AND id < 310;";
+        assert explain(query).contains("index only");
+
+        CommandResult result = tryDoCommand(query, true);
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int i = 300; i < 310; i++)
+            expected.add(new TupleLiteral(i, i % 7));
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+
+        result = tryDoCommand(
+            "SELECT SUM(grp) FROM cov_idx WHERE id < 14 AND grp > 3;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(2L * (4 + 5 + 6))
+        }, result);
+
+        // The name isn't in the index, so the rows must come from the table.
+        query = "SELECT id, name FROM cov_idx WHERE id = 42;";
+        String plan = explain(query);
+        assert plan.contains("IndexScan") && !plan.contains("index only");
+
+        result = tryDoCommand(query, true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(42, "row number 42")
+        }, result);
+
+        query = "SELECT * FROM cov_idx WHERE id = 42;";
+        assert !explain(query).contains("index only");
+
+        // Changing only the included column must update the index entry.
+        tryDoCommand("UPDATE cov_idx SET grp = 100 WHERE id >= 305 AND id < 308;",
+            false);
+
+        result = tryDoCommand("SELECT id, grp FROM cov_idx " +
+            "WHERE id >= 300 AND id < 310;", true);
+        expected.clear();
+        for (int i = 300; i < 310; i++)
+            expected.add(new TupleLiteral(i, (i >= 305 && i < 308) ? 100 : i % 7));
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+
+        result = server.doCommand("VERIFY cov_idx;", false);
+        assert !result.failed();
+
+        // A column can't be both a key column and an included column.
+        result = server.doCommand(
+            "CREATE INDEX cov_idx_bad ON cov_idx (id) INCLUDE (id);", false);
+        assert result.failed();
+    }
+}
@@ -0,0 +1,257 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import com.wind.nanodb.client.SessionState;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.IndexInfo;
+import com.wind.nanodb.indexes.IndexUtils;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleFile;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises indexes whose keys are computed from
+ * expressions, such as <tt>LOWER(email)</tt>.  The keys must be computed
+ * when rows are added, changed and removed, and the planner must use the
+ * index for queries that compare or sort by the same expression.
+ */
+public class TestExpressionIndexes extends SqlTestCase {
+
+    /** The number of rows in the test tables. */
+    private static final int NUM_ROWS = 300;
+
+
+    /** Returns the plan that <tt>EXPLAIN</tt> prints for a query. */
+    private String explain(String query) throws Exception {
+        SessionState state = SessionState.get();
+        PrintStream oldOut = state.getOutputStream();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.setOutputStream(new PrintStream(bytes, true));
+        try {
+            tryDoCommand("EXPLAIN " + query, false);
+        }
+        finally {
+            state.setOutputStream(oldOut);
+        }
+
+        return bytes.toString().toLowerCase();
+    }
+
+
+    /**
+     * Checks that an index has an entry for every row of its table, and
+     * returns the index entries.
+     */
+    private List<Tuple> checkIndex(String tableName, String indexName)
+        throws Exception {
+        StorageManager storageManager = server.getStorageManager();
+        TableInfo tableInfo =
+            storageManager.getTableManager().openTable(tableName);
+        IndexInfo indexInfo =
+            storageManager.getIndexManager().openIndex(tableInfo, indexName);
+
+        TupleFile indexFile = indexInfo.getTupleFile();
+        List<String> errors = IndexUtils.verifyIndex(tableInfo.getTupleFile(),
+            indexFile, indexInfo.getTableColumnRefs());
+        assert errors.isEmpty() : errors;
+
+        java.util.ArrayList<Tuple> entries = new java.util.ArrayList<>();
+        for (Tuple tup = indexFile.getFirstTuple(); tup != null;
+             tup = indexFile.getNextTuple(tup)) {
+            entries.add(new TupleLiteral(tup));
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Builds an index on the lowercase form of a column, and checks that
+     * case-insensitive lookups use it as rows change.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testLowerIndex() throws Exception {
+        tryDoCommand("CREATE TABLE eix_users (id INTEGER, " +
+            "email VARCHAR(40));", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO eix_users VALUES " +
+                "(%d, 'User%d@Example.com');", i, i), false);
+        }
+
+        tryDoCommand("CREATE INDEX eix_email ON eix_users (LOWER(email));",
+            false);
+
+        // The keys are the lowercase values, in order.
+        List<Tuple> entries = checkIndex("EIX_USERS", "EIX_EMAIL");
+        assert entries.size() == NUM_ROWS;
+        String prev = null;
+        for (Tuple entry : entries) {
+            String key = (String) entry.getColumnValue(0);
+            assert key.equals(key.toLowerCase());
+            assert prev == null || prev.compareTo(key) <= 0;
+            prev = key;
+        }
+
+        String query = "SELECT id FROM eix_users " +
+            "WHERE LOWER(email) = 'user42@example.com';";
+        assert explain(query).contains("eix_email");
+        CommandResult result = tryDoCommand(query, true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 42)
+        }, result);
+
+        // The expression can be qualified, and on either side.
+        query = "SELECT id FROM eix_users WHERE " +
+            "'user43@example.com' = LOWER(eix_users.email);";
+        assert explain(query).contains("eix_email");
+        result = tryDoCommand(query, true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 43)
+        }, result);
+
+        // A different expression can't use the index.
+        query = "SELECT id FROM eix_users " +
+            "WHERE UPPER(email) = 'USER42@EXAMPLE.COM';";
+        assert !explain(query).contains("eix_email");
+        result = tryDoCommand(query, true);
+        assert result.getTuples().size() == 1;
+
+        // The keys follow the rows as they change.
+        tryDoCommand("INSERT INTO eix_users VALUES (1000, 'NEW@Example.com');",
+            false);
+        tryDoCommand("UPDATE eix_users SET email = 'Changed@Example.com' " +
+            "WHERE id = 42;", false);
+        tryDoCommand("UPDATE eix_users SET id = 2000 WHERE id = 43;", false);
+        tryDoCommand("DELETE FROM eix_users WHERE id = 44;", false);
+        assert checkIndex("EIX_USERS", "EIX_EMAIL").size() == NUM_ROWS;
+
+        result = tryDoCommand("SELECT id FROM eix_users " +
+            "WHERE LOWER(email) = 'user42@example.com';", true);
+        assert result.getTuples().isEmpty();
+
+        result = tryDoCommand("SELECT id FROM eix_users " +
+            "WHERE LOWER(email) = 'changed@example.com';", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 42)
+        }, result);
+
+        result = tryDoCommand("SELECT id FROM eix_users " +
+            "WHERE LOWER(email) = 'new@example.com';", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 1000)
+        }, result);
+
+        result = tryDoCommand("SELECT id FROM eix_users " +
+            "WHERE LOWER(email) = 'user43@example.com';", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 2000)
+        }, result);
+
+        result = server.doCommand("VERIFY eix_users;", false);
+        assert !result.failed();
+    }
+
+
+    /**
+     * Builds an index on an arithmetic expression after a column, and
+     * checks range lookups and sorting with it.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testArithmeticIndex() throws Exception {
+        tryDoCommand("CREATE TABLE eix_points (id INTEGER, grp INTEGER, " +
+            "a INTEGER, b INTEGER);", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO eix_points VALUES " +
+                "(%d, %d, %d, %d);", i, i % 3, (i * 7) % 50, i % 11), false);
+        }
+
+        tryDoCommand("CREATE INDEX eix_sum ON eix_points (grp, a + b);",
+            false);
+        assert checkIndex("EIX_POINTS", "EIX_SUM").size() == NUM_ROWS;
+
+        String query = "SELECT id, a + b FROM eix_points " +
+            "WHERE grp = 1 AND a + b > 40 ORDER BY a + b;";
+        String plan = explain(query);
+        assert plan.contains("eix_sum");
+        assert !plan.contains("sort");
+
+        CommandResult result = tryDoCommand(query, true);
+        int expected = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if (i % 3 == 1 && (i * 7) % 50 + i % 11 > 40)
+                expected++;
+        }
+        assert expected > 0;
+
+        List<TupleLiteral> rows = result.getTuples();
+        assert rows.size() == expected;
+        int prev = Integer.MIN_VALUE;
+        for (TupleLiteral row : rows) {
+            int sum = ((Number) row.getColumnValue(1)).intValue();
+            assert sum > 40 && sum >= prev;
+            prev = sum;
+        }
+
+        // Descending order, or a different expression, still needs a sort.
+        plan = explain("SELECT id FROM eix_points WHERE grp = 1 AND " +
+            "a + b > 40 ORDER BY a + b DESC;");
+        assert plan.contains("eix_sum") && plan.contains("sort");
+
+        plan = explain("SELECT id FROM eix_points WHERE grp = 1 AND " +
+            "a + b > 40 ORDER BY a;");
+        assert plan.contains("sort");
+
+        // Changing either column changes the key.
+        tryDoCommand("UPDATE eix_points SET a = a + 1 WHERE id < 50;", false);
+        tryDoCommand("UPDATE eix_points SET b = 0 WHERE id >= 250;", false);
+        assert checkIndex("EIX_POINTS", "EIX_SUM").size() == NUM_ROWS;
+
+        result = server.doCommand("VERIFY eix_points;", false);
+        assert !result.failed();
+    }
+
+
+    /**
+     * Checks that indexes with unsupported key expressions are rejected.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testInvalidKeyExpressions() throws Exception {
+        tryDoCommand("CREATE TABLE eix_bad (id INTEGER, name VARCHAR(20));",
+            false);
+
+        // A unique index is also a key, which can only be made of columns.
+        CommandResult result = server.doCommand("CREATE UNIQUE INDEX " +
+            "eix_bad_u ON eix_bad (LOWER(name));", false);
+        assert result.failed();
+
+        // Performance counters change from one call to the next.
+        result = server.doCommand("CREATE INDEX eix_bad_perf ON eix_bad " +
+            "(PERF_COUNTER(name));", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE INDEX eix_bad_col ON eix_bad " +
+            "(LOWER(title));", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE INDEX eix_bad_const ON eix_bad " +
+            "(1 + 2);", false);
+        assert result.failed();
+    }
+}
@@ -0,0 +1,131 @@
+package com.wind.test.nanodb.indexes;
+
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.DatabaseConstraintEnforcer;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises foreign-key checks for statements that change
+ * many rows, both when each row is checked as it changes, and when the
+ * checks are deferred to the end of the statement.
+ */
+public class TestForeignKeyChecks extends SqlTestCase {
+
+    /** The number of rows in the referenced table. */
+    private static final int NUM_PARENTS = 20;
+
+
+    /** The number of rows loaded into the referencing table. */
+    private static final int NUM_CHILDREN = 300;
+
+
+    /** Creates a referenced table and a staging table to load rows from. */
+    private void createTables(String prefix) throws Exception {
+        tryDoCommand("CREATE TABLE " + prefix + "_parent " +
+            "(id INTEGER PRIMARY KEY);", false);
+        for (int i = 0; i < NUM_PARENTS; i++) {
+            tryDoCommand(String.format("INSERT INTO %s_parent VALUES (%d);",
+                prefix, i), false);
+        }
+
+        tryDoCommand("CREATE TABLE " + prefix + "_child (cid INTEGER, " +
+            "pid INTEGER, FOREIGN KEY (pid) REFERENCES " + prefix +
+            "_parent (id));", false);
+
+        // Many rows refer to the same few parents.
+        tryDoCommand("CREATE TABLE " + prefix + "_src (cid INTEGER, " +
+            "pid INTEGER);", false);
+        for (int i = 0; i < NUM_CHILDREN; i++) {
+            tryDoCommand(String.format("INSERT INTO %s_src VALUES (%d, %d);",
+                prefix, i, i % NUM_PARENTS), false);
+        }
+    }
+
+
+    /** Returns the number of rows in a table. */
+    private void checkCount(String table, long expected) throws Exception {
+        CommandResult result =
+            tryDoCommand("SELECT COUNT(*) FROM " + table + ";", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) expected)
+        }, result);
+    }
+
+
+    /**
+     * Loads many rows that refer to the same parents, checking each row as
+     * it is added.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testImmediateChecks() throws Exception {
+        createTables("fkc");
+
+        tryDoCommand("INSERT INTO fkc_child SELECT * FROM fkc_src;", false);
+        checkCount("fkc_child", NUM_CHILDREN);
+
+        // A NULL foreign key doesn't refer to any row.
+        tryDoCommand("INSERT INTO fkc_child VALUES (1000, NULL);", false);
+
+        CommandResult result = server.doCommand(
+            "INSERT INTO fkc_child VALUES (1001, 5000);", false);
+        assert result.failed();
+
+        // The cached lookups must not hide a parent that has been deleted.
+        tryDoCommand("DELETE FROM fkc_child WHERE pid = 3;", false);
+        tryDoCommand("DELETE FROM fkc_parent WHERE id = 3;", false);
+        result = server.doCommand(
+            "INSERT INTO fkc_child SELECT cid, pid FROM fkc_src " +
+            "WHERE pid = 2 OR pid = 3;", false);
+        assert result.failed();
+
+        // A parent that is still referenced can't be deleted.
+        result = server.doCommand(
+            "DELETE FROM fkc_parent WHERE id = 4;", false);
+        assert result.failed();
+    }
+
+
+    /**
+     * Loads many rows that refer to the same parents, checking the distinct
+     * keys at the end of each statement.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testDeferredChecks() throws Exception {
+        System.setProperty(DatabaseConstraintEnforcer.PROP_DEFERRED, "true");
+        try {
+            createTables("fkd");
+
+            tryDoCommand("INSERT INTO fkd_child SELECT * FROM fkd_src;",
+                false);
+            checkCount("fkd_child", NUM_CHILDREN);
+
+            // The failed statement's rows are taken back out of the table.
+            tryDoCommand("INSERT INTO fkd_src VALUES (5000, 5000);", false);
+            CommandResult result = server.doCommand(
+                "INSERT INTO fkd_child SELECT * FROM fkd_src;", false);
+            assert result.failed();
+            checkCount("fkd_child", NUM_CHILDREN);
+
+            // A failed update gives the rows back their old values.
+            result = server.doCommand(
+                "UPDATE fkd_child SET pid = pid + 10;", false);
+            assert result.failed();
+            checkCount("fkd_child WHERE pid < " + NUM_PARENTS, NUM_CHILDREN);
+
+            result = server.doCommand("VERIFY fkd_child;", false);
+            assert !result.failed();
+        }
+        finally {
+            System.clearProperty(DatabaseConstraintEnforcer.PROP_DEFERRED);
+        }
+    }
+}
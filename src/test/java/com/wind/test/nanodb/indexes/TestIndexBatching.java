@@ -0,0 +1,133 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.util.ArrayList;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises statements that change many indexed rows at
+ * once, whose index changes are collected and applied at the end of the
+ * statement.
+ */
+public class TestIndexBatching extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 500;
+
+
+    /** Returns the (id, grp) tuples of the rows with ids in a range. */
+    private static TupleLiteral[] makeRows(int start, int end, int offset) {
+        ArrayList<TupleLiteral> rows = new ArrayList<>();
+        for (int i = start; i < end; i++)
+            rows.add(new TupleLiteral(i + offset, i % 9));
+
+        return rows.toArray(new TupleLiteral[rows.size()]);
+    }
+
+
+    /**
+     * Inserts, updates and deletes many rows of a table with a unique index
+     * and an ordinary index, checking the indexes after each statement.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testIndexBatching() throws Exception {
+        tryDoCommand("CREATE TABLE ib_src (id INTEGER, grp INTEGER);", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            // Insert the rows out of order, so the batches must be sorted.
+            int id = (i * 7) % NUM_ROWS;
+            tryDoCommand(String.format("INSERT INTO ib_src VALUES (%d, %d);",
+                id, id % 9), false);
+        }
+
+        tryDoCommand("CREATE TABLE ib_dst (id INTEGER, grp INTEGER) " +
+            "PROPERTIES (pagesize = 1024);", false);
+        tryDoCommand("CREATE UNIQUE INDEX ib_dst_id ON ib_dst (id);", false);
+        tryDoCommand("CREATE INDEX ib_dst_grp ON ib_dst (grp);", false);
+
+        tryDoCommand("INSERT INTO ib_dst SELECT * FROM ib_src;", false);
+        CommandResult result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT id, grp FROM ib_dst WHERE id < 20;",
+            true);
+        assert checkUnorderedResults(makeRows(0, 20, 0), result);
+
+        // Every key moves to the key that another row gives up in the same
+        // statement, which only works if the keys are checked once all of
+        // the rows have changed.
+        tryDoCommand("UPDATE ib_dst SET id = id + 1;", false);
+        result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT id - 1, grp FROM ib_dst " +
+            "WHERE id >= 101 AND id < 121;", true);
+        assert checkUnorderedResults(makeRows(100, 120, 0), result);
+
+        // The same goes for moving the keys the other way.
+        tryDoCommand("UPDATE ib_dst SET id = id - 1;", false);
+        tryDoCommand("UPDATE ib_dst SET id = id + 1;", false);
+        result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        tryDoCommand("DELETE FROM ib_dst WHERE grp = 4 OR id > 250;", false);
+        result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT id, grp FROM ib_dst WHERE grp = 4;",
+            true);
+        assert checkUnorderedResults(new TupleLiteral[0], result);
+
+        // Of the 250 rows with ids 1 to 250, the 28 with grp = 4 are left
+        // out.
+        TupleLiteral[] expectedCount = { createTupleFromNum(222) };
+        result = tryDoCommand("SELECT COUNT(*) FROM ib_dst;", true);
+        assert checkOrderedResults(expectedCount, result);
+
+        // Two rows with the same key in one statement violate the unique
+        // index, even though neither key is in the index yet.  None of the
+        // statement's rows are kept.
+        tryDoCommand("CREATE TABLE ib_dup (id INTEGER, grp INTEGER);", false);
+        tryDoCommand("INSERT INTO ib_dup VALUES (1000, 1);", false);
+        tryDoCommand("INSERT INTO ib_dup VALUES (1001, 2);", false);
+        tryDoCommand("INSERT INTO ib_dup VALUES (1000, 3);", false);
+
+        result = server.doCommand("INSERT INTO ib_dst SELECT * FROM ib_dup;",
+            false);
+        assert result.failed();
+
+        result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT COUNT(*) FROM ib_dst;", true);
+        assert checkOrderedResults(expectedCount, result);
+
+        result = tryDoCommand("SELECT id, grp FROM ib_dst WHERE id >= 1000;",
+            true);
+        assert checkUnorderedResults(new TupleLiteral[0], result);
+
+        // An update can't take a key that is already in the index either.
+        // Id 9 would move to 10, which no row gives up, so the rows that
+        // were updated get their old values back.
+        result = server.doCommand("UPDATE ib_dst SET id = id + 1 " +
+            "WHERE id < 10;", false);
+        assert result.failed();
+
+        result = server.doCommand("VERIFY ib_dst;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT id - 1, grp FROM ib_dst WHERE id <= 4;",
+            true);
+        assert checkUnorderedResults(makeRows(0, 4, 0), result);
+
+        result = tryDoCommand("SELECT COUNT(*) FROM ib_dst;", true);
+        assert checkOrderedResults(expectedCount, result);
+    }
+}
@@ -0,0 +1,126 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.IndexBuildProgress;
+import com.wind.nanodb.indexes.IndexBuilder;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises building indexes on tables that already have
+ * rows, which sorts the index entries in parallel and builds the index from
+ * the bottom up.
+ */
+public class TestIndexBuild extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 1000;
+
+
+    /** Returns the most recent index build. */
+    private static IndexBuildProgress getLastBuild() {
+        List<IndexBuildProgress> builds = IndexBuildProgress.getBuilds();
+        assert !builds.isEmpty();
+        return builds.get(builds.size() - 1);
+    }
+
+
+    /** Returns the (id, name) tuples of the rows with ids in a range. */
+    private static TupleLiteral[] makeRows(int start, int end) {
+        ArrayList<TupleLiteral> rows = new ArrayList<>();
+        for (int i = start; i < end; i++)
+            rows.add(new TupleLiteral(i, "row number " + i));
+
+        return rows.toArray(new TupleLiteral[rows.size()]);
+    }
+
+
+    /**
+     * Builds indexes on a table that spans many ranges of pages, using
+     * several workers, and checks the indexes' contents.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testParallelBuild() throws Exception {
+        System.setProperty(IndexBuilder.PROP_WORKERS, "3");
+        System.setProperty(IndexBuilder.PROP_RANGE_PAGES, "4");
+        try {
+            tryDoCommand("CREATE TABLE ixb_data (id INTEGER, grp INTEGER, " +
+                "name VARCHAR(30)) PROPERTIES (pagesize = 1024);", false);
+            for (int i = 0; i < NUM_ROWS; i++) {
+                // Insert the rows out of order, so the runs must be sorted.
+                int id = (i * 7) % NUM_ROWS;
+                tryDoCommand(String.format("INSERT INTO ixb_data VALUES " +
+                    "(%d, %d, 'row number %d');", id, id % 10, id), false);
+            }
+
+            tryDoCommand("CREATE UNIQUE INDEX ixb_id ON ixb_data (id);",
+                false);
+            IndexBuildProgress build = getLastBuild();
+            assert build.getIndexName().equalsIgnoreCase("ixb_id");
+            assert build.getPhase() == IndexBuildProgress.Phase.DONE;
+            assert build.getTotalPages() > 4;
+            assert build.getPagesScanned() == build.getTotalPages();
+            assert build.getNumRuns() > 1;
+            assert build.getEntriesExtracted() == NUM_ROWS;
+            assert build.getEntriesLoaded() == NUM_ROWS;
+
+            tryDoCommand("CREATE INDEX ixb_name ON ixb_data (name);", false);
+            assert getLastBuild().getPhase() == IndexBuildProgress.Phase.DONE;
+
+            CommandResult result = server.doCommand("VERIFY ixb_data;", false);
+            assert !result.failed();
+
+            // The run files are removed once the indexes are built.
+            File baseDir = server.getStorageManager().getBaseDir();
+            File[] runFiles = baseDir.listFiles((dir, name) ->
+                name.endsWith(".run"));
+            assert runFiles == null || runFiles.length == 0;
+
+            result = tryDoCommand("SELECT id, name FROM ixb_data " +
+                "WHERE id >= 500 AND id < 520;", true);
+            assert checkUnorderedResults(makeRows(500, 520), result);
+
+            result = tryDoCommand("SELECT id, name FROM ixb_data " +
+                "WHERE name = 'row number 777';", true);
+            assert checkUnorderedResults(makeRows(777, 778), result);
+
+            // The indexes built from the bottom up can still be changed.
+            for (int i = NUM_ROWS; i < NUM_ROWS + 50; i++) {
+                tryDoCommand(String.format("INSERT INTO ixb_data VALUES " +
+                    "(%d, %d, 'row number %d');", i, i % 10, i), false);
+            }
+            tryDoCommand("DELETE FROM ixb_data WHERE grp = 3;", false);
+            result = server.doCommand("VERIFY ixb_data;", false);
+            assert !result.failed();
+
+            result = server.doCommand("INSERT INTO ixb_data VALUES " +
+                "(5, 5, 'duplicate');", false);
+            assert result.failed();
+
+            // Many rows have the same group, so it can't be a unique index.
+            result = server.doCommand(
+                "CREATE UNIQUE INDEX ixb_grp ON ixb_data (grp);", false);
+            assert result.failed();
+            build = getLastBuild();
+            assert build.getPhase() == IndexBuildProgress.Phase.FAILED;
+            assert build.getError() != null;
+
+            result = server.doCommand("SHOW INDEX BUILDS;", false);
+            assert !result.failed();
+        }
+        finally {
+            System.clearProperty(IndexBuilder.PROP_WORKERS);
+            System.clearProperty(IndexBuilder.PROP_RANGE_PAGES);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import com.wind.nanodb.client.SessionState;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises index nested-loop joins:  joins whose condition
+ * equates an indexed column of the inner table with a column of the outer
+ * table should probe the index, and return the same rows as a plain
+ * nested-loop join.
+ */
+public class TestIndexJoins extends SqlTestCase {
+
+    /** The number of customers in the inner table. */
+    private static final int NUM_CUSTOMERS = 300;
+
+
+    /** Returns the plan that <tt>EXPLAIN</tt> prints for a query. */
+    private String explain(String query) throws Exception {
+        SessionState state = SessionState.get();
+        PrintStream oldOut = state.getOutputStream();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.setOutputStream(new PrintStream(bytes, true));
+        try {
+            tryDoCommand("EXPLAIN " + query, false);
+        }
+        finally {
+            state.setOutputStream(oldOut);
+        }
+
+        return bytes.toString();
+    }
+
+
+    /**
+     * Joins a small table of orders to an indexed table of customers, with
+     * repeated and missing join keys.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testIndexJoins() throws Exception {
+        tryDoCommand("CREATE TABLE ij_cust (id INTEGER, name VARCHAR(20)) " +
+            "PROPERTIES (pagesize = 1024);", false);
+        tryDoCommand("CREATE INDEX ij_cust_id ON ij_cust (id);", false);
+        for (int i = 0; i < NUM_CUSTOMERS; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO ij_cust VALUES (%d, 'cust %d');", i, i), false);
+        }
+
+        // Orders 0..19 go to customers 0..4, several times each; orders 20
+        // and 21 don't match any customer.
+        tryDoCommand("CREATE TABLE ij_ord (oid INTEGER, cust INTEGER);",
+            false);
+        ArrayList<TupleLiteral> inner = new ArrayList<>();
+        ArrayList<TupleLiteral> outer = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO ij_ord VALUES (%d, %d);", i, i % 5), false);
+            inner.add(new TupleLiteral(i, "cust " + (i % 5)));
+            outer.add(new TupleLiteral(i, "cust " + (i % 5)));
+        }
+        tryDoCommand("INSERT INTO ij_ord VALUES (20, 5000);", false);
+        tryDoCommand("INSERT INTO ij_ord VALUES (21, NULL);", false);
+        outer.add(new TupleLiteral(20, null));
+        outer.add(new TupleLiteral(21, null));
+
+        String query = "SELECT o.oid, c.name FROM ij_ord AS o " +
+            "JOIN ij_cust AS c ON o.cust = c.id;";
+        assert explain(query).contains("IndexNestedLoop");
+
+        CommandResult result = tryDoCommand(query, true);
+        assert checkUnorderedResults(
+            inner.toArray(new TupleLiteral[inner.size()]), result);
+
+        query = "SELECT o.oid, c.name FROM ij_ord AS o " +
+            "LEFT OUTER JOIN ij_cust AS c ON c.id = o.cust;";
+        assert explain(query).contains("IndexNestedLoop");
+
+        result = tryDoCommand(query, true);
+        assert checkUnorderedResults(
+            outer.toArray(new TupleLiteral[outer.size()]), result);
+
+        // Other parts of the join condition are still checked.
+        result = tryDoCommand("SELECT o.oid, c.name FROM ij_ord AS o " +
+            "JOIN ij_cust AS c ON o.cust = c.id AND o.oid < 3;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(0, "cust 0"), new TupleLiteral(1, "cust 1"),
+            new TupleLiteral(2, "cust 2")
+        }, result);
+
+        // Without an equality on the indexed column, the index can't help.
+        query = "SELECT o.oid, c.name FROM ij_ord AS o " +
+            "JOIN ij_cust AS c ON o.cust < c.id;";
+        assert !explain(query).contains("IndexNestedLoop");
+    }
+}
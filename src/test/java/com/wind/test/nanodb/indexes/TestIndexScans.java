@@ -0,0 +1,173 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.util.ArrayList;
+
+import com.wind.nanodb.expressions.BooleanOperator;
+import com.wind.nanodb.expressions.ColumnName;
+import com.wind.nanodb.expressions.ColumnValue;
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.Expression;
+import com.wind.nanodb.expressions.LiteralValue;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.plannodes.FileScanNode;
+import com.wind.nanodb.plannodes.IndexScanNode;
+import com.wind.nanodb.plannodes.SelectNode;
+import com.wind.nanodb.queryeval.CostBasedJoinPlanner;
+import com.wind.nanodb.server.CommandResult;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises index scans:  queries whose predicates compare
+ * indexed columns to values should return the same rows through an index
+ * as through a file scan, and the planner should pick an index scan when
+ * it reads fewer pages.
+ */
+public class TestIndexScans extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 1000;
+
+
+    /** Returns the expression <tt>col op value</tt>. */
+    private static Expression compare(String col, CompareOperator.Type type,
+                                      Object value) {
+        return new CompareOperator(type,
+            new ColumnValue(new ColumnName(col)), new LiteralValue(value));
+    }
+
+
+    /** Returns the conjunction of the specified expressions. */
+    private static Expression and(Expression... terms) {
+        BooleanOperator bool =
+            new BooleanOperator(BooleanOperator.Type.AND_EXPR);
+        for (Expression term : terms)
+            bool.addTerm(term);
+
+        return bool;
+    }
+
+
+    /**
+     * Returns the rows of the test table with <tt>id</tt> in the range
+     * [<tt>low</tt>, <tt>high</tt>), as (id, grp) tuples.
+     */
+    private static TupleLiteral[] makeRows(int low, int high) {
+        ArrayList<TupleLiteral> rows = new ArrayList<>();
+        for (int i = low; i < high; i++)
+            rows.add(new TupleLiteral(i, i % 10));
+
+        return rows.toArray(new TupleLiteral[rows.size()]);
+    }
+
+
+    /**
+     * Queries a table through its indexes while it is being changed, and
+     * checks that the planner only uses an index when it is cheaper.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testIndexScans() throws Exception {
+        tryDoCommand("CREATE TABLE idx_scan (id INTEGER, grp INTEGER, " +
+            "name VARCHAR(30)) PROPERTIES (pagesize = 1024);", false);
+
+        // Add half of the rows before the indexes exist, and half after.
+        for (int i = 0; i < NUM_ROWS / 2; i++) {
+            tryDoCommand(String.format("INSERT INTO idx_scan VALUES " +
+                "(%d, %d, 'row number %d');", i, i % 10, i), false);
+        }
+
+        tryDoCommand("CREATE INDEX idx_scan_id ON idx_scan (id);", false);
+        tryDoCommand("CREATE INDEX idx_scan_grp ON idx_scan (grp, id);",
+            false);
+
+        for (int i = NUM_ROWS / 2; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO idx_scan VALUES " +
+                "(%d, %d, 'row number %d');", i, i % 10, i), false);
+        }
+        tryDoCommand("INSERT INTO idx_scan VALUES (NULL, 3, 'no id');", false);
+
+        CommandResult result = tryDoCommand(
+            "SELECT id, grp FROM idx_scan WHERE id = 734;", true);
+        assert checkUnorderedResults(makeRows(734, 735), result);
+
+        result = tryDoCommand(
+            "SELECT id, grp FROM idx_scan WHERE id >= 990;", true);
+        assert checkUnorderedResults(makeRows(990, 1000), result);
+
+        result = tryDoCommand(
+            "SELECT id, grp FROM idx_scan WHERE 5 > id;", true);
+        assert checkUnorderedResults(makeRows(0, 5), result);
+
+        result = tryDoCommand("SELECT id, grp FROM idx_scan " +
+            "WHERE grp = 3 AND id > 950 AND id <= 983;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(953, 3), new TupleLiteral(963, 3),
+            new TupleLiteral(973, 3), new TupleLiteral(983, 3)
+        }, result);
+
+        // Deletes and updates through an index must keep the indexes
+        // up to date.
+        tryDoCommand("DELETE FROM idx_scan WHERE id >= 100 AND id < 200;",
+            false);
+        tryDoCommand("UPDATE idx_scan SET id = id + 10000 WHERE id < 50;",
+            false);
+
+        result = tryDoCommand(
+            "SELECT id, grp FROM idx_scan WHERE id >= 40 AND id < 210;", true);
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (TupleLiteral tup : makeRows(50, 100))
+            expected.add(tup);
+        for (TupleLiteral tup : makeRows(200, 210))
+            expected.add(tup);
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+
+        result = tryDoCommand(
+            "SELECT name FROM idx_scan WHERE id = 10007;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral("row number 7")
+        }, result);
+
+        result = tryDoCommand(
+            "SELECT COUNT(*) FROM idx_scan WHERE grp = 3;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((long) (NUM_ROWS - 100) / 10 + 1)
+        }, result);
+
+        result = server.doCommand("VERIFY idx_scan;", false);
+        assert !result.failed();
+
+        // Without statistics, only equality lookups use an index.
+        CostBasedJoinPlanner planner = new CostBasedJoinPlanner();
+        planner.setStorageManager(server.getStorageManager());
+
+        SelectNode plan = planner.makeSimpleSelect("IDX_SCAN",
+            compare("ID", CompareOperator.Type.EQUALS, 500), null);
+        assert plan instanceof IndexScanNode;
+
+        plan = planner.makeSimpleSelect("IDX_SCAN",
+            compare("ID", CompareOperator.Type.LESS_THAN, 520), null);
+        assert plan instanceof FileScanNode;
+
+        // With statistics, the planner compares the costs of the scans.
+        tryDoCommand("ANALYZE idx_scan;", false);
+
+        plan = planner.makeSimpleSelect("IDX_SCAN", and(
+            compare("ID", CompareOperator.Type.GREATER_OR_EQUAL, 500),
+            compare("ID", CompareOperator.Type.LESS_THAN, 520)), null);
+        assert plan instanceof IndexScanNode;
+
+        plan = planner.makeSimpleSelect("IDX_SCAN",
+            compare("ID", CompareOperator.Type.GREATER_THAN, 100), null);
+        assert plan instanceof FileScanNode;
+
+        plan = planner.makeSimpleSelect("IDX_SCAN",
+            compare("NAME", CompareOperator.Type.EQUALS, "row number 7"), null);
+        assert plan instanceof FileScanNode;
+    }
+}
@@ -0,0 +1,241 @@
+package com.wind.test.nanodb.indexes;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wind.nanodb.client.SessionState;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.indexes.IndexInfo;
+import com.wind.nanodb.indexes.IndexUtils;
+import com.wind.nanodb.relations.TableInfo;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.StorageManager;
+import com.wind.nanodb.storage.TupleFile;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises partial indexes, which only have entries for
+ * the rows of a table that satisfy the index's predicate.  The entries must
+ * follow rows into and out of the index as they change, and the planner
+ * must only use the index for queries whose predicates imply the index's.
+ */
+public class TestPartialIndexes extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 600;
+
+
+    /** Returns the plan that <tt>EXPLAIN</tt> prints for a query. */
+    private String explain(String query) throws Exception {
+        SessionState state = SessionState.get();
+        PrintStream oldOut = state.getOutputStream();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.setOutputStream(new PrintStream(bytes, true));
+        try {
+            tryDoCommand("EXPLAIN " + query, false);
+        }
+        finally {
+            state.setOutputStream(oldOut);
+        }
+
+        return bytes.toString().toLowerCase();
+    }
+
+
+    /**
+     * Checks that an index has an entry for exactly the rows of its table
+     * that satisfy its predicate, and returns the number of entries.
+     */
+    private int checkIndex(String tableName, String indexName)
+        throws Exception {
+        StorageManager storageManager = server.getStorageManager();
+        TableInfo tableInfo =
+            storageManager.getTableManager().openTable(tableName);
+        IndexInfo indexInfo =
+            storageManager.getIndexManager().openIndex(tableInfo, indexName);
+
+        TupleFile indexFile = indexInfo.getTupleFile();
+        List<String> errors = IndexUtils.verifyIndex(tableInfo.getTupleFile(),
+            indexFile, indexInfo.getTableColumnRefs());
+        assert errors.isEmpty() : errors;
+
+        int numEntries = 0;
+        for (Tuple tup = indexFile.getFirstTuple(); tup != null;
+             tup = indexFile.getNextTuple(tup)) {
+            numEntries++;
+        }
+
+        return numEntries;
+    }
+
+
+    /** Returns the ids of the rows in a result, as single-value tuples. */
+    private static TupleLiteral[] makeIds(List<Integer> ids) {
+        TupleLiteral[] rows = new TupleLiteral[ids.size()];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = new TupleLiteral((Object) ids.get(i));
+
+        return rows;
+    }
+
+
+    /**
+     * Builds a partial index over the open rows of a table, and checks its
+     * contents and its use by the planner as rows are changed.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testPartialIndex() throws Exception {
+        tryDoCommand("CREATE TABLE pix_tasks (id INTEGER, " +
+            "status VARCHAR(10), pri INTEGER) PROPERTIES (pagesize = 1024);",
+            false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tryDoCommand(String.format("INSERT INTO pix_tasks VALUES " +
+                "(%d, '%s', %d);", i, (i % 10 == 0 ? "open" : "closed"),
+                i % 20), false);
+        }
+
+        tryDoCommand("CREATE INDEX pix_open ON pix_tasks (pri) " +
+            "WHERE status = 'open';", false);
+        assert checkIndex("PIX_TASKS", "PIX_OPEN") == NUM_ROWS / 10;
+
+        // The query only wants open rows, so the index has all of them.
+        String query = "SELECT id FROM pix_tasks " +
+            "WHERE status = 'open' AND pri = 10;";
+        assert explain(query).contains("pix_open");
+
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 10; i < NUM_ROWS; i += 20)
+            expected.add(i);
+        CommandResult result = tryDoCommand(query, true);
+        assert checkUnorderedResults(makeIds(expected), result);
+
+        // Closed rows aren't in the index, so it can't be used.
+        query = "SELECT id FROM pix_tasks WHERE pri = 10;";
+        assert !explain(query).contains("pix_open");
+        result = tryDoCommand(query, true);
+        assert result.getTuples().size() == NUM_ROWS / 20;
+
+        query = "SELECT id FROM pix_tasks " +
+            "WHERE status = 'closed' AND pri = 10;";
+        assert !explain(query).contains("pix_open");
+
+        // Rows move into and out of the index as they change.
+        tryDoCommand("INSERT INTO pix_tasks VALUES (1000, 'open', 10);", false);
+        tryDoCommand("INSERT INTO pix_tasks VALUES (1001, 'closed', 10);",
+            false);
+        tryDoCommand("UPDATE pix_tasks SET status = 'open' WHERE id = 1;",
+            false);
+        tryDoCommand("UPDATE pix_tasks SET status = 'closed' WHERE id = 10;",
+            false);
+        tryDoCommand("UPDATE pix_tasks SET pri = 10 WHERE id = 20;", false);
+        tryDoCommand("UPDATE pix_tasks SET pri = 11 WHERE id = 3;", false);
+        tryDoCommand("DELETE FROM pix_tasks WHERE id = 30;", false);
+        tryDoCommand("DELETE FROM pix_tasks WHERE id = 5;", false);
+        assert checkIndex("PIX_TASKS", "PIX_OPEN") == NUM_ROWS / 10;
+
+        expected.remove(Integer.valueOf(10));
+        expected.remove(Integer.valueOf(30));
+        expected.add(20);
+        expected.add(1000);
+        result = tryDoCommand("SELECT id FROM pix_tasks " +
+            "WHERE status = 'open' AND pri = 10;", true);
+        assert checkUnorderedResults(makeIds(expected), result);
+
+        result = server.doCommand("VERIFY pix_tasks;", false);
+        assert !result.failed();
+    }
+
+
+    /**
+     * Checks that a query can use a partial index when its predicate is
+     * narrower than the index's, but not when it is wider.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testPredicateImplication() throws Exception {
+        tryDoCommand("CREATE TABLE pix_range (id INTEGER, pri INTEGER, " +
+            "name VARCHAR(20));", false);
+        for (int i = 0; i < 200; i++) {
+            tryDoCommand(String.format("INSERT INTO pix_range VALUES " +
+                "(%d, %d, %s);", i, i % 50,
+                (i % 3 == 0 ? "NULL" : "'name " + i + "'")), false);
+        }
+
+        tryDoCommand("CREATE INDEX pix_high ON pix_range (id) " +
+            "WHERE pri >= 40 AND name IS NOT NULL;", false);
+        int numEntries = checkIndex("PIX_RANGE", "PIX_HIGH");
+
+        int expectedEntries = 0;
+        for (int i = 0; i < 200; i++) {
+            if (i % 50 >= 40 && i % 3 != 0)
+                expectedEntries++;
+        }
+        assert numEntries == expectedEntries;
+
+        // A tighter range, and a comparison that rules out NULL names.
+        String query = "SELECT id FROM pix_range WHERE id = 142 AND " +
+            "pri > 41 AND name = 'name 142';";
+        assert explain(query).contains("pix_high");
+        CommandResult result = tryDoCommand(query, true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 142)
+        }, result);
+
+        // The comparison with the literal can be written either way around.
+        query = "SELECT id FROM pix_range WHERE id = 142 AND 45 >= pri AND " +
+            "42 = pri AND name IS NOT NULL;";
+        assert explain(query).contains("pix_high");
+
+        // Rows with lower priorities, or NULL names, aren't indexed.
+        query = "SELECT id FROM pix_range WHERE id = 142 AND pri >= 39 " +
+            "AND name IS NOT NULL;";
+        assert !explain(query).contains("pix_high");
+
+        query = "SELECT id FROM pix_range WHERE id = 141 AND pri >= 40;";
+        assert !explain(query).contains("pix_high");
+        result = tryDoCommand(query, true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 141)
+        }, result);
+    }
+
+
+    /**
+     * Checks that partial indexes with unsupported predicates are rejected.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testInvalidPredicates() throws Exception {
+        tryDoCommand("CREATE TABLE pix_bad (id INTEGER, status VARCHAR(10));",
+            false);
+
+        // A unique index is also a key, which must hold for all rows.
+        CommandResult result = server.doCommand("CREATE UNIQUE INDEX " +
+            "pix_bad_u ON pix_bad (id) WHERE status = 'open';", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE INDEX pix_bad_or ON pix_bad (id) " +
+            "WHERE status = 'open' OR status = 'new';", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE INDEX pix_bad_col ON pix_bad (id) " +
+            "WHERE priority = 3;", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE INDEX pix_bad_null ON pix_bad " +
+            "(id) WHERE status = NULL;", false);
+        assert result.failed();
+    }
+}
@@ -0,0 +1,214 @@
+package com.wind.test.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+
+import com.wind.nanodb.storage.BufferManager;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBFileType;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FileManager;
+import com.wind.nanodb.storage.FileManagerImpl;
+
+
+/**
+ * <p>
+ * A microbenchmark comparing the {@link DBPage} field accessors with the
+ * byte-at-a-time accessors they replaced.  This is not a unit test; run it
+ * by hand with the test classpath, e.g.:
+ * </p>
+ * <pre>
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:&lt;log4j jar&gt; \
+ *       com.wind.test.nanodb.storage.DBPageAccessBenchmark
+ * </pre>
+ * <p>
+ * The page is filled with fixed-size records laid out the way a heap-file
+ * tuple stores a row of (INTEGER, BIGINT, DOUBLE, CHAR(20)):  a null-flag
+ * byte followed by the four column values.  Each benchmark reads every
+ * column of every record in the page, which is what a table scan that
+ * evaluates a predicate or projection does.  The "bulk" variant reads the
+ * numeric columns with the strided bulk readers.
+ * </p>
+ * <p>
+ * Each variant is run for several warm-up rounds before it is timed, so
+ * that the JIT has compiled it, and the results of every read are summed
+ * into a value that is printed, so the reads can't be optimized away.
+ * </p>
+ */
+public class DBPageAccessBenchmark {
+
+    private static final int RECORD_SIZE = 1 + 4 + 8 + 8 + 20;
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final int TIMED_ROUNDS = 10;
+
+    private static final int PAGE_SCANS_PER_ROUND = 5000;
+
+
+    /*=======================================================*/
+    /* The accessors as they were before the ByteBuffer view */
+    /*=======================================================*/
+
+
+    private static int oldReadInt(byte[] data, int position) {
+        return ((data[position++] & 0xFF) << 24)
+             | ((data[position++] & 0xFF) << 16)
+             | ((data[position++] & 0xFF) <<  8)
+             | ((data[position  ] & 0xFF)      );
+    }
+
+
+    private static long oldReadLong(byte[] data, int position) {
+        return ((long) (data[position++] & 0xFF) << 56)
+             | ((long) (data[position++] & 0xFF) << 48)
+             | ((long) (data[position++] & 0xFF) << 40)
+             | ((long) (data[position++] & 0xFF) << 32)
+             | ((long) (data[position++] & 0xFF) << 24)
+             | ((long) (data[position++] & 0xFF) << 16)
+             | ((long) (data[position++] & 0xFF) <<  8)
+             | ((long) (data[position  ] & 0xFF)      );
+    }
+
+
+    private static String oldReadFixedSizeString(byte[] data, int position,
+                                                 int len) {
+        while (len > 0 && data[position + len - 1] == 0)
+            len--;
+
+        try {
+            return new String(data, position, len, "US-ASCII");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /*===========================*/
+    /* The benchmarked workloads */
+    /*===========================*/
+
+
+    private static long scanOld(DBPage dbPage, int numRecords) {
+        byte[] data = dbPage.getPageData();
+        long sum = 0;
+        for (int i = 0; i < numRecords; i++) {
+            int pos = i * RECORD_SIZE;
+            if (data[pos] != 0)
+                continue;
+
+            sum += oldReadInt(data, pos + 1);
+            sum += oldReadLong(data, pos + 5);
+            sum += (long) Double.longBitsToDouble(oldReadLong(data, pos + 13));
+            sum += oldReadFixedSizeString(data, pos + 21, 20).length();
+        }
+        return sum;
+    }
+
+
+    private static long scanNew(DBPage dbPage, int numRecords) {
+        long sum = 0;
+        for (int i = 0; i < numRecords; i++) {
+            int pos = i * RECORD_SIZE;
+            if (dbPage.readByte(pos) != 0)
+                continue;
+
+            sum += dbPage.readInt(pos + 1);
+            sum += dbPage.readLong(pos + 5);
+            sum += (long) dbPage.readDouble(pos + 13);
+            sum += dbPage.readFixedSizeString(pos + 21, 20).length();
+        }
+        return sum;
+    }
+
+
+    private static long scanBulk(DBPage dbPage, int numRecords, int[] ints,
+                                 long[] longs, double[] doubles) {
+        dbPage.readInts(1, RECORD_SIZE, ints, 0, numRecords);
+        dbPage.readLongs(5, RECORD_SIZE, longs, 0, numRecords);
+        dbPage.readDoubles(13, RECORD_SIZE, doubles, 0, numRecords);
+
+        long sum = 0;
+        for (int i = 0; i < numRecords; i++) {
+            int pos = i * RECORD_SIZE;
+            if (dbPage.readByte(pos) != 0)
+                continue;
+
+            sum += ints[i] + longs[i] + (long) doubles[i];
+            sum += dbPage.readFixedSizeString(pos + 21, 20).length();
+        }
+        return sum;
+    }
+
+
+    private interface Workload {
+        long run();
+    }
+
+
+    private static void measure(String name, int numRecords, Workload w) {
+        long check = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int j = 0; j < PAGE_SCANS_PER_ROUND; j++)
+                check += w.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (int j = 0; j < PAGE_SCANS_PER_ROUND; j++)
+                check += w.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        double nsPerRecord =
+            (double) best / ((long) PAGE_SCANS_PER_ROUND * numRecords);
+
+        System.out.printf("%-8s %8.2f ns/record  (checksum %d)%n", name,
+            nsPerRecord, check);
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        File baseDir = Files.createTempDirectory("dbpagebench").toFile();
+        FileManager fileMgr = new FileManagerImpl(baseDir);
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+        DBFile dbFile = fileMgr.createDBFile("bench", DBFileType.HEAP_TUPLE_FILE,
+            DBFile.DEFAULT_PAGESIZE);
+
+        try {
+            DBPage dbPage = new DBPage(bufMgr, dbFile, 1);
+            int numRecords = dbPage.getPageSize() / RECORD_SIZE;
+            for (int i = 0; i < numRecords; i++) {
+                int pos = i * RECORD_SIZE;
+                dbPage.writeByte(pos, i % 10 == 0 ? 1 : 0);
+                dbPage.writeInt(pos + 1, i * 31);
+                dbPage.writeLong(pos + 5, 1000000007L * i);
+                dbPage.writeDouble(pos + 13, i * 1.5);
+                dbPage.writeFixedSizeString(pos + 21, "name-" + i, 20);
+            }
+
+            int[] ints = new int[numRecords];
+            long[] longs = new long[numRecords];
+            double[] doubles = new double[numRecords];
+
+            System.out.printf("%d records of %d bytes per %d-byte page%n",
+                numRecords, RECORD_SIZE, dbPage.getPageSize());
+
+            measure("old", numRecords, () -> scanOld(dbPage, numRecords));
+            measure("new", numRecords, () -> scanNew(dbPage, numRecords));
+            measure("bulk", numRecords,
+                () -> scanBulk(dbPage, numRecords, ints, longs, doubles));
+        }
+        finally {
+            fileMgr.closeDBFile(dbFile);
+            fileMgr.deleteDBFile(dbFile);
+            baseDir.delete();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.wind.test.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wind.nanodb.storage.BufferManager;
+import com.wind.nanodb.storage.BufferPool;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBFileType;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FileManager;
+import com.wind.nanodb.storage.FileManagerImpl;
+
+
+/**
+ * This test class exercises the per-pool quotas of the {@link BufferManager}.
+ */
+public class TestBufferPools extends StorageTestCase {
+
+    private static final String TEST_FILE_NAME = "TestBufferPools_TestFile";
+
+
+    private FileManager fileMgr;
+
+    private BufferManager bufMgr;
+
+    private DBFile dbFile;
+
+
+    @Before
+    public void beforeClass() throws IOException {
+        File f = new File(testBaseDir, TEST_FILE_NAME);
+        if (f.exists())
+            f.delete();
+
+        fileMgr = new FileManagerImpl(testBaseDir);
+        bufMgr = new BufferManager(null, fileMgr);
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+    }
+
+
+    @After
+    public void afterClass() throws IOException {
+        bufMgr.removeAll();
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    private void addPage(int pageNo) throws IOException {
+        DBPage dbPage = new DBPage(bufMgr, dbFile, pageNo);
+        bufMgr.addPage(dbPage);
+        dbPage.unpin();
+    }
+
+
+    @Test
+    public void testMaxPagesEvictsWithinPool() throws IOException {
+        bufMgr.assignFileToPool(dbFile, "small", BufferPool.NO_LIMIT, 2);
+        BufferPool pool = bufMgr.getBufferPool("small");
+
+        for (int i = 1; i <= 3; i++)
+            addPage(i);
+
+        assert pool.getPagesCached() == 2;
+        assert pool.getEvictions() == 1;
+
+        // The oldest page was the one evicted.
+        assert bufMgr.getPage(dbFile, 1) == null;
+        assert pool.getMisses() == 1;
+
+        DBPage dbPage = bufMgr.getPage(dbFile, 3);
+        assert dbPage != null;
+        dbPage.unpin();
+        assert pool.getHits() == 1;
+
+        assert bufMgr.getBufferPool(BufferPool.DEFAULT_POOL_NAME)
+            .getPagesCached() == 0;
+    }
+
+
+    @Test
+    public void testFlushUpdatesPoolCounts() throws IOException {
+        bufMgr.assignFileToPool(dbFile, "flushed", 1, 10);
+        BufferPool pool = bufMgr.getBufferPool("flushed");
+
+        addPage(1);
+        addPage(2);
+        assert pool.getPagesCached() == 2;
+
+        bufMgr.flushDBFile(dbFile);
+        assert pool.getPagesCached() == 0;
+        assert pool.getEvictions() == 0;
+    }
+}
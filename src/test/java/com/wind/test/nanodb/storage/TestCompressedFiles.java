@@ -0,0 +1,201 @@
+package com.wind.test.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBFileType;
+import com.wind.nanodb.storage.FileManager;
+import com.wind.nanodb.storage.FileManagerImpl;
+import com.wind.nanodb.storage.PageCompressor;
+
+
+/**
+ * This test class exercises the {@link PageCompressor} and compressed
+ * database files managed by the {@link FileManagerImpl}.
+ */
+public class TestCompressedFiles extends StorageTestCase {
+
+    private static final String TEST_FILE_NAME = "TestCompressedFiles_TestFile";
+
+
+    private FileManager fileMgr;
+
+
+    @Before
+    public void beforeClass() {
+        fileMgr = new FileManagerImpl(testBaseDir);
+    }
+
+
+    private static byte[] makeTextPage(int pageSize, long seed) {
+        String[] words = { "red", "orange", "yellow", "green", "blue" };
+        Random random = new Random(seed);
+        byte[] page = new byte[pageSize];
+        int pos = pageSize / 4;
+        while (pos < pageSize) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            int len = Math.min(word.length, pageSize - pos);
+            System.arraycopy(word, 0, page, pos, len);
+            pos += len;
+        }
+        return page;
+    }
+
+
+    @Test
+    public void testRoundTrip() {
+        byte[] page = makeTextPage(DBFile.DEFAULT_PAGESIZE, 1);
+        byte[] compressed = new byte[page.length];
+        int length = PageCompressor.compress(page, page.length, compressed);
+        assert length > 0 && length < page.length / 2;
+
+        byte[] result = new byte[page.length];
+        assert PageCompressor.decompress(compressed, length, result) == page.length;
+        assert Arrays.equals(page, result);
+    }
+
+
+    @Test
+    public void testIncompressibleData() {
+        byte[] page = new byte[DBFile.MIN_PAGESIZE];
+        new Random(2).nextBytes(page);
+
+        byte[] compressed = new byte[page.length - 1];
+        assert PageCompressor.compress(page, page.length, compressed) == -1;
+    }
+
+
+    @Test
+    public void testCompressedFile() throws IOException {
+        File f = new File(testBaseDir, TEST_FILE_NAME);
+        if (f.exists())
+            fileMgr.deleteDBFile(f);
+
+        int pageSize = DBFile.DEFAULT_PAGESIZE;
+        DBFile dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, pageSize, true);
+        assert dbFile.isCompressed();
+
+        byte[] random = new byte[pageSize];
+        new Random(3).nextBytes(random);
+
+        fileMgr.savePage(dbFile, 1, makeTextPage(pageSize, 1));
+        fileMgr.savePage(dbFile, 2, random);
+        fileMgr.savePage(dbFile, 3, makeTextPage(pageSize, 3));
+
+        // Rewrite a page with data that no longer fits in its extent.
+        fileMgr.savePage(dbFile, 1, random);
+        fileMgr.closeDBFile(dbFile);
+
+        // Compressed pages are packed, so the file is smaller than 4 pages.
+        assert f.length() < 4L * pageSize;
+
+        dbFile = fileMgr.openDBFile(TEST_FILE_NAME);
+        assert dbFile.isCompressed();
+        assert dbFile.getPageSize() == pageSize;
+        assert dbFile.getNumPages() == 4;
+
+        byte[] buffer = new byte[pageSize];
+        fileMgr.loadPage(dbFile, 0, buffer);
+        assert buffer[0] == DBFileType.HEAP_TUPLE_FILE.getID();
+
+        fileMgr.loadPage(dbFile, 1, buffer);
+        assert Arrays.equals(random, buffer);
+
+        fileMgr.loadPage(dbFile, 2, buffer);
+        assert Arrays.equals(random, buffer);
+
+        fileMgr.loadPage(dbFile, 3, buffer);
+        assert Arrays.equals(makeTextPage(pageSize, 3), buffer);
+
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+        assert !f.exists();
+    }
+
+
+    /**
+     * Moves pages to new extents without closing the file, and checks that
+     * another file manager can still find them, from the page map's log.
+     * Then renames the file, and checks that its map follows it.
+     */
+    @Test
+    public void testPageMapLog() throws IOException {
+        String renamedName = TEST_FILE_NAME + "_Renamed";
+        File f = new File(testBaseDir, TEST_FILE_NAME);
+        File renamed = new File(testBaseDir, renamedName);
+        for (File old : new File[] { f, renamed }) {
+            if (old.exists())
+                fileMgr.deleteDBFile(old);
+        }
+
+        int pageSize = DBFile.DEFAULT_PAGESIZE;
+        DBFile dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, pageSize, true);
+
+        byte[] random = new byte[pageSize];
+        new Random(4).nextBytes(random);
+
+        fileMgr.savePage(dbFile, 1, makeTextPage(pageSize, 1));
+        fileMgr.savePage(dbFile, 2, makeTextPage(pageSize, 2));
+        fileMgr.savePage(dbFile, 1, random);
+
+        // The map hasn't been saved, so the other manager replays the log.
+        File mapFile = new File(f.getPath() + ".pgmap");
+        assert !mapFile.exists();
+
+        byte[] buffer = new byte[pageSize];
+        FileManager otherMgr = new FileManagerImpl(testBaseDir);
+        DBFile otherFile = otherMgr.openDBFile(TEST_FILE_NAME);
+        assert otherFile.getNumPages() == 3;
+        otherMgr.loadPage(otherFile, 1, buffer);
+        assert Arrays.equals(random, buffer);
+        otherMgr.loadPage(otherFile, 2, buffer);
+        assert Arrays.equals(makeTextPage(pageSize, 2), buffer);
+
+        // Closing the file through the other manager would save its copy of
+        // the map, so only its handle is closed.
+        otherFile.getFileContents().close();
+
+        // Syncing saves the map; later changes are logged on top of it.
+        fileMgr.syncDBFile(dbFile);
+        assert mapFile.exists();
+
+        fileMgr.savePage(dbFile, 2, random);
+        fileMgr.savePage(dbFile, 3, makeTextPage(pageSize, 3));
+
+        otherMgr = new FileManagerImpl(testBaseDir);
+        otherFile = otherMgr.openDBFile(TEST_FILE_NAME);
+        assert otherFile.getNumPages() == 4;
+        otherMgr.loadPage(otherFile, 2, buffer);
+        assert Arrays.equals(random, buffer);
+        otherMgr.loadPage(otherFile, 3, buffer);
+        assert Arrays.equals(makeTextPage(pageSize, 3), buffer);
+        otherFile.getFileContents().close();
+
+        assert fileMgr.renameDBFile(dbFile, renamedName);
+        assert !f.exists() && !mapFile.exists();
+        fileMgr.closeDBFile(dbFile);
+
+        otherMgr = new FileManagerImpl(testBaseDir);
+        otherFile = otherMgr.openDBFile(renamedName);
+        assert otherFile.getNumPages() == 4;
+        otherMgr.loadPage(otherFile, 1, buffer);
+        assert Arrays.equals(random, buffer);
+        otherMgr.loadPage(otherFile, 3, buffer);
+        assert Arrays.equals(makeTextPage(pageSize, 3), buffer);
+        otherMgr.closeDBFile(otherFile);
+
+        otherMgr.deleteDBFile(renamed);
+        assert !renamed.exists();
+        assert !new File(renamed.getPath() + ".pgmap").exists();
+        assert !new File(renamed.getPath() + ".pgmap.log").exists();
+    }
+}
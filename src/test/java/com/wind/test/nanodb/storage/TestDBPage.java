@@ -431,4 +431,90 @@ public class TestDBPage extends StorageTestCase {
 		assert (dbPage.readByte(position2) == (byte) canary2);
 	}
 
+
+	/**
+	 * Test that multibyte values are still stored in big-endian order, so
+	 * that the on-disk format is unchanged.
+	 */
+	@Test
+	public void testBigEndianLayout() {
+		dbPage.writeInt(0, 0x01020304);
+		for (int i = 0; i < 4; i++)
+			assert dbPage.readByte(i) == i + 1;
+
+		dbPage.writeLong(8, 0x0102030405060708L);
+		for (int i = 0; i < 8; i++)
+			assert dbPage.readByte(8 + i) == i + 1;
+
+		dbPage.writeShort(20, 0xFFFE);
+		assert dbPage.readUnsignedByte(20) == 0xFF;
+		assert dbPage.readUnsignedByte(21) == 0xFE;
+		assert dbPage.readUnsignedShort(20) == 0xFFFE;
+		assert dbPage.readShort(20) == (short) -2;
+
+		dbPage.writeInt(24, -1);
+		assert dbPage.readUnsignedInt(24) == 0xFFFFFFFFL;
+	}
+
+
+	/**
+	 * Test the bulk readers against values written one at a time, both
+	 * packed and strided the way a column appears in fixed-size records.
+	 */
+	@Test
+	public void testBulkReads() {
+		int recordSize = 24;
+		for (int i = 0; i < 10; i++) {
+			int record = 100 + i * recordSize;
+			dbPage.writeShort(record, 60000 + i);
+			dbPage.writeInt(record + 2, -i);
+			dbPage.writeLong(record + 6, (long) i << 40);
+			dbPage.writeDouble(record + 14, i / 4.0);
+		}
+
+		int[] shorts = new int[3];
+		dbPage.writeShort(0, 1);
+		dbPage.writeShort(2, 65535);
+		dbPage.writeShort(4, 3);
+		dbPage.readUnsignedShorts(0, shorts, 0, 3);
+		assert shorts[0] == 1 && shorts[1] == 65535 && shorts[2] == 3;
+
+		int[] ints = new int[12];
+		dbPage.readInts(100 + 2, recordSize, ints, 2, 10);
+		for (int i = 0; i < 10; i++)
+			assert ints[2 + i] == -i;
+
+		long[] longs = new long[10];
+		dbPage.readLongs(100 + 6, recordSize, longs, 0, 10);
+		for (int i = 0; i < 10; i++)
+			assert longs[i] == (long) i << 40;
+
+		double[] doubles = new double[10];
+		dbPage.readDoubles(100 + 14, recordSize, doubles, 0, 10);
+		for (int i = 0; i < 10; i++)
+			assert doubles[i] == i / 4.0;
+
+		try {
+			dbPage.readLongs(dbPage.getPageSize() - 8, 8, new long[2], 0, 2);
+			assert false : "Bulk read shouldn't run past the end of the page.";
+		}
+		catch (IndexOutOfBoundsException e) {
+			// Success.
+		}
+
+		// The last value starts on the page, but doesn't fit on it.
+		try {
+			dbPage.readInts(dbPage.getPageSize() - 2, 4, new int[1], 0, 1);
+			assert false : "Bulk read shouldn't run past the end of the page.";
+		}
+		catch (IndexOutOfBoundsException e) {
+			// Success.
+		}
+
+		// The last value ends exactly at the end of the page.
+		dbPage.writeLong(dbPage.getPageSize() - 8, 42L);
+		dbPage.readLongs(dbPage.getPageSize() - 16, 8, longs, 0, 2);
+		assert longs[1] == 42L;
+	}
+
 }
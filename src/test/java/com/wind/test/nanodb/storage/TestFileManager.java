@@ -1,10 +1,13 @@
 package com.wind.test.nanodb.storage;
 
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Before;
+import org.junit.Test;
 
 import com.wind.nanodb.storage.BufferManager;
 import com.wind.nanodb.storage.DBFile;
@@ -83,4 +86,51 @@ public class TestFileManager extends StorageTestCase {
         fileMgr.deleteDBFile(dbf);
         assert !f.exists();
     }
+
+
+    @Test
+    public void testBatchedPageIO() throws IOException {
+        String filename = "TestFileManager_testBatchedPageIO";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = DBFile.DEFAULT_PAGESIZE;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize);
+
+        // Write the pages out of order, to make sure each lands in its place.
+        int[] pageNos = { 3, 1, 2, 4 };
+        byte[][] buffers = new byte[pageNos.length][];
+        for (int i = 0; i < pageNos.length; i++) {
+            buffers[i] = new byte[pageSize];
+            Arrays.fill(buffers[i], (byte) pageNos[i]);
+        }
+
+        fileMgr.savePages(dbf, pageNos, buffers);
+        assert dbf.getNumPages() == 5;
+
+        int[] readPageNos = { 1, 2, 3, 4 };
+        byte[][] readBuffers = new byte[readPageNos.length][pageSize];
+        fileMgr.loadPages(dbf, readPageNos, readBuffers);
+
+        for (int i = 0; i < readPageNos.length; i++) {
+            assert readBuffers[i][0] == readPageNos[i];
+            assert readBuffers[i][pageSize - 1] == readPageNos[i];
+        }
+
+        try {
+            fileMgr.loadPages(dbf, new int[] { 4, 5 },
+                new byte[2][pageSize]);
+
+            assert false : "Shouldn't be able to read past the end of the file.";
+        }
+        catch (EOFException e) {
+            // Success.
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
 }
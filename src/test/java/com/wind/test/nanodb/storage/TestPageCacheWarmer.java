@@ -0,0 +1,205 @@
+package com.wind.test.nanodb.storage;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.wind.nanodb.server.NanoDBServer;
+import com.wind.nanodb.storage.BufferManager;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.PageCacheWarmer;
+import com.wind.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This test class exercises the {@link PageCacheWarmer}, which saves the
+ * list of cached pages at shutdown and reloads those pages at startup.
+ */
+public class TestPageCacheWarmer extends SqlTestCase {
+
+    /** How long to wait for the warm-up thread to load the pages. */
+    private static final long WARMUP_TIMEOUT_MILLIS = 10000;
+
+
+    /**
+     * The test table's file.  Cached pages are looked up by the file's path,
+     * so this is still usable as a key after the server restarts.
+     */
+    private DBFile tableFile;
+
+
+    /** The number of pages in the test table's file. */
+    private int tableNumPages;
+
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(PageCacheWarmer.PROP_PAGECACHE_WARMUP);
+        System.clearProperty(PageCacheWarmer.PROP_PAGECACHE_WARMUP_INTERVAL);
+    }
+
+
+    private void restartServer() throws IOException {
+        server.shutdown();
+        startServer();
+    }
+
+
+    private void startServer() throws IOException {
+        server = new NanoDBServer();
+        server.startup();
+    }
+
+
+    private BufferManager getBufferManager() {
+        return server.getStorageManager().getBufferManager();
+    }
+
+
+    private File getWarmupFile() {
+        return new File(server.getStorageManager().getBaseDir(),
+            PageCacheWarmer.WARMUP_FILENAME);
+    }
+
+
+    /**
+     * Turns on page-cache warm-up, restarts the server so that it takes
+     * effect, fills a table with enough rows to span several pages, and
+     * loads the table's pages into the page cache.
+     *
+     * @return the numbers of the table's pages that are in the page cache
+     */
+    private List<Integer> setupTable() throws Exception {
+        System.setProperty(PageCacheWarmer.PROP_PAGECACHE_WARMUP, "true");
+        System.setProperty(PageCacheWarmer.PROP_PAGECACHE_WARMUP_INTERVAL, "0");
+        restartServer();
+
+        tryDoCommand("CREATE TABLE warmup_test (a INTEGER, b VARCHAR(100));");
+        for (int i = 0; i < 300; i++) {
+            tryDoCommand(String.format("INSERT INTO warmup_test VALUES " +
+                "(%d, 'warm-up test row number %d, padded to fill pages');",
+                i, i));
+        }
+
+        tableFile = server.getStorageManager().getTableManager()
+            .openTable("WARMUP_TEST").getTupleFile().getDBFile();
+        tableNumPages = tableFile.getNumPages();
+        assert tableNumPages > 1 : "Table should span several pages";
+
+        return cacheTablePages();
+    }
+
+
+    /**
+     * Loads all of the test table's pages into the page cache.  The server
+     * empties the page cache after every command, so the pages have to be
+     * loaded outside of a command for them to be listed at shutdown.
+     *
+     * @return the numbers of the table's pages that are in the page cache
+     */
+    private List<Integer> cacheTablePages() throws IOException {
+        List<Integer> cachedPages = new ArrayList<>();
+        for (int pageNo = 0; pageNo < tableNumPages; pageNo++) {
+            server.getStorageManager().loadDBPage(tableFile, pageNo).unpin();
+            cachedPages.add(pageNo);
+        }
+        return cachedPages;
+    }
+
+
+    /** Returns true if none of the table's pages are in the page cache. */
+    private boolean isTableUncached() {
+        for (int pageNo = 0; pageNo < tableNumPages; pageNo++) {
+            if (getBufferManager().containsPage(tableFile, pageNo))
+                return false;
+        }
+        return true;
+    }
+
+
+    @Test
+    public void testPagesReloadedAfterRestart() throws Exception {
+        List<Integer> cachedPages = setupTable();
+
+        restartServer();
+        assert getWarmupFile().exists();
+
+        // The pages are loaded by a background thread, so wait for them.
+        BufferManager bufMgr = getBufferManager();
+        long deadline = System.currentTimeMillis() + WARMUP_TIMEOUT_MILLIS;
+        while (true) {
+            int loaded = 0;
+            for (int pageNo : cachedPages) {
+                if (bufMgr.containsPage(tableFile, pageNo))
+                    loaded++;
+            }
+
+            if (loaded == cachedPages.size())
+                break;
+
+            assert System.currentTimeMillis() < deadline :
+                String.format("Only %d of %d pages were reloaded", loaded,
+                    cachedPages.size());
+            Thread.sleep(20);
+        }
+
+        // The reloaded pages hold the table's data.
+        assert tryDoCommand("SELECT * FROM warmup_test;", true)
+            .getTuples().size() == 300;
+    }
+
+
+    @Test
+    public void testMissingWarmupFile() throws Exception {
+        setupTable();
+
+        server.shutdown();
+        assert getWarmupFile().delete();
+        startServer();
+
+        Thread.sleep(200);
+        assert isTableUncached();
+
+        assert tryDoCommand("SELECT * FROM warmup_test;", true)
+            .getTuples().size() == 300;
+
+        // A new list is saved at the next shutdown.
+        restartServer();
+        assert getWarmupFile().exists();
+    }
+
+
+    @Test
+    public void testCorruptWarmupFile() throws Exception {
+        setupTable();
+
+        server.shutdown();
+        try (FileOutputStream out = new FileOutputStream(getWarmupFile())) {
+            out.write("not a page list".getBytes("US-ASCII"));
+        }
+        startServer();
+
+        Thread.sleep(200);
+        assert isTableUncached();
+
+        assert tryDoCommand("SELECT * FROM warmup_test;", true)
+            .getTuples().size() == 300;
+
+        // The corrupt list is replaced by a good one at the next shutdown,
+        // and that one is used to warm up the cache.
+        cacheTablePages();
+        restartServer();
+        long deadline = System.currentTimeMillis() + WARMUP_TIMEOUT_MILLIS;
+        while (isTableUncached()) {
+            assert System.currentTimeMillis() < deadline :
+                "Pages weren't reloaded from the rewritten list";
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.wind.test.nanodb.storage;
+
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.ColumnInfo;
+import com.wind.nanodb.relations.ColumnType;
+import com.wind.nanodb.relations.SQLDataType;
+import com.wind.nanodb.relations.Schema;
+import com.wind.nanodb.storage.BufferManager;
+import com.wind.nanodb.storage.DBFile;
+import com.wind.nanodb.storage.DBFileType;
+import com.wind.nanodb.storage.DBPage;
+import com.wind.nanodb.storage.FileManager;
+import com.wind.nanodb.storage.FileManagerImpl;
+import com.wind.nanodb.storage.PageTuple;
+
+
+/**
+ * This test class exercises the lazy column-offset resolution of the
+ * {@link PageTuple} class.
+ */
+public class TestPageTuple extends StorageTestCase {
+
+    private static final String TEST_FILE_NAME = "TestPageTuple_TestFile";
+
+
+    private FileManager fileMgr;
+
+    private DBFile dbFile;
+
+    private DBPage dbPage;
+
+    private Schema schema;
+
+
+    /** A page tuple that can only be read, which is all these tests need. */
+    private static class ReadOnlyPageTuple extends PageTuple {
+        ReadOnlyPageTuple(DBPage dbPage, int pageOffset, Schema schema) {
+            super(dbPage, pageOffset, schema);
+        }
+
+        @Override
+        protected void insertTupleDataRange(int off, int len) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void deleteTupleDataRange(int off, int len) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    private static ColumnType makeType(SQLDataType baseType, int length) {
+        ColumnType type = new ColumnType(baseType);
+        if (length > 0)
+            type.setLength(length);
+        return type;
+    }
+
+
+    @Before
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+        dbPage = new DBPage(bufMgr, dbFile, 0);
+
+        // A fixed-size prefix of three columns, then a mix.
+        schema = new Schema();
+        schema.addColumnInfo(new ColumnInfo("a", "t", makeType(SQLDataType.INTEGER, 0)));
+        schema.addColumnInfo(new ColumnInfo("b", "t", makeType(SQLDataType.BIGINT, 0)));
+        schema.addColumnInfo(new ColumnInfo("c", "t", makeType(SQLDataType.CHAR, 5)));
+        schema.addColumnInfo(new ColumnInfo("d", "t", makeType(SQLDataType.VARCHAR, 20)));
+        schema.addColumnInfo(new ColumnInfo("e", "t", makeType(SQLDataType.INTEGER, 0)));
+        for (int i = 0; i < 6; i++) {
+            schema.addColumnInfo(new ColumnInfo("v" + i, "t",
+                makeType(SQLDataType.VARCHAR, 30)));
+        }
+    }
+
+
+    @After
+    public void afterClass() throws IOException {
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    @Test
+    public void testFixedPrefixOffsets() {
+        int[] offsets = PageTuple.getFixedPrefixOffsets(schema);
+
+        // The prefix runs up to and including the first VARCHAR column.
+        assert offsets.length == 4;
+        assert offsets[0] == 0 && offsets[1] == 4 && offsets[2] == 12 &&
+               offsets[3] == 17;
+    }
+
+
+    /**
+     * Stores each tuple, then reads its columns back in an order that jumps
+     * around, using a new page-tuple for each column so that every read
+     * starts with nothing resolved.
+     */
+    @Test
+    public void testLazyColumnReads() {
+        TupleLiteral[] tuples = {
+            new TupleLiteral(1, 2L, "abc", "dee", 5, "v0", "v1", "v2", "v3", "v4", "v5"),
+            new TupleLiteral(null, 2L, null, "", 5, null, "x", null, "yy", null, "zzz"),
+            new TupleLiteral(7, null, "q", null, null, "a", null, "bb", null, "ccc", null),
+            new TupleLiteral(null, null, null, null, null, null, null, null, null, null, null)
+        };
+        int[] readOrder = { 10, 0, 4, 3, 7, 1, 9, 2, 5, 8, 6 };
+
+        int offset = 100;
+        for (TupleLiteral tuple : tuples) {
+            int endOffset = PageTuple.storeTuple(dbPage, offset, schema, tuple);
+
+            for (int col : readOrder) {
+                PageTuple ptup = new ReadOnlyPageTuple(dbPage, offset, schema);
+                Object expected = tuple.getColumnValue(col);
+                Object actual = ptup.getColumnValue(col);
+                assert expected == null ? actual == null : expected.equals(actual)
+                    : "column " + col + ":  expected " + expected + ", got " + actual;
+                assert ptup.isNullValue(col) == (expected == null);
+            }
+
+            // Reading every column from one tuple, in order, gives the same
+            // values, and the end offset matches what was stored.
+            PageTuple ptup = new ReadOnlyPageTuple(dbPage, offset, schema);
+            for (int col : readOrder) {
+                Object expected = tuple.getColumnValue(col);
+                Object actual = ptup.getColumnValue(col);
+                assert expected == null ? actual == null : expected.equals(actual);
+            }
+            assert ptup.getEndOffset() == endOffset;
+            assert new ReadOnlyPageTuple(dbPage, offset, schema).getEndOffset()
+                == endOffset;
+
+            offset = endOffset;
+        }
+    }
+}
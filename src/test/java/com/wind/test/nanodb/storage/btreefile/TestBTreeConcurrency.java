@@ -0,0 +1,169 @@
+package com.wind.test.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.storage.btreefile.BTreeFileVerifier;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class has several threads add, look up and delete tuples in
+ * one B<sup>+</sup> tree file at the same time, so that leaves are split
+ * and merged while other threads are reading and changing the tree.
+ */
+public class TestBTreeConcurrency extends SqlTestCase {
+
+    /** The number of threads that use the file at once. */
+    private static final int NUM_THREADS = 4;
+
+
+    /** The number of tuples each thread adds. */
+    private static final int TUPLES_PER_THREAD = 600;
+
+
+    private static TupleLiteral makeTuple(int key) {
+        return new TupleLiteral(key, "value-" + key);
+    }
+
+
+    /**
+     * Checks that a tuple returned by the file holds the values for a key.
+     */
+    private static void checkTuple(Tuple tup, int key) {
+        assert tup != null : "Tuple " + key + " wasn't found";
+        assert Integer.valueOf(key).equals(tup.getColumnValue(0)) :
+            "Expected key " + key + ", got " + tup;
+        assert ("value-" + key).equals(tup.getColumnValue(1)) :
+            "Expected key " + key + ", got " + tup;
+    }
+
+
+    /**
+     * Adds a thread's tuples, looking each one up after adding it, then
+     * deletes two of every three, so that leaves are merged.  The thread's
+     * keys are interleaved with the other threads' keys, so the threads keep
+     * changing the same leaves.
+     */
+    private Void runWorker(BTreeTupleFile tupleFile, int threadNo)
+        throws Exception {
+
+        Random rand = new Random(threadNo);
+        try {
+            for (int i = 0; i < TUPLES_PER_THREAD; i++) {
+                int key = i * NUM_THREADS + threadNo;
+                Tuple added = tupleFile.addTuple(makeTuple(key));
+                checkTuple(added, key);
+                added.unpin();
+
+                Tuple found = tupleFile.findFirstTupleEquals(
+                    new TupleLiteral((Object) key));
+                checkTuple(found, key);
+                found.unpin();
+
+                // Look up one of the thread's earlier keys, too.  Other
+                // threads keep changing its leaf, so its values are read
+                // again after a short wait.
+                int oldKey = rand.nextInt(i + 1) * NUM_THREADS + threadNo;
+                found = tupleFile.findFirstTupleEquals(
+                    new TupleLiteral((Object) oldKey));
+                checkTuple(found, oldKey);
+                Thread.yield();
+                checkTuple(found, oldKey);
+                found.unpin();
+            }
+
+            for (int i = 0; i < TUPLES_PER_THREAD; i++) {
+                if (i % 3 == 0)
+                    continue;
+
+                int key = i * NUM_THREADS + threadNo;
+                int numDeleted = tupleFile.deleteSortedTuples(
+                    Collections.singletonList(makeTuple(key)));
+                assert numDeleted == 1 : "Tuple " + key + " wasn't deleted";
+
+                assert tupleFile.findFirstTupleEquals(
+                    new TupleLiteral((Object) key)) == null;
+            }
+        }
+        finally {
+            server.getStorageManager().getBufferManager()
+                .unpinAllSessionPages();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Runs several threads against one file, then checks the file's
+     * structure and contents.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        tryDoCommand("CREATE TABLE btree_conc (a INTEGER, b VARCHAR(20)) " +
+            "PROPERTIES (storage = 'btree', pagesize = 1024);", false);
+
+        BTreeTupleFile tupleFile = (BTreeTupleFile) server.getStorageManager()
+            .getTableManager().openTable("BTREE_CONC").getTupleFile();
+
+        ExecutorService threads = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final int threadNo = t;
+                results.add(threads.submit(
+                    () -> runWorker(tupleFile, threadNo)));
+            }
+
+            // This rethrows anything that a thread threw.
+            for (Future<Void> result : results)
+                result.get();
+        }
+        finally {
+            threads.shutdown();
+        }
+
+        // The verifier and the scan pin pages outside of a command, so the
+        // pins are released here.
+        try {
+            BTreeFileVerifier verifier =
+                new BTreeFileVerifier(server.getStorageManager(), tupleFile);
+            List<String> errors = verifier.verify();
+            assert errors.isEmpty() : errors;
+            assert verifier.getNumLeafPages() > 5;
+
+            // Every thread kept one of every three of its own keys.
+            ArrayList<TupleLiteral> expected = new ArrayList<>();
+            for (int i = 0; i < TUPLES_PER_THREAD; i += 3) {
+                for (int t = 0; t < NUM_THREADS; t++)
+                    expected.add(makeTuple(i * NUM_THREADS + t));
+            }
+
+            ArrayList<TupleLiteral> actual = new ArrayList<>();
+            for (Tuple tup = tupleFile.getFirstTuple(); tup != null;
+                 tup = tupleFile.getNextTuple(tup)) {
+                actual.add(new TupleLiteral(tup));
+            }
+
+            assert actual.equals(expected);
+        }
+        finally {
+            server.getStorageManager().getBufferManager()
+                .unpinAllSessionPages();
+        }
+    }
+}
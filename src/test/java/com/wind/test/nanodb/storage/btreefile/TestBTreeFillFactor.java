@@ -0,0 +1,138 @@
+package com.wind.test.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.btreefile.BTreeFileVerifier;
+import com.wind.nanodb.storage.btreefile.BTreeTupleFile;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises how B<sup>+</sup> tree leaves are split when
+ * keys are added in increasing or decreasing order, and the fill factor
+ * that controls how full such splits leave the leaves.
+ */
+public class TestBTreeFillFactor extends SqlTestCase {
+
+    /** The number of rows inserted into each test table. */
+    private static final int NUM_ROWS = 3000;
+
+
+    /**
+     * Creates a B<sup>+</sup> tree table, inserts {@link #NUM_ROWS} rows in
+     * the specified order, checks the table's contents and structure, and
+     * returns the average fill of its leaves.
+     */
+    private double fillTable(String tableName, String extraProperties,
+                             ArrayList<Integer> order) throws Exception {
+        tryDoCommand(String.format("CREATE TABLE %s (a INTEGER, " +
+            "b VARCHAR(20)) PROPERTIES (storage = 'btree', pagesize = 1024%s);",
+            tableName, extraProperties), false);
+
+        for (int i : order) {
+            tryDoCommand(String.format("INSERT INTO %s VALUES (%d, '%s');",
+                tableName, i, "value-" + i), false);
+        }
+
+        TupleLiteral[] expected = new TupleLiteral[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++)
+            expected[i] = new TupleLiteral(i, "value-" + i);
+
+        CommandResult result = tryDoCommand(String.format(
+            "SELECT * FROM %s;", tableName), true);
+        assert checkOrderedResults(expected, result);
+
+        BTreeTupleFile tupleFile = (BTreeTupleFile) server.getStorageManager()
+            .getTableManager().openTable(tableName.toUpperCase()).getTupleFile();
+        BTreeFileVerifier verifier =
+            new BTreeFileVerifier(server.getStorageManager(), tupleFile);
+        try {
+            assert verifier.verify().isEmpty();
+        }
+        finally {
+            // The verifier pins pages outside of a command, so nothing else
+            // releases the pins.
+            server.getStorageManager().getBufferManager()
+                .unpinAllSessionPages();
+        }
+        assert verifier.getNumLeafPages() > 10;
+
+        return verifier.getAverageLeafFill();
+    }
+
+
+    private ArrayList<Integer> makeOrder(boolean increasing) {
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int i = 0; i < NUM_ROWS; i++)
+            order.add(increasing ? i : NUM_ROWS - 1 - i);
+
+        return order;
+    }
+
+
+    /**
+     * Keys added in increasing or decreasing order should leave the leaves
+     * about as full as the default fill factor.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testSequentialInserts() throws Exception {
+        double increasingFill =
+            fillTable("btree_fill_incr", "", makeOrder(true));
+        double decreasingFill =
+            fillTable("btree_fill_decr", "", makeOrder(false));
+
+        // A few bytes of each leaf can't be used, and the last leaf to be
+        // split is only partly full.
+        assert increasingFill > BTreeTupleFile.DEFAULT_FILL_FACTOR - 5;
+        assert increasingFill <= BTreeTupleFile.DEFAULT_FILL_FACTOR;
+        assert decreasingFill > BTreeTupleFile.DEFAULT_FILL_FACTOR - 5;
+        assert decreasingFill <= BTreeTupleFile.DEFAULT_FILL_FACTOR;
+
+        // Keys added in no particular order still produce a valid tree.
+        ArrayList<Integer> order = makeOrder(true);
+        Collections.shuffle(order, new Random(12345));
+        fillTable("btree_fill_rand", "", order);
+    }
+
+
+    /**
+     * Specifies a fill factor for a table, and checks that bad fill factors
+     * are rejected.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testFillFactorProperty() throws Exception {
+        double fill = fillTable("btree_fill_100", ", fillfactor = 100",
+                                makeOrder(true));
+        assert fill > 95;
+
+        fill = fillTable("btree_fill_60", ", fillfactor = 60",
+                         makeOrder(false));
+        assert fill > 55 && fill <= 60;
+
+        BTreeTupleFile tupleFile = (BTreeTupleFile) server.getStorageManager()
+            .getTableManager().openTable("BTREE_FILL_60").getTupleFile();
+        assert tupleFile.getFillFactor() == 60;
+        assert tupleFile.getSchema().getProperty(
+            BTreeTupleFile.PROP_FILL_FACTOR) == null;
+
+        CommandResult result = server.doCommand("CREATE TABLE btree_fill_bad " +
+            "(a INTEGER) PROPERTIES (storage = 'btree', fillfactor = 5);",
+            false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE TABLE heap_fill_bad (a INTEGER) " +
+            "PROPERTIES (fillfactor = 80);", false);
+        assert result.failed();
+    }
+}
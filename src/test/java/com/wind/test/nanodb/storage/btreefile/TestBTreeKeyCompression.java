@@ -0,0 +1,148 @@
+package com.wind.test.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.TupleFile;
+
+import com.wind.test.nanodb.sql.SqlTestCase;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises the key compression in B<sup>+</sup> tree
+ * pages:  wide <tt>CHAR</tt> keys that share a long prefix should fit many
+ * to a page, and the tree should stay well-formed as leaves are split,
+ * merged and rebalanced.
+ */
+public class TestBTreeKeyCompression extends SqlTestCase {
+
+    /** Returns the key for row <tt>i</tt> of the test table. */
+    private static String makeKey(int i) {
+        return String.format("customer-account-%06d", i);
+    }
+
+
+    /** Returns the B<sup>+</sup> tree tuple file of the specified table. */
+    private TupleFile openTupleFile(String tableName) throws Exception {
+        return server.getStorageManager().getTableManager()
+            .openTable(tableName).getTupleFile();
+    }
+
+
+    /**
+     * Inserts keys with a long shared prefix in random order, then deletes
+     * most of them, checking the tree's structure and contents along the way.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testSharedPrefixKeys() throws Exception {
+        final int numRows = 1000;
+
+        tryDoCommand("CREATE TABLE btree_prefix (id CHAR(200), v INTEGER) " +
+            "PROPERTIES (storage = 'btree', pagesize = 4096);", false);
+
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int i = 0; i < numRows; i++)
+            order.add(i);
+        Collections.shuffle(order, new Random(12345));
+
+        for (int i : order) {
+            tryDoCommand(String.format(
+                "INSERT INTO btree_prefix VALUES ('%s', %d);", makeKey(i), i),
+                false);
+        }
+
+        TupleFile tupleFile = openTupleFile("BTREE_PREFIX");
+        assert tupleFile.verify().isEmpty();
+
+        // Padded out to 200 characters, the keys would need well over 50
+        // leaves.  Unpadded and with the prefix factored out, only the last
+        // few characters of each key are stored.
+        assert tupleFile.getDBFile().getNumPages() < 15;
+
+        TupleLiteral[] expected = new TupleLiteral[numRows];
+        for (int i = 0; i < numRows; i++)
+            expected[i] = new TupleLiteral(makeKey(i), i);
+
+        CommandResult result = tryDoCommand("SELECT * FROM btree_prefix;", true);
+        assert checkOrderedResults(expected, result);
+
+        result = tryDoCommand(String.format(
+            "SELECT v FROM btree_prefix WHERE id = '%s';", makeKey(617)), true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral((Object) 617) }, result);
+
+        // Deleting most rows forces leaves to be merged and rebalanced, which
+        // changes their prefixes and the separators between them.
+        tryDoCommand("DELETE FROM btree_prefix WHERE v < 300 OR v > 350 " +
+            "AND v < 900 AND v <> 700;", false);
+
+        ArrayList<TupleLiteral> remaining = new ArrayList<>();
+        for (int i = 0; i < numRows; i++) {
+            if ((i >= 300 && i <= 350) || i >= 900 || i == 700)
+                remaining.add(new TupleLiteral(makeKey(i), i));
+        }
+
+        tupleFile = openTupleFile("BTREE_PREFIX");
+        assert tupleFile.verify().isEmpty();
+
+        result = tryDoCommand("SELECT * FROM btree_prefix;", true);
+        assert checkOrderedResults(
+            remaining.toArray(new TupleLiteral[remaining.size()]), result);
+    }
+
+
+    /**
+     * Uses a composite key whose leading column is often <tt>NULL</tt> or
+     * empty, so that leaves can't always factor out a prefix.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testCompositeKeysWithNulls() throws Exception {
+        tryDoCommand("CREATE TABLE btree_composite (a VARCHAR(30), b INTEGER) " +
+            "PROPERTIES (storage = 'btree', pagesize = 1024);", false);
+
+        Random rand = new Random(54321);
+        ArrayList<TupleLiteral> inserted = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            int kind = rand.nextInt(10);
+            String a;
+            if (kind == 0)
+                a = null;
+            else if (kind == 1)
+                a = "";
+            else
+                a = "group-" + rand.nextInt(8);
+
+            tryDoCommand(String.format("INSERT INTO btree_composite " +
+                "VALUES (%s, %d);", (a == null ? "NULL" : "'" + a + "'"), i),
+                false);
+            inserted.add(new TupleLiteral(a, i));
+        }
+
+        TupleFile tupleFile = openTupleFile("BTREE_COMPOSITE");
+        assert tupleFile.verify().isEmpty();
+
+        CommandResult result =
+            tryDoCommand("SELECT * FROM btree_composite;", true);
+        assert checkUnorderedResults(
+            inserted.toArray(new TupleLiteral[inserted.size()]), result);
+
+        tryDoCommand("DELETE FROM btree_composite WHERE b % 3 <> 0;", false);
+        inserted.removeIf(t -> (Integer) t.getColumnValue(1) % 3 != 0);
+
+        tupleFile = openTupleFile("BTREE_COMPOSITE");
+        assert tupleFile.verify().isEmpty();
+
+        result = tryDoCommand("SELECT * FROM btree_composite;", true);
+        assert checkUnorderedResults(
+            inserted.toArray(new TupleLiteral[inserted.size()]), result);
+    }
+}
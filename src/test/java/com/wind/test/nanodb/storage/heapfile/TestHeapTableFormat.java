@@ -3,8 +3,22 @@ package com.wind.test.nanodb.storage.heapfile;
 
 import com.wind.test.nanodb.storage.TableFormatTestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import com.wind.nanodb.expressions.CompareOperator;
 import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.Tuple;
 import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.FilePointer;
+import com.wind.nanodb.storage.OverflowRef;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.TupleCursor;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.heapfile.HeapFilePageTuple;
 import org.junit.Test;
 
 
@@ -114,6 +128,488 @@ public class TestHeapTableFormat extends TableFormatTestCase {
     }
 
 
+    /**
+     * Scans a multi-page table with holes in it using tuple cursors, both
+     * with and without tuple reuse, and in batches.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testCursorScan() throws Exception {
+        tryDoCommand("CREATE TABLE heap_cursor (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'heap', pagesize = 4096);");
+
+        HashSet<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            tryDoCommand(String.format("INSERT INTO heap_cursor VALUES " +
+                "(%d, '%s');", i, makeRandomString(20, 50)));
+            expected.add(i);
+        }
+
+        // Empty out a range of slots, so the scan must skip over them.
+        tryDoCommand("DELETE FROM heap_cursor WHERE a >= 100 AND a < 200;");
+        for (int i = 100; i < 200; i++)
+            expected.remove(i);
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_CURSOR").getTupleFile();
+        assert tupleFile.getDBFile().getNumPages() > 3;
+
+        // Without reuse, every tuple is a separate object that stays valid.
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        try (TupleCursor cursor = tupleFile.openCursor(false)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null)
+                tuples.add(tup);
+
+            assert cursor.next() == null;
+        }
+        HashSet<Integer> values = new HashSet<>();
+        for (Tuple tup : tuples) {
+            assert tup.isPinned();
+            values.add((Integer) tup.getColumnValue(0));
+        }
+        assert values.equals(expected);
+
+        // With reuse, one tuple object is repositioned for each row.
+        values.clear();
+        Tuple first = null;
+        try (TupleCursor cursor = tupleFile.openCursor(true)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null) {
+                if (first == null)
+                    first = tup;
+
+                assert tup == first;
+                assert values.add((Integer) tup.getColumnValue(0));
+            }
+        }
+        assert values.equals(expected);
+
+        // Batches produce the same tuples, in the same order.
+        ArrayList<Integer> batched = new ArrayList<>();
+        Tuple[] batch = new Tuple[64];
+        try (TupleCursor cursor = tupleFile.openCursor(true)) {
+            int count;
+            while ((count = cursor.fill(batch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    batched.add((Integer) batch[i].getColumnValue(0));
+                    batch[i].unpin();
+                }
+            }
+        }
+        assert batched.size() == tuples.size();
+        for (int i = 0; i < tuples.size(); i++)
+            assert batched.get(i).equals(tuples.get(i).getColumnValue(0));
+
+        // A cursor can resume after any tuple.
+        int resumeAt = tuples.size() / 2;
+        try (TupleCursor cursor = tupleFile.openCursor(false)) {
+            cursor.positionAfter(tuples.get(resumeAt));
+            Tuple tup = cursor.next();
+            assert tup.getColumnValue(0).equals(
+                tuples.get(resumeAt + 1).getColumnValue(0));
+            tup.unpin();
+        }
+
+        // The tuples from the cursor without reuse are pinned for us.
+        for (Tuple tup : tuples)
+            tup.unpin();
+    }
+
+
+    /**
+     * Grows tuples until they no longer fit in their page, so that they are
+     * moved to other pages, and checks that every row is still found once by
+     * scans and through its original file-pointer.  Then shrinks the tuples
+     * and checks that optimizing the file moves them back home.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testForwardedUpdates() throws Exception {
+        tryDoCommand("CREATE TABLE heap_fwd (a INTEGER, b VARCHAR(2000)) " +
+            "PROPERTIES (storage = 'heap', pagesize = 4096);");
+
+        for (int i = 0; i < 40; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO heap_fwd VALUES (%d, 'row%d');", i, i));
+        }
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_FWD").getTupleFile();
+        assert tupleFile.getDBFile().getNumPages() == 2;
+
+        HashMap<Integer, FilePointer> fptrs = new HashMap<>();
+        try (TupleCursor cursor = tupleFile.openCursor(true)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null) {
+                fptrs.put((Integer) tup.getColumnValue(0),
+                    tup.getExternalReference());
+            }
+        }
+
+        // Six 1000-byte values can't all stay on one 4KB page, and are still
+        // small enough to be stored inline.  The new value of "a" still
+        // satisfies the predicate, so a row that was visited twice would be
+        // updated twice.
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String longValue = new String(chars);
+        tryDoCommand("UPDATE heap_fwd SET a = a - 100, b = '" + longValue +
+            "' WHERE a < 6;");
+
+        TupleLiteral[] expected = new TupleLiteral[40];
+        for (int i = 0; i < 40; i++) {
+            expected[i] = (i < 6) ? new TupleLiteral(i - 100, longValue) :
+                                    new TupleLiteral(i, "row" + i);
+        }
+        CommandResult result = tryDoCommand("SELECT * FROM heap_fwd;", true);
+        checkUnorderedResults(expected, result);
+
+        int numMoved = 0;
+        for (int i = 0; i < 40; i++) {
+            HeapFilePageTuple tup =
+                (HeapFilePageTuple) tupleFile.getTuple(fptrs.get(i));
+            assert tup.getColumnValue(0).equals(expected[i].getColumnValue(0));
+            assert tup.getColumnValue(1).equals(expected[i].getColumnValue(1));
+            assert tup.getExternalReference().equals(fptrs.get(i));
+            if (tup.isMoved())
+                numMoved++;
+        }
+        assert numMoved > 0;
+
+        // Shrink the rows again; moved rows stay where they are until the
+        // file is optimized.
+        tryDoCommand("UPDATE heap_fwd SET b = 'short' WHERE a < 0;");
+        tupleFile.optimize(null);
+
+        for (int i = 0; i < 40; i++) {
+            expected[i] = (i < 6) ? new TupleLiteral(i - 100, "short") :
+                                    new TupleLiteral(i, "row" + i);
+
+            HeapFilePageTuple tup =
+                (HeapFilePageTuple) tupleFile.getTuple(fptrs.get(i));
+            assert !tup.isMoved();
+            assert tup.getDBPage().getPageNo() == 1;
+        }
+        result = tryDoCommand("SELECT * FROM heap_fwd;", true);
+        checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Stores values that are larger than a page, and checks that they are
+     * stored out-of-line and read back correctly, and that their overflow
+     * pages are freed when the values are updated or deleted.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testOverflowValues() throws Exception {
+        tryDoCommand("CREATE TABLE heap_toast (a INTEGER, b VARCHAR(20000)) " +
+            "PROPERTIES (storage = 'heap', pagesize = 4096);");
+
+        // One value that compresses well, and some that don't.
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'z');
+        String[] values = new String[4];
+        values[0] = new String(chars);
+
+        Random random = new Random(35);
+        for (int i = 1; i < values.length; i++) {
+            for (int j = 0; j < chars.length; j++)
+                chars[j] = (char) ('a' + random.nextInt(26));
+            values[i] = new String(chars);
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO heap_toast VALUES (%d, '%s');", i, values[i]));
+        }
+        tryDoCommand("INSERT INTO heap_toast VALUES (4, 'small');");
+
+        TupleLiteral[] expected = new TupleLiteral[5];
+        for (int i = 0; i < values.length; i++)
+            expected[i] = new TupleLiteral(i, values[i]);
+        expected[4] = new TupleLiteral(4, "small");
+
+        CommandResult result = tryDoCommand("SELECT * FROM heap_toast;", true);
+        checkUnorderedResults(expected, result);
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_TOAST").getTupleFile();
+        int numPages = tupleFile.getDBFile().getNumPages();
+
+        try (TupleCursor cursor = tupleFile.openCursor(true)) {
+            HeapFilePageTuple tup;
+            while ((tup = (HeapFilePageTuple) cursor.next()) != null) {
+                int a = (Integer) tup.getColumnValue(0);
+                OverflowRef ref = tup.getOverflowRef(1);
+                if (a == 4) {
+                    assert ref == null;
+                }
+                else {
+                    assert ref != null;
+                    assert ref.getLength() == 10000;
+                    assert ref.isCompressed() == (a == 0);
+                }
+            }
+        }
+
+        // Replacing a large value with a small one frees its pages, which
+        // the next large value reuses.
+        tryDoCommand("UPDATE heap_toast SET b = 'tiny' WHERE a = 1;");
+        tryDoCommand("UPDATE heap_toast SET b = '" + values[1] +
+            "' WHERE a = 4;");
+        assert tupleFile.getDBFile().getNumPages() == numPages;
+
+        expected[1] = new TupleLiteral(1, "tiny");
+        expected[4] = new TupleLiteral(4, values[1]);
+        result = tryDoCommand("SELECT * FROM heap_toast;", true);
+        checkUnorderedResults(expected, result);
+
+        // The same goes for deleted rows.
+        tryDoCommand("DELETE FROM heap_toast WHERE a = 2;");
+        tryDoCommand(String.format("INSERT INTO heap_toast VALUES (5, '%s');",
+            values[2]));
+        assert tupleFile.getDBFile().getNumPages() == numPages;
+
+        expected[2] = new TupleLiteral(5, values[2]);
+        result = tryDoCommand("SELECT * FROM heap_toast;", true);
+        checkUnorderedResults(expected, result);
+
+        result = tryDoCommand("SELECT a FROM heap_toast WHERE a > 3;", true);
+        checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(4), new TupleLiteral(5) }, result);
+
+        // The small rows all fit on one data page; ANALYZE shouldn't count
+        // the overflow pages as data pages.
+        tryDoCommand("ANALYZE heap_toast;");
+        assert tupleFile.getStats().numDataPages == 1 :
+            tupleFile.getStats();
+    }
+
+
+    /**
+     * Deletes most of a table's rows, and checks that optimizing the table
+     * moves the rows at the end of the file into the space that was freed,
+     * reports each moved row's new location, and truncates the file.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        tryDoCommand("CREATE TABLE heap_compact (a INTEGER, b VARCHAR(200)) " +
+            "PROPERTIES (storage = 'heap', pagesize = 4096);");
+
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'y');
+        String value = new String(chars);
+        for (int i = 0; i < 200; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO heap_compact VALUES (%d, '%s');", i, value));
+        }
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_COMPACT").getTupleFile();
+        int numPages = tupleFile.getDBFile().getNumPages();
+        assert numPages > 4;
+
+        // Only the rows at the start and the end of the file are left.
+        tryDoCommand("DELETE FROM heap_compact WHERE a >= 20 AND a < 180;");
+
+        HashMap<FilePointer, Integer> rowsByFptr = new HashMap<>();
+        try (TupleCursor cursor = tupleFile.openCursor(true)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null) {
+                rowsByFptr.put(tup.getExternalReference(),
+                    (Integer) tup.getColumnValue(0));
+            }
+        }
+        assert rowsByFptr.size() == 40;
+
+        // Small batches, so that compaction takes several of them.
+        HashMap<FilePointer, FilePointer> moves = new HashMap<>();
+        System.setProperty("nanodb.optimize.batchsize", "3");
+        try {
+            tupleFile.optimize((oldRef, newTuple) -> {
+                assert newTuple.getColumnValue(0).equals(
+                    rowsByFptr.get(oldRef));
+                moves.put(oldRef, newTuple.getExternalReference());
+            });
+        }
+        finally {
+            System.clearProperty("nanodb.optimize.batchsize");
+        }
+
+        assert moves.size() == 20;
+        assert tupleFile.getDBFile().getNumPages() < numPages;
+        for (FilePointer oldRef : rowsByFptr.keySet()) {
+            FilePointer fptr = moves.getOrDefault(oldRef, oldRef);
+            assert fptr.getPageNo() < tupleFile.getDBFile().getNumPages();
+            assert tupleFile.getTuple(fptr).getColumnValue(0).equals(
+                rowsByFptr.get(oldRef));
+        }
+
+        TupleLiteral[] expected = new TupleLiteral[40];
+        for (int i = 0; i < 20; i++) {
+            expected[i] = new TupleLiteral(i, value);
+            expected[20 + i] = new TupleLiteral(180 + i, value);
+        }
+        CommandResult result = tryDoCommand("SELECT * FROM heap_compact;", true);
+        checkUnorderedResults(expected, result);
+
+        // Optimizing again has nothing left to do.
+        numPages = tupleFile.getDBFile().getNumPages();
+        tryDoCommand("OPTIMIZE heap_compact;");
+        assert tupleFile.getDBFile().getNumPages() == numPages;
+        result = tryDoCommand("SELECT * FROM heap_compact;", true);
+        checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Optimizes a table with indexes, and checks that the index entries of
+     * the moved rows refer to the rows' new locations.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testCompactionWithIndexes() throws Exception {
+        tryDoCommand("CREATE TABLE heap_compact_idx (a INTEGER, " +
+            "b VARCHAR(200)) PROPERTIES (storage = 'heap', pagesize = 4096);");
+        tryDoCommand("CREATE UNIQUE INDEX heap_compact_a " +
+            "ON heap_compact_idx (a);");
+        tryDoCommand("CREATE INDEX heap_compact_b ON heap_compact_idx (b);");
+
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'z');
+        String value = new String(chars);
+        for (int i = 0; i < 200; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO heap_compact_idx VALUES (%d, '%s%d');", i, value,
+                i % 7));
+        }
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_COMPACT_IDX").getTupleFile();
+        int numPages = tupleFile.getDBFile().getNumPages();
+
+        tryDoCommand("DELETE FROM heap_compact_idx WHERE a >= 20 AND a < 180;");
+        tryDoCommand("OPTIMIZE heap_compact_idx;");
+        assert tupleFile.getDBFile().getNumPages() < numPages;
+
+        CommandResult result =
+            server.doCommand("VERIFY heap_compact_idx;", false);
+        assert !result.failed();
+
+        result = tryDoCommand("SELECT a FROM heap_compact_idx " +
+            "WHERE a = 5 OR a = 195;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral((Object) 5), new TupleLiteral((Object) 195) },
+            result);
+    }
+
+
+    /**
+     * Checks that scans with bounds skip the pages whose zone maps rule them
+     * out, that the zone maps follow inserts, updates and deletes, and that
+     * queries using the zone maps still return the right rows.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testZoneMaps() throws Exception {
+        // Small pages, so that there are several zone-map pages.
+        tryDoCommand("CREATE TABLE heap_zone (a INTEGER, b INTEGER, " +
+            "c VARCHAR(100)) PROPERTIES (storage = 'heap', pagesize = 512, " +
+            "zonemap = 'a, b');");
+
+        char[] chars = new char[60];
+        Arrays.fill(chars, 'w');
+        String padding = new String(chars);
+
+        // Rows are added in order of "a", and "b" is only NULL at the end.
+        for (int i = 0; i < 400; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO heap_zone VALUES (%d, %s, '%s');", i,
+                (i >= 380 ? "NULL" : Integer.toString(i % 10)), padding));
+        }
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("HEAP_ZONE").getTupleFile();
+        assert scanWithBounds(tupleFile, new ScanBounds()).size() == 400;
+
+        ScanBounds bounds = new ScanBounds();
+        bounds.addComparison(0, CompareOperator.Type.GREATER_OR_EQUAL, 390);
+        ArrayList<Integer> found = scanWithBounds(tupleFile, bounds);
+        for (int i = 390; i < 400; i++)
+            assert found.contains(i);
+        assert found.size() < 40;
+
+        ScanBounds nullBounds = new ScanBounds();
+        nullBounds.addNullTest(1, true);
+        found = scanWithBounds(tupleFile, nullBounds);
+        for (int i = 380; i < 400; i++)
+            assert found.contains(i);
+        assert found.size() < 60;
+
+        CommandResult result = tryDoCommand(
+            "SELECT a FROM heap_zone WHERE 5 > a OR a = 399;", true);
+        checkUnorderedResults(new TupleLiteral[] { new TupleLiteral(0),
+            new TupleLiteral(1), new TupleLiteral(2), new TupleLiteral(3),
+            new TupleLiteral(4), new TupleLiteral(399) }, result);
+
+        result = tryDoCommand(
+            "SELECT a FROM heap_zone WHERE b IS NULL AND 383 > a;", true);
+        checkUnorderedResults(new TupleLiteral[] { new TupleLiteral(380),
+            new TupleLiteral(381), new TupleLiteral(382) }, result);
+
+        // An update widens the range of the row's page.
+        tryDoCommand("UPDATE heap_zone SET a = 1000 WHERE a = 3;");
+        result = tryDoCommand("SELECT a, b FROM heap_zone WHERE a > 999;",
+            true);
+        checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(1000, 3) }, result);
+
+        // Deletes keep the NULL counts exact.
+        tryDoCommand("DELETE FROM heap_zone WHERE b IS NULL;");
+        assert scanWithBounds(tupleFile, nullBounds).isEmpty();
+
+        // Optimizing recomputes the ranges, which still have to cover the
+        // updated row.
+        tryDoCommand("OPTIMIZE heap_zone;");
+        bounds = new ScanBounds();
+        bounds.addComparison(0, CompareOperator.Type.GREATER_THAN, 999);
+        found = scanWithBounds(tupleFile, bounds);
+        assert found.contains(1000);
+        assert found.size() < 20;
+
+        result = tryDoCommand("SELECT a FROM heap_zone WHERE a >= 378;", true);
+        checkUnorderedResults(new TupleLiteral[] { new TupleLiteral(378),
+            new TupleLiteral(379), new TupleLiteral(1000) }, result);
+    }
+
+
+    /**
+     * Scans a tuple file with a cursor that may skip pages outside the
+     * bounds, and returns the values of the first column of the tuples that
+     * the cursor returns.
+     */
+    private ArrayList<Integer> scanWithBounds(TupleFile tupleFile,
+        ScanBounds bounds) throws Exception {
+
+        ArrayList<Integer> values = new ArrayList<>();
+        try (TupleCursor cursor = tupleFile.openCursor(true, bounds)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null)
+                values.add((Integer) tup.getColumnValue(0));
+        }
+        return values;
+    }
+
+
     /**
      * This test performs a sequence of updates, to fully exercise the
      * tuple-value updating code.
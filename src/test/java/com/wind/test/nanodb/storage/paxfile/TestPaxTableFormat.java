@@ -0,0 +1,268 @@
+package com.wind.test.nanodb.storage.paxfile;
+
+
+import com.wind.test.nanodb.storage.TableFormatTestCase;
+
+import java.io.File;
+
+import com.wind.nanodb.expressions.CompareOperator;
+import com.wind.nanodb.expressions.TupleLiteral;
+import com.wind.nanodb.relations.Tuple;
+import com.wind.nanodb.server.CommandResult;
+import com.wind.nanodb.storage.ScanBounds;
+import com.wind.nanodb.storage.TupleCursor;
+import com.wind.nanodb.storage.TupleFile;
+import com.wind.nanodb.storage.paxfile.PaxColumnCursor;
+import com.wind.nanodb.storage.paxfile.PaxTupleFile;
+import org.junit.Test;
+
+
+/**
+ * This test class exercises the PAX tuple file, to be sure that inserts,
+ * updates and deletes all work correctly with the column-by-column page
+ * format, and that columns can be read a page at a time.
+ */
+public class TestPaxTableFormat extends TableFormatTestCase {
+
+    /**
+     * Inserts and deletes from a table file, where everything should stay
+     * within a single data page.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testPaxTableOnePageInsertDelete() throws Exception {
+        tryDoCommand("CREATE TABLE pax_1p_insdel (a INTEGER, b VARCHAR(20)) " +
+            "PROPERTIES (storage = 'pax', pagesize = 4096);", false);
+
+        insertRows("pax_1p_insdel", 150, 200, 3, 20, /* ordered */ false,
+                   /* delete */ true);
+    }
+
+
+    /**
+     * Inserts and deletes from a table file that needs many data pages.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testPaxTableMultiPageInsertDelete() throws Exception {
+        tryDoCommand("CREATE TABLE pax_mp_insdel (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'pax', pagesize = 4096);", false);
+
+        insertRows("pax_mp_insdel", 1000, 200, 20, 50, /* ordered */ false,
+                   /* delete */ true);
+    }
+
+
+    /**
+     * Updates fixed-size and variable-size values, including setting them to
+     * <tt>NULL</tt> and back.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testUpdates() throws Exception {
+        TupleLiteral[] tuples = {
+            new TupleLiteral(35, 521L, "abcd", "goodbye"),
+            new TupleLiteral(6177281, -405691L, "fghi", "puce"),
+            new TupleLiteral(-403662, 928032810L, "qrstu", "alongerstring")
+        };
+
+        tryDoCommand("CREATE TABLE pax_update (a INTEGER, b BIGINT, " +
+            "c CHAR(7), d VARCHAR(20)) PROPERTIES (storage = 'pax');");
+
+        tryDoCommand("INSERT INTO pax_update VALUES " +
+            "(35, 521, 'abcd', 'goodbye');");
+        tryDoCommand("INSERT INTO pax_update VALUES " +
+            "(6177281, -405691, 'fghi', 'puce');");
+        tryDoCommand("INSERT INTO pax_update VALUES " +
+            "(-403662, 928032810, 'qrstu', 'alongerstring');");
+
+        CommandResult result = tryDoCommand("SELECT * FROM pax_update;", true);
+        assert checkUnorderedResults(tuples, result);
+
+        tryDoCommand("UPDATE pax_update SET b = 92281965 WHERE a = 6177281;");
+        tryDoCommand("UPDATE pax_update SET d = 'goodeveningsir', c = NULL " +
+            "WHERE a = 35;");
+        tryDoCommand("UPDATE pax_update SET a = NULL WHERE b = 928032810;");
+
+        tuples[1].setColumnValue(1, 92281965L);
+        tuples[0].setColumnValue(3, "goodeveningsir");
+        tuples[0].setColumnValue(2, null);
+        tuples[2].setColumnValue(0, null);
+
+        result = tryDoCommand("SELECT * FROM pax_update;", true);
+        assert checkUnorderedResults(tuples, result);
+    }
+
+
+    /**
+     * Reads columns a page at a time, with runs of repeated values (which
+     * are run-length encoded), <tt>NULL</tt>s and deleted rows in the mix.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testColumnCursor() throws Exception {
+        tryDoCommand("CREATE TABLE pax_cols (a INTEGER, b VARCHAR(20), " +
+            "c DOUBLE) PROPERTIES (storage = 'pax', pagesize = 1024);");
+
+        for (int i = 0; i < 500; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO pax_cols VALUES (%d, '%s', %s);", i,
+                (i / 100 % 2 == 0 ? "even-hundred" : "odd-hundred"),
+                (i % 7 == 0 ? "NULL" : "1.5")));
+        }
+
+        tryDoCommand("DELETE FROM pax_cols WHERE a >= 450;");
+
+        PaxTupleFile tupleFile = (PaxTupleFile) server.getStorageManager()
+            .getTableManager().openTable("PAX_COLS").getTupleFile();
+        assert tupleFile.verify().isEmpty();
+
+        // Sum column "a" without building any tuples.
+        long sum = 0;
+        int count = 0;
+        PaxColumnCursor cursor = tupleFile.openColumnCursor(0);
+        Object[] batch;
+        while ((batch = cursor.nextBatch()) != null) {
+            for (Object value : batch) {
+                sum += (Integer) value;
+                count++;
+            }
+        }
+        assert count == 450;
+        assert sum == 449L * 450L / 2L;
+
+        int numNulls = 0;
+        cursor = tupleFile.openColumnCursor(2);
+        while ((batch = cursor.nextBatch()) != null) {
+            for (Object value : batch) {
+                if (value == null)
+                    numNulls++;
+                else
+                    assert ((Double) value) == 1.5;
+            }
+        }
+        assert numNulls == 65;  // Multiples of 7 in [0, 449].
+
+        CommandResult result = tryDoCommand(
+            "SELECT COUNT(*) FROM pax_cols WHERE b = 'odd-hundred';", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral(200L) }, result);
+
+        // Deleting everything and optimizing should leave just the header.
+        tryDoCommand("DELETE FROM pax_cols;");
+        tryDoCommand("OPTIMIZE pax_cols;");
+
+        TupleFile emptyFile = server.getStorageManager().getTableManager()
+            .openTable("PAX_COLS").getTupleFile();
+        assert emptyFile.getDBFile().getNumPages() == 1;
+        assert emptyFile.getFirstTuple() == null;
+    }
+
+
+    /**
+     * Dictionary-encodes a column declared at CREATE TABLE, and one chosen by
+     * ANALYZE, and checks that equality scans filter on codes and that
+     * decoded values are shared rather than allocated per row.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testDictionaryEncoding() throws Exception {
+        String[] states = { "CA", "NY", "TX", "WA" };
+        String[] cities = { "Pasadena", "Albany", "Austin", "Seattle" };
+
+        tryDoCommand("CREATE TABLE pax_dict (id INTEGER, state CHAR(2), " +
+            "city VARCHAR(30)) PROPERTIES (storage = 'pax', " +
+            "pagesize = 1024, dictionary = 'state');");
+
+        for (int i = 0; i < 400; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO pax_dict VALUES (%d, '%s', '%s');", i,
+                states[i % 4], cities[i % 4]));
+        }
+
+        PaxTupleFile tupleFile = (PaxTupleFile) server.getStorageManager()
+            .getTableManager().openTable("PAX_DICT").getTupleFile();
+        assert tupleFile.isDictionaryColumn(1);
+        assert !tupleFile.isDictionaryColumn(2);
+
+        // Only the rows with the code for "TX" should come back, and the
+        // values should be the dictionary's own string objects.
+        ScanBounds bounds = new ScanBounds();
+        bounds.addComparison(1, CompareOperator.Type.EQUALS, "TX");
+        int count = 0;
+        Object first = null;
+        try (TupleCursor cursor = tupleFile.openCursor(false, bounds)) {
+            Tuple tup;
+            while ((tup = cursor.next()) != null) {
+                assert "TX".equals(tup.getColumnValue(1));
+                if (first == null)
+                    first = tup.getColumnValue(1);
+                else
+                    assert tup.getColumnValue(1) == first;
+                count++;
+            }
+        }
+        assert count == 100;
+
+        bounds = new ScanBounds();
+        bounds.addComparison(1, CompareOperator.Type.EQUALS, "OR");
+        try (TupleCursor cursor = tupleFile.openCursor(false, bounds)) {
+            assert cursor.next() == null;
+        }
+
+        CommandResult result = tryDoCommand(
+            "SELECT state, COUNT(*) FROM pax_dict GROUP BY state;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral("CA", 100L), new TupleLiteral("NY", 100L),
+            new TupleLiteral("TX", 100L), new TupleLiteral("WA", 100L)
+        }, result);
+
+        // ANALYZE should notice that "city" has only four values.
+        tryDoCommand("ANALYZE pax_dict;");
+        tryDoCommand("OPTIMIZE pax_dict;");
+        tupleFile = (PaxTupleFile) server.getStorageManager()
+            .getTableManager().openTable("PAX_DICT").getTupleFile();
+        assert tupleFile.isDictionaryColumn(2);
+        assert tupleFile.verify().isEmpty();
+
+        result = tryDoCommand(
+            "SELECT id, state FROM pax_dict WHERE city = 'Austin' AND id < 20;",
+            true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(2, "TX"), new TupleLiteral(6, "TX"),
+            new TupleLiteral(10, "TX"), new TupleLiteral(14, "TX"),
+            new TupleLiteral(18, "TX")
+        }, result);
+    }
+
+
+    /**
+     * Deletes a PAX tuple file that has a dictionary column, and checks that
+     * the file is gone.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    @Test
+    public void testDeleteTupleFile() throws Exception {
+        tryDoCommand("CREATE TABLE pax_del (id INTEGER, state CHAR(2)) " +
+            "PROPERTIES (storage = 'pax', pagesize = 1024, " +
+            "dictionary = 'state');");
+        for (int i = 0; i < 20; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO pax_del VALUES (%d, 'S%d');", i, i % 3));
+        }
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("PAX_DEL").getTupleFile();
+        File dataFile = tupleFile.getDBFile().getDataFile();
+        assert dataFile.exists();
+
+        tupleFile.getManager().deleteTupleFile(tupleFile);
+        assert !dataFile.exists();
+    }
+}